@@ -0,0 +1,132 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.jmh;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.script.WarpScriptBucketizerFunction;
+import io.warp10.script.WarpScriptLib;
+import io.warp10.script.WarpScriptMapperFunction;
+import io.warp10.script.WarpScriptReducerFunction;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Apply common aggregators through GTSHelper.bucketize, map and reduce.
+ *
+ * Series have DATAPOINTS double values with one datapoint per tick.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AggregatorBenchmark {
+
+  private static final int DATAPOINTS = 10000;
+
+  /**
+   * Number of series to reduce
+   */
+  private static final int SERIES = 64;
+
+  /**
+   * Number of ticks per bucket
+   */
+  private static final long BUCKETSPAN = 60L;
+
+  /**
+   * Size of the sliding window of the mappers
+   */
+  private static final long WINDOW = 10L;
+
+  @Param({ "mean", "sum", "max" })
+  public String aggregator;
+
+  private WarpScriptBucketizerFunction bucketizer;
+  private WarpScriptMapperFunction mapper;
+  private WarpScriptReducerFunction reducer;
+
+  private GeoTimeSerie gts;
+  private List<GeoTimeSerie> series;
+
+  @Setup
+  public void setup() throws Exception {
+    WarpConfig.safeSetProperties(new StringReader("warp.timeunits=us\n"));
+
+    bucketizer = (WarpScriptBucketizerFunction) WarpScriptLib.getFunction("bucketizer." + aggregator);
+    mapper = (WarpScriptMapperFunction) WarpScriptLib.getFunction("mapper." + aggregator);
+    reducer = (WarpScriptReducerFunction) WarpScriptLib.getFunction("reducer." + aggregator);
+
+    Random prng = new Random(0L);
+
+    series = new ArrayList<GeoTimeSerie>();
+
+    for (int i = 0; i < SERIES; i++) {
+      GeoTimeSerie serie = new GeoTimeSerie(DATAPOINTS);
+      serie.setName("sensor.temperature");
+      Map<String,String> labels = new HashMap<String,String>();
+      labels.put("site", "site" + (i % 4));
+      labels.put("sensor", Integer.toString(i));
+      serie.setLabels(labels);
+
+      for (int j = 0; j < DATAPOINTS; j++) {
+        GTSHelper.setValue(serie, j, 20.0D + prng.nextGaussian());
+      }
+
+      series.add(serie);
+    }
+
+    gts = series.get(0);
+  }
+
+  @Benchmark
+  public GeoTimeSerie bucketize() throws Exception {
+    return GTSHelper.bucketize(gts, BUCKETSPAN, 0, 0L, bucketizer, Long.MAX_VALUE);
+  }
+
+  @Benchmark
+  public List<GeoTimeSerie> map() throws Exception {
+    return GTSHelper.map(gts, mapper, WINDOW, 0L);
+  }
+
+  @Benchmark
+  public List<GeoTimeSerie> reduce() throws Exception {
+    return GTSHelper.reduce(reducer, series, Collections.singletonList("site"));
+  }
+}
@@ -0,0 +1,137 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.jmh;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.gts.GeoTimeSerie;
+
+import java.io.StringReader;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Encode and decode DATAPOINTS datapoints of a given value type.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncoderBenchmark {
+
+  private static final int DATAPOINTS = 10000;
+
+  @Param({ "long", "double", "boolean", "string", "binary" })
+  public String type;
+
+  /**
+   * Set to true to add a location and an elevation to each datapoint
+   */
+  @Param({ "false", "true" })
+  public boolean geo;
+
+  private long[] timestamps;
+  private long[] locations;
+  private long[] elevations;
+  private Object[] values;
+
+  private GTSEncoder encoded;
+
+  @Setup
+  public void setup() throws Exception {
+    WarpConfig.safeSetProperties(new StringReader("warp.timeunits=us\n"));
+
+    Random prng = new Random(0L);
+
+    timestamps = new long[DATAPOINTS];
+    locations = new long[DATAPOINTS];
+    elevations = new long[DATAPOINTS];
+    values = new Object[DATAPOINTS];
+
+    long ts = 1600000000000000L;
+
+    for (int i = 0; i < DATAPOINTS; i++) {
+      // Mostly regular timestamps with some jitter
+      ts += 1000000L + prng.nextInt(1000);
+      timestamps[i] = ts;
+      locations[i] = geo ? prng.nextLong() : GeoTimeSerie.NO_LOCATION;
+      elevations[i] = geo ? prng.nextInt(10000) : GeoTimeSerie.NO_ELEVATION;
+
+      if ("long".equals(type)) {
+        values[i] = (long) (i + prng.nextInt(100));
+      } else if ("double".equals(type)) {
+        values[i] = 20.0D + prng.nextGaussian();
+      } else if ("boolean".equals(type)) {
+        values[i] = prng.nextBoolean();
+      } else if ("string".equals(type)) {
+        values[i] = "value-" + prng.nextInt(1000);
+      } else {
+        byte[] bytes = new byte[16];
+        prng.nextBytes(bytes);
+        values[i] = bytes;
+      }
+    }
+
+    encoded = encode();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(DATAPOINTS)
+  public GTSEncoder addValue() throws Exception {
+    return encode();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(DATAPOINTS)
+  public void next(Blackhole bh) throws Exception {
+    GTSDecoder decoder = encoded.getUnsafeDecoder(false);
+
+    while (decoder.next()) {
+      bh.consume(decoder.getTimestamp());
+      bh.consume(decoder.getLocation());
+      bh.consume(decoder.getElevation());
+      bh.consume(decoder.getBinaryValue());
+    }
+  }
+
+  private GTSEncoder encode() throws Exception {
+    GTSEncoder encoder = new GTSEncoder(0L);
+
+    for (int i = 0; i < DATAPOINTS; i++) {
+      encoder.addValue(timestamps[i], locations[i], elevations[i], values[i]);
+    }
+
+    return encoder;
+  }
+}
@@ -0,0 +1,137 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.jmh;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GTSStreamParser;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compare the parsers of the /update input format on a body of LINES lines.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+
+  private static final int LINES = 10000;
+
+  /**
+   * Layout of the input, 'series' has one line per series, 'continuation' uses '=' lines,
+   * 'repeated' repeats the class and labels of a small set of series
+   */
+  @Param({ "series", "continuation", "repeated" })
+  public String layout;
+
+  private String[] lines;
+  private byte[] body;
+  private Map<String,String> extraLabels;
+
+  @Setup
+  public void setup() throws Exception {
+    WarpConfig.safeSetProperties(new StringReader("warp.timeunits=us\n"));
+
+    extraLabels = new HashMap<String,String>();
+    extraLabels.put(".producer", "producer");
+    extraLabels.put(".owner", "owner");
+
+    lines = new String[LINES];
+    StringBuilder sb = new StringBuilder();
+
+    for (int i = 0; i < LINES; i++) {
+      String line;
+      if ("continuation".equals(layout) && 0 != i % 100) {
+        line = "=" + (1600000000000000L + i) + "// " + (i * 0.25D);
+      } else if ("repeated".equals(layout)) {
+        line = (1600000000000000L + i) + "// sensor.temperature{site=paris,building=b" + (i % 16) + ",floor=" + (i % 4) + "} " + i;
+      } else {
+        line = (1600000000000000L + i) + "// sensor.temperature{site=paris,building=b" + i + ",floor=" + (i % 4) + "} " + i;
+      }
+      lines[i] = line;
+      sb.append(line);
+      sb.append("\n");
+    }
+
+    body = sb.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(LINES)
+  public GTSEncoder parse() throws Exception {
+    // Read the lines the way StandaloneIngressHandler does without GTSStreamParser
+    BufferedReader br = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8));
+    GTSEncoder encoder = null;
+    String line;
+    while (null != (line = br.readLine())) {
+      line = line.trim();
+      encoder = GTSHelper.parse(encoder, line, extraLabels, null, Long.MAX_VALUE, null, null, null, null, false, 0L);
+    }
+    return encoder;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(LINES)
+  public GTSEncoder parse_regexp() throws Exception {
+    GTSEncoder encoder = null;
+    for (String line: lines) {
+      // The regexp parser does not support continuation lines
+      if ('=' == line.charAt(0)) {
+        encoder.addValue(0L, 0L, 0L, 0L);
+        continue;
+      }
+      encoder = GTSHelper.parse_regexp(encoder, line, extraLabels);
+    }
+    return encoder;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(LINES)
+  public GTSEncoder stream() throws Exception {
+    GTSStreamParser parser = new GTSStreamParser(new ByteArrayInputStream(body), StandardCharsets.UTF_8, extraLabels, Long.MAX_VALUE, null, null, GTSStreamParser.DEFAULT_CACHE_SIZE);
+    GTSEncoder encoder = null;
+    while (parser.next()) {
+      encoder = parser.parse(encoder, null, null, null, null, null, false, 0L);
+    }
+    return encoder;
+  }
+}
@@ -0,0 +1,104 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.jmh;
+
+import io.warp10.WarpConfig;
+import io.warp10.script.MemoryWarpScriptStack;
+import io.warp10.script.WarpScriptStack.Macro;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Execute representative WarpScript macros on a MemoryWarpScriptStack.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StackBenchmark {
+
+  /**
+   * Name of the macro to run, see MACROS
+   */
+  @Param({ "arithmetic", "strings", "lists", "maps", "gts" })
+  public String macro;
+
+  private static final String[][] MACROS = new String[][] {
+    { "arithmetic", "0 1 1000 <% 2 * + 3 % %> FOR" },
+    { "strings", "[] 1 200 <% TOSTRING 'item-' SWAP + +! %> FOR ',' JOIN ',' SPLIT SIZE" },
+    { "lists", "[] 1 1000 <% +! %> FOR LSORT REVERSE <% 2 * %> LMAP SIZE" },
+    { "maps", "{} 1 500 <% TOSTRING 'k' SWAP + 42 SWAP PUT %> FOR KEYLIST SIZE" },
+    { "gts", "NEWGTS 'test' RENAME 1 1000 <% DUP 0.5 * NaN NaN NaN 4 ROLL ADDVALUE %> FOR"
+        + " [ SWAP bucketizer.mean 0 10 0 ] BUCKETIZE [ SWAP mapper.delta 1 0 0 ] MAP 0 GET SIZE" },
+  };
+
+  private MemoryWarpScriptStack stack;
+  private String script;
+  private Macro compiled;
+
+  @Setup
+  public void setup() throws Exception {
+    WarpConfig.safeSetProperties(new StringReader("warp.timeunits=us\n"));
+
+    stack = new MemoryWarpScriptStack(null, null, WarpConfig.getProperties());
+    stack.maxLimits();
+
+    for (String[] m: MACROS) {
+      if (m[0].equals(macro)) {
+        script = m[1];
+      }
+    }
+
+    stack.exec("<% " + script + " %>");
+    compiled = (Macro) stack.pop();
+  }
+
+  /**
+   * Parse and execute the script
+   */
+  @Benchmark
+  public Object exec() throws Exception {
+    stack.clear();
+    stack.exec(script);
+    return stack.peek();
+  }
+
+  /**
+   * Execute the already parsed macro
+   */
+  @Benchmark
+  public Object execMacro() throws Exception {
+    stack.clear();
+    stack.exec(compiled);
+    return stack.peek();
+  }
+}
@@ -0,0 +1,187 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.jmh;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.Configuration;
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.store.GTSDecoderIterator;
+import io.warp10.continuum.store.thrift.data.FetchRequest;
+import io.warp10.continuum.store.thrift.data.Metadata;
+import io.warp10.crypto.KeyStore;
+import io.warp10.crypto.UnsecureKeyStore;
+import io.warp10.standalone.StandaloneStoreClient;
+import io.warp10.standalone.WarpDB;
+
+import java.io.File;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.iq80.leveldb.Options;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Fetch SERIES series of DATAPOINTS datapoints each through a StandaloneStoreClient
+ * backed by a LevelDB created in a temporary directory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StoreClientBenchmark {
+
+  private static final int SERIES = 16;
+  private static final int DATAPOINTS = 10000;
+
+  /**
+   * First timestamp, datapoints are one second apart
+   */
+  private static final long START = 1600000000000000L;
+
+  /**
+   * Value of leveldb.data.blockspan, 0 stores one datapoint per key, 3600000000 stores hourly blocks
+   */
+  @Param({ "0", "3600000000" })
+  public String blockspan;
+
+  /**
+   * Set to true to use the pure java implementation of LevelDB
+   */
+  @Param({ "false" })
+  public boolean nativedisabled;
+
+  private File home;
+  private WarpDB db;
+  private StandaloneStoreClient client;
+  private List<Metadata> metadatas;
+
+  @Setup
+  public void setup() throws Exception {
+    WarpConfig.safeSetProperties(new StringReader("warp.timeunits=us\n"));
+
+    Properties properties = new Properties();
+    properties.setProperty(Configuration.LEVELDB_DATA_BLOCKSPAN, blockspan);
+
+    KeyStore keystore = new UnsecureKeyStore();
+    keystore.setKey(KeyStore.SIPHASH_CLASS, new byte[16]);
+    keystore.setKey(KeyStore.SIPHASH_LABELS, new byte[16]);
+
+    home = Files.createTempDirectory("warp10-jmh-leveldb").toFile();
+
+    Options options = new Options();
+    options.createIfMissing(true);
+
+    db = new WarpDB(nativedisabled, false, home.getAbsolutePath(), options);
+    client = new StandaloneStoreClient(db, keystore, properties);
+
+    metadatas = new ArrayList<Metadata>();
+
+    for (int i = 0; i < SERIES; i++) {
+      Metadata metadata = new Metadata();
+      metadata.setName("sensor.temperature");
+      Map<String,String> labels = new HashMap<String,String>();
+      labels.put("sensor", Integer.toString(i));
+      metadata.setLabels(labels);
+      metadata.setClassId(i);
+      metadata.setLabelsId(i);
+      metadatas.add(metadata);
+
+      GTSEncoder encoder = new GTSEncoder(0L);
+      encoder.setMetadata(metadata);
+
+      for (int j = 0; j < DATAPOINTS; j++) {
+        encoder.addValue(START + j * 1000000L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, 20.0D + (j % 100) / 10.0D);
+      }
+
+      client.store(encoder);
+    }
+
+    // Flush pending writes
+    client.store((GTSEncoder) null);
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    db.close();
+
+    File[] files = home.listFiles();
+
+    if (null != files) {
+      for (File file: files) {
+        file.delete();
+      }
+    }
+
+    home.delete();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(SERIES * DATAPOINTS)
+  public void fetch(Blackhole bh) throws Exception {
+    fetch(bh, Long.MAX_VALUE - 1, Long.MIN_VALUE, -1L);
+  }
+
+  /**
+   * Fetch the last 100 datapoints of each series
+   */
+  @Benchmark
+  @OperationsPerInvocation(SERIES * 100)
+  public void fetchLast(Blackhole bh) throws Exception {
+    fetch(bh, Long.MAX_VALUE - 1, Long.MIN_VALUE, 100L);
+  }
+
+  private void fetch(Blackhole bh, long now, long then, long count) throws Exception {
+    FetchRequest req = new FetchRequest();
+    req.setMetadatas(metadatas);
+    req.setNow(now);
+    req.setThents(then);
+    req.setCount(count);
+
+    try (GTSDecoderIterator iter = client.fetch(req)) {
+      while (iter.hasNext()) {
+        GTSDecoder decoder = iter.next();
+        while (decoder.next()) {
+          bh.consume(decoder.getTimestamp());
+          bh.consume(decoder.getBinaryValue());
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,116 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.standalone;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.TimeSource;
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.gts.GeoTimeSerie;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Store and fetch datapoints in an InMemoryChunkSet, with chunks stored on or off heap.
+ *
+ * This benchmark lives in the io.warp10.standalone package so it can create off-heap chunk sets.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InMemoryChunkSetBenchmark {
+
+  private static final int DATAPOINTS = 10000;
+
+  private static final int CHUNK_COUNT = 4;
+
+  /**
+   * Datapoints are spread over the last CHUNK_COUNT - 1 chunks
+   */
+  private static final long CHUNK_LENGTH = DATAPOINTS * 1000L;
+
+  @Param({ "false", "true" })
+  public boolean offheap;
+
+  private OffHeapSlabAllocator allocator;
+
+  private GTSEncoder encoder;
+  private InMemoryChunkSet chunkset;
+  private long now;
+
+  @Setup(Level.Iteration)
+  public void setup() throws Exception {
+    WarpConfig.safeSetProperties(new StringReader("warp.timeunits=us\n"));
+
+    now = TimeSource.getTime();
+
+    encoder = new GTSEncoder(0L);
+
+    for (int i = 0; i < DATAPOINTS; i++) {
+      encoder.addValue(now - (CHUNK_COUNT - 1) * CHUNK_LENGTH + i * (CHUNK_COUNT - 1) * 1000L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, (long) i);
+    }
+
+    allocator = offheap ? new OffHeapSlabAllocator(OffHeapSlabAllocator.DEFAULT_SLAB_SIZE, null) : null;
+
+    chunkset = newChunkSet();
+    chunkset.store(encoder);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(DATAPOINTS)
+  public InMemoryChunkSet store() throws Exception {
+    InMemoryChunkSet chunkset = newChunkSet();
+    chunkset.store(encoder);
+    // Release the off-heap regions
+    chunkset.clean(now + 2 * CHUNK_COUNT * CHUNK_LENGTH);
+    return chunkset;
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(DATAPOINTS)
+  public void fetch(Blackhole bh) throws Exception {
+    GTSDecoder decoder = chunkset.fetch(now, now - CHUNK_COUNT * CHUNK_LENGTH, Long.MAX_VALUE, 0L, 1.0D);
+
+    while (decoder.next()) {
+      bh.consume(decoder.getTimestamp());
+      bh.consume(decoder.getBinaryValue());
+    }
+  }
+
+  private InMemoryChunkSet newChunkSet() {
+    return new InMemoryChunkSet(CHUNK_COUNT, CHUNK_LENGTH, false, allocator, 1024);
+  }
+}
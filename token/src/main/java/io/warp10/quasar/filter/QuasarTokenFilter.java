@@ -26,6 +26,8 @@ import io.warp10.quasar.filter.exception.QuasarTokenExpired;
 import io.warp10.quasar.filter.sensision.QuasarTokenFilterSensisionConstants;
 import io.warp10.quasar.token.thrift.data.ReadToken;
 import io.warp10.quasar.token.thrift.data.WriteToken;
+import io.warp10.quasar.trl.QuasarTRL;
+import io.warp10.quasar.trl.QuasarTRLLoadedHandler;
 import io.warp10.quasar.trl.QuasarTokenRevocationListLoader;
 import io.warp10.sensision.Sensision;
 
@@ -34,8 +36,11 @@ import com.google.common.base.Strings;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class QuasarTokenFilter {
 
@@ -46,6 +51,40 @@ public class QuasarTokenFilter {
   private long tokenSipHashKeyK0;
   private long tokenSipHashKeyK1;
 
+  /**
+   * Decoded token, the revocation, expiry and application checks are still performed for each use
+   */
+  private static final class CachedToken {
+    private final String token;
+    private final Object decoded;
+    private final long appId;
+
+    private CachedToken(String token, Object decoded, long appId) {
+      this.token = token;
+      this.decoded = decoded;
+      this.appId = appId;
+    }
+  }
+
+  /**
+   * LRU cache of decoded tokens keyed by token SipHash, null if disabled
+   */
+  private final Map<Long,CachedToken> tokenCache;
+
+  /**
+   * Number of TRLs loaded so far. A single handler is registered on the TRL loader for all
+   * filters, so discarded filters are not retained by the loader, each cache is cleared
+   * lazily when it notices a new TRL was loaded.
+   */
+  private static final AtomicLong trlGeneration = new AtomicLong(0L);
+
+  private static final AtomicBoolean trlHandlerRegistered = new AtomicBoolean(false);
+
+  /**
+   * Value of 'trlGeneration' when the cache was last cleared, guarded by 'tokenCache'
+   */
+  private long cacheGeneration = -1L;
+
   // custom key constructor
   private QuasarTokenFilter(Properties props, KeyStore keystore, String tokenAesKeyName) {
     this.properties = (Properties) props.clone();
@@ -63,6 +102,31 @@ public class QuasarTokenFilter {
 
     this.quasarTokenDecoder = new QuasarTokenDecoder(tokenSipHashKeyK0, tokenSipHashKeyK1, tokenAESKey);
     this.quasarTokenRevoked = new QuasarTokensRevoked(properties, appSipHashKey);
+
+    final int cacheSize = Integer.parseInt(properties.getProperty(QuasarConfiguration.WARP_TOKEN_CACHE_SIZE, QuasarConfiguration.WARP_TOKEN_CACHE_SIZE_DEFAULT));
+
+    if (cacheSize > 0) {
+      this.tokenCache = new LinkedHashMap<Long,CachedToken>(16, 0.75F, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long,CachedToken> eldest) {
+          int size = this.size();
+          Sensision.set(QuasarTokenFilterSensisionConstants.SENSISION_CLASS_QUASAR_FILTER_TOKEN_CACHE_SIZE, Sensision.EMPTY_LABELS, size);
+          return size > cacheSize;
+        }
+      };
+
+      // Start from an empty cache each time a new TRL is loaded
+      if (trlHandlerRegistered.compareAndSet(false, true)) {
+        QuasarTokenRevocationListLoader.getInstance(properties, appSipHashKey).addTrlUpdatedHandler(new QuasarTRLLoadedHandler() {
+          @Override
+          public void onQuasarTRL(QuasarTRL trl) {
+            trlGeneration.incrementAndGet();
+          }
+        });
+      }
+    } else {
+      this.tokenCache = null;
+    }
   }
 
   // default contructor
@@ -84,17 +148,30 @@ public class QuasarTokenFilter {
 
       byte[] tokenB64Data = cryptedToken.getBytes();
 
+      long sipHash = getTokenSipHash(tokenB64Data);
+
       // check if the token is revoked by the owner
-      quasarTokenRevoked.isTokenRevoked(getTokenSipHash(tokenB64Data));
+      quasarTokenRevoked.isTokenRevoked(sipHash);
+
+      ReadToken token;
+      long appId;
 
-      // Decode the token hex string to byte array
-      byte[] tokenHexData = OrderPreservingBase64.decode(tokenB64Data);
+      CachedToken cached = getCachedToken(sipHash, cryptedToken, labels);
 
-      // decode the read token
-      ReadToken token = quasarTokenDecoder.decodeReadToken(tokenHexData);
+      if (null != cached && cached.decoded instanceof ReadToken) {
+        token = ((ReadToken) cached.decoded).deepCopy();
+        appId = cached.appId;
+      } else {
+        // Decode the token hex string to byte array
+        byte[] tokenHexData = OrderPreservingBase64.decode(tokenB64Data);
 
-      // compute the app id
-      long appId = QuasarTokenRevocationListLoader.getApplicationHash(token.getAppName());
+        // decode the read token
+        token = quasarTokenDecoder.decodeReadToken(tokenHexData);
+
+        // compute the app id
+        appId = QuasarTokenRevocationListLoader.getApplicationHash(token.getAppName());
+        cached = null;
+      }
 
       // check the token expiration
       checkTokenExpired(token.getIssuanceTimestamp(), token.getExpiryTimestamp(), appId);
@@ -102,6 +179,10 @@ public class QuasarTokenFilter {
       // check the registered application status
       quasarTokenRevoked.isRegisteredAppAuthorized(appId);
 
+      if (null == cached) {
+        cacheToken(sipHash, new CachedToken(cryptedToken, token.deepCopy(), appId));
+      }
+
       return token;
     } catch(QuasarTokenException qexp) {
       labels.put("error", qexp.label);
@@ -134,17 +215,30 @@ public class QuasarTokenFilter {
 
       byte[] tokenB64Data = cryptedToken.getBytes();
 
+      long sipHash = getTokenSipHash(tokenB64Data);
+
       // check if the token is revoked by the owner
-      quasarTokenRevoked.isTokenRevoked(getTokenSipHash(tokenB64Data));
+      quasarTokenRevoked.isTokenRevoked(sipHash);
+
+      WriteToken token;
+      long appId;
+
+      CachedToken cached = getCachedToken(sipHash, cryptedToken, labels);
 
-      // Decode the token hex string to byte array
-      byte[] tokenHexData = OrderPreservingBase64.decode(tokenB64Data);
+      if (null != cached && cached.decoded instanceof WriteToken) {
+        token = ((WriteToken) cached.decoded).deepCopy();
+        appId = cached.appId;
+      } else {
+        // Decode the token hex string to byte array
+        byte[] tokenHexData = OrderPreservingBase64.decode(tokenB64Data);
 
-      // decode the write token
-      WriteToken token = quasarTokenDecoder.decodeWriteToken(tokenHexData);
+        // decode the write token
+        token = quasarTokenDecoder.decodeWriteToken(tokenHexData);
 
-      // compute the app id based on the app name
-      long appId = QuasarTokenRevocationListLoader.getApplicationHash(token.getAppName());
+        // compute the app id based on the app name
+        appId = QuasarTokenRevocationListLoader.getApplicationHash(token.getAppName());
+        cached = null;
+      }
 
       // check the token expiration
       checkTokenExpired(token.getIssuanceTimestamp(), token.getExpiryTimestamp(), appId);
@@ -152,6 +246,10 @@ public class QuasarTokenFilter {
       // check the registered application status
       quasarTokenRevoked.isRegisteredAppAuthorized(appId);
 
+      if (null == cached) {
+        cacheToken(sipHash, new CachedToken(cryptedToken, token.deepCopy(), appId));
+      }
+
       return token;
     } catch(QuasarTokenException qexp) {
       labels.put("error", qexp.label);
@@ -181,6 +279,59 @@ public class QuasarTokenFilter {
     return key;
   }
 
+  /**
+   * Return the cached decoded token or null if the token is not in the cache
+   */
+  private CachedToken getCachedToken(long sipHash, String cryptedToken, Map<String,String> labels) {
+    if (null == tokenCache) {
+      return null;
+    }
+
+    CachedToken cached;
+
+    synchronized(tokenCache) {
+      checkTrlGeneration();
+      cached = tokenCache.get(sipHash);
+    }
+
+    // Guard against SipHash collisions
+    if (null != cached && !cached.token.equals(cryptedToken)) {
+      cached = null;
+    }
+
+    if (null != cached) {
+      Sensision.update(QuasarTokenFilterSensisionConstants.SENSISION_CLASS_QUASAR_FILTER_TOKEN_CACHE_HITS, labels, 1);
+    } else {
+      Sensision.update(QuasarTokenFilterSensisionConstants.SENSISION_CLASS_QUASAR_FILTER_TOKEN_CACHE_MISSES, labels, 1);
+    }
+
+    return cached;
+  }
+
+  private void cacheToken(long sipHash, CachedToken cached) {
+    if (null == tokenCache) {
+      return;
+    }
+
+    synchronized(tokenCache) {
+      checkTrlGeneration();
+      tokenCache.put(sipHash, cached);
+    }
+  }
+
+  /**
+   * Clear the token cache if a TRL was loaded since it was last cleared, the caller MUST hold the lock of 'tokenCache'
+   */
+  private void checkTrlGeneration() {
+    long generation = trlGeneration.get();
+
+    if (generation != cacheGeneration) {
+      tokenCache.clear();
+      cacheGeneration = generation;
+      Sensision.set(QuasarTokenFilterSensisionConstants.SENSISION_CLASS_QUASAR_FILTER_TOKEN_CACHE_SIZE, Sensision.EMPTY_LABELS, 0);
+    }
+  }
+
   private long getTokenSipHash(byte[] nolookupToken) {
     return SipHashInline.hash24_palindromic(tokenSipHashKeyK0, tokenSipHashKeyK1, nolookupToken, 0, nolookupToken.length);
   }
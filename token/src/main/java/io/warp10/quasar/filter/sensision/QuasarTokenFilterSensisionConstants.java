@@ -22,6 +22,21 @@ public class QuasarTokenFilterSensisionConstants {
 
   public static final String SENSISION_CLASS_QUASAR_FILTER_TOKEN_TIME_US = "warp.quasar.filter.token.time.us";
 
+  /**
+   * Number of tokens found in the decoded tokens cache
+   */
+  public static final String SENSISION_CLASS_QUASAR_FILTER_TOKEN_CACHE_HITS = "warp.quasar.filter.token.cache.hits";
+
+  /**
+   * Number of tokens which had to be decoded
+   */
+  public static final String SENSISION_CLASS_QUASAR_FILTER_TOKEN_CACHE_MISSES = "warp.quasar.filter.token.cache.misses";
+
+  /**
+   * Number of decoded tokens in the cache
+   */
+  public static final String SENSISION_CLASS_QUASAR_FILTER_TOKEN_CACHE_SIZE = "warp.quasar.filter.token.cache.size";
+
   /**
    * Heart beat +1 each time the TRL Thread is looking if a new trl is available
    */
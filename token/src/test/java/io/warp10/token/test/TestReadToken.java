@@ -184,5 +184,42 @@ public class TestReadToken extends TokenTestCase {
     }
   }
 
+  @Test
+  public void testCachedToken() throws Exception {
+    String producer = UUID.randomUUID().toString();
+    String app = "warp10.test";
+    long ttl = 500;
+
+    String readToken = tokenEncoder.deliverReadToken(app, producer, producer, new ArrayList<String>(Arrays.asList(app)), ttl, getKeyStore());
+
+    final QuasarTokenFilter tokenFilter = new QuasarTokenFilter(getConfig(), getKeyStore());
+
+    ReadToken first = tokenFilter.getReadToken(readToken);
+    first.setAppName("modified");
+
+    // the cached token is not altered by the modifications of the returned instances
+    ReadToken second = tokenFilter.getReadToken(readToken);
+    assert first != second;
+    assert app.equals(second.getAppName());
+    assert first.getIssuanceTimestamp() == second.getIssuanceTimestamp();
+
+    // a cached read token is not a valid write token
+    try {
+      tokenFilter.getWriteToken(readToken);
+      assert false;
+    } catch (QuasarTokenException qte) {
+    }
+
+    // the expiry is still checked for cached tokens
+    Thread.sleep(ttl + 100);
+
+    try {
+      tokenFilter.getReadToken(readToken);
+      assert false;
+    } catch (QuasarTokenException qte) {
+      assert qte instanceof QuasarTokenExpired;
+    }
+  }
+
   private QuasarTokenEncoder tokenEncoder = new QuasarTokenEncoder();
 }
@@ -81,6 +81,16 @@ public class Configuration {
    */
   public static final String WARP_PLASMA_MAXSUBS = "warp.plasma.maxsubs";
 
+  /**
+   * Number of threads dispatching data to standalone Plasma sessions
+   */
+  public static final String WARP_PLASMA_DISPATCH_THREADS = "warp.plasma.dispatch.threads";
+
+  /**
+   * Maximum number of messages pending delivery to a single Plasma session, messages are dropped beyond that
+   */
+  public static final String WARP_PLASMA_SESSION_QUEUE = "warp.plasma.session.queue";
+
   /**
    * Maximum encoder size (in bytes) for internal data transfers. Use values from 64k to 512k for
    * optimum performance and make sure this size is less than the maximum message size of Kafka
@@ -177,11 +187,39 @@ public class Configuration {
   public static final String WARPSCRIPT_MAX_PIXELS_HARD = "warpscript.maxpixels.hard";
   public static final String WARPSCRIPT_MAX_JSON_HARD = "warpscript.maxjson.hard";
 
+  /**
+   * Number of threads of the pool shared by MAP, REDUCE and BUCKETIZE to apply thread safe Java functions in parallel.
+   * Defaults to 0 which disables parallel execution.
+   */
+  public static final String WARPSCRIPT_PARALLELISM = "warpscript.parallelism";
+
+  /**
+   * Maximum number of threads, including the calling one, a single MAP, REDUCE or BUCKETIZE may use.
+   * Defaults to warpscript.parallelism + 1
+   */
+  public static final String WARPSCRIPT_PARALLELISM_PERREQUEST = "warpscript.parallelism.perrequest";
+
+  /**
+   * Minimum number of Geo Time Series (or equivalence classes for REDUCE) for parallel execution to be used. Defaults to 8.
+   */
+  public static final String WARPSCRIPT_PARALLELISM_THRESHOLD = "warpscript.parallelism.threshold";
+
   /**
    * When set to true, allow common comment block style. When false, keep the old strict comment block style within WarpScript
    */
   public static final String WARPSCRIPT_ALLOW_LOOSE_BLOCK_COMMENTS = "warpscript.comments.loose";
 
+  /**
+   * Set to false to disable the execution of macros using a pre-resolved form of their statements. Defaults to true.
+   */
+  public static final String WARPSCRIPT_MACRO_COMPILE = "warpscript.macro.compile";
+
+  /**
+   * Number of executions after which a compiled macro is turned into a JVM class whose code calls its functions directly.
+   * Defaults to 0 which disables the generation of classes. Generated classes are not used while a profiler is active.
+   */
+  public static final String WARPSCRIPT_MACRO_JIT_THRESHOLD = "warpscript.macro.jit.threshold";
+
   /**
    * Flag to enable REXEC
    */
@@ -547,6 +585,12 @@ public class Configuration {
    */
   public static final String DIRECTORY_INIT_NTHREADS = "directory.init.nthreads";
 
+  /**
+   * Set to true to maintain an inverted index of label values in the standalone directory, exact label
+   * selectors are then resolved using this index before regular expressions are evaluated
+   */
+  public static final String DIRECTORY_LABELS_INDEX = "directory.labels.index";
+
   /**
    * Boolean indicating whether or not we should initialized Directory by reading HBase
    */
@@ -675,6 +719,17 @@ public class Configuration {
    */
   public static final String INGRESS_ATTRIBUTES_ALLOWDELTA = "ingress.attributes.allowdelta";
 
+  /**
+   * Set to false to parse the data passed to /update with GTSHelper.parse instead of the byte oriented parser.
+   * The byte oriented parser is always disabled when an ingress plugin is configured.
+   */
+  public static final String INGRESS_PARSER_BYTES = "ingress.parser.bytes";
+
+  /**
+   * Number of series whose class and labels are cached per /update request by the byte oriented parser
+   */
+  public static final String INGRESS_PARSER_CACHE = "ingress.parser.cache";
+
   /**
    * Should we shuffle the GTS prior to issueing delete messages. Set to true or false.
    * It is highly recommended to set this to true as it will induce a much lower pressure
@@ -890,6 +945,18 @@ public class Configuration {
    */
   public static final String INGRESS_KAFKA_DATA_MAXSIZE = "ingress.kafka.data.maxsize";
 
+  /**
+   * Codec (none, lz4 or gzip) of the envelopes packing several encoders in a single Kafka message of the 'data' topic.
+   * If not set, each encoder is sent in its own Kafka message.
+   */
+  public static final String INGRESS_KAFKA_DATA_ENVELOPE = "ingress.kafka.data.envelope";
+
+  /**
+   * Number of partitions of the 'data' topic, or a multiple of it. Only encoders bound to the same partition
+   * are packed in the same envelope.
+   */
+  public static final String INGRESS_KAFKA_DATA_ENVELOPE_PARTITIONS = "ingress.kafka.data.envelope.partitions";
+
   /**
    * Maximum message size for the 'metadata' topic
    */
@@ -1456,6 +1523,63 @@ public class Configuration {
    */
   public static final String LEVELDB_DATA_SYNCRATE = "leveldb.data.syncrate";
 
+  /**
+   * Span (in time units) of the buckets used to group datapoints in blocks when storing them in LevelDB.
+   * The default value of 0 stores each datapoint in its own row. Datapoints stored individually remain
+   * readable when blocks are enabled. Once blocks were written, this value should not be decreased.
+   */
+  public static final String LEVELDB_DATA_BLOCKSPAN = "leveldb.data.blockspan";
+
+  /**
+   * Delay (in ms) between merges of the blocks written for the same bucket, defaults to 60000.
+   * Set to 0 to disable merging.
+   */
+  public static final String LEVELDB_DATA_BLOCK_COMPACTION_PERIOD = "leveldb.data.block.compaction.period";
+
+  /**
+   * Maximum number of buckets tracked for merging between two compaction runs, defaults to 1000000.
+   */
+  public static final String LEVELDB_DATA_BLOCK_COMPACTION_MAXPENDING = "leveldb.data.block.compaction.maxpending";
+
+  /**
+   * Comma separated list of bucket spans (in time units) for which rollup series are maintained at ingestion time.
+   * Rollups are only maintained for the numeric values stored in LevelDB while this is set.
+   */
+  public static final String STANDALONE_ROLLUPS = "standalone.rollups";
+
+  /**
+   * Set to true to let FETCH read the rollup series by default when a bucketizer is specified, defaults to false.
+   * The 'rollups' parameter of FETCH overrides this default.
+   * Rollups count a value stored again at an existing timestamp twice, they should not be read for series whose datapoints are overwritten.
+   */
+  public static final String STANDALONE_ROLLUPS_FETCH = "standalone.rollups.fetch";
+
+  /**
+   * Number of rollup buckets kept in memory to speed up their update, defaults to 100000.
+   * Buckets whose updates were not yet flushed to LevelDB are kept in memory in addition to those.
+   */
+  public static final String STANDALONE_ROLLUPS_CACHE_SIZE = "standalone.rollups.cache.size";
+
+  /**
+   * Number of threads shared by the requests fetched from LevelDB with several concurrent iterators, defaults to 0 which disables parallel fetches.
+   */
+  public static final String LEVELDB_FETCH_PARALLEL_POOLSIZE = "leveldb.fetch.parallel.poolsize";
+
+  /**
+   * Maximum number of iterators of a single request scanning LevelDB concurrently, defaults to 4.
+   */
+  public static final String LEVELDB_FETCH_PARALLEL_MAXINFLIGHTPERREQUEST = "leveldb.fetch.parallel.maxinflightperrequest";
+
+  /**
+   * Minimum number of GTS scanned by each iterator of a parallel fetch, defaults to 64. Requests with less than twice this number of GTS are fetched sequentially.
+   */
+  public static final String LEVELDB_FETCH_PARALLEL_MIN_GTS = "leveldb.fetch.parallel.min.gts";
+
+  /**
+   * Number of decoders an iterator of a parallel fetch can read ahead of the consumer, defaults to 16.
+   */
+  public static final String LEVELDB_FETCH_PARALLEL_QUEUESIZE = "leveldb.fetch.parallel.queuesize";
+
   /**
    * Rate of synchronous writes for the directory writes.
    * This is a double between 0.0 (all writes asynchronous) and 1.0 (all writes synchronous)
@@ -1629,6 +1753,19 @@ public class Configuration {
    */
   public static final String DATALOG_SYNC = "datalog.sync";
 
+  /**
+   * Set to 'true' to log data modification requests in segment files shared by all requests instead of
+   * one file per request. Requests larger than 1 MB are spilled to a temporary file while they are being
+   * processed, a logged request cannot exceed 2 GB.
+   */
+  public static final String DATALOG_SEGMENTS = "datalog.segments";
+
+  /**
+   * Size (in bytes) above which a new datalog segment is started. Defaults to 64 MB.
+   * A request larger than this size is logged in a segment of its own.
+   */
+  public static final String DATALOG_SEGMENT_SIZE = "datalog.segment.size";
+
   /**
    * Id of this datalog node. The id will be used in the file name and will be passed down to child nodes via
    * a header.
@@ -1745,6 +1882,11 @@ public class Configuration {
    */
   public static final String DATALOG_FORWARDER_SHARDKEY_SHIFT = "datalog.forwarder.shardkey.shift";
 
+  /**
+   * Maximum number of datalog segment records read at once by the forwarder
+   */
+  public static final String DATALOG_FORWARDER_BATCHSIZE = "datalog.forwarder.batchsize";
+
   /**
    * Maximum length of labels (names + values) - Defaults to 2048
    */
@@ -1938,6 +2080,26 @@ public class Configuration {
    */
   public static final String IN_MEMORY_CHUNK_LENGTH = "in.memory.chunk.length";
 
+  /**
+   * Set to true to store the chunks of the in-memory store off-heap
+   */
+  public static final String IN_MEMORY_OFFHEAP = "in.memory.offheap";
+
+  /**
+   * Size (in bytes) of the slabs from which off-heap chunks are allocated, defaults to 64MB
+   */
+  public static final String IN_MEMORY_OFFHEAP_SLABSIZE = "in.memory.offheap.slabsize";
+
+  /**
+   * Directory in which to create memory mapped slabs, if unset slabs are direct buffers
+   */
+  public static final String IN_MEMORY_OFFHEAP_DIR = "in.memory.offheap.dir";
+
+  /**
+   * Number of bytes buffered on-heap per chunk before they are flushed off-heap, defaults to 1024
+   */
+  public static final String IN_MEMORY_OFFHEAP_FLUSH = "in.memory.offheap.flush";
+
   /**
    * Path to a dump file containing the state of an in-memory Warp 10 to restore.
    */
@@ -1948,11 +2110,22 @@ public class Configuration {
    */
   public static final String STANDALONE_MEMORY_STORE_DUMP = "in.memory.dump";
 
+  /**
+   * Format of the dump, 'sequencefile' (the default) or 'snapshot' for a file which is memory mapped when loaded.
+   * The format of the file to load is detected automatically.
+   */
+  public static final String STANDALONE_MEMORY_STORE_DUMP_FORMAT = "in.memory.dump.format";
+
   /**
    * Set to true to tolerate errors while loading a dumped state. Setting this to true can lead to partial data being loaded.
    */
   public static final String STANDALONE_MEMORY_STORE_LOAD_FAILSAFE = "in.memory.load.failsafe";
 
+  /**
+   * Number of threads used to load a snapshot, defaults to the number of available processors.
+   */
+  public static final String STANDALONE_MEMORY_STORE_LOAD_THREADS = "in.memory.load.threads";
+
   /**
    * How often (in ms) to perform a gc of the in-memory store.
    */
@@ -1978,6 +2151,46 @@ public class Configuration {
    */
   public static final String EGRESS_MAXTIME = "egress.maxtime";
 
+  /**
+   * Number of parsed scripts kept in the /exec script cache, 0 (the default) disables the cache
+   */
+  public static final String EGRESS_EXEC_CACHE_SIZE = "egress.exec.cache.size";
+
+  /**
+   * Maximum length (in characters) of the scripts considered for the /exec script cache, defaults to 65536
+   */
+  public static final String EGRESS_EXEC_CACHE_MAXLENGTH = "egress.exec.cache.maxlength";
+
+  /**
+   * Set to true to enable the admission control of /exec and /fetch requests, defaults to false
+   */
+  public static final String EGRESS_ADMISSION = "egress.admission";
+
+  /**
+   * Process CPU load (between 0.0 and 1.0) above which heavy requests are queued, defaults to 0.85
+   */
+  public static final String EGRESS_ADMISSION_CPU_THRESHOLD = "egress.admission.cpu.threshold";
+
+  /**
+   * Fraction of the heap occupied after GC above which heavy requests are queued, defaults to 0.9
+   */
+  public static final String EGRESS_ADMISSION_HEAP_THRESHOLD = "egress.admission.heap.threshold";
+
+  /**
+   * Estimated execution time (in ms) under which a request is considered light and always admitted, defaults to 100
+   */
+  public static final String EGRESS_ADMISSION_LIGHT = "egress.admission.light";
+
+  /**
+   * Maximum time (in ms) a heavy request can wait for admission before being rejected, defaults to 5000
+   */
+  public static final String EGRESS_ADMISSION_MAXWAIT = "egress.admission.maxwait";
+
+  /**
+   * Maximum number of heavy requests waiting for admission, defaults to 256
+   */
+  public static final String EGRESS_ADMISSION_MAXQUEUE = "egress.admission.maxqueue";
+
   /**
    * Validity (in ms) of a runner nonce. This is used to determine if timeboxing should be waived or not for a runner call.
    */
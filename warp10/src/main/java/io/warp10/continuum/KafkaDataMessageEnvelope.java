@@ -0,0 +1,167 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import io.warp10.continuum.gts.Varint;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+
+/**
+ * Envelope packing several serialized KafkaDataMessage instances in a single, optionally compressed, Kafka message.
+ *
+ * The envelope starts with a 0x00 byte, which is the encoding of an empty struct in the Thrift compact protocol.
+ * As a KafkaDataMessage always has its type set, this distinguishes envelopes from individual messages, and
+ * consumers can handle both transparently.
+ *
+ * The 0x00 byte is followed by the codec, the length of the uncompressed content as a varint and the compressed
+ * content. The uncompressed content is the sequence of messages, each one prefixed by its length as a varint.
+ *
+ * Encryption and MAC are applied to the envelope as a whole.
+ */
+public class KafkaDataMessageEnvelope {
+
+  public static enum Codec {
+    NONE(1),
+    LZ4(2),
+    GZIP(3);
+
+    private final byte id;
+
+    private Codec(int id) {
+      this.id = (byte) id;
+    }
+  }
+
+  private static final byte MARKER = 0x00;
+
+  private static final LZ4Factory LZ4_FACTORY = LZ4Factory.fastestInstance();
+
+  public static boolean isEnvelope(byte[] data) {
+    return data.length > 1 && MARKER == data[0];
+  }
+
+  /**
+   * Pack serialized messages in an envelope
+   *
+   * @param codec Compression codec of the envelope
+   * @param messages Serialized KafkaDataMessage instances
+   * @return the envelope
+   */
+  public static byte[] pack(Codec codec, List<byte[]> messages) throws IOException {
+    int size = 0;
+
+    for (byte[] msg: messages) {
+      size += 10 + msg.length;
+    }
+
+    ByteBuffer content = ByteBuffer.allocate(size);
+    byte[] varint = new byte[10];
+
+    for (byte[] msg: messages) {
+      int len = Varint.encodeUnsignedLongInBuf(msg.length, varint);
+      content.put(varint, 0, len);
+      content.put(msg);
+    }
+
+    int rawlen = content.position();
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream(Codec.NONE == codec ? rawlen + 12 : rawlen / 2 + 12);
+    out.write(MARKER);
+    out.write(codec.id);
+    out.write(varint, 0, Varint.encodeUnsignedLongInBuf(rawlen, varint));
+
+    switch (codec) {
+      case NONE:
+        out.write(content.array(), 0, rawlen);
+        break;
+      case LZ4:
+        LZ4Compressor compressor = LZ4_FACTORY.fastCompressor();
+        byte[] compressed = new byte[compressor.maxCompressedLength(rawlen)];
+        int len = compressor.compress(content.array(), 0, rawlen, compressed, 0, compressed.length);
+        out.write(compressed, 0, len);
+        break;
+      case GZIP:
+        GZIPOutputStream gzos = new GZIPOutputStream(out);
+        gzos.write(content.array(), 0, rawlen);
+        gzos.close();
+        break;
+    }
+
+    return out.toByteArray();
+  }
+
+  /**
+   * Extract the serialized messages of an envelope
+   *
+   * @param data Envelope or individual serialized KafkaDataMessage
+   * @return the list of serialized messages, the data itself if it is not an envelope
+   */
+  public static List<byte[]> unpack(byte[] data) throws IOException {
+    if (!isEnvelope(data)) {
+      return Collections.singletonList(data);
+    }
+
+    ByteBuffer bb = ByteBuffer.wrap(data);
+    bb.get();
+    byte codec = bb.get();
+    int rawlen = (int) Varint.decodeUnsignedLong(bb);
+
+    byte[] content = new byte[rawlen];
+
+    if (Codec.NONE.id == codec) {
+      bb.get(content);
+    } else if (Codec.LZ4.id == codec) {
+      LZ4_FACTORY.fastDecompressor().decompress(data, bb.position(), content, 0, rawlen);
+    } else if (Codec.GZIP.id == codec) {
+      InputStream in = new GZIPInputStream(new ByteArrayInputStream(data, bb.position(), bb.remaining()));
+      int offset = 0;
+      while (offset < rawlen) {
+        int len = in.read(content, offset, rawlen - offset);
+        if (len < 0) {
+          throw new IOException("Truncated Kafka data message envelope.");
+        }
+        offset += len;
+      }
+      in.close();
+    } else {
+      throw new IOException("Unknown Kafka data message envelope codec " + codec + ".");
+    }
+
+    List<byte[]> messages = new ArrayList<byte[]>();
+
+    ByteBuffer buf = ByteBuffer.wrap(content);
+
+    while (buf.hasRemaining()) {
+      byte[] msg = new byte[(int) Varint.decodeUnsignedLong(buf)];
+      buf.get(msg);
+      messages.add(msg);
+    }
+
+    return messages;
+  }
+}
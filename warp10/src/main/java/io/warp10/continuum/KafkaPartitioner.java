@@ -38,11 +38,16 @@ public class KafkaPartitioner implements Partitioner {
     if (null == key || 0 == ((byte[]) key).length) {
       return random.nextInt(numPartitions);
     } else {
-      byte[] bytes = (byte[]) key;
-      
-      long k = SipHashInline.hash24(SIPHASH_KEY_MSB, SIPHASH_KEY_LSB, bytes, 0, bytes.length);
-            
-      return (int) ((k & 0x7FFFFFFFL) % numPartitions);
+      return partition((byte[]) key, numPartitions);
     }
   }
+
+  /**
+   * Compute the partition of a non empty key
+   */
+  public static int partition(byte[] key, int numPartitions) {
+    long k = SipHashInline.hash24(SIPHASH_KEY_MSB, SIPHASH_KEY_LSB, key, 0, key.length);
+
+    return (int) ((k & 0x7FFFFFFFL) % numPartitions);
+  }
 }
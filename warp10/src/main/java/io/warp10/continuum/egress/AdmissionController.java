@@ -0,0 +1,387 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.egress;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.Configuration;
+import io.warp10.continuum.sensision.SensisionConstants;
+import io.warp10.crypto.SipHashInline;
+import io.warp10.sensision.Sensision;
+
+/**
+ * Admission control of the egress requests (/exec and /fetch).
+ *
+ * The cost of a request is estimated from the past execution times of requests with the same
+ * fingerprint (script or fetch parameters) or, for unknown fingerprints, of the requests of the same application.
+ * Requests whose estimated cost is below the light threshold are always admitted.
+ *
+ * When the measured CPU load or heap occupancy crosses its threshold, heavy requests are no longer
+ * admitted directly but queued per application, queues being served in a round robin fashion each time a heavy
+ * request completes or the pressure goes down. At least one heavy request can always run. Heavy requests
+ * which waited more than the maximum wait time or which find the queues full are rejected.
+ */
+public class AdmissionController {
+
+  /**
+   * Weight of the most recent execution time in the cost estimates
+   */
+  private static final double ALPHA = 0.2D;
+
+  /**
+   * Number of fingerprints and applications for which an estimate is kept
+   */
+  private static final int HISTORY_SIZE = 10000;
+
+  /**
+   * Period (in ms) at which CPU and heap pressure are sampled
+   */
+  private static final long SAMPLING_PERIOD = 1000L;
+
+  /**
+   * Number of heavy requests which can always run, whatever the pressure
+   */
+  private static final int MIN_HEAVY = 1;
+
+  public final class Ticket {
+    private final String app;
+    private final long fingerprint;
+    private final boolean heavy;
+    private final long start = System.nanoTime();
+    private boolean released = false;
+
+    private Ticket(String app, long fingerprint, boolean heavy) {
+      this.app = app;
+      this.fingerprint = fingerprint;
+      this.heavy = heavy;
+    }
+
+    /**
+     * Signal the end of the request, its execution time is used for estimating the cost of future requests
+     */
+    public void release() {
+      if (this.released) {
+        return;
+      }
+      this.released = true;
+      AdmissionController.this.release(this, System.nanoTime() - this.start);
+    }
+
+    boolean isHeavy() {
+      return this.heavy;
+    }
+  }
+
+  private static final class Waiter {
+    private boolean granted = false;
+  }
+
+  private static final class History<K> extends LinkedHashMap<K,Double> {
+    private History() {
+      super(16, 0.75F, true);
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K,Double> eldest) {
+      return this.size() > HISTORY_SIZE;
+    }
+  }
+
+  private final double cpuThreshold;
+  private final double heapThreshold;
+  private final long lightNanos;
+  private final long maxWait;
+  private final int maxQueue;
+
+  private final History<Long> fingerprints = new History<Long>();
+  private final History<String> apps = new History<String>();
+
+  /**
+   * Queues of waiting heavy requests per application, in the order they will be served
+   */
+  private final LinkedHashMap<String,ArrayDeque<Waiter>> queues = new LinkedHashMap<String,ArrayDeque<Waiter>>();
+
+  private final long[] sipkey = new long[2];
+
+  private int queued = 0;
+  private int heavyRunning = 0;
+  private boolean overloaded = false;
+
+  private static AdmissionController instance = null;
+  private static boolean initialized = false;
+
+  /**
+   * @param cpuThreshold Process CPU load (between 0.0 and 1.0) above which heavy requests are queued
+   * @param heapThreshold Fraction of the heap occupied after GC above which heavy requests are queued
+   * @param lightMs Estimated execution time (in ms) under which a request is considered light
+   * @param maxWait Maximum time (in ms) a heavy request can be queued before being rejected
+   * @param maxQueue Maximum number of queued heavy requests
+   */
+  AdmissionController(double cpuThreshold, double heapThreshold, long lightMs, long maxWait, int maxQueue) {
+    this.cpuThreshold = cpuThreshold;
+    this.heapThreshold = heapThreshold;
+    this.lightNanos = lightMs * 1000000L;
+    this.maxWait = maxWait;
+    this.maxQueue = maxQueue;
+
+    SecureRandom sr = new SecureRandom();
+    this.sipkey[0] = sr.nextLong();
+    this.sipkey[1] = sr.nextLong();
+  }
+
+  /**
+   * Compute the fingerprint of a request from its content
+   */
+  public long fingerprint(String content) {
+    byte[] data = content.getBytes(StandardCharsets.UTF_8);
+    return SipHashInline.hash24(this.sipkey[0], this.sipkey[1], data, 0, data.length);
+  }
+
+  /**
+   * Return the admission controller shared by the egress handlers, null if admission control is disabled
+   */
+  public static synchronized AdmissionController getInstance() {
+    if (initialized) {
+      return instance;
+    }
+
+    initialized = true;
+
+    if (!"true".equals(WarpConfig.getProperty(Configuration.EGRESS_ADMISSION))) {
+      return null;
+    }
+
+    instance = new AdmissionController(
+        Double.parseDouble(WarpConfig.getProperty(Configuration.EGRESS_ADMISSION_CPU_THRESHOLD, "0.85")),
+        Double.parseDouble(WarpConfig.getProperty(Configuration.EGRESS_ADMISSION_HEAP_THRESHOLD, "0.9")),
+        Long.parseLong(WarpConfig.getProperty(Configuration.EGRESS_ADMISSION_LIGHT, "100")),
+        Long.parseLong(WarpConfig.getProperty(Configuration.EGRESS_ADMISSION_MAXWAIT, "5000")),
+        Integer.parseInt(WarpConfig.getProperty(Configuration.EGRESS_ADMISSION_MAXQUEUE, "256")));
+
+    final AdmissionController controller = instance;
+
+    Thread sampler = new Thread() {
+      @Override
+      public void run() {
+        while (true) {
+          LockSupport.parkNanos(SAMPLING_PERIOD * 1000000L);
+          try {
+            controller.update(cpuLoad(), heapOccupancy());
+          } catch (Throwable t) {
+          }
+        }
+      }
+    };
+
+    sampler.setName("[Egress Admission Control]");
+    sampler.setDaemon(true);
+    sampler.start();
+
+    return instance;
+  }
+
+  /**
+   * Admit a request, waiting if it is heavy and the node is under pressure.
+   *
+   * @param app Name of the application issuing the request, null if unknown
+   * @param fingerprint Fingerprint of the request
+   * @return A ticket which MUST be released once the request completes or null if the request was rejected
+   */
+  public Ticket admit(String app, long fingerprint) throws InterruptedException {
+    if (null == app) {
+      app = "";
+    }
+
+    Map<String,String> labels = new HashMap<String,String>();
+    labels.put(SensisionConstants.SENSISION_LABEL_APPLICATION, app);
+
+    Waiter waiter = null;
+
+    synchronized (this) {
+      Double estimate = this.fingerprints.get(fingerprint);
+
+      if (null == estimate) {
+        estimate = this.apps.get(app);
+      }
+
+      if (null == estimate || estimate < this.lightNanos) {
+        Sensision.update(SensisionConstants.SENSISION_CLASS_WARP_EGRESS_ADMISSION_ADMITTED, labels, 1);
+        return new Ticket(app, fingerprint, false);
+      }
+
+      // Requests already queued are served first
+      if (0 == this.queued && (!this.overloaded || this.heavyRunning < MIN_HEAVY)) {
+        this.heavyRunning++;
+        Sensision.update(SensisionConstants.SENSISION_CLASS_WARP_EGRESS_ADMISSION_ADMITTED, labels, 1);
+        return new Ticket(app, fingerprint, true);
+      }
+
+      if (this.queued >= this.maxQueue) {
+        Sensision.update(SensisionConstants.SENSISION_CLASS_WARP_EGRESS_ADMISSION_REJECTED, labels, 1);
+        return null;
+      }
+
+      waiter = new Waiter();
+      ArrayDeque<Waiter> queue = this.queues.get(app);
+
+      if (null == queue) {
+        queue = new ArrayDeque<Waiter>();
+        this.queues.put(app, queue);
+      }
+
+      queue.add(waiter);
+      this.queued++;
+      Sensision.set(SensisionConstants.SENSISION_CLASS_WARP_EGRESS_ADMISSION_QUEUED, Sensision.EMPTY_LABELS, this.queued);
+      Sensision.update(SensisionConstants.SENSISION_CLASS_WARP_EGRESS_ADMISSION_DELAYED, labels, 1);
+
+      long deadline = System.currentTimeMillis() + this.maxWait;
+
+      try {
+        while (!waiter.granted) {
+          long remaining = deadline - System.currentTimeMillis();
+
+          if (remaining <= 0) {
+            break;
+          }
+
+          this.wait(remaining);
+        }
+      } finally {
+        if (!waiter.granted) {
+          queue.remove(waiter);
+          if (queue.isEmpty() && queue == this.queues.get(app)) {
+            this.queues.remove(app);
+          }
+          this.queued--;
+          Sensision.set(SensisionConstants.SENSISION_CLASS_WARP_EGRESS_ADMISSION_QUEUED, Sensision.EMPTY_LABELS, this.queued);
+        }
+      }
+
+      if (!waiter.granted) {
+        Sensision.update(SensisionConstants.SENSISION_CLASS_WARP_EGRESS_ADMISSION_REJECTED, labels, 1);
+        return null;
+      }
+
+      Sensision.update(SensisionConstants.SENSISION_CLASS_WARP_EGRESS_ADMISSION_ADMITTED, labels, 1);
+      return new Ticket(app, fingerprint, true);
+    }
+  }
+
+  private synchronized void release(Ticket ticket, long elapsed) {
+    record(this.fingerprints, ticket.fingerprint, elapsed);
+    record(this.apps, ticket.app, elapsed);
+
+    if (ticket.heavy) {
+      this.heavyRunning--;
+    }
+
+    grant();
+  }
+
+  private static <K> void record(History<K> history, K key, long elapsed) {
+    Double estimate = history.get(key);
+    history.put(key, null == estimate ? (double) elapsed : estimate + ALPHA * (elapsed - estimate));
+  }
+
+  /**
+   * Update the pressure the node is under
+   *
+   * @param cpu Process CPU load between 0.0 and 1.0
+   * @param heap Fraction of the heap occupied after GC
+   */
+  synchronized void update(double cpu, double heap) {
+    this.overloaded = cpu >= this.cpuThreshold || heap >= this.heapThreshold;
+    Sensision.set(SensisionConstants.SENSISION_CLASS_WARP_EGRESS_ADMISSION_OVERLOADED, Sensision.EMPTY_LABELS, this.overloaded ? 1 : 0);
+    grant();
+  }
+
+  /**
+   * Let queued requests run, serving applications in turn. MUST be called with the lock held.
+   */
+  private void grant() {
+    boolean granted = false;
+
+    while (this.queued > 0 && (!this.overloaded || this.heavyRunning < MIN_HEAVY)) {
+      Iterator<Map.Entry<String,ArrayDeque<Waiter>>> iter = this.queues.entrySet().iterator();
+      Map.Entry<String,ArrayDeque<Waiter>> entry = iter.next();
+      iter.remove();
+
+      Waiter waiter = entry.getValue().poll();
+
+      // Move the application at the end of the round
+      if (!entry.getValue().isEmpty()) {
+        this.queues.put(entry.getKey(), entry.getValue());
+      }
+
+      waiter.granted = true;
+      this.queued--;
+      this.heavyRunning++;
+      granted = true;
+    }
+
+    if (granted) {
+      Sensision.set(SensisionConstants.SENSISION_CLASS_WARP_EGRESS_ADMISSION_QUEUED, Sensision.EMPTY_LABELS, this.queued);
+      this.notifyAll();
+    }
+  }
+
+  private static double cpuLoad() {
+    OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+
+    if (os instanceof com.sun.management.OperatingSystemMXBean) {
+      return Math.max(0.0D, ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuLoad());
+    }
+
+    return Math.max(0.0D, os.getSystemLoadAverage() / os.getAvailableProcessors());
+  }
+
+  /**
+   * Fraction of the heap still occupied after the last collection, which unlike the current usage ignores garbage
+   */
+  private static double heapOccupancy() {
+    long used = 0L;
+
+    for (MemoryPoolMXBean pool: ManagementFactory.getMemoryPoolMXBeans()) {
+      if (MemoryType.HEAP != pool.getType()) {
+        continue;
+      }
+
+      MemoryUsage usage = pool.getCollectionUsage();
+
+      if (null != usage) {
+        used += usage.getUsed();
+      }
+    }
+
+    long max = Runtime.getRuntime().maxMemory();
+
+    return Long.MAX_VALUE == max ? 0.0D : (double) used / max;
+  }
+}
@@ -0,0 +1,494 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.egress;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.GZIPOutputStream;
+
+import com.geoxp.GeoXPLib;
+
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
+import io.warp10.continuum.store.Constants;
+import io.warp10.continuum.store.thrift.data.Metadata;
+import io.warp10.script.WarpScriptException;
+import net.jpountz.lz4.LZ4BlockOutputStream;
+
+/**
+ * Binary columnar output of Geo Time Series, meant for clients which would otherwise spend
+ * more time parsing text than the server spent producing it.
+ *
+ * The stream starts with the 4 bytes 'W10C', a version byte (1) and a codec byte (0 for none,
+ * 1 for LZ4 as produced by LZ4BlockOutputStream, 2 for GZIP). All the following bytes are
+ * compressed with that codec and form a sequence of records, each one starting with its type:
+ *
+ * 0x01 SERIES   varint id, string class, varint count + (string key, string value) labels,
+ *               varint count + (string key, string value) attributes
+ * 0x02 DATA     varint series id, byte value type, byte flags, varint n, then the columns:
+ *               n int64 ticks,
+ *               n float64 latitudes and n float64 longitudes if flags bit 0 is set (NaN when a datapoint has no location),
+ *               n int64 elevations if flags bit 1 is set (Long.MIN_VALUE when a datapoint has no elevation),
+ *               the n values, int64 for LONG (1), float64 for DOUBLE (2), a bitmap of ceil(n/8) bytes, least
+ *               significant bit first, for BOOLEAN (3), strings for STRING (4) and BINARY (5)
+ * 0x03 ERROR    string message, ends the stream
+ * 0x00 END      ends the stream
+ *
+ * Numbers are little endian, varints are unsigned LEB128, strings are a varint length followed by
+ * the bytes, UTF-8 encoded except for BINARY values. The datapoints of a series may be spread
+ * over several DATA records, a SERIES record is emitted before the first one. A stream which ends
+ * without an END or ERROR record was truncated.
+ */
+public class ColumnarWriter implements Closeable {
+
+  public static final String FORMAT = "columnar";
+
+  public static final String CONTENT_TYPE = "application/x-warp10-columnar";
+
+  public static enum Codec {
+    NONE(0),
+    LZ4(1),
+    GZIP(2);
+
+    private final byte id;
+
+    private Codec(int id) {
+      this.id = (byte) id;
+    }
+  }
+
+  private static final byte VERSION = 1;
+
+  static final byte RECORD_END = 0x00;
+  static final byte RECORD_SERIES = 0x01;
+  static final byte RECORD_DATA = 0x02;
+  static final byte RECORD_ERROR = 0x03;
+
+  static final byte TYPE_LONG = 1;
+  static final byte TYPE_DOUBLE = 2;
+  static final byte TYPE_BOOLEAN = 3;
+  static final byte TYPE_STRING = 4;
+  static final byte TYPE_BINARY = 5;
+
+  static final byte FLAG_LOCATION = 0x01;
+  static final byte FLAG_ELEVATION = 0x02;
+
+  /**
+   * Maximum number of datapoints per DATA record
+   */
+  private static final int BATCH_SIZE = 1024;
+
+  private final OutputStream out;
+
+  private ByteBuffer buf = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+
+  private final long[] ticks = new long[BATCH_SIZE];
+  private final long[] locations = new long[BATCH_SIZE];
+  private final long[] elevations = new long[BATCH_SIZE];
+  private final long[] longValues = new long[BATCH_SIZE];
+  private final double[] doubleValues = new double[BATCH_SIZE];
+  private final boolean[] booleanValues = new boolean[BATCH_SIZE];
+  private final String[] stringValues = new String[BATCH_SIZE];
+  private final double[] longitudes = new double[BATCH_SIZE];
+
+  /**
+   * Name and labels of the last series, consecutive decoders of the same series share its id
+   */
+  private String lastName = null;
+  private Map<String,String> lastLabels = null;
+  private int lastId = -1;
+  private int nextId = 0;
+
+  private boolean closed = false;
+
+  public ColumnarWriter(OutputStream out, Codec codec) throws IOException {
+    out.write(new byte[] { 'W', '1', '0', 'C', VERSION, codec.id });
+
+    switch (codec) {
+      case LZ4:
+        this.out = new LZ4BlockOutputStream(out);
+        break;
+      case GZIP:
+        this.out = new GZIPOutputStream(out);
+        break;
+      default:
+        this.out = out;
+    }
+  }
+
+  /**
+   * @param name Name of the codec, null for no compression
+   */
+  public static Codec getCodec(String name) {
+    if (null == name) {
+      return Codec.NONE;
+    }
+    return Codec.valueOf(name.toUpperCase());
+  }
+
+  /**
+   * Check if an Accept header requests the columnar format
+   *
+   * @return the codec to use, null if the columnar format was not requested
+   */
+  public static Codec fromAccept(String accept) {
+    if (null == accept) {
+      return null;
+    }
+
+    for (String range: accept.split(",")) {
+      String[] tokens = range.split(";");
+
+      if (!CONTENT_TYPE.equalsIgnoreCase(tokens[0].trim())) {
+        continue;
+      }
+
+      for (int i = 1; i < tokens.length; i++) {
+        String param = tokens[i].trim();
+        if (param.startsWith("codec=")) {
+          return getCodec(param.substring(6).trim());
+        }
+      }
+
+      return Codec.NONE;
+    }
+
+    return null;
+  }
+
+  /**
+   * Check that an object can be output, i.e. that it is a GTS, an encoder or a list of those
+   */
+  public static void check(Object o) throws WarpScriptException {
+    if (o instanceof List) {
+      for (Object elt: (List) o) {
+        check(elt);
+      }
+    } else if (!(o instanceof GeoTimeSerie) && !(o instanceof GTSEncoder)) {
+      throw new WarpScriptException("Columnar output only supports Geo Time Series, encoders and lists thereof.");
+    }
+  }
+
+  /**
+   * Output a GTS, an encoder or a list of those, as validated by check
+   */
+  public void write(Object o) throws IOException {
+    if (o instanceof List) {
+      for (Object elt: (List) o) {
+        write(elt);
+      }
+    } else if (o instanceof GeoTimeSerie) {
+      write((GeoTimeSerie) o);
+    } else if (o instanceof GTSEncoder) {
+      write(((GTSEncoder) o).getUnsafeDecoder(false), Long.MAX_VALUE, false);
+    }
+  }
+
+  public void write(GeoTimeSerie gts) throws IOException {
+    TYPE type = gts.getType();
+    int size = gts.size();
+
+    if (0 == size || TYPE.UNDEFINED == type) {
+      return;
+    }
+
+    int id = series(gts.getMetadata(), false);
+
+    for (int offset = 0; offset < size; offset += BATCH_SIZE) {
+      int n = Math.min(BATCH_SIZE, size - offset);
+
+      for (int i = 0; i < n; i++) {
+        int idx = offset + i;
+        this.ticks[i] = GTSHelper.tickAtIndex(gts, idx);
+        this.locations[i] = GTSHelper.locationAtIndex(gts, idx);
+        this.elevations[i] = GTSHelper.elevationAtIndex(gts, idx);
+        Object value = GTSHelper.valueAtIndex(gts, idx);
+        switch (type) {
+          case LONG:
+            this.longValues[i] = ((Number) value).longValue();
+            break;
+          case DOUBLE:
+            this.doubleValues[i] = ((Number) value).doubleValue();
+            break;
+          case BOOLEAN:
+            this.booleanValues[i] = Boolean.TRUE.equals(value);
+            break;
+          default:
+            this.stringValues[i] = value.toString();
+        }
+      }
+
+      data(id, type, false, n);
+    }
+  }
+
+  /**
+   * Output the datapoints of a decoder, delete markers are skipped
+   *
+   * @param max Maximum number of datapoints to output
+   * @param hideOwnerProducer Should the owner and producer labels be omitted
+   * @return the number of datapoints output
+   */
+  public long write(GTSDecoder decoder, long max, boolean hideOwnerProducer) throws IOException {
+    long written = 0L;
+    int id = -1;
+
+    while (written < max) {
+      int n = decoder.next(this.ticks, this.locations, this.elevations, this.longValues, this.doubleValues, null, this.booleanValues, this.stringValues, 0, BATCH_SIZE);
+
+      if (0 == n) {
+        break;
+      }
+
+      TYPE type = decoder.getType();
+
+      if (TYPE.UNDEFINED == type) {
+        continue;
+      }
+
+      n = (int) Math.min(n, max - written);
+
+      // The SERIES record is only emitted when the series has datapoints
+      if (id < 0) {
+        id = series(decoder.getMetadata(), hideOwnerProducer);
+      }
+
+      data(id, type, decoder.isBinary(), n);
+      written += n;
+    }
+
+    return written;
+  }
+
+  /**
+   * Output an error, this ends the stream
+   */
+  public void error(String message) throws IOException {
+    if (this.closed) {
+      return;
+    }
+
+    this.buf.clear();
+    this.buf.put(RECORD_ERROR);
+    putString(message.getBytes(StandardCharsets.UTF_8));
+    flushRecord();
+    finish();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (this.closed) {
+      return;
+    }
+
+    this.buf.clear();
+    this.buf.put(RECORD_END);
+    flushRecord();
+    finish();
+  }
+
+  private void finish() throws IOException {
+    this.closed = true;
+    this.out.close();
+  }
+
+  /**
+   * @return the id of the series, emitting a SERIES record if it differs from the last one
+   */
+  private int series(Metadata metadata, boolean hideOwnerProducer) throws IOException {
+    String name = null == metadata.getName() ? "" : metadata.getName();
+    Map<String,String> labels = metadata.getLabels();
+
+    if (this.lastId >= 0 && name.equals(this.lastName) && labels.equals(this.lastLabels)) {
+      return this.lastId;
+    }
+
+    this.lastName = name;
+    this.lastLabels = labels;
+    this.lastId = this.nextId++;
+
+    this.buf.clear();
+    this.buf.put(RECORD_SERIES);
+    putVarint(this.lastId);
+    putString(name.getBytes(StandardCharsets.UTF_8));
+
+    int nlabels = 0;
+
+    for (String key: labels.keySet()) {
+      if (!hideOwnerProducer || (!Constants.PRODUCER_LABEL.equals(key) && !Constants.OWNER_LABEL.equals(key))) {
+        nlabels++;
+      }
+    }
+
+    putVarint(nlabels);
+
+    for (Entry<String,String> entry: labels.entrySet()) {
+      if (!hideOwnerProducer || (!Constants.PRODUCER_LABEL.equals(entry.getKey()) && !Constants.OWNER_LABEL.equals(entry.getKey()))) {
+        putString(entry.getKey().getBytes(StandardCharsets.UTF_8));
+        putString(entry.getValue().getBytes(StandardCharsets.UTF_8));
+      }
+    }
+
+    Map<String,String> attributes = metadata.getAttributes();
+
+    if (null == attributes) {
+      putVarint(0);
+    } else {
+      putVarint(attributes.size());
+      for (Entry<String,String> entry: attributes.entrySet()) {
+        putString(entry.getKey().getBytes(StandardCharsets.UTF_8));
+        putString(entry.getValue().getBytes(StandardCharsets.UTF_8));
+      }
+    }
+
+    flushRecord();
+
+    return this.lastId;
+  }
+
+  /**
+   * Output a DATA record with the first 'n' entries of the batch arrays
+   */
+  private void data(int id, TYPE type, boolean binary, int n) throws IOException {
+    boolean hasLocations = false;
+    boolean hasElevations = false;
+
+    for (int i = 0; i < n; i++) {
+      hasLocations |= GeoTimeSerie.NO_LOCATION != this.locations[i];
+      hasElevations |= GeoTimeSerie.NO_ELEVATION != this.elevations[i];
+    }
+
+    byte vtype;
+
+    switch (type) {
+      case LONG:
+        vtype = TYPE_LONG;
+        break;
+      case DOUBLE:
+        vtype = TYPE_DOUBLE;
+        break;
+      case BOOLEAN:
+        vtype = TYPE_BOOLEAN;
+        break;
+      default:
+        vtype = binary ? TYPE_BINARY : TYPE_STRING;
+    }
+
+    this.buf.clear();
+    this.buf.put(RECORD_DATA);
+    putVarint(id);
+    this.buf.put(vtype);
+    this.buf.put((byte) ((hasLocations ? FLAG_LOCATION : 0) | (hasElevations ? FLAG_ELEVATION : 0)));
+    putVarint(n);
+
+    ensure(n * 40);
+
+    for (int i = 0; i < n; i++) {
+      this.buf.putLong(this.ticks[i]);
+    }
+
+    if (hasLocations) {
+      for (int i = 0; i < n; i++) {
+        if (GeoTimeSerie.NO_LOCATION == this.locations[i]) {
+          this.buf.putDouble(Double.NaN);
+          this.longitudes[i] = Double.NaN;
+        } else {
+          double[] latlon = GeoXPLib.fromGeoXPPoint(this.locations[i]);
+          this.buf.putDouble(latlon[0]);
+          this.longitudes[i] = latlon[1];
+        }
+      }
+      for (int i = 0; i < n; i++) {
+        this.buf.putDouble(this.longitudes[i]);
+      }
+    }
+
+    if (hasElevations) {
+      for (int i = 0; i < n; i++) {
+        this.buf.putLong(this.elevations[i]);
+      }
+    }
+
+    switch (vtype) {
+      case TYPE_LONG:
+        for (int i = 0; i < n; i++) {
+          this.buf.putLong(this.longValues[i]);
+        }
+        break;
+      case TYPE_DOUBLE:
+        for (int i = 0; i < n; i++) {
+          this.buf.putDouble(this.doubleValues[i]);
+        }
+        break;
+      case TYPE_BOOLEAN:
+        for (int i = 0; i < n; i += 8) {
+          int bits = 0;
+          for (int j = 0; j < 8 && i + j < n; j++) {
+            if (this.booleanValues[i + j]) {
+              bits |= 1 << j;
+            }
+          }
+          this.buf.put((byte) bits);
+        }
+        break;
+      default:
+        for (int i = 0; i < n; i++) {
+          putString(this.stringValues[i].getBytes(TYPE_BINARY == vtype ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8));
+        }
+    }
+
+    flushRecord();
+  }
+
+  private void flushRecord() throws IOException {
+    this.out.write(this.buf.array(), 0, this.buf.position());
+  }
+
+  private void ensure(int len) {
+    if (this.buf.remaining() < len) {
+      ByteBuffer bb = ByteBuffer.allocate(Math.max(this.buf.capacity() << 1, this.buf.position() + len)).order(ByteOrder.LITTLE_ENDIAN);
+      this.buf.flip();
+      bb.put(this.buf);
+      this.buf = bb;
+    }
+  }
+
+  private void putVarint(long value) {
+    ensure(10);
+    while ((value & ~0x7FL) != 0L) {
+      this.buf.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    this.buf.put((byte) value);
+  }
+
+  private void putString(byte[] bytes) {
+    putVarint(bytes.length);
+    ensure(bytes.length);
+    this.buf.put(bytes);
+  }
+}
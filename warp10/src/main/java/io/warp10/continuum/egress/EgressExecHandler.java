@@ -20,6 +20,7 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.io.StringReader;
 import java.net.MalformedURLException;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
@@ -99,11 +100,29 @@ public class EgressExecHandler extends AbstractHandler {
   private static final long RUNNER_NONCE_VALIDITY = Long.parseLong(WarpConfig.getProperty(Configuration.EGRESS_RUNNER_NONCE_VALIDITY, Long.toString(1000L)));
   private static final long MAXTIME;
 
+  /**
+   * Cache of parsed scripts, null if disabled
+   */
+  private static final ExecScriptCache SCRIPT_CACHE;
+
+  /**
+   * Admission control of the requests, null if disabled
+   */
+  private static final AdmissionController ADMISSION = AdmissionController.getInstance();
+
   static {
     MAXTIME = Long.parseLong(WarpConfig.getProperty(Configuration.EGRESS_MAXTIME, "0")) * Constants.TIME_UNITS_PER_MS;
     if (MAXTIME < 0) {
       throw new RuntimeException("Invalid negative value for " + Configuration.EGRESS_MAXTIME + ".");
     }
+
+    int cacheSize = Integer.parseInt(WarpConfig.getProperty(Configuration.EGRESS_EXEC_CACHE_SIZE, "0"));
+
+    if (cacheSize > 0) {
+      SCRIPT_CACHE = new ExecScriptCache(cacheSize, Integer.parseInt(WarpConfig.getProperty(Configuration.EGRESS_EXEC_CACHE_MAXLENGTH, "65536")));
+    } else {
+      SCRIPT_CACHE = null;
+    }
   }
 
   public EgressExecHandler(KeyStore keyStore, Properties properties, DirectoryClient directoryClient, StoreClient storeClient) {
@@ -143,6 +162,15 @@ public class EgressExecHandler extends AbstractHandler {
 
     int errorCode = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
 
+    //
+    // Codec of the binary columnar output, null if the result is output as JSON
+    //
+
+    ColumnarWriter.Codec codec = null;
+
+    // Set once the columnar output was started, the response can then no longer be written as text
+    boolean columnar = false;
+
     //
     // CORS header
     //
@@ -178,6 +206,8 @@ public class EgressExecHandler extends AbstractHandler {
 
     Throwable t = null;
 
+    AdmissionController.Ticket ticket = null;
+
     StringBuilder scriptSB = new StringBuilder();
     List<Long> times = new ArrayList<Long>();
 
@@ -286,6 +316,18 @@ public class EgressExecHandler extends AbstractHandler {
       // Now read lines of the body, interpreting them
       //
 
+      //
+      // Determine if the result should be output in the binary columnar format. The request body
+      // is the script, so the format is requested via the Accept header rather than a parameter.
+      //
+
+      try {
+        codec = ColumnarWriter.fromAccept(req.getHeader("Accept"));
+      } catch (IllegalArgumentException iae) {
+        errorCode = HttpServletResponse.SC_BAD_REQUEST;
+        throw new IOException("Invalid columnar output codec.");
+      }
+
       //
       // Determine if content if gzipped
       //
@@ -406,14 +448,77 @@ public class EgressExecHandler extends AbstractHandler {
 
       boolean forcedMacro = maxtime > 0;
 
-      if (forcedMacro) {
-        stack.macroOpen();
-      }
-
       if (null != req.getHeader(Constants.HTTP_HEADER_LINES)) {
         stack.setAttribute(WarpScriptStack.ATTRIBUTE_LINENO, true);
       }
 
+      //
+      // Check if the parsed form of the script is available
+      //
+
+      ExecScriptCache.Parsed parsed = null;
+
+      if (null != SCRIPT_CACHE || null != ADMISSION) {
+        StringBuilder sb = new StringBuilder();
+        char[] buf = new char[8192];
+        int len;
+
+        while ((len = br.read(buf)) >= 0) {
+          sb.append(buf, 0, len);
+        }
+
+        String script = sb.toString();
+
+        //
+        // Scripts carry their tokens, so the application is not known before the execution
+        //
+
+        if (null != ADMISSION) {
+          ticket = ADMISSION.admit(null, ADMISSION.fingerprint(scriptSB.toString() + script));
+
+          if (null == ticket) {
+            errorCode = HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+            throw new WarpScriptException("Request rejected by admission control.");
+          }
+        }
+
+        // Cached scripts execute as a single macro, so only use them when the script would be
+        // wrapped in a macro anyway, otherwise errors could not be reported against their line
+        if (null != SCRIPT_CACHE && forcedMacro) {
+          parsed = SCRIPT_CACHE.get(stack, script, Boolean.TRUE.equals(stack.getAttribute(WarpScriptStack.ATTRIBUTE_LINENO)));
+        }
+
+        if (null != parsed) {
+          scriptSB.append(script);
+          lineno = parsed.getLines();
+        } else {
+          br = new BufferedReader(new StringReader(script));
+        }
+      }
+
+      if (null != parsed) {
+        long nano = System.nanoTime();
+
+        //
+        // Cached scripts are only used when the execution is time boxed, the parsed macro is
+        // pushed as the macro the script would have been wrapped in
+        //
+
+        stack.push(parsed.getMacro());
+
+        long end = System.nanoTime();
+
+        if (Boolean.TRUE.equals(stack.getAttribute(WarpScriptStack.ATTRIBUTE_TIMINGS))) {
+          elapsed.add(end - now);
+        }
+
+        times.add(end - nano);
+
+        terminate = true;
+      } else if (forcedMacro) {
+        stack.macroOpen();
+      }
+
       while(!terminate) {
         String line = br.readLine();
 
@@ -450,7 +555,7 @@ public class EgressExecHandler extends AbstractHandler {
         times.add(end - nano);
       }
 
-      if (forcedMacro) {
+      if (forcedMacro && null == parsed) {
         stack.macroClose();
       }
 
@@ -513,7 +618,24 @@ public class EgressExecHandler extends AbstractHandler {
         stack.push(exports);
       }
 
-      StackUtils.toJSON(resp.getWriter(), stack);
+      if (null != codec) {
+        for (int i = 0; i < stack.depth(); i++) {
+          ColumnarWriter.check(stack.get(i));
+        }
+
+        resp.setContentType(ColumnarWriter.CONTENT_TYPE);
+        columnar = true;
+
+        ColumnarWriter writer = new ColumnarWriter(resp.getOutputStream(), codec);
+
+        for (int i = 0; i < stack.depth(); i++) {
+          writer.write(stack.get(i));
+        }
+
+        writer.close();
+      } else {
+        StackUtils.toJSON(resp.getWriter(), stack);
+      }
     } catch (Throwable e) {
       t = e;
 
@@ -566,7 +688,7 @@ public class EgressExecHandler extends AbstractHandler {
         try { stack.push(exports); if (debugDepth < Integer.MAX_VALUE) { debugDepth++; } } catch (WarpScriptException wse) {}
       }
 
-      if(debugDepth > 0) {
+      if(debugDepth > 0 && !columnar) {
         resp.setStatus(errorCode);
         PrintWriter pw = resp.getWriter();
 
@@ -601,6 +723,10 @@ public class EgressExecHandler extends AbstractHandler {
         return;
       }
     } finally {
+      if (null != ticket) {
+        ticket.release();
+      }
+
       stack.signal(Signal.KILL);
       WarpConfig.clearThreadProperties();
       WarpScriptStackRegistry.unregister(stack);
@@ -24,6 +24,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
@@ -79,6 +80,7 @@ import io.warp10.continuum.gts.GTSEncoder;
 import io.warp10.continuum.gts.GTSHelper;
 import io.warp10.continuum.gts.GTSWrapperHelper;
 import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
 import io.warp10.continuum.sensision.SensisionConstants;
 import io.warp10.continuum.store.Constants;
 import io.warp10.continuum.store.DirectoryClient;
@@ -109,6 +111,16 @@ public class EgressFetchHandler extends AbstractHandler {
 
   private static final Logger LOG = LoggerFactory.getLogger(EgressFetchHandler.class);
 
+  /**
+   * Number of datapoints decoded at once when producing JSON output
+   */
+  private static final int JSON_BATCH_SIZE = 1024;
+
+  /**
+   * Admission control of the requests, null if disabled
+   */
+  private static final AdmissionController ADMISSION = AdmissionController.getInstance();
+
   private DateTimeFormatter fmt = ISODateTimeFormat.dateTimeParser();
 
   private final StoreClient storeClient;
@@ -166,6 +178,8 @@ public class EgressFetchHandler extends AbstractHandler {
 
     int httpStatusCode = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
 
+    AdmissionController.Ticket ticket = null;
+
     try {
       // Labels for Sensision
       Map<String,String> labels = new HashMap<String,String>();
@@ -472,6 +486,17 @@ public class EgressFetchHandler extends AbstractHandler {
 
       String format = splitFetch ? "wrapper" : req.getParameter(Constants.HTTP_PARAM_FORMAT);
 
+      ColumnarWriter.Codec codec = null;
+
+      if (ColumnarWriter.FORMAT.equals(format)) {
+        try {
+          codec = ColumnarWriter.getCodec(req.getParameter(Constants.HTTP_PARAM_CODEC));
+        } catch (IllegalArgumentException iae) {
+          httpStatusCode = HttpServletResponse.SC_BAD_REQUEST;
+          throw new IOException("Invalid codec.");
+        }
+      }
+
       if (!splitFetch) {
         try {
           rtoken = Tokens.extractReadToken(token);
@@ -492,6 +517,27 @@ public class EgressFetchHandler extends AbstractHandler {
         }
       }
 
+      //
+      // Split fetches select their series in the request body and are signed, they are not subject to admission control.
+      // The fingerprint is computed from the parsed parameters as the token may come from a header.
+      //
+
+      if (null != ADMISSION && !splitFetch) {
+        StringBuilder fingerprint = new StringBuilder();
+        fingerprint.append(target).append(" ").append(token).append(" ").append(selector);
+        fingerprint.append(" ").append(then).append(" ").append(now).append(" ").append(count).append(" ").append(skip);
+        fingerprint.append(" ").append(gcount).append(" ").append(gskip).append(" ").append(step).append(" ").append(timestep);
+        fingerprint.append(" ").append(sample).append(" ").append(preBoundary).append(" ").append(postBoundary);
+        fingerprint.append(" ").append(dedup).append(" ").append(format);
+
+        ticket = ADMISSION.admit(rtoken.getAppName(), ADMISSION.fingerprint(fingerprint.toString()));
+
+        if (null == ticket) {
+          httpStatusCode = HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+          throw new IOException("Request rejected by admission control.");
+        }
+      }
+
       boolean showAttr = "true".equals(req.getParameter(Constants.HTTP_PARAM_SHOWATTR));
 
       Long activeAfter = null == req.getParameter(Constants.HTTP_PARAM_ACTIVEAFTER) ? null : Long.parseLong(req.getParameter(Constants.HTTP_PARAM_ACTIVEAFTER));
@@ -918,7 +964,15 @@ public class EgressFetchHandler extends AbstractHandler {
 
       metas = new ArrayList<Metadata>();
 
-      PrintWriter pw = resp.getWriter();
+      PrintWriter pw = null;
+      ColumnarWriter columnarWriter = null;
+
+      if (null != codec) {
+        resp.setContentType(ColumnarWriter.CONTENT_TYPE);
+        columnarWriter = new ColumnarWriter(resp.getOutputStream(), codec);
+      } else {
+        pw = resp.getWriter();
+      }
 
       AtomicReference<Metadata> lastMeta = new AtomicReference<Metadata>(null);
       AtomicLong lastCount = new AtomicLong(0L);
@@ -986,6 +1040,8 @@ public class EgressFetchHandler extends AbstractHandler {
                 tsvDump(pw, iter, now, count, true, dedup, signed, lastMeta, lastCount, sortMeta, expose);
               } else if ("pack".equals(format)) {
                 packedDump(pw, iter, now, count, dedup, signed, lastMeta, lastCount, maxDecoderLen, suffix, chunksize, sortMeta, expose);
+              } else if (null != columnarWriter) {
+                columnarDump(columnarWriter, iter, count, dedup, signed, lastMeta, lastCount, expose);
               } else if ("null".equals(format)) {
                 nullDump(iter);
               } else {
@@ -994,7 +1050,9 @@ public class EgressFetchHandler extends AbstractHandler {
             } catch (Throwable t) {
               LOG.error("",t);
               Sensision.update(SensisionConstants.CLASS_WARP_FETCH_ERRORS, Sensision.EMPTY_LABELS, 1);
-              if (showErrors) {
+              if (showErrors && null != columnarWriter) {
+                columnarWriter.error(ThrowableUtils.getErrorMessage(t));
+              } else if (showErrors) {
                 pw.println();
                 StringWriter sw = new StringWriter();
                 PrintWriter pw2 = new PrintWriter(sw);
@@ -1030,12 +1088,20 @@ public class EgressFetchHandler extends AbstractHandler {
         }
       }
 
+      if (null != columnarWriter) {
+        columnarWriter.close();
+      }
+
       Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_FETCH_REQUESTS, labels, 1);
     } catch (Throwable t) {
       if (!resp.isCommitted()) {
         resp.sendError(httpStatusCode, ThrowableUtils.getErrorMessage(t, Constants.MAX_HTTP_REASON_LENGTH));
         return;
       }
+    } finally {
+      if (null != ticket) {
+        ticket.release();
+      }
     }
   }
 
@@ -1520,6 +1586,19 @@ public class EgressFetchHandler extends AbstractHandler {
 
       long mask = (long) (Math.random() * Long.MAX_VALUE);
 
+      //
+      // Datapoints are decoded in batches so values are not boxed
+      //
+
+      long[] ticks = new long[JSON_BATCH_SIZE];
+      long[] locations = new long[JSON_BATCH_SIZE];
+      long[] elevations = new long[JSON_BATCH_SIZE];
+      long[] longValues = new long[JSON_BATCH_SIZE];
+      double[] doubleValues = new double[JSON_BATCH_SIZE];
+      BigDecimal[] decimalValues = new BigDecimal[JSON_BATCH_SIZE];
+      boolean[] booleanValues = new boolean[JSON_BATCH_SIZE];
+      String[] stringValues = new String[JSON_BATCH_SIZE];
+
       while(iter.hasNext()) {
         GTSDecoder decoder = iter.next();
 
@@ -1527,7 +1606,9 @@ public class EgressFetchHandler extends AbstractHandler {
           decoder = decoder.dedup();
         }
 
-        if (!decoder.next()) {
+        int n = decoder.next(ticks, locations, elevations, longValues, doubleValues, decimalValues, booleanValues, stringValues, 0, JSON_BATCH_SIZE);
+
+        if (0 == n) {
           continue;
         }
 
@@ -1630,58 +1711,77 @@ public class EgressFetchHandler extends AbstractHandler {
         long decoded = 0L;
 
         do {
+          TYPE type = decoder.getType();
 
-          if (toDecodeCount == decoded) {
-            break;
-          }
+          for (int i = 0; i < n; i++) {
 
-          // FIXME(hbs): only display the results which match the authorized (according to token) timerange and geo zones
+            if (toDecodeCount == decoded) {
+              break;
+            }
 
-          decoded++;
+            // FIXME(hbs): only display the results which match the authorized (according to token) timerange and geo zones
 
-          //
-          // TODO(hbs): filter out values with no location or outside the selected geozone when a geozone was set
-          //
+            decoded++;
 
-          // Display the name only if we have at least one value to display
-          if (displayName) {
-            if (!firstgts) {
-              pw.print("]},");
+            // Delete markers count as decoded datapoints but have no value to display
+            if (TYPE.UNDEFINED == type) {
+              continue;
+            }
+
+            //
+            // TODO(hbs): filter out values with no location or outside the selected geozone when a geozone was set
+            //
+
+            // Display the name only if we have at least one value to display
+            if (displayName) {
+              if (!firstgts) {
+                pw.print("]},");
+              }
+              pw.print(sb.toString());
+              firstgts = false;
+              displayName = false;
+            } else {
+              pw.print(",");
+            }
+            hasValues = true;
+            pw.print("[");
+            pw.print(ticks[i]);
+            if (GeoTimeSerie.NO_LOCATION != locations[i]) {
+              double[] latlon = GeoXPLib.fromGeoXPPoint(locations[i]);
+              pw.print(",");
+              pw.print(latlon[0]);
+              pw.print(",");
+              pw.print(latlon[1]);
+            }
+            if (GeoTimeSerie.NO_ELEVATION != elevations[i]) {
+              pw.print(",");
+              pw.print(elevations[i]);
             }
-            pw.print(sb.toString());
-            firstgts = false;
-            displayName = false;
-          } else {
-            pw.print(",");
-          }
-          hasValues = true;
-          pw.print("[");
-          pw.print(decoder.getTimestamp());
-          if (GeoTimeSerie.NO_LOCATION != decoder.getLocation()) {
-            double[] latlon = GeoXPLib.fromGeoXPPoint(decoder.getLocation());
-            pw.print(",");
-            pw.print(latlon[0]);
-            pw.print(",");
-            pw.print(latlon[1]);
-          }
-          if (GeoTimeSerie.NO_ELEVATION != decoder.getElevation()) {
             pw.print(",");
-            pw.print(decoder.getElevation());
+            // For JSON representation we do not extract the binary value as byte[] cannot be
+            // represented in JSON
+            if (TYPE.LONG == type) {
+              pw.print(longValues[i]);
+            } else if (TYPE.DOUBLE == type) {
+              if (null != decimalValues[i]) {
+                pw.print(decimalValues[i]);
+              } else {
+                pw.print(doubleValues[i]);
+              }
+            } else if (TYPE.BOOLEAN == type) {
+              pw.print(booleanValues[i] ? "true" : "false");
+            } else {
+              pw.print(JsonUtils.objectToJson(stringValues[i]));
+            }
+            pw.print("]");
           }
-          pw.print(",");
-          // For JSON representation we do not extract the binary value as byte[] cannot be
-          // represented in JSON
-          Object value = decoder.getValue();
-
-          if (value instanceof Number) {
-            pw.print(value);
-          } else if (value instanceof Boolean) {
-            pw.print(Boolean.TRUE.equals(value) ? "true" : "false");
-          } else {
-            pw.print(JsonUtils.objectToJson(value.toString()));
+
+          if (toDecodeCount == decoded) {
+            break;
           }
-          pw.print("]");
-        } while (decoder.next());
+
+          n = decoder.next(ticks, locations, elevations, longValues, doubleValues, decimalValues, booleanValues, stringValues, 0, JSON_BATCH_SIZE);
+        } while (n > 0);
 
         if (count >= 0) {
           currentCount += decoded;
@@ -1710,6 +1810,44 @@ public class EgressFetchHandler extends AbstractHandler {
     lastCount.set(currentCount);
   }
 
+  /**
+   * Output fetched data in the binary columnar format, see ColumnarWriter
+   */
+  private static void columnarDump(ColumnarWriter writer, Iterator<GTSDecoder> iter, long count, boolean dedup, boolean signed, AtomicReference<Metadata> lastMeta, AtomicLong lastCount, boolean expose) throws IOException {
+    Metadata lastMetadata = lastMeta.get();
+    long currentCount = lastCount.get();
+
+    boolean hideOwnerProducer = !signed && !Constants.EXPOSE_OWNER_PRODUCER && !expose;
+
+    while(iter.hasNext()) {
+      GTSDecoder decoder = iter.next();
+
+      if (dedup) {
+        decoder = decoder.dedup();
+      }
+
+      long toDecodeCount = Long.MAX_VALUE;
+
+      if (count >= 0) {
+        Metadata meta = decoder.getMetadata();
+        if (!meta.equals(lastMetadata)) {
+          lastMetadata = meta;
+          currentCount = 0;
+        }
+        toDecodeCount = Math.max(0, count - currentCount);
+      }
+
+      long decoded = writer.write(decoder, toDecodeCount, hideOwnerProducer);
+
+      if (count >= 0) {
+        currentCount += decoded;
+      }
+    }
+
+    lastMeta.set(lastMetadata);
+    lastCount.set(currentCount);
+  }
+
   /**
    * Output a tab separated version of fetched data. Deduplication is done on the fly so we don't decode twice.
    *
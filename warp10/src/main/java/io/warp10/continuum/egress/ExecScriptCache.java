@@ -0,0 +1,270 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.egress;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.warp10.continuum.sensision.SensisionConstants;
+import io.warp10.crypto.SipHashInline;
+import io.warp10.script.MemoryWarpScriptStack;
+import io.warp10.script.WarpScriptLib;
+import io.warp10.script.WarpScriptStack;
+import io.warp10.script.WarpScriptStack.Macro;
+import io.warp10.sensision.Sensision;
+
+/**
+ * Bounded LRU cache of the parsed form of the scripts submitted to /exec.
+ *
+ * Scripts are parsed on a separate stack as if they were wrapped in a macro, which is what
+ * EgressExecHandler does when the execution is time boxed, the cache is therefore only used
+ * in that case so errors are reported the same way. The cached macros are never handed
+ * out, callers get a copy which they are free to modify.
+ *
+ * Scripts whose parsing depends on the state of the executing stack are not cached, those are
+ * the scripts referencing symbols at parse time (!$), containing secure scripts (&lt;S ... S&gt;),
+ * redefining functions (DEF) or executed on a stack with redefined functions.
+ */
+public class ExecScriptCache {
+
+  /**
+   * Parsed script, 'macro' is null if the script cannot be executed from the cache
+   */
+  private static final class Entry {
+    private final String script;
+    private final boolean lineno;
+    private final Macro macro;
+    private final int lines;
+
+    private Entry(String script, boolean lineno, Macro macro, int lines) {
+      this.script = script;
+      this.lineno = lineno;
+      this.macro = macro;
+      this.lines = lines;
+    }
+  }
+
+  /**
+   * Result of a cache lookup
+   */
+  public static final class Parsed {
+    private final Macro macro;
+    private final int lines;
+
+    private Parsed(Macro macro, int lines) {
+      this.macro = macro;
+      this.lines = lines;
+    }
+
+    public Macro getMacro() {
+      return this.macro;
+    }
+
+    /**
+     * Number of lines of the script
+     */
+    public int getLines() {
+      return this.lines;
+    }
+  }
+
+  private final int maxLength;
+
+  private final long[] sipkey = new long[2];
+
+  private final Map<Long,Entry> entries;
+
+  public ExecScriptCache(final int size, int maxLength) {
+    this.maxLength = maxLength;
+
+    SecureRandom sr = new SecureRandom();
+    this.sipkey[0] = sr.nextLong();
+    this.sipkey[1] = sr.nextLong();
+
+    this.entries = new LinkedHashMap<Long,Entry>(16, 0.75F, true) {
+      @Override
+      protected boolean removeEldestEntry(java.util.Map.Entry<Long,Entry> eldest) {
+        int n = this.size();
+        Sensision.set(SensisionConstants.SENSISION_CLASS_WARPSCRIPT_EXEC_CACHE_SIZE, Sensision.EMPTY_LABELS, n);
+        if (n > size) {
+          Sensision.update(SensisionConstants.SENSISION_CLASS_WARPSCRIPT_EXEC_CACHE_EVICTIONS, Sensision.EMPTY_LABELS, 1);
+          return true;
+        }
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Return the parsed form of a script, parsing and caching it if needed
+   *
+   * @param stack Stack on which the script will be executed
+   * @param script Content of the script
+   * @param lineno Whether or not line numbers should be injected as section names
+   * @return The parsed script or null if the script must be executed line by line
+   */
+  public Parsed get(WarpScriptStack stack, String script, boolean lineno) {
+    if (script.length() > this.maxLength || !stack.getDefined().isEmpty()) {
+      return null;
+    }
+
+    byte[] data = script.getBytes(StandardCharsets.UTF_8);
+    long hash = SipHashInline.hash24(this.sipkey[0], this.sipkey[1], data, 0, data.length);
+    Long key = lineno ? ~hash : hash;
+
+    Entry entry;
+
+    synchronized(this.entries) {
+      entry = this.entries.get(key);
+    }
+
+    if (null != entry && entry.lineno == lineno && entry.script.equals(script)) {
+      Sensision.update(SensisionConstants.SENSISION_CLASS_WARPSCRIPT_EXEC_CACHE_HITS, Sensision.EMPTY_LABELS, 1);
+    } else {
+      Sensision.update(SensisionConstants.SENSISION_CLASS_WARPSCRIPT_EXEC_CACHE_MISSES, Sensision.EMPTY_LABELS, 1);
+
+      entry = parse(script, lineno);
+
+      synchronized(this.entries) {
+        this.entries.put(key, entry);
+      }
+    }
+
+    if (null == entry.macro) {
+      return null;
+    }
+
+    return new Parsed(copy(entry.macro), entry.lines);
+  }
+
+  private static Entry parse(String script, boolean lineno) {
+    // Those constructs need the state of the executing stack at parse time
+    if (script.contains("!$") || script.contains(WarpScriptStack.SECURE_SCRIPT_START)) {
+      return new Entry(script, lineno, null, 0);
+    }
+
+    MemoryWarpScriptStack stack = new MemoryWarpScriptStack(null, null);
+    stack.maxLimits();
+
+    if (lineno) {
+      stack.setAttribute(WarpScriptStack.ATTRIBUTE_LINENO, true);
+    }
+
+    int lines = 0;
+
+    try {
+      stack.macroOpen();
+
+      BufferedReader br = new BufferedReader(new StringReader(script));
+
+      while (true) {
+        String line = br.readLine();
+
+        if (null == line) {
+          break;
+        }
+
+        lines++;
+
+        // Same section injection as EgressExecHandler
+        if (lineno && !stack.isInMultiline()) {
+          stack.exec("'[Line #" + Long.toString(lines) + "]'");
+          stack.exec(WarpScriptLib.SECTION);
+        }
+
+        stack.exec(line);
+      }
+
+      stack.macroClose();
+
+      if (1 != stack.depth() || !(stack.peek() instanceof Macro)) {
+        return new Entry(script, lineno, null, lines);
+      }
+
+      Macro macro = (Macro) stack.pop();
+
+      if (redefines(macro)) {
+        return new Entry(script, lineno, null, lines);
+      }
+
+      return new Entry(script, lineno, macro, lines);
+    } catch (Exception e) {
+      // Parse errors are reported when the script is executed line by line
+      return new Entry(script, lineno, null, lines);
+    }
+  }
+
+  /**
+   * Check if a macro calls DEF, either directly or possibly through a String. Strings are only
+   * suspicious if they are the DEF token itself or if they are evaluated and contain that token.
+   */
+  private static boolean redefines(Macro macro) {
+    Object def = WarpScriptLib.getFunction(WarpScriptLib.DEF);
+    Object eval = WarpScriptLib.getFunction(WarpScriptLib.EVAL);
+
+    for (int i = 0; i < macro.size(); i++) {
+      Object stmt = macro.get(i);
+
+      if (null != def && def == stmt) {
+        return true;
+      } else if (stmt instanceof String) {
+        if (WarpScriptLib.DEF.equals(stmt)) {
+          return true;
+        }
+
+        if (i + 1 < macro.size() && null != eval && eval == macro.get(i + 1) && containsToken((String) stmt, WarpScriptLib.DEF)) {
+          return true;
+        }
+      } else if (stmt instanceof Macro && redefines((Macro) stmt)) {
+        return true;
+      }
+    }
+
+    return false;
+  }
+
+  private static boolean containsToken(String script, String token) {
+    for (String t: script.split("\\s+")) {
+      if (token.equals(t)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static Macro copy(Macro macro) {
+    Macro copy = new Macro();
+    copy.setSecure(macro.isSecure());
+    copy.setName(macro.getName());
+
+    for (int i = 0; i < macro.size(); i++) {
+      Object stmt = macro.get(i);
+
+      if (stmt instanceof Macro) {
+        copy.add(copy((Macro) stmt));
+      } else {
+        copy.add(stmt);
+      }
+    }
+
+    return copy;
+  }
+}
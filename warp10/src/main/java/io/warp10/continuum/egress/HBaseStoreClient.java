@@ -31,6 +31,7 @@ import org.apache.hadoop.hbase.client.RegionLocator;
 
 import io.warp10.continuum.gts.GTSEncoder;
 import io.warp10.continuum.gts.MetadataIdComparator;
+import io.warp10.continuum.store.BucketizingGTSDecoderIterator;
 import io.warp10.continuum.store.GTSDecoderIterator;
 import io.warp10.continuum.store.HBaseRegionKeys;
 import io.warp10.continuum.store.MultiScanGTSDecoderIterator;
@@ -247,12 +248,12 @@ public class HBaseStoreClient implements StoreClient {
 
     if (!freq.isParallelScanners() || metadatas.size() < ParallelGTSDecoderIteratorWrapper.getMinGTSPerScanner() || !ParallelGTSDecoderIteratorWrapper.useParallelScanners()) {
       if (optimized) {
-        return new OptimizedSlicedRowFilterGTSDecoderIterator(freq, this.conn, this.tableName, this.colfam, this.keystore, useBlockCache);
+        return BucketizingGTSDecoderIterator.wrap(freq, new OptimizedSlicedRowFilterGTSDecoderIterator(freq, this.conn, this.tableName, this.colfam, this.keystore, useBlockCache));
       } else {
-        return new MultiScanGTSDecoderIterator(freq, this.conn, this.tableName, colfam, this.keystore, useBlockCache);      
+        return BucketizingGTSDecoderIterator.wrap(freq, new MultiScanGTSDecoderIterator(freq, this.conn, this.tableName, colfam, this.keystore, useBlockCache));      
       }      
     } else {
-      return new ParallelGTSDecoderIteratorWrapper(freq, optimized, keystore, this.conn, this.tableName, this.colfam, useBlockCache);
+      return BucketizingGTSDecoderIterator.wrap(freq, new ParallelGTSDecoderIteratorWrapper(freq, optimized, keystore, this.conn, this.tableName, this.colfam, useBlockCache));
     }
   }
 
@@ -21,6 +21,7 @@ import org.apache.thrift.protocol.TCompactProtocol;
 
 import io.warp10.continuum.gts.GTSDecoder;
 import io.warp10.continuum.gts.GTSWrapperHelper;
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
 import io.warp10.continuum.store.GTSDecoderIterator;
 import io.warp10.continuum.store.thrift.data.GTSWrapper;
 import io.warp10.crypto.OrderPreservingBase64;
@@ -34,6 +35,19 @@ public class UnpackingGTSDecoderIterator extends GTSDecoderIterator {
   
   private GTSDecoder currentDecoder = null;
   
+  /**
+   * Number of wrapped values decoded at once from the current decoder
+   */
+  private static final int BATCH_SIZE = 64;
+  
+  private final long[] ticks = new long[BATCH_SIZE];
+  private final String[] values = new String[BATCH_SIZE];
+  private boolean binary = false;
+  private int count = 0;
+  private int index = 0;
+  
+  private final TDeserializer deser = new TDeserializer(new TCompactProtocol.Factory());
+  
   public UnpackingGTSDecoderIterator(GTSDecoderIterator iter, String suffix) {
     this.iter = iter;
     this.suffix = suffix;
@@ -63,28 +77,34 @@ public class UnpackingGTSDecoderIterator extends GTSDecoderIterator {
     }
     
     //
-    // Read the next value from 'currentDecoder'
+    // Read the next values from 'currentDecoder' when the previous batch was consumed
     //
     
-    if (currentDecoder.next()) {
-      Object value = currentDecoder.getBinaryValue();
+    if (index == count) {
+      index = 0;
+      count = currentDecoder.next(ticks, null, null, null, null, null, null, values, 0, values.length);
       
-      if (!(value instanceof String) && !(value instanceof byte[])) {
+      if (count > 0 && TYPE.STRING != currentDecoder.getType()) {
         throw new RuntimeException("Invalid value, expected String or byte array.");
       }
       
+      binary = currentDecoder.isBinary();
+    }
+    
+    if (index < count) {
+      String value = values[index];
+      values[index++] = null;
+      
       //
       // Unwrap the value
       //
       
-      TDeserializer deser = new TDeserializer(new TCompactProtocol.Factory());
-      
       GTSWrapper wrapper = new GTSWrapper();
       try {
-        if (value instanceof byte[]) {
-          deser.deserialize(wrapper, (byte[]) value);
+        if (binary) {
+          deser.deserialize(wrapper, value.getBytes(StandardCharsets.ISO_8859_1));
         } else {
-          deser.deserialize(wrapper, OrderPreservingBase64.decode(value.toString().getBytes(StandardCharsets.US_ASCII)));
+          deser.deserialize(wrapper, OrderPreservingBase64.decode(value.getBytes(StandardCharsets.US_ASCII)));
         }
       } catch (TException te) {
         throw new RuntimeException(te);
@@ -97,7 +117,7 @@ public class UnpackingGTSDecoderIterator extends GTSDecoderIterator {
         decoder.setName(decoder.getName().substring(0, decoder.getName().length() - suffix.length()));
       }
       
-      if (0 == currentDecoder.getRemainingSize()) {
+      if (index == count && 0 == currentDecoder.getRemainingSize()) {
         currentDecoder = null;
       }
       return decoder;
@@ -0,0 +1,158 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.gts;
+
+/**
+ * Thread safe GTSIdMap, ids are spread over segments which each have their own lock.
+ *
+ * When bounded, each segment evicts its least recently accessed entries once it holds
+ * more than its share of the maximum size.
+ */
+public class ConcurrentGTSIdMap<V> {
+
+  private final GTSIdMap<V>[] segments;
+
+  /**
+   * Number of bits of the hash selecting the segment
+   */
+  private final int bits;
+
+  public ConcurrentGTSIdMap(int concurrency) {
+    this(concurrency, 0);
+  }
+
+  /**
+   * @param concurrency Number of segments, rounded up to a power of 2
+   * @param maxSize Maximum number of entries, 0 if the map is not bounded
+   */
+  public ConcurrentGTSIdMap(int concurrency, int maxSize) {
+    int bits = 0;
+
+    while ((1 << bits) < concurrency) {
+      bits++;
+    }
+
+    this.bits = bits;
+    this.segments = new GTSIdMap[1 << bits];
+
+    int segmentMaxSize = maxSize > 0 ? Math.max(1, (maxSize + this.segments.length - 1) / this.segments.length) : 0;
+
+    for (int i = 0; i < this.segments.length; i++) {
+      this.segments[i] = new GTSIdMap<V>(segmentMaxSize);
+    }
+  }
+
+  private GTSIdMap<V> segment(long classId, long labelsId) {
+    if (0 == this.bits) {
+      return this.segments[0];
+    }
+    // Use the upper bits of the hash, the segments use the lower ones
+    return this.segments[GTSIdMap.hash(classId, labelsId) >>> (32 - this.bits)];
+  }
+
+  public V get(long classId, long labelsId) {
+    GTSIdMap<V> segment = segment(classId, labelsId);
+    synchronized(segment) {
+      return segment.get(classId, labelsId);
+    }
+  }
+
+  public V getOrDefault(long classId, long labelsId, V defaultValue) {
+    GTSIdMap<V> segment = segment(classId, labelsId);
+    synchronized(segment) {
+      return segment.getOrDefault(classId, labelsId, defaultValue);
+    }
+  }
+
+  public boolean containsKey(long classId, long labelsId) {
+    GTSIdMap<V> segment = segment(classId, labelsId);
+    synchronized(segment) {
+      return segment.containsKey(classId, labelsId);
+    }
+  }
+
+  public V put(long classId, long labelsId, V value) {
+    GTSIdMap<V> segment = segment(classId, labelsId);
+    synchronized(segment) {
+      return segment.put(classId, labelsId, value);
+    }
+  }
+
+  public V remove(long classId, long labelsId) {
+    GTSIdMap<V> segment = segment(classId, labelsId);
+    synchronized(segment) {
+      return segment.remove(classId, labelsId);
+    }
+  }
+
+  public int size() {
+    int size = 0;
+    for (GTSIdMap<V> segment: this.segments) {
+      synchronized(segment) {
+        size += segment.size();
+      }
+    }
+    return size;
+  }
+
+  public boolean isEmpty() {
+    for (GTSIdMap<V> segment: this.segments) {
+      synchronized(segment) {
+        if (!segment.isEmpty()) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  public void clear() {
+    for (GTSIdMap<V> segment: this.segments) {
+      synchronized(segment) {
+        segment.clear();
+      }
+    }
+  }
+
+  /**
+   * @return the ids in the map as classId/labelsId pairs. Segments are copied one at a time
+   *         so concurrent modifications may or may not be reflected.
+   */
+  public long[] ids() {
+    long[] ids = new long[0];
+    int offset = 0;
+
+    for (GTSIdMap<V> segment: this.segments) {
+      synchronized(segment) {
+        if (offset + (segment.size() << 1) > ids.length) {
+          long[] newids = new long[Math.max(ids.length << 1, offset + (segment.size() << 1))];
+          System.arraycopy(ids, 0, newids, 0, offset);
+          ids = newids;
+        }
+        offset = segment.fill(ids, offset);
+      }
+    }
+
+    if (offset < ids.length) {
+      long[] newids = new long[offset];
+      System.arraycopy(ids, 0, newids, 0, offset);
+      ids = newids;
+    }
+
+    return ids;
+  }
+}
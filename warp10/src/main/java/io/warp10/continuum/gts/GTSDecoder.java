@@ -146,6 +146,11 @@ public class GTSDecoder {
    */
   private int position;
 
+  /**
+   * Maximum number of datapoints decoded at once by decode
+   */
+  private static final int DECODE_BATCH_SIZE = 1024;
+
   /**
    * Estimation of the number of elements in the decoder
    */
@@ -485,6 +490,125 @@ public class GTSDecoder {
     return true;
   }
 
+  /**
+   * Decode up to 'max' datapoints of the same type into the given arrays, starting at index 'offset'.
+   * Values are stored without being boxed, in the array matching their type, the type of the decoded
+   * values is then returned by getType(), and isBinary() tells if STRING values are binary.
+   *
+   * A batch stops before the first datapoint whose type (or binary flag for STRING values) differs from
+   * that of the first datapoint of the batch and before any encrypted chunk. Calling this method again
+   * will start a new batch with those datapoints.
+   *
+   * Value arrays for types the caller does not need may be null, so may be 'locations' and 'elevations'.
+   *
+   * @param ticks Array receiving the timestamps
+   * @param locations Array receiving the locations (NO_LOCATION if a datapoint has none)
+   * @param elevations Array receiving the elevations (NO_ELEVATION if a datapoint has none)
+   * @param longValues Array receiving LONG values
+   * @param doubleValues Array receiving DOUBLE values
+   * @param decimalValues Array receiving the BigDecimal instances of DOUBLE values which were encoded as such, null for those which were encoded as IEEE754
+   * @param booleanValues Array receiving BOOLEAN values
+   * @param stringValues Array receiving STRING values, binary values are ISO-8859-1 strings as returned by getValue()
+   * @param offset Index at which to store the first datapoint
+   * @param max Maximum number of datapoints to decode
+   * @return The number of decoded datapoints, 0 if no datapoints were left in the buffer
+   */
+  public int next(long[] ticks, long[] locations, long[] elevations, long[] longValues, double[] doubleValues, BigDecimal[] decimalValues, boolean[] booleanValues, String[] stringValues, int offset, int max) {
+    int n = 0;
+
+    while (n < max) {
+      //
+      // Peek at the flags of the next datapoint to determine if it belongs to the current batch
+      //
+
+      if (n > 0) {
+        if (!this.buffer.hasRemaining()) {
+          break;
+        }
+
+        byte flags = this.buffer.get(this.buffer.position());
+
+        if (GTSEncoder.FLAGS_ENCRYPTED == (flags & GTSEncoder.FLAGS_MASK_ENCRYPTED) || !sameType(flags)) {
+          break;
+        }
+      }
+
+      if (!next()) {
+        break;
+      }
+
+      int idx = offset + n;
+
+      ticks[idx] = lastTimestamp;
+
+      if (null != locations) {
+        locations[idx] = lastGeoXPPoint;
+      }
+
+      if (null != elevations) {
+        elevations[idx] = lastElevation;
+      }
+
+      switch (lastType) {
+        case LONG:
+          if (null != longValues) {
+            longValues[idx] = lastLongValue;
+          }
+          break;
+        case DOUBLE:
+          if (null != doubleValues) {
+            doubleValues[idx] = null == lastBDValue ? lastDoubleValue : lastBDValue.doubleValue();
+          }
+          if (null != decimalValues) {
+            decimalValues[idx] = lastBDValue;
+          }
+          break;
+        case BOOLEAN:
+          if (null != booleanValues) {
+            booleanValues[idx] = lastBooleanValue;
+          }
+          break;
+        case STRING:
+          if (null != stringValues) {
+            stringValues[idx] = lastStringValue;
+          }
+          break;
+        default:
+      }
+
+      n++;
+    }
+
+    return n;
+  }
+
+  /**
+   * Check if the datapoint whose flags are given has the same type as the last decoded one
+   */
+  private boolean sameType(byte flags) {
+    switch (flags & GTSEncoder.FLAGS_MASK_TYPE) {
+      case GTSEncoder.FLAGS_TYPE_LONG:
+        return TYPE.LONG == lastType;
+      case GTSEncoder.FLAGS_TYPE_DOUBLE:
+        return TYPE.DOUBLE == lastType;
+      case GTSEncoder.FLAGS_TYPE_STRING:
+        return TYPE.STRING == lastType && lastStringBinary == (GTSEncoder.FLAGS_STRING_BINARY == (flags & GTSEncoder.FLAGS_STRING_BINARY));
+      default:
+        if (GTSEncoder.FLAGS_DELETE_MARKER == (flags & GTSEncoder.FLAGS_MASK_TYPE_FLAGS)) {
+          return TYPE.UNDEFINED == lastType;
+        } else {
+          return TYPE.BOOLEAN == lastType;
+        }
+    }
+  }
+
+  /**
+   * Return the type of the last decoded value, UNDEFINED for delete markers
+   */
+  public TYPE getType() {
+    return lastType;
+  }
+
   public long getTimestamp() {
     return lastTimestamp;
   }
@@ -542,28 +666,40 @@ public class GTSDecoder {
 
     gts.setMetadata(this.getMetadata());
 
-    if (strict) {
-      Class lastClass = null;
-
-      while(next()) {
-        // TODO(hbs): may differentiate STRING and binary values if the use case ever arises
-        Object value = getValue();
-        Class valClass = value.getClass();
-        // getValue could return a BigDecimal, we need to smooth the comparison so
-        // they are considered as Double
-        if (value instanceof BigDecimal) {
-          valClass = Double.class;
-        }
-        if (null != lastClass && !(valClass.equals(lastClass))) {
-          throw new RuntimeException("Non homogeneous GTS Encoder.");
-        }
-        lastClass = valClass;
-        GTSHelper.setValue(gts, getTimestamp(), getLocation(), getElevation(), value, false);
+    //
+    // Decode the values in batches which are appended to the GTS without boxing
+    //
+
+    int size = (int) Math.min(DECODE_BATCH_SIZE, Math.max(16, this.count > 0 ? this.count : this.buffer.remaining() / 10));
+
+    long[] ticks = new long[size];
+    long[] locations = new long[size];
+    long[] elevations = new long[size];
+    long[] longValues = new long[size];
+    double[] doubleValues = new double[size];
+    boolean[] booleanValues = new boolean[size];
+    String[] stringValues = new String[size];
+
+    TYPE lastBatchType = null;
+
+    int n;
+
+    while ((n = next(ticks, locations, elevations, longValues, doubleValues, null, booleanValues, stringValues, 0, size)) > 0) {
+      TYPE batchType = getType();
+
+      // Delete markers carry no value
+      if (TYPE.UNDEFINED == batchType) {
+        continue;
       }
-    } else {
-      while(next()) {
-        GTSHelper.setValue(gts, getTimestamp(), getLocation(), getElevation(), getValue(), false);
+
+      // TODO(hbs): may differentiate STRING and binary values if the use case ever arises
+      if (strict && null != lastBatchType && lastBatchType != batchType) {
+        throw new RuntimeException("Non homogeneous GTS Encoder.");
       }
+
+      lastBatchType = batchType;
+
+      GTSHelper.appendValues(gts, batchType, ticks, locations, elevations, longValues, doubleValues, booleanValues, stringValues, 0, n);
     }
 
     return gts;
@@ -746,7 +882,11 @@ public class GTSDecoder {
     return this.count;
   }
 
-  void setCount(long count) {
+  /**
+   * Set the number of elements in the decoder, used when the decoder was built
+   * directly on encoded data whose count is tracked separately.
+   */
+  public void setCount(long count) {
     this.count = count;
   }
 
@@ -75,6 +75,7 @@ import io.warp10.continuum.store.thrift.data.Metadata;
 import io.warp10.crypto.OrderPreservingBase64;
 import io.warp10.crypto.SipHashInline;
 import io.warp10.json.JsonUtils;
+import io.warp10.script.ParallelHelper;
 import io.warp10.script.SAXUtils;
 import io.warp10.script.WarpScriptAggregatorFunction;
 import io.warp10.script.WarpScriptBinaryOp;
@@ -85,6 +86,7 @@ import io.warp10.script.WarpScriptFilterFunction;
 import io.warp10.script.WarpScriptLib;
 import io.warp10.script.WarpScriptMapperFunction;
 import io.warp10.script.WarpScriptNAryFunction;
+import io.warp10.script.WarpScriptPrimitiveAggregatorFunction;
 import io.warp10.script.WarpScriptReducerFunction;
 import io.warp10.script.WarpScriptStack;
 import io.warp10.script.WarpScriptStack.Macro;
@@ -1485,22 +1487,7 @@ public class GTSHelper {
     //
 
     if (gts.values == idx) {
-      // Try to keep 'sorted' flag if possible
-      if (2 > gts.values) { // Optimization to only make one check on most cases
-        if (0 == gts.values) {
-          gts.sorted = true;
-          gts.reversed = false;
-        } else { // 1 == gts.values
-          gts.sorted = true;
-          gts.reversed = gts.ticks[0] > timestamp;
-        }
-      } else if (gts.sorted) { // Simple check, if all values are equal we could keep checking
-        if (gts.reversed) {
-          gts.sorted = gts.ticks[gts.values - 1] >= timestamp;
-        } else {
-          gts.sorted = gts.ticks[gts.values - 1] <= timestamp;
-        }
-      }
+      updateSorted(gts, timestamp);
 
       if (TYPE.UNDEFINED == gts.type || null == gts.ticks || gts.values >= gts.ticks.length || (null == gts.locations && GeoTimeSerie.NO_LOCATION != geoxppoint) || (null == gts.elevations && GeoTimeSerie.NO_ELEVATION != elevation)) {
         provision(gts, value, geoxppoint, elevation);
@@ -1614,6 +1601,224 @@ public class GTSHelper {
     return setValue(gts, timestamp, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, value, false);
   }
 
+  /**
+   * Append a LONG measurement without boxing it when the GTS already has room for it.
+   * This is equivalent to setValue(gts, timestamp, geoxppoint, elevation, value, false).
+   */
+  public static final int appendValue(GeoTimeSerie gts, long timestamp, long geoxppoint, long elevation, long value) {
+    if (TYPE.LONG != gts.type || !hasRoom(gts, geoxppoint, elevation)) {
+      return setValue(gts, timestamp, geoxppoint, elevation, value, false);
+    }
+
+    gts.longValues[gts.values] = value;
+
+    return append(gts, timestamp, geoxppoint, elevation);
+  }
+
+  /**
+   * Append a DOUBLE measurement without boxing it when the GTS already has room for it.
+   * This is equivalent to setValue(gts, timestamp, geoxppoint, elevation, value, false).
+   */
+  public static final int appendValue(GeoTimeSerie gts, long timestamp, long geoxppoint, long elevation, double value) {
+    if (TYPE.DOUBLE != gts.type || !hasRoom(gts, geoxppoint, elevation)) {
+      return setValue(gts, timestamp, geoxppoint, elevation, value, false);
+    }
+
+    gts.doubleValues[gts.values] = value;
+
+    return append(gts, timestamp, geoxppoint, elevation);
+  }
+
+  /**
+   * Append datapoints of the given type stored in primitive arrays, as decoded by GTSDecoder.
+   * Only the value array matching 'type' is read, 'locations' and 'elevations' may be null.
+   * This is equivalent to calling setValue(gts, ticks[i], locations[i], elevations[i], value, false)
+   * for each datapoint.
+   */
+  public static final void appendValues(GeoTimeSerie gts, TYPE type, long[] ticks, long[] locations, long[] elevations, long[] longValues, double[] doubleValues, boolean[] booleanValues, String[] stringValues, int offset, int length) {
+    if (length <= 0) {
+      return;
+    }
+
+    int start = offset;
+    int end = offset + length;
+
+    //
+    // Let setValue determine the type of an empty GTS and allocate its arrays
+    //
+
+    if (TYPE.UNDEFINED == gts.type) {
+      setValue(gts, ticks[start], null != locations ? locations[start] : GeoTimeSerie.NO_LOCATION, null != elevations ? elevations[start] : GeoTimeSerie.NO_ELEVATION, boxedValue(type, longValues, doubleValues, booleanValues, stringValues, start), false);
+      start++;
+    }
+
+    //
+    // Values of another type need to be converted, setValue handles that
+    //
+
+    if (type != gts.type) {
+      for (int i = start; i < end; i++) {
+        setValue(gts, ticks[i], null != locations ? locations[i] : GeoTimeSerie.NO_LOCATION, null != elevations ? elevations[i] : GeoTimeSerie.NO_ELEVATION, boxedValue(type, longValues, doubleValues, booleanValues, stringValues, i), false);
+      }
+      return;
+    }
+
+    int count = end - start;
+
+    if (0 == count) {
+      return;
+    }
+
+    //
+    // Grow the arrays so they can hold the new datapoints
+    //
+
+    if (gts.ticks.length < gts.values + count) {
+      int newlen = gts.ticks.length + (int) Math.min(GeoTimeSerie.MAX_ARRAY_GROWTH, Math.max(GeoTimeSerie.MIN_ARRAY_GROWTH, gts.ticks.length * GeoTimeSerie.ARRAY_GROWTH_FACTOR));
+      newlen = Math.max(newlen, Math.max(gts.values + count, gts.sizehint));
+
+      gts.ticks = Arrays.copyOf(gts.ticks, newlen);
+      if (null != gts.locations) {
+        gts.locations = Arrays.copyOf(gts.locations, newlen);
+      }
+      if (null != gts.elevations) {
+        gts.elevations = Arrays.copyOf(gts.elevations, newlen);
+      }
+      if (TYPE.LONG == gts.type) {
+        gts.longValues = Arrays.copyOf(gts.longValues, newlen);
+      } else if (TYPE.DOUBLE == gts.type) {
+        gts.doubleValues = Arrays.copyOf(gts.doubleValues, newlen);
+      } else if (TYPE.STRING == gts.type) {
+        gts.stringValues = Arrays.copyOf(gts.stringValues, newlen);
+      }
+    }
+
+    //
+    // Allocate locations/elevations if some of the new datapoints have some
+    //
+
+    if (null == gts.locations && null != locations) {
+      for (int i = start; i < end; i++) {
+        if (GeoTimeSerie.NO_LOCATION != locations[i]) {
+          gts.locations = new long[gts.ticks.length];
+          Arrays.fill(gts.locations, GeoTimeSerie.NO_LOCATION);
+          break;
+        }
+      }
+    }
+
+    if (null == gts.elevations && null != elevations) {
+      for (int i = start; i < end; i++) {
+        if (GeoTimeSerie.NO_ELEVATION != elevations[i]) {
+          gts.elevations = new long[gts.ticks.length];
+          Arrays.fill(gts.elevations, GeoTimeSerie.NO_ELEVATION);
+          break;
+        }
+      }
+    }
+
+    int idx = gts.values;
+
+    if (null != gts.locations) {
+      if (null != locations) {
+        System.arraycopy(locations, start, gts.locations, idx, count);
+      } else {
+        Arrays.fill(gts.locations, idx, idx + count, GeoTimeSerie.NO_LOCATION);
+      }
+    }
+
+    if (null != gts.elevations) {
+      if (null != elevations) {
+        System.arraycopy(elevations, start, gts.elevations, idx, count);
+      } else {
+        Arrays.fill(gts.elevations, idx, idx + count, GeoTimeSerie.NO_ELEVATION);
+      }
+    }
+
+    if (TYPE.LONG == type) {
+      System.arraycopy(longValues, start, gts.longValues, idx, count);
+    } else if (TYPE.DOUBLE == type) {
+      System.arraycopy(doubleValues, start, gts.doubleValues, idx, count);
+    } else if (TYPE.STRING == type) {
+      System.arraycopy(stringValues, start, gts.stringValues, idx, count);
+    } else if (TYPE.BOOLEAN == type) {
+      for (int i = 0; i < count; i++) {
+        gts.booleanValues.set(idx + i, booleanValues[start + i]);
+      }
+    }
+
+    //
+    // Record the ticks, maintaining the 'sorted' flag
+    //
+
+    for (int i = start; i < end; i++) {
+      updateSorted(gts, ticks[i]);
+      gts.ticks[gts.values++] = ticks[i];
+    }
+  }
+
+  private static final Object boxedValue(TYPE type, long[] longValues, double[] doubleValues, boolean[] booleanValues, String[] stringValues, int idx) {
+    switch (type) {
+      case LONG:
+        return longValues[idx];
+      case DOUBLE:
+        return doubleValues[idx];
+      case BOOLEAN:
+        return booleanValues[idx];
+      case STRING:
+        return stringValues[idx];
+      default:
+        return null;
+    }
+  }
+
+  private static final boolean hasRoom(GeoTimeSerie gts, long geoxppoint, long elevation) {
+    return gts.values < gts.ticks.length
+        && (null != gts.locations || GeoTimeSerie.NO_LOCATION == geoxppoint)
+        && (null != gts.elevations || GeoTimeSerie.NO_ELEVATION == elevation);
+  }
+
+  /**
+   * Record the tick, location and elevation of a value which was stored at index gts.values
+   */
+  private static final int append(GeoTimeSerie gts, long timestamp, long geoxppoint, long elevation) {
+    updateSorted(gts, timestamp);
+
+    gts.ticks[gts.values] = timestamp;
+
+    if (null != gts.locations) {
+      gts.locations[gts.values] = geoxppoint;
+    }
+
+    if (null != gts.elevations) {
+      gts.elevations[gts.values] = elevation;
+    }
+
+    return ++gts.values;
+  }
+
+  /**
+   * Update the 'sorted' and 'reversed' flags of a GTS before a value is added at its end
+   */
+  private static final void updateSorted(GeoTimeSerie gts, long timestamp) {
+    // Try to keep 'sorted' flag if possible
+    if (2 > gts.values) { // Optimization to only make one check on most cases
+      if (0 == gts.values) {
+        gts.sorted = true;
+        gts.reversed = false;
+      } else { // 1 == gts.values
+        gts.sorted = true;
+        gts.reversed = gts.ticks[0] > timestamp;
+      }
+    } else if (gts.sorted) { // Simple check, if all values are equal we could keep checking
+      if (gts.reversed) {
+        gts.sorted = gts.ticks[gts.values - 1] >= timestamp;
+      } else {
+        gts.sorted = gts.ticks[gts.values - 1] <= timestamp;
+      }
+    }
+  }
+
   /**
    * Allocate memory so we can add one value to the Geo Time Serie.
    *
@@ -2139,10 +2344,62 @@ public class GTSHelper {
     // Allocate a stable GTS instance which we will reuse when calling subserie
     GeoTimeSerie subgts = null;
 
+    //
+    // Numeric GTS can be handed to primitive aggregators without copying or boxing the values
+    // of each bucket. The GTS is sorted so the datapoints of a bucket are contiguous, buckets are
+    // visited from the most recent one so the datapoints are scanned backwards.
+    //
+
+    WarpScriptPrimitiveAggregatorFunction primitive = null;
+    long[] out = null;
+    double[] dout = null;
+    int hi = -1;
+
+    if (null == stack && aggregator instanceof WarpScriptPrimitiveAggregatorFunction && (TYPE.LONG == gts.type || TYPE.DOUBLE == gts.type)) {
+      primitive = (WarpScriptPrimitiveAggregatorFunction) aggregator;
+      out = new long[4];
+      dout = new double[1];
+      sort(gts);
+      hi = gts.values - 1;
+    }
+
     for (int i = 0; i < bucketcount; i++) {
 
       long bucketend = lastbucket - i * bucketspan;
 
+      if (null != primitive) {
+        while (hi >= 0 && gts.ticks[hi] > bucketend) {
+          hi--;
+        }
+
+        int lo = hi;
+
+        while (lo >= 0 && gts.ticks[lo] >= bucketend - bucketspan + 1) {
+          lo--;
+        }
+
+        int length = hi - lo;
+        hi = lo;
+
+        if (0 == length) {
+          continue;
+        }
+
+        int type = primitive.apply(bucketend, gts.ticks, gts.locations, gts.elevations, TYPE.LONG == gts.type ? gts.longValues : null, TYPE.DOUBLE == gts.type ? gts.doubleValues : null, lo + 1, length, 0, out, dout);
+
+        if (WarpScriptPrimitiveAggregatorFunction.LONG == type) {
+          appendValue(bucketized, bucketend, out[1], out[2], out[3]);
+          continue;
+        } else if (WarpScriptPrimitiveAggregatorFunction.DOUBLE == type) {
+          appendValue(bucketized, bucketend, out[1], out[2], dout[0]);
+          continue;
+        } else if (WarpScriptPrimitiveAggregatorFunction.NULL == type) {
+          continue;
+        }
+
+        // The aggregator cannot handle this bucket, use the regular path
+      }
+
       //
       // Extract GTS containing the values that fall in the bucket
       // Keep multiple values that fall on the same timestamp, the
@@ -6999,7 +7256,11 @@ public class GTSHelper {
   }
 
   public static List<GeoTimeSerie> reduce(WarpScriptReducerFunction reducer, Collection<GeoTimeSerie> series, Collection<String> bylabels, boolean overrideTick) throws WarpScriptException {
-    Map<Map<String,String>,List<GeoTimeSerie>> unflattened = reduceUnflattened(reducer, series, bylabels, overrideTick);
+    return reduce(reducer, series, bylabels, overrideTick, false);
+  }
+
+  public static List<GeoTimeSerie> reduce(WarpScriptReducerFunction reducer, Collection<GeoTimeSerie> series, Collection<String> bylabels, boolean overrideTick, boolean parallel) throws WarpScriptException {
+    Map<Map<String,String>,List<GeoTimeSerie>> unflattened = reduceUnflattened(reducer, series, bylabels, overrideTick, parallel);
 
     List<GeoTimeSerie> results = new ArrayList<GeoTimeSerie>();
 
@@ -7015,6 +7276,15 @@ public class GTSHelper {
   }
 
   public static Map<Map<String, String>, List<GeoTimeSerie>> reduceUnflattened(WarpScriptReducerFunction reducer, Collection<GeoTimeSerie> series, Collection<String> bylabels, boolean overrideTick) throws WarpScriptException {
+    return reduceUnflattened(reducer, series, bylabels, overrideTick, false);
+  }
+
+  /**
+   * Reduce GTS instances per equivalence class
+   *
+   * @param parallel If true, equivalence classes may be reduced in parallel if the reducer is thread safe, see ParallelHelper
+   */
+  public static Map<Map<String, String>, List<GeoTimeSerie>> reduceUnflattened(final WarpScriptReducerFunction reducer, Collection<GeoTimeSerie> series, Collection<String> bylabels, final boolean overrideTick, boolean parallel) throws WarpScriptException {
     //
     // Partition the GTS instances using the given labels
     //
@@ -7024,264 +7294,377 @@ public class GTSHelper {
     Map<Map<String,String>,List<GeoTimeSerie>> results = new LinkedHashMap<Map<String,String>, List<GeoTimeSerie>>();
 
 
-    for (Entry<Map<String, String>, List<GeoTimeSerie>> partitionLabelsAndGtss: partitions.entrySet()) {
-      boolean singleGTSResult = false;
+    if (parallel && ParallelHelper.useParallelism(reducer, new ArrayList<Object>(partitions.keySet()))) {
+      final List<Entry<Map<String, String>, List<GeoTimeSerie>>> entries = new ArrayList<Entry<Map<String, String>, List<GeoTimeSerie>>>(partitions.entrySet());
 
-      Map<String, String> partitionLabels = partitionLabelsAndGtss.getKey();
-      List<GeoTimeSerie> partitionSeries = partitionLabelsAndGtss.getValue();
+      List<List<GeoTimeSerie>> reduced = ParallelHelper.apply(entries.size(), new ParallelHelper.Task<List<GeoTimeSerie>>() {
+        @Override
+        public List<GeoTimeSerie> apply(int idx) throws WarpScriptException {
+          return reducePartition(reducer, entries.get(idx).getKey(), entries.get(idx).getValue(), overrideTick);
+        }
+      });
 
-      //
-      // Extract labels and common labels
-      //
+      for (int i = 0; i < entries.size(); i++) {
+        results.put(entries.get(i).getKey(), reduced.get(i));
+      }
+    } else {
+      for (Entry<Map<String, String>, List<GeoTimeSerie>> partitionLabelsAndGtss: partitions.entrySet()) {
+        results.put(partitionLabelsAndGtss.getKey(), reducePartition(reducer, partitionLabelsAndGtss.getKey(), partitionLabelsAndGtss.getValue(), overrideTick));
+      }
+    }
 
-      Map[] partlabels = new Map[partitionSeries.size() + 1];
+    return results;
+  }
 
-      for (int i = 0; i < partitionSeries.size(); i++) {
-        partlabels[i] = partitionSeries.get(i).getLabels();
-      }
+  /**
+   * Reduce the GTS instances of a single equivalence class
+   */
+  private static List<GeoTimeSerie> reducePartition(WarpScriptReducerFunction reducer, Map<String, String> partitionLabels, List<GeoTimeSerie> partitionSeries, boolean overrideTick) throws WarpScriptException {
+    boolean singleGTSResult = false;
 
-      partlabels[partitionSeries.size()] = Collections.unmodifiableMap(partitionLabelsAndGtss.getKey());
+    //
+    // Extract labels and common labels
+    //
 
-      //
-      // Determine if result should be bucketized or not.
-      // Result will be bucketized if all GTS instances in the partition are
-      // bucketized, have the same bucketspan and have congruent lastbucket values
-      //
+    Map[] partlabels = new Map[partitionSeries.size() + 1];
 
-      long lastbucket = Long.MIN_VALUE;
-      long startbucket = Long.MAX_VALUE;
-      long bucketspan = 0L;
+    for (int i = 0; i < partitionSeries.size(); i++) {
+      partlabels[i] = partitionSeries.get(i).getLabels();
+    }
 
-      for (GeoTimeSerie gts: partitionSeries) {
-        // One GTS instance is not bucketized, result won't be either
-        if (!isBucketized(gts)) {
-          bucketspan = 0L;
-          break;
-        }
-        if (0L == bucketspan) {
-          bucketspan = gts.bucketspan;
-        } else if (bucketspan != gts.bucketspan) {
-          // GTS has a bucketspan which differs from the previous one,
-          // so result won't be bucketized.
-          bucketspan = 0L;
-          break;
-        }
-        if (Long.MIN_VALUE == lastbucket) {
-          lastbucket = gts.lastbucket;
-        }
-        if (lastbucket % bucketspan != gts.lastbucket % gts.bucketspan) {
-          // GTS has a lastbucket value which is not congruent to the other
-          // lastbucket values, so result GTS won't be bucketized.
-          bucketspan = 0L;
-          break;
-        }
+    partlabels[partitionSeries.size()] = Collections.unmodifiableMap(partitionLabels);
 
-        //
-        // Update start/end bucket
-        //
+    //
+    // Determine if result should be bucketized or not.
+    // Result will be bucketized if all GTS instances in the partition are
+    // bucketized, have the same bucketspan and have congruent lastbucket values
+    //
 
-        if (gts.lastbucket > lastbucket) {
-          lastbucket = gts.lastbucket;
-        }
-        if (gts.lastbucket - gts.bucketcount * gts.bucketspan < startbucket) {
-          startbucket = gts.lastbucket - gts.bucketcount * gts.bucketspan;
-        }
+    long lastbucket = Long.MIN_VALUE;
+    long startbucket = Long.MAX_VALUE;
+    long bucketspan = 0L;
+
+    for (GeoTimeSerie gts: partitionSeries) {
+      // One GTS instance is not bucketized, result won't be either
+      if (!isBucketized(gts)) {
+        bucketspan = 0L;
+        break;
+      }
+      if (0L == bucketspan) {
+        bucketspan = gts.bucketspan;
+      } else if (bucketspan != gts.bucketspan) {
+        // GTS has a bucketspan which differs from the previous one,
+        // so result won't be bucketized.
+        bucketspan = 0L;
+        break;
+      }
+      if (Long.MIN_VALUE == lastbucket) {
+        lastbucket = gts.lastbucket;
+      }
+      if (lastbucket % bucketspan != gts.lastbucket % gts.bucketspan) {
+        // GTS has a lastbucket value which is not congruent to the other
+        // lastbucket values, so result GTS won't be bucketized.
+        bucketspan = 0L;
+        break;
       }
 
       //
-      // Determine bucketcount if result is to be bucketized
-      // startbucket is the end of the first bucket not considered
+      // Update start/end bucket
       //
 
-      int bucketcount = 0;
-
-      if (0L != bucketspan) {
-        bucketcount = (int) ((lastbucket - startbucket) / bucketspan);
+      if (gts.lastbucket > lastbucket) {
+        lastbucket = gts.lastbucket;
+      }
+      if (gts.lastbucket - gts.bucketcount * gts.bucketspan < startbucket) {
+        startbucket = gts.lastbucket - gts.bucketcount * gts.bucketspan;
       }
+    }
 
-      //
-      // Create target GTS
-      //
+    //
+    // Determine bucketcount if result is to be bucketized
+    // startbucket is the end of the first bucket not considered
+    //
 
-      GeoTimeSerie result;
+    int bucketcount = 0;
 
-      if (0L != bucketspan) {
-        result = new GeoTimeSerie(lastbucket, bucketcount, bucketspan, 0);
-      } else {
-        result = new GeoTimeSerie();
-      }
+    if (0L != bucketspan) {
+      bucketcount = (int) ((lastbucket - startbucket) / bucketspan);
+    }
 
-      result.setName("");
-      result.setLabels(partitionLabels);
-      result.getMetadata().setAttributes(commonAttributes(partitionSeries));
+    //
+    // Create target GTS
+    //
 
-      //
-      // Sort all series in the partition so we can scan their ticks in order
-      //
+    GeoTimeSerie result;
 
-      String resultName = null;
+    if (0L != bucketspan) {
+      result = new GeoTimeSerie(lastbucket, bucketcount, bucketspan, 0);
+    } else {
+      result = new GeoTimeSerie();
+    }
 
-      for (GeoTimeSerie gts: partitionSeries) {
-        sort(gts, false);
-        if (null == resultName) {
-          resultName = gts.getName();
-        } else if (!resultName.equals(gts.getName())) {
-          resultName = "";
-        }
+    result.setName("");
+    result.setLabels(partitionLabels);
+    result.getMetadata().setAttributes(commonAttributes(partitionSeries));
+
+    //
+    // Sort all series in the partition so we can scan their ticks in order
+    //
+
+    String resultName = null;
+
+    for (GeoTimeSerie gts: partitionSeries) {
+      sort(gts, false);
+      if (null == resultName) {
+        resultName = gts.getName();
+      } else if (!resultName.equals(gts.getName())) {
+        resultName = "";
       }
+    }
 
-      result.setName(resultName);
+    result.setName(resultName);
 
-      Map<String,GeoTimeSerie> multipleResults = new TreeMap<String,GeoTimeSerie>();
+    Map<String,GeoTimeSerie> multipleResults = new TreeMap<String,GeoTimeSerie>();
 
-      //
-      // Initialize indices for each serie
-      //
+    //
+    // Initialize indices for each serie
+    //
+
+    int[] idx = new int[partitionSeries.size()];
+
+    //
+    // Initialize names/labels/location/elevation/value arrays
+    //
+
+    long[] ticks = new long[idx.length];
+    String[] names = new String[idx.length];
+    // Allocate 1 more slot for labels so we can store the common labels at the end of the array
+    Map<String,String>[] lbls = Arrays.copyOf(partlabels, partlabels.length);
+
+    long[] locations = new long[idx.length];
+    long[] elevations = new long[idx.length];
+    Object[] values = new Object[idx.length];
+
+    //
+    // Reducers have 7 parameters (similar to those of binary ops and mappers)
+    //
+    // tick for which value is computed
+    // array of ticks
+    // array of names
+    // array of labels
+    // array of locations
+    // array of elevations
+    // array of values
+    //
+
+    Object[] params = new Object[7];
+
+    //
+    // Reducers which can operate on primitive arrays are handed the values directly when
+    // all the non empty series of the partition are numeric and of the same type
+    //
+
+    WarpScriptPrimitiveAggregatorFunction primitive = null;
+    long[] pticks = null;
+    long[] plocations = null;
+    long[] pelevations = null;
+    long[] plongs = null;
+    double[] pdoubles = null;
+    long[] out = null;
+    double[] dout = null;
+
+    if (reducer instanceof WarpScriptPrimitiveAggregatorFunction) {
+      TYPE type = TYPE.UNDEFINED;
+      boolean hasLocations = false;
+      boolean hasElevations = false;
+
+      for (GeoTimeSerie gts: partitionSeries) {
+        if (0 == gts.values) {
+          continue;
+        }
+        if ((TYPE.LONG != gts.type && TYPE.DOUBLE != gts.type) || (TYPE.UNDEFINED != type && type != gts.type)) {
+          type = TYPE.UNDEFINED;
+          break;
+        }
+        type = gts.type;
+        hasLocations |= null != gts.locations;
+        hasElevations |= null != gts.elevations;
+      }
 
-      int[] idx = new int[partitionSeries.size()];
+      if (TYPE.UNDEFINED != type) {
+        primitive = (WarpScriptPrimitiveAggregatorFunction) reducer;
+        pticks = new long[idx.length];
+        plocations = hasLocations ? new long[idx.length] : null;
+        pelevations = hasElevations ? new long[idx.length] : null;
+        plongs = TYPE.LONG == type ? new long[idx.length] : null;
+        pdoubles = TYPE.DOUBLE == type ? new double[idx.length] : null;
+        out = new long[4];
+        dout = new double[1];
+      }
+    }
 
+    while(true) {
       //
-      // Initialize names/labels/location/elevation/value arrays
+      // Determine the tick span at the given indices
       //
 
-      long[] ticks = new long[idx.length];
-      String[] names = new String[idx.length];
-      // Allocate 1 more slot for labels so we can store the common labels at the end of the array
-      Map<String,String>[] lbls = Arrays.copyOf(partlabels, partlabels.length);
+      long smallest = Long.MAX_VALUE;
 
-      long[] locations = new long[idx.length];
-      long[] elevations = new long[idx.length];
-      Object[] values = new Object[idx.length];
+      for (int i = 0; i < idx.length; i++) {
+        GeoTimeSerie gts = partitionSeries.get(i);
+        if (idx[i] < gts.values) {
+          if (gts.ticks[idx[i]] < smallest) {
+            smallest = gts.ticks[idx[i]];
+          }
+        }
+      }
 
       //
-      // Reducers have 7 parameters (similar to those of binary ops and mappers)
-      //
-      // tick for which value is computed
-      // array of ticks
-      // array of names
-      // array of labels
-      // array of locations
-      // array of elevations
-      // array of values
+      // No smallest tick, this means we've exhausted all values
       //
 
-      Object[] params = new Object[7];
+      if (Long.MAX_VALUE == smallest) {
+        break;
+      }
 
-      while(true) {
+      if (null != primitive) {
         //
-        // Determine the tick span at the given indices
+        // Gather the values of the series whose current tick is 'smallest', the others are counted as nulls
         //
 
-        long smallest = Long.MAX_VALUE;
+        int n = 0;
 
         for (int i = 0; i < idx.length; i++) {
           GeoTimeSerie gts = partitionSeries.get(i);
-          if (idx[i] < gts.values) {
-            if (gts.ticks[idx[i]] < smallest) {
-              smallest = gts.ticks[idx[i]];
+          if (idx[i] < gts.values && smallest == gts.ticks[idx[i]]) {
+            pticks[n] = smallest;
+            if (null != plocations) {
+              plocations[n] = null != gts.locations ? gts.locations[idx[i]] : GeoTimeSerie.NO_LOCATION;
             }
+            if (null != pelevations) {
+              pelevations[n] = null != gts.elevations ? gts.elevations[idx[i]] : GeoTimeSerie.NO_ELEVATION;
+            }
+            if (null != plongs) {
+              plongs[n] = gts.longValues[idx[i]];
+            } else {
+              pdoubles[n] = gts.doubleValues[idx[i]];
+            }
+            n++;
           }
         }
 
-        //
-        // No smallest tick, this means we've exhausted all values
-        //
+        int type = primitive.apply(smallest, pticks, plocations, pelevations, plongs, pdoubles, 0, n, idx.length - n, out, dout);
 
-        if (Long.MAX_VALUE == smallest) {
-          break;
+        if (WarpScriptPrimitiveAggregatorFunction.UNSUPPORTED != type) {
+          for (int i = 0; i < idx.length; i++) {
+            GeoTimeSerie gts = partitionSeries.get(i);
+            if (idx[i] < gts.values && smallest == gts.ticks[idx[i]]) {
+              idx[i]++;
+            }
+          }
+
+          singleGTSResult = true;
+
+          if (WarpScriptPrimitiveAggregatorFunction.LONG == type) {
+            appendValue(result, overrideTick ? out[0] : smallest, out[1], out[2], out[3]);
+          } else if (WarpScriptPrimitiveAggregatorFunction.DOUBLE == type) {
+            appendValue(result, overrideTick ? out[0] : smallest, out[1], out[2], dout[0]);
+          }
+
+          continue;
         }
 
-        //
-        // Now fill the locations/elevations/values arrays for all GTS
-        // instances whose current tick is 'smallest'
-        //
+        // The reducer cannot handle those values, use the regular path
+      }
 
-        for (int i = 0; i < idx.length; i++) {
-          GeoTimeSerie gts = partitionSeries.get(i);
-          if (idx[i] < gts.values && smallest == gts.ticks[idx[i]]) {
-            ticks[i] = smallest;
-            names[i] = gts.getName();
-
-            locations[i] = null != gts.locations ? gts.locations[idx[i]] : GeoTimeSerie.NO_LOCATION;
-            elevations[i] = null != gts.elevations ? gts.elevations[idx[i]] : GeoTimeSerie.NO_ELEVATION;
-            values[i] = GTSHelper.valueAtIndex(gts, idx[i]);
-            // Advance idx[i] since it was the smallest tick.
-            idx[i]++;
-          } else {
-            ticks[i] = Long.MIN_VALUE;
-            names[i] = gts.getName();
+      //
+      // Now fill the locations/elevations/values arrays for all GTS
+      // instances whose current tick is 'smallest'
+      //
 
-            locations[i] = GeoTimeSerie.NO_LOCATION;
-            elevations[i] = GeoTimeSerie.NO_ELEVATION;
-            values[i] = null;
-          }
+      for (int i = 0; i < idx.length; i++) {
+        GeoTimeSerie gts = partitionSeries.get(i);
+        if (idx[i] < gts.values && smallest == gts.ticks[idx[i]]) {
+          ticks[i] = smallest;
+          names[i] = gts.getName();
+
+          locations[i] = null != gts.locations ? gts.locations[idx[i]] : GeoTimeSerie.NO_LOCATION;
+          elevations[i] = null != gts.elevations ? gts.elevations[idx[i]] : GeoTimeSerie.NO_ELEVATION;
+          values[i] = GTSHelper.valueAtIndex(gts, idx[i]);
+          // Advance idx[i] since it was the smallest tick.
+          idx[i]++;
+        } else {
+          ticks[i] = Long.MIN_VALUE;
+          names[i] = gts.getName();
+
+          locations[i] = GeoTimeSerie.NO_LOCATION;
+          elevations[i] = GeoTimeSerie.NO_ELEVATION;
+          values[i] = null;
         }
+      }
 
-        //
-        // Call the reducer for the current tick
-        //
-        // Return value will be an array [tick, location, elevation, value]
-        //
+      //
+      // Call the reducer for the current tick
+      //
+      // Return value will be an array [tick, location, elevation, value]
+      //
 
-        // TODO(hbs): extend reducers to use a window instead of a single value when reducing.
-        //            ticks/locations/elevations/values would be arrays of arrays and an 8th param
-        //            could contain the values.
-
-        params[0] = smallest;
-        params[1] = names;
-        params[2] = lbls;
-        params[3] = ticks;
-        params[4] = locations;
-        params[5] = elevations;
-        params[6] = values;
-
-        Object reducerResult = reducer.apply(params);
-
-        if (reducerResult instanceof Map) {
-          for (Entry<Object,Object> entry: ((Map<Object,Object>) reducerResult).entrySet()) {
-            GeoTimeSerie gts = multipleResults.get(entry.getKey().toString());
-            if (null == gts) {
-              if (0L != bucketspan) {
-                gts = new GeoTimeSerie(lastbucket, bucketcount, bucketspan, 0);
-              } else {
-                gts = new GeoTimeSerie();
-              }
+      // TODO(hbs): extend reducers to use a window instead of a single value when reducing.
+      //            ticks/locations/elevations/values would be arrays of arrays and an 8th param
+      //            could contain the values.
 
-              gts.setName(entry.getKey().toString());
-              gts.setLabels(partitionLabels);
-              multipleResults.put(entry.getKey().toString(), gts);
-            }
+      params[0] = smallest;
+      params[1] = names;
+      params[2] = lbls;
+      params[3] = ticks;
+      params[4] = locations;
+      params[5] = elevations;
+      params[6] = values;
 
-            Object[] reduced = (Object[]) entry.getValue();
+      Object reducerResult = reducer.apply(params);
 
-            if (null != reduced[3]) {
-              GTSHelper.setValue(gts, overrideTick ? (long) reduced[0] : smallest, (long) reduced[1], (long) reduced[2], reduced[3], false);
+      if (reducerResult instanceof Map) {
+        for (Entry<Object,Object> entry: ((Map<Object,Object>) reducerResult).entrySet()) {
+          GeoTimeSerie gts = multipleResults.get(entry.getKey().toString());
+          if (null == gts) {
+            if (0L != bucketspan) {
+              gts = new GeoTimeSerie(lastbucket, bucketcount, bucketspan, 0);
+            } else {
+              gts = new GeoTimeSerie();
             }
+
+            gts.setName(entry.getKey().toString());
+            gts.setLabels(partitionLabels);
+            multipleResults.put(entry.getKey().toString(), gts);
           }
-        } else {
-          Object[] reduced = (Object[]) reducerResult;
-          singleGTSResult = true;
+
+          Object[] reduced = (Object[]) entry.getValue();
+
           if (null != reduced[3]) {
-            GTSHelper.setValue(result, overrideTick ? (long) reduced[0] : smallest, (long) reduced[1], (long) reduced[2], reduced[3], false);
+            GTSHelper.setValue(gts, overrideTick ? (long) reduced[0] : smallest, (long) reduced[1], (long) reduced[2], reduced[3], false);
           }
         }
-
+      } else {
+        Object[] reduced = (Object[]) reducerResult;
+        singleGTSResult = true;
+        if (null != reduced[3]) {
+          GTSHelper.setValue(result, overrideTick ? (long) reduced[0] : smallest, (long) reduced[1], (long) reduced[2], reduced[3], false);
+        }
       }
 
-      if (!results.containsKey(partitionLabels)) {
-        results.put(partitionLabels, new ArrayList<GeoTimeSerie>());
-      }
+    }
 
-      if (singleGTSResult) {
-        results.get(partitionLabels).add(result);
-      }
+    List<GeoTimeSerie> reduced = new ArrayList<GeoTimeSerie>();
 
-      if (!multipleResults.isEmpty()) {
-        results.get(partitionLabels).addAll(multipleResults.values());
-      }
+    if (singleGTSResult) {
+      reduced.add(result);
     }
 
-    return results;
+    if (!multipleResults.isEmpty()) {
+      reduced.addAll(multipleResults.values());
+    }
+
+    return reduced;
   }
 
   /**
@@ -0,0 +1,369 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.gts;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map whose keys are the 128 bits GTS ids, i.e. classId and labelsId.
+ *
+ * Keys are stored as primitive longs in a flat array, so a lookup does not allocate
+ * and an entry costs around a third of a HashMap entry keyed by a BigInteger.
+ * Collisions are resolved by linear probing and removals shift the following entries
+ * back, so there are no tombstones.
+ *
+ * When built with a maximum size, the map keeps its entries in access order and evicts
+ * the least recently accessed entry once the maximum size is exceeded, like a LinkedHashMap
+ * in access order would.
+ *
+ * This class is not thread safe, see ConcurrentGTSIdMap.
+ */
+public class GTSIdMap<V> {
+
+  private static final int MIN_CAPACITY = 16;
+
+  /**
+   * classId/labelsId pairs, the key of slot i is at 2*i and 2*i+1
+   */
+  private long[] ids;
+  private Object[] values;
+  private boolean[] used;
+
+  /**
+   * Links of the access ordered list of slots, null if the map is not bounded
+   */
+  private int[] before;
+  private int[] after;
+  private int head = -1;
+  private int tail = -1;
+
+  private int mask;
+  private int threshold;
+  private int size = 0;
+
+  /**
+   * Maximum number of entries, 0 if the map is not bounded
+   */
+  private final int maxSize;
+
+  public GTSIdMap() {
+    this(0);
+  }
+
+  /**
+   * @param maxSize Maximum number of entries, the least recently accessed entries are evicted beyond that. Use 0 for an unbounded map.
+   */
+  public GTSIdMap(int maxSize) {
+    if (maxSize < 0) {
+      throw new IllegalArgumentException("Invalid maximum size " + maxSize + ".");
+    }
+    this.maxSize = maxSize;
+    allocate(MIN_CAPACITY);
+  }
+
+  static int hash(long classId, long labelsId) {
+    // Ids are SipHash values but may be anything in tests, so mix them anyway
+    long h = classId * 0x9E3779B97F4A7C15L + labelsId;
+    h ^= h >>> 32;
+    h *= 0xD6E8FEB86659FD93L;
+    h ^= h >>> 32;
+    return (int) h;
+  }
+
+  private void allocate(int capacity) {
+    this.ids = new long[capacity << 1];
+    this.values = new Object[capacity];
+    this.used = new boolean[capacity];
+    if (this.maxSize > 0) {
+      this.before = new int[capacity];
+      this.after = new int[capacity];
+    }
+    this.mask = capacity - 1;
+    this.threshold = (int) (capacity * 0.75F);
+  }
+
+  private int find(long classId, long labelsId) {
+    int idx = hash(classId, labelsId) & this.mask;
+
+    while (this.used[idx]) {
+      if (classId == this.ids[idx << 1] && labelsId == this.ids[(idx << 1) + 1]) {
+        return idx;
+      }
+      idx = (idx + 1) & this.mask;
+    }
+
+    return -1;
+  }
+
+  public V get(long classId, long labelsId) {
+    int idx = find(classId, labelsId);
+
+    if (idx < 0) {
+      return null;
+    }
+
+    touch(idx);
+
+    return (V) this.values[idx];
+  }
+
+  /**
+   * @return the value associated with the id, 'defaultValue' if the id is not in the map
+   */
+  public V getOrDefault(long classId, long labelsId, V defaultValue) {
+    int idx = find(classId, labelsId);
+
+    if (idx < 0) {
+      return defaultValue;
+    }
+
+    touch(idx);
+
+    return (V) this.values[idx];
+  }
+
+  /**
+   * Check if an id is in the map, this does not count as an access.
+   */
+  public boolean containsKey(long classId, long labelsId) {
+    return find(classId, labelsId) >= 0;
+  }
+
+  /**
+   * @return the previous value associated with the id, null if there was none
+   */
+  public V put(long classId, long labelsId, V value) {
+    int idx = find(classId, labelsId);
+
+    if (idx >= 0) {
+      Object previous = this.values[idx];
+      this.values[idx] = value;
+      touch(idx);
+      return (V) previous;
+    }
+
+    if (this.size >= this.threshold) {
+      rehash(this.used.length << 1);
+    }
+
+    insert(classId, labelsId, value);
+
+    if (this.maxSize > 0 && this.size > this.maxSize) {
+      delete(this.head);
+    }
+
+    return null;
+  }
+
+  /**
+   * @return the value associated with the removed id, null if the id was not in the map
+   */
+  public V remove(long classId, long labelsId) {
+    int idx = find(classId, labelsId);
+
+    if (idx < 0) {
+      return null;
+    }
+
+    return delete(idx);
+  }
+
+  public int size() {
+    return this.size;
+  }
+
+  public boolean isEmpty() {
+    return 0 == this.size;
+  }
+
+  public void clear() {
+    Arrays.fill(this.used, false);
+    Arrays.fill(this.values, null);
+    this.head = -1;
+    this.tail = -1;
+    this.size = 0;
+  }
+
+  /**
+   * @return the ids in the map as classId/labelsId pairs
+   */
+  public long[] ids() {
+    long[] ids = new long[this.size << 1];
+    fill(ids, 0);
+    return ids;
+  }
+
+  /**
+   * Copy the ids in the map as classId/labelsId pairs
+   *
+   * @return the offset following the last copied id
+   */
+  int fill(long[] ids, int offset) {
+    for (int i = 0; i < this.used.length; i++) {
+      if (this.used[i]) {
+        ids[offset++] = this.ids[i << 1];
+        ids[offset++] = this.ids[(i << 1) + 1];
+      }
+    }
+    return offset;
+  }
+
+  /**
+   * Store an id known not to be in the map, there MUST be a free slot.
+   */
+  private void insert(long classId, long labelsId, Object value) {
+    int idx = hash(classId, labelsId) & this.mask;
+
+    while (this.used[idx]) {
+      idx = (idx + 1) & this.mask;
+    }
+
+    this.used[idx] = true;
+    this.ids[idx << 1] = classId;
+    this.ids[(idx << 1) + 1] = labelsId;
+    this.values[idx] = value;
+    this.size++;
+
+    if (null != this.before) {
+      link(idx);
+    }
+  }
+
+  private V delete(int idx) {
+    Object value = this.values[idx];
+
+    if (null != this.before) {
+      unlink(idx);
+    }
+
+    this.size--;
+
+    //
+    // Shift back the entries following the freed slot which are not at their ideal slot
+    //
+
+    int hole = idx;
+    int j = idx;
+
+    while (true) {
+      j = (j + 1) & this.mask;
+
+      if (!this.used[j]) {
+        break;
+      }
+
+      int ideal = hash(this.ids[j << 1], this.ids[(j << 1) + 1]) & this.mask;
+
+      // The entry can fill the hole if its ideal slot is not between the hole (excluded) and its current slot
+      if (((j - ideal) & this.mask) >= ((j - hole) & this.mask)) {
+        move(j, hole);
+        hole = j;
+      }
+    }
+
+    this.used[hole] = false;
+    this.values[hole] = null;
+
+    return (V) value;
+  }
+
+  private void move(int from, int to) {
+    this.used[to] = true;
+    this.ids[to << 1] = this.ids[from << 1];
+    this.ids[(to << 1) + 1] = this.ids[(from << 1) + 1];
+    this.values[to] = this.values[from];
+
+    if (null != this.before) {
+      int b = this.before[from];
+      int a = this.after[from];
+      this.before[to] = b;
+      this.after[to] = a;
+      if (b >= 0) {
+        this.after[b] = to;
+      } else {
+        this.head = to;
+      }
+      if (a >= 0) {
+        this.before[a] = to;
+      } else {
+        this.tail = to;
+      }
+    }
+  }
+
+  private void rehash(int capacity) {
+    long[] oldids = this.ids;
+    Object[] oldvalues = this.values;
+    boolean[] oldused = this.used;
+    int[] oldafter = this.after;
+    int oldhead = this.head;
+
+    allocate(capacity);
+    this.size = 0;
+    this.head = -1;
+    this.tail = -1;
+
+    if (null != oldafter) {
+      // Re-insert in access order so the order is preserved
+      for (int i = oldhead; i >= 0; i = oldafter[i]) {
+        insert(oldids[i << 1], oldids[(i << 1) + 1], oldvalues[i]);
+      }
+    } else {
+      for (int i = 0; i < oldused.length; i++) {
+        if (oldused[i]) {
+          insert(oldids[i << 1], oldids[(i << 1) + 1], oldvalues[i]);
+        }
+      }
+    }
+  }
+
+  private void link(int idx) {
+    this.before[idx] = this.tail;
+    this.after[idx] = -1;
+    if (this.tail >= 0) {
+      this.after[this.tail] = idx;
+    } else {
+      this.head = idx;
+    }
+    this.tail = idx;
+  }
+
+  private void unlink(int idx) {
+    int b = this.before[idx];
+    int a = this.after[idx];
+    if (b >= 0) {
+      this.after[b] = a;
+    } else {
+      this.head = a;
+    }
+    if (a >= 0) {
+      this.before[a] = b;
+    } else {
+      this.tail = b;
+    }
+  }
+
+  /**
+   * Move an entry to the most recently accessed end of the list
+   */
+  private void touch(int idx) {
+    if (null != this.before && this.tail != idx) {
+      unlink(idx);
+      link(idx);
+    }
+  }
+}
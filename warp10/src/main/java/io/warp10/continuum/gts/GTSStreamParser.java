@@ -0,0 +1,745 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.gts;
+
+import io.warp10.WarpURLDecoder;
+import io.warp10.continuum.MetadataUtils;
+import io.warp10.continuum.TimeSource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.geoxp.GeoXPLib;
+
+/**
+ * Parser for the input format of /update which works directly on the bytes of an InputStream.
+ *
+ * Lines are read in a reusable buffer, no String is created for the line itself. The class
+ * and labels of the most recently seen series are kept in a small LRU cache keyed by their raw
+ * bytes, so repeated series do not need to be decoded and hashed again.
+ *
+ * The semantics are those of {@link GTSHelper#parse(GTSEncoder, String, Map, Long, long, AtomicBoolean, Long, Long, AtomicLong, boolean, long)},
+ * except that the encoders created by this parser have their class and labels Ids set when hash keys are provided.
+ *
+ * Instances are not thread safe and are meant to be used for a single input stream.
+ */
+public class GTSStreamParser {
+
+  private static final int DEFAULT_BUFFER_SIZE = 65536;
+
+  public static final int DEFAULT_CACHE_SIZE = 1024;
+
+  /**
+   * Key used to identify a series by the raw bytes of its class and labels, 'class{labels}'
+   */
+  private static final class SeriesKey {
+    private byte[] buf;
+    private int offset;
+    private int len;
+    private int hash;
+
+    private SeriesKey() {}
+
+    private SeriesKey(byte[] buf, int offset, int len) {
+      set(buf, offset, len);
+    }
+
+    private void set(byte[] buf, int offset, int len) {
+      this.buf = buf;
+      this.offset = offset;
+      this.len = len;
+
+      int h = 1;
+      for (int i = offset; i < offset + len; i++) {
+        h = 31 * h + buf[i];
+      }
+      this.hash = h;
+    }
+
+    private SeriesKey copy() {
+      return new SeriesKey(Arrays.copyOfRange(buf, offset, offset + len), 0, len);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof SeriesKey)) {
+        return false;
+      }
+
+      SeriesKey other = (SeriesKey) o;
+
+      if (other.len != len || other.hash != hash) {
+        return false;
+      }
+
+      for (int i = 0; i < len; i++) {
+        if (buf[offset + i] != other.buf[other.offset + i]) {
+          return false;
+        }
+      }
+
+      return true;
+    }
+  }
+
+  private static final class Series {
+    private final SeriesKey key;
+    private final String name;
+    /**
+     * Labels of the series including the extra labels, this map is never handed out
+     */
+    private final Map<String,String> labels;
+    private final long classId;
+    private final long labelsId;
+
+    private Series(SeriesKey key, String name, Map<String,String> labels, long classId, long labelsId) {
+      this.key = key;
+      this.name = name;
+      this.labels = labels;
+      this.classId = classId;
+      this.labelsId = labelsId;
+    }
+  }
+
+  private final InputStream in;
+  private final Charset charset;
+
+  private byte[] buf = new byte[DEFAULT_BUFFER_SIZE];
+
+  /**
+   * Number of valid bytes in 'buf'
+   */
+  private int limit = 0;
+
+  /**
+   * Position of the next byte to consider in 'buf'
+   */
+  private int pos = 0;
+
+  private boolean eof = false;
+
+  /**
+   * Bounds of the current line, 'end' is excluded
+   */
+  private int start = 0;
+  private int end = 0;
+
+  private final Map<String,String> extraLabels;
+  private final long maxValueSize;
+
+  private final long[] classKey;
+  private final long[] labelsKey;
+
+  private final Map<SeriesKey,Series> cache;
+  private final SeriesKey probe = new SeriesKey();
+
+  /**
+   * Raw class and labels of the series last returned by parse and the labels of its encoder
+   */
+  private SeriesKey lastKey = null;
+  private Map<String,String> lastLabels = null;
+
+  /**
+   * @param in Stream to read lines from
+   * @param charset Charset of the stream, MUST be ASCII compatible
+   * @param extraLabels Labels to add to each series, labels with a null value are removed
+   * @param maxValueSize Maximum size of STRING and BYTES values
+   * @param classKey SipHash key for class Ids, if null Ids are not computed
+   * @param labelsKey SipHash key for labels Ids
+   * @param cacheSize Number of series to keep in the cache
+   */
+  public GTSStreamParser(InputStream in, Charset charset, Map<String,String> extraLabels, long maxValueSize, long[] classKey, long[] labelsKey, final int cacheSize) {
+    this.in = in;
+    this.charset = charset;
+    this.extraLabels = extraLabels;
+    this.maxValueSize = maxValueSize;
+    this.classKey = classKey;
+    this.labelsKey = labelsKey;
+
+    this.cache = new LinkedHashMap<SeriesKey,Series>(16, 0.75F, true) {
+      @Override
+      protected boolean removeEldestEntry(Entry<SeriesKey,Series> eldest) {
+        return this.size() > cacheSize;
+      }
+    };
+  }
+
+  /**
+   * Check if a charset can be handled by this parser, i.e. if it encodes
+   * the separators of the input format as single ASCII bytes.
+   */
+  public static boolean isSupported(Charset charset) {
+    return StandardCharsets.UTF_8.equals(charset) || StandardCharsets.ISO_8859_1.equals(charset) || StandardCharsets.US_ASCII.equals(charset);
+  }
+
+  /**
+   * Advance to the next line which is neither empty nor a comment. Lines are trimmed
+   * the same way String.trim does.
+   *
+   * @return false if the end of the stream was reached
+   */
+  public boolean next() throws IOException {
+    while (true) {
+      int eol = -1;
+
+      for (int i = pos; i < limit; i++) {
+        byte b = buf[i];
+        if ('\n' == b || '\r' == b) {
+          eol = i;
+          break;
+        }
+      }
+
+      if (-1 == eol) {
+        if (eof) {
+          if (pos == limit) {
+            return false;
+          }
+          eol = limit;
+        } else {
+          fill();
+          continue;
+        }
+      }
+
+      int s = pos;
+      int e = eol;
+
+      pos = eol < limit ? eol + 1 : limit;
+
+      while (s < e && (buf[s] & 0xFF) <= ' ') {
+        s++;
+      }
+      while (e > s && (buf[e - 1] & 0xFF) <= ' ') {
+        e--;
+      }
+
+      if (s == e || '#' == buf[s]) {
+        continue;
+      }
+
+      this.start = s;
+      this.end = e;
+
+      return true;
+    }
+  }
+
+  /**
+   * Read more bytes, compacting or growing the buffer as needed
+   */
+  private void fill() throws IOException {
+    if (pos > 0) {
+      System.arraycopy(buf, pos, buf, 0, limit - pos);
+      limit -= pos;
+      start -= pos;
+      end -= pos;
+      pos = 0;
+    }
+
+    if (limit == buf.length) {
+      buf = Arrays.copyOf(buf, buf.length << 1);
+    }
+
+    int len = in.read(buf, limit, buf.length - limit);
+
+    if (len < 0) {
+      eof = true;
+    } else {
+      limit += len;
+    }
+  }
+
+  public void close() throws IOException {
+    in.close();
+  }
+
+  /**
+   * Return the current line as a String
+   */
+  public String line() {
+    return new String(buf, start, end - start, charset);
+  }
+
+  /**
+   * Return true if the current line is a continuation line, i.e. starts with '='
+   */
+  public boolean isContinuation() {
+    return '=' == buf[start];
+  }
+
+  private int indexOf(byte b, int from) {
+    for (int i = from; i < end; i++) {
+      if (b == buf[i]) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private String string(int from, int to) {
+    return new String(buf, from, to - from, charset);
+  }
+
+  /**
+   * Parse a long, delegating to Long.parseLong for anything but plain decimal values
+   */
+  private long parseLong(int from, int to) {
+    int i = from;
+
+    if (to - i > 18 || i == to) {
+      return Long.parseLong(string(from, to));
+    }
+
+    boolean negative = false;
+
+    if ('-' == buf[i] || '+' == buf[i]) {
+      negative = '-' == buf[i];
+      i++;
+    }
+
+    if (i == to) {
+      return Long.parseLong(string(from, to));
+    }
+
+    long value = 0L;
+
+    for (; i < to; i++) {
+      int digit = buf[i] - '0';
+      if (digit < 0 || digit > 9) {
+        return Long.parseLong(string(from, to));
+      }
+      value = value * 10L + digit;
+    }
+
+    return negative ? -value : value;
+  }
+
+  /**
+   * Parse a value, only the common LONG and BOOLEAN cases are handled without going through a String
+   */
+  private Object parseValue(int from) throws ParseException {
+    int len = end - from;
+
+    byte first = buf[from];
+
+    if (1 == len) {
+      if ('T' == first || 't' == first) {
+        return Boolean.TRUE;
+      } else if ('F' == first || 'f' == first) {
+        return Boolean.FALSE;
+      }
+    }
+
+    int i = from;
+
+    if ('-' == first || '+' == first) {
+      i++;
+    }
+
+    if (i < end && end - i <= 18) {
+      long value = 0L;
+      boolean digits = true;
+
+      for (int j = i; j < end; j++) {
+        int digit = buf[j] - '0';
+        if (digit < 0 || digit > 9) {
+          digits = false;
+          break;
+        }
+        value = value * 10L + digit;
+      }
+
+      if (digits) {
+        return '-' == first ? -value : value;
+      }
+    }
+
+    return GTSHelper.parseValue(string(from, end));
+  }
+
+  /**
+   * Parse the current line.
+   *
+   * @see GTSHelper#parse(GTSEncoder, String, Map, Long, long, AtomicBoolean, Long, Long, AtomicLong, boolean, long)
+   */
+  public GTSEncoder parse(GTSEncoder encoder, Long now, AtomicBoolean parsedAttributes, Long maxpast, Long maxfuture, AtomicLong ignoredCount, boolean deltaAttributes, long timeshift) throws ParseException, IOException {
+
+    // Offsets in ParseExceptions are relative to the start of the line
+    final int s = this.start;
+
+    int tsoffset = s;
+
+    if ('=' == buf[s]) {
+      if (null == encoder) {
+        throw new ParseException("Invalid continuation.", 0);
+      }
+      tsoffset++;
+    }
+
+    int idx = indexOf((byte) '/', tsoffset);
+
+    if (-1 == idx) {
+      throw new ParseException("Missing timestamp separator.", tsoffset - s);
+    }
+
+    long timestamp;
+
+    try {
+      if (tsoffset == idx) {
+        // No timestamp provided, use 'now'
+        timestamp = null != now ? (long) now : TimeSource.getTime();
+      } else if ('T' == buf[tsoffset]) {
+        timestamp = (null != now ? (long) now : TimeSource.getTime()) + parseLong(tsoffset + 1, idx);
+      } else {
+        timestamp = parseLong(tsoffset, idx);
+      }
+    } catch (NumberFormatException nfe) {
+      throw new ParseException("Invalid timestamp.", tsoffset - s);
+    }
+
+    timestamp += timeshift;
+
+    boolean ignored = false;
+
+    if (null != maxpast && timestamp < maxpast) {
+      if (null == ignoredCount) {
+        throw new ParseException("Timestamp " + timestamp + " is too far in the past.", idx - s);
+      } else {
+        ignored = true;
+      }
+    } else if (null != maxfuture && timestamp > maxfuture) {
+      if (null == ignoredCount) {
+        throw new ParseException("Timestamp " + timestamp + " is too far in the future.", idx - s);
+      } else {
+        ignored = true;
+      }
+    }
+
+    // Advance past the '/'
+    idx++;
+
+    int idx2 = indexOf((byte) '/', idx);
+
+    if (-1 == idx2) {
+      throw new ParseException("Missing location/elevation separator.", idx - s);
+    }
+
+    long location = GeoTimeSerie.NO_LOCATION;
+
+    if (idx != idx2) {
+      // Locations are rare enough to go through a String
+      String latlon = string(idx, idx2);
+      int colon = latlon.indexOf(':');
+
+      try {
+        if (-1 != colon) {
+          location = GeoXPLib.toGeoXPPoint(Double.parseDouble(latlon.substring(0, colon)), Double.parseDouble(latlon.substring(colon + 1)));
+        } else {
+          location = Long.parseLong(latlon);
+        }
+      } catch (NumberFormatException nfe) {
+        throw new ParseException("Invalid location: '" + latlon +"'.", idx - s);
+      }
+    }
+
+    // Advance past the second '/'
+    idx = idx2 + 1;
+
+    idx2 = indexOf((byte) ' ', idx);
+
+    if (-1 == idx2) {
+      if (tsoffset == s) {
+        throw new ParseException("Missing GTS name, labels and value.", idx - s);
+      } else {
+        throw new ParseException("Missing value.", idx - s);
+      }
+    }
+
+    long elevation = GeoTimeSerie.NO_ELEVATION;
+
+    if (idx != idx2) {
+      try {
+        elevation = parseLong(idx, idx2);
+      } catch (NumberFormatException nfe) {
+        throw new ParseException("Invalid elevation: '" + string(idx, idx2) + "'.", idx - s);
+      }
+    }
+
+    // Advance past the ' '
+    idx = idx2 + 1;
+
+    while (idx < end && ' ' == buf[idx]) {
+      idx++;
+    }
+
+    if (tsoffset > s) {
+      idx2 = -1;
+    } else {
+      idx2 = indexOf((byte) '{', idx);
+    }
+
+    String name;
+    Map<String,String> labels;
+    Map<String,String> attributes = null;
+    Series series = null;
+    boolean reuseEncoder = false;
+
+    if (-1 == idx2) {
+      if (idx >= end) {
+        throw new ParseException("Missing value", idx - s);
+      }
+      if (null == encoder) {
+        throw new ParseException("Missing or invalid GTS name and labels.", idx - s);
+      }
+      name = encoder.getMetadata().getName();
+      labels = encoder.getMetadata().getLabels();
+      reuseEncoder = true;
+    } else {
+      int nameStart = idx;
+      int labelsStart = idx2 + 1;
+
+      idx2 = indexOf((byte) '}', labelsStart);
+
+      if (-1 == idx2) {
+        throw new ParseException("Missing end of labels '}'.", end - 1 - s);
+      }
+
+      probe.set(buf, nameStart, idx2 + 1 - nameStart);
+
+      if (null != encoder && null != lastKey && encoder.getMetadata().getLabels() == lastLabels && probe.equals(lastKey)) {
+        // Same series as the previous line
+        name = encoder.getMetadata().getName();
+        labels = lastLabels;
+        reuseEncoder = true;
+      } else {
+        series = cache.get(probe);
+
+        if (null == series) {
+          series = series(probe.copy(), nameStart, labelsStart, idx2);
+          cache.put(series.key, series);
+        }
+
+        name = series.name;
+        labels = series.labels;
+      }
+
+      idx = idx2 + 1;
+
+      if (idx < end && '{' == buf[idx]) {
+        idx++;
+        int attrstart = idx;
+        while (idx < end && '}' != buf[idx]) {
+          idx++;
+        }
+        if (null != parsedAttributes) {
+          if (idx >= end) {
+            throw new ParseException("Missing end of attributes '}'.", end - 1 - s);
+          }
+          try {
+            attributes = GTSHelper.parseLabels(string(attrstart, idx));
+          } catch (ParseException pe) {
+            ParseException newpe = new ParseException("Invalid attribute definition.", pe.getErrorOffset() + idx - s);
+            newpe.initCause(pe);
+            throw newpe;
+          }
+          parsedAttributes.set(true);
+        }
+        idx++;
+      }
+
+      while (idx < end && ' ' == buf[idx]) {
+        idx++;
+      }
+
+      if (idx >= end) {
+        throw new ParseException("Missing value.", end - 1 - s);
+      }
+    }
+
+    //
+    // Extract value
+    //
+
+    Object value;
+
+    try {
+      value = parseValue(idx);
+    } catch (ParseException pe) {
+      ParseException newpe = new ParseException(pe.getMessage(), idx - s + pe.getErrorOffset());
+      newpe.initCause(pe.getCause());
+      throw newpe;
+    }
+
+    if (null == value) {
+      throw new ParseException("Unable to parse value '" + string(idx, end) + "'", idx - s);
+    }
+
+    if ((value instanceof String && value.toString().length() > maxValueSize) || (value instanceof byte[] && ((byte[]) value).length > maxValueSize)) {
+      throw new ParseException("Value too large for GTS " + (null != encoder ? GTSHelper.buildSelector(encoder.getMetadata(), false) : ""), idx - s);
+    }
+
+    if (!reuseEncoder) {
+      if (null == encoder || !name.equals(encoder.getName()) || !labels.equals(encoder.getMetadata().getLabels())) {
+        encoder = new GTSEncoder(0L);
+        encoder.setName(name);
+        // The cached labels are copied as the encoder metadata may be modified downstream
+        encoder.getMetadata().setLabels(new HashMap<String,String>(labels));
+        encoder.setClassId(series.classId);
+        encoder.setLabelsId(series.labelsId);
+      }
+      lastKey = null != series ? series.key : lastKey;
+      lastLabels = encoder.getMetadata().getLabels();
+    }
+
+    if (null != attributes) {
+      if (!deltaAttributes) {
+        encoder.getMetadata().setAttributes(attributes);
+      } else {
+        if (0 == encoder.getMetadata().getAttributesSize()) {
+          encoder.getMetadata().setAttributes(new HashMap<String,String>());
+        }
+        for (Entry<String,String> attr: attributes.entrySet()) {
+          if ("".equals(attr.getValue())) {
+            encoder.getMetadata().getAttributes().remove(attr.getKey());
+          } else {
+            encoder.getMetadata().putToAttributes(attr.getKey(), attr.getValue());
+          }
+        }
+      }
+    }
+
+    if (!ignored) {
+      encoder.addValue(timestamp, location, elevation, value);
+    } else {
+      ignoredCount.addAndGet(1);
+    }
+
+    // Check labels/attributes sizes, subtract 6 to account for '// {} '
+    // Subtract value length
+    if (idx - s - 6 > MetadataUtils.SIZE_THRESHOLD && !MetadataUtils.validateMetadata(encoder.getMetadata())) {
+      throw new ParseException("Invalid or too large metadata", 0);
+    }
+
+    return encoder;
+  }
+
+  /**
+   * Decode the class and labels of a series, apply the extra labels and compute the Ids
+   */
+  private Series series(SeriesKey key, int nameStart, int labelsStart, int labelsEnd) throws ParseException, IOException {
+    String name = WarpURLDecoder.decode(string(nameStart, labelsStart - 1), StandardCharsets.UTF_8);
+
+    Map<String,String> labels = labels(labelsStart, labelsEnd);
+
+    if (null == labels) {
+      try {
+        labels = GTSHelper.parseLabels(null != extraLabels ? extraLabels.size() : 0, string(labelsStart, labelsEnd));
+      } catch (ParseException pe) {
+        ParseException newpe = new ParseException("Invalid label definition.", pe.getErrorOffset() + labelsStart - start);
+        newpe.initCause(pe);
+        throw newpe;
+      }
+    }
+
+    if (null != extraLabels) {
+      labels.putAll(extraLabels);
+
+      // Remove labels with null values
+      if (extraLabels.containsValue(null)) {
+        for (Entry<String,String> entry: extraLabels.entrySet()) {
+          if (null == entry.getValue()) {
+            labels.remove(entry.getKey());
+          }
+        }
+      }
+    }
+
+    long classId = 0L;
+    long labelsId = 0L;
+
+    if (null != classKey && null != labelsKey) {
+      classId = GTSHelper.classId(classKey, name);
+      labelsId = GTSHelper.labelsId(labelsKey, labels);
+    }
+
+    return new Series(key, name, labels, classId, labelsId);
+  }
+
+  /**
+   * Parse labels which need neither percent decoding nor trimming, i.e. the common case.
+   *
+   * @return the parsed labels or null if the labels should be parsed by GTSHelper.parseLabels
+   */
+  private Map<String,String> labels(int from, int to) {
+    int count = 0;
+
+    for (int i = from; i < to; i++) {
+      byte b = buf[i];
+      if ('%' == b || '~' == b || (b & 0xFF) <= ' ') {
+        return null;
+      } else if ('=' == b) {
+        count++;
+      }
+    }
+
+    Map<String,String> labels = new HashMap<String,String>(count + (null != extraLabels ? extraLabels.size() : 0));
+
+    int tokenStart = from;
+
+    while (tokenStart < to) {
+      int tokenEnd = tokenStart;
+      int eq = -1;
+
+      while (tokenEnd < to && ',' != buf[tokenEnd]) {
+        if ('=' == buf[tokenEnd]) {
+          if (-1 != eq) {
+            return null;
+          }
+          eq = tokenEnd;
+        }
+        tokenEnd++;
+      }
+
+      if (tokenEnd > tokenStart) {
+        if (-1 == eq || eq == tokenStart) {
+          return null;
+        }
+        labels.put(string(tokenStart, eq), string(eq + 1, tokenEnd));
+      }
+
+      tokenStart = tokenEnd + 1;
+    }
+
+    return labels;
+  }
+}
@@ -16,9 +16,11 @@
 package io.warp10.continuum.ingress;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.math.BigInteger;
@@ -28,13 +30,16 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.LockSupport;
@@ -153,6 +158,35 @@ public class DatalogForwarder extends Thread {
    */
   private final boolean deleteIgnored;
 
+  /**
+   * Datalog segments to tail, null when forwarding datalog files
+   */
+  private final DatalogSegments segments;
+
+  /**
+   * Maximum number of segment records read at once
+   */
+  private final int batchsize;
+
+  /**
+   * Positions of the segment records dispatched to the workers but not yet forwarded
+   */
+  private final ConcurrentSkipListSet<Long> pending = new ConcurrentSkipListSet<Long>();
+
+  /**
+   * File where the position up to which the segments were forwarded is stored
+   */
+  private final File ackFile;
+
+  /**
+   * Position of the next segment record to read
+   */
+  private long position;
+
+  private static final String DEFAULT_BATCHSIZE = "1024";
+
+  public static final String ACK_SUFFIX = ".ack";
+
   public static enum DatalogActionType {
     UPDATE,
     DELETE,
@@ -163,6 +197,16 @@ public class DatalogForwarder extends Thread {
     private DatalogRequest request;
     private String encodedRequest;
     private File file;
+    private byte[] content;
+    private long position;
+
+    private BufferedReader reader() throws IOException {
+      if (null != this.file) {
+        return new BufferedReader(new FileReader(this.file));
+      } else {
+        return new BufferedReader(new InputStreamReader(new ByteArrayInputStream(this.content), StandardCharsets.UTF_8));
+      }
+    }
   }
 
   private static final class DatalogForwarderWorker extends Thread {
@@ -224,6 +268,14 @@ public class DatalogForwarder extends Thread {
           // Move the file to our target directory and remove the action from the queue as we forwarded it successfully
           //
 
+          if (null == action.file) {
+            // Segment record, the forwarder will acknowledge its position
+            queue.poll();
+            forwarder.pending.remove(action.position);
+            processed = true;
+            continue;
+          }
+
           if (this.forwarder.deleteForwarded) {
             if (!action.file.delete()) {
               continue;
@@ -258,7 +310,7 @@ public class DatalogForwarder extends Thread {
       HttpURLConnection conn = null;
 
       try {
-        br = new BufferedReader(new FileReader(action.file));
+        br = action.reader();
 
         conn = (HttpURLConnection) forwarder.updateUrl.openConnection();
 
@@ -507,7 +559,7 @@ public class DatalogForwarder extends Thread {
       HttpURLConnection conn = null;
 
       try {
-        br = new BufferedReader(new FileReader(action.file));
+        br = action.reader();
 
         conn = (HttpURLConnection) forwarder.metaUrl.openConnection();
 
@@ -620,8 +672,16 @@ public class DatalogForwarder extends Thread {
   }
 
   public DatalogForwarder(String name, KeyStore keystore, Properties properties) throws Exception {
+    this(name, keystore, properties, null);
+  }
+
+  /**
+   * @param segments Datalog segments to forward, or null to forward the datalog files from the source directory
+   */
+  public DatalogForwarder(String name, KeyStore keystore, Properties properties, DatalogSegments segments) throws Exception {
 
     this.name = name;
+    this.segments = segments;
 
     String suffix = "";
 
@@ -632,10 +692,14 @@ public class DatalogForwarder extends Thread {
       LOG.info("Initializing datalog forwarder.");
     }
 
-    this.rootdir = new File(properties.getProperty(Configuration.DATALOG_FORWARDER_SRCDIR + suffix)).toPath().toRealPath();
+    if (null == segments) {
+      this.rootdir = new File(properties.getProperty(Configuration.DATALOG_FORWARDER_SRCDIR + suffix)).toPath().toRealPath();
 
-    if (!this.rootdir.toFile().isDirectory()) {
-      throw new RuntimeException("Invalid datalog forwarder source directory '" + this.rootdir + "'.");
+      if (!this.rootdir.toFile().isDirectory()) {
+        throw new RuntimeException("Invalid datalog forwarder source directory '" + this.rootdir + "'.");
+      }
+    } else {
+      this.rootdir = null;
     }
 
     if (properties.containsKey(Configuration.DATALOG_PSK)) {
@@ -671,6 +735,31 @@ public class DatalogForwarder extends Thread {
       throw new RuntimeException("Invalid datalog forwarder target directory '" + this.targetDir + "'.");
     }
 
+    //
+    // When forwarding segments, the target directory holds the position up to which the segments were forwarded
+    //
+
+    if (null != segments) {
+      this.ackFile = new File(this.targetDir, (null == name ? "datalog" : name) + ACK_SUFFIX);
+      this.batchsize = Integer.parseInt(properties.getProperty(Configuration.DATALOG_FORWARDER_BATCHSIZE + suffix, DEFAULT_BATCHSIZE));
+
+      if (this.batchsize < 1) {
+        throw new RuntimeException("Invalid datalog forwarder batch size.");
+      }
+
+      if (this.ackFile.exists()) {
+        this.position = Long.parseLong(new String(Files.readAllBytes(this.ackFile.toPath()), StandardCharsets.US_ASCII).trim(), 16);
+      } else {
+        this.position = segments.getFirstPosition();
+      }
+
+      // Register with the segments so the ones we have not forwarded are retained
+      segments.register(getConsumer(), this.position);
+    } else {
+      this.ackFile = null;
+      this.batchsize = 0;
+    }
+
     this.deleteForwarded = "true".equals(properties.getProperty(Configuration.DATALOG_FORWARDER_DELETEFORWARDED + suffix));
     this.deleteIgnored = "true".equals(properties.getProperty(Configuration.DATALOG_FORWARDER_DELETEIGNORED + suffix));
 
@@ -739,11 +828,205 @@ public class DatalogForwarder extends Thread {
       this.setName("[Datalog Forwarder '" + name + "']");
     }
     this.setDaemon(true);
-    this.start();
+
+    // Forwarders of segments are started once all of them are registered, see Warp
+    if (null == segments) {
+      this.start();
+    }
+  }
+
+  private String getConsumer() {
+    return null == this.name ? "" : this.name;
+  }
+
+  /**
+   * Decode a DatalogRequest line
+   *
+   * @return the decoded request or null if it could not be decoded
+   */
+  private DatalogRequest decode(String encoded) {
+    byte[] bytes = encoded.getBytes(StandardCharsets.US_ASCII);
+    byte[] data = null;
+
+    data = OrderPreservingBase64.decode(bytes);
+
+    if (null != this.datalogPSK) {
+      data = CryptoUtils.unwrap(this.datalogPSK, data);
+    }
+
+    TDeserializer deser = new TDeserializer(new TCompactProtocol.Factory());
+
+    DatalogRequest dr = new DatalogRequest();
+
+    try {
+      deser.deserialize(dr, data);
+    } catch (TException te) {
+      LOG.error("Error while deserializing Datalog Request", te);
+      return null;
+    }
+
+    return dr;
+  }
+
+  /**
+   * Check if the id of a request should be ignored, updating the metrics if so
+   */
+  private boolean isIgnored(String id) {
+    String decodedId = new String(OrderPreservingBase64.decode(id.getBytes(StandardCharsets.US_ASCII)), StandardCharsets.UTF_8);
+
+    if (!this.ignoredIds.contains(decodedId)) {
+      return false;
+    }
+
+    Map<String,String> labels = new HashMap<String,String>();
+
+    if (null != name) {
+      labels.put(SensisionConstants.SENSISION_LABEL_FORWARDER, name);
+    }
+
+    labels.put(SensisionConstants.SENSISION_LABEL_ID, decodedId);
+    labels.put(SensisionConstants.SENSISION_LABEL_TYPE, DatalogActionType.UPDATE.name());
+    Sensision.update(SensisionConstants.CLASS_WARP_DATALOG_FORWARDER_REQUESTS_IGNORED, labels, 1);
+
+    return true;
+  }
+
+  /**
+   * Determine the queue of a request according to the producer/app/owner of its token
+   *
+   * @return the index of the queue or -1 if the token is invalid
+   */
+  private int getQueue(DatalogRequest dr) {
+    WriteToken wtoken;
+
+    try {
+      wtoken = Tokens.extractWriteToken(dr.getToken());
+    } catch (WarpScriptException ee) {
+      LOG.error("Encountered error while extracting token.", ee);
+      return -1;
+    }
+
+    String application = wtoken.getAppName();
+    String producer = Tokens.getUUID(wtoken.getProducerId());
+    String owner = Tokens.getUUID(wtoken.getOwnerId());
+
+    String hashkey = producer + "/" + application + "/" + owner;
+
+    return ((hashkey.hashCode() % queues.length) + queues.length) % queues.length;
+  }
+
+  /**
+   * Tail the datalog segments, dispatching batches of records to the workers and
+   * acknowledging the position before which all records were forwarded.
+   */
+  private void forwardSegments() {
+    long acked = this.position;
+
+    while (true) {
+      List<DatalogSegments.Record> records;
+
+      try {
+        records = this.segments.read(this.position, this.batchsize);
+      } catch (IOException ioe) {
+        LOG.error("Error while reading datalog segments.", ioe);
+        LockSupport.parkNanos(1000000000L);
+        continue;
+      }
+
+      // Set when a record could not be dispatched, it is retried after a pause
+      boolean backoff = false;
+
+      for (DatalogSegments.Record record: records) {
+        byte[] content = record.getContent();
+
+        int eol = 0;
+        while (eol < content.length && '\n' != content[eol]) {
+          eol++;
+        }
+
+        String encoded = new String(content, 0, eol, StandardCharsets.US_ASCII).trim();
+
+        if (encoded.length() > 0 && '#' == encoded.charAt(0)) {
+          encoded = encoded.substring(1);
+        }
+
+        DatalogRequest dr = decode(encoded);
+
+        if (null == dr) {
+          // Retrying would fail again, skip the record
+          LOG.error("Skipping undecodable datalog record at position " + Long.toHexString(record.getPosition()) + ".");
+          Map<String,String> labels = new HashMap<String,String>();
+          if (null != name) {
+            labels.put(SensisionConstants.SENSISION_LABEL_FORWARDER, name);
+          }
+          Sensision.update(SensisionConstants.CLASS_WARP_DATALOG_FORWARDER_REQUESTS_INVALID, labels, 1);
+          this.position = record.getNext();
+          continue;
+        }
+
+        if (this.isIgnored(dr.getId())) {
+          this.position = record.getNext();
+          continue;
+        }
+
+        int q = getQueue(dr);
+
+        if (q < 0) {
+          backoff = true;
+          break;
+        }
+
+        DatalogAction action = new DatalogAction();
+        action.request = dr;
+        action.encodedRequest = encoded;
+        action.content = content;
+        action.position = record.getPosition();
+
+        this.pending.add(action.position);
+
+        try {
+          queues[q].put(action);
+        } catch (InterruptedException ie) {
+          this.pending.remove(action.position);
+          backoff = true;
+          break;
+        }
+
+        this.position = record.getNext();
+      }
+
+      //
+      // Acknowledge the position of the oldest record not yet forwarded
+      //
+
+      Long oldest = this.pending.ceiling(Long.MIN_VALUE);
+      long ack = null == oldest ? this.position : Math.min(oldest, this.position);
+
+      if (ack != acked) {
+        try {
+          File tmp = new File(this.ackFile.getAbsolutePath() + ".tmp");
+          Files.write(tmp.toPath(), Long.toHexString(ack).getBytes(StandardCharsets.US_ASCII));
+          Files.move(tmp.toPath(), this.ackFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+          this.segments.acknowledge(getConsumer(), ack);
+          acked = ack;
+        } catch (IOException ioe) {
+          LOG.error("Error while storing datalog forwarder position in '" + this.ackFile + "'.", ioe);
+        }
+      }
+
+      if (backoff || records.size() < this.batchsize) {
+        LockSupport.parkNanos(this.period * 1000000L);
+      }
+    }
   }
 
   @Override
   public void run() {
+    if (null != this.segments) {
+      forwardSegments();
+      return;
+    }
+
     while (true) {
 
       //
@@ -830,23 +1113,9 @@ public class DatalogForwarder extends Thread {
           break;
         }
 
-        byte[] bytes = encoded.getBytes(StandardCharsets.US_ASCII);
-        byte[] data = null;
-
-        data = OrderPreservingBase64.decode(bytes);
-
-        if (null != this.datalogPSK) {
-          data = CryptoUtils.unwrap(this.datalogPSK, data);
-        }
-
-        TDeserializer deser = new TDeserializer(new TCompactProtocol.Factory());
-
-        DatalogRequest dr = new DatalogRequest();
+        DatalogRequest dr = decode(encoded);
 
-        try {
-          deser.deserialize(dr, data);
-        } catch (TException te) {
-          LOG.error("Error while deserializing Datalog Request", te);
+        if (null == dr) {
           break;
         }
 
@@ -871,18 +1140,7 @@ public class DatalogForwarder extends Thread {
         // Check if id should be ignored
         //
 
-        String decodedId = new String(OrderPreservingBase64.decode(id.getBytes(StandardCharsets.US_ASCII)), StandardCharsets.UTF_8);
-        if (this.ignoredIds.contains(decodedId)) {
-          Map<String,String> labels = new HashMap<String,String>();
-
-          if (null != name) {
-            labels.put(SensisionConstants.SENSISION_LABEL_FORWARDER, name);
-          }
-
-          labels.put(SensisionConstants.SENSISION_LABEL_ID, decodedId);
-          labels.put(SensisionConstants.SENSISION_LABEL_TYPE, DatalogActionType.UPDATE.name());
-          Sensision.update(SensisionConstants.CLASS_WARP_DATALOG_FORWARDER_REQUESTS_IGNORED, labels, 1);
-
+        if (this.isIgnored(id)) {
           // File should be ignored, move it directly to the target directory
           if (this.deleteIgnored) {
             action.file.delete();
@@ -896,23 +1154,12 @@ public class DatalogForwarder extends Thread {
         // Dispatch the action to the correct queue according to the producer/app/owner of the token
         //
 
-        WriteToken wtoken;
+        int q = getQueue(dr);
 
-        try {
-          wtoken = Tokens.extractWriteToken(dr.getToken());
-        } catch (WarpScriptException ee) {
-          LOG.error("Encountered error while extracting token.", ee);
+        if (q < 0) {
           break;
         }
 
-        String application = wtoken.getAppName();
-        String producer = Tokens.getUUID(wtoken.getProducerId());
-        String owner = Tokens.getUUID(wtoken.getOwnerId());
-
-        String hashkey = producer + "/" + application + "/" + owner;
-
-        int q = ((hashkey.hashCode() % queues.length) + queues.length) % queues.length;
-
         try {
           queues[q].put(action);
           processing.add(action.file.getName());
@@ -0,0 +1,664 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.ingress;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.warp10.continuum.sensision.SensisionConstants;
+import io.warp10.sensision.Sensision;
+
+/**
+ * Append-only datalog shared by all the ingress threads.
+ *
+ * Each logged request is appended as a record to the current segment file, a new segment
+ * is started once the current one exceeds the configured size. A record is made of the length
+ * of its content, the CRC32 of its content and the content itself, which is the same text a
+ * per request datalog file would contain.
+ *
+ * Records are written through a {@link RecordOutputStream}, content beyond {@link #SPILL_SIZE} bytes is
+ * spilled to a temporary file so large requests are not buffered in memory. A record cannot exceed 2 GB,
+ * a record larger than the segment size is written to a segment of its own.
+ *
+ * When 'sync' is set, appends are group committed: a thread whose record is not yet on disk
+ * calls fsync on behalf of all the records appended so far, so concurrent requests share
+ * a single fsync.
+ *
+ * Positions in the datalog are the segment number in the 32 upper bits and the offset
+ * in the segment in the 32 lower bits. Consumers read records from a position and acknowledge
+ * the position up to which they have processed the datalog, segments are deleted once all
+ * consumers have moved past them.
+ */
+public class DatalogSegments {
+
+  private static final Logger LOG = LoggerFactory.getLogger(DatalogSegments.class);
+
+  public static final String SEGMENT_SUFFIX = ".segment";
+
+  public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024L * 1024L;
+
+  /**
+   * Size of the record header, content length and CRC32
+   */
+  private static final int HEADER_SIZE = 8;
+
+  /**
+   * Maximum size of the content of a record
+   */
+  public static final long MAX_RECORD_SIZE = Integer.MAX_VALUE - HEADER_SIZE;
+
+  /**
+   * Size above which the content of a record being written is spilled to a temporary file
+   */
+  public static final int SPILL_SIZE = 1024 * 1024;
+
+  private static final String SPILL_PREFIX = "record.";
+  private static final String SPILL_SUFFIX = ".spill";
+
+  public static final class Record {
+    private final long position;
+    private final long next;
+    private final byte[] content;
+
+    private Record(long position, long next, byte[] content) {
+      this.position = position;
+      this.next = next;
+      this.content = content;
+    }
+
+    /**
+     * @return the position of this record
+     */
+    public long getPosition() {
+      return this.position;
+    }
+
+    /**
+     * @return the position of the record following this one
+     */
+    public long getNext() {
+      return this.next;
+    }
+
+    public byte[] getContent() {
+      return this.content;
+    }
+  }
+
+  /**
+   * Content of a record being written. The content is kept in memory up to {@link #SPILL_SIZE} bytes
+   * and spilled to a temporary file in the segments directory beyond that. The record is written to
+   * the datalog by {@link DatalogSegments#append(RecordOutputStream)}, a record which is not appended
+   * must be discarded.
+   */
+  public final class RecordOutputStream extends OutputStream {
+    private final CRC32 crc = new CRC32();
+    private long length = 0L;
+
+    private Buffer buffer = new Buffer();
+    private File spill = null;
+    private OutputStream out = this.buffer;
+
+    /**
+     * Error encountered while writing, reported when appending as writers such as PrintWriter swallow errors
+     */
+    private IOException error = null;
+
+    private RecordOutputStream() {
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (null != this.error) {
+        throw this.error;
+      }
+
+      try {
+        if (this.length + len > MAX_RECORD_SIZE) {
+          throw new IOException("Datalog record would exceed " + MAX_RECORD_SIZE + " bytes.");
+        }
+
+        if (null == this.spill && this.length + len > SPILL_SIZE) {
+          this.spill = File.createTempFile(SPILL_PREFIX, SPILL_SUFFIX, dir);
+          this.out = new BufferedOutputStream(new FileOutputStream(this.spill), 65536);
+          this.buffer.writeTo(this.out);
+          this.buffer = null;
+        }
+
+        this.out.write(b, off, len);
+        this.crc.update(b, off, len);
+        this.length += len;
+      } catch (IOException ioe) {
+        this.error = ioe;
+        throw ioe;
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      this.out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      this.out.close();
+    }
+
+    /**
+     * Release the resources of a record which was not appended
+     */
+    public void discard() {
+      try {
+        this.out.close();
+      } catch (IOException ioe) {
+      }
+
+      if (null != this.spill) {
+        this.spill.delete();
+        this.spill = null;
+      }
+
+      this.buffer = null;
+    }
+  }
+
+  /**
+   * ByteArrayOutputStream exposing its content without copying it
+   */
+  private static final class Buffer extends ByteArrayOutputStream {
+    private ByteBuffer content() {
+      return ByteBuffer.wrap(this.buf, 0, this.count);
+    }
+  }
+
+  private final File dir;
+  private final long maxSize;
+  private final boolean sync;
+
+  private FileChannel channel = null;
+  private long segment;
+  private long offset = 0L;
+
+  /**
+   * Position following the last appended record
+   */
+  private volatile long written;
+
+  /**
+   * Position up to which records can be read by consumers, when syncing this only covers records on disk
+   */
+  private volatile long committed;
+
+  private final Object syncLock = new Object();
+
+  /**
+   * Positions acknowledged by the consumers
+   */
+  private final Map<String,Long> acks = new ConcurrentHashMap<String,Long>();
+
+  public DatalogSegments(File dir, long maxSize, boolean sync) throws IOException {
+    if (!dir.isDirectory()) {
+      throw new IOException("Invalid datalog segments directory '" + dir + "'.");
+    }
+
+    if (maxSize <= 0 || maxSize > Integer.MAX_VALUE) {
+      throw new IOException("Invalid datalog segment size " + maxSize + ".");
+    }
+
+    this.dir = dir;
+    this.maxSize = maxSize;
+    this.sync = sync;
+
+    // Remove the records which were being written when the datalog was last closed
+    File[] spills = dir.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.startsWith(SPILL_PREFIX) && name.endsWith(SPILL_SUFFIX);
+      }
+    });
+
+    if (null != spills) {
+      for (File spill: spills) {
+        spill.delete();
+      }
+    }
+
+    // Never append to existing segments, their tail may be incomplete
+    List<Long> segments = segments();
+    this.segment = segments.isEmpty() ? 0L : segments.get(segments.size() - 1) + 1;
+
+    synchronized(this) {
+      roll();
+      this.committed = this.written;
+    }
+  }
+
+  public static long position(long segment, long offset) {
+    return (segment << 32) | offset;
+  }
+
+  public static long segment(long position) {
+    return position >>> 32;
+  }
+
+  public static long offset(long position) {
+    return position & 0xFFFFFFFFL;
+  }
+
+  private File file(long segment) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(Long.toHexString(segment));
+    sb.insert(0, "0000000000000000", 0, 16 - sb.length());
+    sb.append(SEGMENT_SUFFIX);
+    return new File(this.dir, sb.toString());
+  }
+
+  /**
+   * @return the sorted list of existing segments
+   */
+  private List<Long> segments() {
+    String[] names = this.dir.list(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(SEGMENT_SUFFIX);
+      }
+    });
+
+    TreeSet<Long> segments = new TreeSet<Long>();
+
+    if (null != names) {
+      for (String name: names) {
+        try {
+          segments.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()), 16));
+        } catch (NumberFormatException nfe) {
+          // Ignore files not named after a segment
+        }
+      }
+    }
+
+    return new ArrayList<Long>(segments);
+  }
+
+  /**
+   * Close the current segment and start a new one. MUST be called with the lock held.
+   */
+  private void roll() throws IOException {
+    if (null != this.channel) {
+      if (this.sync) {
+        this.channel.force(false);
+      }
+      this.channel.close();
+      this.segment++;
+    }
+
+    this.channel = FileChannel.open(file(this.segment).toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    this.offset = 0L;
+    this.written = position(this.segment, 0L);
+    if (!this.sync) {
+      this.committed = this.written;
+    }
+  }
+
+  /**
+   * Start a new record, to be written to the datalog by {@link #append(RecordOutputStream)}
+   */
+  public RecordOutputStream newRecord() {
+    return new RecordOutputStream();
+  }
+
+  /**
+   * Append a record to the datalog. When syncing, the call returns once the record is on disk.
+   *
+   * @param content Content of the record
+   * @return the position of the record
+   */
+  public long append(byte[] content) throws IOException {
+    RecordOutputStream record = newRecord();
+    record.write(content, 0, content.length);
+    return append(record);
+  }
+
+  /**
+   * Append a record to the datalog and discard it. When syncing, the call returns once the record is on disk.
+   *
+   * @param record Record to append
+   * @return the position of the record
+   */
+  public long append(RecordOutputStream record) throws IOException {
+    FileChannel spill = null;
+
+    long position;
+    long next;
+    boolean rolled = false;
+
+    try {
+      record.close();
+
+      if (null != record.error) {
+        throw record.error;
+      }
+
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      header.putInt((int) record.length);
+      header.putInt((int) record.crc.getValue());
+      header.flip();
+
+      ByteBuffer content = null;
+
+      if (null != record.spill) {
+        spill = FileChannel.open(record.spill.toPath(), StandardOpenOption.READ);
+      } else {
+        content = record.buffer.content();
+      }
+
+      synchronized(this) {
+        if (this.offset > 0 && this.offset + HEADER_SIZE + record.length > this.maxSize) {
+          roll();
+          rolled = true;
+        }
+
+        position = position(this.segment, this.offset);
+
+        try {
+          while (header.hasRemaining()) {
+            this.channel.write(header);
+          }
+
+          if (null != content) {
+            while (content.hasRemaining()) {
+              this.channel.write(content);
+            }
+          } else {
+            long transferred = 0L;
+            while (transferred < record.length) {
+              transferred += spill.transferTo(transferred, record.length - transferred, this.channel);
+            }
+          }
+        } catch (IOException ioe) {
+          // Readers skip the partially written record at the end of the sealed segment
+          try {
+            roll();
+          } catch (IOException e) {
+          }
+          throw ioe;
+        }
+
+        this.offset += HEADER_SIZE + record.length;
+        next = position(this.segment, this.offset);
+        this.written = next;
+
+        if (!this.sync) {
+          this.committed = next;
+        }
+      }
+    } finally {
+      if (null != spill) {
+        spill.close();
+      }
+      record.discard();
+    }
+
+    Sensision.update(SensisionConstants.CLASS_WARP_DATALOG_SEGMENTS_BYTES, Sensision.EMPTY_LABELS, HEADER_SIZE + record.length);
+
+    if (this.sync) {
+      commit(next);
+    }
+
+    if (rolled) {
+      purge();
+    }
+
+    return position;
+  }
+
+  /**
+   * Ensure the records up to 'position' are on disk, calling fsync for all the records appended so far
+   * unless another thread already did.
+   */
+  private void commit(long position) throws IOException {
+    synchronized(this.syncLock) {
+      if (this.committed >= position) {
+        return;
+      }
+
+      long upto;
+      FileChannel ch;
+
+      synchronized(this) {
+        upto = this.written;
+        ch = this.channel;
+      }
+
+      try {
+        ch.force(false);
+      } catch (ClosedChannelException cce) {
+        // The segment was rolled, which synced it
+      }
+
+      this.committed = upto;
+    }
+
+    Sensision.update(SensisionConstants.CLASS_WARP_DATALOG_SEGMENTS_SYNCS, Sensision.EMPTY_LABELS, 1);
+  }
+
+  /**
+   * @return the position of the oldest record still available
+   */
+  public long getFirstPosition() {
+    List<Long> segments = segments();
+
+    if (segments.isEmpty()) {
+      return this.committed;
+    }
+
+    return position(segments.get(0), 0L);
+  }
+
+  /**
+   * @return the position up to which records can be read
+   */
+  public long getCommittedPosition() {
+    return this.committed;
+  }
+
+  /**
+   * Read records starting at a position
+   *
+   * @param position Position of the first record to read
+   * @param max Maximum number of records to read
+   * @return the records read, possibly none
+   */
+  public List<Record> read(long position, int max) throws IOException {
+    List<Record> records = new ArrayList<Record>();
+
+    long segment = segment(position);
+    long offset = offset(position);
+
+    while (records.size() < max) {
+      long committed = this.committed;
+
+      if (segment > segment(committed)) {
+        break;
+      }
+
+      File file = file(segment);
+
+      if (!file.exists()) {
+        // The segment was purged or skipped, resume at the next available segment
+        long next = -1L;
+        for (long s: segments()) {
+          if (s > segment) {
+            next = s;
+            break;
+          }
+        }
+        if (next < 0 || next > segment(committed)) {
+          break;
+        }
+        segment = next;
+        offset = 0L;
+        continue;
+      }
+
+      boolean sealed = segment < segment(committed);
+
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+      try {
+        long limit = sealed ? raf.length() : offset(committed);
+
+        raf.seek(offset);
+
+        while (records.size() < max && offset + HEADER_SIZE <= limit) {
+          int len = raf.readInt();
+          int crc = raf.readInt();
+
+          if (len < 0 || offset + HEADER_SIZE + len > limit) {
+            break;
+          }
+
+          byte[] content = new byte[len];
+          raf.readFully(content);
+
+          CRC32 crc32 = new CRC32();
+          crc32.update(content, 0, len);
+
+          if (crc != (int) crc32.getValue()) {
+            break;
+          }
+
+          long next = offset + HEADER_SIZE + len;
+          records.add(new Record(position(segment, offset), position(segment, next), content));
+          offset = next;
+        }
+
+        if (!sealed || records.size() >= max) {
+          break;
+        }
+
+        if (offset < limit) {
+          LOG.error("Skipping invalid data at offset " + offset + " of datalog segment '" + file + "'.");
+        }
+      } catch (EOFException eofe) {
+        LOG.error("Unexpected end of datalog segment '" + file + "' at offset " + offset + ".");
+        if (!sealed) {
+          break;
+        }
+      } finally {
+        raf.close();
+      }
+
+      // Move on to the next segment
+      segment++;
+      offset = 0L;
+    }
+
+    return records;
+  }
+
+  /**
+   * Register a consumer so the segments it has not processed yet are retained. Registering never
+   * purges segments, all the consumers MUST be registered before any of them acknowledges a position
+   * and before records are appended.
+   *
+   * @param consumer Name of the consumer
+   * @param position Position of the next record the consumer will process
+   */
+  public void register(String consumer, long position) {
+    this.acks.put(consumer, position);
+  }
+
+  /**
+   * Record the position up to which a registered consumer has processed the datalog.
+   * Segments are only retained while a registered consumer has not moved past them.
+   *
+   * @param consumer Name of the consumer
+   * @param position Position of the next record the consumer will process
+   */
+  public void acknowledge(String consumer, long position) {
+    Long previous = this.acks.get(consumer);
+
+    if (null == previous) {
+      throw new IllegalStateException("Datalog consumer '" + consumer + "' is not registered.");
+    }
+
+    this.acks.put(consumer, position);
+
+    if (segment(previous) != segment(position)) {
+      purge();
+    }
+  }
+
+  /**
+   * Delete the segments which are no longer needed by any consumer. Without any
+   * consumer, segments are deleted as soon as they are sealed.
+   */
+  private void purge() {
+    long min;
+
+    synchronized(this) {
+      min = this.segment;
+    }
+
+    for (Long position: this.acks.values()) {
+      min = Math.min(min, segment(position));
+    }
+
+    for (long segment: segments()) {
+      if (segment >= min) {
+        break;
+      }
+      if (file(segment).delete()) {
+        Sensision.update(SensisionConstants.CLASS_WARP_DATALOG_SEGMENTS_PURGED, Sensision.EMPTY_LABELS, 1);
+      }
+    }
+  }
+
+  public void close() throws IOException {
+    synchronized(this) {
+      if (this.sync) {
+        this.channel.force(false);
+      }
+      this.channel.close();
+    }
+  }
+}
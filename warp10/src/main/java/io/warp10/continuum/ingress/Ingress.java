@@ -28,23 +28,19 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.math.BigInteger;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.ConcurrentModificationException;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Properties;
 import java.util.Random;
-import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -90,6 +86,8 @@ import io.warp10.WarpManager;
 import io.warp10.WarpURLDecoder;
 import io.warp10.continuum.Configuration;
 import io.warp10.continuum.JettyUtil;
+import io.warp10.continuum.KafkaDataMessageEnvelope;
+import io.warp10.continuum.KafkaPartitioner;
 import io.warp10.continuum.KafkaProducerPool;
 import io.warp10.continuum.KafkaSynchronizedConsumerPool;
 import io.warp10.continuum.KafkaSynchronizedConsumerPool.ConsumerFactory;
@@ -102,6 +100,7 @@ import io.warp10.continuum.WarpException;
 import io.warp10.continuum.egress.CORSHandler;
 import io.warp10.continuum.egress.EgressFetchHandler;
 import io.warp10.continuum.egress.ThriftDirectoryClient;
+import io.warp10.continuum.gts.ConcurrentGTSIdMap;
 import io.warp10.continuum.gts.GTSEncoder;
 import io.warp10.continuum.gts.GTSHelper;
 import io.warp10.continuum.sensision.SensisionConstants;
@@ -241,22 +240,16 @@ public class Ingress extends AbstractHandler implements Runnable {
 
   /**
    * Number of classId/labelsId to remember (to avoid pushing their metadata to Kafka)
-   * Memory footprint is that of a BigInteger whose byte representation is 16 bytes, so probably
-   * around 40 bytes
-   * FIXME(hbs): need to compute exactly
+   * Each entry uses around 60 bytes, plus the last activity if tracked
    */
   private int METADATA_CACHE_SIZE = 10000000;
 
   /**
    * Cache used to determine if we should push metadata into Kafka or if it was previously seen.
-   * Key is a BigInteger constructed from a byte array of classId+labelsId (we cannot use byte[] as map key)
+   * Key is classId/labelsId, value is the last activity or null if unknown. Least recently used entries
+   * are evicted once METADATA_CACHE_SIZE is reached.
    */
-  final Map<BigInteger, Long> metadataCache = new LinkedHashMap<BigInteger, Long>(100, 0.75F, true) {
-    @Override
-    protected boolean removeEldestEntry(java.util.Map.Entry<BigInteger, Long> eldest) {
-      return this.size() > METADATA_CACHE_SIZE;
-    }
-  };
+  final ConcurrentGTSIdMap<Long> metadataCache;
 
   final KeyStore keystore;
   final Properties properties;
@@ -270,6 +263,16 @@ public class Ingress extends AbstractHandler implements Runnable {
   private final byte[] aesDataKey;
   private final long[] siphashDataKey;
 
+  /**
+   * Codec of the envelopes packing data messages, null if each message is sent individually
+   */
+  private final KafkaDataMessageEnvelope.Codec dataEnvelope;
+
+  /**
+   * Number of partitions used to group data messages in envelopes
+   */
+  private final int dataEnvelopePartitions;
+
   private final boolean sendMetadataOnDelete;
   private final boolean sendMetadataOnStore;
 
@@ -342,6 +345,8 @@ public class Ingress extends AbstractHandler implements Runnable {
       this.METADATA_CACHE_SIZE = Integer.valueOf(props.getProperty(Configuration.INGRESS_METADATA_CACHE_SIZE));
     }
 
+    this.metadataCache = new ConcurrentGTSIdMap<Long>(64, this.METADATA_CACHE_SIZE);
+
     this.metaTopic = props.getProperty(Configuration.INGRESS_KAFKA_META_TOPIC);
 
     this.dataTopic = props.getProperty(Configuration.INGRESS_KAFKA_DATA_TOPIC);
@@ -354,6 +359,23 @@ public class Ingress extends AbstractHandler implements Runnable {
       throw new RuntimeException("Value of '" + Configuration.INGRESS_VALUE_MAXSIZE + "' cannot exceed half of '" + Configuration.INGRESS_KAFKA_DATA_MAXSIZE + "' minus 64.");
     }
 
+    if (null != props.getProperty(Configuration.INGRESS_KAFKA_DATA_ENVELOPE)) {
+      this.dataEnvelope = KafkaDataMessageEnvelope.Codec.valueOf(props.getProperty(Configuration.INGRESS_KAFKA_DATA_ENVELOPE).trim().toUpperCase());
+
+      if (null == props.getProperty(Configuration.INGRESS_KAFKA_DATA_ENVELOPE_PARTITIONS)) {
+        throw new RuntimeException("'" + Configuration.INGRESS_KAFKA_DATA_ENVELOPE_PARTITIONS + "' MUST be set when '" + Configuration.INGRESS_KAFKA_DATA_ENVELOPE + "' is set.");
+      }
+
+      this.dataEnvelopePartitions = Integer.parseInt(props.getProperty(Configuration.INGRESS_KAFKA_DATA_ENVELOPE_PARTITIONS));
+
+      if (this.dataEnvelopePartitions < 1) {
+        throw new RuntimeException("Invalid value for '" + Configuration.INGRESS_KAFKA_DATA_ENVELOPE_PARTITIONS + "'.");
+      }
+    } else {
+      this.dataEnvelope = null;
+      this.dataEnvelopePartitions = 0;
+    }
+
     extractKeys(this.keystore, props);
 
     this.classKey = SipHashInline.getKey(this.keystore.getKey(KeyStore.SIPHASH_CLASS));
@@ -1076,8 +1098,6 @@ public class Ingress extends AbstractHandler implements Runnable {
 
             GTSHelper.fillGTSIds(bytes, 0, encoder.getClassId(), encoder.getLabelsId());
 
-            BigInteger metadataCacheKey = new BigInteger(bytes);
-
             //
             // Check throttling
             //
@@ -1094,7 +1114,7 @@ public class Ingress extends AbstractHandler implements Runnable {
 
             boolean pushMeta = false;
 
-            Long val = this.metadataCache.getOrDefault(metadataCacheKey, NO_LAST_ACTIVITY);
+            Long val = this.metadataCache.getOrDefault(encoder.getClassId(), encoder.getLabelsId(), NO_LAST_ACTIVITY);
 
             if (NO_LAST_ACTIVITY.equals(val)) {
               pushMeta = true;
@@ -1123,9 +1143,7 @@ public class Ingress extends AbstractHandler implements Runnable {
                 pushMetadataMessage(bytes, serializer.serialize(metadata));
 
                 // Update metadataCache with the current key
-                synchronized(metadataCache) {
-                  this.metadataCache.put(metadataCacheKey, (activityTracking && updateActivity) ? nowms : null);
-                }
+                this.metadataCache.put(encoder.getClassId(), encoder.getLabelsId(), (activityTracking && updateActivity) ? nowms : null);
               } catch (TException te) {
                 throw new IOException("Unable to push metadata.");
               }
@@ -1841,13 +1859,8 @@ public class Ingress extends AbstractHandler implements Runnable {
               Metadata meta = new Metadata(metadata);
               meta.setSource(Configuration.INGRESS_METADATA_DELETE_SOURCE);
               pushMetadataMessage(meta);
-              byte[] bytes = new byte[16];
               // We know class/labels Id were computed in pushMetadataMessage
-              GTSHelper.fillGTSIds(bytes, 0, meta.getClassId(), meta.getLabelsId());
-              BigInteger key = new BigInteger(bytes);
-              synchronized(this.metadataCache) {
-                this.metadataCache.remove(key);
-              }
+              this.metadataCache.remove(meta.getClassId(), meta.getLabelsId());
             }
 
             sb.setLength(0);
@@ -1898,13 +1911,8 @@ public class Ingress extends AbstractHandler implements Runnable {
                 Metadata meta = new Metadata(metadata);
                 meta.setSource(Configuration.INGRESS_METADATA_DELETE_SOURCE);
                 pushMetadataMessage(meta);
-                byte[] bytes = new byte[16];
                 // We know class/labels Id were computed in pushMetadataMessage
-                GTSHelper.fillGTSIds(bytes, 0, meta.getClassId(), meta.getLabelsId());
-                BigInteger key = new BigInteger(bytes);
-                synchronized(this.metadataCache) {
-                  this.metadataCache.remove(key);
-                }
+                this.metadataCache.remove(meta.getClassId(), meta.getLabelsId());
               }
             }
 
@@ -2071,9 +2079,8 @@ public class Ingress extends AbstractHandler implements Runnable {
         //
 
         for (KeyedMessage<byte[],byte[]> msg: msglist) {
-          synchronized(this.metadataCache) {
-            this.metadataCache.remove(new BigInteger(msg.key()));
-          }
+          ByteBuffer bb = ByteBuffer.wrap(msg.key()).order(ByteOrder.BIG_ENDIAN);
+          this.metadataCache.remove(bb.getLong(), bb.getLong());
         }
 
         throw t;
@@ -2144,19 +2151,11 @@ public class Ingress extends AbstractHandler implements Runnable {
       }
 
       //
-      // Encrypt value if the AES key is defined
+      // Messages packed in envelopes are protected when the envelope is built
       //
 
-      if (null != this.aesDataKey) {
-        msgbytes = CryptoUtils.wrap(this.aesDataKey, msgbytes);
-      }
-
-      //
-      // Compute MAC if the SipHash key is defined
-      //
-
-      if (null != this.siphashDataKey) {
-        msgbytes = CryptoUtils.addMAC(this.siphashDataKey, msgbytes);
+      if (null == this.dataEnvelope) {
+        msgbytes = protectDataMessage(msgbytes);
       }
 
       //KeyedMessage<byte[], byte[]> message = new KeyedMessage<byte[], byte[]>(this.dataTopic, bb.array(), msgbytes);
@@ -2179,7 +2178,11 @@ public class Ingress extends AbstractHandler implements Runnable {
 
         long nano = System.nanoTime();
 
-        producer.send(msglist);
+        if (null != this.dataEnvelope) {
+          producer.send(envelope(msglist));
+        } else {
+          producer.send(msglist);
+        }
 
         nano = System.nanoTime() - nano;
         Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_INGRESS_KAFKA_DATA_PRODUCER_SEND, Sensision.EMPTY_LABELS, nano);
@@ -2195,6 +2198,92 @@ public class Ingress extends AbstractHandler implements Runnable {
     }
   }
 
+  /**
+   * Encrypt and add a MAC to a serialized data message or envelope if the keys are defined
+   */
+  private byte[] protectDataMessage(byte[] msgbytes) {
+    //
+    // Encrypt value if the AES key is defined
+    //
+
+    if (null != this.aesDataKey) {
+      msgbytes = CryptoUtils.wrap(this.aesDataKey, msgbytes);
+    }
+
+    //
+    // Compute MAC if the SipHash key is defined
+    //
+
+    if (null != this.siphashDataKey) {
+      msgbytes = CryptoUtils.addMAC(this.siphashDataKey, msgbytes);
+    }
+
+    return msgbytes;
+  }
+
+  /**
+   * Pack the buffered data messages bound to the same partition in envelopes.
+   * Messages alone in their envelope are sent as is.
+   */
+  private List<KeyedMessage<byte[], byte[]>> envelope(List<KeyedMessage<byte[], byte[]>> msglist) throws IOException {
+    Map<Integer, List<KeyedMessage<byte[], byte[]>>> partitions = new HashMap<Integer, List<KeyedMessage<byte[], byte[]>>>();
+    Map<Integer, Long> sizes = new HashMap<Integer, Long>();
+    List<List<KeyedMessage<byte[], byte[]>>> groups = new ArrayList<List<KeyedMessage<byte[], byte[]>>>();
+
+    for (KeyedMessage<byte[], byte[]> msg: msglist) {
+      Integer partition = KafkaPartitioner.partition(msg.key(), this.dataEnvelopePartitions);
+      List<KeyedMessage<byte[], byte[]>> msgs = partitions.get(partition);
+
+      // Account for the varint length prefix of each message
+      long size = msg.message().length + 10L;
+
+      // Keep envelopes, even uncompressed, under the Kafka message size
+      if (null != msgs && sizes.get(partition) + size > this.DATA_MESSAGES_THRESHOLD - 64) {
+        msgs = null;
+      }
+
+      if (null == msgs) {
+        msgs = new ArrayList<KeyedMessage<byte[], byte[]>>();
+        partitions.put(partition, msgs);
+        sizes.put(partition, 0L);
+        groups.add(msgs);
+      }
+
+      msgs.add(msg);
+      sizes.put(partition, sizes.get(partition) + size);
+    }
+
+    List<KeyedMessage<byte[], byte[]>> envelopes = new ArrayList<KeyedMessage<byte[], byte[]>>(groups.size());
+
+    for (List<KeyedMessage<byte[], byte[]>> msgs: groups) {
+      // The key of the first message routes the envelope to the partition of all its messages
+      byte[] key = msgs.get(0).key();
+
+      if (1 == msgs.size()) {
+        envelopes.add(new KeyedMessage<byte[], byte[]>(this.dataTopic, key, protectDataMessage(msgs.get(0).message())));
+        continue;
+      }
+
+      List<byte[]> payloads = new ArrayList<byte[]>(msgs.size());
+      long rawbytes = 0L;
+
+      for (KeyedMessage<byte[], byte[]> msg: msgs) {
+        payloads.add(msg.message());
+        rawbytes += msg.message().length;
+      }
+
+      byte[] envelope = KafkaDataMessageEnvelope.pack(this.dataEnvelope, payloads);
+
+      Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_INGRESS_KAFKA_DATA_ENVELOPES, Sensision.EMPTY_LABELS, 1);
+      Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_INGRESS_KAFKA_DATA_ENVELOPES_RAWBYTES, Sensision.EMPTY_LABELS, rawbytes);
+      Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_INGRESS_KAFKA_DATA_ENVELOPES_BYTES, Sensision.EMPTY_LABELS, envelope.length);
+
+      envelopes.add(new KeyedMessage<byte[], byte[]>(this.dataTopic, key, protectDataMessage(envelope)));
+    }
+
+    return envelopes;
+  }
+
   private Producer<byte[],byte[]> getDataProducer() {
 
     //
@@ -2303,67 +2392,27 @@ public class Ingress extends AbstractHandler implements Runnable {
     try {
       out = new GZIPOutputStream(new FileOutputStream(this.cacheDumpPath));
 
-      Set<BigInteger> bis = new HashSet<BigInteger>();
-
-      synchronized(this.metadataCache) {
-        boolean error = false;
-        do {
-          try {
-            error = false;
-            bis.addAll(this.metadataCache.keySet());
-          } catch (ConcurrentModificationException cme) {
-            error = true;
-          }
-        } while (error);
-      }
-
-      Iterator<BigInteger> iter = bis.iterator();
+      long[] ids = this.metadataCache.ids();
 
       //
       // 128bits
       //
 
-      byte[] allzeroes = new byte[16];
-      Arrays.fill(allzeroes, (byte) 0);
-      byte[] allones = new byte[16];
-      Arrays.fill(allones, (byte) 0xff);
-
-      while (true) {
-        try {
-          if (!iter.hasNext()) {
-            break;
-          }
-          BigInteger bi = iter.next();
-
-          byte[] raw = bi.toByteArray();
-
-          //
-          // 128bits
-          //
-
-          if (raw.length != 16) {
-            if (bi.signum() < 0) {
-              out.write(allones, 0, 16 - raw.length);
-            } else {
-              out.write(allzeroes, 0, 16 - raw.length);
-            }
-          }
+      for (int i = 0; i < ids.length; i += 2) {
+        out.write(Longs.toByteArray(ids[i]));
+        out.write(Longs.toByteArray(ids[i + 1]));
 
-          out.write(raw);
-
-          if (this.activityTracking) {
-            Long lastActivity = this.metadataCache.get(bi);
-            byte[] bytes;
-            if (null != lastActivity) {
-              bytes = Longs.toByteArray(lastActivity);
-            } else {
-              bytes = new byte[8];
-            }
-            out.write(bytes);
+        if (this.activityTracking) {
+          Long lastActivity = this.metadataCache.get(ids[i], ids[i + 1]);
+          byte[] bytes;
+          if (null != lastActivity) {
+            bytes = Longs.toByteArray(lastActivity);
+          } else {
+            bytes = new byte[8];
           }
-          count++;
-        } catch (ConcurrentModificationException cme) {
+          out.write(bytes);
         }
+        count++;
       }
     } catch (IOException ioe) {
     } finally {
@@ -2396,7 +2445,6 @@ public class Ingress extends AbstractHandler implements Runnable {
 
       // 128 bits
       int reclen = this.activityTracking ? 24 : 16;
-      byte[] raw = new byte[16];
 
       while(true) {
         int len = in.read(buf, offset, buf.length - offset);
@@ -2406,8 +2454,8 @@ public class Ingress extends AbstractHandler implements Runnable {
         int idx = 0;
 
         while(idx < offset && offset - idx >= reclen) {
-          System.arraycopy(buf, idx, raw, 0, 16);
-          BigInteger id = new BigInteger(raw);
+          long classId = Longs.fromBytes(buf[idx], buf[idx + 1], buf[idx + 2], buf[idx + 3], buf[idx + 4], buf[idx + 5], buf[idx + 6], buf[idx + 7]);
+          long labelsId = Longs.fromBytes(buf[idx + 8], buf[idx + 9], buf[idx + 10], buf[idx + 11], buf[idx + 12], buf[idx + 13], buf[idx + 14], buf[idx + 15]);
           if (this.activityTracking) {
             long lastActivity = 0L;
 
@@ -2415,13 +2463,9 @@ public class Ingress extends AbstractHandler implements Runnable {
               lastActivity <<= 8;
               lastActivity |= ((long) buf[idx + 16 + i]) & 0xFFL;
             }
-            synchronized(this.metadataCache) {
-              this.metadataCache.put(id, lastActivity);
-            }
+            this.metadataCache.put(classId, labelsId, lastActivity);
           } else {
-            synchronized(this.metadataCache) {
-              this.metadataCache.put(id, null);
-            }
+            this.metadataCache.put(classId, labelsId, null);
           }
           count++;
           idx += reclen;
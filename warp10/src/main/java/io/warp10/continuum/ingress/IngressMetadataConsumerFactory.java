@@ -27,7 +27,8 @@ import io.warp10.crypto.CryptoUtils;
 import io.warp10.quasar.token.thrift.data.ReadToken;
 import io.warp10.sensision.Sensision;
 
-import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
@@ -115,8 +116,9 @@ public class IngressMetadataConsumerFactory implements ConsumerFactory {
               // since it was wrapped/authenticated, we suppose it's ok.
               //
                           
-              byte[] clslblsBytes = Arrays.copyOf(data, 16);
-              BigInteger clslblsId = new BigInteger(clslblsBytes);
+              ByteBuffer clslbls = ByteBuffer.wrap(data, 0, 16).order(ByteOrder.BIG_ENDIAN);
+              long classId = clslbls.getLong();
+              long labelsId = clslbls.getLong();
               
               byte[] metadataBytes = Arrays.copyOfRange(data, 16, data.length);
 
@@ -134,18 +136,14 @@ public class IngressMetadataConsumerFactory implements ConsumerFactory {
                 // Remove entry from Metadata cache
                 //
                 
-                synchronized(ingress.metadataCache) {
-                  ingress.metadataCache.remove(clslblsId);
-                }
+                ingress.metadataCache.remove(classId, labelsId);
                 continue;
               } else if (Configuration.INGRESS_METADATA_UPDATE_ENDPOINT.equals(metadata.getSource())) {
                 //
                 // Remove entry from Metadata cache
                 //
                 
-                synchronized(ingress.metadataCache) {
-                  ingress.metadataCache.remove(clslblsId);
-                }
+                ingress.metadataCache.remove(classId, labelsId);
                 continue;
               } else {
                 continue;
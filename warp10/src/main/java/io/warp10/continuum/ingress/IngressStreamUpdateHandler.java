@@ -35,7 +35,6 @@ import io.warp10.standalone.StandaloneIngressHandler;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.StringReader;
-import java.math.BigInteger;
 import java.text.ParseException;
 import java.util.HashMap;
 import java.util.UUID;
@@ -302,15 +301,11 @@ public class IngressStreamUpdateHandler extends WebSocketHandler.Simple {
                   encoder.setClassId(GTSHelper.classId(this.handler.ingress.classKey, encoder.getMetadata().getName()));
                   encoder.setLabelsId(GTSHelper.labelsId(this.handler.ingress.labelsKey, encoder.getMetadata().getLabels()));
                   
-                  byte[] bytes = new byte[16];
-                  GTSHelper.fillGTSIds(bytes, 0, encoder.getClassId(), encoder.getLabelsId());
-                  BigInteger metadataCacheKey = new BigInteger(bytes);
-
                   boolean pushMeta = false;
-                  if (!this.handler.ingress.metadataCache.containsKey(metadataCacheKey)) {
+                  if (!this.handler.ingress.metadataCache.containsKey(encoder.getClassId(), encoder.getLabelsId())) {
                     pushMeta = true;
                   } else if (this.handler.ingress.activityTracking && this.handler.ingress.updateActivity) {
-                    Long lastActivity = this.handler.ingress.metadataCache.get(metadataCacheKey);
+                    Long lastActivity = this.handler.ingress.metadataCache.get(encoder.getClassId(), encoder.getLabelsId());
                       
                     if (null == lastActivity) {
                       pushMeta = true;
@@ -326,9 +321,7 @@ public class IngressStreamUpdateHandler extends WebSocketHandler.Simple {
                       metadata.setLastActivity(nowms);
                     }
                     this.handler.ingress.pushMetadataMessage(metadata);
-                    synchronized(this.handler.ingress.metadataCache) {
-                      this.handler.ingress.metadataCache.put(metadataCacheKey, (this.handler.ingress.activityTracking && this.handler.ingress.updateActivity) ? nowms : null);
-                    }
+                    this.handler.ingress.metadataCache.put(encoder.getClassId(), encoder.getLabelsId(), (this.handler.ingress.activityTracking && this.handler.ingress.updateActivity) ? nowms : null);
                   }                  
                 }
 
@@ -17,6 +17,7 @@
 package io.warp10.continuum.plasma;
 
 import io.warp10.WarpDist;
+import io.warp10.continuum.KafkaDataMessageEnvelope;
 import io.warp10.continuum.KafkaOffsetCounters;
 import io.warp10.continuum.sensision.SensisionConstants;
 import io.warp10.continuum.store.thrift.data.KafkaDataMessage;
@@ -568,18 +569,23 @@ public class PlasmaBackEnd extends Thread implements NodeCacheListener {
             // Extract KafkaDataMessage
             //
             
-            KafkaDataMessage tmsg = new KafkaDataMessage();
-            deserializer.deserialize(tmsg, data);
-            
-            switch(tmsg.getType()) {
-              case STORE:
-                backend.dispatch(clslbls, msg, tmsg, outSipHashKey, outAESKey);              
-                break;
-              case DELETE:
-                break;
-              default:
-                throw new RuntimeException("Invalid message type.");
-            }            
+            // The messages of an envelope are dispatched individually
+            boolean enveloped = KafkaDataMessageEnvelope.isEnvelope(data);
+
+            for (byte[] payload: KafkaDataMessageEnvelope.unpack(data)) {
+              KafkaDataMessage tmsg = new KafkaDataMessage();
+              deserializer.deserialize(tmsg, payload);
+
+              switch(tmsg.getType()) {
+                case STORE:
+                  backend.dispatch(clslbls, msg, tmsg, outSipHashKey, outAESKey, enveloped);
+                  break;
+                case DELETE:
+                  break;
+                default:
+                  throw new RuntimeException("Invalid message type.");
+              }
+            }
           } else {
             // Sleep a tiny while
             try {
@@ -603,8 +609,9 @@ public class PlasmaBackEnd extends Thread implements NodeCacheListener {
    * @param clslbls stable array to extract classId/labelsId
    * @param message Original message, its key/value will be re-used if SipHash/AES keys match
    * @param msg payload of the original message, in case we need to re-hash/re-encrypt it
+   * @param enveloped true if the original message is an envelope, in which case it cannot be re-used
    */
-  private void dispatch(byte[] clslbls, MessageAndMetadata<byte[], byte[]> message, KafkaDataMessage msg, byte[] outSipHashKey, byte[] outAESKey) {
+  private void dispatch(byte[] clslbls, MessageAndMetadata<byte[], byte[]> message, KafkaDataMessage msg, byte[] outSipHashKey, byte[] outAESKey, boolean enveloped) {
     
     if (null == this.subscriptions || this.subscriptions.isEmpty()) {
       return;
@@ -625,9 +632,10 @@ public class PlasmaBackEnd extends Thread implements NodeCacheListener {
     Map<String,Set<BigInteger>> subs = this.subscriptions;
 
     // Is the message ready to be sent?
-    boolean msgReady = this.identicalAESKeys && this.identicalSipHashKeys;
+    boolean msgReady = this.identicalAESKeys && this.identicalSipHashKeys && !enveloped;
         
-    byte[] key = message.key();
+    // Messages of an envelope are keyed by their own classId/labelsId, not by the key of the envelope
+    byte[] key = enveloped ? Arrays.copyOf(clslbls, clslbls.length) : message.key();
     byte[] value = null;
     
     Map<String,String> labels = new HashMap<String, String>();
@@ -46,6 +46,7 @@ import com.netflix.curator.retry.RetryNTimes;
 import io.warp10.SSLUtils;
 import io.warp10.continuum.Configuration;
 import io.warp10.continuum.JettyUtil;
+import io.warp10.continuum.KafkaDataMessageEnvelope;
 import io.warp10.continuum.KafkaOffsetCounters;
 import io.warp10.continuum.KafkaSynchronizedConsumerPool;
 import io.warp10.continuum.KafkaSynchronizedConsumerPool.ConsumerFactory;
@@ -226,22 +227,24 @@ public class PlasmaFrontEnd extends StandalonePlasmaHandler implements Runnable,
                 // Extract KafkaDataMessage
                 //
                 
-                KafkaDataMessage tmsg = new KafkaDataMessage();
-                deserializer.deserialize(tmsg, data);
-                
-                switch(tmsg.getType()) {
-                  case STORE:
-                    GTSEncoder encoder = new GTSEncoder(0L, null, tmsg.getData());
-                    encoder.setClassId(tmsg.getClassId());
-                    encoder.setLabelsId(tmsg.getLabelsId());
-                    frontend.dispatch(encoder);
-                    break;
-                  case DELETE:
-                  case ARCHIVE:
-                    break;
-                  default:
-                    throw new RuntimeException("Invalid message type.");
-                }            
+                for (byte[] payload: KafkaDataMessageEnvelope.unpack(data)) {
+                  KafkaDataMessage tmsg = new KafkaDataMessage();
+                  deserializer.deserialize(tmsg, payload);
+
+                  switch(tmsg.getType()) {
+                    case STORE:
+                      GTSEncoder encoder = new GTSEncoder(0L, null, tmsg.getData());
+                      encoder.setClassId(tmsg.getClassId());
+                      encoder.setLabelsId(tmsg.getLabelsId());
+                      frontend.dispatch(encoder);
+                      break;
+                    case DELETE:
+                    case ARCHIVE:
+                      break;
+                    default:
+                      throw new RuntimeException("Invalid message type.");
+                  }
+                }
               } else {
                 // Sleep a tiny while
                 try {
@@ -45,11 +45,31 @@ public class SensisionConstants {
    */
   public static final String CLASS_WARP_DATALOG_FORWARDER_REQUESTS_IGNORED = "warp.datalog.forwarder.requests.ignored";
 
+  /**
+   * Number of datalog records skipped by forwarders because they could not be decoded
+   */
+  public static final String CLASS_WARP_DATALOG_FORWARDER_REQUESTS_INVALID = "warp.datalog.forwarder.requests.invalid";
+
   /**
    * Number of datalog requests logged
    */
   public static final String CLASS_WARP_DATALOG_REQUESTS_LOGGED = "warp.datalog.requests.logged";
 
+  /**
+   * Number of datalog segment fsyncs, each one committing one or more requests
+   */
+  public static final String CLASS_WARP_DATALOG_SEGMENTS_SYNCS = "warp.datalog.segments.syncs";
+
+  /**
+   * Number of bytes appended to datalog segments
+   */
+  public static final String CLASS_WARP_DATALOG_SEGMENTS_BYTES = "warp.datalog.segments.bytes";
+
+  /**
+   * Number of datalog segments deleted once acknowledged by all forwarders
+   */
+  public static final String CLASS_WARP_DATALOG_SEGMENTS_PURGED = "warp.datalog.segments.purged";
+
   /**
    * Number of datalog requests received
    */
@@ -110,6 +130,16 @@ public class SensisionConstants {
    */
   public static final String SENSISION_CLASS_CONTINUUM_DIRECTORY_GTS = "warp.directory.gts";
 
+  /**
+   * Estimated memory used by the inverted index of labels of the standalone directory, in bytes.
+   */
+  public static final String SENSISION_CLASS_CONTINUUM_DIRECTORY_LABELS_INDEX_BYTES = "warp.directory.labels.index.bytes";
+
+  /**
+   * Number of (name, value) postings in the inverted index of labels of the standalone directory.
+   */
+  public static final String SENSISION_CLASS_CONTINUUM_DIRECTORY_LABELS_INDEX_POSTINGS = "warp.directory.labels.index.postings";
+
   /**
    * Number of distinct classes managed by Directory
    */
@@ -265,6 +295,21 @@ public class SensisionConstants {
    */
   public static final String SENSISION_CLASS_CONTINUUM_INGRESS_KAFKA_DATA_PRODUCER_POOL_GET = "warp.ingress.kafka.data.producer.pool.get";
 
+  /**
+   * Number of envelopes packing encoders sent to the data topic
+   */
+  public static final String SENSISION_CLASS_CONTINUUM_INGRESS_KAFKA_DATA_ENVELOPES = "warp.ingress.kafka.data.envelopes";
+
+  /**
+   * Number of bytes of the serialized messages packed in envelopes, before compression
+   */
+  public static final String SENSISION_CLASS_CONTINUUM_INGRESS_KAFKA_DATA_ENVELOPES_RAWBYTES = "warp.ingress.kafka.data.envelopes.rawbytes";
+
+  /**
+   * Number of bytes of the envelopes sent to the data topic
+   */
+  public static final String SENSISION_CLASS_CONTINUUM_INGRESS_KAFKA_DATA_ENVELOPES_BYTES = "warp.ingress.kafka.data.envelopes.bytes";
+
   /**
    * Total number of nanoseconds spent waiting for a producer to be available
    */
@@ -720,6 +765,16 @@ public class SensisionConstants {
    */
   public static final String SENSISION_CLASS_CONTINUUM_STANDALONE_CLIENT_PARALLEL_SCANNERS_MUTEX = "warp.standalone.client.scanners.parallel.mutex";
 
+  /**
+   * Number of ranges of GTS scanned by parallel LevelDB fetches
+   */
+  public static final String SENSISION_CLASS_CONTINUUM_STANDALONE_CLIENT_PARALLEL_FETCH_RANGES = "warp.standalone.client.fetch.parallel.ranges";
+
+  /**
+   * Number of ranges of parallel LevelDB fetches scanned by the requesting thread because the pool had not started them
+   */
+  public static final String SENSISION_CLASS_CONTINUUM_STANDALONE_CLIENT_PARALLEL_FETCH_INLINE = "warp.standalone.client.fetch.parallel.inline";
+
   /**
    * Number of failed MAC verification for Kafka messages read in 'Directory'
    */
@@ -889,6 +944,51 @@ public class SensisionConstants {
    */
   public static final String SENSISION_CLASS_WARPSCRIPT_ERRORS = "warp.script.errors";  
 
+  /**
+   * Number of /exec scripts found in the parsed script cache
+   */
+  public static final String SENSISION_CLASS_WARPSCRIPT_EXEC_CACHE_HITS = "warp.script.exec.cache.hits";
+
+  /**
+   * Number of /exec scripts which had to be parsed
+   */
+  public static final String SENSISION_CLASS_WARPSCRIPT_EXEC_CACHE_MISSES = "warp.script.exec.cache.misses";
+
+  /**
+   * Number of parsed scripts evicted from the cache
+   */
+  public static final String SENSISION_CLASS_WARPSCRIPT_EXEC_CACHE_EVICTIONS = "warp.script.exec.cache.evictions";
+
+  /**
+   * Number of parsed scripts in the cache
+   */
+  public static final String SENSISION_CLASS_WARPSCRIPT_EXEC_CACHE_SIZE = "warp.script.exec.cache.size";
+
+  /**
+   * Number of egress requests admitted by the admission control, per application
+   */
+  public static final String SENSISION_CLASS_WARP_EGRESS_ADMISSION_ADMITTED = "warp.egress.admission.admitted";
+
+  /**
+   * Number of heavy egress requests which had to wait before being admitted or rejected, per application
+   */
+  public static final String SENSISION_CLASS_WARP_EGRESS_ADMISSION_DELAYED = "warp.egress.admission.delayed";
+
+  /**
+   * Number of heavy egress requests rejected by the admission control, per application
+   */
+  public static final String SENSISION_CLASS_WARP_EGRESS_ADMISSION_REJECTED = "warp.egress.admission.rejected";
+
+  /**
+   * Number of heavy egress requests currently waiting for admission
+   */
+  public static final String SENSISION_CLASS_WARP_EGRESS_ADMISSION_QUEUED = "warp.egress.admission.queued";
+
+  /**
+   * Set to 1 when CPU or heap pressure is above its threshold, 0 otherwise
+   */
+  public static final String SENSISION_CLASS_WARP_EGRESS_ADMISSION_OVERLOADED = "warp.egress.admission.overloaded";
+
   /**
    * Free memory reported by the JVM
    */
@@ -919,6 +1019,26 @@ public class SensisionConstants {
    */
   public static final String SENSISION_CLASS_WARPSCRIPT_FUNCTION_TIME_US = "warp.script.function.time.us";
 
+  /**
+   * Number of calls of a given WarpScript function on profiled stacks
+   */
+  public static final String SENSISION_CLASS_WARPSCRIPT_PROFILER_FUNCTION_COUNT = "warp.script.profiler.function.count";
+
+  /**
+   * Total time in microseconds spent in a given WarpScript function on profiled stacks
+   */
+  public static final String SENSISION_CLASS_WARPSCRIPT_PROFILER_FUNCTION_TIME_US = "warp.script.profiler.function.time.us";
+
+  /**
+   * Number of executions of named macros on profiled stacks
+   */
+  public static final String SENSISION_CLASS_WARPSCRIPT_PROFILER_MACRO_COUNT = "warp.script.profiler.macro.count";
+
+  /**
+   * Total time in microseconds spent in named macros on profiled stacks, nested macros are counted in each caller
+   */
+  public static final String SENSISION_CLASS_WARPSCRIPT_PROFILER_MACRO_TIME_US = "warp.script.profiler.macro.time.us";
+
   /**
    * Number of times a script has been run
    */
@@ -974,6 +1094,31 @@ public class SensisionConstants {
    */
   public static final String CLASS_WARP_MOBIUS_MACROS_TIME_NANOS = "warp.script.mobius.macros.time.nanos";
 
+  /**
+   * Number of LevelDB data buckets considered for block compaction
+   */
+  public static final String SENSISION_CLASS_CONTINUUM_STANDALONE_LEVELDB_BLOCK_COMPACTIONS = "warp.standalone.leveldb.block.compactions";
+
+  /**
+   * Time spent compacting LevelDB data blocks (in us)
+   */
+  public static final String SENSISION_CLASS_CONTINUUM_STANDALONE_LEVELDB_BLOCK_COMPACTION_TIME_US = "warp.standalone.leveldb.block.compaction.time.us";
+
+  /**
+   * Number of rollup buckets updated at ingestion time
+   */
+  public static final String SENSISION_CLASS_CONTINUUM_STANDALONE_ROLLUPS_UPDATES = "warp.standalone.rollups.updates";
+
+  /**
+   * Number of rollup buckets which had to be read from the store prior to their update
+   */
+  public static final String SENSISION_CLASS_CONTINUUM_STANDALONE_ROLLUPS_CACHE_MISSES = "warp.standalone.rollups.cache.misses";
+
+  /**
+   * Number of fetch requests served from the rollup series
+   */
+  public static final String SENSISION_CLASS_CONTINUUM_STANDALONE_ROLLUPS_FETCHES = "warp.standalone.rollups.fetches";
+
   /**
    * Number of shards dropped by the GC since the launch of the platform instance
    */
@@ -1014,6 +1159,16 @@ public class SensisionConstants {
    */
   public static final String SENSISION_CLASS_CONTINUUM_STANDALONE_INMEMORY_GC_DATAPOINTS = "warp.standalone.inmemory.gc.datapoints";
 
+  /**
+   * Number of bytes reserved by the off-heap slabs of the memory store
+   */
+  public static final String SENSISION_CLASS_CONTINUUM_STANDALONE_INMEMORY_OFFHEAP_BYTES = "warp.standalone.inmemory.offheap.bytes";
+
+  /**
+   * Number of off-heap slabs of the memory store
+   */
+  public static final String SENSISION_CLASS_CONTINUUM_STANDALONE_INMEMORY_OFFHEAP_SLABS = "warp.standalone.inmemory.offheap.slabs";
+
   /**
    * Number of cached estimators for GTS uniqueness estimation
    */
@@ -1134,6 +1289,16 @@ public class SensisionConstants {
    */
   public static final String SENSISION_CLASS_PLASMA_FRONTEND_DISPATCH_SESSIONS = "warp.plasma.frontend.dispatch.sessions";
 
+  /**
+   * Number of messages dropped because a Plasma session was not consuming them fast enough
+   */
+  public static final String SENSISION_CLASS_PLASMA_FRONTEND_DISPATCH_DROPPED = "warp.plasma.frontend.dispatch.dropped";
+
+  /**
+   * Number of messages merged with a message already pending delivery to a Plasma session
+   */
+  public static final String SENSISION_CLASS_PLASMA_FRONTEND_DISPATCH_COALESCED = "warp.plasma.frontend.dispatch.coalesced";
+
   /**
    * Time (in microseconds) spent in 'dispatch'
    */
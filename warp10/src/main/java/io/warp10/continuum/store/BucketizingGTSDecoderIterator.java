@@ -0,0 +1,574 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.store;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import com.geoxp.GeoXPLib;
+
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
+import io.warp10.continuum.store.thrift.data.FetchBucketization;
+import io.warp10.continuum.store.thrift.data.FetchBucketizer;
+import io.warp10.continuum.store.thrift.data.FetchRequest;
+
+/**
+ * GTSDecoderIterator which bucketizes the Geo Time Series returned by another iterator.
+ *
+ * The datapoints are aggregated while they are decoded, only the per bucket state is kept
+ * so the raw datapoints of a GTS are never materialized. Consecutive decoders of the same
+ * GTS are aggregated together and a single decoder with the bucket values is returned.
+ *
+ * The produced values are those BUCKETIZE would produce with the matching bucketizer.
+ * Values are converted to the type of the first decoded value of the GTS, as when
+ * decoding them into a GeoTimeSerie.
+ */
+public class BucketizingGTSDecoderIterator extends GTSDecoderIterator {
+
+  private static final int BATCH_SIZE = 1024;
+
+  private final GTSDecoderIterator iterator;
+
+  private final FetchBucketizer bucketizer;
+  private final long bucketspan;
+  private final long lastbucket;
+  private final int bucketcount;
+
+  /**
+   * Oldest timestamp which falls in a bucket
+   */
+  private final long firsttick;
+
+  /**
+   * Decoder which was read ahead and belongs to the next GTS
+   */
+  private GTSDecoder pending = null;
+
+  //
+  // Per bucket state, index 0 is the most recent bucket
+  //
+
+  private final long[] counts;
+  private final long[] ticks;
+  private final long[] locations;
+  private final long[] elevations;
+  private final long[] longValues;
+  private final double[] doubleValues;
+  private final Object[] values;
+
+  // Sums used by the mean for locations and elevations
+  private final long[] latitudes;
+  private final long[] longitudes;
+  private final long[] locationCounts;
+  private final long[] elevationSums;
+  private final long[] elevationCounts;
+
+  //
+  // Buffers used to decode the datapoints
+  //
+
+  private final long[] bticks = new long[BATCH_SIZE];
+  private final long[] blocations = new long[BATCH_SIZE];
+  private final long[] belevations = new long[BATCH_SIZE];
+  private final long[] blongs = new long[BATCH_SIZE];
+  private final double[] bdoubles = new double[BATCH_SIZE];
+  private final boolean[] bbooleans = new boolean[BATCH_SIZE];
+  private final String[] bstrings = new String[BATCH_SIZE];
+
+  public BucketizingGTSDecoderIterator(GTSDecoderIterator iterator, FetchBucketization bucketization) {
+    if (bucketization.getBucketspan() <= 0L || bucketization.getBucketcount() <= 0 || !bucketization.isSetBucketizer()) {
+      throw new IllegalArgumentException("Invalid bucketization.");
+    }
+
+    this.iterator = iterator;
+    this.bucketizer = bucketization.getBucketizer();
+    this.bucketspan = bucketization.getBucketspan();
+    this.lastbucket = bucketization.getLastbucket();
+    this.bucketcount = bucketization.getBucketcount();
+
+    long first;
+
+    try {
+      first = Math.addExact(Math.subtractExact(this.lastbucket, Math.multiplyExact(this.bucketspan, (long) this.bucketcount)), 1L);
+    } catch (ArithmeticException ae) {
+      first = Long.MIN_VALUE;
+    }
+
+    this.firsttick = first;
+
+    this.counts = new long[this.bucketcount];
+    this.ticks = new long[this.bucketcount];
+    this.locations = new long[this.bucketcount];
+    this.elevations = new long[this.bucketcount];
+
+    boolean mean = FetchBucketizer.MEAN == this.bucketizer;
+
+    this.longValues = FetchBucketizer.COUNT == this.bucketizer ? null : new long[this.bucketcount];
+    this.doubleValues = FetchBucketizer.COUNT == this.bucketizer ? null : new double[this.bucketcount];
+    this.values = FetchBucketizer.SUM == this.bucketizer || FetchBucketizer.MEAN == this.bucketizer || FetchBucketizer.COUNT == this.bucketizer ? null : new Object[this.bucketcount];
+
+    this.latitudes = mean ? new long[this.bucketcount] : null;
+    this.longitudes = mean ? new long[this.bucketcount] : null;
+    this.locationCounts = mean ? new long[this.bucketcount] : null;
+    this.elevationSums = mean ? new long[this.bucketcount] : null;
+    this.elevationCounts = mean ? new long[this.bucketcount] : null;
+  }
+
+  /**
+   * Wrap an iterator if the fetch request asks for a bucketization
+   */
+  public static GTSDecoderIterator wrap(FetchRequest req, GTSDecoderIterator iterator) {
+    if (!req.isSetBucketization()) {
+      return iterator;
+    }
+
+    return new BucketizingGTSDecoderIterator(iterator, req.getBucketization());
+  }
+
+  @Override
+  public boolean isBucketized() {
+    return true;
+  }
+
+  @Override
+  public boolean hasNext() {
+    return null != this.pending || this.iterator.hasNext();
+  }
+
+  @Override
+  public GTSDecoder next() {
+    GTSDecoder decoder = null != this.pending ? this.pending : this.iterator.next();
+    this.pending = null;
+
+    reset();
+
+    TYPE type = TYPE.UNDEFINED;
+
+    while (true) {
+      type = aggregate(decoder, type);
+
+      if (!this.iterator.hasNext()) {
+        break;
+      }
+
+      GTSDecoder next = this.iterator.next();
+
+      if (!next.getMetadata().equals(decoder.getMetadata())) {
+        this.pending = next;
+        break;
+      }
+
+      decoder = next;
+    }
+
+    GTSEncoder encoder = new GTSEncoder(0L);
+    encoder.setMetadata(decoder.getMetadata());
+
+    try {
+      for (int i = 0; i < this.bucketcount; i++) {
+        if (0 == this.counts[i]) {
+          continue;
+        }
+
+        Object value = result(i, type);
+
+        if (null == value) {
+          continue;
+        }
+
+        long location = this.locations[i];
+        long elevation = this.elevations[i];
+
+        if (FetchBucketizer.MEAN == this.bucketizer) {
+          location = GeoTimeSerie.NO_LOCATION;
+          elevation = GeoTimeSerie.NO_ELEVATION;
+
+          if (this.locationCounts[i] > 0) {
+            location = GeoXPLib.toGeoXPPoint(this.latitudes[i] / this.locationCounts[i], this.longitudes[i] / this.locationCounts[i]);
+          }
+
+          if (this.elevationCounts[i] > 0) {
+            elevation = this.elevationSums[i] / this.elevationCounts[i];
+          }
+        }
+
+        encoder.addValue(this.lastbucket - i * this.bucketspan, location, elevation, value);
+      }
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+
+    return encoder.getDecoder();
+  }
+
+  @Override
+  public void remove() {
+  }
+
+  @Override
+  public void close() throws Exception {
+    this.pending = null;
+    this.iterator.close();
+  }
+
+  private void reset() {
+    Arrays.fill(this.counts, 0L);
+
+    switch (this.bucketizer) {
+      case FIRST:
+      case MIN:
+      case MAX:
+        Arrays.fill(this.ticks, Long.MAX_VALUE);
+        break;
+      default:
+        Arrays.fill(this.ticks, Long.MIN_VALUE);
+    }
+
+    Arrays.fill(this.locations, GeoTimeSerie.NO_LOCATION);
+    Arrays.fill(this.elevations, GeoTimeSerie.NO_ELEVATION);
+
+    if (null != this.values) {
+      Arrays.fill(this.values, null);
+    }
+
+    if (null != this.longValues) {
+      Arrays.fill(this.longValues, 0L);
+      Arrays.fill(this.doubleValues, 0.0D);
+    }
+
+    if (FetchBucketizer.MEAN == this.bucketizer) {
+      Arrays.fill(this.latitudes, 0L);
+      Arrays.fill(this.longitudes, 0L);
+      Arrays.fill(this.locationCounts, 0L);
+      Arrays.fill(this.elevationSums, 0L);
+      Arrays.fill(this.elevationCounts, 0L);
+    }
+  }
+
+  /**
+   * Aggregate the datapoints of a decoder
+   *
+   * @param type Type of the GTS, UNDEFINED if no value was decoded yet
+   * @return The type of the GTS
+   */
+  private TYPE aggregate(GTSDecoder decoder, TYPE type) {
+    int n;
+
+    while ((n = decoder.next(this.bticks, this.blocations, this.belevations, this.blongs, this.bdoubles, null, this.bbooleans, this.bstrings, 0, BATCH_SIZE)) > 0) {
+      TYPE batchType = decoder.getType();
+
+      // Delete markers carry no value
+      if (TYPE.UNDEFINED == batchType) {
+        continue;
+      }
+
+      if (TYPE.UNDEFINED == type) {
+        type = batchType;
+      }
+
+      if (batchType != type) {
+        convert(batchType, type, n);
+      }
+
+      for (int i = 0; i < n; i++) {
+        long tick = this.bticks[i];
+
+        if (tick > this.lastbucket || tick < this.firsttick) {
+          continue;
+        }
+
+        int bucket = (int) ((this.lastbucket - tick) / this.bucketspan);
+
+        if (TYPE.LONG == type) {
+          add(bucket, tick, this.blocations[i], this.belevations[i], this.blongs[i]);
+        } else if (TYPE.DOUBLE == type) {
+          add(bucket, tick, this.blocations[i], this.belevations[i], this.bdoubles[i]);
+        } else {
+          add(bucket, tick, this.blocations[i], this.belevations[i], TYPE.STRING == type ? this.bstrings[i] : (Object) this.bbooleans[i]);
+        }
+      }
+    }
+
+    return type;
+  }
+
+  /**
+   * Select the location and elevation of the most recent datapoint of a bucket
+   */
+  private void mostRecent(int bucket, long tick, long location, long elevation) {
+    if (tick > this.ticks[bucket]) {
+      this.ticks[bucket] = tick;
+      this.locations[bucket] = location;
+      this.elevations[bucket] = elevation;
+    }
+  }
+
+  /**
+   * Check if a datapoint replaces the selected one of a bucket for FIRST and LAST
+   */
+  private boolean selects(int bucket, long tick) {
+    if (0 == this.counts[bucket]) {
+      return true;
+    }
+
+    return FetchBucketizer.FIRST == this.bucketizer ? tick < this.ticks[bucket] : tick > this.ticks[bucket];
+  }
+
+  /**
+   * Check if a STRING or BOOLEAN value replaces the selected one of a non empty bucket for MIN and MAX.
+   * Strings are compared lexicographically, the oldest of equal values being selected. As bucketizer.min
+   * and bucketizer.max scan booleans in chronological order, the most recent false (resp. true) value is
+   * selected, or the oldest value if there is none.
+   */
+  private boolean selects(int bucket, long tick, Object value) {
+    boolean min = FetchBucketizer.MIN == this.bucketizer;
+
+    if (value instanceof String) {
+      int cmp = ((String) value).compareTo((String) this.values[bucket]);
+      return (min ? cmp < 0 : cmp > 0) || (0 == cmp && tick < this.ticks[bucket]);
+    }
+
+    boolean target = !min;
+
+    if (target == ((Boolean) value).booleanValue()) {
+      return target != ((Boolean) this.values[bucket]).booleanValue() || tick > this.ticks[bucket];
+    } else {
+      return target != ((Boolean) this.values[bucket]).booleanValue() && tick < this.ticks[bucket];
+    }
+  }
+
+  private void select(int bucket, long tick, long location, long elevation) {
+    this.ticks[bucket] = tick;
+    this.locations[bucket] = location;
+    this.elevations[bucket] = elevation;
+  }
+
+  private void addToMean(int bucket, long location, long elevation) {
+    if (GeoTimeSerie.NO_LOCATION != location) {
+      long[] xy = GeoXPLib.xyFromGeoXPPoint(location);
+      this.latitudes[bucket] += xy[0];
+      this.longitudes[bucket] += xy[1];
+      this.locationCounts[bucket]++;
+    }
+
+    if (GeoTimeSerie.NO_ELEVATION != elevation) {
+      this.elevationSums[bucket] += elevation;
+      this.elevationCounts[bucket]++;
+    }
+  }
+
+  private void add(int bucket, long tick, long location, long elevation, long value) {
+    switch (this.bucketizer) {
+      case SUM:
+        mostRecent(bucket, tick, location, elevation);
+        this.longValues[bucket] += value;
+        break;
+      case COUNT:
+        mostRecent(bucket, tick, location, elevation);
+        break;
+      case MEAN:
+        addToMean(bucket, location, elevation);
+        this.longValues[bucket] += value;
+        break;
+      case MIN:
+      case MAX:
+        if (0 != this.counts[bucket]) {
+          long current = this.longValues[bucket];
+          boolean better = FetchBucketizer.MIN == this.bucketizer ? value < current : value > current;
+          if (!better && !(value == current && tick < this.ticks[bucket])) {
+            break;
+          }
+        }
+        select(bucket, tick, location, elevation);
+        this.longValues[bucket] = value;
+        break;
+      case FIRST:
+      case LAST:
+        if (selects(bucket, tick)) {
+          select(bucket, tick, location, elevation);
+          this.longValues[bucket] = value;
+        }
+        break;
+      default:
+    }
+
+    this.counts[bucket]++;
+  }
+
+  private void add(int bucket, long tick, long location, long elevation, double value) {
+    switch (this.bucketizer) {
+      case SUM:
+        mostRecent(bucket, tick, location, elevation);
+        // Start from the first value so the sign of zero is preserved as in bucketizer.sum
+        this.doubleValues[bucket] = 0 == this.counts[bucket] ? value : this.doubleValues[bucket] + value;
+        break;
+      case COUNT:
+        mostRecent(bucket, tick, location, elevation);
+        break;
+      case MEAN:
+        addToMean(bucket, location, elevation);
+        this.doubleValues[bucket] = 0 == this.counts[bucket] ? value : this.doubleValues[bucket] + value;
+        break;
+      case MIN:
+      case MAX:
+        if (0 != this.counts[bucket]) {
+          int cmp = Double.compare(value, this.doubleValues[bucket]);
+          boolean better = FetchBucketizer.MIN == this.bucketizer ? cmp < 0 : cmp > 0;
+          if (!better && !(0 == cmp && tick < this.ticks[bucket])) {
+            break;
+          }
+        }
+        select(bucket, tick, location, elevation);
+        this.doubleValues[bucket] = value;
+        break;
+      case FIRST:
+      case LAST:
+        if (selects(bucket, tick)) {
+          select(bucket, tick, location, elevation);
+          this.doubleValues[bucket] = value;
+        }
+        break;
+      default:
+    }
+
+    this.counts[bucket]++;
+  }
+
+  private void add(int bucket, long tick, long location, long elevation, Object value) {
+    switch (this.bucketizer) {
+      case SUM:
+      case COUNT:
+        mostRecent(bucket, tick, location, elevation);
+        break;
+      case MIN:
+      case MAX:
+        if (0 == this.counts[bucket] || selects(bucket, tick, value)) {
+          select(bucket, tick, location, elevation);
+          this.values[bucket] = value;
+        }
+        break;
+      case FIRST:
+      case LAST:
+        if (selects(bucket, tick)) {
+          select(bucket, tick, location, elevation);
+          this.values[bucket] = value;
+        }
+        break;
+      default:
+    }
+
+    this.counts[bucket]++;
+  }
+
+  /**
+   * Compute the value of a non empty bucket, null if the bucketizer produces no value for the type
+   */
+  private Object result(int bucket, TYPE type) {
+    switch (this.bucketizer) {
+      case COUNT:
+        return this.counts[bucket];
+      case MEAN:
+        if (TYPE.LONG == type) {
+          return this.longValues[bucket] / (double) this.counts[bucket];
+        } else if (TYPE.DOUBLE == type) {
+          return this.doubleValues[bucket] / this.counts[bucket];
+        }
+        return null;
+      case FIRST:
+      case LAST:
+      case MIN:
+      case MAX:
+        if (TYPE.LONG != type && TYPE.DOUBLE != type) {
+          return this.values[bucket];
+        }
+        // FALLTHROUGH
+      default:
+        if (TYPE.LONG == type) {
+          return this.longValues[bucket];
+        } else if (TYPE.DOUBLE == type) {
+          return this.doubleValues[bucket];
+        }
+        return null;
+    }
+  }
+
+  /**
+   * Convert the decoded values of a batch to the type of the GTS, as GTSHelper.setValue does
+   */
+  private void convert(TYPE from, TYPE to, int n) {
+    for (int i = 0; i < n; i++) {
+      switch (to) {
+        case LONG:
+          if (TYPE.DOUBLE == from) {
+            this.blongs[i] = (long) this.bdoubles[i];
+          } else if (TYPE.BOOLEAN == from) {
+            this.blongs[i] = this.bbooleans[i] ? 1L : 0L;
+          } else {
+            try {
+              this.blongs[i] = Long.parseLong(this.bstrings[i]);
+            } catch (NumberFormatException nfe) {
+              try {
+                this.blongs[i] = (long) Double.parseDouble(this.bstrings[i]);
+              } catch (NumberFormatException nfe2) {
+                this.blongs[i] = 0L;
+              }
+            }
+          }
+          break;
+        case DOUBLE:
+          if (TYPE.LONG == from) {
+            this.bdoubles[i] = (double) this.blongs[i];
+          } else if (TYPE.BOOLEAN == from) {
+            this.bdoubles[i] = this.bbooleans[i] ? 1.0D : 0.0D;
+          } else {
+            try {
+              this.bdoubles[i] = Double.parseDouble(this.bstrings[i]);
+            } catch (NumberFormatException nfe) {
+              try {
+                this.bdoubles[i] = (double) Long.parseLong(this.bstrings[i]);
+              } catch (NumberFormatException nfe2) {
+                this.bdoubles[i] = 0.0D;
+              }
+            }
+          }
+          break;
+        case STRING:
+          if (TYPE.LONG == from) {
+            this.bstrings[i] = Long.toString(this.blongs[i]);
+          } else if (TYPE.DOUBLE == from) {
+            this.bstrings[i] = Double.toString(this.bdoubles[i]);
+          } else {
+            this.bstrings[i] = this.bbooleans[i] ? "T" : "F";
+          }
+          break;
+        case BOOLEAN:
+          if (TYPE.LONG == from) {
+            this.bbooleans[i] = 0L != this.blongs[i];
+          } else if (TYPE.DOUBLE == from) {
+            this.bbooleans[i] = 0.0D != this.bdoubles[i];
+          } else {
+            this.bbooleans[i] = !"".equals(this.bstrings[i]);
+          }
+          break;
+        default:
+      }
+    }
+  }
+}
@@ -332,6 +332,7 @@ public class Constants {
   public static final String HTTP_PARAM_DEDUP = "dedup";
   public static final String HTTP_PARAM_SHOW_ERRORS = "showerrors";
   public static final String HTTP_PARAM_FORMAT = "format";
+  public static final String HTTP_PARAM_CODEC = "codec";
   public static final String HTTP_PARAM_END = "end";
   public static final String HTTP_PARAM_DELETEALL = "deleteall";
   public static final String HTTP_PARAM_DRYRUN = "dryrun";
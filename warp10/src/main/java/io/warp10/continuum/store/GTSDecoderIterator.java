@@ -21,4 +21,12 @@ import io.warp10.continuum.gts.GTSDecoder;
 import java.util.Iterator;
 
 public abstract class GTSDecoderIterator implements Iterator<GTSDecoder>, AutoCloseable {
+  /**
+   * Return true if the decoders returned by this iterator were bucketized according to
+   * the bucketization of the FetchRequest. Stores which ignore the bucketization leave
+   * it to the caller.
+   */
+  public boolean isBucketized() {
+    return false;
+  }
 }
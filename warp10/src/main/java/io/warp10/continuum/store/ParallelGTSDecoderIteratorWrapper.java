@@ -276,6 +276,12 @@ public class ParallelGTSDecoderIteratorWrapper extends GTSDecoderIterator {
 
   private int idx = 0;
 
+  /**
+   * Whether all the underlying iterators bucketized their decoders, the scanners
+   * created from HBase never do
+   */
+  private boolean bucketized = false;
+
   private static final int MIN_GTS_PERSCANNER;
   private static final int MAX_PARALLEL_SCANNERS;
 
@@ -390,6 +396,8 @@ public class ParallelGTSDecoderIteratorWrapper extends GTSDecoderIterator {
 
     List<Metadata> metas = null;
 
+    this.bucketized = true;
+
     while (metaidx < metadatas.size()) {
       if (null == metas) {
         metas = new ArrayList<Metadata>();
@@ -411,6 +419,7 @@ public class ParallelGTSDecoderIteratorWrapper extends GTSDecoderIterator {
         freq.setTTL(false);
         freq.setMetadatas(metas);
         iterator = client.fetch(freq);
+        this.bucketized &= iterator.isBucketized();
 
         GTSDecoderIteratorRunnable runnable = new GTSDecoderIteratorRunnable(iterator, queue, sem, this.pending, this.inflight, this.errorFlag, this.errorThrowable);
         runnables.add(runnable);
@@ -430,6 +439,7 @@ public class ParallelGTSDecoderIteratorWrapper extends GTSDecoderIterator {
       freq.setWriteTimestamp(false);
       freq.setMetadatas(metas);
       iterator = client.fetch(freq);
+      this.bucketized &= iterator.isBucketized();
 
       GTSDecoderIteratorRunnable runnable = new GTSDecoderIteratorRunnable(iterator, queue, sem, this.pending, this.inflight, this.errorFlag, this.errorThrowable);
       runnables.add(runnable);
@@ -438,6 +448,11 @@ public class ParallelGTSDecoderIteratorWrapper extends GTSDecoderIterator {
     this.pending.set(runnables.size());
   }
 
+  @Override
+  public boolean isBucketized() {
+    return this.bucketized;
+  }
+
   public static int getMinGTSPerScanner() {
     return MIN_GTS_PERSCANNER;
   }
@@ -17,6 +17,7 @@
 package io.warp10.continuum.store;
 
 import io.warp10.CustomThreadFactory;
+import io.warp10.continuum.KafkaDataMessageEnvelope;
 import io.warp10.continuum.KafkaOffsetCounters;
 import io.warp10.continuum.gts.GTSDecoder;
 import io.warp10.continuum.gts.GTSEncoder;
@@ -1120,18 +1121,21 @@ public class Store extends Thread {
             // Extract KafkaDataMessage
             //
             
-            KafkaDataMessage tmsg = new KafkaDataMessage();
-            deserializer.deserialize(tmsg, data);
-            
-            switch(tmsg.getType()) {
-              case STORE:
-                handleStore(ht, tmsg);              
-                break;
-              case DELETE:
-                handleDelete(ht, tmsg);              
-                break;
-              default:
-                throw new RuntimeException("Invalid message type.");
+            // Messages packed by Ingress in an envelope are handled in sequence
+            for (byte[] payload: KafkaDataMessageEnvelope.unpack(data)) {
+              KafkaDataMessage tmsg = new KafkaDataMessage();
+              deserializer.deserialize(tmsg, payload);
+
+              switch(tmsg.getType()) {
+                case STORE:
+                  handleStore(ht, tmsg);
+                  break;
+                case DELETE:
+                  handleDelete(ht, tmsg);
+                  break;
+                default:
+                  throw new RuntimeException("Invalid message type.");
+              }
             }
             
 
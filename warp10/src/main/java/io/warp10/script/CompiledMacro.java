@@ -0,0 +1,119 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import io.warp10.script.WarpScriptStack.Macro;
+
+/**
+ * Pre-resolved form of a {@link Macro} used by {@link MemoryWarpScriptStack} to speed up its execution.
+ *
+ * The statements of the macro are split in basic blocks, each block being a run of constants
+ * optionally terminated by a function. Constants of a block can then be pushed at once and the
+ * operation count and signals handled once per block instead of once per statement.
+ *
+ * Instances are immutable so they can be shared by stacks executing the same macro concurrently.
+ */
+final class CompiledMacro {
+
+  /**
+   * Statements of the macro at the time it was compiled
+   */
+  final Object[] statements;
+
+  /**
+   * Function at each index of 'statements', null for constants
+   */
+  final WarpScriptStackFunction[] functions;
+
+  /**
+   * Start index of each basic block, the last element is the number of statements
+   */
+  final int[] blocks;
+
+  /**
+   * Number of executions of the compiled form, only maintained while waiting for the JIT threshold.
+   * Updates from concurrent executions may be lost, this only delays the generation of the class.
+   */
+  private long executions = 0L;
+
+  /**
+   * Generated class executing the macro, null until the macro is hot enough
+   */
+  private volatile JitMacro jit = null;
+
+  /**
+   * Flag set when no class could be generated for the macro
+   */
+  private volatile boolean jitFailed = false;
+
+  CompiledMacro(Macro macro) {
+    int n = macro.size();
+
+    this.statements = new Object[n];
+    this.functions = new WarpScriptStackFunction[n];
+
+    int nblocks = 0;
+
+    for (int i = 0; i < n; i++) {
+      Object stmt = macro.get(i);
+      this.statements[i] = stmt;
+      if (stmt instanceof WarpScriptStackFunction) {
+        this.functions[i] = (WarpScriptStackFunction) stmt;
+        nblocks++;
+      } else if (n - 1 == i) {
+        // Trailing constants form a block of their own
+        nblocks++;
+      }
+    }
+
+    this.blocks = new int[nblocks + 1];
+
+    int b = 1;
+
+    for (int i = 0; i < n; i++) {
+      if (null != this.functions[i] || n - 1 == i) {
+        this.blocks[b++] = i + 1;
+      }
+    }
+  }
+
+  /**
+   * Return the generated class executing the macro once it has been executed 'threshold' times
+   *
+   * @return The generated class or null if the macro is not hot enough or could not be compiled
+   */
+  JitMacro jit(long threshold) {
+    JitMacro jit = this.jit;
+
+    if (null != jit || this.jitFailed || ++this.executions < threshold) {
+      return jit;
+    }
+
+    synchronized (this) {
+      if (null == this.jit && !this.jitFailed) {
+        try {
+          this.jit = JitMacro.generate(this);
+        } catch (Throwable t) {
+          // Fall back to the compiled form
+        }
+        this.jitFailed = null == this.jit;
+      }
+    }
+
+    return this.jit;
+  }
+}
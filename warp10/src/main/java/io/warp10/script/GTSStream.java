@@ -0,0 +1,85 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import io.warp10.continuum.gts.GeoTimeSerie;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Lazy sequence of Geo Time Series, as returned by FETCH when the 'stream' parameter is set.
+ *
+ * Series are produced one at a time while the stream is consumed. Functions consuming a stream
+ * should be done with a series before requesting the next one so its datapoints can be reclaimed.
+ * A stream can only be consumed once.
+ */
+public abstract class GTSStream implements AutoCloseable {
+
+  private final AtomicBoolean consumed = new AtomicBoolean(false);
+
+  /**
+   * Return the next Geo Time Series of the stream
+   *
+   * @return The next series or null if the stream is exhausted
+   */
+  public abstract GeoTimeSerie next() throws WarpScriptException;
+
+  /**
+   * Release the resources held by the stream, the remaining series are discarded
+   */
+  @Override
+  public abstract void close();
+
+  /**
+   * Mark the stream as consumed, this MUST be called prior to calling next
+   *
+   * @throws WarpScriptException if the stream was already consumed
+   */
+  public void consume() throws WarpScriptException {
+    if (!this.consumed.compareAndSet(false, true)) {
+      throw new WarpScriptException("Geo Time Series stream was already consumed.");
+    }
+  }
+
+  /**
+   * Consume the stream and return all its series
+   */
+  public List<GeoTimeSerie> toList() throws WarpScriptException {
+    consume();
+
+    List<GeoTimeSerie> series = new ArrayList<GeoTimeSerie>();
+
+    try {
+      GeoTimeSerie gts;
+
+      while (null != (gts = next())) {
+        series.add(gts);
+      }
+    } finally {
+      close();
+    }
+
+    return series;
+  }
+
+  @Override
+  public String toString() {
+    return "GTSSTREAM" + (this.consumed.get() ? " (consumed)" : "");
+  }
+}
@@ -0,0 +1,387 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Base class of the JVM classes generated for hot macros.
+ *
+ * The generated {@link #run} method executes the statements of a {@link CompiledMacro} as straight-line code,
+ * each constant is pushed and each function is applied from its own call site so the JIT compiler of the JVM
+ * can inline the functions and optimize across statements. Operation count and signals are still handled once
+ * per basic block, as when executing the compiled form of the macro.
+ *
+ * The generated classes are plain class files built by {@link #generate}, each one is defined in its own class
+ * loader so it can be unloaded once its macro is no longer referenced.
+ */
+public abstract class JitMacro {
+
+  /**
+   * Maximum size of the generated bytecode, larger methods are not compiled by HotSpot (see -XX:-DontCompileHugeMethods)
+   */
+  private static final int MAX_CODE_SIZE = 8000;
+
+  private static final String CLASS_NAME_PREFIX = "io/warp10/script/GeneratedJitMacro";
+
+  private static final AtomicLong seq = new AtomicLong(0L);
+
+  protected final Object[] statements;
+  protected final WarpScriptStackFunction[] functions;
+
+  protected JitMacro(Object[] statements, WarpScriptStackFunction[] functions) {
+    this.statements = statements;
+    this.functions = functions;
+  }
+
+  /**
+   * Execute the statements of the macro on a stack
+   */
+  public abstract void run(MemoryWarpScriptStack stack) throws WarpScriptException;
+
+  /**
+   * Called by the generated code at the start of each basic block
+   *
+   * @param index Index of the statement reported if the block fails
+   * @param ops Number of statements of the block
+   */
+  protected static void block(MemoryWarpScriptStack stack, int index, int ops) throws WarpScriptException {
+    // Set first so a failing check does not report the statement of the calling macro
+    stack.jitIndex = index;
+    stack.handleSignal();
+    stack.incOps(ops);
+  }
+
+  /**
+   * Called by the generated code to push a constant
+   *
+   * @param index Index of the statement reported if the push fails
+   */
+  protected static void push(MemoryWarpScriptStack stack, int index, Object o) throws WarpScriptException {
+    stack.jitIndex = index;
+    stack.push(o);
+  }
+
+  /**
+   * Called by the generated code before applying the function ending a block which pushed constants
+   *
+   * @param index Index of the statement reported if the function fails
+   */
+  protected static void index(MemoryWarpScriptStack stack, int index) {
+    stack.jitIndex = index;
+  }
+
+  /**
+   * Generate the class executing a compiled macro
+   *
+   * @return An instance of the generated class or null if the macro is too large
+   */
+  static JitMacro generate(CompiledMacro compiled) throws Exception {
+    String className = CLASS_NAME_PREFIX + seq.incrementAndGet();
+
+    byte[] bytes = new ClassFile(className).build(compiled);
+
+    if (null == bytes) {
+      return null;
+    }
+
+    Class<?> cls = new JitClassLoader(JitMacro.class.getClassLoader()).define(className.replace('/', '.'), bytes);
+
+    return (JitMacro) cls.getConstructor(Object[].class, WarpScriptStackFunction[].class).newInstance(compiled.statements, compiled.functions);
+  }
+
+  private static final class JitClassLoader extends ClassLoader {
+    private JitClassLoader(ClassLoader parent) {
+      super(parent);
+    }
+
+    private Class<?> define(String name, byte[] bytes) {
+      return defineClass(name, bytes, 0, bytes.length);
+    }
+  }
+
+  /**
+   * Minimal class file writer for the generated subclasses of JitMacro.
+   *
+   * Version 49 class files are produced, the code has no branches and thus needs no stack map frames.
+   */
+  private static final class ClassFile {
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACEMETHODREF = 11;
+    private static final int CONSTANT_NAMEANDTYPE = 12;
+
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int ALOAD_2 = 0x2c;
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC_W = 0x13;
+    private static final int AALOAD = 0x32;
+    private static final int POP = 0x57;
+    private static final int RETURN = 0xb1;
+    private static final int GETFIELD = 0xb4;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+    private static final int INVOKEINTERFACE = 0xb9;
+
+    private static final String JIT_MACRO = "io/warp10/script/JitMacro";
+    private static final String STACK = "io/warp10/script/MemoryWarpScriptStack";
+    private static final String FUNCTION = "io/warp10/script/WarpScriptStackFunction";
+
+    private final String className;
+
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(this.pool);
+    private final Map<String,Integer> entries = new HashMap<String,Integer>();
+    private int poolCount = 1;
+
+    private ClassFile(String className) {
+      this.className = className;
+    }
+
+    private int entry(String key, int tag, int a, int b) throws IOException {
+      Integer index = this.entries.get(key);
+
+      if (null != index) {
+        return index;
+      }
+
+      this.poolOut.writeByte(tag);
+      this.poolOut.writeShort(a);
+      if (b >= 0) {
+        this.poolOut.writeShort(b);
+      }
+
+      this.entries.put(key, this.poolCount);
+      return this.poolCount++;
+    }
+
+    private int utf8(String s) throws IOException {
+      String key = "U" + s;
+      Integer index = this.entries.get(key);
+
+      if (null != index) {
+        return index;
+      }
+
+      this.poolOut.writeByte(CONSTANT_UTF8);
+      this.poolOut.writeUTF(s);
+      this.entries.put(key, this.poolCount);
+      return this.poolCount++;
+    }
+
+    private int integer(int value) throws IOException {
+      String key = "I" + value;
+      Integer index = this.entries.get(key);
+
+      if (null != index) {
+        return index;
+      }
+
+      this.poolOut.writeByte(CONSTANT_INTEGER);
+      this.poolOut.writeInt(value);
+      this.entries.put(key, this.poolCount);
+      return this.poolCount++;
+    }
+
+    private int cls(String name) throws IOException {
+      int utf8 = utf8(name);
+      return entry("C" + name, CONSTANT_CLASS, utf8, -1);
+    }
+
+    private int nameAndType(String name, String desc) throws IOException {
+      int n = utf8(name);
+      int d = utf8(desc);
+      return entry("N" + name + ":" + desc, CONSTANT_NAMEANDTYPE, n, d);
+    }
+
+    private int ref(int tag, String owner, String name, String desc) throws IOException {
+      int c = cls(owner);
+      int nt = nameAndType(name, desc);
+      return entry("R" + tag + owner + "." + name + ":" + desc, tag, c, nt);
+    }
+
+    private void pushInt(DataOutputStream code, int value) throws IOException {
+      if (value <= 5) {
+        code.writeByte(ICONST_0 + value);
+      } else if (value <= Byte.MAX_VALUE) {
+        code.writeByte(BIPUSH);
+        code.writeByte(value);
+      } else if (value <= Short.MAX_VALUE) {
+        code.writeByte(SIPUSH);
+        code.writeShort(value);
+      } else {
+        code.writeByte(LDC_W);
+        code.writeShort(integer(value));
+      }
+    }
+
+    private void method(DataOutputStream out, int access, String name, String desc, int maxStack, int maxLocals, byte[] code) throws IOException {
+      out.writeShort(access);
+      out.writeShort(utf8(name));
+      out.writeShort(utf8(desc));
+      // One 'Code' attribute
+      out.writeShort(1);
+      out.writeShort(utf8("Code"));
+      out.writeInt(2 + 2 + 4 + code.length + 2 + 2);
+      out.writeShort(maxStack);
+      out.writeShort(maxLocals);
+      out.writeInt(code.length);
+      out.write(code);
+      // No exception table and no attributes
+      out.writeShort(0);
+      out.writeShort(0);
+    }
+
+    private byte[] build(CompiledMacro compiled) throws IOException {
+      int thisClass = cls(this.className);
+      int superClass = cls(JIT_MACRO);
+
+      int statementsField = ref(CONSTANT_FIELDREF, JIT_MACRO, "statements", "[Ljava/lang/Object;");
+      int functionsField = ref(CONSTANT_FIELDREF, JIT_MACRO, "functions", "[L" + FUNCTION + ";");
+      int superInit = ref(CONSTANT_METHODREF, JIT_MACRO, "<init>", "([Ljava/lang/Object;[L" + FUNCTION + ";)V");
+      int block = ref(CONSTANT_METHODREF, JIT_MACRO, "block", "(L" + STACK + ";II)V");
+      int push = ref(CONSTANT_METHODREF, JIT_MACRO, "push", "(L" + STACK + ";ILjava/lang/Object;)V");
+      int index = ref(CONSTANT_METHODREF, JIT_MACRO, "index", "(L" + STACK + ";I)V");
+      int apply = ref(CONSTANT_INTERFACEMETHODREF, FUNCTION, "apply", "(Lio/warp10/script/WarpScriptStack;)Ljava/lang/Object;");
+
+      //
+      // Constructor, passes the statements and functions to JitMacro
+      //
+
+      ByteArrayOutputStream init = new ByteArrayOutputStream();
+      DataOutputStream initOut = new DataOutputStream(init);
+      initOut.writeByte(ALOAD_0);
+      initOut.writeByte(ALOAD_1);
+      initOut.writeByte(ALOAD_2);
+      initOut.writeByte(INVOKESPECIAL);
+      initOut.writeShort(superInit);
+      initOut.writeByte(RETURN);
+
+      //
+      // run method, one sequence of instructions per basic block
+      //
+
+      ByteArrayOutputStream run = new ByteArrayOutputStream();
+      DataOutputStream runOut = new DataOutputStream(run);
+
+      int[] blocks = compiled.blocks;
+
+      for (int b = 0; b < blocks.length - 1; b++) {
+        int start = blocks[b];
+        int end = blocks[b + 1];
+
+        WarpScriptStackFunction esf = compiled.functions[end - 1];
+
+        // JitMacro.block(stack, index, ops), the index is the one of the last statement of the block
+        runOut.writeByte(ALOAD_1);
+        pushInt(runOut, end - 1);
+        pushInt(runOut, end - start);
+        runOut.writeByte(INVOKESTATIC);
+        runOut.writeShort(block);
+
+        int nconst = null == esf ? end - start : end - start - 1;
+
+        // JitMacro.push(stack, i, this.statements[i]), the index is set for each constant as for the functions
+        for (int i = start; i < start + nconst; i++) {
+          runOut.writeByte(ALOAD_1);
+          pushInt(runOut, i);
+          runOut.writeByte(ALOAD_0);
+          runOut.writeByte(GETFIELD);
+          runOut.writeShort(statementsField);
+          pushInt(runOut, i);
+          runOut.writeByte(AALOAD);
+          runOut.writeByte(INVOKESTATIC);
+          runOut.writeShort(push);
+        }
+
+        // this.functions[i].apply(stack)
+        if (null != esf) {
+          // JitMacro.index(stack, i), the pushes changed the index set by JitMacro.block
+          if (nconst > 0) {
+            runOut.writeByte(ALOAD_1);
+            pushInt(runOut, end - 1);
+            runOut.writeByte(INVOKESTATIC);
+            runOut.writeShort(index);
+          }
+          runOut.writeByte(ALOAD_0);
+          runOut.writeByte(GETFIELD);
+          runOut.writeShort(functionsField);
+          pushInt(runOut, end - 1);
+          runOut.writeByte(AALOAD);
+          runOut.writeByte(ALOAD_1);
+          runOut.writeByte(INVOKEINTERFACE);
+          runOut.writeShort(apply);
+          runOut.writeByte(2);
+          runOut.writeByte(0);
+          runOut.writeByte(POP);
+        }
+
+        if (run.size() > MAX_CODE_SIZE) {
+          return null;
+        }
+      }
+
+      runOut.writeByte(RETURN);
+
+      //
+      // Assemble the class file, the constant pool is complete once the methods are written
+      //
+
+      ByteArrayOutputStream methods = new ByteArrayOutputStream();
+      DataOutputStream methodsOut = new DataOutputStream(methods);
+
+      // ACC_PUBLIC
+      method(methodsOut, 0x0001, "<init>", "([Ljava/lang/Object;[L" + FUNCTION + ";)V", 3, 3, init.toByteArray());
+      // ACC_PUBLIC | ACC_FINAL
+      method(methodsOut, 0x0011, "run", "(L" + STACK + ";)V", 4, 2, run.toByteArray());
+
+      ByteArrayOutputStream classFile = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(classFile);
+
+      out.writeInt(0xCAFEBABE);
+      out.writeShort(0);
+      out.writeShort(49);
+      out.writeShort(this.poolCount);
+      out.write(this.pool.toByteArray());
+      // ACC_PUBLIC | ACC_FINAL | ACC_SUPER
+      out.writeShort(0x0031);
+      out.writeShort(thisClass);
+      out.writeShort(superClass);
+      // No interfaces nor fields
+      out.writeShort(0);
+      out.writeShort(0);
+      out.writeShort(2);
+      out.write(methods.toByteArray());
+      // No attributes
+      out.writeShort(0);
+
+      return classFile.toByteArray();
+    }
+  }
+}
@@ -70,6 +70,26 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
    */
   private boolean functionMetrics = true;
 
+  /**
+   * Should macros be executed using their compiled form
+   */
+  private final boolean compileMacros;
+
+  /**
+   * Number of executions after which a macro is turned into a JVM class, 0 to disable
+   */
+  private final long jitThreshold;
+
+  /**
+   * Index of the statement being executed by a generated macro class, see JitMacro
+   */
+  int jitIndex = 0;
+
+  /**
+   * Profiler of the stack, null when profiling is disabled
+   */
+  private WarpScriptProfiler profiler = null;
+
   private Signal signal = null;
   private boolean signaled = false;
 
@@ -260,6 +280,8 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
 
     int nregs = Integer.parseInt(this.properties.getProperty(Configuration.CONFIG_WARPSCRIPT_REGISTERS, String.valueOf(WarpScriptStack.DEFAULT_REGISTERS)));
     allowLooseBlockComments = "true".equals(properties.getProperty(Configuration.WARPSCRIPT_ALLOW_LOOSE_BLOCK_COMMENTS, "false"));
+    compileMacros = !"false".equals(properties.getProperty(Configuration.WARPSCRIPT_MACRO_COMPILE));
+    jitThreshold = Long.parseLong(properties.getProperty(Configuration.WARPSCRIPT_MACRO_JIT_THRESHOLD, "0"));
     this.registers = new Object[nregs];
   }
 
@@ -882,6 +904,9 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
                 Sensision.update(SensisionConstants.SENSISION_CLASS_WARPSCRIPT_FUNCTION_COUNT, labels, 1);
                 Sensision.update(SensisionConstants.SENSISION_CLASS_WARPSCRIPT_FUNCTION_TIME_US, labels, (System.nanoTime() - nano) / 1000L);
               }
+              if (null != profiler && func instanceof WarpScriptStackFunction && macros.isEmpty()) {
+                profiler.function(func, System.nanoTime() - nano);
+              }
             }
           }
         } catch (WarpScriptATCException e) {
@@ -944,6 +969,14 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
     String macroname = this.macroName;
     this.macroName = macro.getName();
 
+    // Restored on exit so a failing generated macro reports its own statement
+    int jitIndex = this.jitIndex;
+    boolean jitted = false;
+
+    // Only named macros are profiled
+    WarpScriptProfiler macroProfiler = null != this.macroName ? this.profiler : null;
+    long macroNano = null != macroProfiler ? System.nanoTime() : 0L;
+
     try {
 
       recurseIn();
@@ -951,7 +984,70 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
       // Notify progress
       progress();
 
-      for (i = 0; i < n; i++) {
+      if (this.compileMacros) {
+        CompiledMacro compiled = macro.compiled();
+
+        Object[] statements = compiled.statements;
+        WarpScriptStackFunction[] functions = compiled.functions;
+        int[] blocks = compiled.blocks;
+
+        n = statements.length;
+
+        JitMacro jit = this.jitThreshold > 0L && null == this.profiler ? compiled.jit(this.jitThreshold) : null;
+
+        if (null != jit) {
+          jitted = true;
+          jit.run(this);
+        } else {
+          for (int b = 0; b < blocks.length - 1; b++) {
+            // Set the statement index first so a signal is reported at the start of the block
+            i = blocks[b];
+
+            handleSignal();
+
+            int end = blocks[b + 1];
+
+            WarpScriptStackFunction esf = functions[end - 1];
+            int nconst = null == esf ? end - i : end - i - 1;
+
+            // Count one operation per statement of the block
+            incOps(end - i);
+
+            if (nconst > 0) {
+              if (offset + size + nconst < elements.length) {
+                System.arraycopy(statements, i, elements, offset + size, nconst);
+                size += nconst;
+                i += nconst;
+              } else {
+                // Push constants one at a time so errors are reported on the correct statement
+                for (int k = 0; k < nconst; k++) {
+                  push(statements[i]);
+                  i++;
+                }
+              }
+            }
+
+            if (null != esf) {
+              WarpScriptProfiler profiler = this.profiler;
+
+              if (null == profiler) {
+                esf.apply(this);
+              } else {
+                long nano = System.nanoTime();
+                try {
+                  esf.apply(this);
+                } finally {
+                  profiler.function(esf, System.nanoTime() - nano);
+                }
+              }
+            }
+          }
+        }
+
+        i = n;
+      }
+
+      for (; i < n; i++) {
         handleSignal();
 
         Object stmt = macro.get(i);
@@ -961,16 +1057,22 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
         if (stmt instanceof WarpScriptStackFunction) {
           WarpScriptStackFunction esf = (WarpScriptStackFunction) stmt;
 
-          // FIXME(hbs): we do not count the number of calls or the time spent in individual functions
-          // called from macros - We could correct that but it would have a great impact on performance
-          // as we would be calling sensision update potentially several billion times per script
-
-          //long nano = System.nanoTime();
+          // We do not update the Sensision metrics of individual functions called from macros as
+          // this would have a great impact on performance, we would be calling sensision update
+          // potentially several billion times per script. Use a profiler instead (PROFILE).
 
-          esf.apply(this);
+          WarpScriptProfiler profiler = this.profiler;
 
-          //Sensision.update(SensisionConstants.SENSISION_CLASS_WARPSCRIPT_FUNCTION_COUNT, esf.getSensisionLabels(), 1);
-          //Sensision.update(SensisionConstants.SENSISION_CLASS_WARPSCRIPT_FUNCTION_TIME_US, esf.getSensisionLabels(), (System.nanoTime() - nano) / 1000L);
+          if (null == profiler) {
+            esf.apply(this);
+          } else {
+            long nano = System.nanoTime();
+            try {
+              esf.apply(this);
+            } finally {
+              profiler.function(esf, System.nanoTime() - nano);
+            }
+          }
         } else {
           push(stmt);
         }
@@ -989,6 +1091,9 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
       } else {
         String name = macro.getName();
         String section = (String) this.getAttribute(WarpScriptStack.ATTRIBUTE_SECTION_NAME);
+        if (jitted && i < n) {
+          i = this.jitIndex;
+        }
         Object statement = macro.get(i);
         if (i >= macro.size()) {
           statement = macro.get(macro.size() - 1);
@@ -1011,12 +1116,17 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
     } finally {
       //this.setAttribute(WarpScriptStack.ATTRIBUTE_IN_SECURE_MACRO, secure);
       this.inSecureMacro = secure;
+      this.jitIndex = jitIndex;
       recurseOut();
       // Restore section name
       this.sectionName = sectionname;
       // Restore macro name
       this.macroName = macroname;
 
+      if (null != macroProfiler) {
+        macroProfiler.macro(macro.getName(), System.nanoTime() - macroNano);
+      }
+
       //if (sectionname != this.getAttribute(WarpScriptStack.ATTRIBUTE_SECTION_NAME)) {
       //  this.setAttribute(WarpScriptStack.ATTRIBUTE_SECTION_NAME, sectionname);
       //}
@@ -1268,6 +1378,10 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
   @Override
   public Object setAttribute(String key, Object value) {
 
+    if (WarpScriptStack.ATTRIBUTE_PROFILER.equals(key)) {
+      this.profiler = (WarpScriptProfiler) value;
+    }
+
     if (null == value) {
       return this.attributes.remove(key);
     }
@@ -1346,6 +1460,13 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
     this.currentops++;
   }
 
+  /**
+   * Increment the operation count by several operations at once
+   */
+  protected void incOps(long count) throws WarpScriptException {
+    this.currentops += count;
+  }
+
   public void checkOps() throws WarpScriptException {
     if (this.currentops > this.maxops) {
       Sensision.update(SensisionConstants.SENSISION_CLASS_WARPSCRIPT_OPSCOUNT_EXCEEDED, Sensision.EMPTY_LABELS, 1);
@@ -1547,6 +1668,11 @@ public class MemoryWarpScriptStack implements WarpScriptStack, Progressable {
         parentStack.incOps();
       }
 
+      @Override
+      protected void incOps(long count) throws WarpScriptException {
+        parentStack.incOps(count);
+      }
+
       @Override
       public void checkOps() throws WarpScriptException {
         parentStack.checkOps();
@@ -0,0 +1,205 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.Configuration;
+import io.warp10.script.WarpScriptStack.Macro;
+
+/**
+ * Helper to apply Java aggregator functions (mappers, reducers, bucketizers) to several
+ * Geo Time Series or equivalence classes in parallel using a shared pool of threads.
+ *
+ * The calling thread participates in the processing, and a single call will not use more
+ * than 'warpscript.parallelism.perrequest' threads, so a request cannot starve the others.
+ */
+public class ParallelHelper {
+
+  /**
+   * Number of threads of the shared pool, 0 disables parallel execution
+   */
+  private static int PARALLELISM;
+
+  /**
+   * Maximum number of threads, including the calling one, used by a single call
+   */
+  private static int PERREQUEST;
+
+  /**
+   * Minimum number of tasks needed to use parallel execution
+   */
+  private static int THRESHOLD;
+
+  private static final int DEFAULT_THRESHOLD = 8;
+
+  private static ForkJoinPool pool = null;
+
+  static {
+    PARALLELISM = Integer.parseInt(WarpConfig.getProperty(Configuration.WARPSCRIPT_PARALLELISM, "0"));
+    PERREQUEST = Integer.parseInt(WarpConfig.getProperty(Configuration.WARPSCRIPT_PARALLELISM_PERREQUEST, Integer.toString(PARALLELISM + 1)));
+    THRESHOLD = Integer.parseInt(WarpConfig.getProperty(Configuration.WARPSCRIPT_PARALLELISM_THRESHOLD, Integer.toString(DEFAULT_THRESHOLD)));
+  }
+
+  /**
+   * Task to apply to each index
+   */
+  public static interface Task<T> {
+    public T apply(int idx) throws WarpScriptException;
+  }
+
+  private ParallelHelper() {}
+
+  /**
+   * Override the configured parallelism, used by tests.
+   */
+  static synchronized void configure(int parallelism, int perrequest, int threshold) {
+    PARALLELISM = parallelism;
+    PERREQUEST = perrequest;
+    THRESHOLD = threshold;
+
+    if (null != pool) {
+      pool.shutdown();
+      pool = null;
+    }
+  }
+
+  /**
+   * Check whether or not a function can be applied concurrently from several threads.
+   * Only functions implementing {@link ThreadSafeAggregator} and declaring themselves thread safe are,
+   * as aggregator functions may keep state between calls. Macros are executed on the stack and are
+   * therefore never considered thread safe.
+   */
+  public static boolean isThreadSafe(Object function) {
+    if (null == function || function instanceof Macro) {
+      return false;
+    }
+
+    if (function instanceof ThreadSafeAggregator) {
+      return ((ThreadSafeAggregator) function).isThreadSafe();
+    }
+
+    return false;
+  }
+
+  /**
+   * Check if 'function' should be applied in parallel to the given elements. Parallel execution
+   * is only used if it is enabled, if the function is thread safe, if there are enough elements and
+   * if no element appears more than once, as the elements might be modified by the function.
+   */
+  public static boolean useParallelism(Object function, List<?> elements) {
+    if (PARALLELISM <= 0 || PERREQUEST <= 1 || elements.size() < THRESHOLD || !isThreadSafe(function)) {
+      return false;
+    }
+
+    Set<Object> distinct = Collections.newSetFromMap(new IdentityHashMap<Object,Boolean>(elements.size()));
+
+    for (Object element: elements) {
+      if (!distinct.add(element)) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Apply 'task' to all indices from 0 to n - 1 and return the results in index order.
+   * If some tasks fail, the exception of the one with the lowest index is thrown.
+   */
+  public static <T> List<T> apply(final int n, final Task<T> task) throws WarpScriptException {
+    final Object[] results = new Object[n];
+    final Throwable[] errors = new Throwable[n];
+
+    final AtomicInteger next = new AtomicInteger(0);
+    final AtomicInteger pending = new AtomicInteger(n);
+    final AtomicBoolean aborted = new AtomicBoolean(false);
+    final Thread caller = Thread.currentThread();
+
+    Runnable worker = new Runnable() {
+      @Override
+      public void run() {
+        int idx;
+        while ((idx = next.getAndIncrement()) < n) {
+          try {
+            if (!aborted.get()) {
+              results[idx] = task.apply(idx);
+            }
+          } catch (Throwable t) {
+            errors[idx] = t;
+            aborted.set(true);
+          } finally {
+            if (0 == pending.decrementAndGet()) {
+              LockSupport.unpark(caller);
+            }
+          }
+        }
+      }
+    };
+
+    ForkJoinPool pool = getPool();
+
+    int nworkers = Math.min(PERREQUEST, n) - 1;
+
+    for (int i = 0; i < nworkers; i++) {
+      pool.execute(worker);
+    }
+
+    // The calling thread processes tasks too, then waits for those still being processed by the pool
+    worker.run();
+
+    while (pending.get() > 0) {
+      LockSupport.park(pending);
+    }
+
+    for (int i = 0; i < n; i++) {
+      if (null != errors[i]) {
+        if (errors[i] instanceof WarpScriptException) {
+          throw (WarpScriptException) errors[i];
+        } else if (errors[i] instanceof Error) {
+          throw (Error) errors[i];
+        } else {
+          throw new WarpScriptException(errors[i]);
+        }
+      }
+    }
+
+    List<T> list = new ArrayList<T>(n);
+
+    for (int i = 0; i < n; i++) {
+      list.add((T) results[i]);
+    }
+
+    return list;
+  }
+
+  private static synchronized ForkJoinPool getPool() {
+    if (null == pool) {
+      pool = new ForkJoinPool(PARALLELISM);
+    }
+    return pool;
+  }
+}
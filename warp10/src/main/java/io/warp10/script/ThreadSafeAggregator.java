@@ -0,0 +1,28 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+/**
+ * Interface implemented by aggregator functions which can tell whether or not they can be
+ * applied concurrently from several threads. Wrappers typically delegate to the function they wrap.
+ *
+ * Aggregator functions which do not implement this interface are not considered thread safe
+ * and are always applied sequentially.
+ */
+public interface ThreadSafeAggregator {
+  public boolean isThreadSafe();
+}
@@ -474,6 +474,9 @@ public class WarpScriptLib {
   public static final String ELAPSED = "ELAPSED";
   public static final String TIMED = "TIMED";
   public static final String CHRONOSTATS = "CHRONOSTATS";
+  public static final String PROFILE = "PROFILE";
+  public static final String NOPROFILE = "NOPROFILE";
+  public static final String PROFILESTATS = "PROFILESTATS";
   public static final String UNLIST = "UNLIST";
   public static final String UNSET = "UNSET";
   public static final String UNION = "UNION";
@@ -1270,6 +1273,9 @@ public class WarpScriptLib {
     addNamedWarpScriptFunction(new CHRONOSTART(CHRONOSTART));
     addNamedWarpScriptFunction(new CHRONOEND(CHRONOEND));
     addNamedWarpScriptFunction(new CHRONOSTATS(CHRONOSTATS));
+    addNamedWarpScriptFunction(new PROFILE(PROFILE));
+    addNamedWarpScriptFunction(new NOPROFILE(NOPROFILE));
+    addNamedWarpScriptFunction(new PROFILESTATS(PROFILESTATS));
     addNamedWarpScriptFunction(new TOLIST(TOLIST));
     addNamedWarpScriptFunction(new LISTTO(LISTTO));
     addNamedWarpScriptFunction(new UNLIST(UNLIST));
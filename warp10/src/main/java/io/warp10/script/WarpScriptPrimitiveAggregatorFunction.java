@@ -0,0 +1,71 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+/**
+ * Aggregator which can operate directly on primitive arrays of LONG or DOUBLE values,
+ * without boxing the input values or allocating the result.
+ *
+ * This interface is implemented in addition to WarpScriptAggregatorFunction, whose apply
+ * method is used when the primitive variant is not applicable. Implementations MUST produce
+ * the same results as their apply method for the same input.
+ *
+ * The datapoints to aggregate are those with indices offset to offset + length - 1 in the
+ * given arrays, in the order in which they would have been passed to apply.
+ *
+ * The result is written in 'out' (tick, location, elevation and LONG value) and in 'dout'
+ * (DOUBLE value), the returned int indicates the type of the result.
+ */
+public interface WarpScriptPrimitiveAggregatorFunction {
+
+  /**
+   * The aggregator cannot handle the input, apply MUST be used instead
+   */
+  public static final int UNSUPPORTED = -1;
+
+  /**
+   * The result is null
+   */
+  public static final int NULL = 0;
+
+  /**
+   * The result is a LONG stored in out[3]
+   */
+  public static final int LONG = 1;
+
+  /**
+   * The result is a DOUBLE stored in dout[0]
+   */
+  public static final int DOUBLE = 2;
+
+  /**
+   * @param tick Tick for which the aggregation is done (end of bucket, reduced tick)
+   * @param ticks Ticks of the datapoints
+   * @param locations Locations of the datapoints, null if none of them has a location
+   * @param elevations Elevations of the datapoints, null if none of them has an elevation
+   * @param longs LONG values, null if the values are of type DOUBLE
+   * @param doubles DOUBLE values, null if the values are of type LONG
+   * @param offset Index of the first datapoint to aggregate
+   * @param length Number of datapoints to aggregate, at least 1
+   * @param nulls Number of inputs which had no value (null), they are not part of the arrays. As in REDUCE, those
+   *              inputs are considered to have a tick of Long.MIN_VALUE and no location or elevation.
+   * @param out Array of at least 4 slots receiving the tick, location, elevation and LONG value of the result
+   * @param dout Array of at least 1 slot receiving the DOUBLE value of the result
+   * @return The type of the result, UNSUPPORTED, NULL, LONG or DOUBLE
+   */
+  public int apply(long tick, long[] ticks, long[] locations, long[] elevations, long[] longs, double[] doubles, int offset, int length, int nulls, long[] out, double[] dout) throws WarpScriptException;
+}
@@ -0,0 +1,171 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import io.warp10.continuum.sensision.SensisionConstants;
+import io.warp10.sensision.Sensision;
+
+/**
+ * Collects call counts and cumulative execution times of the functions and named macros
+ * executed by a stack.
+ *
+ * A profiler is attached to a stack by setting the {@link WarpScriptStack#ATTRIBUTE_PROFILER} attribute.
+ * Times are inclusive, i.e. the time spent in a macro or in a function such as MAP includes
+ * the time spent in the functions it calls.
+ *
+ * A profiler is not thread safe, it must only be used by a single stack.
+ */
+public class WarpScriptProfiler {
+
+  public static final String KEY_FUNCTIONS = "functions";
+  public static final String KEY_MACROS = "macros";
+  public static final String KEY_CALLS = "total_calls";
+  public static final String KEY_TIME = "total_time";
+
+  private static final class Stats {
+    private long calls = 0L;
+    private long nanos = 0L;
+  }
+
+  /**
+   * Statistics per function instance, names are only resolved when statistics are retrieved
+   */
+  private final Map<Object,Stats> functions = new IdentityHashMap<Object,Stats>();
+
+  private final Map<String,Stats> macros = new HashMap<String,Stats>();
+
+  public void function(Object function, long nanos) {
+    Stats stats = functions.get(function);
+
+    if (null == stats) {
+      stats = new Stats();
+      functions.put(function, stats);
+    }
+
+    stats.calls++;
+    stats.nanos += nanos;
+  }
+
+  public void macro(String name, long nanos) {
+    Stats stats = macros.get(name);
+
+    if (null == stats) {
+      stats = new Stats();
+      macros.put(name, stats);
+    }
+
+    stats.calls++;
+    stats.nanos += nanos;
+  }
+
+  /**
+   * Return the collected statistics as a map with keys 'functions' and 'macros', each
+   * one associating names to a map containing the number of calls and the total time in ns.
+   */
+  public Map<String,Object> getStats() {
+    Map<String,Object> result = new LinkedHashMap<String,Object>();
+
+    result.put(KEY_FUNCTIONS, toMap(functionStats()));
+    result.put(KEY_MACROS, toMap(macros));
+
+    return result;
+  }
+
+  /**
+   * Export the collected statistics to Sensision
+   */
+  public void export() {
+    Map<String,String> labels = new HashMap<String,String>();
+
+    for (Entry<String,Stats> entry: functionStats().entrySet()) {
+      labels.clear();
+      labels.put(SensisionConstants.SENSISION_LABEL_FUNCTION, entry.getKey());
+      Sensision.update(SensisionConstants.SENSISION_CLASS_WARPSCRIPT_PROFILER_FUNCTION_COUNT, labels, entry.getValue().calls);
+      Sensision.update(SensisionConstants.SENSISION_CLASS_WARPSCRIPT_PROFILER_FUNCTION_TIME_US, labels, entry.getValue().nanos / 1000L);
+    }
+
+    //
+    // Macro names are chosen by the scripts, so the macros are not exported individually
+    // to keep the number of metrics bounded, their statistics are only returned by getStats
+    //
+
+    if (!macros.isEmpty()) {
+      long calls = 0L;
+      long nanos = 0L;
+
+      for (Stats stats: macros.values()) {
+        calls += stats.calls;
+        nanos += stats.nanos;
+      }
+
+      Sensision.update(SensisionConstants.SENSISION_CLASS_WARPSCRIPT_PROFILER_MACRO_COUNT, Sensision.EMPTY_LABELS, calls);
+      Sensision.update(SensisionConstants.SENSISION_CLASS_WARPSCRIPT_PROFILER_MACRO_TIME_US, Sensision.EMPTY_LABELS, nanos / 1000L);
+    }
+  }
+
+  /**
+   * Merge the statistics of function instances sharing the same name
+   */
+  private Map<String,Stats> functionStats() {
+    Map<String,Stats> byname = new HashMap<String,Stats>();
+
+    for (Entry<Object,Stats> entry: functions.entrySet()) {
+      Object function = entry.getKey();
+
+      String name = null;
+
+      if (function instanceof NamedWarpScriptFunction) {
+        name = ((NamedWarpScriptFunction) function).getName();
+      }
+
+      if (null == name) {
+        name = function.getClass().getName();
+      }
+
+      Stats stats = byname.get(name);
+
+      if (null == stats) {
+        stats = new Stats();
+        byname.put(name, stats);
+      }
+
+      stats.calls += entry.getValue().calls;
+      stats.nanos += entry.getValue().nanos;
+    }
+
+    return byname;
+  }
+
+  private static Map<String,Object> toMap(Map<String,Stats> stats) {
+    Map<String,Object> result = new HashMap<String,Object>();
+
+    for (Entry<String,Stats> entry: stats.entrySet()) {
+      Map<String,Object> values = new HashMap<String,Object>();
+      values.put(KEY_CALLS, entry.getValue().calls);
+      values.put(KEY_TIME, entry.getValue().nanos);
+      result.put(entry.getKey(), values);
+    }
+
+    return result;
+  }
+}
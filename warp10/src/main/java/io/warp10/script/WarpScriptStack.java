@@ -183,6 +183,11 @@ public interface WarpScriptStack {
    */
   public static final String ATTRIBUTE_TIMINGS = "timings";
 
+  /**
+   * Profiler collecting per function and per macro statistics, profiling is disabled when not set
+   */
+  public static final String ATTRIBUTE_PROFILER = "profiler";
+
   /**
    * Maximum duration of loops in ms and its hard limit
    */
@@ -330,6 +335,11 @@ public interface WarpScriptStack {
     private int size = 0;
     private Object[] statements = new Object[16];
 
+    /**
+     * Compiled form of the macro, reset whenever the macro is modified
+     */
+    private CompiledMacro compiled = null;
+
     public boolean isExpired() {
       return (Long.MIN_VALUE != this.expiry) && (this.expiry < System.currentTimeMillis());
     }
@@ -341,6 +351,7 @@ public interface WarpScriptStack {
     public void add(Object o) {
       ensureCapacity(1);
       statements[size++] = o;
+      compiled = null;
     }
 
     public Object get(int idx) {
@@ -354,10 +365,13 @@ public interface WarpScriptStack {
     public void setSize(int size) {
       if (size < this.size && size >= 0) {
         this.size = size;
+        compiled = null;
       }
     }
 
     public List<Object> statements() {
+      // The returned list may be used to modify the statements
+      compiled = null;
       return Arrays.asList(this.statements).subList(0, size);
     }
 
@@ -368,6 +382,21 @@ public interface WarpScriptStack {
 
       System.arraycopy(macro.statements, 0, this.statements, size, n);
       size += n;
+      compiled = null;
+    }
+
+    /**
+     * Return the compiled form of the macro, compiling it if needed
+     */
+    CompiledMacro compiled() {
+      CompiledMacro compiled = this.compiled;
+
+      if (null == compiled) {
+        compiled = new CompiledMacro(this);
+        this.compiled = compiled;
+      }
+
+      return compiled;
     }
 
     public void setSecure(boolean secure) {
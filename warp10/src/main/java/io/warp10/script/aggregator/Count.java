@@ -18,8 +18,10 @@ package io.warp10.script.aggregator;
 
 import io.warp10.continuum.gts.GeoTimeSerie;
 import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.ThreadSafeAggregator;
 import io.warp10.script.WarpScriptBucketizerFunction;
 import io.warp10.script.WarpScriptMapperFunction;
+import io.warp10.script.WarpScriptPrimitiveAggregatorFunction;
 import io.warp10.script.WarpScriptReducerFunction;
 import io.warp10.script.WarpScriptException;
 
@@ -27,7 +29,7 @@ import io.warp10.script.WarpScriptException;
  * Return the number of measures with elevation and location from
  * the latest measure.
  */
-public class Count extends NamedWarpScriptFunction implements WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction {
+public class Count extends NamedWarpScriptFunction implements WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction, WarpScriptPrimitiveAggregatorFunction, ThreadSafeAggregator {
   
   private final boolean omitNulls;
   
@@ -71,4 +73,31 @@ public class Count extends NamedWarpScriptFunction implements WarpScriptMapperFu
     
     return new Object[] { tick, location, elevation, count };    
   }
+
+  @Override
+  public int apply(long tick, long[] ticks, long[] locations, long[] elevations, long[] longs, double[] doubles, int offset, int length, int nulls, long[] out, double[] dout) throws WarpScriptException {
+    long location = GeoTimeSerie.NO_LOCATION;
+    long elevation = GeoTimeSerie.NO_ELEVATION;
+    long timestamp = Long.MIN_VALUE;
+
+    for (int i = offset; i < offset + length; i++) {
+      if (ticks[i] > timestamp) {
+        location = null == locations ? GeoTimeSerie.NO_LOCATION : locations[i];
+        elevation = null == elevations ? GeoTimeSerie.NO_ELEVATION : elevations[i];
+        timestamp = ticks[i];
+      }
+    }
+
+    out[0] = tick;
+    out[1] = location;
+    out[2] = elevation;
+    out[3] = omitNulls ? length : length + nulls;
+
+    return LONG;
+  }
+
+  @Override
+  public boolean isThreadSafe() {
+    return true;
+  }
 }
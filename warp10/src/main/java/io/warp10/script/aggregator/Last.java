@@ -18,15 +18,17 @@ package io.warp10.script.aggregator;
 
 import io.warp10.continuum.gts.GeoTimeSerie;
 import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.ThreadSafeAggregator;
 import io.warp10.script.WarpScriptBucketizerFunction;
 import io.warp10.script.WarpScriptMapperFunction;
+import io.warp10.script.WarpScriptPrimitiveAggregatorFunction;
 import io.warp10.script.WarpScriptReducerFunction;
 import io.warp10.script.WarpScriptException;
 
 /**
  * Retain the last measurement of the interval
  */
-public class Last extends NamedWarpScriptFunction implements WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction {
+public class Last extends NamedWarpScriptFunction implements WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction, WarpScriptPrimitiveAggregatorFunction, ThreadSafeAggregator {
   
   public Last(String name) {
     super(name);
@@ -53,4 +55,38 @@ public class Last extends NamedWarpScriptFunction implements WarpScriptMapperFun
     }
     return new Object[] { ticks[idx], locations[idx], elevations[idx], values[idx] };
   }
+
+  @Override
+  public int apply(long tick, long[] ticks, long[] locations, long[] elevations, long[] longs, double[] doubles, int offset, int length, int nulls, long[] out, double[] dout) throws WarpScriptException {
+    long timestamp = Long.MIN_VALUE;
+    int idx = offset;
+    for (int i = offset; i < offset + length; i++) {
+      if (ticks[i] > timestamp) {
+        timestamp = ticks[i];
+        idx = i;
+      }
+    }
+
+    if (nulls > 0 && Long.MIN_VALUE == timestamp) {
+      // Inputs without value have the smallest tick, the result depends on their position
+      return UNSUPPORTED;
+    }
+
+    out[0] = ticks[idx];
+    out[1] = null == locations ? GeoTimeSerie.NO_LOCATION : locations[idx];
+    out[2] = null == elevations ? GeoTimeSerie.NO_ELEVATION : elevations[idx];
+
+    if (null != longs) {
+      out[3] = longs[idx];
+      return LONG;
+    } else {
+      dout[0] = doubles[idx];
+      return DOUBLE;
+    }
+  }
+
+  @Override
+  public boolean isThreadSafe() {
+    return true;
+  }
 }
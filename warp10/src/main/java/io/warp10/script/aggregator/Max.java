@@ -18,15 +18,17 @@ package io.warp10.script.aggregator;
 
 import io.warp10.continuum.gts.GeoTimeSerie;
 import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.ThreadSafeAggregator;
 import io.warp10.script.WarpScriptBucketizerFunction;
 import io.warp10.script.WarpScriptMapperFunction;
+import io.warp10.script.WarpScriptPrimitiveAggregatorFunction;
 import io.warp10.script.WarpScriptReducerFunction;
 import io.warp10.script.WarpScriptException;
 
 /**
  * Retain the measurement with the highest value and timestamp
  */
-public class Max extends NamedWarpScriptFunction implements WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction {
+public class Max extends NamedWarpScriptFunction implements WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction, WarpScriptPrimitiveAggregatorFunction, ThreadSafeAggregator {
   
   private final boolean ignoreNulls;
   
@@ -137,4 +139,51 @@ public class Max extends NamedWarpScriptFunction implements WarpScriptMapperFunc
     
     return new Object[] { ticks[idx], locations[idx], elevations[idx], value };
   }
+
+  @Override
+  public int apply(long tick, long[] ticks, long[] locations, long[] elevations, long[] longs, double[] doubles, int offset, int length, int nulls, long[] out, double[] dout) throws WarpScriptException {
+    if (nulls > 0 && !this.ignoreNulls) {
+      return NULL;
+    }
+
+    int idx = offset;
+    long timestamp = ticks[offset];
+    int type;
+
+    if (null != longs) {
+      long maxl = longs[offset];
+      for (int i = offset + 1; i < offset + length; i++) {
+        if (maxl < longs[i] || (maxl == longs[i] && ticks[i] < timestamp)) {
+          timestamp = ticks[i];
+          maxl = longs[i];
+          idx = i;
+        }
+      }
+      out[3] = maxl;
+      type = LONG;
+    } else {
+      double maxd = doubles[offset];
+      for (int i = offset + 1; i < offset + length; i++) {
+        int cmp = Double.compare(maxd, doubles[i]);
+        if (cmp < 0 || (0 == cmp && ticks[i] < timestamp)) {
+          timestamp = ticks[i];
+          maxd = doubles[i];
+          idx = i;
+        }
+      }
+      dout[0] = maxd;
+      type = DOUBLE;
+    }
+
+    out[0] = ticks[idx];
+    out[1] = null == locations ? GeoTimeSerie.NO_LOCATION : locations[idx];
+    out[2] = null == elevations ? GeoTimeSerie.NO_ELEVATION : elevations[idx];
+
+    return type;
+  }
+
+  @Override
+  public boolean isThreadSafe() {
+    return true;
+  }
 }
@@ -19,8 +19,10 @@ package io.warp10.script.aggregator;
 import io.warp10.continuum.gts.GeoTimeSerie;
 import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
 import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.ThreadSafeAggregator;
 import io.warp10.script.WarpScriptBucketizerFunction;
 import io.warp10.script.WarpScriptMapperFunction;
+import io.warp10.script.WarpScriptPrimitiveAggregatorFunction;
 import io.warp10.script.WarpScriptReducerFunction;
 import io.warp10.script.WarpScriptException;
 
@@ -31,7 +33,7 @@ import com.geoxp.GeoXPLib;
  * The returned location will be the centroid of all locations.
  * The returned elevation will be the average of all elevations.
  */
-public class Mean extends NamedWarpScriptFunction implements WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction {
+public class Mean extends NamedWarpScriptFunction implements WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction, WarpScriptPrimitiveAggregatorFunction, ThreadSafeAggregator {
   
   private final boolean ignoreNulls;
   
@@ -141,4 +143,75 @@ public class Mean extends NamedWarpScriptFunction implements WarpScriptMapperFun
     
     return new Object[] { ticks[0] + (ticksum / ticks.length), meanlocation, meanelevation, meanvalue };
   }
+
+  @Override
+  public int apply(long tick, long[] ticks, long[] locations, long[] elevations, long[] longs, double[] doubles, int offset, int length, int nulls, long[] out, double[] dout) throws WarpScriptException {
+    if (nulls > 0) {
+      // The tick of the mean depends on the position of the nulls, let apply handle this case
+      return this.ignoreNulls ? UNSUPPORTED : NULL;
+    }
+
+    long suml = 0L;
+    double sumd = 0.0D;
+    long ticksum = 0L;
+    long latitudes = 0L;
+    long longitudes = 0L;
+    int locationcount = 0;
+    long elev = 0L;
+    int elevationcount = 0;
+
+    for (int i = offset; i < offset + length; i++) {
+      ticksum += ticks[i] - ticks[offset];
+
+      if (null != locations && GeoTimeSerie.NO_LOCATION != locations[i]) {
+        long[] xy = GeoXPLib.xyFromGeoXPPoint(locations[i]);
+        latitudes += xy[0];
+        longitudes += xy[1];
+        locationcount++;
+      }
+
+      if (null != elevations && GeoTimeSerie.NO_ELEVATION != elevations[i]) {
+        elev += elevations[i];
+        elevationcount++;
+      }
+
+      if (null != longs) {
+        suml = suml + longs[i];
+      } else if (offset == i) {
+        sumd = doubles[i];
+      } else {
+        sumd = sumd + doubles[i];
+      }
+    }
+
+    long meanlocation = GeoTimeSerie.NO_LOCATION;
+    long meanelevation = GeoTimeSerie.NO_ELEVATION;
+
+    if (locationcount > 0) {
+      latitudes = latitudes / locationcount;
+      longitudes = longitudes / locationcount;
+      meanlocation = GeoXPLib.toGeoXPPoint(latitudes, longitudes);
+    }
+
+    if (elevationcount > 0) {
+      meanelevation = elev / elevationcount;
+    }
+
+    out[0] = ticks[offset] + (ticksum / length);
+    out[1] = meanlocation;
+    out[2] = meanelevation;
+
+    if (null != longs) {
+      dout[0] = suml / (double) length;
+    } else {
+      dout[0] = sumd / length;
+    }
+
+    return DOUBLE;
+  }
+
+  @Override
+  public boolean isThreadSafe() {
+    return true;
+  }
 }
@@ -22,6 +22,7 @@ import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptBucketizerFunction;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptMapperFunction;
+import io.warp10.script.WarpScriptPrimitiveAggregatorFunction;
 import io.warp10.script.WarpScriptReducerFunction;
 import io.warp10.script.binary.EQ;
 
@@ -33,7 +34,7 @@ import java.util.Comparator;
  * If median data point has an associated location and elevation, return it
  * If forbidNulls and null among inputs, the function will raise an exception.
  */
-public class Median extends NamedWarpScriptFunction implements WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction {
+public class Median extends NamedWarpScriptFunction implements WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction, WarpScriptPrimitiveAggregatorFunction {
 
   private final boolean forbidNulls;
 
@@ -139,4 +140,59 @@ public class Median extends NamedWarpScriptFunction implements WarpScriptMapperF
 
     return new Object[] {tick, location, elevation, median};
   }
+
+  @Override
+  public int apply(long tick, long[] ticks, long[] locations, long[] elevations, long[] longs, double[] doubles, int offset, int length, int nulls, long[] out, double[] dout) throws WarpScriptException {
+    if (nulls > 0) {
+      return UNSUPPORTED;
+    }
+
+    int[] indices = Percentile.sort(longs, doubles, offset, length);
+
+    long location = GeoTimeSerie.NO_LOCATION;
+    long elevation = GeoTimeSerie.NO_ELEVATION;
+    double median;
+
+    if (1 == length) {
+      location = null == locations ? GeoTimeSerie.NO_LOCATION : locations[indices[0]];
+      elevation = null == elevations ? GeoTimeSerie.NO_ELEVATION : elevations[indices[0]];
+      median = null != longs ? (double) longs[indices[0]] : doubles[indices[0]];
+    } else if (0 == length % 2) {
+      int low = indices[length / 2 - 1];
+      int high = indices[length / 2];
+      median = ((null != longs ? (double) longs[low] : doubles[low]) + (null != longs ? (double) longs[high] : doubles[high])) / 2.0D;
+      long elevlow = null == elevations ? GeoTimeSerie.NO_ELEVATION : elevations[low];
+      long elevhigh = null == elevations ? GeoTimeSerie.NO_ELEVATION : elevations[high];
+      if (GeoTimeSerie.NO_ELEVATION != elevlow && GeoTimeSerie.NO_ELEVATION != elevhigh) {
+        elevation = (elevlow + elevhigh) / 2;
+      } else if (GeoTimeSerie.NO_ELEVATION != elevlow) {
+        elevation = elevlow;
+      } else if (GeoTimeSerie.NO_ELEVATION != elevhigh) {
+        elevation = elevhigh;
+      }
+      long loclow = null == locations ? GeoTimeSerie.NO_LOCATION : locations[low];
+      long lochigh = null == locations ? GeoTimeSerie.NO_LOCATION : locations[high];
+      if (GeoTimeSerie.NO_LOCATION != loclow && GeoTimeSerie.NO_LOCATION != lochigh) {
+        long[] xyLow = GeoXPLib.xyFromGeoXPPoint(loclow);
+        long[] xyHigh = GeoXPLib.xyFromGeoXPPoint(lochigh);
+        location = GeoXPLib.toGeoXPPoint((xyLow[0] + xyHigh[0]) / 2, (xyLow[1] + xyHigh[1]) / 2);
+      } else if (GeoTimeSerie.NO_LOCATION != loclow) {
+        location = loclow;
+      } else if (GeoTimeSerie.NO_LOCATION != lochigh) {
+        location = lochigh;
+      }
+    } else {
+      int mid = indices[length / 2];
+      location = null == locations ? GeoTimeSerie.NO_LOCATION : locations[mid];
+      elevation = null == elevations ? GeoTimeSerie.NO_ELEVATION : elevations[mid];
+      median = null != longs ? (double) longs[mid] : doubles[mid];
+    }
+
+    out[0] = tick;
+    out[1] = location;
+    out[2] = elevation;
+    dout[0] = median;
+
+    return DOUBLE;
+  }
 }
@@ -18,15 +18,17 @@ package io.warp10.script.aggregator;
 
 import io.warp10.continuum.gts.GeoTimeSerie;
 import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.ThreadSafeAggregator;
 import io.warp10.script.WarpScriptBucketizerFunction;
 import io.warp10.script.WarpScriptMapperFunction;
+import io.warp10.script.WarpScriptPrimitiveAggregatorFunction;
 import io.warp10.script.WarpScriptReducerFunction;
 import io.warp10.script.WarpScriptException;
 
 /**
  * Retain the measurement with the minimum value and timestamp
  */
-public class Min extends NamedWarpScriptFunction implements WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction {
+public class Min extends NamedWarpScriptFunction implements WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction, WarpScriptPrimitiveAggregatorFunction, ThreadSafeAggregator {
   
   private final boolean ignoreNulls;
   
@@ -137,4 +139,51 @@ public class Min extends NamedWarpScriptFunction implements WarpScriptMapperFunc
     
     return new Object[] { ticks[idx], locations[idx], elevations[idx], value };
   }
+
+  @Override
+  public int apply(long tick, long[] ticks, long[] locations, long[] elevations, long[] longs, double[] doubles, int offset, int length, int nulls, long[] out, double[] dout) throws WarpScriptException {
+    if (nulls > 0 && !this.ignoreNulls) {
+      return NULL;
+    }
+
+    int idx = offset;
+    long timestamp = ticks[offset];
+    int type;
+
+    if (null != longs) {
+      long minl = longs[offset];
+      for (int i = offset + 1; i < offset + length; i++) {
+        if (minl > longs[i] || (minl == longs[i] && ticks[i] < timestamp)) {
+          timestamp = ticks[i];
+          minl = longs[i];
+          idx = i;
+        }
+      }
+      out[3] = minl;
+      type = LONG;
+    } else {
+      double mind = doubles[offset];
+      for (int i = offset + 1; i < offset + length; i++) {
+        int cmp = Double.compare(mind, doubles[i]);
+        if (cmp > 0 || (0 == cmp && ticks[i] < timestamp)) {
+          timestamp = ticks[i];
+          mind = doubles[i];
+          idx = i;
+        }
+      }
+      dout[0] = mind;
+      type = DOUBLE;
+    }
+
+    out[0] = ticks[idx];
+    out[1] = null == locations ? GeoTimeSerie.NO_LOCATION : locations[idx];
+    out[2] = null == elevations ? GeoTimeSerie.NO_ELEVATION : elevations[idx];
+
+    return type;
+  }
+
+  @Override
+  public boolean isThreadSafe() {
+    return true;
+  }
 }
@@ -18,6 +18,7 @@ package io.warp10.script.aggregator;
 
 import io.warp10.continuum.gts.GeoTimeSerie;
 import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.ThreadSafeAggregator;
 import io.warp10.script.WarpScriptBucketizerFunction;
 import io.warp10.script.WarpScriptMapperFunction;
 import io.warp10.script.WarpScriptReducerFunction;
@@ -28,7 +29,7 @@ import io.warp10.script.WarpScriptException;
  * Return the operation or of the values on the interval. The elevation and location are from
  * the latest measure.
  */
-public class Or extends NamedWarpScriptFunction implements WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction {
+public class Or extends NamedWarpScriptFunction implements WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction, ThreadSafeAggregator {
 
   private final boolean ignoreNulls;
 
@@ -82,4 +83,9 @@ public class Or extends NamedWarpScriptFunction implements WarpScriptMapperFunct
 
     return new Object[] { tick, location, elevation, or };
   }
+
+  @Override
+  public boolean isThreadSafe() {
+    return true;
+  }
 }
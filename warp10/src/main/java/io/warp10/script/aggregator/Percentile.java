@@ -23,6 +23,7 @@ import io.warp10.script.StackUtils;
 import io.warp10.script.WarpScriptBucketizerFunction;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptMapperFunction;
+import io.warp10.script.WarpScriptPrimitiveAggregatorFunction;
 import io.warp10.script.WarpScriptReducerFunction;
 import io.warp10.script.WarpScriptStack;
 import io.warp10.script.WarpScriptStackFunction;
@@ -35,7 +36,7 @@ import java.util.Comparator;
  * Return the percentile, given its rank and type, for the given GTS datapoints.
  * It implements the percentiles as defined in Hyndman, Rob & Fan, Yanan. (1996). Sample Quantiles in Statistical Packages. The American Statistician.
  */
-public class Percentile extends NamedWarpScriptFunction implements WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction {
+public class Percentile extends NamedWarpScriptFunction implements WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction, WarpScriptPrimitiveAggregatorFunction {
 
   /**
    * For computing double "almost equal".
@@ -349,6 +350,212 @@ public class Percentile extends NamedWarpScriptFunction implements WarpScriptMap
     return new Object[] {tick, location, elevation, value};
   }
 
+  @Override
+  public int apply(long tick, long[] ticks, long[] locations, long[] elevations, long[] longs, double[] doubles, int offset, int length, int nulls, long[] out, double[] dout) throws WarpScriptException {
+    if (nulls > 0) {
+      return UNSUPPORTED;
+    }
+
+    int[] indices = sort(longs, doubles, offset, length);
+
+    double p = this.percentile / 100.0D;
+
+    double pn = p * length;
+
+    int idx;
+
+    if (1 == type) {
+      int j = (int) Math.ceil(pn);
+
+      if (j > 0) {
+        j--;
+      }
+
+      idx = indices[j];
+    } else if (2 >= type) {
+      int j = (int) Math.floor(pn);
+      double g = pn - j;
+
+      double gamma = 1;
+      if (Math.abs(g) < EPSILON) {
+        gamma = 0.5;
+      }
+
+      j--;
+
+      return interpolate(length, j, gamma, indices, ticks, locations, elevations, longs, doubles, out, dout);
+    } else if (3 >= type) {
+      double m = -0.5D;
+
+      int j = (int) Math.floor(pn + m);
+      double g = pn + m - j;
+
+      int gamma = 1;
+      if (Math.abs(g) < EPSILON && 0 == (j % 2)) {
+        gamma = 0;
+      }
+
+      if (j + gamma > 0) {
+        j--;
+      }
+
+      idx = indices[j + gamma];
+    } else {
+      double m;
+      switch (type) {
+        case 4:
+          m = 0D;
+          break;
+        case 5:
+          m = 0.5D;
+          break;
+        case 6:
+          m = p;
+          break;
+        case 7:
+          m = 1 - p;
+          break;
+        case 8:
+          m = (p + 1) / 3D;
+          break;
+        case 9:
+          m = p / 4D + 3.0D / 8.0D;
+          break;
+        default:
+          throw new WarpScriptException(getName() + " given invalid type.");
+      }
+
+      int j = (int) Math.floor(pn + m);
+      double gamma = pn + m - j;
+
+      j--;
+
+      return interpolate(length, j, gamma, indices, ticks, locations, elevations, longs, doubles, out, dout);
+    }
+
+    // Types 1 and 3 return a datapoint of the input
+    out[0] = ticks[idx];
+    out[1] = null == locations ? GeoTimeSerie.NO_LOCATION : locations[idx];
+    out[2] = null == elevations ? GeoTimeSerie.NO_ELEVATION : elevations[idx];
+
+    if (null != longs) {
+      out[3] = longs[idx];
+      return LONG;
+    } else {
+      dout[0] = doubles[idx];
+      return DOUBLE;
+    }
+  }
+
+  private static int interpolate(int length, int j, double gamma, int[] indices, long[] ticks, long[] locations, long[] elevations, long[] longs, double[] doubles, long[] out, double[] dout) {
+    int idx = -1;
+
+    if (j < 0) {
+      idx = indices[0];
+    } else if (j >= length - 1) {
+      idx = indices[length - 1];
+    } else if (Math.abs(gamma) < EPSILON) {
+      idx = indices[j];
+    } else if (Math.abs(gamma - 1) < EPSILON) {
+      idx = indices[j + 1];
+    }
+
+    if (-1 != idx) {
+      out[0] = ticks[idx];
+      out[1] = null == locations ? GeoTimeSerie.NO_LOCATION : locations[idx];
+      out[2] = null == elevations ? GeoTimeSerie.NO_ELEVATION : elevations[idx];
+      dout[0] = null != longs ? (double) longs[idx] : doubles[idx];
+      return DOUBLE;
+    }
+
+    int lo = indices[j];
+    int hi = indices[j + 1];
+
+    out[0] = Math.round((1 - gamma) * ticks[lo] + gamma * ticks[hi]);
+
+    long loclo = null == locations ? GeoTimeSerie.NO_LOCATION : locations[lo];
+    long lochi = null == locations ? GeoTimeSerie.NO_LOCATION : locations[hi];
+
+    if (GeoTimeSerie.NO_LOCATION == loclo) {
+      out[1] = lochi;
+    } else if (GeoTimeSerie.NO_LOCATION == lochi) {
+      out[1] = loclo;
+    } else {
+      double[] latlonj = GeoXPLib.fromGeoXPPoint(loclo);
+      double[] latlonjp1 = GeoXPLib.fromGeoXPPoint(lochi);
+
+      double lat = (1 - gamma) * latlonj[0] + gamma * latlonjp1[0];
+      double lon = (1 - gamma) * latlonj[1] + gamma * latlonjp1[1];
+
+      out[1] = GeoXPLib.toGeoXPPoint(lat, lon);
+    }
+
+    long elevlo = null == elevations ? GeoTimeSerie.NO_ELEVATION : elevations[lo];
+    long elevhi = null == elevations ? GeoTimeSerie.NO_ELEVATION : elevations[hi];
+
+    if (GeoTimeSerie.NO_ELEVATION == elevlo) {
+      out[2] = elevhi;
+    } else if (GeoTimeSerie.NO_ELEVATION == elevhi) {
+      out[2] = elevlo;
+    } else {
+      out[2] = Math.round((1 - gamma) * elevlo + gamma * elevhi);
+    }
+
+    double vlo = null != longs ? (double) longs[lo] : doubles[lo];
+    double vhi = null != longs ? (double) longs[hi] : doubles[hi];
+
+    dout[0] = (1 - gamma) * vlo + gamma * vhi;
+
+    return DOUBLE;
+  }
+
+  /**
+   * Return the indices offset to offset + length - 1 sorted by increasing value. The sort is stable
+   * so equal values keep the order of the boxed variant.
+   */
+  static int[] sort(long[] longs, double[] doubles, int offset, int length) {
+    int[] a = new int[length];
+    for (int i = 0; i < length; i++) {
+      a[i] = offset + i;
+    }
+
+    if (1 == length) {
+      return a;
+    }
+
+    int[] b = new int[length];
+
+    // Bottom up merge sort
+    for (int width = 1; width < length; width <<= 1) {
+      for (int lo = 0; lo < length; lo += width << 1) {
+        int mid = Math.min(lo + width, length);
+        int hi = Math.min(lo + (width << 1), length);
+        int i = lo;
+        int j = mid;
+        int k = lo;
+        while (i < mid && j < hi) {
+          int cmp = null != longs ? Long.compare(longs[a[j]], longs[a[i]]) : Double.compare(doubles[a[j]], doubles[a[i]]);
+          if (cmp < 0) {
+            b[k++] = a[j++];
+          } else {
+            b[k++] = a[i++];
+          }
+        }
+        while (i < mid) {
+          b[k++] = a[i++];
+        }
+        while (j < hi) {
+          b[k++] = a[j++];
+        }
+      }
+      int[] tmp = a;
+      a = b;
+      b = tmp;
+    }
+
+    return a;
+  }
+
   @Override
   public String toString() {
     StringBuilder sb = new StringBuilder();
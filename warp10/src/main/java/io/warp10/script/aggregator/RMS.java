@@ -21,6 +21,7 @@ import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptBucketizerFunction;
 import io.warp10.script.WarpScriptMapperFunction;
+import io.warp10.script.WarpScriptPrimitiveAggregatorFunction;
 import io.warp10.script.WarpScriptReducerFunction;
 import io.warp10.script.WarpScriptException;
 
@@ -29,7 +30,7 @@ import io.warp10.script.WarpScriptException;
  * returns elevation and location from the latest measure.
  * Computation is done with doubles. If longs, result is casted to long at the end.
  */
-public class RMS extends NamedWarpScriptFunction implements WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction {
+public class RMS extends NamedWarpScriptFunction implements WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction, WarpScriptPrimitiveAggregatorFunction {
 
   private final boolean ignoreNulls;
 
@@ -116,4 +117,39 @@ public class RMS extends NamedWarpScriptFunction implements WarpScriptMapperFunc
     return new Object[]{tick, location, elevation, meanvalue};
   }
 
+  @Override
+  public int apply(long tick, long[] ticks, long[] locations, long[] elevations, long[] longs, double[] doubles, int offset, int length, int nulls, long[] out, double[] dout) throws WarpScriptException {
+    if (!ignoreNulls && nulls > 0) {
+      return NULL;
+    }
+
+    double sqsumd = 0.0D;
+    long location = GeoTimeSerie.NO_LOCATION;
+    long elevation = GeoTimeSerie.NO_ELEVATION;
+    long timestamp = Long.MIN_VALUE;
+
+    for (int i = offset; i < offset + length; i++) {
+      if (ticks[i] > timestamp) {
+        location = null == locations ? GeoTimeSerie.NO_LOCATION : locations[i];
+        elevation = null == elevations ? GeoTimeSerie.NO_ELEVATION : elevations[i];
+        timestamp = ticks[i];
+      }
+
+      sqsumd += Math.pow(null != longs ? (double) longs[i] : doubles[i], 2);
+    }
+
+    double rms = Math.sqrt(sqsumd / length);
+
+    out[0] = tick;
+    out[1] = location;
+    out[2] = elevation;
+
+    if (null != longs) {
+      out[3] = (long) rms;
+      return LONG;
+    } else {
+      dout[0] = rms;
+      return DOUBLE;
+    }
+  }
 }
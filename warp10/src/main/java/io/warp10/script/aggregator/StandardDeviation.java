@@ -21,12 +21,13 @@ import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptAggregatorFunction;
 import io.warp10.script.WarpScriptBucketizerFunction;
 import io.warp10.script.WarpScriptMapperFunction;
+import io.warp10.script.WarpScriptPrimitiveAggregatorFunction;
 import io.warp10.script.WarpScriptReducerFunction;
 import io.warp10.script.WarpScriptStackFunction;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptStack;
 
-public class StandardDeviation extends NamedWarpScriptFunction implements WarpScriptMapperFunction, WarpScriptReducerFunction, WarpScriptBucketizerFunction {
+public class StandardDeviation extends NamedWarpScriptFunction implements WarpScriptMapperFunction, WarpScriptReducerFunction, WarpScriptBucketizerFunction, WarpScriptPrimitiveAggregatorFunction {
   
   private final boolean forbidNulls;
   private final WarpScriptAggregatorFunction variance;
@@ -87,6 +88,23 @@ public class StandardDeviation extends NamedWarpScriptFunction implements WarpSc
     return var;
   }
   
+  @Override
+  public int apply(long tick, long[] ticks, long[] locations, long[] elevations, long[] longs, double[] doubles, int offset, int length, int nulls, long[] out, double[] dout) throws WarpScriptException {
+    if (!(variance instanceof WarpScriptPrimitiveAggregatorFunction)) {
+      return UNSUPPORTED;
+    }
+
+    int type = ((WarpScriptPrimitiveAggregatorFunction) variance).apply(tick, ticks, locations, elevations, longs, doubles, offset, length, nulls, out, dout);
+
+    if (DOUBLE != type) {
+      return UNSUPPORTED == type ? UNSUPPORTED : NULL;
+    }
+
+    dout[0] = Math.sqrt(dout[0]);
+
+    return DOUBLE;
+  }
+
   @Override
   public String toString() {
     return Boolean.toString(this.forbidNulls) + " " + this.getName();
@@ -19,8 +19,10 @@ package io.warp10.script.aggregator;
 import io.warp10.continuum.gts.GeoTimeSerie;
 import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
 import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.ThreadSafeAggregator;
 import io.warp10.script.WarpScriptBucketizerFunction;
 import io.warp10.script.WarpScriptMapperFunction;
+import io.warp10.script.WarpScriptPrimitiveAggregatorFunction;
 import io.warp10.script.WarpScriptReducerFunction;
 import io.warp10.script.WarpScriptException;
 
@@ -28,7 +30,7 @@ import io.warp10.script.WarpScriptException;
  * Return the sum of measures with elevation and location from
  * the latest measure.
  */
-public class Sum extends NamedWarpScriptFunction implements WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction {
+public class Sum extends NamedWarpScriptFunction implements WarpScriptMapperFunction, WarpScriptBucketizerFunction, WarpScriptReducerFunction, WarpScriptPrimitiveAggregatorFunction, ThreadSafeAggregator {
   
   private final boolean ignoreNulls;
   
@@ -110,4 +112,51 @@ public class Sum extends NamedWarpScriptFunction implements WarpScriptMapperFunc
     
     return new Object[] { 0L, location, elevation, sum };    
   }
+
+  @Override
+  public int apply(long tick, long[] ticks, long[] locations, long[] elevations, long[] longs, double[] doubles, int offset, int length, int nulls, long[] out, double[] dout) throws WarpScriptException {
+    if (nulls > 0 && !this.ignoreNulls) {
+      return NULL;
+    }
+
+    long location = GeoTimeSerie.NO_LOCATION;
+    long elevation = GeoTimeSerie.NO_ELEVATION;
+    long timestamp = Long.MIN_VALUE;
+
+    long suml = 0L;
+    double sumd = 0.0D;
+
+    for (int i = offset; i < offset + length; i++) {
+      if (ticks[i] > timestamp) {
+        location = null == locations ? GeoTimeSerie.NO_LOCATION : locations[i];
+        elevation = null == elevations ? GeoTimeSerie.NO_ELEVATION : elevations[i];
+        timestamp = ticks[i];
+      }
+
+      if (null != longs) {
+        suml = suml + longs[i];
+      } else if (offset == i) {
+        sumd = doubles[i];
+      } else {
+        sumd = sumd + doubles[i];
+      }
+    }
+
+    out[0] = 0L;
+    out[1] = location;
+    out[2] = elevation;
+
+    if (null != longs) {
+      out[3] = suml;
+      return LONG;
+    } else {
+      dout[0] = sumd;
+      return DOUBLE;
+    }
+  }
+
+  @Override
+  public boolean isThreadSafe() {
+    return true;
+  }
 }
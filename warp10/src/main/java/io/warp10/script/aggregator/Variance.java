@@ -21,12 +21,13 @@ import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptBucketizerFunction;
 import io.warp10.script.WarpScriptMapperFunction;
+import io.warp10.script.WarpScriptPrimitiveAggregatorFunction;
 import io.warp10.script.WarpScriptReducerFunction;
 import io.warp10.script.WarpScriptStackFunction;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptStack;
 
-public class Variance extends NamedWarpScriptFunction implements WarpScriptMapperFunction, WarpScriptReducerFunction, WarpScriptBucketizerFunction {
+public class Variance extends NamedWarpScriptFunction implements WarpScriptMapperFunction, WarpScriptReducerFunction, WarpScriptBucketizerFunction, WarpScriptPrimitiveAggregatorFunction {
   
   private final boolean useBessel;
   private final boolean forbidNulls;
@@ -156,6 +157,52 @@ public class Variance extends NamedWarpScriptFunction implements WarpScriptMappe
     return new Object[] { 0L, location, elevation, variance };
   }
   
+  @Override
+  public int apply(long tick, long[] ticks, long[] locations, long[] elevations, long[] longs, double[] doubles, int offset, int length, int nulls, long[] out, double[] dout) throws WarpScriptException {
+    if (nulls > 0 && this.forbidNulls) {
+      return NULL;
+    }
+
+    double sum = 0.0D;
+    double sumsq = 0.0D;
+
+    long location = GeoTimeSerie.NO_LOCATION;
+    long elevation = GeoTimeSerie.NO_ELEVATION;
+    long timestamp = Long.MIN_VALUE;
+
+    for (int i = offset; i < offset + length; i++) {
+      if (ticks[i] > timestamp) {
+        location = null == locations ? GeoTimeSerie.NO_LOCATION : locations[i];
+        elevation = null == elevations ? GeoTimeSerie.NO_ELEVATION : elevations[i];
+        timestamp = ticks[i];
+      }
+
+      double v = null != longs ? (double) longs[i] : doubles[i];
+
+      if (offset == i) {
+        sum = v;
+        sumsq = sum * sum;
+      } else {
+        sum += v;
+        sumsq += v * v;
+      }
+    }
+
+    int n = length;
+    double variance = (sumsq / (double) n) - (sum * sum) / (((double) n) * ((double) n));
+
+    if (n > 1 && useBessel) {
+      variance = variance * ((double) n) / (((double) n) - 1.0D);
+    }
+
+    out[0] = 0L;
+    out[1] = location;
+    out[2] = elevation;
+    dout[0] = variance;
+
+    return DOUBLE;
+  }
+
   @Override
   public String toString() {
     return Boolean.toString(this.forbidNulls) + " " + this.getName();
@@ -18,7 +18,9 @@ package io.warp10.script.functions;
 
 import io.warp10.continuum.gts.GTSHelper;
 import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.script.GTSStream;
 import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.ParallelHelper;
 import io.warp10.script.WarpScriptBucketizerFunction;
 import io.warp10.script.WarpScriptStack.Macro;
 import io.warp10.script.WarpScriptStackFunction;
@@ -30,6 +32,8 @@ import java.util.List;
 
 /**
  * Bucketizes some GTS instances.
+ *
+ * Streams of Geo Time Series (see FETCH) are consumed one series at a time.
  */
 public class BUCKETIZE extends NamedWarpScriptFunction implements WarpScriptStackFunction {
 
@@ -51,7 +55,13 @@ public class BUCKETIZE extends NamedWarpScriptFunction implements WarpScriptStac
       throw new WarpScriptException(getName() + " needs a list of at least 5 parameters as input.");
     }
     
+    boolean streaming = false;
+
     for (int i = 0; i < params.size() - 4; i++) {
+      if (params.get(i) instanceof GTSStream) {
+        streaming = true;
+        continue;
+      }
       if (!(params.get(i) instanceof GeoTimeSerie) && !(params.get(i) instanceof List)) {
         throw new WarpScriptException(getName() + " expects a list of Geo Time Series as first parameter.");
       }      
@@ -65,9 +75,20 @@ public class BUCKETIZE extends NamedWarpScriptFunction implements WarpScriptStac
       throw new WarpScriptException(getName() + " expects lastbucket, bucketspan and bucketcount as last 3 parameters.");
     }
     
+    Object bucketizer = params.get(params.size() - 4);
+    long lastbucket = (long) params.get(params.size() - 3);
+    long bucketspan = (long) params.get(params.size() - 2);
+    int bucketcount = (int) ((long) params.get(params.size() - 1));
+
+    final long maxbuckets = (long) stack.getAttribute(WarpScriptStack.ATTRIBUTE_MAX_BUCKETS);
+
+    if (streaming) {
+      stack.push(streamBucketize(stack, params.subList(0, params.size() - 4), bucketspan, bucketcount, lastbucket, bucketizer, maxbuckets));
+      return stack;
+    }
+
     List<GeoTimeSerie> series = new ArrayList<GeoTimeSerie>();
 
-    
     for (int i = 0; i < params.size() - 4; i++) {
       if (params.get(i) instanceof GeoTimeSerie) {
         series.add((GeoTimeSerie) params.get(i));
@@ -81,22 +102,65 @@ public class BUCKETIZE extends NamedWarpScriptFunction implements WarpScriptStac
       }      
     }
     
-    Object bucketizer = params.get(params.size() - 4);
-    long lastbucket = (long) params.get(params.size() - 3);
-    long bucketspan = (long) params.get(params.size() - 2);
-    int bucketcount = (int) ((long) params.get(params.size() - 1));
-    
     List<GeoTimeSerie> bucketized = new ArrayList<GeoTimeSerie>();
-    
-    long maxbuckets = (long) stack.getAttribute(WarpScriptStack.ATTRIBUTE_MAX_BUCKETS);
-    
-    for (GeoTimeSerie gts: series) {
-      GeoTimeSerie b = GTSHelper.bucketize(gts, bucketspan, bucketcount, lastbucket, bucketizer, maxbuckets, bucketizer instanceof Macro ? stack : null);
-      
-      bucketized.add(b);
+
+    if (ParallelHelper.useParallelism(bucketizer, series)) {
+      bucketized = parallelBucketize(series, bucketspan, bucketcount, lastbucket, bucketizer, maxbuckets);
+    } else {
+      for (GeoTimeSerie gts: series) {
+        GeoTimeSerie b = GTSHelper.bucketize(gts, bucketspan, bucketcount, lastbucket, bucketizer, maxbuckets, bucketizer instanceof Macro ? stack : null);
+
+        bucketized.add(b);
+      }
     }
     
     stack.push(bucketized);
     return stack;
   }
+
+  /**
+   * Bucketize series sequentially, consuming the streams as they are encountered so only the
+   * series being bucketized is retained
+   */
+  private List<GeoTimeSerie> streamBucketize(WarpScriptStack stack, List<Object> inputs, long bucketspan, int bucketcount, long lastbucket, Object bucketizer, long maxbuckets) throws WarpScriptException {
+    List<GeoTimeSerie> bucketized = new ArrayList<GeoTimeSerie>();
+
+    for (Object input: inputs) {
+      if (input instanceof GTSStream) {
+        GTSStream stream = (GTSStream) input;
+        stream.consume();
+        try {
+          GeoTimeSerie gts;
+          while (null != (gts = stream.next())) {
+            bucketized.add(GTSHelper.bucketize(gts, bucketspan, bucketcount, lastbucket, bucketizer, maxbuckets, bucketizer instanceof Macro ? stack : null));
+          }
+        } finally {
+          stream.close();
+        }
+      } else if (input instanceof GeoTimeSerie) {
+        bucketized.add(GTSHelper.bucketize((GeoTimeSerie) input, bucketspan, bucketcount, lastbucket, bucketizer, maxbuckets, bucketizer instanceof Macro ? stack : null));
+      } else {
+        for (Object o: (List) input) {
+          if (!(o instanceof GeoTimeSerie)) {
+            throw new WarpScriptException(getName() + " expects a list of Geo Time Series as first parameter.");
+          }
+          bucketized.add(GTSHelper.bucketize((GeoTimeSerie) o, bucketspan, bucketcount, lastbucket, bucketizer, maxbuckets, bucketizer instanceof Macro ? stack : null));
+        }
+      }
+    }
+
+    return bucketized;
+  }
+
+  /**
+   * Apply a thread safe bucketizer to the series in parallel
+   */
+  private static List<GeoTimeSerie> parallelBucketize(final List<GeoTimeSerie> series, final long bucketspan, final int bucketcount, final long lastbucket, final Object bucketizer, final long maxbuckets) throws WarpScriptException {
+    return ParallelHelper.apply(series.size(), new ParallelHelper.Task<GeoTimeSerie>() {
+      @Override
+      public GeoTimeSerie apply(int idx) throws WarpScriptException {
+        return GTSHelper.bucketize(series.get(idx), bucketspan, bucketcount, lastbucket, bucketizer, maxbuckets, null);
+      }
+    });
+  }
 }
@@ -46,7 +46,9 @@ import org.joda.time.Period;
 import org.joda.time.ReadWritablePeriod;
 import org.joda.time.format.ISOPeriodFormat;
 
+import io.warp10.WarpConfig;
 import io.warp10.WarpDist;
+import io.warp10.continuum.Configuration;
 import io.warp10.continuum.TimeSource;
 import io.warp10.continuum.Tokens;
 import io.warp10.continuum.egress.EgressFetchHandler;
@@ -63,6 +65,8 @@ import io.warp10.continuum.store.GTSDecoderIterator;
 import io.warp10.continuum.store.MetadataIterator;
 import io.warp10.continuum.store.StoreClient;
 import io.warp10.continuum.store.thrift.data.DirectoryRequest;
+import io.warp10.continuum.store.thrift.data.FetchBucketization;
+import io.warp10.continuum.store.thrift.data.FetchBucketizer;
 import io.warp10.continuum.store.thrift.data.FetchRequest;
 import io.warp10.continuum.store.thrift.data.MetaSet;
 import io.warp10.continuum.store.thrift.data.Metadata;
@@ -71,8 +75,10 @@ import io.warp10.crypto.KeyStore;
 import io.warp10.crypto.OrderPreservingBase64;
 import io.warp10.crypto.SipHashInline;
 import io.warp10.quasar.token.thrift.data.ReadToken;
+import io.warp10.script.GTSStream;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptLib;
 import io.warp10.script.WarpScriptStack;
 import io.warp10.script.WarpScriptStackFunction;
 import io.warp10.script.unary.TOTIMESTAMP;
@@ -131,6 +137,43 @@ public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFun
   public static final String PARAM_GCOUNT = "gcount";
   public static final String PARAM_GSKIP = "gskip";
 
+  /**
+   * Return a GTSStream instead of a list of Geo Time Series
+   */
+  public static final String PARAM_STREAM = "stream";
+
+  /**
+   * Bucketization performed by the store while scanning, the fetched Geo Time Series are
+   * returned bucketized as if BUCKETIZE had been applied with the same parameters.
+   */
+  public static final String PARAM_BUCKETIZER = "bucketizer";
+  public static final String PARAM_BUCKETSPAN = "bucketspan";
+  public static final String PARAM_BUCKETCOUNT = "bucketcount";
+  public static final String PARAM_LASTBUCKET = "lastbucket";
+
+  /**
+   * Allow the store to read the rollup series maintained at ingestion time when bucketizing.
+   * Rollups count overwritten datapoints twice, they must not be used for series whose datapoints are overwritten.
+   */
+  public static final String PARAM_ROLLUPS = "rollups";
+
+  private static final boolean DEFAULT_ROLLUPS = "true".equals(WarpConfig.getProperty(Configuration.STANDALONE_ROLLUPS_FETCH));
+
+  /**
+   * Bucketizers which the store can apply, by function name
+   */
+  private static final Map<String,FetchBucketizer> BUCKETIZERS = new HashMap<String,FetchBucketizer>();
+
+  static {
+    BUCKETIZERS.put("bucketizer.sum", FetchBucketizer.SUM);
+    BUCKETIZERS.put("bucketizer.min", FetchBucketizer.MIN);
+    BUCKETIZERS.put("bucketizer.max", FetchBucketizer.MAX);
+    BUCKETIZERS.put("bucketizer.mean", FetchBucketizer.MEAN);
+    BUCKETIZERS.put("bucketizer.count", FetchBucketizer.COUNT);
+    BUCKETIZERS.put("bucketizer.first", FetchBucketizer.FIRST);
+    BUCKETIZERS.put("bucketizer.last", FetchBucketizer.LAST);
+  }
+
   public static final String POSTFETCH_HOOK = "postfetch";
 
   public static final String NOW_PARAM_VALUE = "now";
@@ -301,6 +344,61 @@ public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFun
       asEncoders = true;
     }
 
+    FetchStream stream = null;
+
+    if (Boolean.TRUE.equals(params.get(PARAM_STREAM))) {
+      if (asEncoders || null != typeattr) {
+        throw new WarpScriptException(getName() + " '" + PARAM_STREAM + "' cannot be combined with '" + PARAM_ENCODERS + "' or '" + PARAM_TYPEATTR + "'.");
+      }
+
+      // The hook expects the fetched series on the stack
+      if (rtoken.getHooksSize() > 0 && rtoken.getHooks().containsKey(POSTFETCH_HOOK)) {
+        throw new WarpScriptException(getName() + " '" + PARAM_STREAM + "' cannot be used with a token which has a '" + POSTFETCH_HOOK + "' hook.");
+      }
+
+      stream = new FetchStream(stack, gtsStore, rtoken, merge, expose);
+    }
+
+    FetchBucketization bucketization = (FetchBucketization) params.get(PARAM_BUCKETIZER);
+
+    if (null != bucketization) {
+      // Those options alter the datapoints after they were read or select them by count
+      if (asEncoders || null != typeattr || null != params.get(PARAM_TYPE) || null != this.forcedType) {
+        throw new WarpScriptException(getName() + " '" + PARAM_BUCKETIZER + "' cannot be combined with '" + PARAM_ENCODERS + "', '" + PARAM_TYPEATTR + "' or '" + PARAM_TYPE + "'.");
+      }
+
+      if (params.containsKey(PARAM_COUNT) || (long) params.getOrDefault(PARAM_BOUNDARY_PRE, 0L) > 0 || (long) params.getOrDefault(PARAM_BOUNDARY_POST, 0L) > 0
+          || Boolean.TRUE.equals(params.get(PARAM_WRITE_TIMESTAMP)) || Boolean.TRUE.equals(params.get(PARAM_TTL))) {
+        throw new WarpScriptException(getName() + " '" + PARAM_BUCKETIZER + "' cannot be used when fetching by count, with boundaries, write timestamps or TTLs.");
+      }
+
+      long maxbuckets = (long) stack.getAttribute(WarpScriptStack.ATTRIBUTE_MAX_BUCKETS);
+
+      if (bucketization.getBucketcount() > maxbuckets) {
+        throw new WarpScriptException(getName() + " bucket count (" + bucketization.getBucketcount() + ") would exceed maximum value of " + maxbuckets);
+      }
+
+      //
+      // Restrict the time range to the buckets
+      //
+
+      long end = (long) params.get(PARAM_END);
+      long start = (long) params.get(PARAM_START);
+
+      long lastbucket = bucketization.getLastbucket();
+      long firsttick = Long.MIN_VALUE;
+
+      try {
+        firsttick = Math.addExact(Math.subtractExact(lastbucket, Math.multiplyExact(bucketization.getBucketspan(), (long) bucketization.getBucketcount())), 1L);
+      } catch (ArithmeticException ae) {
+      }
+
+      if (Math.max(start, firsttick) <= Math.min(end, lastbucket)) {
+        params.put(PARAM_START, Math.max(start, firsttick));
+        params.put(PARAM_END, Math.min(end, lastbucket));
+      }
+    }
+
     List<String> clsSels = new ArrayList<String>();
     List<Map<String,String>> lblsSels = new ArrayList<Map<String,String>>();
 
@@ -667,8 +765,27 @@ public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFun
         req.setPreBoundary(preBoundary);
         req.setPostBoundary(postBoundary);
 
+        if (null != bucketization) {
+          req.setBucketization(bucketization);
+        }
+
+        //
+        // When streaming, only record the request, it will be issued when the stream is consumed
+        //
+
+        if (null != stream) {
+          req.setMetadatas(new ArrayList<Metadata>(metadatas));
+          stream.add(req, type, showUUID, countOnly, count, nocache, nopersist);
+          metadatas.clear();
+          continue;
+        }
+
+        // Whether the store honored the requested bucketization
+        boolean bucketized = false;
 
         try (GTSDecoderIterator gtsiter = gtsStore.fetch(req)) {
+          bucketized = gtsiter.isBucketized();
+
           while(gtsiter.hasNext() && !thread.isInterrupted()) {
             GTSDecoder decoder = gtsiter.next();
 
@@ -874,27 +991,14 @@ public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFun
             lastCount += GTSHelper.nvalues(gts);
 
             //
-            // Remove producer/owner labels
+            // Remove producer/owner labels and add a .uuid attribute if instructed to do so
             //
 
-            //
-            // Add a .uuid attribute if instructed to do so
-            //
-
-            if (showUUID) {
-              java.util.UUID uuid = new java.util.UUID(gts.getClassId(), gts.getLabelsId());
-              gts.getMetadata().putToAttributes(Constants.UUID_ATTRIBUTE, uuid.toString());
+            setLabels(gts, showUUID, expose);
+            if (bucketized) {
+              setBucketization(gts, bucketization);
             }
 
-            Map<String,String> labels = new LinkedHashMap<String, String>();
-            labels.putAll(gts.getMetadata().getLabels());
-
-            if (!Constants.EXPOSE_OWNER_PRODUCER && !expose) {
-              labels.remove(Constants.PRODUCER_LABEL);
-              labels.remove(Constants.OWNER_LABEL);
-            }
-            gts.setLabels(labels);
-
             //
             // If it's the first GTS, take it as is.
             //
@@ -907,20 +1011,14 @@ public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFun
               // Otherwise add 'base' to the stack and set it to 'gts'.
               //
               if (!merge || !base.getMetadata().getName().equals(gts.getMetadata().getName()) || !base.getMetadata().getLabels().equals(gts.getMetadata().getLabels())) {
-                series.add(base);
+                series.add(bucketize(stack, base, bucketization, bucketized));
                 base = gts;
               } else {
                 base = GTSHelper.merge(base, gts);
               }
             }
 
-            if (fetched.addAndGet(gts.size()) > fetchLimit) {
-              Map<String,String> sensisionLabels = new HashMap<String, String>();
-              sensisionLabels.put(SensisionConstants.SENSISION_LABEL_CONSUMERID, Tokens.getUUID(rtoken.getBilledId()));
-              Sensision.update(SensisionConstants.SENSISION_CLASS_WARPSCRIPT_FETCHCOUNT_EXCEEDED, sensisionLabels, 1);
-              throw new WarpScriptException(getName() + " exceeded limit of " + fetchLimit + " datapoints, current count is " + fetched.get());
-              //break;
-            }
+            checkFetchLimit(fetched, gts.size(), fetchLimit, rtoken);
 
             stack.handleSignal();
           }
@@ -936,7 +1034,7 @@ public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFun
         //
 
         if (null != base && null == typeattr) {
-          series.add(base);
+          series.add(bucketize(stack, base, bucketization, bucketized));
         }
 
         //
@@ -957,6 +1055,11 @@ public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFun
       }
     }
 
+    if (null != stream) {
+      stack.push(stream);
+      return stack;
+    }
+
     stack.push(series);
 
     //
@@ -1378,6 +1481,43 @@ public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFun
       params.put(PARAM_MERGE, Boolean.TRUE.equals(map.get(PARAM_MERGE)));
     }
 
+    if (map.containsKey(PARAM_STREAM)) {
+      params.put(PARAM_STREAM, Boolean.TRUE.equals(map.get(PARAM_STREAM)));
+    }
+
+    if (map.containsKey(PARAM_BUCKETIZER)) {
+      Object o = map.get(PARAM_BUCKETIZER);
+      FetchBucketizer bucketizer = null;
+
+      if (o instanceof NamedWarpScriptFunction) {
+        bucketizer = BUCKETIZERS.get(((NamedWarpScriptFunction) o).getName());
+      }
+
+      if (null == bucketizer) {
+        throw new WarpScriptException(getName() + " Invalid value for parameter '" + PARAM_BUCKETIZER + "', expected one of " + BUCKETIZERS.keySet() + ".");
+      }
+
+      if (!(map.get(PARAM_BUCKETSPAN) instanceof Long) || !(map.get(PARAM_BUCKETCOUNT) instanceof Long) || !(map.get(PARAM_LASTBUCKET) instanceof Long)) {
+        throw new WarpScriptException(getName() + " Parameter '" + PARAM_BUCKETIZER + "' expects parameters '" + PARAM_BUCKETSPAN + "', '" + PARAM_BUCKETCOUNT + "' and '" + PARAM_LASTBUCKET + "' to be set to LONGs.");
+      }
+
+      long bucketspan = (long) map.get(PARAM_BUCKETSPAN);
+      long bucketcount = (long) map.get(PARAM_BUCKETCOUNT);
+
+      if (bucketspan <= 0L || bucketcount <= 0L || bucketcount > Integer.MAX_VALUE) {
+        throw new WarpScriptException(getName() + " Parameters '" + PARAM_BUCKETSPAN + "' and '" + PARAM_BUCKETCOUNT + "' must be > 0.");
+      }
+
+      FetchBucketization bucketization = new FetchBucketization();
+      bucketization.setBucketizer(bucketizer);
+      bucketization.setBucketspan(bucketspan);
+      bucketization.setBucketcount((int) bucketcount);
+      bucketization.setLastbucket((long) map.get(PARAM_LASTBUCKET));
+      bucketization.setRollups(map.containsKey(PARAM_ROLLUPS) ? Boolean.TRUE.equals(map.get(PARAM_ROLLUPS)) : DEFAULT_ROLLUPS);
+
+      params.put(PARAM_BUCKETIZER, bucketization);
+    }
+
     if (map.containsKey(PARAM_GSKIP)) {
       Object o = map.get(PARAM_GSKIP);
       if (!(o instanceof Long)) {
@@ -1745,4 +1885,286 @@ public class FETCH extends NamedWarpScriptFunction implements WarpScriptStackFun
 
     return attributes;
   }
+
+  /**
+   * Remove the producer and owner labels unless they should be exposed, add a .uuid attribute if requested
+   */
+  private static void setLabels(GeoTimeSerie gts, boolean showUUID, boolean expose) {
+    if (showUUID) {
+      java.util.UUID uuid = new java.util.UUID(gts.getClassId(), gts.getLabelsId());
+      gts.getMetadata().putToAttributes(Constants.UUID_ATTRIBUTE, uuid.toString());
+    }
+
+    Map<String,String> labels = new LinkedHashMap<String, String>();
+    labels.putAll(gts.getMetadata().getLabels());
+
+    if (!Constants.EXPOSE_OWNER_PRODUCER && !expose) {
+      labels.remove(Constants.PRODUCER_LABEL);
+      labels.remove(Constants.OWNER_LABEL);
+    }
+    gts.setLabels(labels);
+  }
+
+  /**
+   * Mark a Geo Time Series as bucketized if the store bucketized it
+   */
+  private static void setBucketization(GeoTimeSerie gts, FetchBucketization bucketization) {
+    if (null == bucketization) {
+      return;
+    }
+
+    GTSHelper.setBucketSpan(gts, bucketization.getBucketspan());
+    GTSHelper.setBucketCount(gts, bucketization.getBucketcount());
+    GTSHelper.setLastBucket(gts, bucketization.getLastbucket());
+  }
+
+  /**
+   * Bucketize a fetched Geo Time Series on the client side if the store ignored the requested bucketization
+   */
+  private static GeoTimeSerie bucketize(WarpScriptStack stack, GeoTimeSerie gts, FetchBucketization bucketization, boolean bucketized) throws WarpScriptException {
+    if (null == gts || null == bucketization || bucketized) {
+      return gts;
+    }
+
+    Object bucketizer = null;
+
+    for (Entry<String,FetchBucketizer> entry: BUCKETIZERS.entrySet()) {
+      if (entry.getValue() == bucketization.getBucketizer()) {
+        bucketizer = WarpScriptLib.getFunction(entry.getKey());
+      }
+    }
+
+    long maxbuckets = (long) stack.getAttribute(WarpScriptStack.ATTRIBUTE_MAX_BUCKETS);
+
+    return GTSHelper.bucketize(gts, bucketization.getBucketspan(), bucketization.getBucketcount(), bucketization.getLastbucket(), bucketizer, maxbuckets, null);
+  }
+
+  private void checkFetchLimit(AtomicLong fetched, long count, long fetchLimit, ReadToken rtoken) throws WarpScriptException {
+    if (fetched.addAndGet(count) > fetchLimit) {
+      Map<String,String> sensisionLabels = new HashMap<String, String>();
+      sensisionLabels.put(SensisionConstants.SENSISION_LABEL_CONSUMERID, Tokens.getUUID(rtoken.getBilledId()));
+      Sensision.update(SensisionConstants.SENSISION_CLASS_WARPSCRIPT_FETCHCOUNT_EXCEEDED, sensisionLabels, 1);
+      throw new WarpScriptException(getName() + " exceeded limit of " + fetchLimit + " datapoints, current count is " + fetched.get());
+    }
+  }
+
+  /**
+   * Lazy result of FETCH. The Directory is queried when FETCH is called, the fetch requests are
+   * only issued when the stream is consumed. Datapoints of a series are decoded when the series
+   * is requested, only the series being built and the first chunk of the next one are retained.
+   */
+  private final class FetchStream extends GTSStream {
+    private final WarpScriptStack stack;
+    private final StoreClient gtsStore;
+    private final ReadToken rtoken;
+    private final boolean merge;
+    private final boolean expose;
+
+    private final AtomicLong fetched;
+    private final long fetchLimit;
+
+    /**
+     * Pending fetch requests, one per batch of Metadata
+     */
+    private final List<FetchRequest> requests = new ArrayList<FetchRequest>();
+
+    private TYPE type;
+    private boolean showUUID;
+    private boolean countOnly;
+    private long count;
+    private boolean nocache;
+    private boolean nopersist;
+    private FetchBucketization bucketization;
+
+    private int nextRequest = 0;
+    private GTSDecoderIterator decoders = null;
+
+    /**
+     * Decoded chunk which was read ahead and belongs to the next series, and the batch it comes from
+     */
+    private GeoTimeSerie pending = null;
+    private int pendingBatch = 0;
+    private boolean pendingBucketized = false;
+
+    /**
+     * Whether the store honored the bucketization of the request of the last decoded chunk
+     */
+    private boolean bucketized = false;
+
+    private Metadata lastMetadata = null;
+    private long lastCount = 0L;
+    private TYPE lastType = TYPE.UNDEFINED;
+
+    private FetchStream(WarpScriptStack stack, StoreClient gtsStore, ReadToken rtoken, boolean merge, boolean expose) {
+      this.stack = stack;
+      this.gtsStore = gtsStore;
+      this.rtoken = rtoken;
+      this.merge = merge;
+      this.expose = expose;
+      this.fetched = (AtomicLong) stack.getAttribute(WarpScriptStack.ATTRIBUTE_FETCH_COUNT);
+      this.fetchLimit = (long) stack.getAttribute(WarpScriptStack.ATTRIBUTE_FETCH_LIMIT);
+    }
+
+    private void add(FetchRequest req, TYPE type, boolean showUUID, boolean countOnly, long count, boolean nocache, boolean nopersist) {
+      this.requests.add(req);
+      this.type = type;
+      this.showUUID = showUUID;
+      this.countOnly = countOnly;
+      this.count = count;
+      this.nocache = nocache;
+      this.nopersist = nopersist;
+      this.bucketization = req.getBucketization();
+    }
+
+    @Override
+    public GeoTimeSerie next() throws WarpScriptException {
+      GeoTimeSerie base = null;
+      int baseBatch = 0;
+      boolean baseBucketized = false;
+
+      while (true) {
+        GeoTimeSerie gts = this.pending;
+        int batch = this.pendingBatch;
+        boolean bucketized = this.pendingBucketized;
+        this.pending = null;
+
+        if (null == gts) {
+          gts = decodeNext();
+          batch = this.nextRequest;
+          bucketized = this.bucketized;
+        }
+
+        if (null == gts) {
+          return bucketize(this.stack, base, this.bucketization, baseBucketized);
+        }
+
+        if (null == base) {
+          base = gts;
+          baseBatch = batch;
+          baseBucketized = bucketized;
+          continue;
+        }
+
+        //
+        // Series are merged within a batch if their name and labels are identical, as in FETCH
+        //
+
+        if (!this.merge || batch != baseBatch || !base.getMetadata().getName().equals(gts.getMetadata().getName()) || !base.getMetadata().getLabels().equals(gts.getMetadata().getLabels())) {
+          this.pending = gts;
+          this.pendingBatch = batch;
+          this.pendingBucketized = bucketized;
+          return bucketize(this.stack, base, this.bucketization, baseBucketized);
+        }
+
+        base = GTSHelper.merge(base, gts);
+      }
+    }
+
+    /**
+     * Decode the next chunk, issuing the next fetch request if needed
+     */
+    private GeoTimeSerie decodeNext() throws WarpScriptException {
+      try {
+        while (true) {
+          if (null == this.decoders) {
+            if (this.nextRequest >= this.requests.size()) {
+              return null;
+            }
+
+            FetchRequest req = this.requests.get(this.nextRequest);
+            // Release the Metadata of the request
+            this.requests.set(this.nextRequest, null);
+            this.nextRequest++;
+
+            if (this.nocache) {
+              AcceleratorConfig.nocache();
+            } else {
+              AcceleratorConfig.cache();
+            }
+
+            if (this.nopersist) {
+              AcceleratorConfig.nopersist();
+            } else {
+              AcceleratorConfig.persist();
+            }
+
+            this.decoders = this.gtsStore.fetch(req);
+          }
+
+          if (Thread.currentThread().isInterrupted() || !this.decoders.hasNext()) {
+            GTSDecoderIterator iter = this.decoders;
+            this.decoders = null;
+            iter.close();
+
+            if (Thread.currentThread().isInterrupted()) {
+              this.nextRequest = this.requests.size();
+            }
+            continue;
+          }
+
+          GTSDecoder decoder = this.decoders.next();
+          this.bucketized = this.decoders.isBucketized();
+
+          boolean identical = true;
+
+          if (null == this.lastMetadata || !this.lastMetadata.equals(decoder.getMetadata())) {
+            this.lastMetadata = decoder.getMetadata();
+            identical = false;
+            this.lastCount = 0;
+            this.lastType = TYPE.UNDEFINED;
+          }
+
+          GeoTimeSerie gts;
+
+          if (null != this.type) {
+            gts = decoder.decode(this.type);
+          } else {
+            // Decode using the type of the previous chunk of the same series, see FETCH
+            if (identical && this.lastType != TYPE.UNDEFINED) {
+              gts = decoder.decode(this.lastType);
+            } else {
+              gts = decoder.decode();
+            }
+            this.lastType = gts.getType();
+          }
+
+          if (this.countOnly && this.lastCount + GTSHelper.nvalues(gts) > this.count) {
+            gts = GTSHelper.shrinkTo(gts, (int) Math.max(this.count - this.lastCount, 0));
+          }
+
+          this.lastCount += GTSHelper.nvalues(gts);
+
+          setLabels(gts, this.showUUID, this.expose);
+          if (this.bucketized) {
+            setBucketization(gts, this.bucketization);
+          }
+
+          checkFetchLimit(this.fetched, gts.size(), this.fetchLimit, this.rtoken);
+
+          this.stack.handleSignal();
+
+          return gts;
+        }
+      } catch (WarpScriptException wse) {
+        throw wse;
+      } catch (Throwable t) {
+        throw new WarpScriptException(getName() + " failed.", t);
+      }
+    }
+
+    @Override
+    public void close() {
+      this.pending = null;
+      this.requests.clear();
+      this.nextRequest = 0;
+
+      if (null != this.decoders) {
+        try {
+          this.decoders.close();
+        } catch (Exception e) {
+        }
+        this.decoders = null;
+      }
+    }
+  }
 }
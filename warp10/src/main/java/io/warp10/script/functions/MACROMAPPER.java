@@ -18,6 +18,7 @@ package io.warp10.script.functions;
 
 import io.warp10.continuum.gts.GeoTimeSerie;
 import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.ThreadSafeAggregator;
 import io.warp10.script.WarpScriptBucketizerFunction;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptLib;
@@ -36,7 +37,7 @@ import com.geoxp.GeoXPLib;
 
 public class MACROMAPPER extends NamedWarpScriptFunction implements WarpScriptStackFunction {
 
-  public static class MacroMapperWrapper extends NamedWarpScriptFunction implements WarpScriptMapperFunction, WarpScriptReducerFunction, WarpScriptBucketizerFunction {
+  public static class MacroMapperWrapper extends NamedWarpScriptFunction implements WarpScriptMapperFunction, WarpScriptReducerFunction, WarpScriptBucketizerFunction, ThreadSafeAggregator {
 
     private final WarpScriptStack stack;
     private final Macro macro;
@@ -47,6 +48,12 @@ public class MACROMAPPER extends NamedWarpScriptFunction implements WarpScriptSt
       this.macro = macro;
     }
     
+    @Override
+    public boolean isThreadSafe() {
+      // The macro is executed on the stack
+      return false;
+    }
+
     @Override
     public String toString() {
       StringBuilder sb = new StringBuilder();
@@ -18,7 +18,9 @@ package io.warp10.script.functions;
 
 import io.warp10.continuum.gts.GTSHelper;
 import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.script.GTSStream;
 import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.ParallelHelper;
 import io.warp10.script.WarpScriptATCException;
 import io.warp10.script.WarpScriptMapperFunction;
 import io.warp10.script.WarpScriptStack.Macro;
@@ -27,12 +29,15 @@ import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptStack;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 /**
  * Apply a mapper on some GTS instances
+ *
+ * Streams of Geo Time Series (see FETCH) are consumed one series at a time.
  */
 public class MAP extends NamedWarpScriptFunction implements WarpScriptStackFunction {
 
@@ -76,7 +81,7 @@ public class MAP extends NamedWarpScriptFunction implements WarpScriptStackFunct
     int nseries = 0;
 
     for (Object param: params) {
-      if (!(param instanceof GeoTimeSerie) && !(param instanceof List)) {
+      if (!(param instanceof GeoTimeSerie) && !(param instanceof List) && !(param instanceof GTSStream)) {
         break;
       }
       nseries++;
@@ -223,6 +228,45 @@ public class MAP extends NamedWarpScriptFunction implements WarpScriptStackFunct
 
     Object top = stack.pop();
 
+    //
+    // Streams are mapped sequentially as they are consumed
+    //
+
+    if (top instanceof GTSStream || (top instanceof List && containsStream((List) top))) {
+      List<Object> mapped = new ArrayList<Object>();
+      List<Object> inputs = top instanceof List ? (List<Object>) top : Collections.singletonList(top);
+
+      for (Object o: inputs) {
+        if (o instanceof GTSStream) {
+          GTSStream stream = (GTSStream) o;
+          stream.consume();
+          try {
+            GeoTimeSerie gts;
+            while (null != (gts = stream.next())) {
+              addMapped(mapped, map(stack, gts, mapper, prewindow, postwindow, occurrences, step, overrideTick, (List<Long>) outputTicks));
+            }
+          } finally {
+            stream.close();
+          }
+        } else if (o instanceof GeoTimeSerie) {
+          addMapped(mapped, map(stack, (GeoTimeSerie) o, mapper, prewindow, postwindow, occurrences, step, overrideTick, (List<Long>) outputTicks));
+        } else if (o instanceof List) {
+          for (Object oo: (List) o) {
+            if (!(oo instanceof GeoTimeSerie)) {
+              throw new WarpScriptException(getName() + " operates on lists of Geo Time Series.");
+            }
+            addMapped(mapped, map(stack, (GeoTimeSerie) oo, mapper, prewindow, postwindow, occurrences, step, overrideTick, (List<Long>) outputTicks));
+          }
+        } else {
+          throw new WarpScriptException(getName() + " operates on lists of Geo Time Series.");
+        }
+      }
+
+      stack.push(mapped);
+
+      return stack;
+    }
+
     List<GeoTimeSerie> series = new ArrayList<GeoTimeSerie>();
 
     // top is expected to be a GTS, a list of GTS or a list of list of GTS
@@ -262,24 +306,20 @@ public class MAP extends NamedWarpScriptFunction implements WarpScriptStackFunct
 
     List<Object> mapped = new ArrayList<Object>();
 
-    for (GeoTimeSerie gts: series) {
-      List<GeoTimeSerie> res;
-      try {
-        res = GTSHelper.map(gts, mapper, prewindow, postwindow, Math.abs(occurrences), occurrences < 0, step, overrideTick, mapper instanceof Macro ? stack : null, (List<Long>) outputTicks);
-      } catch (WarpScriptATCException wsatce) {
-        // Do not handle WarpScriptATCException (STOP in MACROMAPPER for instance)
-        throw wsatce;
-      } catch (WarpScriptException wse) {
-        throw new WarpScriptException(getName() + " was given invalid parameters.", wse);
-      }
+    List<List<GeoTimeSerie>> results = new ArrayList<List<GeoTimeSerie>>(series.size());
 
-      if (res.size() < 2) {
-        mapped.addAll(res);
-      } else {
-        mapped.add(res);
+    if (ParallelHelper.useParallelism(mapper, series)) {
+      results = parallelMap(series, mapper, prewindow, postwindow, occurrences, step, overrideTick, (List<Long>) outputTicks);
+    } else {
+      for (GeoTimeSerie gts: series) {
+        results.add(map(stack, gts, mapper, prewindow, postwindow, occurrences, step, overrideTick, (List<Long>) outputTicks));
       }
     }
 
+    for (List<GeoTimeSerie> res: results) {
+      addMapped(mapped, res);
+    }
+
     //
     // Push to stack and return
     //
@@ -288,4 +328,60 @@ public class MAP extends NamedWarpScriptFunction implements WarpScriptStackFunct
 
     return stack;
   }
+
+  private List<GeoTimeSerie> map(WarpScriptStack stack, GeoTimeSerie gts, Object mapper, long prewindow, long postwindow, long occurrences, int step, boolean overrideTick, List<Long> outputTicks) throws WarpScriptException {
+    try {
+      return GTSHelper.map(gts, mapper, prewindow, postwindow, Math.abs(occurrences), occurrences < 0, step, overrideTick, mapper instanceof Macro ? stack : null, outputTicks);
+    } catch (WarpScriptATCException wsatce) {
+      // Do not handle WarpScriptATCException (STOP in MACROMAPPER for instance)
+      throw wsatce;
+    } catch (WarpScriptException wse) {
+      throw new WarpScriptException(getName() + " was given invalid parameters.", wse);
+    }
+  }
+
+  private static void addMapped(List<Object> mapped, List<GeoTimeSerie> res) {
+    if (res.size() < 2) {
+      mapped.addAll(res);
+    } else {
+      mapped.add(res);
+    }
+  }
+
+  private static boolean containsStream(List list) {
+    for (Object o: list) {
+      if (o instanceof GTSStream) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Apply a thread safe mapper to the series in parallel
+   */
+  private List<List<GeoTimeSerie>> parallelMap(final List<GeoTimeSerie> series, final Object mapper, final long prewindow, final long postwindow, final long occurrences, final int step, final boolean overrideTick, final List<Long> outputTicks) throws WarpScriptException {
+    //
+    // GTSHelper#map sorts the output ticks in place, sort them once and give each task its own copy
+    //
+
+    if (null != outputTicks) {
+      if (occurrences < 0) {
+        Collections.sort(outputTicks, Collections.<Long>reverseOrder());
+      } else {
+        Collections.sort(outputTicks);
+      }
+    }
+
+    try {
+      return ParallelHelper.apply(series.size(), new ParallelHelper.Task<List<GeoTimeSerie>>() {
+        @Override
+        public List<GeoTimeSerie> apply(int idx) throws WarpScriptException {
+          return GTSHelper.map(series.get(idx), mapper, prewindow, postwindow, Math.abs(occurrences), occurrences < 0, step, overrideTick, null, null == outputTicks ? null : new ArrayList<Long>(outputTicks));
+        }
+      });
+    } catch (WarpScriptException wse) {
+      throw new WarpScriptException(getName() + " was given invalid parameters.", wse);
+    }
+  }
 }
@@ -0,0 +1,46 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.functions;
+
+import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptProfiler;
+import io.warp10.script.WarpScriptStack;
+import io.warp10.script.WarpScriptStackFunction;
+
+/**
+ * Push onto the stack the statistics collected so far by the profiler, or NULL if profiling is disabled.
+ */
+public class PROFILESTATS extends NamedWarpScriptFunction implements WarpScriptStackFunction {
+
+  public PROFILESTATS(String name) {
+    super(name);
+  }
+
+  @Override
+  public Object apply(WarpScriptStack stack) throws WarpScriptException {
+    WarpScriptProfiler profiler = (WarpScriptProfiler) stack.getAttribute(WarpScriptStack.ATTRIBUTE_PROFILER);
+
+    if (null == profiler) {
+      stack.push(null);
+    } else {
+      stack.push(profiler.getStats());
+    }
+
+    return stack;
+  }
+}
@@ -18,6 +18,7 @@ package io.warp10.script.functions;
 
 import io.warp10.continuum.gts.GTSHelper;
 import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.script.GTSStream;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptReducerFunction;
 import io.warp10.script.WarpScriptStackFunction;
@@ -33,6 +34,8 @@ import java.util.List;
  *
  * [ [GTS] [GTS] ... [labels] reducer ] REDUCE
  * 
+ * Streams of Geo Time Series (see FETCH) can be used in place of the lists of GTS, they are
+ * fully consumed before the reduction.
  */
 public class REDUCE extends NamedWarpScriptFunction implements WarpScriptStackFunction {
   
@@ -58,7 +61,7 @@ public class REDUCE extends NamedWarpScriptFunction implements WarpScriptStackFu
     }
     
     for (int i = 0; i < params.size() - 2; i++) {
-      if (!(params.get(i) instanceof List)) {
+      if (!(params.get(i) instanceof List) && !(params.get(i) instanceof GTSStream)) {
         throw new WarpScriptException(getName() + " expects lists of Geo Time Series as first parameter.");
       }              
     }
@@ -94,7 +97,9 @@ public class REDUCE extends NamedWarpScriptFunction implements WarpScriptStackFu
     Collection<String> bylabels = (Collection<String>) params.get(labelsIndex);
 
     for (int i = 0; i < labelsIndex; i++) {
-      for (Object o: (List) params.get(i)) {
+      // Streams are materialized as the equivalence classes need all the series
+      List input = params.get(i) instanceof GTSStream ? ((GTSStream) params.get(i)).toList() : (List) params.get(i);
+      for (Object o: input) {
         if (o instanceof GeoTimeSerie) {
           series.add((GeoTimeSerie) o);
         } else {
@@ -103,10 +108,11 @@ public class REDUCE extends NamedWarpScriptFunction implements WarpScriptStackFu
       }
     }    
 
+    // Equivalence classes are reduced in parallel if possible
     if (this.flatten) {
-      stack.push(GTSHelper.reduce((WarpScriptReducerFunction) params.get(reducerIndex), series, bylabels, overrideTick));
+      stack.push(GTSHelper.reduce((WarpScriptReducerFunction) params.get(reducerIndex), series, bylabels, overrideTick, true));
     } else {
-      stack.push(GTSHelper.reduceUnflattened((WarpScriptReducerFunction) params.get(reducerIndex), series, bylabels, overrideTick));
+      stack.push(GTSHelper.reduceUnflattened((WarpScriptReducerFunction) params.get(reducerIndex), series, bylabels, overrideTick, true));
     }
     return stack;
   }
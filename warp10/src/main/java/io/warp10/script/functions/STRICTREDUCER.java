@@ -18,6 +18,8 @@ package io.warp10.script.functions;
 
 import io.warp10.continuum.gts.GeoTimeSerie;
 import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.ParallelHelper;
+import io.warp10.script.ThreadSafeAggregator;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptLib;
 import io.warp10.script.WarpScriptReducerFunction;
@@ -33,7 +35,7 @@ public class STRICTREDUCER extends NamedWarpScriptFunction implements WarpScript
     super(name);
   }
   
-  private static final class StringentReducer extends NamedWarpScriptFunction implements WarpScriptReducerFunction {
+  private static final class StringentReducer extends NamedWarpScriptFunction implements WarpScriptReducerFunction, ThreadSafeAggregator {
     
     private final WarpScriptReducerFunction reducer;
     
@@ -56,6 +58,11 @@ public class STRICTREDUCER extends NamedWarpScriptFunction implements WarpScript
       return reducer.apply(args);
     }
     
+    @Override
+    public boolean isThreadSafe() {
+      return ParallelHelper.isThreadSafe(reducer);
+    }
+
     @Override
     public String toString() {
       StringBuilder sb = new StringBuilder();
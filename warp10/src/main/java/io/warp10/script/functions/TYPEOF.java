@@ -19,6 +19,7 @@ package io.warp10.script.functions;
 import com.geoxp.GeoXPLib;
 import io.warp10.continuum.gts.GTSEncoder;
 import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.script.GTSStream;
 import io.warp10.script.NamedWarpScriptFunction;
 import io.warp10.script.WarpScriptAggregatorFunction;
 import io.warp10.script.WarpScriptException;
@@ -72,6 +73,7 @@ public class TYPEOF extends NamedWarpScriptFunction implements WarpScriptStackFu
   public static final String TYPE_OPERATOR = "OPERATOR";
   public static final String TYPE_GTS = "GTS";
   public static final String TYPE_GTSENCODER = "GTSENCODER";
+  public static final String TYPE_GTSSTREAM = "GTSSTREAM";
   public static final String TYPE_BYTES = "BYTES";
   public static final String TYPE_PGRAPHICSIMAGE = "PGRAPHICS";
   public static final String TYPE_GEOSHAPE = "GEOSHAPE";
@@ -149,6 +151,8 @@ public class TYPEOF extends NamedWarpScriptFunction implements WarpScriptStackFu
       return TYPE_GTS;
     } else if (GTSEncoder.class.isAssignableFrom(c)) {
       return TYPE_GTSENCODER;
+    } else if (GTSStream.class.isAssignableFrom(c)) {
+      return TYPE_GTSSTREAM;
     } else if (byte[].class.isAssignableFrom(c)) {
       return TYPE_BYTES;
     } else if (PGraphics.class.isAssignableFrom(c)) {
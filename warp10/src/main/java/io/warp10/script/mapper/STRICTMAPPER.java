@@ -19,6 +19,8 @@ package io.warp10.script.mapper;
 import io.warp10.continuum.gts.GTSHelper;
 import io.warp10.continuum.gts.GeoTimeSerie;
 import io.warp10.script.NamedWarpScriptFunction;
+import io.warp10.script.ParallelHelper;
+import io.warp10.script.ThreadSafeAggregator;
 import io.warp10.script.WarpScriptException;
 import io.warp10.script.WarpScriptLib;
 import io.warp10.script.WarpScriptMapperFunction;
@@ -38,7 +40,7 @@ public class STRICTMAPPER extends NamedWarpScriptFunction implements WarpScriptS
   }
 
 
-  private static final class StringentMapper extends NamedWarpScriptFunction implements WarpScriptMapperFunction {
+  private static final class StringentMapper extends NamedWarpScriptFunction implements WarpScriptMapperFunction, ThreadSafeAggregator {
 
     private final long min;
     private final long max;
@@ -70,6 +72,11 @@ public class STRICTMAPPER extends NamedWarpScriptFunction implements WarpScriptS
       return mapper.apply(args);
     }
 
+    @Override
+    public boolean isThreadSafe() {
+      return ParallelHelper.isThreadSafe(mapper);
+    }
+
     @Override
     public String toString() {
       StringBuilder sb = new StringBuilder();
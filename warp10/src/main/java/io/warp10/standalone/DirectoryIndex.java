@@ -0,0 +1,708 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.standalone;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import io.warp10.continuum.store.Directory;
+import io.warp10.continuum.store.thrift.data.Metadata;
+
+/**
+ * In-memory index of Metadata, by class name and labelsId.
+ *
+ * The index is striped per class, each class has its own open addressing table of labelsId to Metadata.
+ * Lookups and iterations never lock, modifications of a class only lock that class.
+ *
+ * The labels of indexed Metadata are replaced by compact immutable maps whose names and values
+ * are interned.
+ *
+ * An optional LabelIndex can be maintained to find Metadata by exact label values.
+ */
+class DirectoryIndex {
+
+  /**
+   * Marker of removed entries in the class tables
+   */
+  private static final Metadata TOMBSTONE = new Metadata();
+
+  private static final int INITIAL_CAPACITY = 8;
+
+  /**
+   * Per class index
+   */
+  static final class ClassIndex {
+    private final String name;
+    private final long classId;
+    private final LabelIndex labels;
+
+    private static final class Table {
+      private final long[] keys;
+      private final AtomicReferenceArray<Metadata> values;
+      // Ordinals of the entries in the label index
+      private final int[] ordinals;
+      private final int mask;
+      // Number of slots which are not null, including tombstones
+      private int used = 0;
+
+      private Table(int capacity) {
+        this.keys = new long[capacity];
+        this.values = new AtomicReferenceArray<Metadata>(capacity);
+        this.ordinals = new int[capacity];
+        this.mask = capacity - 1;
+      }
+    }
+
+    private volatile Table table = new Table(INITIAL_CAPACITY);
+
+    private volatile int size = 0;
+
+    /**
+     * Flag set when the class index was removed from the directory index, guarded by 'this'
+     */
+    private boolean removed = false;
+
+    private ClassIndex(String name, long classId, LabelIndex labels) {
+      this.name = name;
+      this.classId = classId;
+      this.labels = labels;
+    }
+
+    String getName() {
+      return this.name;
+    }
+
+    long getClassId() {
+      return this.classId;
+    }
+
+    int size() {
+      return this.size;
+    }
+
+    Metadata get(long labelsId) {
+      Table t = this.table;
+
+      int idx = hash(labelsId) & t.mask;
+
+      while (true) {
+        Metadata metadata = t.values.get(idx);
+
+        if (null == metadata) {
+          return null;
+        }
+
+        // The Metadata is checked too as the slot may have been reused since it was read
+        if (TOMBSTONE != metadata && labelsId == t.keys[idx] && labelsId == metadata.getLabelsId()) {
+          return metadata;
+        }
+
+        idx = (idx + 1) & t.mask;
+      }
+    }
+
+    /**
+     * Add or replace a Metadata, MUST be called with the lock on the class index held
+     *
+     * @return The replaced Metadata or null
+     */
+    private Metadata put(long labelsId, Metadata metadata) {
+      Table t = this.table;
+
+      int idx = hash(labelsId) & t.mask;
+      int free = -1;
+
+      while (true) {
+        Metadata current = t.values.get(idx);
+
+        if (null == current) {
+          break;
+        }
+
+        if (TOMBSTONE == current) {
+          if (-1 == free) {
+            free = idx;
+          }
+        } else if (labelsId == t.keys[idx]) {
+          if (null != this.labels) {
+            this.labels.update(t.ordinals[idx], metadata);
+          }
+          t.values.set(idx, metadata);
+          return current;
+        }
+
+        idx = (idx + 1) & t.mask;
+      }
+
+      if (-1 == free) {
+        // Grow or purge tombstones when the table would become too full
+        if ((t.used + 1) * 4L > t.keys.length * 3L) {
+          t = resize(this.size + 1);
+          this.table = t;
+          idx = hash(labelsId) & t.mask;
+          while (null != t.values.get(idx)) {
+            idx = (idx + 1) & t.mask;
+          }
+        }
+        t.used++;
+        free = idx;
+      }
+
+      t.keys[free] = labelsId;
+      if (null != this.labels) {
+        t.ordinals[free] = this.labels.add(metadata);
+      }
+      t.values.set(free, metadata);
+      this.size++;
+
+      return null;
+    }
+
+    /**
+     * Remove a Metadata, MUST be called with the lock on the class index held
+     */
+    private Metadata remove(long labelsId) {
+      Table t = this.table;
+
+      int idx = hash(labelsId) & t.mask;
+
+      while (true) {
+        Metadata current = t.values.get(idx);
+
+        if (null == current) {
+          return null;
+        }
+
+        if (TOMBSTONE != current && labelsId == t.keys[idx]) {
+          t.values.set(idx, TOMBSTONE);
+          if (null != this.labels) {
+            this.labels.remove(t.ordinals[idx]);
+          }
+          this.size--;
+          return current;
+        }
+
+        idx = (idx + 1) & t.mask;
+      }
+    }
+
+    /**
+     * Create a table able to hold 'count' entries and fill it with the live entries of the current table.
+     * Readers keep using the current table until the new one is published.
+     */
+    private Table resize(int count) {
+      int capacity = INITIAL_CAPACITY;
+
+      while (capacity * 3L < count * 8L) {
+        capacity <<= 1;
+      }
+
+      Table t = this.table;
+      Table resized = new Table(capacity);
+
+      for (int i = 0; i < t.keys.length; i++) {
+        Metadata metadata = t.values.get(i);
+        if (null == metadata || TOMBSTONE == metadata) {
+          continue;
+        }
+        int idx = hash(t.keys[i]) & resized.mask;
+        while (null != resized.values.get(idx)) {
+          idx = (idx + 1) & resized.mask;
+        }
+        resized.keys[idx] = t.keys[i];
+        resized.ordinals[idx] = t.ordinals[i];
+        resized.values.set(idx, metadata);
+        resized.used++;
+      }
+
+      return resized;
+    }
+
+    /**
+     * Iterate over the Metadata of the class. The iteration is weakly consistent, it may or may not
+     * reflect the modifications done after it started.
+     */
+    Iterator<Metadata> iterator() {
+      final Table t = this.table;
+
+      return new Iterator<Metadata>() {
+        private int idx = -1;
+        private Metadata next = advance();
+
+        private Metadata advance() {
+          while (++idx < t.keys.length) {
+            Metadata metadata = t.values.get(idx);
+            if (null != metadata && TOMBSTONE != metadata) {
+              return metadata;
+            }
+          }
+          return null;
+        }
+
+        @Override
+        public boolean hasNext() {
+          return null != next;
+        }
+
+        @Override
+        public Metadata next() {
+          if (null == next) {
+            throw new NoSuchElementException();
+          }
+          Metadata metadata = next;
+          next = advance();
+          return metadata;
+        }
+
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+
+    private static int hash(long id) {
+      // Ids are SipHash values so their bits are already well distributed
+      return (int) (id ^ (id >>> 32));
+    }
+  }
+
+  /**
+   * Immutable labels map backed by an array of alternating names and values, sorted by name
+   */
+  static final class Labels extends AbstractMap<String,String> {
+    private final String[] kv;
+
+    private Labels(String[] kv) {
+      this.kv = kv;
+    }
+
+    @Override
+    public int size() {
+      return kv.length >>> 1;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      return index(key) >= 0;
+    }
+
+    @Override
+    public String get(Object key) {
+      int idx = index(key);
+      return idx < 0 ? null : kv[idx + 1];
+    }
+
+    private int index(Object key) {
+      if (!(key instanceof String)) {
+        return -1;
+      }
+
+      int lo = 0;
+      int hi = (kv.length >>> 1) - 1;
+
+      while (lo <= hi) {
+        int mid = (lo + hi) >>> 1;
+        int cmp = kv[mid << 1].compareTo((String) key);
+        if (cmp < 0) {
+          lo = mid + 1;
+        } else if (cmp > 0) {
+          hi = mid - 1;
+        } else {
+          return mid << 1;
+        }
+      }
+
+      return -1;
+    }
+
+    @Override
+    public Set<Entry<String,String>> entrySet() {
+      return new AbstractSet<Entry<String,String>>() {
+        @Override
+        public int size() {
+          return kv.length >>> 1;
+        }
+
+        @Override
+        public Iterator<Entry<String,String>> iterator() {
+          return new Iterator<Entry<String,String>>() {
+            private int idx = 0;
+
+            @Override
+            public boolean hasNext() {
+              return idx < kv.length;
+            }
+
+            @Override
+            public Entry<String,String> next() {
+              if (idx >= kv.length) {
+                throw new NoSuchElementException();
+              }
+              Entry<String,String> entry = new SimpleImmutableEntry<String,String>(kv[idx], kv[idx + 1]);
+              idx += 2;
+              return entry;
+            }
+
+            @Override
+            public void remove() {
+              throw new UnsupportedOperationException();
+            }
+          };
+        }
+      };
+    }
+  }
+
+  private static final Comparator<ClassIndex> CLASS_INDEX_COMPARATOR = new Comparator<ClassIndex>() {
+    @Override
+    public int compare(ClassIndex o1, ClassIndex o2) {
+      int cmp = Directory.ID_COMPARATOR.compare(o1.classId, o2.classId);
+
+      if (0 != cmp) {
+        return cmp;
+      }
+
+      return o1.name.compareTo(o2.name);
+    }
+  };
+
+  private final ConcurrentHashMap<String,ClassIndex> classes = new ConcurrentHashMap<String,ClassIndex>();
+
+  /**
+   * Class indices ordered by classId
+   */
+  private final Set<ClassIndex> sorted = new ConcurrentSkipListSet<ClassIndex>(CLASS_INDEX_COMPARATOR);
+
+  /**
+   * Dictionary of class names and label names and values
+   */
+  private final Interner<String> strings = Interners.newWeakInterner();
+
+  /**
+   * Inverted index of labels, null if disabled
+   */
+  private final LabelIndex labels;
+
+  DirectoryIndex() {
+    this(false);
+  }
+
+  DirectoryIndex(boolean labelIndex) {
+    this.labels = labelIndex ? new LabelIndex() : null;
+  }
+
+  /**
+   * Return the inverted index of labels or null if it is disabled
+   */
+  LabelIndex getLabelIndex() {
+    return this.labels;
+  }
+
+  ClassIndex getClassIndex(String name) {
+    return this.classes.get(name);
+  }
+
+  boolean containsClass(String name) {
+    return this.classes.containsKey(name);
+  }
+
+  /**
+   * Return the class indices ordered by classId
+   */
+  Collection<ClassIndex> getClassIndices() {
+    return this.sorted;
+  }
+
+  int getClassCount() {
+    return this.classes.size();
+  }
+
+  Metadata get(String name, long labelsId) {
+    ClassIndex index = this.classes.get(name);
+
+    if (null == index) {
+      return null;
+    }
+
+    return index.get(labelsId);
+  }
+
+  /**
+   * Add a Metadata to the index or replace the indexed one with the same labelsId.
+   *
+   * The name and labels of 'metadata' are replaced by interned instances, 'metadata' MUST have its classId and labelsId set.
+   *
+   * @return The replaced Metadata or null if the Metadata was not yet indexed
+   */
+  Metadata put(Metadata metadata) {
+    return put(metadata, true);
+  }
+
+  /**
+   * Add a Metadata to the index unless one with the same labelsId is already indexed, which is then kept.
+   *
+   * @return The indexed Metadata which was kept or null if 'metadata' was added
+   */
+  Metadata putIfAbsent(Metadata metadata) {
+    return put(metadata, false);
+  }
+
+  private Metadata put(Metadata metadata, boolean replace) {
+    intern(metadata);
+
+    while (true) {
+      ClassIndex index = this.classes.get(metadata.getName());
+
+      if (null == index) {
+        index = new ClassIndex(metadata.getName(), metadata.getClassId(), this.labels);
+        ClassIndex existing = this.classes.putIfAbsent(metadata.getName(), index);
+        if (null != existing) {
+          index = existing;
+        }
+      }
+
+      synchronized(index) {
+        // The class index was emptied and removed concurrently, retry with a new one
+        if (index.removed) {
+          continue;
+        }
+        if (!replace) {
+          Metadata existing = index.get(metadata.getLabelsId());
+          if (null != existing) {
+            return existing;
+          }
+        }
+        if (0 == index.size) {
+          this.sorted.add(index);
+        }
+        return index.put(metadata.getLabelsId(), metadata);
+      }
+    }
+  }
+
+  /**
+   * Remove a Metadata from the index, removing its class if it no longer contains any Metadata
+   *
+   * @return The removed Metadata or null if it was not indexed
+   */
+  Metadata remove(String name, long labelsId) {
+    ClassIndex index = this.classes.get(name);
+
+    if (null == index) {
+      return null;
+    }
+
+    synchronized(index) {
+      Metadata removed = index.remove(labelsId);
+
+      if (0 == index.size && !index.removed) {
+        index.removed = true;
+        this.sorted.remove(index);
+        this.classes.remove(name);
+      }
+
+      return removed;
+    }
+  }
+
+  /**
+   * Replace the name and labels of a Metadata by interned instances, labels are stored in a compact immutable map
+   */
+  void intern(Metadata metadata) {
+    if (null != metadata.getName()) {
+      metadata.setName(this.strings.intern(metadata.getName()));
+    }
+
+    if (null == metadata.getLabels() || metadata.getLabels() instanceof Labels) {
+      return;
+    }
+
+    String[] names = metadata.getLabels().keySet().toArray(new String[metadata.getLabelsSize()]);
+    Arrays.sort(names);
+
+    String[] kv = new String[names.length << 1];
+
+    for (int i = 0; i < names.length; i++) {
+      kv[i << 1] = this.strings.intern(names[i]);
+      kv[(i << 1) + 1] = this.strings.intern(metadata.getLabels().get(names[i]));
+    }
+
+    metadata.setLabels(new Labels(kv));
+  }
+
+  /**
+   * Return a read only view of the index as a map of class name to map of labelsId to Metadata
+   */
+  Map<String,Map<Long,Metadata>> asMap() {
+    return new AbstractMap<String,Map<Long,Metadata>>() {
+      @Override
+      public boolean containsKey(Object key) {
+        return classes.containsKey(key);
+      }
+
+      @Override
+      public Map<Long,Metadata> get(Object key) {
+        ClassIndex index = classes.get(key);
+        return null == index ? null : asMap(index);
+      }
+
+      @Override
+      public Set<String> keySet() {
+        return new AbstractSet<String>() {
+          @Override
+          public int size() {
+            return sorted.size();
+          }
+
+          @Override
+          public Iterator<String> iterator() {
+            final Iterator<ClassIndex> iter = sorted.iterator();
+            return new Iterator<String>() {
+              @Override
+              public boolean hasNext() {
+                return iter.hasNext();
+              }
+
+              @Override
+              public String next() {
+                return iter.next().name;
+              }
+
+              @Override
+              public void remove() {
+                throw new UnsupportedOperationException();
+              }
+            };
+          }
+        };
+      }
+
+      @Override
+      public Set<Entry<String,Map<Long,Metadata>>> entrySet() {
+        return new AbstractSet<Entry<String,Map<Long,Metadata>>>() {
+          @Override
+          public int size() {
+            return sorted.size();
+          }
+
+          @Override
+          public Iterator<Entry<String,Map<Long,Metadata>>> iterator() {
+            final Iterator<ClassIndex> iter = sorted.iterator();
+            return new Iterator<Entry<String,Map<Long,Metadata>>>() {
+              @Override
+              public boolean hasNext() {
+                return iter.hasNext();
+              }
+
+              @Override
+              public Entry<String,Map<Long,Metadata>> next() {
+                ClassIndex index = iter.next();
+                return new SimpleImmutableEntry<String,Map<Long,Metadata>>(index.name, asMap(index));
+              }
+
+              @Override
+              public void remove() {
+                throw new UnsupportedOperationException();
+              }
+            };
+          }
+        };
+      }
+    };
+  }
+
+  private static Map<Long,Metadata> asMap(final ClassIndex index) {
+    return new AbstractMap<Long,Metadata>() {
+      @Override
+      public int size() {
+        return index.size();
+      }
+
+      @Override
+      public boolean containsKey(Object key) {
+        return key instanceof Long && null != index.get((Long) key);
+      }
+
+      @Override
+      public Metadata get(Object key) {
+        return key instanceof Long ? index.get((Long) key) : null;
+      }
+
+      @Override
+      public Collection<Metadata> values() {
+        return new AbstractCollection<Metadata>() {
+          @Override
+          public int size() {
+            return index.size();
+          }
+
+          @Override
+          public Iterator<Metadata> iterator() {
+            return index.iterator();
+          }
+        };
+      }
+
+      @Override
+      public Set<Entry<Long,Metadata>> entrySet() {
+        return new AbstractSet<Entry<Long,Metadata>>() {
+          @Override
+          public int size() {
+            return index.size();
+          }
+
+          @Override
+          public Iterator<Entry<Long,Metadata>> iterator() {
+            final Iterator<Metadata> iter = index.iterator();
+            return new Iterator<Entry<Long,Metadata>>() {
+              @Override
+              public boolean hasNext() {
+                return iter.hasNext();
+              }
+
+              @Override
+              public Entry<Long,Metadata> next() {
+                Metadata metadata = iter.next();
+                return new SimpleImmutableEntry<Long,Metadata>(metadata.getLabelsId(), metadata);
+              }
+
+              @Override
+              public void remove() {
+                throw new UnsupportedOperationException();
+              }
+            };
+          }
+        };
+      }
+    };
+  }
+}
@@ -17,6 +17,7 @@
 package io.warp10.standalone;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
@@ -75,9 +76,37 @@ public class InMemoryChunkSet {
    */
   private final boolean ephemeral;
 
+  /**
+   * Allocator of off-heap regions, null when chunks are kept on-heap.
+   *
+   * When chunks are off-heap, the encoders in 'chunks' only buffer the datapoints
+   * which have not yet been flushed to the region of their chunk.
+   */
+  private final OffHeapSlabAllocator allocator;
+
+  /**
+   * Off-heap region of each chunk, number of bytes used in each region and number of datapoints they contain
+   */
+  private final OffHeapSlabAllocator.Region[] regions;
+  private final int[] regionSizes;
+  private final long[] regionCounts;
+
+  /**
+   * Size above which the content of a chunk encoder is flushed to its region
+   */
+  private final int flushSize;
+
   private static final Random prng = new Random();
 
   public InMemoryChunkSet(int chunkcount, long chunklen, boolean ephemeral) {
+    this(chunkcount, chunklen, ephemeral, null, 0);
+  }
+
+  /**
+   * @param allocator Allocator to use for storing chunks off-heap, null to store them on-heap. Ignored for ephemeral chunk sets.
+   * @param flushSize Number of bytes to buffer on-heap per chunk before flushing them off-heap
+   */
+  public InMemoryChunkSet(int chunkcount, long chunklen, boolean ephemeral, OffHeapSlabAllocator allocator, int flushSize) {
     this.chunks = new GTSEncoder[chunkcount];
     this.chunkends = new long[chunkcount];
     this.chronological = new BitSet(chunkcount);
@@ -90,6 +119,20 @@ public class InMemoryChunkSet {
       this.chunklen = chunklen;
       this.chunkcount = chunkcount;
     }
+
+    if (null != allocator && !ephemeral) {
+      this.allocator = allocator;
+      this.regions = new OffHeapSlabAllocator.Region[chunkcount];
+      this.regionSizes = new int[chunkcount];
+      this.regionCounts = new long[chunkcount];
+      this.flushSize = flushSize;
+    } else {
+      this.allocator = null;
+      this.regions = null;
+      this.regionSizes = null;
+      this.regionCounts = null;
+      this.flushSize = 0;
+    }
   }
 
   /**
@@ -117,7 +160,7 @@ public class InMemoryChunkSet {
     }
 
     // Get the current time
-    long now = TimeSource.getTime();
+    long now = now();
     long lastChunkEnd = chunkEnd(now);
     long firstChunkStart = lastChunkEnd - (chunkcount * chunklen) + 1;
 
@@ -146,6 +189,9 @@ public class InMemoryChunkSet {
           // Is the chunk non existent or has expired?
           if (null == this.chunks[chunkid] || this.chunkends[chunkid] < firstChunkStart) {
             long end = chunkEnd(timestamp);
+            if (null != this.allocator) {
+              freeRegion(chunkid);
+            }
             this.chunks[chunkid] = new GTSEncoder(0L);
             this.lasttimestamp[chunkid] = end - this.chunklen;
             this.chronological.set(chunkid);
@@ -167,11 +213,190 @@ public class InMemoryChunkSet {
         chunkEncoder.addValue(timestamp, decoder.getLocation(), decoder.getElevation(), decoder.getBinaryValue());
         stored = true;
       }
+
+      if (null != this.allocator && chunkEncoder.size() >= this.flushSize) {
+        synchronized(this.chunks) {
+          // Make sure the chunk was not replaced in the meantime
+          if (chunkEncoder == this.chunks[chunkid]) {
+            flush(chunkid);
+          }
+        }
+      }
     }
 
     return stored;
   }
 
+  /**
+   * Store the content of an encoder whose datapoints all belong to a single chunk by
+   * copying its encoded bytes directly to the off-heap region of the chunk.
+   * This is used when loading dumps. Encoders which do not qualify are stored using {@link #store(GTSEncoder)}.
+   *
+   * @param encoder The GTSEncoder instance to store
+   */
+  public boolean storeEncoded(GTSEncoder encoder) throws IOException {
+    if (null == encoder) {
+      return false;
+    }
+
+    // Encoded bytes can only be appended if they were encoded without a base timestamp
+    if (null == this.allocator || 0L != encoder.getBaseTimestamp()) {
+      return store(encoder);
+    }
+
+    long now = now();
+    long lastChunkEnd = chunkEnd(now);
+    long firstChunkStart = lastChunkEnd - (chunkcount * chunklen) + 1;
+
+    GTSDecoder decoder = encoder.getUnsafeDecoder(false);
+
+    int chunkid = -1;
+    long first = 0L;
+    long last = 0L;
+    boolean chronological = true;
+
+    while (decoder.next()) {
+      long timestamp = decoder.getTimestamp();
+
+      if (timestamp < firstChunkStart || timestamp > lastChunkEnd) {
+        return store(encoder);
+      }
+
+      if (-1 == chunkid) {
+        chunkid = chunk(timestamp);
+        first = timestamp;
+      } else if (chunkid != chunk(timestamp)) {
+        return store(encoder);
+      } else if (timestamp < last) {
+        chronological = false;
+      }
+
+      last = timestamp;
+    }
+
+    if (-1 == chunkid) {
+      return false;
+    }
+
+    synchronized(this.chunks) {
+      if (null == this.chunks[chunkid] || this.chunkends[chunkid] < firstChunkStart) {
+        long end = chunkEnd(first);
+        freeRegion(chunkid);
+        this.chunks[chunkid] = new GTSEncoder(0L);
+        this.lasttimestamp[chunkid] = end - this.chunklen;
+        this.chronological.set(chunkid);
+        this.chunkends[chunkid] = end;
+      }
+
+      // Flush the buffered datapoints so the order of datapoints is preserved
+      flush(chunkid);
+
+      if (!chronological || first < this.lasttimestamp[chunkid]) {
+        this.chronological.set(chunkid, false);
+      }
+      this.lasttimestamp[chunkid] = last;
+
+      append(chunkid, encoder.getUnsafeDecoder(false).getBuffer(), encoder.getCount());
+    }
+
+    return true;
+  }
+
+  /**
+   * Append the datapoints buffered in the encoder of a chunk to its off-heap region.
+   * MUST be called with the lock on 'chunks' held.
+   */
+  private void flush(int chunkid) throws IOException {
+    GTSEncoder encoder = this.chunks[chunkid];
+
+    synchronized(encoder) {
+      if (0 == encoder.size()) {
+        return;
+      }
+
+      // The encoder was created with a base timestamp of 0 and its state is reset after each flush,
+      // so its content can be decoded after the content already in the region.
+      append(chunkid, encoder.getUnsafeDecoder(false).getBuffer(), encoder.getCount());
+      encoder.reset(0L);
+    }
+  }
+
+  /**
+   * Append encoded datapoints to the region of a chunk, growing it if needed.
+   * MUST be called with the lock on 'chunks' held.
+   */
+  private void append(int chunkid, ByteBuffer bytes, long count) throws IOException {
+    int len = bytes.remaining();
+    int used = this.regionSizes[chunkid];
+    OffHeapSlabAllocator.Region region = this.regions[chunkid];
+
+    if (null == region || region.capacity() - used < len) {
+      int capacity = null == region ? len : (int) Math.min(Integer.MAX_VALUE, Math.max((long) used + len, 2L * region.capacity()));
+      region = relocate(chunkid, capacity);
+    }
+
+    ByteBuffer target = region.buffer();
+    target.position(used);
+    target.put(bytes);
+
+    this.regionSizes[chunkid] = used + len;
+    this.regionCounts[chunkid] += count;
+  }
+
+  /**
+   * Move the content of the region of a chunk to a newly allocated region of the given capacity
+   */
+  private OffHeapSlabAllocator.Region relocate(int chunkid, int capacity) throws IOException {
+    OffHeapSlabAllocator.Region region = this.allocator.allocate(capacity);
+    OffHeapSlabAllocator.Region old = this.regions[chunkid];
+
+    if (null != old) {
+      ByteBuffer src = old.buffer();
+      src.limit(this.regionSizes[chunkid]);
+      region.buffer().put(src);
+      this.allocator.free(old);
+    }
+
+    this.regions[chunkid] = region;
+
+    return region;
+  }
+
+  private void freeRegion(int chunkid) {
+    if (null != this.regions[chunkid]) {
+      this.allocator.free(this.regions[chunkid]);
+      this.regions[chunkid] = null;
+    }
+    this.regionSizes[chunkid] = 0;
+    this.regionCounts[chunkid] = 0L;
+  }
+
+  /**
+   * Return a decoder on the content of a chunk. MUST be called with the lock on 'chunks' held.
+   */
+  private GTSDecoder decoder(int chunkid) throws IOException {
+    if (null == this.allocator) {
+      return this.chunks[chunkid].getUnsafeDecoder(false);
+    }
+
+    flush(chunkid);
+
+    ByteBuffer bb;
+
+    if (null == this.regions[chunkid]) {
+      bb = ByteBuffer.allocate(0);
+    } else {
+      bb = this.regions[chunkid].buffer();
+      bb.limit(this.regionSizes[chunkid]);
+      bb = bb.slice();
+    }
+
+    GTSDecoder decoder = new GTSDecoder(0L, null, bb);
+    decoder.setCount(this.regionCounts[chunkid]);
+
+    return decoder;
+  }
+
   /**
    * Compute the chunk id given a timestamp.
    * @param timestamp
@@ -201,6 +426,13 @@ public class InMemoryChunkSet {
     return chunkEnd(timestamp, chunklen);
   }
 
+  /**
+   * Current time, defining which chunks are valid. Tests override it to use a fixed time base.
+   */
+  long now() {
+    return TimeSource.getTime();
+  }
+
   public static long chunkEnd(long timestamp, long chunklen) {
     long end;
 
@@ -239,7 +471,7 @@ public class InMemoryChunkSet {
     return fetch(now, then, count, skip, sample, null, 0, 0);
   }
 
-  public List<GTSDecoder> getDecoders() {
+  public List<GTSDecoder> getDecoders() throws IOException {
     List<GTSDecoder> decoders = new ArrayList<GTSDecoder>();
 
     synchronized (this.chunks) {
@@ -247,7 +479,7 @@ public class InMemoryChunkSet {
         if (null == this.chunks[i]) {
           continue;
         }
-        decoders.add(this.chunks[i].getUnsafeDecoder(false));
+        decoders.add(decoder(i));
       }
     }
 
@@ -317,7 +549,7 @@ public class InMemoryChunkSet {
 
           // Extract a decoder to scan the chunk
           if (null != this.chunks[chunk]) {
-            chunkDecoder = this.chunks[chunk].getUnsafeDecoder(false);
+            chunkDecoder = decoder(chunk);
           }
         }
 
@@ -385,7 +617,7 @@ public class InMemoryChunkSet {
 
         // Extract a decoder to scan the chunk
         if (null != this.chunks[chunk] && !(boundaryOnly && null == boundary)) {
-          chunkDecoder = this.chunks[chunk].getUnsafeDecoder(false);
+          chunkDecoder = decoder(chunk);
         }
       }
 
@@ -520,7 +752,7 @@ public class InMemoryChunkSet {
 
           // Extract a decoder to scan the chunk
           if (null != this.chunks[chunk]) {
-            chunkDecoder = this.chunks[chunk].getUnsafeDecoder(false);
+            chunkDecoder = decoder(chunk);
           }
         }
 
@@ -578,7 +810,7 @@ public class InMemoryChunkSet {
 
         // Extract a decoder to scan the chunk
         if (null != this.chunks[chunk]) {
-          chunkDecoder = this.chunks[chunk].getUnsafeDecoder(false);
+          chunkDecoder = decoder(chunk);
           inorder = this.chronological.get(chunk);
           chunkEnd = this.chunkends[chunk];
         }
@@ -750,6 +982,104 @@ public class InMemoryChunkSet {
     return encoder;
   }
 
+  /**
+   * State of a chunk as persisted in memory store snapshots
+   */
+  static final class Chunk {
+    long end;
+    long lasttimestamp;
+    boolean chronological;
+    long base;
+    long count;
+    ByteBuffer bytes;
+  }
+
+  /**
+   * Return the state of all the chunks of this chunk set, the bytes of the chunks are views of their content.
+   */
+  List<Chunk> getChunks() throws IOException {
+    List<Chunk> states = new ArrayList<Chunk>();
+
+    synchronized (this.chunks) {
+      for (int i = 0; i < this.chunks.length; i++) {
+        if (null == this.chunks[i]) {
+          continue;
+        }
+        GTSDecoder decoder = decoder(i);
+        Chunk chunk = new Chunk();
+        chunk.end = this.chunkends[i];
+        chunk.lasttimestamp = this.lasttimestamp[i];
+        chunk.chronological = this.chronological.get(i);
+        chunk.base = decoder.getBaseTimestamp();
+        chunk.count = decoder.getCount();
+        chunk.bytes = decoder.getBuffer();
+        states.add(chunk);
+      }
+    }
+
+    return states;
+  }
+
+  /**
+   * Restore a chunk from a snapshot. When chunks are off-heap the bytes of the chunk
+   * are adopted as the region of the chunk without being copied, so they MUST NOT be modified afterwards.
+   *
+   * @return false if the chunk could not be restored as is and its datapoints must be stored instead
+   */
+  boolean restore(Chunk chunk) {
+    if (this.ephemeral) {
+      byte[] content = new byte[chunk.bytes.remaining()];
+      chunk.bytes.duplicate().get(content);
+      GTSEncoder encoder = new GTSEncoder(chunk.base, null, content);
+      encoder.setCount(chunk.count);
+      this.chunks[0] = encoder;
+      return true;
+    }
+
+    long now = now();
+    long lastChunkEnd = chunkEnd(now);
+    long firstChunkStart = lastChunkEnd - (chunkcount * chunklen) + 1;
+
+    // Expired chunks are simply ignored
+    if (chunk.end < firstChunkStart) {
+      return true;
+    }
+
+    if (chunk.end > lastChunkEnd || chunk.end != chunkEnd(chunk.end) || (null != this.allocator && 0L != chunk.base)) {
+      return false;
+    }
+
+    int chunkid = chunk(chunk.end);
+
+    synchronized(this.chunks) {
+      if (null != this.chunks[chunkid] && this.chunkends[chunkid] >= firstChunkStart) {
+        return false;
+      }
+
+      this.chunkends[chunkid] = chunk.end;
+      this.lasttimestamp[chunkid] = chunk.lasttimestamp;
+      this.chronological.set(chunkid, chunk.chronological);
+
+      if (null != this.allocator) {
+        freeRegion(chunkid);
+        this.chunks[chunkid] = new GTSEncoder(0L);
+        if (chunk.bytes.hasRemaining()) {
+          this.regions[chunkid] = this.allocator.wrap(chunk.bytes);
+          this.regionSizes[chunkid] = chunk.bytes.remaining();
+          this.regionCounts[chunkid] = chunk.count;
+        }
+      } else {
+        byte[] content = new byte[chunk.bytes.remaining()];
+        chunk.bytes.duplicate().get(content);
+        GTSEncoder encoder = new GTSEncoder(chunk.base, null, content);
+        encoder.setCount(chunk.count);
+        this.chunks[chunkid] = encoder;
+      }
+    }
+
+    return true;
+  }
+
   /**
    * Compute the total number of datapoints stored in this chunk set.
    */
@@ -762,6 +1092,12 @@ public class InMemoryChunkSet {
       }
     }
 
+    if (null != this.allocator) {
+      for (long regionCount: this.regionCounts) {
+        count += regionCount;
+      }
+    }
+
     return count;
   }
 
@@ -777,6 +1113,12 @@ public class InMemoryChunkSet {
       }
     }
 
+    if (null != this.allocator) {
+      for (int regionSize: this.regionSizes) {
+        size += regionSize;
+      }
+    }
+
     return size;
   }
 
@@ -801,6 +1143,10 @@ public class InMemoryChunkSet {
         }
         if (this.chunkends[i] <= cutoff) {
           droppedDatapoints += this.chunks[i].getCount();
+          if (null != this.allocator) {
+            droppedDatapoints += this.regionCounts[i];
+            freeRegion(i);
+          }
           this.chunks[i] = null;
           dropped++;
         }
@@ -832,6 +1178,24 @@ public class InMemoryChunkSet {
         if (null == this.chunks[i] || i == currentChunk) {
           continue;
         }
+
+        if (null != this.allocator) {
+          // Shrink regions and move them out of sparse slabs so those can be released
+          try {
+            flush(i);
+            OffHeapSlabAllocator.Region region = this.regions[i];
+            int size = this.regionSizes[i];
+            if (null != region && size > 0 && (region.capacity() > size || this.allocator.isSparse(region))) {
+              int capacity = region.capacity();
+              // Relocated regions are off heap, 'allocation' only accounts for heap allocations
+              relocate(i, size);
+              reclaimed += (capacity - size);
+            }
+          } catch (IOException ioe) {
+          }
+          continue;
+        }
+
         int size = this.chunks[i].size();
 
         try {
@@ -858,6 +1222,10 @@ public class InMemoryChunkSet {
    * @param end Upper timestamp to delete (inclusive)
    */
   public long delete(long start, long end) {
+    if (null != this.allocator) {
+      return deleteOffHeap(start, end);
+    }
+
     long count = 0L;
 
     for (int i = 0; i < chunks.length; i++) {
@@ -893,4 +1261,40 @@ public class InMemoryChunkSet {
 
     return count;
   }
+
+  private long deleteOffHeap(long start, long end) {
+    long count = 0L;
+
+    synchronized(this.chunks) {
+      for (int i = 0; i < chunks.length; i++) {
+        if (null == chunks[i] || chunkends[i] < start || chunkends[i] >= end + chunklen) {
+          continue;
+        }
+        try {
+          GTSEncoder encoder = new GTSEncoder(0L);
+          GTSDecoder decoder = decoder(i);
+          boolean deleted = false;
+          while (decoder.next()) {
+            if (decoder.getTimestamp() >= start && decoder.getTimestamp() <= end) {
+              deleted = true;
+              count++;
+              continue;
+            }
+            encoder.addValue(decoder.getTimestamp(), decoder.getLocation(), decoder.getElevation(), decoder.getBinaryValue());
+          }
+          // Replace the content of the region if datapoints were deleted
+          if (deleted) {
+            freeRegion(i);
+            if (encoder.size() > 0) {
+              append(i, encoder.getUnsafeDecoder(false).getBuffer(), encoder.getCount());
+            }
+          }
+        } catch (IOException ioe) {
+          throw new RuntimeException("Error while deleting data.", ioe);
+        }
+      }
+    }
+
+    return count;
+  }
 }
@@ -0,0 +1,446 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.standalone;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import io.warp10.continuum.store.thrift.data.Metadata;
+
+/**
+ * Inverted index of label name and exact value to the ordinals of the Metadata carrying them.
+ *
+ * Each indexed Metadata is assigned an ordinal, ordinals of removed Metadata are reused. The
+ * postings index the labels of the Metadata and the attributes whose name is not also a label,
+ * which is the view selectors are matched against. Class names are indexed in separate postings
+ * so exact class selectors restrict the candidates too.
+ *
+ * Modifications for a given ordinal MUST be serialized by the caller, DirectoryIndex does so by
+ * holding the lock of the class index. Postings are locked individually.
+ */
+class LabelIndex {
+
+  private static final int PAGE_SHIFT = 12;
+  private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+  private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+  /**
+   * Estimated overhead of a posting (map entry, Posting and OrdinalBitmap instances)
+   */
+  private static final long POSTING_OVERHEAD = 128L;
+
+  /**
+   * Estimated size of a page
+   */
+  private static final long PAGE_BYTES = 32L + PAGE_SIZE * 8L;
+
+  private static final int[] EMPTY = new int[0];
+
+  private static final class Posting {
+    private final OrdinalBitmap bitmap = new OrdinalBitmap();
+    /**
+     * Flag set when the posting was emptied and removed, guarded by 'this'
+     */
+    private boolean removed = false;
+  }
+
+  private final ConcurrentHashMap<String,ConcurrentHashMap<String,Posting>> postings = new ConcurrentHashMap<String,ConcurrentHashMap<String,Posting>>();
+
+  /**
+   * Postings of class names
+   */
+  private final ConcurrentHashMap<String,Posting> classes = new ConcurrentHashMap<String,Posting>();
+
+  /**
+   * Pages of ordinal to Metadata, grown under 'allocationLock'
+   */
+  private volatile AtomicReferenceArray<Metadata>[] metadatas = newPages(0);
+
+  /**
+   * Names and values indexed for each ordinal, only accessed by the holder of the ordinal
+   */
+  private volatile String[][][] terms = new String[0][][];
+
+  private final Object allocationLock = new Object();
+
+  /**
+   * Next never assigned ordinal, guarded by 'allocationLock'
+   */
+  private int next = 0;
+
+  /**
+   * Ordinals available for reuse, guarded by 'allocationLock'
+   */
+  private int[] free = new int[16];
+  private int freeCount = 0;
+
+  private final AtomicLong bytes = new AtomicLong(0L);
+  private final AtomicLong postingCount = new AtomicLong(0L);
+
+  /**
+   * Index a Metadata and return its ordinal
+   */
+  int add(Metadata metadata) {
+    int ordinal = allocate();
+
+    String[] kv = terms(metadata);
+    this.terms[ordinal >>> PAGE_SHIFT][ordinal & PAGE_MASK] = kv;
+
+    for (int i = 0; i < kv.length; i += 2) {
+      add(kv[i], kv[i + 1], ordinal);
+    }
+
+    add(this.classes, metadata.getName(), metadata.getName().length() * 2L, ordinal);
+
+    // Publish the Metadata once its postings are set
+    this.metadatas[ordinal >>> PAGE_SHIFT].set(ordinal & PAGE_MASK, metadata);
+
+    return ordinal;
+  }
+
+  /**
+   * Replace the Metadata with the given ordinal, updating the postings of the labels and attributes which changed
+   */
+  void update(int ordinal, Metadata metadata) {
+    String[][] page = this.terms[ordinal >>> PAGE_SHIFT];
+    String[] previous = page[ordinal & PAGE_MASK];
+    String[] kv = terms(metadata);
+    String previousName = this.metadatas[ordinal >>> PAGE_SHIFT].get(ordinal & PAGE_MASK).getName();
+    String name = metadata.getName();
+
+    for (int i = 0; i < kv.length; i += 2) {
+      if (!contains(previous, kv[i], kv[i + 1])) {
+        add(kv[i], kv[i + 1], ordinal);
+      }
+    }
+
+    if (!name.equals(previousName)) {
+      add(this.classes, name, name.length() * 2L, ordinal);
+    }
+
+    this.metadatas[ordinal >>> PAGE_SHIFT].set(ordinal & PAGE_MASK, metadata);
+
+    for (int i = 0; i < previous.length; i += 2) {
+      if (!contains(kv, previous[i], previous[i + 1])) {
+        remove(previous[i], previous[i + 1], ordinal);
+      }
+    }
+
+    if (!name.equals(previousName)) {
+      remove(this.classes, previousName, previousName.length() * 2L, ordinal);
+    }
+
+    page[ordinal & PAGE_MASK] = kv;
+  }
+
+  /**
+   * Remove the Metadata with the given ordinal from the index and release the ordinal
+   */
+  void remove(int ordinal) {
+    String[][] page = this.terms[ordinal >>> PAGE_SHIFT];
+    String[] kv = page[ordinal & PAGE_MASK];
+
+    String name = this.metadatas[ordinal >>> PAGE_SHIFT].getAndSet(ordinal & PAGE_MASK, null).getName();
+
+    for (int i = 0; i < kv.length; i += 2) {
+      remove(kv[i], kv[i + 1], ordinal);
+    }
+
+    remove(this.classes, name, name.length() * 2L, ordinal);
+
+    page[ordinal & PAGE_MASK] = null;
+
+    synchronized(this.allocationLock) {
+      if (this.freeCount == this.free.length) {
+        this.free = Arrays.copyOf(this.free, this.free.length << 1);
+      }
+      this.free[this.freeCount++] = ordinal;
+    }
+  }
+
+  /**
+   * Return the Metadata with the given ordinal or null if the ordinal is not assigned
+   */
+  Metadata get(int ordinal) {
+    AtomicReferenceArray<Metadata>[] pages = this.metadatas;
+
+    if ((ordinal >>> PAGE_SHIFT) >= pages.length) {
+      return null;
+    }
+
+    return pages[ordinal >>> PAGE_SHIFT].get(ordinal & PAGE_MASK);
+  }
+
+  /**
+   * Return the ordinals of the Metadata which carry all the given label (or attribute) values.
+   * The returned ordinals are candidates, their Metadata must still be checked as they may
+   * have been modified since the postings were read.
+   *
+   * @return The candidate ordinals in increasing order
+   */
+  int[] candidates(Map<String,String> exact) {
+    return candidates(null, exact);
+  }
+
+  /**
+   * Return the ordinals of the Metadata of class 'className' (or of any class if null) which carry
+   * all the given label (or attribute) values, as candidates like {@link #candidates(Map)}.
+   */
+  int[] candidates(String className, Map<String,String> exact) {
+    Posting[] selected = new Posting[exact.size() + 1];
+    long[] cardinalities = new long[selected.length];
+    int n = 0;
+
+    if (null != className) {
+      n = select(selected, cardinalities, n, this.classes.get(className));
+
+      if (n < 0) {
+        return EMPTY;
+      }
+    }
+
+    for (Entry<String,String> entry: exact.entrySet()) {
+      ConcurrentHashMap<String,Posting> values = this.postings.get(entry.getKey());
+
+      if (null == values) {
+        return EMPTY;
+      }
+
+      n = select(selected, cardinalities, n, values.get(entry.getValue()));
+
+      if (n < 0) {
+        return EMPTY;
+      }
+    }
+
+    if (0 == n) {
+      throw new IllegalArgumentException("No selected posting.");
+    }
+
+    //
+    // Start from a copy of the smallest posting and intersect it with the others
+    //
+
+    OrdinalBitmap result;
+
+    synchronized(selected[0]) {
+      result = selected[0].bitmap.copy();
+    }
+
+    for (int i = 1; i < n && !result.isEmpty(); i++) {
+      synchronized(selected[i]) {
+        result.retain(selected[i].bitmap);
+      }
+    }
+
+    return result.toArray();
+  }
+
+  /**
+   * Insert a posting in the 'n' selected ones, sorted by increasing cardinality.
+   *
+   * @return The new number of selected postings or -1 if the posting is null or empty
+   */
+  private static int select(Posting[] selected, long[] cardinalities, int n, Posting posting) {
+    if (null == posting) {
+      return -1;
+    }
+
+    long cardinality;
+
+    synchronized(posting) {
+      cardinality = posting.bitmap.cardinality();
+    }
+
+    if (0L == cardinality) {
+      return -1;
+    }
+
+    int idx = n;
+    while (idx > 0 && cardinalities[idx - 1] > cardinality) {
+      selected[idx] = selected[idx - 1];
+      cardinalities[idx] = cardinalities[idx - 1];
+      idx--;
+    }
+    selected[idx] = posting;
+    cardinalities[idx] = cardinality;
+
+    return n + 1;
+  }
+
+  /**
+   * Estimated number of bytes used by the index
+   */
+  long getBytes() {
+    return this.bytes.get();
+  }
+
+  /**
+   * Number of (name, value) and class name postings
+   */
+  long getPostings() {
+    return this.postingCount.get();
+  }
+
+  private void add(String name, String value, int ordinal) {
+    ConcurrentHashMap<String,Posting> values = this.postings.get(name);
+
+    if (null == values) {
+      values = new ConcurrentHashMap<String,Posting>();
+      ConcurrentHashMap<String,Posting> existing = this.postings.putIfAbsent(name, values);
+      if (null != existing) {
+        values = existing;
+      }
+    }
+
+    add(values, value, (name.length() + value.length()) * 2L, ordinal);
+  }
+
+  /**
+   * Add an ordinal to the posting of 'value', 'termBytes' is the estimated size of the indexed strings
+   */
+  private void add(ConcurrentHashMap<String,Posting> values, String value, long termBytes, int ordinal) {
+    // Value maps are never removed, only their postings
+    while (true) {
+      Posting posting = values.get(value);
+
+      if (null == posting) {
+        posting = new Posting();
+        Posting existing = values.putIfAbsent(value, posting);
+        if (null != existing) {
+          posting = existing;
+        } else {
+          this.postingCount.incrementAndGet();
+          this.bytes.addAndGet(POSTING_OVERHEAD + termBytes + posting.bitmap.bytes());
+        }
+      }
+
+      synchronized(posting) {
+        // The posting was emptied and removed concurrently, retry with a new one
+        if (posting.removed) {
+          continue;
+        }
+        long before = posting.bitmap.bytes();
+        posting.bitmap.add(ordinal);
+        this.bytes.addAndGet(posting.bitmap.bytes() - before);
+        return;
+      }
+    }
+  }
+
+  private void remove(String name, String value, int ordinal) {
+    ConcurrentHashMap<String,Posting> values = this.postings.get(name);
+
+    if (null == values) {
+      return;
+    }
+
+    remove(values, value, (name.length() + value.length()) * 2L, ordinal);
+  }
+
+  private void remove(ConcurrentHashMap<String,Posting> values, String value, long termBytes, int ordinal) {
+    Posting posting = values.get(value);
+
+    if (null == posting) {
+      return;
+    }
+
+    synchronized(posting) {
+      long before = posting.bitmap.bytes();
+      posting.bitmap.remove(ordinal);
+      this.bytes.addAndGet(posting.bitmap.bytes() - before);
+
+      if (posting.bitmap.isEmpty() && !posting.removed) {
+        posting.removed = true;
+        values.remove(value, posting);
+        this.postingCount.decrementAndGet();
+        this.bytes.addAndGet(-(POSTING_OVERHEAD + termBytes + posting.bitmap.bytes()));
+        // Empty value maps are kept, label names are few
+      }
+    }
+  }
+
+  private int allocate() {
+    synchronized(this.allocationLock) {
+      if (this.freeCount > 0) {
+        return this.free[--this.freeCount];
+      }
+
+      int ordinal = this.next++;
+
+      if ((ordinal >>> PAGE_SHIFT) >= this.metadatas.length) {
+        int count = this.metadatas.length + 1;
+        AtomicReferenceArray<Metadata>[] pages = Arrays.copyOf(this.metadatas, count);
+        pages[count - 1] = new AtomicReferenceArray<Metadata>(PAGE_SIZE);
+        String[][][] termPages = Arrays.copyOf(this.terms, count);
+        termPages[count - 1] = new String[PAGE_SIZE][];
+        this.terms = termPages;
+        this.metadatas = pages;
+        this.bytes.addAndGet(2 * PAGE_BYTES);
+      }
+
+      return ordinal;
+    }
+  }
+
+  /**
+   * Extract the names and values to index, labels first then the attributes which are not shadowed by a label
+   */
+  private static String[] terms(Metadata metadata) {
+    int count = metadata.getLabelsSize() + metadata.getAttributesSize();
+
+    String[] kv = new String[count << 1];
+    int n = 0;
+
+    if (metadata.getLabelsSize() > 0) {
+      for (Entry<String,String> entry: metadata.getLabels().entrySet()) {
+        kv[n++] = entry.getKey();
+        kv[n++] = entry.getValue();
+      }
+    }
+
+    if (metadata.getAttributesSize() > 0) {
+      for (Entry<String,String> entry: metadata.getAttributes().entrySet()) {
+        if (null == entry.getValue() || (null != metadata.getLabels() && metadata.getLabels().containsKey(entry.getKey()))) {
+          continue;
+        }
+        kv[n++] = entry.getKey();
+        kv[n++] = entry.getValue();
+      }
+    }
+
+    return n == kv.length ? kv : Arrays.copyOf(kv, n);
+  }
+
+  private static boolean contains(String[] kv, String name, String value) {
+    for (int i = 0; i < kv.length; i += 2) {
+      if (kv[i].equals(name)) {
+        return kv[i + 1].equals(value);
+      }
+    }
+    return false;
+  }
+
+  @SuppressWarnings("unchecked")
+  private static AtomicReferenceArray<Metadata>[] newPages(int count) {
+    return new AtomicReferenceArray[count];
+  }
+}
@@ -0,0 +1,562 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.standalone;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+
+import org.apache.hadoop.hbase.util.Bytes;
+import org.iq80.leveldb.DBIterator;
+
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.store.Constants;
+
+/**
+ * Block oriented layout of datapoints in LevelDB.
+ *
+ * In the original layout, each datapoint is stored in its own row whose key is
+ *
+ *   PREFIX + classId + labelsId + (Long.MAX_VALUE - timestamp)
+ *
+ * In the block layout, the datapoints of a series falling in the same bucket of
+ * 'leveldb.data.blockspan' time units are grouped in a single row whose key is
+ *
+ *   PREFIX + classId + labelsId + (Long.MAX_VALUE - end) + (Long.MAX_VALUE - start) + (Long.MAX_VALUE - seqno)
+ *
+ * where 'end' and 'start' are the most recent and oldest timestamps of the block and 'seqno'
+ * is a write sequence number. When several rows contain a datapoint at the same timestamp, the
+ * one from the row with the highest seqno wins, datapoint rows being considered older than any block.
+ *
+ * A block row sorts right after a datapoint row for its 'end' timestamp, so both layouts can coexist
+ * in the key space of a series. The value of a block row is the content of a GTSEncoder holding the
+ * datapoints in decreasing timestamp order, with 'start' as base timestamp.
+ */
+public class LevelDBDataBlocks {
+
+  /**
+   * Length of the key prefix common to all rows of a series
+   */
+  // 128bits
+  static final int GTS_KEY_LENGTH = Constants.HBASE_RAW_DATA_KEY_PREFIX.length + 8 + 8;
+
+  /**
+   * Length of a datapoint row key
+   */
+  static final int ROW_KEY_LENGTH = GTS_KEY_LENGTH + 8;
+
+  /**
+   * Length of a block row key
+   */
+  static final int BLOCK_KEY_LENGTH = ROW_KEY_LENGTH + 8 + 8;
+
+  /**
+   * Seqno of datapoint rows
+   */
+  static final long ROW_SEQNO = 0L;
+
+  private LevelDBDataBlocks() {}
+
+  static boolean isBlock(byte[] key) {
+    return BLOCK_KEY_LENGTH == key.length;
+  }
+
+  static boolean sameGTS(byte[] gtskey, byte[] key) {
+    return key.length >= GTS_KEY_LENGTH && 0 == Bytes.compareTo(gtskey, 0, GTS_KEY_LENGTH, key, 0, GTS_KEY_LENGTH);
+  }
+
+  /**
+   * Return the most recent timestamp a row may contain
+   */
+  static long upperBound(byte[] key) {
+    return Long.MAX_VALUE - Bytes.toLong(key, GTS_KEY_LENGTH);
+  }
+
+  /**
+   * Return the oldest timestamp a row may contain
+   */
+  static long lowerBound(byte[] key) {
+    if (isBlock(key)) {
+      return Long.MAX_VALUE - Bytes.toLong(key, ROW_KEY_LENGTH);
+    } else {
+      return upperBound(key);
+    }
+  }
+
+  static long seqno(byte[] key) {
+    if (isBlock(key)) {
+      return Long.MAX_VALUE - Bytes.toLong(key, ROW_KEY_LENGTH + 8);
+    } else {
+      return ROW_SEQNO;
+    }
+  }
+
+  static byte[] gtsKey(long classId, long labelsId) {
+    ByteBuffer bb = ByteBuffer.wrap(new byte[GTS_KEY_LENGTH]).order(ByteOrder.BIG_ENDIAN);
+    bb.put(Constants.HBASE_RAW_DATA_KEY_PREFIX);
+    bb.putLong(classId);
+    bb.putLong(labelsId);
+    return bb.array();
+  }
+
+  static byte[] rowKey(byte[] gtskey, long timestamp) {
+    byte[] key = Arrays.copyOf(gtskey, ROW_KEY_LENGTH);
+    Bytes.putLong(key, GTS_KEY_LENGTH, Long.MAX_VALUE - timestamp);
+    return key;
+  }
+
+  static byte[] blockKey(byte[] gtskey, long end, long start, long seqno) {
+    byte[] key = Arrays.copyOf(gtskey, BLOCK_KEY_LENGTH);
+    Bytes.putLong(key, GTS_KEY_LENGTH, Long.MAX_VALUE - end);
+    Bytes.putLong(key, ROW_KEY_LENGTH, Long.MAX_VALUE - start);
+    Bytes.putLong(key, ROW_KEY_LENGTH + 8, Long.MAX_VALUE - seqno);
+    return key;
+  }
+
+  /**
+   * Return the start of the bucket of 'span' time units containing 'timestamp'
+   */
+  static long bucket(long timestamp, long span) {
+    return timestamp - Math.floorMod(timestamp, span);
+  }
+
+  /**
+   * Saturated addition of a positive offset
+   */
+  static long after(long timestamp, long offset) {
+    return timestamp > Long.MAX_VALUE - offset ? Long.MAX_VALUE : timestamp + offset;
+  }
+
+  /**
+   * Datapoints of a row (or of an encoder) sorted by decreasing timestamps
+   */
+  static final class Row {
+    long[] ticks;
+    long[] locations;
+    long[] elevations;
+    Object[] values;
+    int size = 0;
+    int pos = 0;
+    long seqno;
+
+    Row(int capacity, long seqno) {
+      capacity = Math.max(1, capacity);
+      this.ticks = new long[capacity];
+      this.locations = new long[capacity];
+      this.elevations = new long[capacity];
+      this.values = new Object[capacity];
+      this.seqno = seqno;
+    }
+
+    long tick() {
+      return ticks[pos];
+    }
+
+    void add(long tick, long location, long elevation, Object value) {
+      if (size == ticks.length) {
+        int capacity = size + (size >> 1) + 1;
+        ticks = Arrays.copyOf(ticks, capacity);
+        locations = Arrays.copyOf(locations, capacity);
+        elevations = Arrays.copyOf(elevations, capacity);
+        values = Arrays.copyOf(values, capacity);
+      }
+      ticks[size] = tick;
+      locations[size] = location;
+      elevations[size] = elevation;
+      values[size] = value;
+      size++;
+    }
+
+    /**
+     * Sort datapoints by decreasing timestamps, retaining the last added datapoint
+     * for each timestamp.
+     */
+    void sort() {
+      boolean desc = true;
+      boolean asc = true;
+
+      for (int i = 1; i < size && (desc || asc); i++) {
+        if (ticks[i] >= ticks[i - 1]) {
+          desc = false;
+        }
+        if (ticks[i] <= ticks[i - 1]) {
+          asc = false;
+        }
+      }
+
+      if (desc) {
+        return;
+      }
+
+      if (asc) {
+        for (int i = 0, j = size - 1; i < j; i++, j--) {
+          long t = ticks[i]; ticks[i] = ticks[j]; ticks[j] = t;
+          t = locations[i]; locations[i] = locations[j]; locations[j] = t;
+          t = elevations[i]; elevations[i] = elevations[j]; elevations[j] = t;
+          Object o = values[i]; values[i] = values[j]; values[j] = o;
+        }
+        return;
+      }
+
+      Integer[] idx = new Integer[size];
+      for (int i = 0; i < size; i++) {
+        idx[i] = i;
+      }
+
+      final long[] t = ticks;
+
+      Arrays.sort(idx, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer o1, Integer o2) {
+          int c = Long.compare(t[o2], t[o1]);
+          // Most recently added datapoints first
+          return 0 != c ? c : Integer.compare(o2, o1);
+        }
+      });
+
+      long[] nticks = new long[size];
+      long[] nlocations = new long[size];
+      long[] nelevations = new long[size];
+      Object[] nvalues = new Object[size];
+
+      int n = 0;
+
+      for (int i = 0; i < size; i++) {
+        int j = idx[i];
+        if (n > 0 && nticks[n - 1] == ticks[j]) {
+          continue;
+        }
+        nticks[n] = ticks[j];
+        nlocations[n] = locations[j];
+        nelevations[n] = elevations[j];
+        nvalues[n] = values[j];
+        n++;
+      }
+
+      ticks = nticks;
+      locations = nlocations;
+      elevations = nelevations;
+      values = nvalues;
+      size = n;
+    }
+  }
+
+  static Row decode(GTSDecoder decoder, long seqno) {
+    Row row = new Row((int) Math.min(Integer.MAX_VALUE - 8, decoder.getCount()), seqno);
+
+    while (decoder.next()) {
+      row.add(decoder.getTimestamp(), decoder.getLocation(), decoder.getElevation(), decoder.getBinaryValue());
+    }
+
+    row.sort();
+
+    return row;
+  }
+
+  static Row decode(byte[] key, byte[] value, byte[] aesKey) {
+    GTSDecoder decoder = new GTSDecoder(lowerBound(key), aesKey, ByteBuffer.wrap(value));
+    return decode(decoder, seqno(key));
+  }
+
+  /**
+   * Encode the datapoints of a sorted row as blocks, one or more per bucket of 'span' time units,
+   * each block holding at most about 'maxsize' bytes of encoded data.
+   *
+   * @return a list of key/value pairs
+   */
+  static List<byte[][]> encode(byte[] gtskey, Row row, long span, long maxsize, long seqno, byte[] aesKey) throws IOException {
+    List<byte[][]> kvs = new ArrayList<byte[][]>();
+
+    int i = 0;
+
+    while (i < row.size) {
+      long bucket = bucket(row.ticks[i], span);
+      long end = row.ticks[i];
+
+      // Find the oldest datapoint of the block
+      int j = i;
+      while (j + 1 < row.size && row.ticks[j + 1] >= bucket) {
+        j++;
+      }
+
+      GTSEncoder encoder = new GTSEncoder(row.ticks[j], aesKey);
+
+      int k = i;
+      while (k <= j) {
+        encoder.addValue(row.ticks[k], row.locations[k], row.elevations[k], row.values[k]);
+        k++;
+        if (encoder.size() >= maxsize) {
+          break;
+        }
+      }
+
+      if (k <= j) {
+        // The block was split, re-encode the datapoints with the correct base timestamp
+        encoder = new GTSEncoder(row.ticks[k - 1], aesKey);
+        for (int l = i; l < k; l++) {
+          encoder.addValue(row.ticks[l], row.locations[l], row.elevations[l], row.values[l]);
+        }
+      }
+
+      kvs.add(new byte[][] { blockKey(gtskey, end, row.ticks[k - 1], seqno), encoder.getBytes() });
+      i = k;
+    }
+
+    return kvs;
+  }
+
+  /**
+   * Merge the rows of a series into a stream of datapoints with decreasing timestamps.
+   * Datapoints more recent than the ceiling are ignored.
+   */
+  static final class Merger {
+
+    private static final Comparator<Row> COMPARATOR = new Comparator<Row>() {
+      @Override
+      public int compare(Row r1, Row r2) {
+        int c = Long.compare(r2.tick(), r1.tick());
+        return 0 != c ? c : Long.compare(r2.seqno, r1.seqno);
+      }
+    };
+
+    private final DBIterator iterator;
+    private final byte[] gtskey;
+    private final byte[] aesKey;
+    private final long lookback;
+    private final PriorityQueue<Row> rows = new PriorityQueue<Row>(8, COMPARATOR);
+
+    private boolean exhausted;
+    private long ceiling;
+
+    long tick;
+    long location;
+    long elevation;
+    Object value;
+
+    long keyBytes = 0L;
+    long valueBytes = 0L;
+
+    /**
+     * @param iterator Iterator positioned at or before the first row to consider
+     * @param lookback Maximum span of a block
+     */
+    Merger(DBIterator iterator, byte[] gtskey, byte[] aesKey, long lookback, long ceiling) {
+      this.iterator = iterator;
+      this.gtskey = gtskey;
+      this.aesKey = aesKey;
+      this.lookback = lookback;
+      this.ceiling = ceiling;
+      this.exhausted = false;
+    }
+
+    /**
+     * Merge already decoded rows
+     */
+    Merger(List<Row> rows) {
+      this.iterator = null;
+      this.gtskey = null;
+      this.aesKey = null;
+      this.lookback = 1L;
+      this.ceiling = Long.MAX_VALUE;
+      this.exhausted = true;
+      for (Row row: rows) {
+        if (row.pos < row.size) {
+          this.rows.add(row);
+        }
+      }
+    }
+
+    /**
+     * Load rows until no unread row can contain a datapoint more recent or as recent
+     * as the most recent datapoint of the loaded rows.
+     */
+    private void fill() {
+      while (!exhausted) {
+        if (!iterator.hasNext()) {
+          exhausted = true;
+          break;
+        }
+
+        byte[] key = iterator.peekNext().getKey();
+
+        if (!sameGTS(gtskey, key)) {
+          exhausted = true;
+          break;
+        }
+
+        if (!rows.isEmpty() && rows.peek().tick() > upperBound(key)) {
+          break;
+        }
+
+        Entry<byte[],byte[]> kv = iterator.next();
+
+        if (ROW_KEY_LENGTH != key.length && BLOCK_KEY_LENGTH != key.length) {
+          continue;
+        }
+
+        keyBytes += key.length;
+        valueBytes += kv.getValue().length;
+
+        if (lowerBound(key) > ceiling) {
+          continue;
+        }
+
+        Row row = decode(key, kv.getValue(), aesKey);
+
+        while (row.pos < row.size && row.tick() > ceiling) {
+          row.pos++;
+        }
+
+        if (row.pos < row.size) {
+          rows.add(row);
+        }
+      }
+    }
+
+    boolean hasNext() {
+      fill();
+      return !rows.isEmpty();
+    }
+
+    /**
+     * Timestamp of the next datapoint, only valid after hasNext returned true
+     */
+    long peekTick() {
+      return rows.peek().tick();
+    }
+
+    void next() {
+      fill();
+
+      Row row = rows.poll();
+
+      tick = row.tick();
+      location = row.locations[row.pos];
+      elevation = row.elevations[row.pos];
+      value = row.values[row.pos];
+
+      row.pos++;
+      if (row.pos < row.size) {
+        rows.add(row);
+      }
+
+      // Discard datapoints with the same timestamp from older rows
+      while (!rows.isEmpty() && tick == rows.peek().tick()) {
+        row = rows.poll();
+        row.pos++;
+        if (row.pos < row.size) {
+          rows.add(row);
+        }
+      }
+    }
+
+    /**
+     * Ignore datapoints more recent than 'timestamp', seeking the underlying iterator if possible.
+     */
+    void skipTo(long timestamp) {
+      if (timestamp >= ceiling) {
+        return;
+      }
+
+      ceiling = timestamp;
+
+      List<Row> retained = new ArrayList<Row>(rows.size());
+
+      for (Row row: rows) {
+        while (row.pos < row.size && row.tick() > timestamp) {
+          row.pos++;
+        }
+        if (row.pos < row.size) {
+          retained.add(row);
+        }
+      }
+
+      rows.clear();
+      rows.addAll(retained);
+
+      if (exhausted || !iterator.hasNext()) {
+        return;
+      }
+
+      // Blocks ending up to 'lookback' time units after 'timestamp' may contain datapoints to consider
+      byte[] target = rowKey(gtskey, after(timestamp, lookback - 1));
+
+      if (Bytes.compareTo(target, iterator.peekNext().getKey()) > 0) {
+        iterator.seek(target);
+      }
+    }
+  }
+
+  /**
+   * Collect the 'count' oldest datapoints more recent than 'now'.
+   *
+   * @param iterator Iterator positioned at the row key for 'now', it will be moved backwards.
+   * @return a map of datapoints keyed by timestamp
+   */
+  static TreeMap<Long,Object[]> postBoundary(DBIterator iterator, byte[] gtskey, byte[] aesKey, long lookback, long now, long count) {
+    TreeMap<Long,Object[]> boundary = new TreeMap<Long,Object[]>();
+
+    while (iterator.hasPrev()) {
+      Entry<byte[],byte[]> kv = iterator.prev();
+      byte[] key = kv.getKey();
+
+      if (!sameGTS(gtskey, key)) {
+        break;
+      }
+
+      if (ROW_KEY_LENGTH != key.length && BLOCK_KEY_LENGTH != key.length) {
+        continue;
+      }
+
+      // Rows further back cannot contain datapoints older than the current upper bound minus the lookback
+      if (boundary.size() >= count && upperBound(key) - (lookback - 1) > boundary.lastKey()) {
+        break;
+      }
+
+      Row row = decode(key, kv.getValue(), aesKey);
+
+      for (int i = row.size - 1; i >= 0; i--) {
+        if (row.ticks[i] <= now) {
+          continue;
+        }
+
+        if (boundary.size() >= count && row.ticks[i] > boundary.lastKey()) {
+          break;
+        }
+
+        Object[] dp = boundary.get(row.ticks[i]);
+
+        if (null == dp || (long) dp[3] < row.seqno) {
+          boundary.put(row.ticks[i], new Object[] { row.locations[i], row.elevations[i], row.values[i], row.seqno });
+          if (boundary.size() > count) {
+            boundary.remove(boundary.lastKey());
+          }
+        }
+      }
+    }
+
+    return boundary;
+  }
+}
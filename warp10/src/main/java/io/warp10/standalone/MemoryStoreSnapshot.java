@@ -0,0 +1,469 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.standalone;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.thrift.TDeserializer;
+import org.apache.thrift.TException;
+import org.apache.thrift.TSerializer;
+import org.apache.thrift.protocol.TCompactProtocol;
+
+import io.warp10.continuum.store.thrift.data.Metadata;
+
+/**
+ * Snapshot of the content of a StandaloneChunkedMemoryStore, designed to be loaded by
+ * memory mapping the file instead of decoding it.
+ *
+ * A snapshot is made of a header, the raw bytes of the chunks and an index split into blocks
+ * which can be read in parallel. The index of each series contains its Metadata and, for each chunk,
+ * the state of the chunk and the location of its bytes.
+ *
+ * <pre>
+ * header   magic, version, chunk span, chunk count, series, chunks, datapoints, table offset, block count
+ * data     chunk bytes, a chunk never spans two mapping segments unless it is larger than a segment
+ * blocks   per series: metadata length, metadata (TCompact), chunk count,
+ *          per chunk: end, last timestamp, chronological, base, count, offset, length
+ * table    offset of each block followed by the end offset of the last block
+ * </pre>
+ */
+final class MemoryStoreSnapshot {
+
+  private static final byte[] MAGIC = "W10MSNAP".getBytes(StandardCharsets.US_ASCII);
+
+  private static final int VERSION = 1;
+
+  private static final int HEADER_SIZE = 64;
+
+  /**
+   * Size of the segments the data section is mapped with
+   */
+  static final long SEGMENT_SIZE = 1L << 30;
+
+  /**
+   * Number of series per index block
+   */
+  static final int BLOCK_SERIES = 4096;
+
+  /**
+   * Callback invoked for each series of a snapshot
+   */
+  interface Visitor {
+    void series(Metadata metadata, List<InMemoryChunkSet.Chunk> chunks) throws IOException;
+  }
+
+  /**
+   * Writer of a snapshot. The snapshot is written to a temporary file which is renamed over the target file
+   * once complete, the target file may be the snapshot the chunks being written were restored from and is
+   * still mapped.
+   */
+  static final class Writer {
+    private final File file;
+    private final File tmp;
+    private final FileOutputStream fos;
+    private final DataOutputStream out;
+    private final long chunkspan;
+    private final int chunkcount;
+
+    private long position = HEADER_SIZE;
+
+    private final List<byte[]> blocks = new ArrayList<byte[]>();
+    private ByteArrayOutputStream block = new ByteArrayOutputStream();
+    private DataOutputStream index = new DataOutputStream(block);
+    private int blockSeries = 0;
+
+    private long series = 0L;
+    private long chunks = 0L;
+    private long datapoints = 0L;
+
+    private final TSerializer serializer = new TSerializer(new TCompactProtocol.Factory());
+
+    Writer(File file, long chunkspan, int chunkcount) throws IOException {
+      this.file = file.getAbsoluteFile();
+      this.tmp = File.createTempFile(this.file.getName() + ".", ".tmp", this.file.getParentFile());
+      this.fos = new FileOutputStream(this.tmp);
+      this.out = new DataOutputStream(new BufferedOutputStream(this.fos, 1024 * 1024));
+      this.chunkspan = chunkspan;
+      this.chunkcount = chunkcount;
+      // The header is written once the snapshot is complete
+      this.out.write(new byte[HEADER_SIZE]);
+    }
+
+    void add(Metadata metadata, List<InMemoryChunkSet.Chunk> states) throws IOException {
+      byte[] meta;
+
+      try {
+        meta = serializer.serialize(metadata);
+      } catch (TException te) {
+        throw new IOException(te);
+      }
+
+      this.index.writeInt(meta.length);
+      this.index.write(meta);
+      this.index.writeInt(states.size());
+
+      for (InMemoryChunkSet.Chunk chunk: states) {
+        ByteBuffer bytes = chunk.bytes.duplicate();
+        int length = bytes.remaining();
+
+        // Pad so the chunk does not straddle two segments
+        long segmentEnd = (this.position / SEGMENT_SIZE + 1) * SEGMENT_SIZE;
+        if (length <= SEGMENT_SIZE && this.position + length > segmentEnd) {
+          pad(segmentEnd - this.position);
+        }
+
+        this.index.writeLong(chunk.end);
+        this.index.writeLong(chunk.lasttimestamp);
+        this.index.writeBoolean(chunk.chronological);
+        this.index.writeLong(chunk.base);
+        this.index.writeLong(chunk.count);
+        this.index.writeLong(this.position);
+        this.index.writeInt(length);
+
+        if (bytes.hasArray()) {
+          this.out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), length);
+        } else {
+          byte[] buf = new byte[Math.min(length, 65536)];
+          while (bytes.hasRemaining()) {
+            int len = Math.min(buf.length, bytes.remaining());
+            bytes.get(buf, 0, len);
+            this.out.write(buf, 0, len);
+          }
+        }
+
+        this.position += length;
+        this.chunks++;
+        this.datapoints += chunk.count;
+      }
+
+      this.series++;
+
+      if (++this.blockSeries >= BLOCK_SERIES) {
+        endBlock();
+      }
+    }
+
+    private void pad(long len) throws IOException {
+      byte[] zeros = new byte[(int) Math.min(len, 65536)];
+      while (len > 0) {
+        int l = (int) Math.min(len, zeros.length);
+        this.out.write(zeros, 0, l);
+        len -= l;
+        this.position += l;
+      }
+    }
+
+    private void endBlock() throws IOException {
+      if (0 == this.blockSeries) {
+        return;
+      }
+      this.index.flush();
+      this.blocks.add(this.block.toByteArray());
+      this.block = new ByteArrayOutputStream();
+      this.index = new DataOutputStream(this.block);
+      this.blockSeries = 0;
+    }
+
+    long getSeries() {
+      return this.series;
+    }
+
+    long getChunks() {
+      return this.chunks;
+    }
+
+    long getDatapoints() {
+      return this.datapoints;
+    }
+
+    long getSize() {
+      return this.position;
+    }
+
+    /**
+     * Complete the snapshot and rename it over the target file
+     */
+    void close() throws IOException {
+      boolean written = false;
+
+      try {
+        endBlock();
+
+        long[] offsets = new long[this.blocks.size() + 1];
+
+        for (int i = 0; i < this.blocks.size(); i++) {
+          offsets[i] = this.position;
+          this.out.write(this.blocks.get(i));
+          this.position += this.blocks.get(i).length;
+        }
+
+        long table = this.position;
+        offsets[this.blocks.size()] = table;
+
+        for (long offset: offsets) {
+          this.out.writeLong(offset);
+          this.position += 8;
+        }
+
+        this.out.flush();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(MAGIC);
+        header.putInt(VERSION);
+        header.putLong(this.chunkspan);
+        header.putInt(this.chunkcount);
+        header.putLong(this.series);
+        header.putLong(this.chunks);
+        header.putLong(this.datapoints);
+        header.putLong(table);
+        header.putInt(this.blocks.size());
+        header.clear();
+
+        FileChannel channel = this.fos.getChannel();
+        while (header.hasRemaining()) {
+          channel.write(header, header.position());
+        }
+        channel.force(true);
+
+        written = true;
+      } finally {
+        this.out.close();
+
+        if (!written) {
+          this.tmp.delete();
+        }
+      }
+
+      Files.move(this.tmp.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Discard an incomplete snapshot, the target file is left untouched
+     */
+    void abort() {
+      try {
+        this.out.close();
+      } catch (IOException ioe) {
+      }
+
+      this.tmp.delete();
+    }
+  }
+
+  private final long chunkspan;
+  private final int chunkcount;
+  private final long series;
+  private final long chunks;
+  private final long datapoints;
+
+  /**
+   * Offsets of the index blocks, the last element is the end of the last block
+   */
+  private final long[] blocks;
+
+  /**
+   * Read only mappings of the data section, one per segment
+   */
+  private final ByteBuffer[] segments;
+
+  private final FileChannel channel;
+
+  private final RandomAccessFile raf;
+
+  private MemoryStoreSnapshot(RandomAccessFile raf) throws IOException {
+    this.raf = raf;
+    this.channel = raf.getChannel();
+
+    ByteBuffer header = this.channel.map(MapMode.READ_ONLY, 0, HEADER_SIZE);
+    byte[] magic = new byte[MAGIC.length];
+    header.get(magic);
+
+    if (!Arrays.equals(MAGIC, magic) || VERSION != header.getInt()) {
+      throw new IOException("Invalid memory store snapshot.");
+    }
+
+    this.chunkspan = header.getLong();
+    this.chunkcount = header.getInt();
+    this.series = header.getLong();
+    this.chunks = header.getLong();
+    this.datapoints = header.getLong();
+    long table = header.getLong();
+    int nblocks = header.getInt();
+
+    ByteBuffer offsets = this.channel.map(MapMode.READ_ONLY, table, 8L * (nblocks + 1));
+    this.blocks = new long[nblocks + 1];
+    for (int i = 0; i <= nblocks; i++) {
+      this.blocks[i] = offsets.getLong();
+    }
+
+    // The data section ends where the first index block starts
+    long dataEnd = this.blocks[0];
+    int nsegments = (int) ((dataEnd + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+    this.segments = new ByteBuffer[nsegments];
+
+    for (int i = 0; i < nsegments; i++) {
+      long start = i * SEGMENT_SIZE;
+      this.segments[i] = this.channel.map(MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, dataEnd - start));
+    }
+  }
+
+  /**
+   * Check if a file is a memory store snapshot
+   */
+  static boolean isSnapshot(File file) {
+    if (!file.isFile()) {
+      return false;
+    }
+
+    FileInputStream in = null;
+
+    try {
+      in = new FileInputStream(file);
+      byte[] magic = new byte[MAGIC.length];
+      int len = 0;
+      while (len < magic.length) {
+        int n = in.read(magic, len, magic.length - len);
+        if (n < 0) {
+          return false;
+        }
+        len += n;
+      }
+      return Arrays.equals(MAGIC, magic);
+    } catch (IOException ioe) {
+      return false;
+    } finally {
+      if (null != in) {
+        try {
+          in.close();
+        } catch (IOException ioe) {
+        }
+      }
+    }
+  }
+
+  static MemoryStoreSnapshot open(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      return new MemoryStoreSnapshot(raf);
+    } catch (IOException ioe) {
+      raf.close();
+      throw ioe;
+    }
+  }
+
+  long getChunkSpan() {
+    return this.chunkspan;
+  }
+
+  int getChunkCount() {
+    return this.chunkcount;
+  }
+
+  long getSeries() {
+    return this.series;
+  }
+
+  long getChunks() {
+    return this.chunks;
+  }
+
+  long getDatapoints() {
+    return this.datapoints;
+  }
+
+  int getBlockCount() {
+    return this.blocks.length - 1;
+  }
+
+  /**
+   * Read an index block, calling the visitor for each of its series. Blocks can be read concurrently.
+   * The bytes of the chunks are read only views of the mapped file.
+   */
+  void read(int block, Visitor visitor) throws IOException {
+    ByteBuffer index = this.channel.map(MapMode.READ_ONLY, this.blocks[block], this.blocks[block + 1] - this.blocks[block]);
+
+    TDeserializer deserializer = new TDeserializer(new TCompactProtocol.Factory());
+
+    while (index.hasRemaining()) {
+      byte[] meta = new byte[index.getInt()];
+      index.get(meta);
+
+      Metadata metadata = new Metadata();
+
+      try {
+        deserializer.deserialize(metadata, meta);
+      } catch (TException te) {
+        throw new IOException(te);
+      }
+
+      int nchunks = index.getInt();
+      List<InMemoryChunkSet.Chunk> states = new ArrayList<InMemoryChunkSet.Chunk>(nchunks);
+
+      for (int i = 0; i < nchunks; i++) {
+        InMemoryChunkSet.Chunk chunk = new InMemoryChunkSet.Chunk();
+        chunk.end = index.getLong();
+        chunk.lasttimestamp = index.getLong();
+        chunk.chronological = 0 != index.get();
+        chunk.base = index.getLong();
+        chunk.count = index.getLong();
+        long offset = index.getLong();
+        int length = index.getInt();
+        chunk.bytes = bytes(offset, length);
+        states.add(chunk);
+      }
+
+      visitor.series(metadata, states);
+    }
+  }
+
+  private ByteBuffer bytes(long offset, int length) throws IOException {
+    int segment = (int) (offset / SEGMENT_SIZE);
+
+    // Chunks larger than a segment get a mapping of their own
+    if (segment >= this.segments.length || offset + length > segment * SEGMENT_SIZE + this.segments[segment].capacity()) {
+      return this.channel.map(MapMode.READ_ONLY, offset, length);
+    }
+
+    ByteBuffer bb = this.segments[segment].duplicate();
+    bb.position((int) (offset - segment * SEGMENT_SIZE));
+    bb.limit(bb.position() + length);
+    return bb.slice();
+  }
+
+  /**
+   * Close the file, the mappings remain valid until they are no longer referenced
+   */
+  void close() throws IOException {
+    this.raf.close();
+  }
+}
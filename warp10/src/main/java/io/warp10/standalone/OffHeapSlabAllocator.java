@@ -0,0 +1,205 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.standalone;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * Allocates regions of off-heap memory out of large slabs.
+ *
+ * Slabs are either direct ByteBuffers or memory mapped temporary files. Regions are
+ * carved out of the current slab using a bump pointer, freed space is never reused, a slab is
+ * released once all its regions have been freed and it is no longer referenced. This means
+ * that a region which was freed can still be safely read by a thread which obtained
+ * a view of it before it was freed.
+ *
+ * Fragmentation is handled by the callers which relocate regions living in sparse slabs.
+ */
+class OffHeapSlabAllocator {
+
+  /**
+   * Default size of slabs, 64MB
+   */
+  static final int DEFAULT_SLAB_SIZE = 64 * 1024 * 1024;
+
+  static final class Slab {
+    private final ByteBuffer buffer;
+    private int position = 0;
+    private long live = 0L;
+
+    private Slab(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+  }
+
+  static final class Region {
+    private final Slab slab;
+    private final ByteBuffer buffer;
+
+    private Region(Slab slab, int offset, int capacity) {
+      this.slab = slab;
+      ByteBuffer bb = slab.buffer.duplicate();
+      bb.position(offset);
+      bb.limit(offset + capacity);
+      this.buffer = bb.slice();
+    }
+
+    int capacity() {
+      return this.buffer.capacity();
+    }
+
+    /**
+     * Return a view of the region, positioned at 0 and limited to its capacity
+     */
+    ByteBuffer buffer() {
+      return this.buffer.duplicate();
+    }
+  }
+
+  private final int slabSize;
+
+  /**
+   * Directory where memory mapped slabs are created, null to use direct buffers
+   */
+  private final File dir;
+
+  private Slab current = null;
+
+  private long slabs = 0L;
+  private long allocated = 0L;
+  private long reserved = 0L;
+
+  OffHeapSlabAllocator(int slabSize, File dir) {
+    this.slabSize = slabSize;
+    this.dir = dir;
+  }
+
+  synchronized Region allocate(int size) throws IOException {
+    if (size > this.slabSize) {
+      // Large regions get a slab of their own
+      Slab slab = slab(size);
+      slab.position = size;
+      slab.live = size;
+      this.allocated += size;
+      return new Region(slab, 0, size);
+    }
+
+    if (null == this.current || this.current.buffer.capacity() - this.current.position < size) {
+      if (null != this.current && 0 == this.current.live) {
+        release(this.current);
+      }
+      this.current = slab(this.slabSize);
+    }
+
+    Region region = new Region(this.current, this.current.position, size);
+    this.current.position += size;
+    this.current.live += size;
+    this.allocated += size;
+
+    return region;
+  }
+
+  /**
+   * Adopt an existing buffer, typically a view of a memory mapped file, as a region with a slab of its own.
+   * The content of the buffer is not copied.
+   */
+  synchronized Region wrap(ByteBuffer buffer) {
+    Slab slab = new Slab(buffer.slice());
+    int size = slab.buffer.capacity();
+    slab.position = size;
+    slab.live = size;
+    this.slabs++;
+    this.reserved += size;
+    this.allocated += size;
+    return new Region(slab, 0, size);
+  }
+
+  synchronized void free(Region region) {
+    Slab slab = region.slab;
+    slab.live -= region.capacity();
+    this.allocated -= region.capacity();
+
+    if (0 == slab.live && slab != this.current) {
+      release(slab);
+    }
+  }
+
+  /**
+   * Check if a region lives in a slab which is mostly unused and could be released
+   * if the region was relocated.
+   */
+  synchronized boolean isSparse(Region region) {
+    Slab slab = region.slab;
+    return slab != this.current && slab.live < slab.buffer.capacity() / 4;
+  }
+
+  /**
+   * Number of bytes currently allocated to regions
+   */
+  synchronized long getAllocated() {
+    return this.allocated;
+  }
+
+  /**
+   * Number of bytes held by the slabs
+   */
+  synchronized long getReserved() {
+    return this.reserved;
+  }
+
+  synchronized long getSlabs() {
+    return this.slabs;
+  }
+
+  private Slab slab(int size) throws IOException {
+    ByteBuffer buffer;
+
+    if (null == this.dir) {
+      buffer = ByteBuffer.allocateDirect(size);
+    } else {
+      File file = File.createTempFile("slab.", ".mmap", this.dir);
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        raf.setLength(size);
+        FileChannel channel = raf.getChannel();
+        buffer = channel.map(MapMode.READ_WRITE, 0, size);
+      } finally {
+        raf.close();
+        // The mapping survives the deletion of the file
+        file.delete();
+      }
+    }
+
+    this.slabs++;
+    this.reserved += size;
+
+    return new Slab(buffer);
+  }
+
+  /**
+   * Forget about a slab, its memory is reclaimed once the buffer is no longer referenced
+   */
+  private void release(Slab slab) {
+    this.slabs--;
+    this.reserved -= slab.buffer.capacity();
+  }
+}
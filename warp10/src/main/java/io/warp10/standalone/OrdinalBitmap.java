@@ -0,0 +1,417 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.standalone;
+
+import java.util.Arrays;
+
+/**
+ * Compressed set of non negative int ordinals.
+ *
+ * Ordinals are grouped in containers of 65536 values sharing the same upper 16 bits. Sparse
+ * containers are sorted arrays of the lower 16 bits, dense containers are 8kB bitmaps.
+ *
+ * Instances are not thread safe.
+ */
+final class OrdinalBitmap {
+
+  /**
+   * Cardinality above which an array container is converted to a bitmap container
+   */
+  private static final int ARRAY_MAX = 4096;
+
+  /**
+   * Cardinality under which a bitmap container is converted back to an array container
+   */
+  private static final int BITMAP_MIN = 2048;
+
+  private static final int BITMAP_WORDS = 1024;
+
+  private static final long BITMAP_BYTES = 16L + BITMAP_WORDS * 8L;
+
+  /**
+   * Upper 16 bits of the containers, sorted
+   */
+  private char[] keys = new char[1];
+
+  /**
+   * Containers, either char[] or long[]
+   */
+  private Object[] containers = new Object[1];
+
+  /**
+   * Cardinality of each container
+   */
+  private int[] cards = new int[1];
+
+  private int size = 0;
+
+  private long cardinality = 0L;
+
+  /**
+   * Estimated number of bytes used by the containers
+   */
+  private long bytes = 0L;
+
+  OrdinalBitmap() {
+  }
+
+  private OrdinalBitmap(OrdinalBitmap bitmap) {
+    this.keys = Arrays.copyOf(bitmap.keys, Math.max(1, bitmap.size));
+    this.containers = new Object[this.keys.length];
+    this.cards = Arrays.copyOf(bitmap.cards, this.keys.length);
+    this.size = bitmap.size;
+    this.cardinality = bitmap.cardinality;
+    this.bytes = bitmap.bytes;
+
+    for (int i = 0; i < this.size; i++) {
+      Object container = bitmap.containers[i];
+      if (container instanceof long[]) {
+        this.containers[i] = ((long[]) container).clone();
+      } else {
+        this.containers[i] = Arrays.copyOf((char[]) container, this.cards[i]);
+      }
+    }
+  }
+
+  OrdinalBitmap copy() {
+    return new OrdinalBitmap(this);
+  }
+
+  long cardinality() {
+    return this.cardinality;
+  }
+
+  boolean isEmpty() {
+    return 0L == this.cardinality;
+  }
+
+  /**
+   * Estimated size in bytes of this bitmap
+   */
+  long bytes() {
+    return 48L + this.keys.length * 2L + this.containers.length * 4L + this.cards.length * 4L + this.bytes;
+  }
+
+  boolean contains(int ordinal) {
+    int idx = index((char) (ordinal >>> 16));
+
+    if (idx < 0) {
+      return false;
+    }
+
+    char low = (char) ordinal;
+    Object container = this.containers[idx];
+
+    if (container instanceof long[]) {
+      return 0L != (((long[]) container)[low >>> 6] & (1L << low));
+    } else {
+      return Arrays.binarySearch((char[]) container, 0, this.cards[idx], low) >= 0;
+    }
+  }
+
+  /**
+   * Add an ordinal
+   *
+   * @return true if the ordinal was not yet in the bitmap
+   */
+  boolean add(int ordinal) {
+    char high = (char) (ordinal >>> 16);
+    char low = (char) ordinal;
+
+    int idx = index(high);
+
+    if (idx < 0) {
+      idx = -idx - 1;
+      insertContainer(idx, high, new char[4]);
+      this.bytes += 16L + 8L;
+    }
+
+    Object container = this.containers[idx];
+    int card = this.cards[idx];
+
+    if (container instanceof long[]) {
+      long[] words = (long[]) container;
+      long word = words[low >>> 6];
+      if (0L != (word & (1L << low))) {
+        return false;
+      }
+      words[low >>> 6] = word | (1L << low);
+    } else {
+      char[] values = (char[]) container;
+      int pos = Arrays.binarySearch(values, 0, card, low);
+      if (pos >= 0) {
+        return false;
+      }
+      pos = -pos - 1;
+
+      if (card == ARRAY_MAX) {
+        long[] words = toBitmap(values, card);
+        words[low >>> 6] |= (1L << low);
+        this.containers[idx] = words;
+        this.bytes += BITMAP_BYTES - (16L + values.length * 2L);
+      } else {
+        if (card == values.length) {
+          char[] grown = Arrays.copyOf(values, Math.min(ARRAY_MAX, values.length << 1));
+          this.bytes += (grown.length - values.length) * 2L;
+          values = grown;
+          this.containers[idx] = values;
+        }
+        System.arraycopy(values, pos, values, pos + 1, card - pos);
+        values[pos] = low;
+      }
+    }
+
+    this.cards[idx] = card + 1;
+    this.cardinality++;
+
+    return true;
+  }
+
+  /**
+   * Remove an ordinal
+   *
+   * @return true if the ordinal was in the bitmap
+   */
+  boolean remove(int ordinal) {
+    int idx = index((char) (ordinal >>> 16));
+
+    if (idx < 0) {
+      return false;
+    }
+
+    char low = (char) ordinal;
+    Object container = this.containers[idx];
+    int card = this.cards[idx];
+
+    if (container instanceof long[]) {
+      long[] words = (long[]) container;
+      long word = words[low >>> 6];
+      if (0L == (word & (1L << low))) {
+        return false;
+      }
+      words[low >>> 6] = word & ~(1L << low);
+      if (card - 1 < BITMAP_MIN) {
+        char[] values = toArray(words, card - 1);
+        this.containers[idx] = values;
+        this.bytes += (16L + values.length * 2L) - BITMAP_BYTES;
+      }
+    } else {
+      char[] values = (char[]) container;
+      int pos = Arrays.binarySearch(values, 0, card, low);
+      if (pos < 0) {
+        return false;
+      }
+      System.arraycopy(values, pos + 1, values, pos, card - pos - 1);
+    }
+
+    this.cardinality--;
+
+    if (0 == card - 1) {
+      removeContainer(idx);
+    } else {
+      this.cards[idx] = card - 1;
+    }
+
+    return true;
+  }
+
+  /**
+   * Only keep the ordinals which are also in 'other'
+   */
+  void retain(OrdinalBitmap other) {
+    int kept = 0;
+    long cardinality = 0L;
+    long bytes = 0L;
+
+    for (int i = 0; i < this.size; i++) {
+      int idx = other.index(this.keys[i]);
+
+      if (idx < 0) {
+        continue;
+      }
+
+      Object container = intersect(this.containers[i], this.cards[i], other.containers[idx], other.cards[idx]);
+      int card = container instanceof long[] ? cardinality((long[]) container) : -1;
+
+      if (-1 == card) {
+        char[] values = (char[]) container;
+        card = values.length;
+        if (card >= ARRAY_MAX) {
+          container = toBitmap(values, card);
+        }
+      } else if (card < BITMAP_MIN) {
+        container = toArray((long[]) container, card);
+      }
+
+      if (0 == card) {
+        continue;
+      }
+
+      this.keys[kept] = this.keys[i];
+      this.containers[kept] = container;
+      this.cards[kept] = card;
+      kept++;
+      cardinality += card;
+      bytes += container instanceof long[] ? BITMAP_BYTES : 16L + ((char[]) container).length * 2L;
+    }
+
+    Arrays.fill(this.containers, kept, this.size, null);
+    this.size = kept;
+    this.cardinality = cardinality;
+    this.bytes = bytes;
+  }
+
+  /**
+   * Return the ordinals of the bitmap in increasing order
+   */
+  int[] toArray() {
+    int[] ordinals = new int[(int) this.cardinality];
+    int n = 0;
+
+    for (int i = 0; i < this.size; i++) {
+      int high = ((int) this.keys[i]) << 16;
+      Object container = this.containers[i];
+
+      if (container instanceof long[]) {
+        long[] words = (long[]) container;
+        for (int w = 0; w < words.length; w++) {
+          long word = words[w];
+          while (0L != word) {
+            ordinals[n++] = high | (w << 6) | Long.numberOfTrailingZeros(word);
+            word &= word - 1;
+          }
+        }
+      } else {
+        char[] values = (char[]) container;
+        for (int j = 0; j < this.cards[i]; j++) {
+          ordinals[n++] = high | values[j];
+        }
+      }
+    }
+
+    return ordinals;
+  }
+
+  private static Object intersect(Object a, int carda, Object b, int cardb) {
+    if (a instanceof long[] && b instanceof long[]) {
+      long[] wa = (long[]) a;
+      long[] wb = (long[]) b;
+      long[] words = new long[BITMAP_WORDS];
+      for (int i = 0; i < BITMAP_WORDS; i++) {
+        words[i] = wa[i] & wb[i];
+      }
+      return words;
+    }
+
+    if (a instanceof long[]) {
+      return intersect(b, cardb, a, carda);
+    }
+
+    char[] va = (char[]) a;
+    char[] result = new char[carda];
+    int n = 0;
+
+    if (b instanceof long[]) {
+      long[] wb = (long[]) b;
+      for (int i = 0; i < carda; i++) {
+        if (0L != (wb[va[i] >>> 6] & (1L << va[i]))) {
+          result[n++] = va[i];
+        }
+      }
+    } else {
+      char[] vb = (char[]) b;
+      int i = 0;
+      int j = 0;
+      while (i < carda && j < cardb) {
+        if (va[i] < vb[j]) {
+          i++;
+        } else if (va[i] > vb[j]) {
+          j++;
+        } else {
+          result[n++] = va[i];
+          i++;
+          j++;
+        }
+      }
+    }
+
+    return Arrays.copyOf(result, n);
+  }
+
+  private static long[] toBitmap(char[] values, int card) {
+    long[] words = new long[BITMAP_WORDS];
+    for (int i = 0; i < card; i++) {
+      words[values[i] >>> 6] |= (1L << values[i]);
+    }
+    return words;
+  }
+
+  private static char[] toArray(long[] words, int card) {
+    char[] values = new char[Math.max(4, card)];
+    int n = 0;
+    for (int w = 0; w < words.length; w++) {
+      long word = words[w];
+      while (0L != word) {
+        values[n++] = (char) ((w << 6) | Long.numberOfTrailingZeros(word));
+        word &= word - 1;
+      }
+    }
+    return values;
+  }
+
+  private static int cardinality(long[] words) {
+    int card = 0;
+    for (long word: words) {
+      card += Long.bitCount(word);
+    }
+    return card;
+  }
+
+  private int index(char high) {
+    return Arrays.binarySearch(this.keys, 0, this.size, high);
+  }
+
+  private void insertContainer(int idx, char high, Object container) {
+    if (this.size == this.keys.length) {
+      int capacity = this.keys.length << 1;
+      this.keys = Arrays.copyOf(this.keys, capacity);
+      this.containers = Arrays.copyOf(this.containers, capacity);
+      this.cards = Arrays.copyOf(this.cards, capacity);
+    }
+
+    System.arraycopy(this.keys, idx, this.keys, idx + 1, this.size - idx);
+    System.arraycopy(this.containers, idx, this.containers, idx + 1, this.size - idx);
+    System.arraycopy(this.cards, idx, this.cards, idx + 1, this.size - idx);
+
+    this.keys[idx] = high;
+    this.containers[idx] = container;
+    this.cards[idx] = 0;
+    this.size++;
+  }
+
+  private void removeContainer(int idx) {
+    Object container = this.containers[idx];
+    this.bytes -= container instanceof long[] ? BITMAP_BYTES : 16L + ((char[]) container).length * 2L;
+
+    System.arraycopy(this.keys, idx + 1, this.keys, idx, this.size - idx - 1);
+    System.arraycopy(this.containers, idx + 1, this.containers, idx, this.size - idx - 1);
+    System.arraycopy(this.cards, idx + 1, this.cards, idx, this.size - idx - 1);
+
+    this.size--;
+    this.containers[this.size] = null;
+  }
+}
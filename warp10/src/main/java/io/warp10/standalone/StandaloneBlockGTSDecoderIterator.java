@@ -0,0 +1,256 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.standalone;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.iq80.leveldb.DBIterator;
+
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.store.GTSDecoderIterator;
+import io.warp10.continuum.store.thrift.data.Metadata;
+import io.warp10.quasar.token.thrift.data.ReadToken;
+
+/**
+ * Iterator over the datapoints of series stored using the block layout described
+ * in {@link LevelDBDataBlocks}. Rows stored using the datapoint layout are also read.
+ */
+class StandaloneBlockGTSDecoderIterator extends GTSDecoderIterator {
+
+  private final DBIterator iterator;
+  private final ReadToken token;
+  private final List<Metadata> metadatas;
+  private final byte[] aesKey;
+  private final long lookback;
+  private final long maxEncoderSize;
+
+  private final long now;
+  private final long then;
+  private final long count;
+  private final long skip;
+  private final long step;
+  private final long timestep;
+  private final double sample;
+  private final long preBoundary;
+  private final long postBoundary;
+
+  private final Random prng;
+
+  private int idx = -1;
+
+  private LevelDBDataBlocks.Merger merger;
+
+  /**
+   * Post boundary datapoints of the current GTS yet to return
+   */
+  private TreeMap<Long,Object[]> boundary;
+
+  private long nvalues;
+  private long toskip;
+  private long pre;
+  private long nextTimestamp;
+  private long steps;
+
+  StandaloneBlockGTSDecoderIterator(DBIterator iterator, ReadToken token, List<Metadata> metadatas, byte[] aesKey, long lookback, long maxEncoderSize,
+      long now, long then, long count, long skip, long step, long timestep, double sample, long preBoundary, long postBoundary) {
+    this.iterator = iterator;
+    this.token = token;
+    this.metadatas = metadatas;
+    this.aesKey = aesKey;
+    this.lookback = lookback;
+    this.maxEncoderSize = maxEncoderSize;
+    this.now = now;
+    this.then = then;
+    this.count = count;
+    this.skip = skip;
+    this.step = step;
+    this.timestep = timestep;
+    this.sample = sample;
+    this.preBoundary = preBoundary;
+    this.postBoundary = postBoundary;
+    this.prng = sample < 1.0D ? new Random() : null;
+  }
+
+  @Override
+  public void close() throws Exception {
+    iterator.close();
+  }
+
+  @Override
+  public void remove() {
+  }
+
+  @Override
+  public boolean hasNext() {
+    while (idx < metadatas.size()) {
+      if (idx >= 0) {
+        if (null != boundary) {
+          return true;
+        }
+
+        if (merger.hasNext()) {
+          // Datapoints in the requested range are selected until 'nvalues' reaches 0,
+          // older ones are part of the pre boundary
+          if (merger.peekTick() >= then ? nvalues > 0 || pre > 0 : pre > 0) {
+            return true;
+          }
+        }
+      }
+
+      idx++;
+
+      if (idx >= metadatas.size()) {
+        return false;
+      }
+
+      Metadata metadata = metadatas.get(idx);
+      byte[] gtskey = LevelDBDataBlocks.gtsKey(metadata.getClassId(), metadata.getLabelsId());
+
+      nvalues = count >= 0L ? count : Long.MAX_VALUE;
+      toskip = skip;
+      pre = preBoundary;
+      nextTimestamp = Long.MAX_VALUE;
+      steps = 0L;
+      boundary = null;
+
+      if (postBoundary > 0) {
+        iterator.seek(LevelDBDataBlocks.rowKey(gtskey, now));
+        boundary = LevelDBDataBlocks.postBoundary(iterator, gtskey, aesKey, lookback, now, postBoundary);
+        if (boundary.isEmpty()) {
+          boundary = null;
+        }
+      }
+
+      merger = new LevelDBDataBlocks.Merger(iterator, gtskey, aesKey, lookback, now);
+
+      // Blocks ending up to 'lookback' time units after 'now' may contain datapoints to consider
+      iterator.seek(LevelDBDataBlocks.rowKey(gtskey, LevelDBDataBlocks.after(now, lookback - 1)));
+
+      // If no values are requested, position the iterator for the pre boundary
+      if (0 == nvalues && Long.MIN_VALUE != then) {
+        merger.skipTo(then - 1);
+      }
+    }
+
+    return false;
+  }
+
+  @Override
+  public GTSDecoder next() {
+    GTSEncoder encoder = new GTSEncoder(0L);
+
+    long datapoints = 0L;
+    long keyBytes = merger.keyBytes;
+    long valueBytes = merger.valueBytes;
+
+    final boolean hasTimestep = 1L != timestep;
+    final boolean hasStep = 1L != step;
+
+    try {
+      //
+      // Post boundary, nearest datapoints first
+      //
+
+      if (null != boundary) {
+        for (Entry<Long,Object[]> entry: boundary.entrySet()) {
+          Object[] dp = entry.getValue();
+          encoder.addValue(entry.getKey(), (long) dp[0], (long) dp[1], dp[2]);
+        }
+        boundary = null;
+      }
+
+      //
+      // Datapoints in the requested time range
+      //
+
+      while (nvalues > 0 && encoder.size() < maxEncoderSize && merger.hasNext() && merger.peekTick() >= then) {
+        merger.next();
+
+        long ts = merger.tick;
+
+        if (toskip > 0) {
+          toskip--;
+          continue;
+        }
+
+        if (ts > nextTimestamp) {
+          continue;
+        }
+
+        if (hasTimestep) {
+          try {
+            nextTimestamp = Math.subtractExact(ts, timestep);
+          } catch (ArithmeticException ae) {
+            nextTimestamp = Long.MIN_VALUE;
+            nvalues = 0L;
+          }
+          merger.skipTo(nextTimestamp);
+        }
+
+        if (steps > 0) {
+          steps--;
+          continue;
+        }
+
+        if (hasStep) {
+          steps = step - 1L;
+        }
+
+        if (sample < 1.0D && prng.nextDouble() > sample) {
+          continue;
+        }
+
+        nvalues--;
+        datapoints++;
+
+        encoder.addValue(ts, merger.location, merger.elevation, merger.value);
+      }
+
+      //
+      // Pre boundary, once the requested time range was fully handled
+      //
+
+      if (pre > 0 && encoder.size() < maxEncoderSize) {
+        if (nvalues <= 0 && Long.MIN_VALUE != then) {
+          merger.skipTo(then - 1);
+        }
+
+        if (!merger.hasNext() || merger.peekTick() < then) {
+          while (pre > 0 && encoder.size() < maxEncoderSize && merger.hasNext()) {
+            merger.next();
+            encoder.addValue(merger.tick, merger.location, merger.elevation, merger.value);
+            pre--;
+          }
+        }
+      }
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+
+    Metadata metadata = metadatas.get(idx);
+    encoder.setMetadata(metadata);
+
+    StandaloneStoreClient.updateFetchMetrics(token, metadata, merger.keyBytes - keyBytes, merger.valueBytes - valueBytes, datapoints);
+
+    return encoder.getDecoder();
+  }
+}
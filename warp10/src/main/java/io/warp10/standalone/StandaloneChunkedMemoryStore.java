@@ -16,15 +16,17 @@
 
 package io.warp10.standalone;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.LockSupport;
 
@@ -42,15 +44,15 @@ import org.apache.thrift.protocol.TCompactProtocol;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.collect.MapMaker;
-
 import io.warp10.CapacityExtractorOutputStream;
 import io.warp10.continuum.TimeSource;
+import io.warp10.continuum.gts.ConcurrentGTSIdMap;
 import io.warp10.continuum.gts.GTSDecoder;
 import io.warp10.continuum.gts.GTSEncoder;
 import io.warp10.continuum.gts.GTSHelper;
 import io.warp10.continuum.sensision.SensisionConstants;
 import io.warp10.continuum.store.Constants;
+import io.warp10.continuum.store.BucketizingGTSDecoderIterator;
 import io.warp10.continuum.store.GTSDecoderIterator;
 import io.warp10.continuum.store.StoreClient;
 import io.warp10.continuum.store.thrift.data.FetchRequest;
@@ -72,7 +74,7 @@ public class StandaloneChunkedMemoryStore extends Thread implements StoreClient
 
   private static final Logger LOG = LoggerFactory.getLogger(StandaloneChunkedMemoryStore.class);
 
-  private final Map<BigInteger,InMemoryChunkSet> series;
+  private final ConcurrentGTSIdMap<InMemoryChunkSet> series;
 
   private List<StandalonePlasmaHandlerInterface> plasmaHandlers = new ArrayList<StandalonePlasmaHandlerInterface>();
 
@@ -95,10 +97,27 @@ public class StandaloneChunkedMemoryStore extends Thread implements StoreClient
   private final long[] classKeyLongs;
   private final long[] labelsKeyLongs;
 
+  /**
+   * Allocator of off-heap chunk regions, null if chunks are kept on-heap
+   */
+  private final OffHeapSlabAllocator allocator;
+
+  private final int offheapFlushSize;
+
+  /**
+   * Default number of bytes buffered on-heap per chunk before being flushed off-heap
+   */
+  private static final int DEFAULT_OFFHEAP_FLUSH_SIZE = 1024;
+
+  /**
+   * Value of the dump format selecting memory mappable snapshots
+   */
+  private static final String SNAPSHOT_FORMAT = "snapshot";
+
   public StandaloneChunkedMemoryStore(Properties properties, KeyStore keystore) {
     this.properties = properties;
 
-    this.series = new MapMaker().concurrencyLevel(64).makeMap();
+    this.series = new ConcurrentGTSIdMap<InMemoryChunkSet>(64);
 
     if ("true".equals(properties.getProperty(io.warp10.continuum.Configuration.IN_MEMORY_EPHEMERAL))) {
       this.chunkcount = 1;
@@ -113,6 +132,16 @@ public class StandaloneChunkedMemoryStore extends Thread implements StoreClient
     this.labelsKeyLongs = SipHashInline.getKey(keystore.getKey(KeyStore.SIPHASH_LABELS));
     this.classKeyLongs = SipHashInline.getKey(keystore.getKey(KeyStore.SIPHASH_CLASS));
 
+    if (!this.ephemeral && "true".equals(properties.getProperty(io.warp10.continuum.Configuration.IN_MEMORY_OFFHEAP))) {
+      int slabsize = Integer.parseInt(properties.getProperty(io.warp10.continuum.Configuration.IN_MEMORY_OFFHEAP_SLABSIZE, Integer.toString(OffHeapSlabAllocator.DEFAULT_SLAB_SIZE)));
+      String dir = properties.getProperty(io.warp10.continuum.Configuration.IN_MEMORY_OFFHEAP_DIR);
+      this.allocator = new OffHeapSlabAllocator(slabsize, null == dir ? null : new File(dir));
+      this.offheapFlushSize = Integer.parseInt(properties.getProperty(io.warp10.continuum.Configuration.IN_MEMORY_OFFHEAP_FLUSH, Integer.toString(DEFAULT_OFFHEAP_FLUSH_SIZE)));
+    } else {
+      this.allocator = null;
+      this.offheapFlushSize = 0;
+    }
+
     //
     // Add a shutdown hook to dump the memory store on exit
     //
@@ -194,22 +223,15 @@ public class StandaloneChunkedMemoryStore extends Thread implements StoreClient
           return true;
         }
 
-        // 128 bits
-        byte[] bytes = new byte[16];
-
         while(true) {
           if (idx >= metadatas.size()) {
             return false;
           }
 
           while(idx < metadatas.size()) {
-            GTSHelper.fillGTSIds(bytes, 0, metadatas.get(idx).getClassId(), metadatas.get(idx).getLabelsId());
-
-            BigInteger clslbls = new BigInteger(bytes);
-
-            if (idx < metadatas.size() && series.containsKey(clslbls)) {
-              InMemoryChunkSet chunkset = series.get(clslbls);
+            InMemoryChunkSet chunkset = series.get(metadatas.get(idx).getClassId(), metadatas.get(idx).getLabelsId());
 
+            if (null != chunkset) {
               try {
                 GTSDecoder dec = chunkset.fetch(now, then, count, skip, sample, extractor, preBoundary, postBoundary);
 
@@ -239,7 +261,7 @@ public class StandaloneChunkedMemoryStore extends Thread implements StoreClient
       }
     };
 
-    return iterator;
+    return BucketizingGTSDecoderIterator.wrap(req, iterator);
   }
 
   public void store(GTSEncoder encoder) throws IOException {
@@ -248,32 +270,11 @@ public class StandaloneChunkedMemoryStore extends Thread implements StoreClient
       return;
     }
 
-    byte[] bytes = new byte[16];
-
-    Metadata meta = encoder.getMetadata();
-
-    GTSHelper.fillGTSIds(bytes, 0, meta.getClassId(), meta.getLabelsId());
-
-    BigInteger clslbls = new BigInteger(bytes);
-
     //
     // Retrieve the chunk for the current GTS
     //
 
-    InMemoryChunkSet chunkset = null;
-
-    synchronized (this.series) {
-      chunkset = this.series.get(clslbls);
-
-      //
-      // We need to allocate a new chunk
-      //
-
-      if (null == chunkset) {
-        chunkset = new InMemoryChunkSet(this.chunkcount, this.chunkspan, this.ephemeral);
-        this.series.put(clslbls,  chunkset);
-      }
-    }
+    InMemoryChunkSet chunkset = getChunkSet(encoder.getMetadata());
 
     //
     // Store data
@@ -292,6 +293,25 @@ public class StandaloneChunkedMemoryStore extends Thread implements StoreClient
     }
   }
 
+  private InMemoryChunkSet getChunkSet(Metadata meta) {
+    InMemoryChunkSet chunkset = null;
+
+    synchronized (this.series) {
+      chunkset = this.series.get(meta.getClassId(), meta.getLabelsId());
+
+      //
+      // We need to allocate a new chunk
+      //
+
+      if (null == chunkset) {
+        chunkset = new InMemoryChunkSet(this.chunkcount, this.chunkspan, this.ephemeral, this.allocator, this.offheapFlushSize);
+        this.series.put(meta.getClassId(), meta.getLabelsId(), chunkset);
+      }
+    }
+
+    return chunkset;
+  }
+
   @Override
   public void run() {
     //
@@ -322,10 +342,9 @@ public class StandaloneChunkedMemoryStore extends Thread implements StoreClient
 
       LockSupport.parkNanos(delayns);
 
-      List<BigInteger> metadatas = new ArrayList<BigInteger>();
-      metadatas.addAll(this.series.keySet());
+      long[] ids = this.series.ids();
 
-      if (0 == metadatas.size()) {
+      if (0 == ids.length) {
         continue;
       }
 
@@ -344,10 +363,8 @@ public class StandaloneChunkedMemoryStore extends Thread implements StoreClient
 
       boolean doreclaim = true;
 
-      for (int idx = 0 ; idx < metadatas.size(); idx++) {
-        BigInteger key = metadatas.get(idx);
-
-        InMemoryChunkSet chunkset = this.series.get(key);
+      for (int idx = 0 ; idx < ids.length; idx += 2) {
+        InMemoryChunkSet chunkset = this.series.get(ids[idx], ids[idx + 1]);
 
         if (null == chunkset) {
           continue;
@@ -397,7 +414,7 @@ public class StandaloneChunkedMemoryStore extends Thread implements StoreClient
         if (0 == count) {
           synchronized (this.series) {
             if (0 == chunkset.getCount()) {
-              this.series.remove(key);
+              this.series.remove(ids[idx], ids[idx + 1]);
             }
           }
         }
@@ -414,6 +431,11 @@ public class StandaloneChunkedMemoryStore extends Thread implements StoreClient
       Sensision.set(SensisionConstants.SENSISION_CLASS_CONTINUUM_STANDALONE_INMEMORY_DATAPOINTS, Sensision.EMPTY_LABELS, datapoints);
       Sensision.set(SensisionConstants.SENSISION_CLASS_CONTINUUM_STANDALONE_INMEMORY_GTS, Sensision.EMPTY_LABELS, this.series.size());
 
+      if (null != this.allocator) {
+        Sensision.set(SensisionConstants.SENSISION_CLASS_CONTINUUM_STANDALONE_INMEMORY_OFFHEAP_BYTES, Sensision.EMPTY_LABELS, this.allocator.getReserved());
+        Sensision.set(SensisionConstants.SENSISION_CLASS_CONTINUUM_STANDALONE_INMEMORY_OFFHEAP_SLABS, Sensision.EMPTY_LABELS, this.allocator.getSlabs());
+      }
+
       if (datapointsdelta > 0) {
         Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_STANDALONE_INMEMORY_GC_DATAPOINTS, Sensision.EMPTY_LABELS, datapointsdelta);
       }
@@ -436,19 +458,13 @@ public class StandaloneChunkedMemoryStore extends Thread implements StoreClient
     metadata.setLabelsId(GTSHelper.labelsId(this.labelsKeyLongs, metadata.getLabels()));
     metadata.setClassId(GTSHelper.classId(this.classKeyLongs, metadata.getName()));
 
-    byte[] bytes = new byte[16];
-
-    GTSHelper.fillGTSIds(bytes, 0, metadata.getClassId(), metadata.getLabelsId());
-
-    BigInteger clslbls = new BigInteger(bytes);
-
     InMemoryChunkSet set = null;
 
     synchronized(this.series) {
       if (Long.MIN_VALUE == start && Long.MAX_VALUE == end) {
-        this.series.remove(clslbls);
+        this.series.remove(metadata.getClassId(), metadata.getLabelsId());
       } else {
-        set = this.series.get(clslbls);
+        set = this.series.get(metadata.getClassId(), metadata.getLabelsId());
       }
     }
 
@@ -469,6 +485,11 @@ public class StandaloneChunkedMemoryStore extends Thread implements StoreClient
       return;
     }
 
+    if (SNAPSHOT_FORMAT.equals(properties.getProperty(io.warp10.continuum.Configuration.STANDALONE_MEMORY_STORE_DUMP_FORMAT))) {
+      dumpSnapshot(path);
+      return;
+    }
+
     long nano = System.nanoTime();
     int gts = 0;
     long chunks = 0;
@@ -497,11 +518,19 @@ public class StandaloneChunkedMemoryStore extends Thread implements StoreClient
     System.out.println("Dumping memory to '" + path + "'.");
 
     try {
-      for (Entry<BigInteger,InMemoryChunkSet> entry: this.series.entrySet()) {
+      long[] ids = this.series.ids();
+
+      for (int i = 0; i < ids.length; i += 2) {
+        InMemoryChunkSet chunkset = this.series.get(ids[i], ids[i + 1]);
+
+        if (null == chunkset) {
+          continue;
+        }
+
         gts++;
-        Metadata metadata = this.directoryClient.getMetadataById(entry.getKey());
+        Metadata metadata = this.directoryClient.getMetadataById(ids[i], ids[i + 1]);
 
-        List<GTSDecoder> decoders = entry.getValue().getDecoders();
+        List<GTSDecoder> decoders = chunkset.getDecoders();
 
         //GTSEncoder encoder = entry.getValue().fetchEncoder(now, this.chunkcount * this.chunkspan);
 
@@ -544,6 +573,50 @@ public class StandaloneChunkedMemoryStore extends Thread implements StoreClient
     System.out.println("Dumped " + gts + " GTS (" + chunks + " chunks, " + datapoints + " datapoints, " + bytes + " bytes) in " + (nano / 1000000.0D) + " ms.");
   }
 
+  /**
+   * Dump the memory store as a snapshot which can be memory mapped when loaded
+   */
+  private void dumpSnapshot(String path) throws IOException {
+    long nano = System.nanoTime();
+
+    System.out.println("Dumping memory snapshot to '" + path + "'.");
+
+    MemoryStoreSnapshot.Writer writer = new MemoryStoreSnapshot.Writer(new File(path), this.chunkspan, this.chunkcount);
+
+    boolean complete = false;
+
+    try {
+      long[] ids = this.series.ids();
+
+      for (int i = 0; i < ids.length; i += 2) {
+        InMemoryChunkSet chunkset = this.series.get(ids[i], ids[i + 1]);
+        Metadata metadata = this.directoryClient.getMetadataById(ids[i], ids[i + 1]);
+
+        if (null == chunkset || null == metadata) {
+          continue;
+        }
+
+        writer.add(metadata, chunkset.getChunks());
+      }
+
+      complete = true;
+    } catch (IOException ioe) {
+      LOG.error("Error writing the snapshot.", ioe);
+      throw ioe;
+    } finally {
+      // An incomplete snapshot does not replace the existing file
+      if (complete) {
+        writer.close();
+      } else {
+        writer.abort();
+      }
+    }
+
+    nano = System.nanoTime() - nano;
+
+    System.out.println("Dumped " + writer.getSeries() + " GTS (" + writer.getChunks() + " chunks, " + writer.getDatapoints() + " datapoints, " + writer.getSize() + " bytes) in " + (nano / 1000000.0D) + " ms.");
+  }
+
   public void load() {
     //
     // Load data from the specified file
@@ -560,6 +633,11 @@ public class StandaloneChunkedMemoryStore extends Thread implements StoreClient
 
   private void load(String path) throws IOException {
 
+    if (MemoryStoreSnapshot.isSnapshot(new File(path))) {
+      loadSnapshot(path);
+      return;
+    }
+
     long nano = System.nanoTime();
     long chunks = 0;
     long datapoints = 0;
@@ -599,7 +677,8 @@ public class StandaloneChunkedMemoryStore extends Thread implements StoreClient
         } else {
           encoder.safeSetMetadata(new Metadata());
         }
-        store(encoder);
+        // Dumped chunks are copied as is to the off-heap regions
+        getChunkSet(encoder.getMetadata()).storeEncoded(encoder);
         if (null != this.directoryClient) {
           this.directoryClient.register(encoder.getMetadata());
         }
@@ -628,6 +707,87 @@ public class StandaloneChunkedMemoryStore extends Thread implements StoreClient
     System.out.println("Loaded " + chunks + " chunks (" + datapoints + " datapoints, " + bytes + " bytes) in " + (nano / 1000000.0D) + " ms.");
   }
 
+  /**
+   * Load a snapshot by mapping it in memory. The index blocks are processed in parallel and, when chunks
+   * are off-heap and the chunk span is unchanged, the chunks are adopted as is from the mapped file.
+   */
+  private void loadSnapshot(String path) throws IOException {
+    long nano = System.nanoTime();
+
+    final boolean failsafe = "true".equals(properties.getProperty(io.warp10.continuum.Configuration.STANDALONE_MEMORY_STORE_LOAD_FAILSAFE));
+    int nthreads = Integer.parseInt(properties.getProperty(io.warp10.continuum.Configuration.STANDALONE_MEMORY_STORE_LOAD_THREADS, Integer.toString(Runtime.getRuntime().availableProcessors())));
+
+    final MemoryStoreSnapshot snapshot = MemoryStoreSnapshot.open(new File(path));
+
+    System.out.println("Loading snapshot '" + path + "' back in memory.");
+
+    // Chunks can only be restored as is if they were cut the same way
+    final boolean restore = snapshot.getChunkSpan() == this.chunkspan;
+
+    final AtomicLong copied = new AtomicLong(0L);
+
+    final MemoryStoreSnapshot.Visitor visitor = new MemoryStoreSnapshot.Visitor() {
+      @Override
+      public void series(Metadata metadata, List<InMemoryChunkSet.Chunk> chunks) throws IOException {
+        InMemoryChunkSet chunkset = getChunkSet(metadata);
+
+        for (InMemoryChunkSet.Chunk chunk: chunks) {
+          if (restore && chunkset.restore(chunk)) {
+            continue;
+          }
+
+          byte[] content = new byte[chunk.bytes.remaining()];
+          chunk.bytes.get(content);
+          GTSEncoder encoder = new GTSEncoder(chunk.base, null, content);
+          encoder.setCount(chunk.count);
+          encoder.safeSetMetadata(metadata);
+          chunkset.storeEncoded(encoder);
+          copied.incrementAndGet();
+        }
+
+        if (null != directoryClient) {
+          directoryClient.register(metadata);
+        }
+      }
+    };
+
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, nthreads));
+
+    try {
+      List<Future<Object>> futures = new ArrayList<Future<Object>>();
+
+      for (int i = 0; i < snapshot.getBlockCount(); i++) {
+        final int block = i;
+        futures.add(executor.submit(new Callable<Object>() {
+          @Override
+          public Object call() throws Exception {
+            snapshot.read(block, visitor);
+            return null;
+          }
+        }));
+      }
+
+      for (Future<Object> future: futures) {
+        try {
+          future.get();
+        } catch (Exception e) {
+          if (!failsafe) {
+            throw new IOException(e);
+          } else {
+            LOG.error("Ignoring exception " + e.getMessage() + ".");
+          }
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+      snapshot.close();
+    }
+
+    nano = System.nanoTime() - nano;
+
+    System.out.println("Loaded " + snapshot.getSeries() + " GTS (" + snapshot.getChunks() + " chunks, " + copied.get() + " copied, " + snapshot.getDatapoints() + " datapoints) in " + (nano / 1000000.0D) + " ms.");
+  }
+
   public void setDirectoryClient(StandaloneDirectoryClient directoryClient) {
     this.directoryClient = directoryClient;
   }
@@ -63,6 +63,7 @@ import io.warp10.continuum.egress.EgressFetchHandler;
 import io.warp10.continuum.gts.GTSHelper;
 import io.warp10.continuum.gts.MetadataIdComparator;
 import io.warp10.continuum.ingress.DatalogForwarder;
+import io.warp10.continuum.ingress.DatalogSegments;
 import io.warp10.continuum.sensision.SensisionConstants;
 import io.warp10.continuum.store.Constants;
 import io.warp10.continuum.store.StoreClient;
@@ -100,6 +101,11 @@ public class StandaloneDeleteHandler extends AbstractHandler {
 
   private final File loggingDir;
 
+  /**
+   * Segments where requests are logged, null when logging each request in its own file
+   */
+  private final DatalogSegments datalogSegments;
+
   private final String datalogId;
 
   private final boolean logforwarded;
@@ -138,8 +144,11 @@ public class StandaloneDeleteHandler extends AbstractHandler {
       } else {
         datalogId = new String(OrderPreservingBase64.encode(id.getBytes(StandardCharsets.UTF_8)), StandardCharsets.US_ASCII);
       }
+
+      datalogSegments = Warp.getDatalogSegments();
     } else {
       loggingDir = null;
+      datalogSegments = null;
       datalogId = null;
     }
 
@@ -342,6 +351,7 @@ public class StandaloneDeleteHandler extends AbstractHandler {
     boolean dryrun = null != request.getParameter(Constants.HTTP_PARAM_DRYRUN);
 
     File loggingFile = null;
+    DatalogSegments.RecordOutputStream loggingRecord = null;
     PrintWriter loggingWriter = null;
     FileDescriptor loggingFD = null;
 
@@ -401,12 +411,17 @@ public class StandaloneDeleteHandler extends AbstractHandler {
 
         encoded = OrderPreservingBase64.encode(encoded);
 
-        loggingFile = new File(loggingDir, sb.toString());
+        if (null != this.datalogSegments) {
+          loggingRecord = this.datalogSegments.newRecord();
+          loggingWriter = new PrintWriter(new OutputStreamWriter(loggingRecord, StandardCharsets.UTF_8));
+        } else {
+          loggingFile = new File(loggingDir, sb.toString());
 
-        FileOutputStream fos = new FileOutputStream(loggingFile);
-        loggingFD = fos.getFD();
-        OutputStreamWriter osw = new OutputStreamWriter(fos, StandardCharsets.UTF_8);
-        loggingWriter = new PrintWriter(osw);
+          FileOutputStream fos = new FileOutputStream(loggingFile);
+          loggingFD = fos.getFD();
+          OutputStreamWriter osw = new OutputStreamWriter(fos, StandardCharsets.UTF_8);
+          loggingWriter = new PrintWriter(osw);
+        }
 
         //
         // Write request
@@ -668,29 +683,43 @@ public class StandaloneDeleteHandler extends AbstractHandler {
         throw new IOException(thr);
       }
     } finally {
-      if (null != loggingWriter) {
-        Map<String,String> labels = new HashMap<String,String>();
-        labels.put(SensisionConstants.SENSISION_LABEL_ID, new String(OrderPreservingBase64.decode(dr.getId().getBytes(StandardCharsets.US_ASCII)), StandardCharsets.UTF_8));
-        labels.put(SensisionConstants.SENSISION_LABEL_TYPE, dr.getType());
-        Sensision.update(SensisionConstants.CLASS_WARP_DATALOG_REQUESTS_LOGGED, labels, 1);
-
-        if (datalogSync) {
-          loggingWriter.flush();
-          loggingFD.sync();
-        }
-        loggingWriter.close();
-        if (validated) {
-          // Create hard links when multiple datalog forwarders are configured
-          for (Path srcDir: Warp.getDatalogSrcDirs()) {
-            try {
-              Files.createLink(new File(srcDir.toFile(), loggingFile.getName() + DatalogForwarder.DATALOG_SUFFIX).toPath(), loggingFile.toPath());
-            } catch (Exception e) {
-              throw new RuntimeException("Encountered an error while attempting to link " + loggingFile + " to " + srcDir);
+      try {
+        if (null != loggingWriter) {
+          Map<String,String> labels = new HashMap<String,String>();
+          labels.put(SensisionConstants.SENSISION_LABEL_ID, new String(OrderPreservingBase64.decode(dr.getId().getBytes(StandardCharsets.US_ASCII)), StandardCharsets.UTF_8));
+          labels.put(SensisionConstants.SENSISION_LABEL_TYPE, dr.getType());
+          Sensision.update(SensisionConstants.CLASS_WARP_DATALOG_REQUESTS_LOGGED, labels, 1);
+
+          if (null != loggingRecord) {
+            loggingWriter.close();
+            if (validated) {
+              this.datalogSegments.append(loggingRecord);
+            }
+          } else {
+            if (datalogSync) {
+              loggingWriter.flush();
+              loggingFD.sync();
+            }
+            loggingWriter.close();
+            if (validated) {
+              // Create hard links when multiple datalog forwarders are configured
+              for (Path srcDir: Warp.getDatalogSrcDirs()) {
+                try {
+                  Files.createLink(new File(srcDir.toFile(), loggingFile.getName() + DatalogForwarder.DATALOG_SUFFIX).toPath(), loggingFile.toPath());
+                } catch (Exception e) {
+                  throw new RuntimeException("Encountered an error while attempting to link " + loggingFile + " to " + srcDir);
+                }
+              }
+              //loggingFile.renameTo(new File(loggingFile.getAbsolutePath() + DatalogForwarder.DATALOG_SUFFIX));
             }
+            loggingFile.delete();
           }
-          //loggingFile.renameTo(new File(loggingFile.getAbsolutePath() + DatalogForwarder.DATALOG_SUFFIX));
         }
-        loggingFile.delete();
+      } finally {
+        // Release the record if it was not appended
+        if (null != loggingRecord) {
+          loggingRecord.discard();
+        }
       }
 
       Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_STANDALONE_DELETE_REQUESTS, sensisionLabels, 1);
@@ -25,7 +25,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -34,9 +33,8 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -63,17 +61,15 @@ import org.iq80.leveldb.WriteOptions;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.common.collect.MapMaker;
-
 import io.warp10.SmartPattern;
 import io.warp10.WarpConfig;
 import io.warp10.continuum.Configuration;
 import io.warp10.continuum.DirectoryUtil;
 import io.warp10.continuum.egress.ThriftDirectoryClient;
+import io.warp10.continuum.gts.ConcurrentGTSIdMap;
 import io.warp10.continuum.gts.GTSHelper;
 import io.warp10.continuum.sensision.SensisionConstants;
 import io.warp10.continuum.store.Constants;
-import io.warp10.continuum.store.Directory;
 import io.warp10.continuum.store.DirectoryClient;
 import io.warp10.continuum.store.MetadataIterator;
 import io.warp10.continuum.store.thrift.data.DirectoryRequest;
@@ -114,36 +110,13 @@ public class StandaloneDirectoryClient implements DirectoryClient {
   private long LIMIT_CLASS_CARDINALITY = 100;
   private long LIMIT_LABELS_CARDINALITY = 100;
 
-  private static final Map<String,Long> classids = new ConcurrentHashMap<String,Long>();
-
-
-  private static final Comparator<String> CLASS_COMPARATOR = new Comparator<String>() {
-    @Override
-    public int compare(String o1, String o2) {
-      Long id1 = classids.get(o1);
-      Long id2 = classids.get(o2);
-
-      // A key may be missing during a find if a concurrent unregister is done.
-      if (null == id1) {
-        if (null == id2) {
-          return 0;
-        }
-        return -1;
-      } else if (null == id2) {
-        return 1;
-      } else {
-        return Directory.ID_COMPARATOR.compare(id1, id2);
-      }
-    }
-  };
-
   /**
-   * Maps of class name to labelsId to metadata
+   * Index of class name to labelsId to metadata, with an optional inverted index of labels
    */
   // 128BITS
-  private static final Map<String,Map<Long,Metadata>> metadatas = new ConcurrentSkipListMap<String,Map<Long,Metadata>>(CLASS_COMPARATOR);
+  private static final DirectoryIndex index = new DirectoryIndex("true".equals(WarpConfig.getProperty(Configuration.DIRECTORY_LABELS_INDEX)));
 
-  private static final Map<BigInteger,Metadata> metadatasById = new MapMaker().concurrencyLevel(64).makeMap();
+  private static final ConcurrentGTSIdMap<Metadata> metadatasById = new ConcurrentGTSIdMap<Metadata>(64);
 
   private long activityWindow = 0L;
 
@@ -208,8 +181,6 @@ public class StandaloneDirectoryClient implements DirectoryClient {
         @Override
         public void run() {
 
-          byte[] bytes = new byte[16];
-
           AESWrapEngine engine = null;
           PKCS7Padding padding = null;
 
@@ -287,38 +258,20 @@ public class StandaloneDirectoryClient implements DirectoryClient {
               }
 
               //
-              // Internalize Strings
+              // Index the metadata, its strings are internalized by the index. The first Metadata
+              // loaded for an id is kept, in the index as in 'metadatasById'.
               //
 
-              GTSHelper.internalizeStrings(metadata);
-
-              Map<Long, Metadata> metadatasForClassName;
-              synchronized(metadatas) {
-                if (!classids.containsKey(metadata.getName())) {
-                  classids.put(metadata.getName(), metadata.getClassId());
-                  metadatasForClassName = new ConcurrentSkipListMap<Long, Metadata>(Directory.ID_COMPARATOR);
-                  metadatas.put(metadata.getName(), metadatasForClassName);
-                } else {
-                  metadatasForClassName = metadatas.get(metadata.getName());
-                }
-              }
-
-              synchronized(metadatasForClassName) {
-                if (!metadatasForClassName.containsKey(labelsId)) {
-                  metadatasForClassName.put(labelsId, metadata);
-
-                  //
-                  // Store Metadata under 'id'
-                  //
-                  // 128BITS
-                  GTSHelper.fillGTSIds(bytes, 0, classId, labelsId);
-                  BigInteger id = new BigInteger(bytes);
-                  metadatasById.put(id, metadata);
+              if (null == index.putIfAbsent(metadata)) {
+                //
+                // Store Metadata under 'id'
+                //
+                // 128BITS
+                metadatasById.put(classId, labelsId, metadata);
 
-                  Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_DIRECTORY_GTS_PERAPP, sensisionLabels, 1);
+                Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_DIRECTORY_GTS_PERAPP, sensisionLabels, 1);
 
-                  continue;
-                }
+                continue;
               }
 
               LOG.error("Duplicate labelsId for classId " + classId + ": " + metadata);
@@ -389,6 +342,7 @@ public class StandaloneDirectoryClient implements DirectoryClient {
       LOG.info("Loaded " + count + " GTS in " + (nano / 1000000.0D) + " ms");
     } finally {
       Sensision.set(SensisionConstants.SENSISION_CLASS_CONTINUUM_DIRECTORY_GTS, Sensision.EMPTY_LABELS, count);
+      updateLabelIndexMetrics();
       try {
         iter.close();
       } catch (IOException ioe) {
@@ -409,6 +363,8 @@ public class StandaloneDirectoryClient implements DirectoryClient {
     boolean hasQuietAfter = request.isSetQuietAfter();
     long quietAfter = request.getQuietAfter();
 
+    LabelIndex labelIndex = index.getLabelIndex();
+
     //
     // Build patterns from expressions
     //
@@ -423,7 +379,7 @@ public class StandaloneDirectoryClient implements DirectoryClient {
       requestedMetadatas = new ArrayList<Metadata>();
     }
 
-    Set<String> classNames = null;
+    Collection<DirectoryIndex.ClassIndex> classIndices = null;
     List<String> missingLabels = Constants.ABSENT_LABEL_SUPPORT ? new ArrayList<String>() : null;
 
     for (int i = 0; i < classExpr.size(); i++) {
@@ -438,6 +394,7 @@ public class StandaloneDirectoryClient implements DirectoryClient {
       }
 
       Map<String,SmartPattern> labelPatterns = new LinkedHashMap<String,SmartPattern>();
+      Map<String,String> exactLabels = new HashMap<String,String>();
 
       if (null != missingLabels) {
         missingLabels.clear();
@@ -455,7 +412,9 @@ public class StandaloneDirectoryClient implements DirectoryClient {
           }
 
           if (expr.startsWith("=") || !expr.startsWith("~")) {
-            labelPatterns.put(label, new SmartPattern(expr.startsWith("=") ? expr.substring(1) : expr));
+            String value = expr.startsWith("=") ? expr.substring(1) : expr;
+            labelPatterns.put(label, new SmartPattern(value));
+            exactLabels.put(label, value);
           } else {
             pattern = Pattern.compile(expr.substring(1));
             labelPatterns.put(label,  new SmartPattern(pattern));
@@ -464,13 +423,13 @@ public class StandaloneDirectoryClient implements DirectoryClient {
       }
 
       if (null != exactClassName) {
-        if (!classids.containsKey(exactClassName)) {
+        DirectoryIndex.ClassIndex classIndex = index.getClassIndex(exactClassName);
+        if (null == classIndex) {
           continue;
         }
-        classNames = new LinkedHashSet<String>();
-        classNames.add(exactClassName);
+        classIndices = Collections.singletonList(classIndex);
       } else {
-        classNames = metadatas.keySet();
+        classIndices = index.getClassIndices();
       }
 
       //
@@ -489,132 +448,130 @@ public class StandaloneDirectoryClient implements DirectoryClient {
       labelValues = new String[labelNames.size()];
 
       //
-      // Loop over the class names to find matches
+      // When the inverted index of labels is enabled and exact label values are selected, only
+      // consider the Metadata carrying all those values (and of the exact class if one is selected),
+      // otherwise loop over the matching classes
       //
 
-      for (String className: classNames) {
+      Iterator<Metadata> iter;
 
-        //
-        // If class matches, check all labels for matches
-        //
+      if (null != labelIndex && !exactLabels.isEmpty()) {
+        iter = iterator(labelIndex, labelIndex.candidates(exactClassName, exactLabels), classSmartPattern);
+      } else {
+        iter = iterator(classIndices, classSmartPattern);
+      }
 
-        if (classSmartPattern.matches(className)) {
-          Map<Long, Metadata> metadatasForClassname = metadatas.get(className);
+      while (iter.hasNext()) {
+        Metadata metadata = iter.next();
 
-          // Check for nullity because of possible concurrent unregistration.
-          if(null != metadatasForClassname) {
-            for (Metadata metadata: metadatasForClassname.values()) {
+        //
+        // Check activity
+        //
 
-              //
-              // Check activity
-              //
+        if (hasActiveAfter && metadata.getLastActivity() < activeAfter) {
+          continue;
+        }
 
-              if (hasActiveAfter && metadata.getLastActivity() < activeAfter) {
-                continue;
-              }
+        if (hasQuietAfter && metadata.getLastActivity() >= quietAfter) {
+          continue;
+        }
 
-              if (hasQuietAfter && metadata.getLastActivity() >= quietAfter) {
-                continue;
-              }
 
+        boolean exclude = false;
 
-              boolean exclude = false;
-
-              if (null != missingLabels) {
-                for (String missing: missingLabels) {
-                  // If the Metadata contain one of the missing labels, exclude the entry
-                  if (null != metadata.getLabels().get(missing)) {
-                    exclude = true;
-                    break;
-                  }
-                }
-                // Check attributes
-                if (!exclude && metadata.getAttributesSize() > 0) {
-                  for (String missing: missingLabels) {
-                    // If the Metadata contain one of the missing labels, exclude the entry
-                    if (null != metadata.getAttributes().get(missing)) {
-                      exclude = true;
-                      break;
-                    }
-                  }
-                }
-                if (exclude) {
-                  continue;
-                }
+        if (null != missingLabels) {
+          for (String missing: missingLabels) {
+            // If the Metadata contain one of the missing labels, exclude the entry
+            if (null != metadata.getLabels().get(missing)) {
+              exclude = true;
+              break;
+            }
+          }
+          // Check attributes
+          if (!exclude && metadata.getAttributesSize() > 0) {
+            for (String missing: missingLabels) {
+              // If the Metadata contain one of the missing labels, exclude the entry
+              if (null != metadata.getAttributes().get(missing)) {
+                exclude = true;
+                break;
               }
+            }
+          }
+          if (exclude) {
+            continue;
+          }
+        }
 
-              int idx = 0;
+        int idx = 0;
 
-              for (String labelName: labelNames) {
-                //
-                // Immediately exclude metadata which do not contain one of the
-                // labels for which we have patterns either in labels or in attributes
-                //
-
-                String labelValue = metadata.getLabels().get(labelName);
+        for (String labelName: labelNames) {
+          //
+          // Immediately exclude metadata which do not contain one of the
+          // labels for which we have patterns either in labels or in attributes
+          //
 
-                if (null == labelValue) {
-                  labelValue = metadata.getAttributes().get(labelName);
-                  if (null == labelValue) {
-                    exclude = true;
-                    break;
-                  }
-                }
+          String labelValue = metadata.getLabels().get(labelName);
 
-                labelValues[idx++] = labelValue;
-              }
+          if (null == labelValue) {
+            labelValue = metadata.getAttributes().get(labelName);
+            if (null == labelValue) {
+              exclude = true;
+              break;
+            }
+          }
 
-              // If we did not collect enough label/attribute values, exclude the GTS
-              if (idx < labelNames.size()) {
-                exclude = true;
-              }
+          labelValues[idx++] = labelValue;
+        }
 
-              if (exclude) {
-                continue;
-              }
+        // If we did not collect enough label/attribute values, exclude the GTS
+        if (idx < labelNames.size()) {
+          exclude = true;
+        }
 
-              //
-              // Check if the label value matches, if not, exclude the GTS
-              //
+        if (exclude) {
+          continue;
+        }
 
-              for (int j = 0; j < labelNames.size(); j++) {
-                if (!labelSmartPatterns.get(j).matches(labelValues[j])) {
-                  exclude = true;
-                  break;
-                }
-              }
+        //
+        // Check if the label value matches, if not, exclude the GTS
+        //
 
-              if (exclude) {
-                continue;
-              }
+        for (int j = 0; j < labelNames.size(); j++) {
+          if (!labelSmartPatterns.get(j).matches(labelValues[j])) {
+            exclude = true;
+            break;
+          }
+        }
 
-              //
-              // We have a match, rebuild metadata
-              //
-              // FIXME(hbs): include a 'safe' mode to expose the internal Metadata instances?
-              //
+        if (exclude) {
+          continue;
+        }
 
-              Metadata meta = new Metadata();
-              meta.setName(className);
-              meta.setLabels(Collections.unmodifiableMap(metadata.getLabels()));
-              meta.setAttributes(Collections.unmodifiableMap(metadata.getAttributes()));
-              // 128BITS
-              if (metadata.isSetClassId()) {
-                meta.setClassId(metadata.getClassId());
-              } else {
-                meta.setClassId(GTSHelper.classId(classKey, meta.getName()));
-              }
-              if (metadata.isSetLabelsId()) {
-                meta.setLabelsId(metadata.getLabelsId());
-              } else {
-                meta.setLabelsId(GTSHelper.labelsId(labelsKey, meta.getLabels()));
-              }
+        //
+        // We have a match, rebuild metadata
+        //
+        // FIXME(hbs): include a 'safe' mode to expose the internal Metadata instances?
+        //
 
-              meta.setLastActivity(metadata.getLastActivity());
-              requestedMetadatas.add(meta);
-            }
-          }
+        Metadata meta = new Metadata();
+        meta.setName(metadata.getName());
+        // Indexed labels are immutable
+        meta.setLabels(metadata.getLabels());
+        meta.setAttributes(Collections.unmodifiableMap(metadata.getAttributes()));
+        // 128BITS
+        if (metadata.isSetClassId()) {
+          meta.setClassId(metadata.getClassId());
+        } else {
+          meta.setClassId(GTSHelper.classId(classKey, meta.getName()));
+        }
+        if (metadata.isSetLabelsId()) {
+          meta.setLabelsId(metadata.getLabelsId());
+        } else {
+          meta.setLabelsId(GTSHelper.labelsId(labelsKey, meta.getLabels()));
         }
+
+        meta.setLastActivity(metadata.getLastActivity());
+        requestedMetadatas.add(meta);
       }
     }
 
@@ -627,6 +584,90 @@ public class StandaloneDirectoryClient implements DirectoryClient {
     return metas;
   }
 
+  /**
+   * Iterate over the Metadata of the classes matching a pattern
+   */
+  private static Iterator<Metadata> iterator(final Collection<DirectoryIndex.ClassIndex> classIndices, final SmartPattern classSmartPattern) {
+    return new Iterator<Metadata>() {
+      private final Iterator<DirectoryIndex.ClassIndex> classIter = classIndices.iterator();
+      private Iterator<Metadata> iter = Collections.<Metadata>emptyList().iterator();
+
+      @Override
+      public boolean hasNext() {
+        while (!iter.hasNext()) {
+          if (!classIter.hasNext()) {
+            return false;
+          }
+          DirectoryIndex.ClassIndex classIndex = classIter.next();
+          // Skip classes emptied by a concurrent unregistration
+          if (classIndex.size() > 0 && classSmartPattern.matches(classIndex.getName())) {
+            iter = classIndex.iterator();
+          }
+        }
+        return true;
+      }
+
+      @Override
+      public Metadata next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return iter.next();
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  /**
+   * Iterate over the Metadata of the given label index ordinals whose class matches a pattern
+   */
+  private static Iterator<Metadata> iterator(final LabelIndex labelIndex, final int[] ordinals, final SmartPattern classSmartPattern) {
+    return new Iterator<Metadata>() {
+      private int idx = 0;
+      private Metadata next = null;
+
+      @Override
+      public boolean hasNext() {
+        while (null == next && idx < ordinals.length) {
+          Metadata metadata = labelIndex.get(ordinals[idx++]);
+          // The ordinal may have been released since the candidates were selected
+          if (null != metadata && classSmartPattern.matches(metadata.getName())) {
+            next = metadata;
+          }
+        }
+        return null != next;
+      }
+
+      @Override
+      public Metadata next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        Metadata metadata = next;
+        next = null;
+        return metadata;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException();
+      }
+    };
+  }
+
+  private static void updateLabelIndexMetrics() {
+    LabelIndex labelIndex = index.getLabelIndex();
+
+    if (null != labelIndex) {
+      Sensision.set(SensisionConstants.SENSISION_CLASS_CONTINUUM_DIRECTORY_LABELS_INDEX_BYTES, Sensision.EMPTY_LABELS, labelIndex.getBytes());
+      Sensision.set(SensisionConstants.SENSISION_CLASS_CONTINUUM_DIRECTORY_LABELS_INDEX_POSTINGS, Sensision.EMPTY_LABELS, labelIndex.getPostings());
+    }
+  }
+
   public void register(Metadata metadata) throws IOException {
 
     //
@@ -643,22 +684,24 @@ public class StandaloneDirectoryClient implements DirectoryClient {
     //
 
     if (Configuration.INGRESS_METADATA_SOURCE.equals(metadata.getSource())) {
-      Map<Long, Metadata> metadatasForClassname = metadatas.get(metadata.getName());
+      DirectoryIndex.ClassIndex classIndex = index.getClassIndex(metadata.getName());
 
-      if (null == metadatasForClassname) {
+      if (null == classIndex) {
         store(metadata);
       } else {
         // Compute labelsId
         // 128BITS
         long labelsId = GTSHelper.labelsId(this.labelsLongs, metadata.getLabels());
 
-        if (!metadatasForClassname.containsKey(labelsId)) {
+        Metadata current = classIndex.get(labelsId);
+
+        if (null == current) {
           // Metadata is unknown so we know the Metadata should be stored
           store(metadata);
         } else {
           // Check that we do not have a collision
-          if (!metadatasForClassname.get(labelsId).getLabels().equals(metadata.getLabels())) {
-            LOG.warn("LabelsId collision under class '" + metadata.getName() + "' " + metadata.getLabels() + " and " + metadatas.get(metadata.getName()).get(labelsId).getLabels());
+          if (!current.getLabels().equals(metadata.getLabels())) {
+            LOG.warn("LabelsId collision under class '" + metadata.getName() + "' " + metadata.getLabels() + " and " + current.getLabels());
             Sensision.update(SensisionConstants.CLASS_WARP_DIRECTORY_LABELS_COLLISIONS, Sensision.EMPTY_LABELS, 1);
           }
 
@@ -669,7 +712,7 @@ public class StandaloneDirectoryClient implements DirectoryClient {
             // If the currently stored lastactivity is more than 'activityWindow' before the one in 'metadata',
             // store the metadata
             //
-            long currentLastActivity = metadatasForClassname.get(labelsId).getLastActivity();
+            long currentLastActivity = current.getLastActivity();
             if (metadata.getLastActivity() - currentLastActivity >= activityWindow) {
               store(metadata);
             }
@@ -684,15 +727,15 @@ public class StandaloneDirectoryClient implements DirectoryClient {
       // When it is a metadata update request, only store the metadata if the GTS is already known
       if (Configuration.INGRESS_METADATA_UPDATE_ENDPOINT.equals(metadata.getSource())
           || Configuration.INGRESS_METADATA_UPDATE_DELTA_ENDPOINT.equals(metadata.getSource())) {
-        Map<Long, Metadata> metadatasForClassname = metadatas.get(metadata.getName());
+        DirectoryIndex.ClassIndex classIndex = index.getClassIndex(metadata.getName());
 
-        if (null != metadatasForClassname) {
+        if (null != classIndex) {
           // 128BITS
           long labelsId = GTSHelper.labelsId(this.labelsLongs, metadata.getLabels());
-          if (metadatasForClassname.containsKey(labelsId)) {
+          Metadata meta = classIndex.get(labelsId);
+          if (null != meta) {
             // Check the activity so we only increase it
             // 128 bits
-            Metadata meta = metadatasForClassname.get(labelsId);
             long currentLastActivity = meta.getLastActivity();
             if (metadata.getLastActivity() < currentLastActivity) {
               metadata.setLastActivity(currentLastActivity);
@@ -708,26 +751,16 @@ public class StandaloneDirectoryClient implements DirectoryClient {
   }
 
   public void unregister(Metadata metadata) {
-    // Always compute the labelsId, even if the method early returns before needing it. This is because this operation
-    // can be CPU-intensive and if done inside the synchronized(metadatas) block, would block other threads also
-    // synchronizing on metadatas. As unregistering unknown metadata should be rare, this is an acceptable compromise.
     // 128BITS
     long labelsId = GTSHelper.labelsId(this.labelsLongs, metadata.getLabels());
 
-    synchronized(metadatas) {
-      if (!classids.containsKey(metadata.getName())) {
-        return;
-      }
-      if (!metadatas.get(metadata.getName()).containsKey(labelsId)) {
-        return;
-      }
-      metadatas.get(metadata.getName()).remove(labelsId);
-      if (metadatas.get(metadata.getName()).isEmpty()) {
-        metadatas.remove(metadata.getName());
-        classids.remove(metadata.getName());
-      }
+    // Only the index of the class is locked, the class is removed from the index if it becomes empty
+    if (null == index.remove(metadata.getName(), labelsId)) {
+      return;
     }
 
+    updateLabelIndexMetrics();
+
     String app = metadata.getLabels().get(Constants.APPLICATION_LABEL);
     Map<String,String> sensisionLabels = new HashMap<String,String>();
     sensisionLabels.put(SensisionConstants.SENSISION_LABEL_APPLICATION, app);
@@ -736,9 +769,7 @@ public class StandaloneDirectoryClient implements DirectoryClient {
     long classId = GTSHelper.classId(this.classLongs, metadata.getName());
 
     // Remove Metadata indexed by id
-    byte[] idbytes = new byte[16];
-    GTSHelper.fillGTSIds(idbytes, 0, classId, labelsId);
-    metadatasById.remove(new BigInteger(idbytes));
+    metadatasById.remove(classId, labelsId);
 
     //
     // Remove entry from DB if need be
@@ -838,9 +869,8 @@ public class StandaloneDirectoryClient implements DirectoryClient {
     if (Configuration.INGRESS_METADATA_UPDATE_DELTA_ENDPOINT.equals(metadata.getSource())){
       if (metadata.getAttributesSize() > 0) {
         // Update the attributes
-        Map<Long, Metadata> metadatasForClassname = metadatas.get(metadata.getName());
-        if (null != metadatasForClassname) {
-          Metadata oldmeta = metadatasForClassname.get(labelsId);
+        if (index.containsClass(metadata.getName())) {
+          Metadata oldmeta = index.get(metadata.getName(), labelsId);
           if (null != oldmeta) {
             for (Entry<String, String> attr: metadata.getAttributes().entrySet()) {
               if ("".equals(attr.getValue())) {
@@ -869,12 +899,9 @@ public class StandaloneDirectoryClient implements DirectoryClient {
       if (!Configuration.INGRESS_METADATA_UPDATE_ENDPOINT.equals(metadata.getSource())) {
         // Copy the attributes if the Metadata is already known, which can happen when
         // tracking the activity
-        Map<Long, Metadata> metadataForClassname = metadatas.get(metadata.getName());
-        if (null != metadataForClassname) {
-          Metadata oldmeta = metadataForClassname.get(labelsId);
-          if (null != oldmeta && oldmeta.getAttributesSize() > 0) {
-            metadata.getAttributes().putAll(oldmeta.getAttributes());
-          }
+        Metadata oldmeta = index.get(metadata.getName(), labelsId);
+        if (null != oldmeta && oldmeta.getAttributesSize() > 0) {
+          metadata.getAttributes().putAll(oldmeta.getAttributes());
         }
       }
     }
@@ -893,24 +920,17 @@ public class StandaloneDirectoryClient implements DirectoryClient {
         store(bytes, serialized);
       }
 
-      synchronized(metadatas) {
-        if (!classids.containsKey(metadata.getName())) {
-          classids.put(metadata.getName(), metadata.getClassId());
-          metadatas.put(metadata.getName(), new ConcurrentSkipListMap<Long, Metadata>(Directory.ID_COMPARATOR));
-        }
-        if (null == metadatas.get(metadata.getName()).put(labelsId, metadata)) {
-          Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_DIRECTORY_GTS, Sensision.EMPTY_LABELS, 1);
-          Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_DIRECTORY_GTS_PERAPP, sensisionLabels, 1);
-        }
+      // Only the index of the class is locked
+      if (null == index.put(metadata)) {
+        Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_DIRECTORY_GTS, Sensision.EMPTY_LABELS, 1);
+        Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_DIRECTORY_GTS_PERAPP, sensisionLabels, 1);
       }
+      updateLabelIndexMetrics();
       //
       // Store Metadata under 'id'
       //
 
-      byte[] idbytes = new byte[16];
-      GTSHelper.fillGTSIds(idbytes, 0, classId, labelsId);
-      BigInteger id = new BigInteger(idbytes);
-      metadatasById.put(id, metadata);
+      metadatasById.put(classId, labelsId, metadata);
 
     } catch (TException te) {
       throw new RuntimeException(te);
@@ -918,7 +938,12 @@ public class StandaloneDirectoryClient implements DirectoryClient {
   }
 
   public Metadata getMetadataById(BigInteger id) {
-    return this.metadatasById.get(id);
+    ByteBuffer bb = ByteBuffer.wrap(GTSHelper.unpackGTSId(id)).order(ByteOrder.BIG_ENDIAN);
+    return getMetadataById(bb.getLong(), bb.getLong());
+  }
+
+  public Metadata getMetadataById(long classId, long labelsId) {
+    return this.metadatasById.get(classId, labelsId);
   }
 
   @Override
@@ -966,7 +991,7 @@ public class StandaloneDirectoryClient implements DirectoryClient {
   }
 
   private DirectoryStatsResponse stats(DirectoryStatsRequest request, ShardFilter filter) throws TException {
-    return DirectoryUtil.stats(request, filter, metadatas, null, LIMIT_CLASS_CARDINALITY, LIMIT_LABELS_CARDINALITY,-1, classLongs, labelsLongs, null);
+    return DirectoryUtil.stats(request, filter, index.asMap(), null, LIMIT_CLASS_CARDINALITY, LIMIT_LABELS_CARDINALITY,-1, classLongs, labelsLongs, null);
   }
 
   @Override
@@ -30,7 +30,9 @@ import io.warp10.continuum.Tokens;
 import io.warp10.continuum.WarpException;
 import io.warp10.continuum.gts.GTSEncoder;
 import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GTSStreamParser;
 import io.warp10.continuum.ingress.DatalogForwarder;
+import io.warp10.continuum.ingress.DatalogSegments;
 import io.warp10.continuum.sensision.SensisionConstants;
 import io.warp10.continuum.store.Constants;
 import io.warp10.continuum.store.StoreClient;
@@ -54,6 +56,7 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
@@ -125,6 +128,11 @@ public class StandaloneIngressHandler extends AbstractHandler {
 
   private final File loggingDir;
 
+  /**
+   * Segments where requests are logged, null when logging each request in its own file
+   */
+  private final DatalogSegments datalogSegments;
+
   private final String datalogId;
 
   private final boolean logShardKey;
@@ -149,6 +157,12 @@ public class StandaloneIngressHandler extends AbstractHandler {
 
   private final IngressPlugin plugin;
 
+  /**
+   * Should /update bodies be parsed with GTSStreamParser
+   */
+  private final boolean bytesParser;
+  private final int parserCacheSize;
+
   public StandaloneIngressHandler(KeyStore keystore, StandaloneDirectoryClient directoryClient, StoreClient storeClient) {
 
     this.keyStore = keystore;
@@ -238,8 +252,11 @@ public class StandaloneIngressHandler extends AbstractHandler {
       } else {
         logShardKey = true;
       }
+
+      datalogSegments = Warp.getDatalogSegments();
     } else {
       loggingDir = null;
+      datalogSegments = null;
       datalogId = null;
       logShardKey = false;
     }
@@ -275,6 +292,9 @@ public class StandaloneIngressHandler extends AbstractHandler {
     this.datalogSync = "true".equals(WarpConfig.getProperty(Configuration.DATALOG_SYNC));
 
     this.maxValueSize = Long.parseLong(WarpConfig.getProperty(Configuration.STANDALONE_VALUE_MAXSIZE, DEFAULT_VALUE_MAXSIZE));
+
+    this.bytesParser = null == this.plugin && !"false".equals(WarpConfig.getProperty(Configuration.INGRESS_PARSER_BYTES));
+    this.parserCacheSize = Integer.parseInt(WarpConfig.getProperty(Configuration.INGRESS_PARSER_CACHE, Integer.toString(GTSStreamParser.DEFAULT_CACHE_SIZE)));
   }
 
   @Override
@@ -302,6 +322,9 @@ public class StandaloneIngressHandler extends AbstractHandler {
     long lastActivity = System.currentTimeMillis();
     int httpStatusCode = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
 
+    // Discarded in the finally block so records are not leaked on errors
+    DatalogSegments.RecordOutputStream loggingRecord = null;
+
     try {
       WarpConfig.setThreadProperty(WarpConfig.THREAD_PROPERTY_SESSION, UUID.randomUUID().toString());
 
@@ -504,10 +527,35 @@ public class StandaloneIngressHandler extends AbstractHandler {
         }
 
         BufferedReader br = null;
+        GTSStreamParser parser = null;
+
+        //
+        // Use the byte oriented parser if the charset the reader would use permits it
+        //
+
+        Charset charset = null;
+
+        if (this.bytesParser) {
+          if (gzipped) {
+            charset = Charset.defaultCharset();
+          } else {
+            // Jetty defaults to ISO-8859-1 for the reader
+            charset = null != request.getCharacterEncoding() && Charset.isSupported(request.getCharacterEncoding()) ? Charset.forName(request.getCharacterEncoding()) : StandardCharsets.ISO_8859_1;
+          }
+          if (!GTSStreamParser.isSupported(charset)) {
+            charset = null;
+          }
+        }
 
         if (gzipped) {
           GZIPInputStream is = new GZIPInputStream(request.getInputStream());
-          br = new BufferedReader(new InputStreamReader(is));
+          if (null != charset) {
+            parser = new GTSStreamParser(is, charset, extraLabels, maxsize, classKeyLongs, labelsKeyLongs, parserCacheSize);
+          } else {
+            br = new BufferedReader(new InputStreamReader(is));
+          }
+        } else if (null != charset) {
+          parser = new GTSStreamParser(request.getInputStream(), charset, extraLabels, maxsize, classKeyLongs, labelsKeyLongs, parserCacheSize);
         } else {
           br = request.getReader();
         }
@@ -749,12 +797,18 @@ public class StandaloneIngressHandler extends AbstractHandler {
 
             encoded = OrderPreservingBase64.encode(encoded);
 
-            loggingFile = new File(loggingDir, sb.toString());
+            if (null != this.datalogSegments) {
+              // The request is appended to the current segment once complete
+              loggingRecord = this.datalogSegments.newRecord();
+              loggingWriter = new PrintWriter(new OutputStreamWriter(loggingRecord, StandardCharsets.UTF_8));
+            } else {
+              loggingFile = new File(loggingDir, sb.toString());
 
-            FileOutputStream fos = new FileOutputStream(loggingFile);
-            loggingFD = fos.getFD();
-            OutputStreamWriter osw = new OutputStreamWriter(fos, StandardCharsets.UTF_8);
-            loggingWriter = new PrintWriter(osw);
+              FileOutputStream fos = new FileOutputStream(loggingFile);
+              loggingFD = fos.getFD();
+              OutputStreamWriter osw = new OutputStreamWriter(fos, StandardCharsets.UTF_8);
+              loggingWriter = new PrintWriter(osw);
+            }
 
             //
             // Write request
@@ -800,24 +854,37 @@ public class StandaloneIngressHandler extends AbstractHandler {
             hadAttributes.set(false);
           }
 
-          String line = br.readLine();
+          String line = null;
 
-          if (null == line) {
-            break;
-          }
+          if (null != parser) {
+            // The parser skips empty lines and comments, the line is only materialized if it needs to be logged
+            if (!parser.next()) {
+              break;
+            }
 
-          line = line.trim();
+            if (null != loggingWriter) {
+              line = parser.line();
+            }
+          } else {
+            line = br.readLine();
 
-          if (0 == line.length()) {
-            continue;
-          }
+            if (null == line) {
+              break;
+            }
 
-          //
-          // Ignore comments
-          //
+            line = line.trim();
 
-          if ('#' == line.charAt(0)) {
-            continue;
+            if (0 == line.length()) {
+              continue;
+            }
+
+            //
+            // Ignore comments
+            //
+
+            if ('#' == line.charAt(0)) {
+              continue;
+            }
           }
 
           //
@@ -834,7 +901,11 @@ public class StandaloneIngressHandler extends AbstractHandler {
           count++;
 
           try {
-            encoder = GTSHelper.parse(lastencoder, line, extraLabels, now, maxsize, hadAttributes, maxpast, maxfuture, ignoredCount, deltaAttributes, timeshift);
+            if (null != parser) {
+              encoder = parser.parse(lastencoder, now, hadAttributes, maxpast, maxfuture, ignoredCount, deltaAttributes, timeshift);
+            } else {
+              encoder = GTSHelper.parse(lastencoder, line, extraLabels, now, maxsize, hadAttributes, maxpast, maxfuture, ignoredCount, deltaAttributes, timeshift);
+            }
             if (null != this.plugin) {
               if (!this.plugin.update(this, writeToken, line, encoder)) {
                 hadAttributes.set(false);
@@ -845,7 +916,7 @@ public class StandaloneIngressHandler extends AbstractHandler {
           } catch (ParseException pe) {
             Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_STANDALONE_UPDATE_PARSEERRORS, sensisionLabels, 1);
             httpStatusCode = HttpServletResponse.SC_BAD_REQUEST;
-            throw new IOException("Parse error at index " + pe.getErrorOffset() + " in '" + line + "'", pe);
+            throw new IOException("Parse error at index " + pe.getErrorOffset() + " in '" + (null != parser ? parser.line() : line) + "'", pe);
           }
 
           if (encoder != lastencoder || lastencoder.size() > ENCODER_SIZE_THRESHOLD) {
@@ -857,8 +928,11 @@ public class StandaloneIngressHandler extends AbstractHandler {
             if (null != lastencoder) {
 
               // 128BITS
-              lastencoder.setClassId(GTSHelper.classId(ckl0, ckl1, lastencoder.getName()));
-              lastencoder.setLabelsId(GTSHelper.labelsId(lkl0, lkl1, lastencoder.getMetadata().getLabels()));
+              // Ids were already set by the byte oriented parser
+              if (null == parser) {
+                lastencoder.setClassId(GTSHelper.classId(ckl0, ckl1, lastencoder.getName()));
+                lastencoder.setLabelsId(GTSHelper.labelsId(lkl0, lkl1, lastencoder.getMetadata().getLabels()));
+              }
 
               try {
                 ThrottlingManager.checkMADS(lastencoder.getMetadata(), producer, owner, application, lastencoder.getClassId(), lastencoder.getLabelsId(), expose);
@@ -884,7 +958,11 @@ public class StandaloneIngressHandler extends AbstractHandler {
 
               // Extract shardkey 128BITS
               // Shard key is 48 bits, 24 upper from the class Id and 24 lower from the labels Id
-              shardkey =  (GTSHelper.classId(classKeyLongs, encoder.getMetadata().getName()) & 0xFFFFFF000000L) | (GTSHelper.labelsId(labelsKeyLongs, encoder.getMetadata().getLabels()) & 0xFFFFFFL);
+              if (null != parser) {
+                shardkey = (encoder.getClassId() & 0xFFFFFF000000L) | (encoder.getLabelsId() & 0xFFFFFFL);
+              } else {
+                shardkey =  (GTSHelper.classId(classKeyLongs, encoder.getMetadata().getName()) & 0xFFFFFF000000L) | (GTSHelper.labelsId(labelsKeyLongs, encoder.getMetadata().getLabels()) & 0xFFFFFFL);
+              }
             }
 
             if (null != lastencoder) {
@@ -915,8 +993,12 @@ public class StandaloneIngressHandler extends AbstractHandler {
               // correctly handle a continuation line if this is what occurs next
               //
               Metadata metadata = lastencoder.getMetadata();
+              long classId = lastencoder.getClassId();
+              long labelsId = lastencoder.getLabelsId();
               lastencoder = new GTSEncoder(0L);
               lastencoder.setMetadata(metadata);
+              lastencoder.setClassId(classId);
+              lastencoder.setLabelsId(labelsId);
 
               // This is the case when lastencoder and encoder are identical, but lastencoder was too big and needed
               // to be flushed
@@ -937,12 +1019,18 @@ public class StandaloneIngressHandler extends AbstractHandler {
           }
         } while (true);
 
-        br.close();
+        if (null != parser) {
+          parser.close();
+        } else {
+          br.close();
+        }
 
         if (null != lastencoder && lastencoder.size() > 0) {
           // 128BITS
-          lastencoder.setClassId(GTSHelper.classId(ckl0, ckl1, lastencoder.getName()));
-          lastencoder.setLabelsId(GTSHelper.labelsId(lkl0, lkl1, lastencoder.getMetadata().getLabels()));
+          if (null == parser) {
+            lastencoder.setClassId(GTSHelper.classId(ckl0, ckl1, lastencoder.getName()));
+            lastencoder.setLabelsId(GTSHelper.labelsId(lkl0, lkl1, lastencoder.getMetadata().getLabels()));
+          }
 
           try {
             ThrottlingManager.checkMADS(lastencoder.getMetadata(), producer, owner, application, lastencoder.getClassId(), lastencoder.getLabelsId(), expose);
@@ -984,25 +1072,34 @@ public class StandaloneIngressHandler extends AbstractHandler {
           labels.put(SensisionConstants.SENSISION_LABEL_TYPE, dr.getType());
           Sensision.update(SensisionConstants.CLASS_WARP_DATALOG_REQUESTS_LOGGED, labels, 1);
 
-          if (datalogSync) {
-            loggingWriter.flush();
-            loggingFD.sync();
-          }
+          if (null != loggingRecord) {
+            loggingWriter.close();
 
-          loggingWriter.close();
+            // Segments are synced by group commit
+            if (hasDatapoints) {
+              this.datalogSegments.append(loggingRecord);
+            }
+          } else {
+            if (datalogSync) {
+              loggingWriter.flush();
+              loggingFD.sync();
+            }
 
-          // Create hard links when multiple datalog forwarders are configured
-          if (hasDatapoints) {
-            for (Path srcDir: Warp.getDatalogSrcDirs()) {
-              try {
-                Files.createLink(new File(srcDir.toFile(), loggingFile.getName() + DatalogForwarder.DATALOG_SUFFIX).toPath(), loggingFile.toPath());
-              } catch (Exception e) {
-                throw new RuntimeException("Encountered an error while attempting to link " + loggingFile + " to " + srcDir);
+            loggingWriter.close();
+
+            // Create hard links when multiple datalog forwarders are configured
+            if (hasDatapoints) {
+              for (Path srcDir: Warp.getDatalogSrcDirs()) {
+                try {
+                  Files.createLink(new File(srcDir.toFile(), loggingFile.getName() + DatalogForwarder.DATALOG_SUFFIX).toPath(), loggingFile.toPath());
+                } catch (Exception e) {
+                  throw new RuntimeException("Encountered an error while attempting to link " + loggingFile + " to " + srcDir);
+                }
               }
             }
+            //loggingFile.renameTo(new File(loggingFile.getAbsolutePath() + DatalogForwarder.DATALOG_SUFFIX));
+            loggingFile.delete();
           }
-          //loggingFile.renameTo(new File(loggingFile.getAbsolutePath() + DatalogForwarder.DATALOG_SUFFIX));
-          loggingFile.delete();
         }
 
         //
@@ -1028,6 +1125,9 @@ public class StandaloneIngressHandler extends AbstractHandler {
         response.sendError(httpStatusCode, msg);
       }
     } finally {
+      if (null != loggingRecord) {
+        loggingRecord.discard();
+      }
       WarpConfig.clearThreadProperties();
     }
   }
@@ -1049,6 +1149,9 @@ public class StandaloneIngressHandler extends AbstractHandler {
 
     long lastActivity = System.currentTimeMillis();
 
+    // Discarded in the finally block so records are not leaked on errors
+    DatalogSegments.RecordOutputStream loggingRecord = null;
+
     try {
       //
       // CORS header
@@ -1211,8 +1314,13 @@ public class StandaloneIngressHandler extends AbstractHandler {
 
           encoded = OrderPreservingBase64.encode(encoded);
 
-          loggingFile = new File(loggingDir, sb.toString());
-          loggingWriter = new PrintWriter(new FileWriterWithEncoding(loggingFile, StandardCharsets.UTF_8));
+          if (null != this.datalogSegments) {
+            loggingRecord = this.datalogSegments.newRecord();
+            loggingWriter = new PrintWriter(new OutputStreamWriter(loggingRecord, StandardCharsets.UTF_8));
+          } else {
+            loggingFile = new File(loggingDir, sb.toString());
+            loggingWriter = new PrintWriter(new FileWriterWithEncoding(loggingFile, StandardCharsets.UTF_8));
+          }
 
           //
           // Write request
@@ -1302,16 +1410,21 @@ public class StandaloneIngressHandler extends AbstractHandler {
           Sensision.update(SensisionConstants.CLASS_WARP_DATALOG_REQUESTS_LOGGED, labels, 1);
 
           loggingWriter.close();
-          // Create hard links when multiple datalog forwarders are configured
-          for (Path srcDir: Warp.getDatalogSrcDirs()) {
-            try {
-              Files.createLink(new File(srcDir.toFile(), loggingFile.getName() + DatalogForwarder.DATALOG_SUFFIX).toPath(), loggingFile.toPath());
-            } catch (Exception e) {
-              throw new RuntimeException("Encountered an error while attempting to link " + loggingFile + " to " + srcDir);
+
+          if (null != loggingRecord) {
+            this.datalogSegments.append(loggingRecord);
+          } else {
+            // Create hard links when multiple datalog forwarders are configured
+            for (Path srcDir: Warp.getDatalogSrcDirs()) {
+              try {
+                Files.createLink(new File(srcDir.toFile(), loggingFile.getName() + DatalogForwarder.DATALOG_SUFFIX).toPath(), loggingFile.toPath());
+              } catch (Exception e) {
+                throw new RuntimeException("Encountered an error while attempting to link " + loggingFile + " to " + srcDir);
+              }
             }
+            //loggingFile.renameTo(new File(loggingFile.getAbsolutePath() + DatalogForwarder.DATALOG_SUFFIX));
+            loggingFile.delete();
           }
-          //loggingFile.renameTo(new File(loggingFile.getAbsolutePath() + DatalogForwarder.DATALOG_SUFFIX));
-          loggingFile.delete();
         }
         this.directoryClient.register(null);
       }
@@ -1324,6 +1437,10 @@ public class StandaloneIngressHandler extends AbstractHandler {
         response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, msg);
         return;
       }
+    } finally {
+      if (null != loggingRecord) {
+        loggingRecord.discard();
+      }
     }
   }
 
@@ -48,6 +48,7 @@ import io.warp10.continuum.gts.GTSEncoder;
 import io.warp10.continuum.gts.GTSHelper;
 import io.warp10.continuum.sensision.SensisionConstants;
 import io.warp10.continuum.store.Constants;
+import io.warp10.continuum.store.BucketizingGTSDecoderIterator;
 import io.warp10.continuum.store.GTSDecoderIterator;
 import io.warp10.continuum.store.StoreClient;
 import io.warp10.continuum.store.thrift.data.FetchRequest;
@@ -310,7 +311,7 @@ public class StandaloneMemoryStore extends Thread implements StoreClient {
       }
     };
 
-    return iterator;
+    return BucketizingGTSDecoderIterator.wrap(req, iterator);
   }
 
   public void store(GTSEncoder encoder) throws IOException {
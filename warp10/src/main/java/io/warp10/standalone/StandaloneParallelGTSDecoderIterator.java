@@ -0,0 +1,280 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.standalone;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.sensision.SensisionConstants;
+import io.warp10.continuum.store.GTSDecoderIterator;
+import io.warp10.continuum.store.thrift.data.FetchRequest;
+import io.warp10.continuum.store.thrift.data.Metadata;
+import io.warp10.sensision.Sensision;
+
+/**
+ * Fetch the GTS of a request from LevelDB using several iterators concurrently.
+ *
+ * The sorted Metadata of the request are split in contiguous ranges, each range is scanned
+ * by its own LevelDB iterator on a shared pool and its decoders are pushed to a bounded queue,
+ * blocking the scanner when the consumer lags behind. Queues are drained range after range
+ * so decoders are returned in the same order as a sequential scan.
+ *
+ * At most 'maxInflight' ranges, starting with the one being consumed, are scheduled at any time.
+ * If the range being consumed has not been started by the pool, the consumer scans it itself,
+ * so a request always makes progress even when the pool is saturated by other requests.
+ */
+class StandaloneParallelGTSDecoderIterator extends GTSDecoderIterator {
+
+  private static final int PENDING = 0;
+  private static final int RUNNING = 1;
+  private static final int INLINE = 2;
+  private static final int CLOSED = 3;
+
+  /**
+   * Marker pushed to the queue of a range once it has been fully scanned
+   */
+  private static final Object END = new Object();
+
+  private final class Range implements Runnable {
+    private final FetchRequest req;
+    private final LinkedBlockingQueue<Object> queue;
+    private final AtomicInteger state = new AtomicInteger(PENDING);
+    private boolean submitted = false;
+    private volatile Throwable error = null;
+
+    /**
+     * Iterator used when the range is scanned by the consumer
+     */
+    private GTSDecoderIterator inline = null;
+
+    private Range(FetchRequest req) {
+      this.req = req;
+      this.queue = new LinkedBlockingQueue<Object>(queueSize);
+    }
+
+    @Override
+    public void run() {
+      if (!this.state.compareAndSet(PENDING, RUNNING)) {
+        return;
+      }
+
+      GTSDecoderIterator iter = null;
+
+      try {
+        iter = client.scan(this.req, gts);
+
+        while (iter.hasNext()) {
+          if (!put(iter.next())) {
+            return;
+          }
+        }
+      } catch (Throwable t) {
+        this.error = t;
+      } finally {
+        if (null != iter) {
+          try {
+            iter.close();
+          } catch (Exception e) {
+          }
+        }
+        put(END);
+      }
+    }
+
+    /**
+     * Push an element to the queue, waiting for space to be available
+     *
+     * @return false if the iterator was closed while waiting
+     */
+    private boolean put(Object o) {
+      try {
+        while (!this.queue.offer(o, 10L, TimeUnit.MILLISECONDS)) {
+          if (closed) {
+            return false;
+          }
+        }
+        return !closed;
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+
+    /**
+     * Retrieve the next decoder of the range
+     *
+     * @return the next decoder or null if the range is exhausted
+     */
+    private GTSDecoder take() throws Exception {
+      if (INLINE == this.state.get()) {
+        if (this.inline.hasNext()) {
+          return this.inline.next();
+        }
+        this.inline.close();
+        this.inline = null;
+        return null;
+      }
+
+      Object o = this.queue.take();
+
+      if (END == o) {
+        if (null != this.error) {
+          throw new IOException("Error in a parallel LevelDB scanner.", this.error);
+        }
+        return null;
+      }
+
+      return (GTSDecoder) o;
+    }
+
+    private void close() throws Exception {
+      if (this.state.compareAndSet(PENDING, CLOSED)) {
+        return;
+      }
+      if (INLINE == this.state.get() && null != this.inline) {
+        this.inline.close();
+        this.inline = null;
+      }
+      this.queue.clear();
+    }
+  }
+
+  private final StandaloneStoreClient client;
+  private final ExecutorService executor;
+  private final int maxInflight;
+  private final int queueSize;
+
+  /**
+   * Total number of GTS in the request
+   */
+  private final int gts;
+
+  private final List<Range> ranges = new ArrayList<Range>();
+
+  private int idx = 0;
+
+  private GTSDecoder next = null;
+
+  private volatile boolean closed = false;
+
+  StandaloneParallelGTSDecoderIterator(StandaloneStoreClient client, FetchRequest req, ExecutorService executor, int maxInflight, int minGTS, int queueSize) {
+    this.client = client;
+    this.executor = executor;
+    this.maxInflight = Math.max(1, maxInflight);
+    this.queueSize = Math.max(1, queueSize);
+
+    List<Metadata> metadatas = req.getMetadatas();
+    this.gts = metadatas.size();
+
+    // Use a few ranges per scheduled scanner so fast ranges can be followed by others
+    int perRange = Math.max(Math.max(1, minGTS), (this.gts + 4 * this.maxInflight - 1) / (4 * this.maxInflight));
+
+    // Remove Metadatas from FetchRequest otherwise new FetchRequest(req) will do a deep copy
+    req.unsetMetadatas();
+
+    try {
+      for (int i = 0; i < this.gts; i += perRange) {
+        FetchRequest freq = new FetchRequest(req);
+        // Bucketization is applied to the merged iterator
+        freq.unsetBucketization();
+        freq.setMetadatas(metadatas.subList(i, Math.min(this.gts, i + perRange)));
+        this.ranges.add(new Range(freq));
+      }
+    } finally {
+      req.setMetadatas(metadatas);
+    }
+
+    Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_STANDALONE_CLIENT_PARALLEL_FETCH_RANGES, Sensision.EMPTY_LABELS, this.ranges.size());
+  }
+
+  /**
+   * Submit the ranges which are close enough to the one being consumed
+   */
+  private void schedule() {
+    for (int i = this.idx; i < Math.min(this.ranges.size(), this.idx + this.maxInflight); i++) {
+      Range range = this.ranges.get(i);
+      if (!range.submitted) {
+        range.submitted = true;
+        this.executor.execute(range);
+      }
+    }
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (null != this.next) {
+      return true;
+    }
+
+    try {
+      while (!this.closed && this.idx < this.ranges.size()) {
+        schedule();
+
+        Range range = this.ranges.get(this.idx);
+
+        // Scan the range ourselves if the pool has not started it yet
+        if (range.state.compareAndSet(PENDING, INLINE)) {
+          range.inline = this.client.scan(range.req, this.gts);
+          Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_STANDALONE_CLIENT_PARALLEL_FETCH_INLINE, Sensision.EMPTY_LABELS, 1);
+        }
+
+        this.next = range.take();
+
+        if (null != this.next) {
+          return true;
+        }
+
+        this.idx++;
+      }
+    } catch (InterruptedException ie) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(ie);
+    } catch (RuntimeException re) {
+      throw re;
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+
+    return false;
+  }
+
+  @Override
+  public GTSDecoder next() {
+    if (!hasNext()) {
+      return null;
+    }
+
+    GTSDecoder decoder = this.next;
+    this.next = null;
+    return decoder;
+  }
+
+  @Override
+  public void close() throws Exception {
+    this.closed = true;
+
+    for (Range range: this.ranges) {
+      range.close();
+    }
+  }
+}
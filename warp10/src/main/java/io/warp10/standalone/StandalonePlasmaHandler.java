@@ -21,6 +21,7 @@ import io.warp10.json.JsonUtils;
 import io.warp10.continuum.Configuration;
 import io.warp10.continuum.Tokens;
 import io.warp10.continuum.egress.EgressFetchHandler;
+import io.warp10.continuum.gts.ConcurrentGTSIdMap;
 import io.warp10.continuum.gts.GTSDecoder;
 import io.warp10.continuum.gts.GTSEncoder;
 import io.warp10.continuum.gts.GTSHelper;
@@ -43,24 +44,22 @@ import io.warp10.sensision.Sensision;
 
 import java.io.IOException;
 import java.math.BigInteger;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 
 import javax.servlet.ServletException;
@@ -73,6 +72,7 @@ import org.apache.thrift.protocol.TCompactProtocol;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.websocket.api.Session;
 import org.eclipse.jetty.websocket.api.WebSocketException;
+import org.eclipse.jetty.websocket.api.WriteCallback;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
@@ -103,17 +103,25 @@ public class StandalonePlasmaHandler extends WebSocketHandler.Simple implements
   
   private byte[] metadataKey;
   
-  private LinkedBlockingQueue<GTSEncoder> encoders = new LinkedBlockingQueue<GTSEncoder>(256);
+  /**
+   * Queues of encoders to dispatch, encoders of a given GTS always go to the same queue
+   */
+  private final LinkedBlockingQueue<GTSEncoder>[] encoders;
   
   /**
-   * Map of classId+labelsId to Metadata
+   * Map of classId+labelsId to the subscribed sessions
    */
-  private Map<BigInteger, Metadata> metadatas = new HashMap<BigInteger, Metadata>();
+  private ConcurrentGTSIdMap<Subscription> index = new ConcurrentGTSIdMap<Subscription>(16);
   
   /**
    * Map of Session to subscription
    */
-  private Map<Session, Set<BigInteger>> subscriptions = new ConcurrentHashMap<Session, Set<BigInteger>>();
+  private Map<Session, ConcurrentGTSIdMap<Boolean>> subscriptions = new ConcurrentHashMap<Session, ConcurrentGTSIdMap<Boolean>>();
+  
+  /**
+   * Map of Session to queue of outgoing messages
+   */
+  private Map<Session, SessionQueue> queues = new ConcurrentHashMap<Session, SessionQueue>();
   
   /**
    * Map of Session to JSON format
@@ -123,24 +131,19 @@ public class StandalonePlasmaHandler extends WebSocketHandler.Simple implements
   /**
    * Map of Session to output format
    */
-  private Map<Session, OUTPUT_FORMAT> outputFormat = new HashMap<Session, OUTPUT_FORMAT>();
+  private Map<Session, OUTPUT_FORMAT> outputFormat = new ConcurrentHashMap<Session, OUTPUT_FORMAT>();
   
   /**
    * Mp of Session to sample rate
    */
-  private Map<Session, Long> sampleRate = new HashMap<Session, Long>();
+  private Map<Session, Long> sampleRate = new ConcurrentHashMap<Session, Long>();
   
   /**
    * Map of Session flag to expose owner/producer, based on the tokens used
    */
-  private Map<Session, Boolean> exposeOwnerProducer = new HashMap<Session, Boolean>();
-  
-  /**
-   * Number of 
-   */
-  private Map<BigInteger, AtomicInteger> refcounts = new ConcurrentHashMap<BigInteger, AtomicInteger>();
+  private Map<Session, Boolean> exposeOwnerProducer = new ConcurrentHashMap<Session, Boolean>();
   
-  private boolean hasclients = false;
+  private volatile boolean hasclients = false;
   
   private PlasmaSubscriptionListener subscriptionListener = null;
   
@@ -149,6 +152,163 @@ public class StandalonePlasmaHandler extends WebSocketHandler.Simple implements
    */
   private final int maxSubscriptions;
   
+  /**
+   * Max number of messages waiting to be sent to a session
+   */
+  private final int sessionQueueSize;
+  
+  private static final int DEFAULT_DISPATCH_THREADS = 4;
+  private static final int DEFAULT_SESSION_QUEUE_SIZE = 1024;
+  
+  /**
+   * Sessions subscribed to a GTS, with the metadata rendered once for all of them
+   */
+  private static final class Subscription {
+    private volatile Metadata metadata;
+    
+    /**
+     * Subscribed sessions, the array is replaced on each change so dispatch can iterate over it without locking
+     */
+    private volatile Session[] sessions = new Session[0];
+    
+    private volatile String meta = null;
+    private volatile String exposedMeta = null;
+    
+    private void setMetadata(Metadata metadata) {
+      this.metadata = metadata;
+      this.meta = null;
+      this.exposedMeta = null;
+    }
+    
+    private String getMeta(boolean expose) {
+      String str = expose ? this.exposedMeta : this.meta;
+      
+      if (null == str) {
+        Metadata metadata = this.metadata;
+        StringBuilder sb = new StringBuilder();
+        GTSHelper.metadataToString(sb, metadata.getName(), metadata.getLabels(), expose);
+        str = sb.toString();
+        if (expose) {
+          this.exposedMeta = str;
+        } else {
+          this.meta = str;
+        }
+      }
+      
+      return str;
+    }
+    
+    private void add(Session session) {
+      Session[] sessions = Arrays.copyOf(this.sessions, this.sessions.length + 1);
+      sessions[sessions.length - 1] = session;
+      this.sessions = sessions;
+    }
+    
+    private void remove(Session session) {
+      Session[] sessions = new Session[this.sessions.length - 1];
+      int idx = 0;
+      for (Session s: this.sessions) {
+        if (s != session) {
+          sessions[idx++] = s;
+        }
+      }
+      this.sessions = sessions;
+    }
+  }
+  
+  /**
+   * Bounded queue of the messages to send to a session. Messages are sent one at a time, text messages
+   * waiting to be sent are coalesced up to the maximum message size and messages are dropped when the
+   * queue is full, so a slow client does not hold memory or dispatching threads.
+   */
+  static final class SessionQueue implements WriteCallback {
+    private final Session session;
+    private final int capacity;
+    private final long maxMessageSize;
+    
+    /**
+     * Pending messages, those which can be coalesced are StringBuilder instances
+     */
+    private final ArrayDeque<CharSequence> pending = new ArrayDeque<CharSequence>();
+    
+    private boolean sending = false;
+    private boolean draining = false;
+    private boolean completed = false;
+    
+    SessionQueue(Session session, int capacity, long maxMessageSize) {
+      this.session = session;
+      this.capacity = capacity;
+      this.maxMessageSize = maxMessageSize;
+    }
+    
+    synchronized void offer(String message, boolean coalescable) {
+      CharSequence last = this.pending.peekLast();
+      
+      if (coalescable && last instanceof StringBuilder && last.length() + message.length() <= 0.9 * this.maxMessageSize) {
+        ((StringBuilder) last).append(message);
+        Sensision.update(SensisionConstants.SENSISION_CLASS_PLASMA_FRONTEND_DISPATCH_COALESCED, Sensision.EMPTY_LABELS, 1);
+      } else if (this.pending.size() >= this.capacity) {
+        Sensision.update(SensisionConstants.SENSISION_CLASS_PLASMA_FRONTEND_DISPATCH_DROPPED, Sensision.EMPTY_LABELS, 1);
+        return;
+      } else {
+        this.pending.addLast(coalescable ? new StringBuilder(message) : message);
+      }
+      
+      if (!this.sending) {
+        drain();
+      }
+    }
+    
+    /**
+     * Send the next pending message. MUST be called with the lock held.
+     */
+    private void drain() {
+      if (this.draining) {
+        // The previous send completed inline, let the enclosing loop send the next message
+        this.completed = true;
+        return;
+      }
+      
+      this.draining = true;
+      
+      try {
+        do {
+          this.completed = false;
+          
+          CharSequence message = this.pending.pollFirst();
+          
+          if (null == message) {
+            this.sending = false;
+            return;
+          }
+          
+          this.sending = true;
+          
+          try {
+            this.session.getRemote().sendString(message.toString(), this);
+          } catch (WebSocketException wse) {
+            this.pending.clear();
+            this.sending = false;
+            return;
+          }
+        } while (this.completed);
+      } finally {
+        this.draining = false;
+      }
+    }
+    
+    @Override
+    public synchronized void writeSuccess() {
+      drain();
+    }
+    
+    @Override
+    public synchronized void writeFailed(Throwable t) {
+      this.pending.clear();
+      this.sending = false;
+    }
+  }
+  
   @WebSocket
   public static class StandalonePlasmaWebSocket {
     
@@ -356,13 +516,35 @@ public class StandalonePlasmaHandler extends WebSocketHandler.Simple implements
     } else {
       this.maxSubscriptions = Constants.WARP_PLASMA_MAXSUBS_DEFAULT;
     }
+    this.sessionQueueSize = Integer.parseInt(properties.getProperty(Configuration.WARP_PLASMA_SESSION_QUEUE, Integer.toString(DEFAULT_SESSION_QUEUE_SIZE)));
     this.metadataKey = keystore.getKey(KeyStore.AES_KAFKA_METADATA);
     
+    int nthreads = Integer.parseInt(properties.getProperty(Configuration.WARP_PLASMA_DISPATCH_THREADS, Integer.toString(DEFAULT_DISPATCH_THREADS)));
+    
+    if (nthreads < 1) {
+      throw new RuntimeException("Invalid value for '" + Configuration.WARP_PLASMA_DISPATCH_THREADS + "'.");
+    }
+    
+    this.encoders = new LinkedBlockingQueue[startThread ? nthreads : 1];
+    
+    for (int i = 0; i < this.encoders.length; i++) {
+      this.encoders[i] = new LinkedBlockingQueue<GTSEncoder>(256);
+    }
+    
     if (startThread) {
-      Thread t = new Thread(this);
-      t.setDaemon(true);
-      t.setName("[StandalonePlasmaHandler]");
-      t.start();      
+      for (int i = 0; i < this.encoders.length; i++) {
+        final LinkedBlockingQueue<GTSEncoder> queue = this.encoders[i];
+        
+        Thread t = new Thread(0 == i ? this : new Runnable() {
+          @Override
+          public void run() {
+            dispatch(queue);
+          }
+        });
+        t.setDaemon(true);
+        t.setName("[StandalonePlasmaHandler #" + i + "]");
+        t.start();
+      }
     }
   }
 
@@ -415,26 +597,25 @@ public class StandalonePlasmaHandler extends WebSocketHandler.Simple implements
     super.configure(factory);
   }
   
-  private synchronized void subscribe(Session session, List<Metadata> metadatas) {
+  synchronized void subscribe(Session session, List<Metadata> metadatas) {
     
     if (metadatas.isEmpty()) {
       return;
     }
     
-    // 128BITS
-    byte[] bytes = new byte[16];
-    ByteBuffer bb = ByteBuffer.wrap(bytes).order(ByteOrder.BIG_ENDIAN);
-    
     if (!this.subscriptions.containsKey(session)) {
-      this.subscriptions.put(session, new HashSet<BigInteger>());
+      this.subscriptions.put(session, new ConcurrentGTSIdMap<Boolean>(1));
+    }
+    
+    if (!this.queues.containsKey(session)) {
+      long maxmessagesize = Math.min(this.getWebSocketFactory().getPolicy().getMaxTextMessageSize(), this.getWebSocketFactory().getPolicy().getMaxBinaryMessageSize());
+      this.queues.put(session, new SessionQueue(session, this.sessionQueueSize, maxmessagesize));
     }
     
     for (Metadata metadata: metadatas) {
-      bb.rewind();
-      bb.putLong(metadata.getClassId());
-      bb.putLong(metadata.getLabelsId());
-      
-      BigInteger id = new BigInteger(bytes);
+      // 128BITS
+      long classId = metadata.getClassId();
+      long labelsId = metadata.getLabelsId();
       
       //
       // Limit the number of subscriptions per session to 'maxSubscriptions'
@@ -444,15 +625,18 @@ public class StandalonePlasmaHandler extends WebSocketHandler.Simple implements
         break;
       }
 
-      this.metadatas.put(id, metadata);
+      Subscription subscription = this.index.get(classId, labelsId);
       
-      if (!this.refcounts.containsKey(id)) {
-        this.refcounts.put(id, new AtomicInteger(0));
+      if (null == subscription) {
+        subscription = new Subscription();
+        this.index.put(classId, labelsId, subscription);
       }
       
-      if (!subscriptions.get(session).contains(id)) {
-        subscriptions.get(session).add(id);
-        this.refcounts.get(id).addAndGet(1);
+      subscription.setMetadata(metadata);
+      
+      if (!subscriptions.get(session).containsKey(classId, labelsId)) {
+        subscriptions.get(session).put(classId, labelsId, Boolean.TRUE);
+        subscription.add(session);
       }
       hasclients = true;
     }
@@ -462,33 +646,23 @@ public class StandalonePlasmaHandler extends WebSocketHandler.Simple implements
     }
   }
 
-  private synchronized void unsubscribe(Session session, List<Metadata> metadatas) {   
+  synchronized void unsubscribe(Session session, List<Metadata> metadatas) {   
     
     if (metadatas.isEmpty()) {
       return;
     }
     
-    // 128BITS
-    byte[] bytes = new byte[16];
-    ByteBuffer bb = ByteBuffer.wrap(bytes).order(ByteOrder.BIG_ENDIAN);
-    
     if (!this.subscriptions.containsKey(session)) {
       return;
     }
     
     for (Metadata metadata: metadatas) {
-      bb.rewind();
-      bb.putLong(metadata.getClassId());
-      bb.putLong(metadata.getLabelsId());
-      
-      BigInteger id = new BigInteger(bytes);
+      // 128BITS
+      long classId = metadata.getClassId();
+      long labelsId = metadata.getLabelsId();
 
-      if (subscriptions.get(session).contains(id)) {
-        subscriptions.get(session).remove(id);
-        if (0 == this.refcounts.get(id).addAndGet(-1)) {
-          this.metadatas.remove(id);
-          this.refcounts.remove(id);
-        }
+      if (null != subscriptions.get(session).remove(classId, labelsId)) {
+        unindex(session, classId, labelsId);
       }
     }
     
@@ -497,6 +671,24 @@ public class StandalonePlasmaHandler extends WebSocketHandler.Simple implements
     }
   }
 
+  /**
+   * Remove a session from the subscribers of a GTS. MUST be called with the lock held.
+   * 
+   * @return true if the GTS no longer has any subscriber
+   */
+  private boolean unindex(Session session, long classId, long labelsId) {
+    Subscription subscription = this.index.get(classId, labelsId);
+    
+    subscription.remove(session);
+    
+    if (0 == subscription.sessions.length) {
+      this.index.remove(classId, labelsId);
+      return true;
+    }
+    
+    return false;
+  }
+  
   public void setSubscriptionListener(PlasmaSubscriptionListener listener) {
     this.subscriptionListener = listener;
   }
@@ -504,32 +696,30 @@ public class StandalonePlasmaHandler extends WebSocketHandler.Simple implements
   private synchronized void deregister(Session session) {    
     clearSubscriptions(session);
     this.format.remove(session);
+    this.outputFormat.remove(session);
     this.sampleRate.remove(session);
     this.exposeOwnerProducer.remove(session);
+    this.queues.remove(session);
   }
   
   private synchronized void clearSubscriptions(Session session) {
     //
-    // Decrease refcount for each gts subscribed
+    // Remove the session from the subscribers of each gts subscribed
     //
 
     boolean mustRepublish = false;
     
     if (this.subscriptions.containsKey(session)) {
-      Set<BigInteger> ids = this.subscriptions.get(session);
+      long[] ids = this.subscriptions.get(session).ids();
       this.subscriptions.remove(session);
-      for (BigInteger id: ids) {
-        if (0 == this.refcounts.get(id).addAndGet(-1)) {
-          // FIXME(hbs): we need to ensure refcount is not incremented by another thread, otherwise
-          // we may remove some Metadata even though another client just subscribed to it
-          this.metadatas.remove(id);
-          this.refcounts.remove(id);
+      for (int i = 0; i < ids.length; i += 2) {
+        if (unindex(session, ids[i], ids[i + 1])) {
           mustRepublish = true;
         }        
       }
     }    
     
-    if (this.refcounts.isEmpty()) {
+    if (this.index.isEmpty()) {
       hasclients = false;
     }
     
@@ -542,17 +732,20 @@ public class StandalonePlasmaHandler extends WebSocketHandler.Simple implements
     if (this.subscriptions.containsKey(session)) {
       StringBuilder sb = new StringBuilder();
       
-      for (BigInteger id: this.subscriptions.get(session)) {
+      long[] ids = this.subscriptions.get(session).ids();
+      
+      for (int i = 0; i < ids.length; i += 2) {
+        Metadata metadata = this.index.get(ids[i], ids[i + 1]).metadata;
         sb.setLength(0);
         sb.append("SUB ");
-        GTSHelper.metadataToString(sb, metadatas.get(id).getName(), metadatas.get(id).getLabels(), getExposeOwnerProducer(session));
+        GTSHelper.metadataToString(sb, metadata.getName(), metadata.getLabels(), getExposeOwnerProducer(session));
         session.getRemote().sendString(sb.toString());
       }
     }
   }
   
   private synchronized int getSubscriptionCount(Session session) {
-    Set<BigInteger> subs = this.subscriptions.get(session); 
+    ConcurrentGTSIdMap<Boolean> subs = this.subscriptions.get(session); 
     if (null != subs) {
       return subs.size();
     } else {
@@ -561,9 +754,11 @@ public class StandalonePlasmaHandler extends WebSocketHandler.Simple implements
   }
   
   public void publish(GTSEncoder encoder) {
-    try {      
+    try {
+      // Encoders of a given GTS are dispatched by the same thread so they are delivered in order
+      int partition = (Long.hashCode(encoder.getClassId() ^ encoder.getLabelsId()) & 0x7FFFFFFF) % this.encoders.length;
       // FIXME(hbs): this will block the pushing of data
-      this.encoders.offer(encoder, 1000L, TimeUnit.SECONDS);
+      this.encoders[partition].offer(encoder, 1000L, TimeUnit.SECONDS);
     } catch (InterruptedException ie) {
       // FIXME(hbs): Sensision metrics
     }
@@ -575,10 +770,9 @@ public class StandalonePlasmaHandler extends WebSocketHandler.Simple implements
   }
   
   //
-  // FIXME(hbs): dispatch will forward a given encoder to every single session which subscribed to it
-  // This is done in the Kafka consuming thread. It might be a good idea to add some loosely coupled
-  // logic in this by having a set of threads doing the actual dispatch.
-  // Or maybe first add a metric to know how many different sessions were targeted
+  // Dispatch only visits the sessions which subscribed to the GTS of the encoder. The messages
+  // for a given output format are rendered once and shared by all the sessions using this format
+  // without sampling, they are then queued to each session.
   //
   
   protected void dispatch(GTSEncoder encoder) throws IOException {
@@ -588,243 +782,246 @@ public class StandalonePlasmaHandler extends WebSocketHandler.Simple implements
     Sensision.update(SensisionConstants.SENSISION_CLASS_PLASMA_FRONTEND_DISPATCH_CALLS, Sensision.EMPTY_LABELS, 1);
     
     // 128BITS
-    byte[] bytes = new byte[16];
-    ByteBuffer bb = ByteBuffer.wrap(bytes).order(ByteOrder.BIG_ENDIAN);
-    bb.putLong(encoder.getClassId());
-    bb.putLong(encoder.getLabelsId());
-    
-    BigInteger id = new BigInteger(bytes);
+    Subscription subscription = this.index.get(encoder.getClassId(), encoder.getLabelsId());
     
-    AtomicInteger count = refcounts.get(id);
-    
-    if (null == count) {
+    if (null == subscription) {
       return;
     }
-       
-    int refcount = count.get();
     
-    if (refcount > 0) {
+    Session[] sessions = subscription.sessions;
+    
+    if (sessions.length > 0) {
       
       long maxmessagesize = Math.min(this.getWebSocketFactory().getPolicy().getMaxTextMessageSize(), this.getWebSocketFactory().getPolicy().getMaxBinaryMessageSize());
       
-      StringBuilder metasb = new StringBuilder();
-      StringBuilder exposedmetasb = new StringBuilder();
-      StringBuilder sb = new StringBuilder();
-
-      Metadata metadata = this.metadatas.get(id);
-
-      if (null == metadata) {
-        return;
-      }
-    
-      GTSHelper.metadataToString(metasb, metadata.getName(), metadata.getLabels(), false);
-      GTSHelper.metadataToString(exposedmetasb, metadata.getName(), metadata.getLabels(), true);
+      //
+      // Messages rendered for sessions without sampling, indexed by output format and owner/producer exposure
+      //
       
-      Set<Entry<Session, Set<BigInteger>>> subs = subscriptions.entrySet();
+      List<String>[] rendered = new List[OUTPUT_FORMAT.values().length * 2];
       
-      for (Entry<Session, Set<BigInteger>> entry: subs) {
+      for (Session session: sessions) {
         
         //
         // We might have missed the close of a session, we get a chance to correct that here
         // FIXME(hbs): if we missed a close it's probably a bug though!
         //
         
-        if (!entry.getKey().isOpen()) {
-          deregister(entry.getKey());
+        if (!session.isOpen()) {
+          deregister(session);
           continue;
         }
         
-        try {
-          if (entry.getValue().contains(id)) {
-            Sensision.update(SensisionConstants.SENSISION_CLASS_PLASMA_FRONTEND_DISPATCH_SESSIONS, Sensision.EMPTY_LABELS, 1);
-            OUTPUT_FORMAT format = getOutputFormat(entry.getKey());
-            boolean exposeOwnerProducer = getExposeOwnerProducer(entry.getKey());
-            StringBuilder curmetasb = exposeOwnerProducer ? exposedmetasb : metasb;
-            
-            if (OUTPUT_FORMAT.RAW.equals(format)) {
-              sb.setLength(0);
-              
-              sb.append(encoder.getBaseTimestamp());
-              sb.append("// ");
-              
-              TSerializer tserializer = new TSerializer(new TCompactProtocol.Factory());
-              
-              try {
-                byte[] serialized = tserializer.serialize(metadata);
-
-                // FIXME(hbs): should we use a specific key?
-                // FIXME(hbs): create chunks so we stay below maxmessagesize
-                byte[] encrypted = CryptoUtils.wrap(this.metadataKey, serialized);
-                sb.append(new String(OrderPreservingBase64.encode(encrypted), StandardCharsets.US_ASCII));
-                sb.append(":");              
-                sb.append(new String(OrderPreservingBase64.encode(encoder.getBytes()), StandardCharsets.US_ASCII));
-                
-                entry.getKey().getRemote().sendStringByFuture(sb.toString());                
-              } catch (TException te) {
-                // Oh well, skip it!
-              }
-              
-              continue;
-            } else if (OUTPUT_FORMAT.WRAPPER.equals(format)) {
-              encoder.setMetadata(metadata);
-              
-              //
-              // Remove producer/owner
-              //
-              
-              if (!Constants.EXPOSE_OWNER_PRODUCER && !exposeOwnerProducer) {
-                encoder.getMetadata().getLabels().remove(Constants.PRODUCER_LABEL);
-                encoder.getMetadata().getLabels().remove(Constants.OWNER_LABEL);                
-              }
+        SessionQueue queue = this.queues.get(session);
+        
+        if (null == queue) {
+          continue;
+        }
+        
+        Sensision.update(SensisionConstants.SENSISION_CLASS_PLASMA_FRONTEND_DISPATCH_SESSIONS, Sensision.EMPTY_LABELS, 1);
+        OUTPUT_FORMAT format = getOutputFormat(session);
+        boolean exposeOwnerProducer = getExposeOwnerProducer(session);
+        double rate = getSampleRate(session);
+        
+        List<String> messages;
+        
+        // Sampling does not apply to RAW and WRAPPER
+        if (1.0D == rate || OUTPUT_FORMAT.RAW.equals(format) || OUTPUT_FORMAT.WRAPPER.equals(format)) {
+          int idx = format.ordinal() * 2 + (exposeOwnerProducer ? 1 : 0);
+          messages = rendered[idx];
+          if (null == messages) {
+            messages = render(encoder, subscription, format, exposeOwnerProducer, 1.0D, maxmessagesize);
+            rendered[idx] = messages;
+          }
+        } else {
+          messages = render(encoder, subscription, format, exposeOwnerProducer, rate, maxmessagesize);
+        }
+        
+        // Text messages are made of complete lines and can be concatenated
+        boolean coalescable = OUTPUT_FORMAT.TEXT.equals(format) || OUTPUT_FORMAT.FULLTEXT.equals(format);
+        
+        for (String message: messages) {
+          queue.offer(message, coalescable);
+        }
+      }      
+    }
+    
+    nano = System.nanoTime() - nano;
+    
+    Sensision.update(SensisionConstants.SENSISION_CLASS_PLASMA_FRONTEND_DISPATCH_TIME_US, Sensision.EMPTY_LABELS, nano/1000L);
+  }
+  
+  /**
+   * Render the messages to send to sessions for an encoder
+   */
+  private List<String> render(GTSEncoder encoder, Subscription subscription, OUTPUT_FORMAT format, boolean exposeOwnerProducer, double rate, long maxmessagesize) throws IOException {
+    
+    List<String> messages = new ArrayList<String>();
+    
+    Metadata metadata = subscription.metadata;
+    
+    StringBuilder sb = new StringBuilder();
+    
+    if (OUTPUT_FORMAT.RAW.equals(format)) {
+      sb.append(encoder.getBaseTimestamp());
+      sb.append("// ");
+      
+      TSerializer tserializer = new TSerializer(new TCompactProtocol.Factory());
+      
+      try {
+        byte[] serialized = tserializer.serialize(metadata);
 
-              // Compress with two pass max
-              GTSWrapper wrapper = GTSWrapperHelper.fromGTSEncoderToGTSWrapper(encoder, true, GTSWrapperHelper.DEFAULT_COMP_RATIO_THRESHOLD, 2);
-              
-              TSerializer tserializer = new TSerializer(new TCompactProtocol.Factory());
-              
-              try {
-                byte[] serialized = tserializer.serialize(wrapper);
+        // FIXME(hbs): should we use a specific key?
+        // FIXME(hbs): create chunks so we stay below maxmessagesize
+        byte[] encrypted = CryptoUtils.wrap(this.metadataKey, serialized);
+        sb.append(new String(OrderPreservingBase64.encode(encrypted), StandardCharsets.US_ASCII));
+        sb.append(":");              
+        sb.append(new String(OrderPreservingBase64.encode(encoder.getBytes()), StandardCharsets.US_ASCII));
+        
+        messages.add(sb.toString());
+      } catch (TException te) {
+        // Oh well, skip it!
+      }
+      
+      return messages;
+    } else if (OUTPUT_FORMAT.WRAPPER.equals(format)) {
+      // Work on a copy, the metadata is shared by all the sessions
+      encoder.setMetadata(new Metadata(metadata));
+      
+      //
+      // Remove producer/owner
+      //
+      
+      if (!Constants.EXPOSE_OWNER_PRODUCER && !exposeOwnerProducer) {
+        encoder.getMetadata().getLabels().remove(Constants.PRODUCER_LABEL);
+        encoder.getMetadata().getLabels().remove(Constants.OWNER_LABEL);                
+      }
 
-                sb.setLength(0);
-                sb.append(new String(OrderPreservingBase64.encode(serialized), StandardCharsets.US_ASCII));
-                
-                entry.getKey().getRemote().sendStringByFuture(sb.toString());                
-              } catch (TException te) {
-                // Oh well, skip it!
-              }
+      // Compress with two pass max
+      GTSWrapper wrapper = GTSWrapperHelper.fromGTSEncoderToGTSWrapper(encoder, true, GTSWrapperHelper.DEFAULT_COMP_RATIO_THRESHOLD, 2);
+      
+      TSerializer tserializer = new TSerializer(new TCompactProtocol.Factory());
+      
+      try {
+        byte[] serialized = tserializer.serialize(wrapper);
 
-              continue;
-            }
-            
-            GTSDecoder decoder = encoder.getDecoder();
-                      
-            boolean first = true;
-                        
-            double rate = getSampleRate(entry.getKey());
-            
-            long budget = maxmessagesize;
-            
-            //
-            // Reset StringBuilder
-            //
-            
-            sb.setLength(0);
-            
-            while(decoder.next()) {
-              
-              if (1.0D != rate && random.nextDouble() > rate) {
-                continue;
-              }
-              
-              if (OUTPUT_FORMAT.JSON.equals(format)) {
-                Map<String,Object> json = new HashMap<String,Object>();
-                    
-                HashMap<String,String> labels = new HashMap<String,String>();
+        sb.append(new String(OrderPreservingBase64.encode(serialized), StandardCharsets.US_ASCII));
+        
+        messages.add(sb.toString());
+      } catch (TException te) {
+        // Oh well, skip it!
+      }
 
-                json.put("c", metadata.getName());
-                
-                labels.putAll(metadata.getLabels());
-                
-                //
-                // Remove PRODUCER/OWNER
-                //
-                
-                if (!Constants.EXPOSE_OWNER_PRODUCER && !exposeOwnerProducer) {
-                  labels.remove(Constants.PRODUCER_LABEL);
-                  labels.remove(Constants.OWNER_LABEL);
-                }
-                
-                json.put("l", labels);              
-                
-                json.put("t", decoder.getTimestamp());
-                // Requested format is JSON so we do not use getBinaryValue as JSON cannot represent byte arrays
-                json.put("v", decoder.getValue());
-                if (GeoTimeSerie.NO_LOCATION != decoder.getLocation()) {
-                  double[] latlon = GeoXPLib.fromGeoXPPoint(decoder.getLocation());
-                  json.put("lat", latlon[0]);
-                  json.put("lon", latlon[1]);
-                }
-                if (GeoTimeSerie.NO_ELEVATION != decoder.getElevation()) {
-                  json.put("elev", decoder.getElevation());
-                }
-                
-                if (first) {
-                  sb.append("[");
-                } else {
-                  sb.append(",");                
-                }
-                sb.append(JsonUtils.objectToJson(json));
-                
-                first = false;
-              } else {
-                
-                if (!first && OUTPUT_FORMAT.TEXT.equals(format)) {
-                  sb.append("=");
-                }
-                
-                sb.append(decoder.getTimestamp());
-                sb.append("/");
-                if (GeoTimeSerie.NO_LOCATION != decoder.getLocation()) {
-                  double[] latlon = GeoXPLib.fromGeoXPPoint(decoder.getLocation());
-                  sb.append(latlon[0]);
-                  sb.append(":");
-                  sb.append(latlon[1]);
-                }
-                sb.append("/");
-                if (GeoTimeSerie.NO_ELEVATION != decoder.getElevation()) {
-                  sb.append(decoder.getElevation());
-                }
-                sb.append(" ");
-                if (first || !OUTPUT_FORMAT.TEXT.equals(format)) {
-                  sb.append(curmetasb);
-                  sb.append(" ");
-                }
-                GTSHelper.encodeValue(sb, decoder.getBinaryValue());
-                sb.append("\n");
-                first = false;
-              }
-              
-              //
-              // If we've reached 90% of the max message size, flush the current message
-              // FIXME(hbs): we really should check beforehand that we will not overflow the buffer.
-              // With specially crafted content (String values) we could overflow the message size.
-              // Given we're in a try/catch we would simply ignore the message, but still...
-              //
+      return messages;
+    }
+    
+    String curmeta = subscription.getMeta(exposeOwnerProducer);
+    
+    GTSDecoder decoder = encoder.getDecoder();
               
-              if (sb.length() > 0.9 * maxmessagesize) {
-                if (OUTPUT_FORMAT.JSON.equals(format) && sb.length() > 0) {
-                  sb.append("]");
-                }
-
-                entry.getKey().getRemote().sendStringByFuture(sb.toString());
-                sb.setLength(0);
-                first = true;
-              }
-            }
+    boolean first = true;
+    
+    while(decoder.next()) {
+      
+      if (1.0D != rate && random.nextDouble() > rate) {
+        continue;
+      }
+      
+      if (OUTPUT_FORMAT.JSON.equals(format)) {
+        Map<String,Object> json = new HashMap<String,Object>();
             
-            if (OUTPUT_FORMAT.JSON.equals(format) && sb.length() > 0) {
-              sb.append("]");
-            }
+        HashMap<String,String> labels = new HashMap<String,String>();
 
-            if (sb.length() > 0) {
-              entry.getKey().getRemote().sendStringByFuture(sb.toString());
-              sb.setLength(0);              
-            }
-            
-            refcount--;
-            
-            if (0 == refcount) {
-              break;
-            }
-          }          
-        } catch (WebSocketException wse) {          
+        json.put("c", metadata.getName());
+        
+        labels.putAll(metadata.getLabels());
+        
+        //
+        // Remove PRODUCER/OWNER
+        //
+        
+        if (!Constants.EXPOSE_OWNER_PRODUCER && !exposeOwnerProducer) {
+          labels.remove(Constants.PRODUCER_LABEL);
+          labels.remove(Constants.OWNER_LABEL);
         }
-      }      
+        
+        json.put("l", labels);              
+        
+        json.put("t", decoder.getTimestamp());
+        // Requested format is JSON so we do not use getBinaryValue as JSON cannot represent byte arrays
+        json.put("v", decoder.getValue());
+        if (GeoTimeSerie.NO_LOCATION != decoder.getLocation()) {
+          double[] latlon = GeoXPLib.fromGeoXPPoint(decoder.getLocation());
+          json.put("lat", latlon[0]);
+          json.put("lon", latlon[1]);
+        }
+        if (GeoTimeSerie.NO_ELEVATION != decoder.getElevation()) {
+          json.put("elev", decoder.getElevation());
+        }
+        
+        if (first) {
+          sb.append("[");
+        } else {
+          sb.append(",");                
+        }
+        sb.append(JsonUtils.objectToJson(json));
+        
+        first = false;
+      } else {
+        
+        if (!first && OUTPUT_FORMAT.TEXT.equals(format)) {
+          sb.append("=");
+        }
+        
+        sb.append(decoder.getTimestamp());
+        sb.append("/");
+        if (GeoTimeSerie.NO_LOCATION != decoder.getLocation()) {
+          double[] latlon = GeoXPLib.fromGeoXPPoint(decoder.getLocation());
+          sb.append(latlon[0]);
+          sb.append(":");
+          sb.append(latlon[1]);
+        }
+        sb.append("/");
+        if (GeoTimeSerie.NO_ELEVATION != decoder.getElevation()) {
+          sb.append(decoder.getElevation());
+        }
+        sb.append(" ");
+        if (first || !OUTPUT_FORMAT.TEXT.equals(format)) {
+          sb.append(curmeta);
+          sb.append(" ");
+        }
+        GTSHelper.encodeValue(sb, decoder.getBinaryValue());
+        sb.append("\n");
+        first = false;
+      }
+      
+      //
+      // If we've reached 90% of the max message size, flush the current message
+      // FIXME(hbs): we really should check beforehand that we will not overflow the buffer.
+      // With specially crafted content (String values) we could overflow the message size.
+      // Given we're in a try/catch we would simply ignore the message, but still...
+      //
+      
+      if (sb.length() > 0.9 * maxmessagesize) {
+        if (OUTPUT_FORMAT.JSON.equals(format) && sb.length() > 0) {
+          sb.append("]");
+        }
+
+        messages.add(sb.toString());
+        sb.setLength(0);
+        first = true;
+      }
     }
     
-    nano = System.nanoTime() - nano;
+    if (OUTPUT_FORMAT.JSON.equals(format) && sb.length() > 0) {
+      sb.append("]");
+    }
+
+    if (sb.length() > 0) {
+      messages.add(sb.toString());
+    }
     
-    Sensision.update(SensisionConstants.SENSISION_CLASS_PLASMA_FRONTEND_DISPATCH_TIME_US, Sensision.EMPTY_LABELS, nano/1000L);
+    return messages;
   }
   
   /**
@@ -833,10 +1030,17 @@ public class StandalonePlasmaHandler extends WebSocketHandler.Simple implements
   public Set<BigInteger> getSubscriptions() {
     Set<BigInteger> ids = new HashSet<BigInteger>();
     
-    Collection<Set<BigInteger>> subs = this.subscriptions.values();
+    Collection<ConcurrentGTSIdMap<Boolean>> subs = this.subscriptions.values();
+    
+    // 128BITS
+    byte[] bytes = new byte[16];
     
-    for (Set<BigInteger> sub: subs) {
-      ids.addAll(sub);
+    for (ConcurrentGTSIdMap<Boolean> sub: subs) {
+      long[] subids = sub.ids();
+      for (int i = 0; i < subids.length; i += 2) {
+        GTSHelper.fillGTSIds(bytes, 0, subids[i], subids[i + 1]);
+        ids.add(new BigInteger(bytes));
+      }
     }
     
     return ids;
@@ -855,11 +1059,7 @@ public class StandalonePlasmaHandler extends WebSocketHandler.Simple implements
   }
   
   private OUTPUT_FORMAT getOutputFormat(Session session) {
-    if (this.outputFormat.containsKey(session)) {
-      return this.outputFormat.get(session);
-    } else {
-      return OUTPUT_FORMAT.TEXT;
-    }
+    return this.outputFormat.getOrDefault(session, OUTPUT_FORMAT.TEXT);
   }
   
   private synchronized void setOutputFormat(Session session, OUTPUT_FORMAT format) {
@@ -870,34 +1070,36 @@ public class StandalonePlasmaHandler extends WebSocketHandler.Simple implements
     this.sampleRate.put(session, Double.doubleToLongBits(rate));
   }
   
-  private synchronized double getSampleRate(Session session) {
-    if (!this.sampleRate.containsKey(session)) {
+  /**
+   * Called for each session when dispatching, the map is read without locking the handler
+   */
+  private double getSampleRate(Session session) {
+    Long rate = this.sampleRate.get(session);
+    
+    if (null == rate) {
       return 1.0D;
     } else {
-      return Double.longBitsToDouble(this.sampleRate.get(session));
+      return Double.longBitsToDouble(rate);
     }
   }
   
   @Override
   public void run() {
+    dispatch(this.encoders[0]);
+  }
+  
+  /**
+   * Dispatch the encoders of a queue, endlessly
+   */
+  private void dispatch(LinkedBlockingQueue<GTSEncoder> queue) {
     while (true) {
       try {
-        GTSEncoder encoder = this.encoders.poll(Long.MAX_VALUE, TimeUnit.DAYS);
+        GTSEncoder encoder = queue.poll(Long.MAX_VALUE, TimeUnit.DAYS);
         
         if (null == encoder) {
           continue;
         }
 
-        // TODO(hbs): have several threads actually do the dispatch so we
-        // speed things up? We might need to synchronize things so encoders are
-        // pushed in the order they arrived to every client. For this we can dispatch
-        // encoders using a partitioning scheme based on a modulus of the classId and/or labelsId
-        // so encoders for the same GTS will be delivered by the same thread, but this would cause
-        // heavily subscribed GTS to be served by a single Thread, which may cause performance
-        // problems
-        //
-        // Or use 'Disruptor' or 'Chronicle' or 'BigQueue' from the HFT world?
-        
         dispatch(encoder);
       } catch (IOException ioe) {
         // FIXME(hbs): sensision metric
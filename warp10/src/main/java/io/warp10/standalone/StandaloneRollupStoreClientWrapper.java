@@ -0,0 +1,969 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.standalone;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.Configuration;
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
+import io.warp10.continuum.sensision.SensisionConstants;
+import io.warp10.continuum.store.GTSDecoderIterator;
+import io.warp10.continuum.store.StoreClient;
+import io.warp10.continuum.store.thrift.data.FetchBucketization;
+import io.warp10.continuum.store.thrift.data.FetchBucketizer;
+import io.warp10.continuum.store.thrift.data.FetchRequest;
+import io.warp10.continuum.store.thrift.data.Metadata;
+import io.warp10.crypto.KeyStore;
+import io.warp10.crypto.SipHashInline;
+import io.warp10.quasar.token.thrift.data.WriteToken;
+import io.warp10.sensision.Sensision;
+
+/**
+ * StoreClient maintaining rollup series for the numeric Geo Time Series it stores.
+ *
+ * For each configured bucket span, the datapoints of a GTS are summarized per bucket (count, sum, min, max,
+ * first and last values) in a derived series stored alongside the raw data. The derived series has the labels
+ * of the original one and a class name starting with a reserved prefix, it is never registered in the Directory.
+ * Each bucket is stored as a single binary value at the end timestamp of the bucket.
+ *
+ * Bucketized fetch requests which allow it are served from the coarsest rollup whose buckets align with the
+ * requested ones, only the rollup buckets are then read.
+ *
+ * Rollups assume datapoints are not overwritten, a value stored again at an existing timestamp is accounted for twice,
+ * FETCH should therefore not read the rollups of series whose datapoints are overwritten.
+ *
+ * The underlying store batches the writes of each thread until it is called with a null encoder. Buckets updated
+ * by a thread are kept in memory until then, only buckets whose updates were all flushed are evicted from the cache
+ * and read back from the store.
+ */
+public class StandaloneRollupStoreClientWrapper implements StoreClient {
+
+  /**
+   * Prefix of the class names of the rollup series, the NUL character cannot appear in names ingested via /update
+   */
+  private static final String ROLLUP_PREFIX = "\u0000rollup.";
+
+  private static final int BATCH_SIZE = 1024;
+
+  /**
+   * Number of locks used to serialize the updates of the rollups of a GTS
+   */
+  private static final int STRIPES = 256;
+
+  private final StoreClient client;
+
+  /**
+   * Bucket spans of the rollups, in increasing order
+   */
+  private final long[] spans;
+
+  private final long[] classKeyLongs;
+  private final long[] labelsKeyLongs;
+
+  private final Object[] locks = new Object[STRIPES];
+
+  /**
+   * LRU cache of the most recently updated rollup buckets, keyed by class id, labels id and bucket end
+   */
+  private final Map<ByteBuffer,Rollup> cache;
+
+  /**
+   * Buckets with updates not yet flushed by the underlying store, they are never evicted. Accesses
+   * are synchronized on 'cache'.
+   */
+  private final Map<ByteBuffer,Rollup> dirty = new HashMap<ByteBuffer,Rollup>();
+
+  /**
+   * Buckets updated by the current thread since its writes were last flushed
+   */
+  private final ThreadLocal<Map<Rollup,ByteBuffer>> unflushed = new ThreadLocal<Map<Rollup,ByteBuffer>>() {
+    @Override
+    protected Map<Rollup,ByteBuffer> initialValue() {
+      return new IdentityHashMap<Rollup,ByteBuffer>();
+    }
+  };
+
+  public StandaloneRollupStoreClientWrapper(KeyStore keystore, StoreClient client) {
+    this(keystore, client, WarpConfig.getProperty(Configuration.STANDALONE_ROLLUPS, ""),
+        Integer.parseInt(WarpConfig.getProperty(Configuration.STANDALONE_ROLLUPS_CACHE_SIZE, "100000")));
+  }
+
+  StandaloneRollupStoreClientWrapper(KeyStore keystore, StoreClient client, String rollups, final int cacheSize) {
+    this.client = client;
+
+    this.classKeyLongs = SipHashInline.getKey(keystore.getKey(KeyStore.SIPHASH_CLASS));
+    this.labelsKeyLongs = SipHashInline.getKey(keystore.getKey(KeyStore.SIPHASH_LABELS));
+
+    String[] tokens = rollups.split(",");
+
+    long[] spans = new long[tokens.length];
+    int n = 0;
+
+    for (String token: tokens) {
+      if ("".equals(token.trim())) {
+        continue;
+      }
+
+      long span = Long.parseLong(token.trim());
+
+      if (span <= 0L) {
+        throw new RuntimeException("Invalid rollup bucket span " + span + " in '" + Configuration.STANDALONE_ROLLUPS + "'.");
+      }
+
+      spans[n++] = span;
+    }
+
+    if (0 == n) {
+      throw new RuntimeException("No rollup bucket span defined in '" + Configuration.STANDALONE_ROLLUPS + "'.");
+    }
+
+    spans = Arrays.copyOf(spans, n);
+    Arrays.sort(spans);
+    this.spans = spans;
+
+    for (int i = 0; i < STRIPES; i++) {
+      this.locks[i] = new Object();
+    }
+
+    this.cache = new LinkedHashMap<ByteBuffer,Rollup>(16, 0.75F, true) {
+      @Override
+      protected boolean removeEldestEntry(Entry<ByteBuffer,Rollup> eldest) {
+        return size() > cacheSize;
+      }
+    };
+  }
+
+  @Override
+  public void addPlasmaHandler(StandalonePlasmaHandlerInterface handler) {
+    this.client.addPlasmaHandler(handler);
+  }
+
+  @Override
+  public void store(GTSEncoder encoder) throws IOException {
+    this.client.store(encoder);
+
+    if (null == encoder) {
+      flushed();
+      return;
+    }
+
+    if (0 == encoder.size()) {
+      return;
+    }
+
+    //
+    // Summarize the datapoints of the encoder per rollup bucket
+    //
+
+    List<Map<Long,Rollup>> updates = new ArrayList<Map<Long,Rollup>>(this.spans.length);
+
+    for (int i = 0; i < this.spans.length; i++) {
+      updates.add(new HashMap<Long,Rollup>());
+    }
+
+    long[] ticks = new long[BATCH_SIZE];
+    long[] locations = new long[BATCH_SIZE];
+    long[] elevations = new long[BATCH_SIZE];
+    long[] longs = new long[BATCH_SIZE];
+    double[] doubles = new double[BATCH_SIZE];
+    boolean[] booleans = new boolean[BATCH_SIZE];
+    String[] strings = new String[BATCH_SIZE];
+
+    GTSDecoder decoder = encoder.getDecoder();
+
+    boolean numeric = false;
+    int n;
+
+    while ((n = decoder.next(ticks, locations, elevations, longs, doubles, null, booleans, strings, 0, BATCH_SIZE)) > 0) {
+      TYPE type = decoder.getType();
+
+      // Only numeric values are rolled up
+      if (TYPE.LONG != type && TYPE.DOUBLE != type) {
+        continue;
+      }
+
+      numeric = true;
+
+      for (int s = 0; s < this.spans.length; s++) {
+        Map<Long,Rollup> buckets = updates.get(s);
+
+        for (int i = 0; i < n; i++) {
+          Long bucket = bucketEnd(ticks[i], this.spans[s]);
+          Rollup rollup = buckets.get(bucket);
+
+          if (null == rollup) {
+            rollup = new Rollup();
+            buckets.put(bucket, rollup);
+          }
+
+          if (TYPE.LONG == type) {
+            rollup.add(ticks[i], longs[i]);
+          } else {
+            rollup.add(ticks[i], doubles[i]);
+          }
+        }
+      }
+    }
+
+    if (!numeric) {
+      return;
+    }
+
+    //
+    // Merge the summaries into the existing rollup buckets
+    //
+
+    Metadata metadata = encoder.getMetadata();
+
+    long updated = 0L;
+    long misses = 0L;
+
+    Map<Rollup,ByteBuffer> unflushed = this.unflushed.get();
+
+    synchronized (lock(encoder.getClassId(), encoder.getLabelsId())) {
+      for (int s = 0; s < this.spans.length; s++) {
+        Metadata rollupMetadata = rollupMetadata(metadata, encoder.getLabelsId(), this.spans[s]);
+
+        GTSEncoder rollupEncoder = new GTSEncoder(0L);
+        rollupEncoder.setMetadata(rollupMetadata);
+
+        for (Entry<Long,Rollup> entry: updates.get(s).entrySet()) {
+          long bucket = entry.getKey();
+          ByteBuffer key = key(rollupMetadata, bucket);
+
+          Rollup rollup;
+
+          synchronized (this.cache) {
+            rollup = this.dirty.get(key);
+            if (null == rollup) {
+              rollup = this.cache.get(key);
+            }
+          }
+
+          if (null == rollup) {
+            rollup = read(rollupMetadata, bucket);
+            misses++;
+          }
+
+          rollup.merge(entry.getValue());
+          rollupEncoder.addValue(bucket, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, rollup.toBytes());
+
+          synchronized (this.cache) {
+            this.cache.put(key, rollup);
+            this.dirty.put(key, rollup);
+
+            if (null == unflushed.put(rollup, key)) {
+              rollup.writers++;
+            }
+          }
+
+          updated++;
+        }
+
+        this.client.store(rollupEncoder);
+      }
+    }
+
+    Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_STANDALONE_ROLLUPS_UPDATES, Sensision.EMPTY_LABELS, updated);
+
+    if (misses > 0) {
+      Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_STANDALONE_ROLLUPS_CACHE_MISSES, Sensision.EMPTY_LABELS, misses);
+    }
+  }
+
+  @Override
+  public long delete(WriteToken token, Metadata metadata, long start, long end) throws IOException {
+    // 128BITS
+    long classId = GTSHelper.classId(this.classKeyLongs, metadata.getName());
+    long labelsId = GTSHelper.labelsId(this.labelsKeyLongs, metadata.getLabels());
+
+    synchronized (lock(classId, labelsId)) {
+      long deleted = this.client.delete(token, metadata, start, end);
+
+      for (long span: this.spans) {
+        Metadata rollupMetadata = rollupMetadata(metadata, labelsId, span);
+
+        long first = bucketEnd(start, span);
+        long last = bucketEnd(end, span);
+
+        this.client.delete(token, new Metadata(rollupMetadata), first, last);
+
+        // Buckets with unflushed updates still account for the deleted datapoints
+        synchronized (this.cache) {
+          Iterator<ByteBuffer> iter = this.dirty.keySet().iterator();
+
+          while (iter.hasNext()) {
+            ByteBuffer key = iter.next();
+            long bucket = key.getLong(16);
+
+            if (key.getLong(0) == rollupMetadata.getClassId() && key.getLong(8) == labelsId && bucket >= first && bucket <= last) {
+              iter.remove();
+            }
+          }
+        }
+
+        //
+        // Buckets partially covered by the deleted range are rebuilt from the remaining datapoints
+        //
+
+        Metadata raw = new Metadata(metadata);
+        raw.setClassId(classId);
+        raw.setLabelsId(labelsId);
+
+        boolean partialFirst = Long.MIN_VALUE != start && 0L != Math.floorMod(start - 1L, span);
+        boolean partialLast = last != end;
+
+        if (partialFirst) {
+          rebuild(raw, rollupMetadata, span, first);
+        }
+
+        if (partialLast && (last != first || !partialFirst)) {
+          rebuild(raw, rollupMetadata, span, last);
+        }
+      }
+
+      // The deleted range may span many buckets, simply invalidate all cached buckets
+      synchronized (this.cache) {
+        this.cache.clear();
+      }
+
+      // Flush the rebuilt buckets so they are read back by the next updates
+      store(null);
+
+      return deleted;
+    }
+  }
+
+  @Override
+  public GTSDecoderIterator fetch(FetchRequest req) throws IOException {
+    long span = rollupSpan(req);
+
+    if (0L == span) {
+      return this.client.fetch(req);
+    }
+
+    //
+    // Read the rollup series of the requested GTS instead of their datapoints
+    //
+
+    List<Metadata> rollupMetadatas = new ArrayList<Metadata>(req.getMetadatasSize());
+    Map<ByteBuffer,Metadata> originals = new HashMap<ByteBuffer,Metadata>();
+
+    for (Metadata metadata: req.getMetadatas()) {
+      Metadata rollupMetadata = rollupMetadata(metadata, metadata.getLabelsId(), span);
+      rollupMetadatas.add(rollupMetadata);
+      originals.put(key(rollupMetadata, 0L), metadata);
+    }
+
+    FetchRequest rollupReq = new FetchRequest(req);
+    rollupReq.setMetadatas(rollupMetadatas);
+    rollupReq.unsetBucketization();
+
+    Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_STANDALONE_ROLLUPS_FETCHES, Sensision.EMPTY_LABELS, 1);
+
+    return new RollupGTSDecoderIterator(this.client.fetch(rollupReq), req.getBucketization(), originals);
+  }
+
+  /**
+   * Return the span of the coarsest rollup which can serve a fetch request, 0 if none can
+   */
+  long rollupSpan(FetchRequest req) {
+    if (!req.isSetBucketization() || !req.getBucketization().isRollups()) {
+      return 0L;
+    }
+
+    if (-1L != req.getCount() || req.getSkip() > 0L || req.getStep() > 1L || req.getTimestep() > 1L || req.getSample() < 1.0D
+        || req.isWriteTimestamp() || req.isTTL() || req.getPreBoundary() > 0L || req.getPostBoundary() > 0L) {
+      return 0L;
+    }
+
+    FetchBucketization bucketization = req.getBucketization();
+
+    for (int i = this.spans.length - 1; i >= 0; i--) {
+      long span = this.spans[i];
+
+      // The requested buckets and the fetched range must be made of complete rollup buckets
+      if (0L != bucketization.getBucketspan() % span || 0L != Math.floorMod(bucketization.getLastbucket(), span)) {
+        continue;
+      }
+
+      if (0L != Math.floorMod(req.getNow(), span)) {
+        continue;
+      }
+
+      if (Long.MIN_VALUE != req.getThents() && 0L != Math.floorMod(req.getThents() - 1L, span)) {
+        continue;
+      }
+
+      return span;
+    }
+
+    return 0L;
+  }
+
+  /**
+   * Compute the end of the rollup bucket containing a timestamp
+   */
+  static long bucketEnd(long tick, long span) {
+    long mod = Math.floorMod(tick, span);
+
+    if (0L == mod) {
+      return tick;
+    }
+
+    long delta = span - mod;
+
+    return tick > Long.MAX_VALUE - delta ? Long.MAX_VALUE : tick + delta;
+  }
+
+  /**
+   * Release the buckets updated by the current thread once the underlying store flushed its writes
+   */
+  private void flushed() {
+    Map<Rollup,ByteBuffer> unflushed = this.unflushed.get();
+
+    if (unflushed.isEmpty()) {
+      return;
+    }
+
+    synchronized (this.cache) {
+      for (Entry<Rollup,ByteBuffer> entry: unflushed.entrySet()) {
+        Rollup rollup = entry.getKey();
+        rollup.writers--;
+
+        if (0 == rollup.writers && rollup == this.dirty.get(entry.getValue())) {
+          this.dirty.remove(entry.getValue());
+        }
+      }
+    }
+
+    unflushed.clear();
+  }
+
+  private Object lock(long classId, long labelsId) {
+    return this.locks[(int) ((classId ^ labelsId) & (STRIPES - 1))];
+  }
+
+  private Metadata rollupMetadata(Metadata metadata, long labelsId, long span) {
+    Metadata rollupMetadata = new Metadata();
+    rollupMetadata.setName(ROLLUP_PREFIX + span + "." + metadata.getName());
+    rollupMetadata.setLabels(metadata.getLabels());
+    // 128BITS
+    rollupMetadata.setClassId(GTSHelper.classId(this.classKeyLongs, rollupMetadata.getName()));
+    rollupMetadata.setLabelsId(labelsId);
+    return rollupMetadata;
+  }
+
+  private static ByteBuffer key(Metadata metadata, long bucket) {
+    ByteBuffer bb = ByteBuffer.allocate(24).order(ByteOrder.BIG_ENDIAN);
+    bb.putLong(metadata.getClassId());
+    bb.putLong(metadata.getLabelsId());
+    bb.putLong(bucket);
+    bb.rewind();
+    return bb;
+  }
+
+  /**
+   * Read a rollup bucket from the store
+   */
+  private Rollup read(Metadata rollupMetadata, long bucket) throws IOException {
+    FetchRequest req = new FetchRequest();
+    req.setMetadatas(Collections.singletonList(rollupMetadata));
+    req.setNow(bucket);
+    req.setThents(bucket);
+    req.setCount(-1L);
+
+    Rollup rollup = new Rollup();
+
+    GTSDecoderIterator iter = this.client.fetch(req);
+
+    try {
+      while (iter.hasNext()) {
+        GTSDecoder decoder = iter.next();
+
+        while (decoder.next()) {
+          Rollup stored = Rollup.fromValue(decoder.getBinaryValue());
+
+          // Several versions of a bucket may be returned until blocks are merged, the most complete one prevails
+          if (null != stored && stored.count > rollup.count) {
+            rollup = stored;
+          }
+        }
+      }
+    } finally {
+      try {
+        iter.close();
+      } catch (Exception e) {
+        throw new IOException(e);
+      }
+    }
+
+    return rollup;
+  }
+
+  /**
+   * Recompute a rollup bucket from the datapoints of the original GTS
+   */
+  private void rebuild(Metadata metadata, Metadata rollupMetadata, long span, long bucket) throws IOException {
+    FetchRequest req = new FetchRequest();
+    req.setMetadatas(Collections.singletonList(metadata));
+    req.setNow(bucket);
+    req.setThents(bucket - span + 1L);
+    req.setCount(-1L);
+
+    Rollup rollup = new Rollup();
+
+    GTSDecoderIterator iter = this.client.fetch(req);
+
+    try {
+      while (iter.hasNext()) {
+        GTSDecoder decoder = iter.next();
+
+        while (decoder.next()) {
+          Object value = decoder.getValue();
+
+          if (value instanceof Long) {
+            rollup.add(decoder.getTimestamp(), ((Long) value).longValue());
+          } else if (value instanceof Double) {
+            rollup.add(decoder.getTimestamp(), ((Double) value).doubleValue());
+          }
+        }
+      }
+    } finally {
+      try {
+        iter.close();
+      } catch (Exception e) {
+        throw new IOException(e);
+      }
+    }
+
+    if (0L == rollup.count) {
+      return;
+    }
+
+    GTSEncoder encoder = new GTSEncoder(0L);
+    encoder.setMetadata(rollupMetadata);
+    encoder.addValue(bucket, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, rollup.toBytes());
+    this.client.store(encoder);
+  }
+
+  /**
+   * Summary of the numeric values of a bucket.
+   *
+   * Values are kept as LONGs until a DOUBLE is added, they are then all considered as DOUBLEs.
+   */
+  static final class Rollup {
+    private static final int SIZE = 1 + 8 * 8;
+
+    boolean doubles = false;
+    long count = 0L;
+
+    /**
+     * Number of threads with unflushed updates of the bucket, guarded by the cache of the wrapper
+     */
+    int writers = 0;
+
+    long firstTick = Long.MAX_VALUE;
+    long lastTick = Long.MIN_VALUE;
+
+    long lsum;
+    long lmin;
+    long lmax;
+    long lfirst;
+    long llast;
+
+    double dsum;
+    double dmin;
+    double dmax;
+    double dfirst;
+    double dlast;
+
+    void add(long tick, long value) {
+      if (this.doubles) {
+        add(tick, (double) value);
+        return;
+      }
+
+      if (0L == this.count) {
+        this.lsum = value;
+        this.lmin = value;
+        this.lmax = value;
+      } else {
+        this.lsum += value;
+        this.lmin = Math.min(this.lmin, value);
+        this.lmax = Math.max(this.lmax, value);
+      }
+
+      if (0L == this.count || tick < this.firstTick) {
+        this.firstTick = tick;
+        this.lfirst = value;
+      }
+
+      if (0L == this.count || tick > this.lastTick) {
+        this.lastTick = tick;
+        this.llast = value;
+      }
+
+      this.count++;
+    }
+
+    void add(long tick, double value) {
+      promote();
+
+      if (0L == this.count) {
+        this.dsum = value;
+        this.dmin = value;
+        this.dmax = value;
+      } else {
+        this.dsum += value;
+        if (Double.compare(value, this.dmin) < 0) {
+          this.dmin = value;
+        }
+        if (Double.compare(value, this.dmax) > 0) {
+          this.dmax = value;
+        }
+      }
+
+      if (0L == this.count || tick < this.firstTick) {
+        this.firstTick = tick;
+        this.dfirst = value;
+      }
+
+      if (0L == this.count || tick > this.lastTick) {
+        this.lastTick = tick;
+        this.dlast = value;
+      }
+
+      this.count++;
+    }
+
+    /**
+     * Convert the values to DOUBLEs
+     */
+    private void promote() {
+      if (this.doubles) {
+        return;
+      }
+
+      this.dsum = (double) this.lsum;
+      this.dmin = (double) this.lmin;
+      this.dmax = (double) this.lmax;
+      this.dfirst = (double) this.lfirst;
+      this.dlast = (double) this.llast;
+      this.doubles = true;
+    }
+
+    void merge(Rollup other) {
+      if (0L == other.count) {
+        return;
+      }
+
+      if (other.doubles != this.doubles) {
+        if (!this.doubles) {
+          promote();
+        } else {
+          other = fromBytes(other.toBytes());
+          other.promote();
+        }
+      }
+
+      if (0L == this.count) {
+        this.doubles = other.doubles;
+        this.count = other.count;
+        this.firstTick = other.firstTick;
+        this.lastTick = other.lastTick;
+        this.lsum = other.lsum;
+        this.lmin = other.lmin;
+        this.lmax = other.lmax;
+        this.lfirst = other.lfirst;
+        this.llast = other.llast;
+        this.dsum = other.dsum;
+        this.dmin = other.dmin;
+        this.dmax = other.dmax;
+        this.dfirst = other.dfirst;
+        this.dlast = other.dlast;
+        return;
+      }
+
+      if (this.doubles) {
+        this.dsum += other.dsum;
+        if (Double.compare(other.dmin, this.dmin) < 0) {
+          this.dmin = other.dmin;
+        }
+        if (Double.compare(other.dmax, this.dmax) > 0) {
+          this.dmax = other.dmax;
+        }
+      } else {
+        this.lsum += other.lsum;
+        this.lmin = Math.min(this.lmin, other.lmin);
+        this.lmax = Math.max(this.lmax, other.lmax);
+      }
+
+      if (other.firstTick < this.firstTick) {
+        this.firstTick = other.firstTick;
+        this.lfirst = other.lfirst;
+        this.dfirst = other.dfirst;
+      }
+
+      if (other.lastTick > this.lastTick) {
+        this.lastTick = other.lastTick;
+        this.llast = other.llast;
+        this.dlast = other.dlast;
+      }
+
+      this.count += other.count;
+    }
+
+    /**
+     * Return the value a bucketizer produces for the bucket
+     */
+    Object value(FetchBucketizer bucketizer) {
+      switch (bucketizer) {
+        case COUNT:
+          return this.count;
+        case SUM:
+          return this.doubles ? (Object) this.dsum : (Object) this.lsum;
+        case MIN:
+          return this.doubles ? (Object) this.dmin : (Object) this.lmin;
+        case MAX:
+          return this.doubles ? (Object) this.dmax : (Object) this.lmax;
+        case FIRST:
+          return this.doubles ? (Object) this.dfirst : (Object) this.lfirst;
+        case LAST:
+          return this.doubles ? (Object) this.dlast : (Object) this.llast;
+        case MEAN:
+          return (this.doubles ? this.dsum : (double) this.lsum) / this.count;
+        default:
+          return null;
+      }
+    }
+
+    byte[] toBytes() {
+      ByteBuffer bb = ByteBuffer.allocate(SIZE).order(ByteOrder.BIG_ENDIAN);
+      bb.put((byte) (this.doubles ? 1 : 0));
+      bb.putLong(this.count);
+      bb.putLong(this.firstTick);
+      bb.putLong(this.lastTick);
+
+      if (this.doubles) {
+        bb.putLong(Double.doubleToRawLongBits(this.dsum));
+        bb.putLong(Double.doubleToRawLongBits(this.dmin));
+        bb.putLong(Double.doubleToRawLongBits(this.dmax));
+        bb.putLong(Double.doubleToRawLongBits(this.dfirst));
+        bb.putLong(Double.doubleToRawLongBits(this.dlast));
+      } else {
+        bb.putLong(this.lsum);
+        bb.putLong(this.lmin);
+        bb.putLong(this.lmax);
+        bb.putLong(this.lfirst);
+        bb.putLong(this.llast);
+      }
+
+      return bb.array();
+    }
+
+    static Rollup fromBytes(byte[] bytes) {
+      if (null == bytes || SIZE != bytes.length) {
+        return null;
+      }
+
+      ByteBuffer bb = ByteBuffer.wrap(bytes).order(ByteOrder.BIG_ENDIAN);
+
+      Rollup rollup = new Rollup();
+      rollup.doubles = 0 != bb.get();
+      rollup.count = bb.getLong();
+      rollup.firstTick = bb.getLong();
+      rollup.lastTick = bb.getLong();
+
+      if (rollup.doubles) {
+        rollup.dsum = Double.longBitsToDouble(bb.getLong());
+        rollup.dmin = Double.longBitsToDouble(bb.getLong());
+        rollup.dmax = Double.longBitsToDouble(bb.getLong());
+        rollup.dfirst = Double.longBitsToDouble(bb.getLong());
+        rollup.dlast = Double.longBitsToDouble(bb.getLong());
+      } else {
+        rollup.lsum = bb.getLong();
+        rollup.lmin = bb.getLong();
+        rollup.lmax = bb.getLong();
+        rollup.lfirst = bb.getLong();
+        rollup.llast = bb.getLong();
+      }
+
+      return rollup;
+    }
+
+    /**
+     * Decode a value read from a rollup series, binary values may be returned as ISO-8859-1 strings
+     */
+    static Rollup fromValue(Object value) {
+      if (value instanceof byte[]) {
+        return fromBytes((byte[]) value);
+      } else if (value instanceof String) {
+        return fromBytes(((String) value).getBytes(StandardCharsets.ISO_8859_1));
+      }
+      return null;
+    }
+  }
+
+  /**
+   * GTSDecoderIterator combining the rollup buckets of each GTS into the requested buckets
+   */
+  private static final class RollupGTSDecoderIterator extends GTSDecoderIterator {
+
+    private final GTSDecoderIterator iterator;
+    private final FetchBucketization bucketization;
+    private final Map<ByteBuffer,Metadata> originals;
+
+    /**
+     * Decoder which was read ahead and belongs to the next GTS
+     */
+    private GTSDecoder pending = null;
+
+    private RollupGTSDecoderIterator(GTSDecoderIterator iterator, FetchBucketization bucketization, Map<ByteBuffer,Metadata> originals) {
+      this.iterator = iterator;
+      this.bucketization = bucketization;
+      this.originals = originals;
+    }
+
+    @Override
+    public boolean isBucketized() {
+      return true;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return null != this.pending || this.iterator.hasNext();
+    }
+
+    @Override
+    public GTSDecoder next() {
+      GTSDecoder decoder = null != this.pending ? this.pending : this.iterator.next();
+      this.pending = null;
+
+      Metadata metadata = decoder.getMetadata();
+
+      //
+      // Collect the rollup buckets of the GTS, keeping the most complete version of each
+      //
+
+      Map<Long,Rollup> rollups = new HashMap<Long,Rollup>();
+
+      while (true) {
+        while (decoder.next()) {
+          Rollup rollup = Rollup.fromValue(decoder.getBinaryValue());
+
+          if (null == rollup) {
+            continue;
+          }
+
+          Rollup current = rollups.get(decoder.getTimestamp());
+
+          if (null == current || rollup.count > current.count) {
+            rollups.put(decoder.getTimestamp(), rollup);
+          }
+        }
+
+        if (!this.iterator.hasNext()) {
+          break;
+        }
+
+        decoder = this.iterator.next();
+
+        if (decoder.getMetadata().getClassId() != metadata.getClassId() || decoder.getMetadata().getLabelsId() != metadata.getLabelsId()) {
+          this.pending = decoder;
+          break;
+        }
+      }
+
+      //
+      // Combine them into the requested buckets
+      //
+
+      long lastbucket = this.bucketization.getLastbucket();
+      long bucketspan = this.bucketization.getBucketspan();
+
+      TreeMap<Long,Rollup> buckets = new TreeMap<Long,Rollup>();
+
+      for (Entry<Long,Rollup> entry: rollups.entrySet()) {
+        long tick = entry.getKey();
+
+        if (tick > lastbucket) {
+          continue;
+        }
+
+        long index = (lastbucket - tick) / bucketspan;
+
+        if (index < 0L || index >= this.bucketization.getBucketcount()) {
+          continue;
+        }
+
+        Long bucket = lastbucket - index * bucketspan;
+        Rollup rollup = buckets.get(bucket);
+
+        if (null == rollup) {
+          rollup = new Rollup();
+          buckets.put(bucket, rollup);
+        }
+
+        rollup.merge(entry.getValue());
+      }
+
+      GTSEncoder encoder = new GTSEncoder(0L);
+      Metadata original = this.originals.get(key(metadata, 0L));
+      encoder.setMetadata(null != original ? original : metadata);
+
+      try {
+        for (Entry<Long,Rollup> entry: buckets.descendingMap().entrySet()) {
+          encoder.addValue(entry.getKey(), GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, entry.getValue().value(this.bucketization.getBucketizer()));
+        }
+      } catch (IOException ioe) {
+        throw new RuntimeException(ioe);
+      }
+
+      return encoder.getDecoder();
+    }
+
+    @Override
+    public void remove() {
+    }
+
+    @Override
+    public void close() throws Exception {
+      this.pending = null;
+      this.iterator.close();
+    }
+  }
+}
@@ -171,6 +171,15 @@ public class StandaloneShardedDirectoryClientWrapper extends StandaloneDirectory
 
     return metadata;
   }
+
+  @Override
+  public Metadata getMetadataById(long classId, long labelsId) {
+    if (null != this.filter && this.filter.exclude(classId, labelsId)) {
+      return null;
+    }
+
+    return this.client.getMetadataById(classId, labelsId);
+  }
   
   @Override
   public void register(Metadata metadata) throws IOException {
@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -27,14 +28,25 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.hadoop.hbase.util.Bytes;
 import org.iq80.leveldb.DBIterator;
 import org.iq80.leveldb.ReadOptions;
 import org.iq80.leveldb.WriteBatch;
 import org.iq80.leveldb.WriteOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import io.warp10.CustomThreadFactory;
 import io.warp10.continuum.Configuration;
 import io.warp10.continuum.Tokens;
 import io.warp10.continuum.gts.GTSDecoder;
@@ -43,6 +55,7 @@ import io.warp10.continuum.gts.GTSHelper;
 import io.warp10.continuum.gts.MetadataIdComparator;
 import io.warp10.continuum.sensision.SensisionConstants;
 import io.warp10.continuum.store.Constants;
+import io.warp10.continuum.store.BucketizingGTSDecoderIterator;
 import io.warp10.continuum.store.GTSDecoderIterator;
 import io.warp10.continuum.store.StoreClient;
 import io.warp10.continuum.store.thrift.data.FetchRequest;
@@ -54,6 +67,8 @@ import io.warp10.sensision.Sensision;
 
 public class StandaloneStoreClient implements StoreClient {
 
+  private static final Logger LOG = LoggerFactory.getLogger(StandaloneStoreClient.class);
+
   /**
    * This determines how often we will perform merges when retrieving
    */
@@ -80,6 +95,53 @@ public class StandaloneStoreClient implements StoreClient {
   private final double syncrate;
   private final int blockcacheThreshold;
 
+  /**
+   * Span of data blocks (in time units), 0 if datapoints are stored individually
+   */
+  private final long blockspan;
+
+  private static final long DEFAULT_BLOCK_COMPACTION_PERIOD = 60000L;
+  private static final int DEFAULT_BLOCK_COMPACTION_MAXPENDING = 1000000;
+
+  private final int blockCompactionMaxPending;
+
+  /**
+   * Sequence number of the last written data block
+   */
+  private final AtomicLong blockSeqno = new AtomicLong(0L);
+
+  /**
+   * Row keys (GTS + bucket end) of the buckets written since the last compaction
+   */
+  private final Set<ByteBuffer> pendingBlocks;
+
+  /**
+   * Lock preventing deletions and block compactions from running concurrently
+   */
+  private final ReentrantLock blockLock = new ReentrantLock();
+
+  private final Thread blockCompactor;
+
+  /**
+   * Pool of the scanners used to fetch large requests in parallel, null if disabled
+   */
+  private final ExecutorService fetchExecutor;
+
+  /**
+   * Maximum number of ranges of a request scanned concurrently
+   */
+  private final int fetchMaxInflight;
+
+  /**
+   * Minimum number of GTS per range
+   */
+  private final int fetchMinGTS;
+
+  /**
+   * Number of decoders buffered per range before its scanner blocks
+   */
+  private final int fetchQueueSize;
+
   public StandaloneStoreClient(WarpDB db, KeyStore keystore, Properties properties) {
     this.db = db;
     this.keystore = keystore;
@@ -92,10 +154,75 @@ public class StandaloneStoreClient implements StoreClient {
 
     syncrate = Math.min(1.0D, Math.max(0.0D, Double.parseDouble(properties.getProperty(Configuration.LEVELDB_DATA_SYNCRATE, "1.0"))));
     syncwrites = 0.0 < syncrate && syncrate < 1.0 ;
+
+    blockspan = Long.parseLong(properties.getProperty(Configuration.LEVELDB_DATA_BLOCKSPAN, "0"));
+
+    if (blockspan < 0L) {
+      throw new RuntimeException("Invalid value for '" + Configuration.LEVELDB_DATA_BLOCKSPAN + "'.");
+    }
+
+    blockCompactionMaxPending = Integer.parseInt(properties.getProperty(Configuration.LEVELDB_DATA_BLOCK_COMPACTION_MAXPENDING, Integer.toString(DEFAULT_BLOCK_COMPACTION_MAXPENDING)));
+    final long compactionPeriod = Long.parseLong(properties.getProperty(Configuration.LEVELDB_DATA_BLOCK_COMPACTION_PERIOD, Long.toString(DEFAULT_BLOCK_COMPACTION_PERIOD)));
+
+    if (blockspan > 0L && compactionPeriod > 0L) {
+      pendingBlocks = Collections.newSetFromMap(new ConcurrentHashMap<ByteBuffer,Boolean>());
+
+      blockCompactor = new Thread() {
+        @Override
+        public void run() {
+          while (true) {
+            LockSupport.parkNanos(compactionPeriod * 1000000L);
+            try {
+              compactPendingBlocks();
+            } catch (Throwable t) {
+              LOG.error("Error while compacting data blocks.", t);
+            }
+          }
+        }
+      };
+
+      blockCompactor.setName("[LevelDB Block Compactor]");
+      blockCompactor.setDaemon(true);
+      blockCompactor.start();
+    } else {
+      pendingBlocks = null;
+      blockCompactor = null;
+    }
+
+    int fetchPoolSize = Integer.parseInt(properties.getProperty(Configuration.LEVELDB_FETCH_PARALLEL_POOLSIZE, "0"));
+    this.fetchMaxInflight = Integer.parseInt(properties.getProperty(Configuration.LEVELDB_FETCH_PARALLEL_MAXINFLIGHTPERREQUEST, "4"));
+    this.fetchMinGTS = Math.max(1, Integer.parseInt(properties.getProperty(Configuration.LEVELDB_FETCH_PARALLEL_MIN_GTS, "64")));
+    this.fetchQueueSize = Integer.parseInt(properties.getProperty(Configuration.LEVELDB_FETCH_PARALLEL_QUEUESIZE, "16"));
+
+    if (fetchPoolSize > 0 && this.fetchMaxInflight > 1) {
+      this.fetchExecutor = new ThreadPoolExecutor(fetchPoolSize, fetchPoolSize, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new CustomThreadFactory("LevelDB Parallel Fetch", null, true, Thread.NORM_PRIORITY));
+    } else {
+      this.fetchExecutor = null;
+    }
   }
 
   @Override
   public GTSDecoderIterator fetch(FetchRequest req) {
+    List<Metadata> metadatas = req.getMetadatas();
+
+    //
+    // Scan large requests with several iterators, each covering a range of the sorted GTS
+    //
+
+    if (null != this.fetchExecutor && metadatas.size() >= 2 * this.fetchMinGTS && !req.isWriteTimestamp()) {
+      Collections.sort(metadatas, MetadataIdComparator.COMPARATOR);
+      return BucketizingGTSDecoderIterator.wrap(req, new StandaloneParallelGTSDecoderIterator(this, req, this.fetchExecutor, this.fetchMaxInflight, this.fetchMinGTS, this.fetchQueueSize));
+    }
+
+    return BucketizingGTSDecoderIterator.wrap(req, scan(req, metadatas.size()));
+  }
+
+  /**
+   * Scan the GTS of a request using a single LevelDB iterator
+   *
+   * @param gts Number of GTS of the complete request, used to decide if the block cache should be filled
+   */
+  GTSDecoderIterator scan(FetchRequest req, int gts) {
     final ReadToken token = req.getToken();
     final List<Metadata> metadatas = req.getMetadatas();
     final long now = req.getNow();
@@ -164,7 +291,7 @@ public class StandaloneStoreClient implements StoreClient {
     ReadOptions options = new ReadOptions().fillCache(true);
 
     if (this.blockcacheThreshold > 0) {
-      if (metadatas.size() >= this.blockcacheThreshold) {
+      if (gts >= this.blockcacheThreshold) {
         options = new ReadOptions();
         options.fillCache(false);
       }
@@ -186,6 +313,11 @@ public class StandaloneStoreClient implements StoreClient {
 
     Collections.sort(metadatas, MetadataIdComparator.COMPARATOR);
 
+    if (blockspan > 0L) {
+      return new StandaloneBlockGTSDecoderIterator(iterator, token, metadatas, keystore.getKey(KeyStore.AES_LEVELDB_DATA), blockspan, MAX_ENCODER_SIZE,
+          now, then, count, skip, step, timestep, sample, preBoundary, postBoundary);
+    }
+
     final long preB = preBoundary;
     final long postB = postBoundary;
 
@@ -466,50 +598,7 @@ public class StandaloneStoreClient implements StoreClient {
 
         encoder.setMetadata(metadatas.get(idx));
 
-        //
-        // Update Sensision
-        //
-
-        Map<String,String> labels = new HashMap<String,String>();
-
-        Map<String,String> metadataLabels = metadatas.get(idx).getLabels();
-
-        String billedCustomerId = null != token ? Tokens.getUUID(token.getBilledId()) : null;
-
-        if (null != billedCustomerId) {
-          labels.put(SensisionConstants.SENSISION_LABEL_CONSUMERID, billedCustomerId);
-        }
-
-        if (metadataLabels.containsKey(Constants.APPLICATION_LABEL)) {
-          labels.put(SensisionConstants.SENSISION_LABEL_APPLICATION, metadataLabels.get(Constants.APPLICATION_LABEL));
-        }
-
-        if (metadataLabels.containsKey(Constants.OWNER_LABEL)) {
-          labels.put(SensisionConstants.SENSISION_LABEL_OWNER, metadataLabels.get(Constants.OWNER_LABEL));
-        }
-
-        if (null != token && null != token.getAppName()) {
-          labels.put(SensisionConstants.SENSISION_LABEL_CONSUMERAPP, token.getAppName());
-        }
-
-        //
-        // Update per owner statistics, use a TTL for those
-        //
-
-        Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_FETCH_BYTES_VALUES_PEROWNER, labels, SensisionConstants.SENSISION_TTL_PERUSER, valueBytes);
-        Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_FETCH_BYTES_KEYS_PEROWNER, labels, SensisionConstants.SENSISION_TTL_PERUSER, keyBytes);
-        Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_FETCH_DATAPOINTS_PEROWNER, labels, SensisionConstants.SENSISION_TTL_PERUSER, datapoints);
-
-        //
-        // Update summary statistics
-        //
-
-        // Remove 'owner' label
-        labels.remove(SensisionConstants.SENSISION_LABEL_OWNER);
-
-        Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_FETCH_BYTES_VALUES, labels, valueBytes);
-        Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_FETCH_BYTES_KEYS, labels, keyBytes);
-        Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_FETCH_DATAPOINTS, labels, datapoints);
+        updateFetchMetrics(token, metadatas.get(idx), keyBytes, valueBytes, datapoints);
 
         return encoder.getDecoder();
       }
@@ -602,6 +691,49 @@ public class StandaloneStoreClient implements StoreClient {
     };
   }
 
+  static void updateFetchMetrics(ReadToken token, Metadata metadata, long keyBytes, long valueBytes, long datapoints) {
+    Map<String,String> labels = new HashMap<String,String>();
+
+    Map<String,String> metadataLabels = metadata.getLabels();
+
+    String billedCustomerId = null != token ? Tokens.getUUID(token.getBilledId()) : null;
+
+    if (null != billedCustomerId) {
+      labels.put(SensisionConstants.SENSISION_LABEL_CONSUMERID, billedCustomerId);
+    }
+
+    if (metadataLabels.containsKey(Constants.APPLICATION_LABEL)) {
+      labels.put(SensisionConstants.SENSISION_LABEL_APPLICATION, metadataLabels.get(Constants.APPLICATION_LABEL));
+    }
+
+    if (metadataLabels.containsKey(Constants.OWNER_LABEL)) {
+      labels.put(SensisionConstants.SENSISION_LABEL_OWNER, metadataLabels.get(Constants.OWNER_LABEL));
+    }
+
+    if (null != token && null != token.getAppName()) {
+      labels.put(SensisionConstants.SENSISION_LABEL_CONSUMERAPP, token.getAppName());
+    }
+
+    //
+    // Update per owner statistics, use a TTL for those
+    //
+
+    Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_FETCH_BYTES_VALUES_PEROWNER, labels, SensisionConstants.SENSISION_TTL_PERUSER, valueBytes);
+    Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_FETCH_BYTES_KEYS_PEROWNER, labels, SensisionConstants.SENSISION_TTL_PERUSER, keyBytes);
+    Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_FETCH_DATAPOINTS_PEROWNER, labels, SensisionConstants.SENSISION_TTL_PERUSER, datapoints);
+
+    //
+    // Update summary statistics
+    //
+
+    // Remove 'owner' label
+    labels.remove(SensisionConstants.SENSISION_LABEL_OWNER);
+
+    Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_FETCH_BYTES_VALUES, labels, valueBytes);
+    Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_FETCH_BYTES_KEYS, labels, keyBytes);
+    Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_FETCH_DATAPOINTS, labels, datapoints);
+  }
+
   private ThreadLocal<WriteBatch> perThreadWriteBatch = new ThreadLocal<WriteBatch>() {
     protected WriteBatch initialValue() {
       return db.createWriteBatch();
@@ -660,13 +792,27 @@ public class StandaloneStoreClient implements StoreClient {
 
     GTSDecoder decoder = encoder.getDecoder();
 
+    if (blockspan > 0L) {
+      storeBlocks(encoder.getClassId(), encoder.getLabelsId(), decoder);
+    } else {
+      storeDatapoints(encoder.getClassId(), encoder.getLabelsId(), decoder);
+    }
+
+    for (StandalonePlasmaHandlerInterface plasmaHandler: this.plasmaHandlers) {
+      if (plasmaHandler.hasSubscriptions()) {
+        plasmaHandler.publish(encoder);
+      }
+    }
+  }
+
+  private void storeDatapoints(long classId, long labelsId, GTSDecoder decoder) throws IOException {
     List<byte[][]> kvs = new ArrayList<byte[][]>();
 
     while(decoder.next()) {
       ByteBuffer bb = ByteBuffer.wrap(new byte[Constants.HBASE_RAW_DATA_KEY_PREFIX.length + 8 + 8 + 8]).order(ByteOrder.BIG_ENDIAN);
       bb.put(Constants.HBASE_RAW_DATA_KEY_PREFIX);
-      bb.putLong(encoder.getClassId());
-      bb.putLong(encoder.getLabelsId());
+      bb.putLong(classId);
+      bb.putLong(labelsId);
       bb.putLong(Long.MAX_VALUE - decoder.getTimestamp());
 
       GTSEncoder enc = new GTSEncoder(decoder.getTimestamp(), this.keystore.getKey(KeyStore.AES_LEVELDB_DATA));
@@ -679,10 +825,153 @@ public class StandaloneStoreClient implements StoreClient {
     }
 
     store(kvs);
+  }
 
-    for (StandalonePlasmaHandlerInterface plasmaHandler: this.plasmaHandlers) {
-      if (plasmaHandler.hasSubscriptions()) {
-        plasmaHandler.publish(encoder);
+  /**
+   * Store datapoints as one block per bucket of 'blockspan' time units. Blocks written
+   * for the same bucket by successive calls are merged later by the block compactor.
+   */
+  private void storeBlocks(long classId, long labelsId, GTSDecoder decoder) throws IOException {
+    LevelDBDataBlocks.Row row = LevelDBDataBlocks.decode(decoder, 0L);
+
+    if (0 == row.size) {
+      return;
+    }
+
+    byte[] gtskey = LevelDBDataBlocks.gtsKey(classId, labelsId);
+
+    List<byte[][]> kvs = LevelDBDataBlocks.encode(gtskey, row, blockspan, MAX_ENCODER_SIZE, nextBlockSeqno(), this.keystore.getKey(KeyStore.AES_LEVELDB_DATA));
+
+    store(kvs);
+
+    if (null != pendingBlocks) {
+      for (byte[][] kv: kvs) {
+        long bucket = LevelDBDataBlocks.bucket(LevelDBDataBlocks.upperBound(kv[0]), blockspan);
+        if (pendingBlocks.size() < blockCompactionMaxPending) {
+          pendingBlocks.add(ByteBuffer.wrap(LevelDBDataBlocks.rowKey(gtskey, LevelDBDataBlocks.after(bucket, blockspan - 1))));
+        } else {
+          LockSupport.unpark(blockCompactor);
+          break;
+        }
+      }
+    }
+  }
+
+  /**
+   * Sequence numbers are based on the current time so they keep increasing across restarts
+   */
+  private long nextBlockSeqno() {
+    long seqno = System.currentTimeMillis() * 1000L;
+
+    while(true) {
+      long current = blockSeqno.get();
+      long next = Math.max(current + 1L, seqno);
+      if (blockSeqno.compareAndSet(current, next)) {
+        return next;
+      }
+    }
+  }
+
+  void compactPendingBlocks() throws IOException {
+    long nano = System.nanoTime();
+    long blocks = 0L;
+
+    for (ByteBuffer bb: pendingBlocks) {
+      pendingBlocks.remove(bb);
+      byte[] key = bb.array();
+      long end = LevelDBDataBlocks.upperBound(key);
+      compactBlocks(Arrays.copyOf(key, LevelDBDataBlocks.GTS_KEY_LENGTH), LevelDBDataBlocks.bucket(end, blockspan), end);
+      blocks++;
+    }
+
+    Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_STANDALONE_LEVELDB_BLOCK_COMPACTIONS, Sensision.EMPTY_LABELS, blocks);
+    Sensision.update(SensisionConstants.SENSISION_CLASS_CONTINUUM_STANDALONE_LEVELDB_BLOCK_COMPACTION_TIME_US, Sensision.EMPTY_LABELS, (System.nanoTime() - nano) / 1000L);
+  }
+
+  /**
+   * Merge the rows of a series in the [start,end] bucket into as few blocks as possible.
+   * Datapoint rows in the bucket are merged too.
+   */
+  private void compactBlocks(byte[] gtskey, long start, long end) throws IOException {
+    DBIterator iterator = null;
+    WriteBatch batch = null;
+
+    blockLock.lock();
+
+    try {
+      iterator = this.db.iterator(new ReadOptions().fillCache(false));
+      iterator.seek(LevelDBDataBlocks.rowKey(gtskey, end));
+
+      List<byte[]> keys = new ArrayList<byte[]>();
+      List<LevelDBDataBlocks.Row> rows = new ArrayList<LevelDBDataBlocks.Row>();
+      long seqno = LevelDBDataBlocks.ROW_SEQNO;
+
+      while (iterator.hasNext()) {
+        Entry<byte[],byte[]> kv = iterator.next();
+        byte[] key = kv.getKey();
+
+        if (!LevelDBDataBlocks.sameGTS(gtskey, key) || LevelDBDataBlocks.upperBound(key) < start) {
+          break;
+        }
+
+        // Rows overlapping another bucket were written with a different block span, leave the bucket as is
+        if (LevelDBDataBlocks.lowerBound(key) < start) {
+          return;
+        }
+
+        keys.add(key);
+        rows.add(LevelDBDataBlocks.decode(key, kv.getValue(), this.keystore.getKey(KeyStore.AES_LEVELDB_DATA)));
+        seqno = Math.max(seqno, LevelDBDataBlocks.seqno(key));
+      }
+
+      if (rows.size() < 2) {
+        return;
+      }
+
+      //
+      // Merge the datapoints, the merged blocks inherit the most recent seqno so
+      // blocks written concurrently still have precedence
+      //
+
+      LevelDBDataBlocks.Merger merger = new LevelDBDataBlocks.Merger(rows);
+      LevelDBDataBlocks.Row merged = new LevelDBDataBlocks.Row(rows.size(), seqno);
+
+      while (merger.hasNext()) {
+        merger.next();
+        merged.add(merger.tick, merger.location, merger.elevation, merger.value);
+      }
+
+      batch = this.db.createWriteBatch();
+
+      // Deletions must come first as a merged block may reuse the key of a merged row
+      for (byte[] key: keys) {
+        batch.delete(key);
+      }
+
+      for (byte[][] kv: LevelDBDataBlocks.encode(gtskey, merged, blockspan, MAX_ENCODER_SIZE, seqno, this.keystore.getKey(KeyStore.AES_LEVELDB_DATA))) {
+        batch.put(kv[0], kv[1]);
+      }
+
+      WriteOptions options = new WriteOptions().sync(1.0 == syncrate);
+
+      if (syncwrites) {
+        options = new WriteOptions().sync(Math.random() < syncrate);
+      }
+
+      this.db.write(batch, options);
+    } finally {
+      blockLock.unlock();
+      if (null != iterator) {
+        try {
+          iterator.close();
+        } catch (Throwable t) {
+        }
+      }
+      if (null != batch) {
+        try {
+          batch.close();
+        } catch (Throwable t) {
+        }
       }
     }
   }
@@ -698,6 +987,10 @@ public class StandaloneStoreClient implements StoreClient {
     metadata.setLabelsId(GTSHelper.labelsId(this.keystore.getKey(KeyStore.SIPHASH_LABELS), metadata.getLabels()));
     metadata.setClassId(GTSHelper.classId(this.keystore.getKey(KeyStore.SIPHASH_CLASS), metadata.getName()));
 
+    if (blockspan > 0L) {
+      return deleteBlocks(metadata, start, end);
+    }
+
     //
     // Retrieve an iterator
     //
@@ -794,6 +1087,115 @@ public class StandaloneStoreClient implements StoreClient {
     }
   }
 
+  /**
+   * Delete datapoints in [start,end] when the block layout is used. Blocks which
+   * are only partially covered by the deletion range are rewritten.
+   */
+  private long deleteBlocks(Metadata metadata, long start, long end) throws IOException {
+    DBIterator iterator = null;
+    WriteBatch batch = null;
+
+    byte[] aesKey = this.keystore.getKey(KeyStore.AES_LEVELDB_DATA);
+    byte[] gtskey = LevelDBDataBlocks.gtsKey(metadata.getClassId(), metadata.getLabelsId());
+
+    blockLock.lock();
+
+    try {
+      ReadOptions roptions = new ReadOptions();
+      roptions.fillCache(DELETE_FILLCACHE);
+      roptions.verifyChecksums(DELETE_VERIFYCHECKSUMS);
+
+      iterator = this.db.iterator(roptions);
+
+      // Blocks ending up to 'blockspan' time units after 'end' may contain datapoints to delete
+      iterator.seek(LevelDBDataBlocks.rowKey(gtskey, LevelDBDataBlocks.after(end, blockspan - 1)));
+
+      long count = 0L;
+
+      batch = this.db.createWriteBatchUnlocked();
+      int batchsize = 0;
+
+      WriteOptions options = new WriteOptions().sync(1.0 == syncrate);
+
+      while (iterator.hasNext()) {
+        Entry<byte[],byte[]> entry = iterator.next();
+        byte[] key = entry.getKey();
+
+        if (!LevelDBDataBlocks.sameGTS(gtskey, key) || LevelDBDataBlocks.upperBound(key) < start) {
+          break;
+        }
+
+        if (LevelDBDataBlocks.lowerBound(key) > end) {
+          continue;
+        }
+
+        if (!LevelDBDataBlocks.isBlock(key)) {
+          batch.delete(key);
+          batchsize++;
+          count++;
+        } else {
+          LevelDBDataBlocks.Row row = LevelDBDataBlocks.decode(key, entry.getValue(), aesKey);
+          LevelDBDataBlocks.Row retained = new LevelDBDataBlocks.Row(row.size, row.seqno);
+
+          for (int i = 0; i < row.size; i++) {
+            if (row.ticks[i] < start || row.ticks[i] > end) {
+              retained.add(row.ticks[i], row.locations[i], row.elevations[i], row.values[i]);
+            }
+          }
+
+          count += row.size - retained.size;
+
+          if (retained.size == row.size) {
+            continue;
+          }
+
+          batch.delete(key);
+          batchsize++;
+
+          if (retained.size > 0) {
+            for (byte[][] kv: LevelDBDataBlocks.encode(gtskey, retained, blockspan, MAX_ENCODER_SIZE, row.seqno, aesKey)) {
+              batch.put(kv[0], kv[1]);
+              batchsize++;
+            }
+          }
+        }
+
+        if (MAX_DELETE_BATCHSIZE <= batchsize) {
+          if (syncwrites) {
+            options = new WriteOptions().sync(Math.random() < syncrate);
+          }
+          this.db.writeUnlocked(batch, options);
+          batch.close();
+          batch = this.db.createWriteBatchUnlocked();
+          batchsize = 0;
+        }
+      }
+
+      if (batchsize > 0) {
+        if (syncwrites) {
+          options = new WriteOptions().sync(Math.random() < syncrate);
+        }
+        this.db.writeUnlocked(batch, options);
+      }
+
+      return count;
+    } finally {
+      blockLock.unlock();
+      if (null != iterator) {
+        try {
+          iterator.close();
+        } catch (Throwable t) {
+        }
+      }
+      if (null != batch) {
+        try {
+          batch.close();
+        } catch (Throwable t) {
+        }
+      }
+    }
+  }
+
   public void addPlasmaHandler(StandalonePlasmaHandlerInterface plasmaHandler) {
     this.plasmaHandlers.add(plasmaHandler);
   }
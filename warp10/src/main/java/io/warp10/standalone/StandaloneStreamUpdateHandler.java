@@ -29,6 +29,7 @@ import io.warp10.continuum.Tokens;
 import io.warp10.continuum.gts.GTSEncoder;
 import io.warp10.continuum.gts.GTSHelper;
 import io.warp10.continuum.ingress.DatalogForwarder;
+import io.warp10.continuum.ingress.DatalogSegments;
 import io.warp10.continuum.sensision.SensisionConstants;
 import io.warp10.continuum.store.Constants;
 import io.warp10.continuum.store.DirectoryClient;
@@ -108,6 +109,7 @@ public class StandaloneStreamUpdateHandler extends WebSocketHandler.Simple {
   private final byte[] datalogPSK;
   private final boolean datalogSync;
   private final File loggingDir;
+  private final DatalogSegments datalogSegments;
 
   private final long[] classKeyLongs;
   private final long[] labelsKeyLongs;
@@ -278,6 +280,7 @@ public class StandaloneStreamUpdateHandler extends WebSocketHandler.Simple {
           }
 
           File loggingFile = null;
+          DatalogSegments.RecordOutputStream loggingRecord = null;
           PrintWriter loggingWriter = null;
           FileDescriptor loggingFD = null;
           DatalogRequest dr = null;
@@ -334,22 +337,28 @@ public class StandaloneStreamUpdateHandler extends WebSocketHandler.Simple {
                   labels.put(SensisionConstants.SENSISION_LABEL_TYPE, dr.getType());
                   Sensision.update(SensisionConstants.CLASS_WARP_DATALOG_REQUESTS_LOGGED, labels, 1);
 
-                  if (handler.datalogSync) {
-                    loggingWriter.flush();
-                    loggingFD.sync();
-                  }
-                  loggingWriter.close();
-                  // Create hard links when multiple datalog forwarders are configured
-                  for (Path srcDir: Warp.getDatalogSrcDirs()) {
-                    try {
-                      Files.createLink(new File(srcDir.toFile(), loggingFile.getName() + DatalogForwarder.DATALOG_SUFFIX).toPath(), loggingFile.toPath());
-                    } catch (Exception e) {
-                      throw new RuntimeException("Encountered an error while attempting to link " + loggingFile + " to " + srcDir);
+                  if (null != loggingRecord) {
+                    loggingWriter.close();
+                    handler.datalogSegments.append(loggingRecord);
+                  } else {
+                    if (handler.datalogSync) {
+                      loggingWriter.flush();
+                      loggingFD.sync();
                     }
+                    loggingWriter.close();
+                    // Create hard links when multiple datalog forwarders are configured
+                    for (Path srcDir: Warp.getDatalogSrcDirs()) {
+                      try {
+                        Files.createLink(new File(srcDir.toFile(), loggingFile.getName() + DatalogForwarder.DATALOG_SUFFIX).toPath(), loggingFile.toPath());
+                      } catch (Exception e) {
+                        throw new RuntimeException("Encountered an error while attempting to link " + loggingFile + " to " + srcDir);
+                      }
+                    }
+                    //loggingFile.renameTo(new File(loggingFile.getAbsolutePath() + DatalogForwarder.DATALOG_SUFFIX));
+                    loggingFile.delete();
                   }
-                  //loggingFile.renameTo(new File(loggingFile.getAbsolutePath() + DatalogForwarder.DATALOG_SUFFIX));
-                  loggingFile.delete();
                   loggingFile = null;
+                  loggingRecord = null;
                   loggingWriter = null;
                 }
 
@@ -364,7 +373,7 @@ public class StandaloneStreamUpdateHandler extends WebSocketHandler.Simple {
               // Open the logging file if it is not open yet and if datalogging is enabled
               //
 
-              if (null != handler.loggingDir && null == loggingFile) {
+              if (null != handler.loggingDir && null == loggingWriter) {
                 long nanos = TimeSource.getNanoTime();
                 StringBuilder sb = new StringBuilder();
                 sb.append(Long.toHexString(nanos));
@@ -414,12 +423,17 @@ public class StandaloneStreamUpdateHandler extends WebSocketHandler.Simple {
 
                 encoded = OrderPreservingBase64.encode(encoded);
 
-                loggingFile = new File(handler.loggingDir, sb.toString());
+                if (null != handler.datalogSegments) {
+                  loggingRecord = handler.datalogSegments.newRecord();
+                  loggingWriter = new PrintWriter(new OutputStreamWriter(loggingRecord, StandardCharsets.UTF_8));
+                } else {
+                  loggingFile = new File(handler.loggingDir, sb.toString());
 
-                FileOutputStream fos = new FileOutputStream(loggingFile);
-                loggingFD = fos.getFD();
-                OutputStreamWriter osw = new OutputStreamWriter(fos, StandardCharsets.UTF_8);
-                loggingWriter = new PrintWriter(osw);
+                  FileOutputStream fos = new FileOutputStream(loggingFile);
+                  loggingFD = fos.getFD();
+                  OutputStreamWriter osw = new OutputStreamWriter(fos, StandardCharsets.UTF_8);
+                  loggingWriter = new PrintWriter(osw);
+                }
 
                 //
                 // Write request
@@ -564,25 +578,37 @@ public class StandaloneStreamUpdateHandler extends WebSocketHandler.Simple {
           } finally {
             WarpConfig.clearThreadProperties();
 
-            if (null != loggingWriter) {
-              Map<String,String> labels = new HashMap<String,String>();
-              labels.put(SensisionConstants.SENSISION_LABEL_ID, new String(OrderPreservingBase64.decode(dr.getId().getBytes(StandardCharsets.US_ASCII)), StandardCharsets.UTF_8));
-              labels.put(SensisionConstants.SENSISION_LABEL_TYPE, dr.getType());
-              Sensision.update(SensisionConstants.CLASS_WARP_DATALOG_REQUESTS_LOGGED, labels, 1);
-
-              loggingWriter.close();
-              // Create hard links when multiple datalog forwarders are configured
-              for (Path srcDir: Warp.getDatalogSrcDirs()) {
-                try {
-                  Files.createLink(new File(srcDir.toFile(), loggingFile.getName() + DatalogForwarder.DATALOG_SUFFIX).toPath(), loggingFile.toPath());
-                } catch (Exception e) {
-                  throw new RuntimeException("Encountered an error while attempting to link " + loggingFile + " to " + srcDir);
+            try {
+              if (null != loggingWriter) {
+                Map<String,String> labels = new HashMap<String,String>();
+                labels.put(SensisionConstants.SENSISION_LABEL_ID, new String(OrderPreservingBase64.decode(dr.getId().getBytes(StandardCharsets.US_ASCII)), StandardCharsets.UTF_8));
+                labels.put(SensisionConstants.SENSISION_LABEL_TYPE, dr.getType());
+                Sensision.update(SensisionConstants.CLASS_WARP_DATALOG_REQUESTS_LOGGED, labels, 1);
+
+                loggingWriter.close();
+                if (null != loggingRecord) {
+                  handler.datalogSegments.append(loggingRecord);
+                } else {
+                  // Create hard links when multiple datalog forwarders are configured
+                  for (Path srcDir: Warp.getDatalogSrcDirs()) {
+                    try {
+                      Files.createLink(new File(srcDir.toFile(), loggingFile.getName() + DatalogForwarder.DATALOG_SUFFIX).toPath(), loggingFile.toPath());
+                    } catch (Exception e) {
+                      throw new RuntimeException("Encountered an error while attempting to link " + loggingFile + " to " + srcDir);
+                    }
+                  }
+                  //loggingFile.renameTo(new File(loggingFile.getAbsolutePath() + DatalogForwarder.DATALOG_SUFFIX));
+                  loggingFile.delete();
                 }
+                loggingFile = null;
+                loggingRecord = null;
+                loggingWriter = null;
+              }
+            } finally {
+              // Release the record if it was not appended
+              if (null != loggingRecord) {
+                loggingRecord.discard();
               }
-              //loggingFile.renameTo(new File(loggingFile.getAbsolutePath() + DatalogForwarder.DATALOG_SUFFIX));
-              loggingFile.delete();
-              loggingFile = null;
-              loggingWriter = null;
             }
 
             this.handler.storeClient.store(null);
@@ -805,8 +831,10 @@ public class StandaloneStreamUpdateHandler extends WebSocketHandler.Simple {
         datalogId = new String(OrderPreservingBase64.encode(id.getBytes(StandardCharsets.UTF_8)), StandardCharsets.US_ASCII);
       }
 
+      datalogSegments = Warp.getDatalogSegments();
     } else {
       loggingDir = null;
+      datalogSegments = null;
       datalogId = null;
     }
 
@@ -61,6 +61,7 @@ import io.warp10.continuum.egress.EgressFindHandler;
 import io.warp10.continuum.egress.EgressInteractiveHandler;
 import io.warp10.continuum.egress.EgressMobiusHandler;
 import io.warp10.continuum.ingress.DatalogForwarder;
+import io.warp10.continuum.ingress.DatalogSegments;
 import io.warp10.continuum.sensision.SensisionConstants;
 import io.warp10.continuum.store.Constants;
 import io.warp10.continuum.store.ParallelGTSDecoderIteratorWrapper;
@@ -95,6 +96,8 @@ public class Warp extends WarpDist implements Runnable {
 
   private static Set<Path> datalogSrcDirs = Collections.unmodifiableSet(new HashSet<Path>());
 
+  private static DatalogSegments datalogSegments = null;
+
   private static final String[] REQUIRED_PROPERTIES = {
     Configuration.INGRESS_WEBSOCKET_MAXMESSAGESIZE,
     Configuration.PLASMA_FRONTEND_WEBSOCKET_MAXMESSAGESIZE,
@@ -379,6 +382,10 @@ public class Warp extends WarpDist implements Runnable {
       sdc = new StandaloneDirectoryClient(db, keystore);
       scc = new StandaloneStoreClient(db, keystore, properties);
 
+      if (null != properties.getProperty(Configuration.STANDALONE_ROLLUPS)) {
+        scc = new StandaloneRollupStoreClientWrapper(keystore, scc);
+      }
+
       if (accelerator) {
         scc = new StandaloneAcceleratedStoreClient(sdc, scc);
       }
@@ -405,11 +412,42 @@ public class Warp extends WarpDist implements Runnable {
       }
     }
 
+    //
+    // Open the datalog segments
+    //
+
+    if (!analyticsEngineOnly && properties.containsKey(Configuration.DATALOG_DIR) && "true".equals(properties.getProperty(Configuration.DATALOG_SEGMENTS))) {
+      long segmentSize = Long.parseLong(properties.getProperty(Configuration.DATALOG_SEGMENT_SIZE, Long.toString(DatalogSegments.DEFAULT_SEGMENT_SIZE)));
+      datalogSegments = new DatalogSegments(new File(properties.getProperty(Configuration.DATALOG_DIR)), segmentSize, "true".equals(properties.getProperty(Configuration.DATALOG_SYNC)));
+    }
+
     //
     // Start the Datalog Forwarders
     //
 
-    if (!analyticsEngineOnly && properties.containsKey(Configuration.DATALOG_FORWARDERS)) {
+    if (!analyticsEngineOnly && null != datalogSegments && properties.containsKey(Configuration.DATALOG_FORWARDERS)) {
+      // Forwarders tail the segments, each one from its own acknowledged position
+      String[] forwarders = properties.getProperty(Configuration.DATALOG_FORWARDERS).split(",");
+
+      Set<String> names = new HashSet<String>();
+      for (String name: forwarders) {
+        names.add(name.trim());
+      }
+
+      // Register all the forwarders before starting any of them, so none purges segments another still needs
+      List<DatalogForwarder> dlforwarders = new ArrayList<DatalogForwarder>();
+
+      for (String name: names) {
+        dlforwarders.add(new DatalogForwarder(name, keystore, properties, datalogSegments));
+      }
+
+      for (DatalogForwarder forwarder: dlforwarders) {
+        forwarder.start();
+      }
+    } else if (!analyticsEngineOnly && null != datalogSegments && properties.containsKey(Configuration.DATALOG_FORWARDER_DSTDIR)) {
+      DatalogForwarder forwarder = new DatalogForwarder(null, keystore, properties, datalogSegments);
+      forwarder.start();
+    } else if (!analyticsEngineOnly && properties.containsKey(Configuration.DATALOG_FORWARDERS)) {
       // Extract the names of the forwarders and start them all, ensuring we only start each one once
       String[] forwarders = properties.getProperty(Configuration.DATALOG_FORWARDERS).split(",");
 
@@ -615,4 +653,11 @@ public class Warp extends WarpDist implements Runnable {
   public static Set<Path> getDatalogSrcDirs() {
     return datalogSrcDirs;
   }
+
+  /**
+   * @return the datalog segments or null if requests are logged in individual files
+   */
+  public static DatalogSegments getDatalogSegments() {
+    return datalogSegments;
+  }
 }
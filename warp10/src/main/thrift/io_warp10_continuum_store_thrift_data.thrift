@@ -467,6 +467,45 @@ struct MetaSet {
   6: optional i64 notafter,
 }
 
+/**
+ * Aggregators which can be applied by the store while scanning the datapoints
+ */
+enum FetchBucketizer {
+  SUM = 1,
+  MIN = 2,
+  MAX = 3,
+  MEAN = 4,
+  COUNT = 5,
+  FIRST = 6,
+  LAST = 7,
+}
+
+/**
+ * Bucketization to apply to the fetched Geo Time Series, with the same semantics as BUCKETIZE
+ */
+struct FetchBucketization {
+  /**
+   * Aggregator to apply to the datapoints of each bucket
+   */
+  1: FetchBucketizer bucketizer,
+  /**
+   * Width of each bucket, in time units
+   */
+  2: i64 bucketspan,
+  /**
+   * End timestamp of the most recent bucket
+   */
+  3: i64 lastbucket,
+  /**
+   * Number of buckets
+   */
+  4: i32 bucketcount,
+  /**
+   * Flag indicating the store may read the pre-computed rollup series instead of the raw datapoints
+   */
+  5: optional bool rollups = false,
+}
+
 struct FetchRequest {
   /**
    * Read token to use for fetching data
@@ -544,4 +583,9 @@ struct FetchRequest {
    * GTS list.
    */
   14: optional bool parallelScanners = true,
+  /**
+   * If set, the store returns for each GTS the aggregated value of each bucket instead of the
+   * raw datapoints. This cannot be used when fetching by count or with boundaries.
+   */
+  15: optional FetchBucketization bucketization,
 }
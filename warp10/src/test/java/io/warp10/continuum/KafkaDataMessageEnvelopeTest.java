@@ -0,0 +1,71 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum;
+
+import io.warp10.continuum.store.thrift.data.KafkaDataMessage;
+import io.warp10.continuum.store.thrift.data.KafkaDataMessageType;
+
+import org.apache.thrift.TDeserializer;
+import org.apache.thrift.TSerializer;
+import org.apache.thrift.protocol.TCompactProtocol;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class KafkaDataMessageEnvelopeTest {
+
+  @Test
+  public void testPackUnpack() throws Exception {
+    TSerializer serializer = new TSerializer(new TCompactProtocol.Factory());
+
+    List<byte[]> messages = new ArrayList<byte[]>();
+
+    for (int i = 0; i < 100; i++) {
+      KafkaDataMessage msg = new KafkaDataMessage();
+      msg.setType(KafkaDataMessageType.STORE);
+      msg.setClassId(i);
+      msg.setLabelsId(i * 31L);
+      msg.setData(new byte[i]);
+      messages.add(serializer.serialize(msg));
+    }
+
+    // Individual messages are never mistaken for envelopes
+    for (byte[] msg: messages) {
+      Assert.assertFalse(KafkaDataMessageEnvelope.isEnvelope(msg));
+      List<byte[]> unpacked = KafkaDataMessageEnvelope.unpack(msg);
+      Assert.assertEquals(1, unpacked.size());
+      Assert.assertSame(msg, unpacked.get(0));
+    }
+
+    for (KafkaDataMessageEnvelope.Codec codec: KafkaDataMessageEnvelope.Codec.values()) {
+      byte[] envelope = KafkaDataMessageEnvelope.pack(codec, messages);
+      Assert.assertTrue(KafkaDataMessageEnvelope.isEnvelope(envelope));
+
+      List<byte[]> unpacked = KafkaDataMessageEnvelope.unpack(envelope);
+      Assert.assertEquals(messages.size(), unpacked.size());
+
+      for (int i = 0; i < messages.size(); i++) {
+        Assert.assertArrayEquals(messages.get(i), unpacked.get(i));
+        KafkaDataMessage msg = new KafkaDataMessage();
+        new TDeserializer(new TCompactProtocol.Factory()).deserialize(msg, unpacked.get(i));
+        Assert.assertEquals(i, msg.getClassId());
+      }
+    }
+  }
+}
@@ -0,0 +1,93 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.egress;
+
+import io.warp10.WarpConfig;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class AdmissionControllerTest {
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    WarpConfig.safeSetProperties(new StringReader("warp.timeunits=us"));
+  }
+
+  @Test
+  public void testAdmission() throws Exception {
+    // Any request with a known cost is heavy
+    final AdmissionController controller = new AdmissionController(0.5D, 0.5D, 0L, 200L, 1);
+
+    // Unknown requests are light
+    AdmissionController.Ticket ticket = controller.admit("app", 1L);
+    Assert.assertFalse(ticket.isHeavy());
+    ticket.release();
+
+    // Without pressure heavy requests are admitted
+    AdmissionController.Ticket heavy = controller.admit("app", 1L);
+    Assert.assertTrue(heavy.isHeavy());
+
+    controller.update(0.9D, 0.0D);
+
+    // Light requests are admitted under pressure
+    ticket = controller.admit("other", 2L);
+    Assert.assertFalse(ticket.isHeavy());
+    ticket.release();
+
+    // Heavy requests wait for the running heavy request to complete
+    final AtomicReference<AdmissionController.Ticket> waited = new AtomicReference<AdmissionController.Ticket>();
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          waited.set(controller.admit("app", 1L));
+        } catch (InterruptedException ie) {
+        }
+      }
+    };
+    thread.start();
+
+    while (Thread.State.TIMED_WAITING != thread.getState()) {
+      Thread.sleep(1L);
+    }
+
+    // The queue is full
+    Assert.assertNull(controller.admit("app", 1L));
+
+    heavy.release();
+    thread.join();
+    Assert.assertNotNull(waited.get());
+    Assert.assertTrue(waited.get().isHeavy());
+
+    // Heavy requests are rejected after waiting too long
+    long nanos = System.nanoTime();
+    Assert.assertNull(controller.admit("app", 1L));
+    Assert.assertTrue(System.nanoTime() - nanos >= 200000000L);
+
+    // Once the pressure is gone heavy requests are admitted again
+    controller.update(0.1D, 0.1D);
+    ticket = controller.admit("app", 1L);
+    Assert.assertNotNull(ticket);
+    ticket.release();
+    waited.get().release();
+  }
+}
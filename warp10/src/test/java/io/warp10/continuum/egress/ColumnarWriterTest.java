@@ -0,0 +1,179 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.egress;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import com.geoxp.GeoXPLib;
+
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.store.Constants;
+import net.jpountz.lz4.LZ4BlockInputStream;
+
+public class ColumnarWriterTest {
+
+  @Test
+  public void testWrite() throws Exception {
+    for (ColumnarWriter.Codec codec: ColumnarWriter.Codec.values()) {
+      GeoTimeSerie gts = new GeoTimeSerie();
+      gts.setName("temp");
+      gts.setLabel("room", "kitchen");
+      for (int i = 0; i < 3000; i++) {
+        long location = 0 == i % 2 ? GeoXPLib.toGeoXPPoint(48.0, -4.5) : GeoTimeSerie.NO_LOCATION;
+        GTSHelper.setValue(gts, i * 10L, location, GeoTimeSerie.NO_ELEVATION, 0.5D * i, false);
+      }
+
+      GTSEncoder encoder = new GTSEncoder(0L);
+      encoder.setName("state");
+      encoder.setLabel("room", "kitchen");
+      encoder.setLabel(Constants.OWNER_LABEL, "owner");
+      encoder.addValue(1L, GeoTimeSerie.NO_LOCATION, 100L, true);
+      encoder.addValue(2L, GeoTimeSerie.NO_LOCATION, 200L, false);
+      encoder.addValue(3L, GeoTimeSerie.NO_LOCATION, 300L, true);
+      encoder.addValue(4L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, "été");
+
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      ColumnarWriter writer = new ColumnarWriter(out, codec);
+      writer.write(Arrays.asList(gts));
+      Assert.assertEquals(3L, writer.write(encoder.getDecoder(), 3L, true));
+      writer.close();
+
+      byte[] data = out.toByteArray();
+      Assert.assertEquals("W10C", new String(data, 0, 4, StandardCharsets.US_ASCII));
+      Assert.assertEquals(1, data[4]);
+
+      InputStream in = new ByteArrayInputStream(data, 6, data.length - 6);
+      if (ColumnarWriter.Codec.LZ4 == codec) {
+        in = new LZ4BlockInputStream(in);
+      } else if (ColumnarWriter.Codec.GZIP == codec) {
+        in = new GZIPInputStream(in);
+      }
+      ByteArrayOutputStream content = new ByteArrayOutputStream();
+      byte[] buf = new byte[4096];
+      int len;
+      while ((len = in.read(buf)) > 0) {
+        content.write(buf, 0, len);
+      }
+      ByteBuffer bb = ByteBuffer.wrap(content.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+
+      // GTS, spread over 3 DATA records
+      Assert.assertEquals(ColumnarWriter.RECORD_SERIES, bb.get());
+      Assert.assertEquals(0L, varint(bb));
+      Assert.assertEquals("temp", string(bb));
+      Assert.assertEquals(1L, varint(bb));
+      Assert.assertEquals("room", string(bb));
+      Assert.assertEquals("kitchen", string(bb));
+      Assert.assertEquals(0L, varint(bb));
+
+      int count = 0;
+      while (count < 3000) {
+        Assert.assertEquals(ColumnarWriter.RECORD_DATA, bb.get());
+        Assert.assertEquals(0L, varint(bb));
+        Assert.assertEquals(ColumnarWriter.TYPE_DOUBLE, bb.get());
+        Assert.assertEquals(ColumnarWriter.FLAG_LOCATION, bb.get());
+        int n = (int) varint(bb);
+        for (int i = 0; i < n; i++) {
+          Assert.assertEquals((count + i) * 10L, bb.getLong());
+        }
+        for (int i = 0; i < n; i++) {
+          double lat = bb.getDouble();
+          Assert.assertTrue(0 == (count + i) % 2 ? Math.abs(lat - 48.0) < 1e-6 : Double.isNaN(lat));
+        }
+        for (int i = 0; i < n; i++) {
+          double lon = bb.getDouble();
+          Assert.assertTrue(0 == (count + i) % 2 ? Math.abs(lon + 4.5) < 1e-6 : Double.isNaN(lon));
+        }
+        for (int i = 0; i < n; i++) {
+          Assert.assertEquals(0.5D * (count + i), bb.getDouble(), 0.0D);
+        }
+        count += n;
+      }
+      Assert.assertEquals(3000, count);
+
+      // Encoder, owner label hidden, limited to 3 datapoints
+      Assert.assertEquals(ColumnarWriter.RECORD_SERIES, bb.get());
+      Assert.assertEquals(1L, varint(bb));
+      Assert.assertEquals("state", string(bb));
+      Assert.assertEquals(1L, varint(bb));
+      Assert.assertEquals("room", string(bb));
+      Assert.assertEquals("kitchen", string(bb));
+      Assert.assertEquals(0L, varint(bb));
+
+      Assert.assertEquals(ColumnarWriter.RECORD_DATA, bb.get());
+      Assert.assertEquals(1L, varint(bb));
+      Assert.assertEquals(ColumnarWriter.TYPE_BOOLEAN, bb.get());
+      Assert.assertEquals(ColumnarWriter.FLAG_ELEVATION, bb.get());
+      Assert.assertEquals(3L, varint(bb));
+      Assert.assertEquals(1L, bb.getLong());
+      Assert.assertEquals(2L, bb.getLong());
+      Assert.assertEquals(3L, bb.getLong());
+      Assert.assertEquals(100L, bb.getLong());
+      Assert.assertEquals(200L, bb.getLong());
+      Assert.assertEquals(300L, bb.getLong());
+      Assert.assertEquals(0x05, bb.get());
+
+      Assert.assertEquals(ColumnarWriter.RECORD_END, bb.get());
+      Assert.assertFalse(bb.hasRemaining());
+    }
+  }
+
+  @Test
+  public void testAccept() throws Exception {
+    Assert.assertNull(ColumnarWriter.fromAccept(null));
+    Assert.assertNull(ColumnarWriter.fromAccept("*/*"));
+    Assert.assertEquals(ColumnarWriter.Codec.NONE, ColumnarWriter.fromAccept("application/json, " + ColumnarWriter.CONTENT_TYPE));
+    Assert.assertEquals(ColumnarWriter.Codec.LZ4, ColumnarWriter.fromAccept(ColumnarWriter.CONTENT_TYPE + "; codec=lz4"));
+
+    try {
+      ColumnarWriter.check(new ArrayList<Object>(Arrays.asList(new GeoTimeSerie(), 42L)));
+      Assert.fail();
+    } catch (Exception e) {
+    }
+  }
+
+  private static long varint(ByteBuffer bb) {
+    long value = 0L;
+    int shift = 0;
+    while (true) {
+      byte b = bb.get();
+      value |= (long) (b & 0x7F) << shift;
+      if (0 == (b & 0x80)) {
+        return value;
+      }
+      shift += 7;
+    }
+  }
+
+  private static String string(ByteBuffer bb) {
+    byte[] bytes = new byte[(int) varint(bb)];
+    bb.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
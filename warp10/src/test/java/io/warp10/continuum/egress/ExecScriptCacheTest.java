@@ -0,0 +1,93 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.egress;
+
+import io.warp10.WarpConfig;
+import io.warp10.script.MemoryWarpScriptStack;
+import io.warp10.script.WarpScriptStack;
+import io.warp10.script.WarpScriptStack.Macro;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.StringReader;
+
+public class ExecScriptCacheTest {
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    WarpConfig.safeSetProperties(new StringReader("warp.timeunits=us"));
+  }
+
+  @Test
+  public void testCache() throws Exception {
+    ExecScriptCache cache = new ExecScriptCache(2, 1024);
+    MemoryWarpScriptStack stack = new MemoryWarpScriptStack(null, null);
+    stack.maxLimits();
+
+    String script = "42 'x' STORE\n<%\n  $x 2 *\n%> 'm' STORE\n<'\na b\n'>\n@m";
+
+    ExecScriptCache.Parsed parsed = cache.get(stack, script, false);
+    Assert.assertNotNull(parsed);
+    Assert.assertEquals(8, parsed.getLines());
+
+    stack.exec(parsed.getMacro());
+    Assert.assertEquals(2, stack.depth());
+    Assert.assertEquals(84L, stack.pop());
+    Assert.assertEquals("a b", stack.pop());
+
+    // Hits return distinct copies, including the nested macros
+    ExecScriptCache.Parsed other = cache.get(stack, script, false);
+    Assert.assertNotSame(parsed.getMacro(), other.getMacro());
+    Assert.assertNotSame(parsed.getMacro().get(3), other.getMacro().get(3));
+    Assert.assertEquals(parsed.getMacro().size(), other.getMacro().size());
+
+    // Line numbers are injected as sections
+    Macro lines = cache.get(stack, script, true).getMacro();
+    Assert.assertEquals("[Line #1]", lines.get(0));
+    Assert.assertTrue(lines.size() > parsed.getMacro().size());
+  }
+
+  @Test
+  public void testUncacheable() throws Exception {
+    ExecScriptCache cache = new ExecScriptCache(16, 1024);
+    MemoryWarpScriptStack stack = new MemoryWarpScriptStack(null, null);
+    stack.maxLimits();
+
+    // Parse time dereference, function redefinition, secure script, parse errors and long scripts
+    Assert.assertNull(cache.get(stack, "42 'x' STORE\n!$x", false));
+    Assert.assertNull(cache.get(stack, "<% 42 %> 'FOO' DEF", false));
+    Assert.assertNull(cache.get(stack, "<% 42 %> 'FOO' 'DEF' EVAL", false));
+    Assert.assertNull(cache.get(stack, "<% 42 %> 'FOO' 'DEF' 'f' STORE $f EVAL", false));
+    Assert.assertNull(cache.get(stack, "'<% 42 %> \"FOO\" DEF' EVAL", false));
+    Assert.assertNull(cache.get(stack, "<S 42 S>", false));
+    Assert.assertNull(cache.get(stack, "42 NOT_A_FUNCTION", false));
+    Assert.assertNull(cache.get(stack, "<% 42", false));
+    Assert.assertNull(cache.get(stack, "42 " + new String(new char[1024]).replace('\0', ' '), false));
+
+    // Strings merely containing DEF are fine
+    Assert.assertNotNull(cache.get(stack, "'DEFAULT' 'x' STORE { 'UNDEF' 42 } 'UNDEF' GET", false));
+    Assert.assertNotNull(cache.get(stack, "'1 DEFAULT' EVAL", false));
+
+    // Scripts executed on a stack with redefined functions are not cached
+    stack.exec("<% 42 %> 'FOO' DEF");
+    Assert.assertNull(cache.get(stack, "1 2 +", false));
+    Assert.assertNotNull(cache.get(new MemoryWarpScriptStack(null, null), "1 2 +", false));
+    Assert.assertEquals(0, stack.depth());
+  }
+}
@@ -23,11 +23,13 @@ import io.warp10.continuum.gts.GeoTimeSerie;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.math.BigDecimal;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 import org.junit.Assert;
 import org.junit.Test;
@@ -447,4 +449,123 @@ public class GTSDecoderTest {
     
     Assert.assertEquals("0/-90.0:-180.0/0 {} F\r\n=1/-90.0:-180.0/0 1\r\n=2/-90.0:-180.0/0 2.0\r\n=3/-90.0:-180.0/0 '3'\r\n=4/-90.0:-180.0/0 b64:6Q\r\n", sw.toString());
   }
+
+  @Test
+  public void testDecoder_batch() throws Exception {
+    Random prng = new Random(42L);
+
+    GTSEncoder encoder = new GTSEncoder(0L);
+
+    // Runs of values of the same type, with and without locations/elevations
+    for (int i = 0; i < 5000; i++) {
+      long location = 0 == (i / 100) % 3 ? GeoTimeSerie.NO_LOCATION : prng.nextLong();
+      long elevation = 0 == (i / 70) % 2 ? GeoTimeSerie.NO_ELEVATION : prng.nextInt(1000);
+      Object value;
+
+      switch ((i / 500) % 5) {
+        case 0:
+          value = prng.nextBoolean() ? 42L : (long) prng.nextInt();
+          break;
+        case 1:
+          value = prng.nextGaussian();
+          break;
+        case 2:
+          value = new BigDecimal(prng.nextInt(1000)).movePointLeft(2);
+          break;
+        case 3:
+          value = prng.nextBoolean();
+          break;
+        default:
+          value = "s" + prng.nextInt(3);
+      }
+
+      encoder.addValue(prng.nextInt(10000), location, elevation, value);
+    }
+
+    //
+    // Batches hold values of a single type and match the per datapoint decoding
+    //
+
+    GTSDecoder reference = encoder.getDecoder(true);
+    GTSDecoder decoder = encoder.getDecoder(true);
+
+    long[] ticks = new long[128];
+    long[] locations = new long[128];
+    long[] elevations = new long[128];
+    long[] longs = new long[128];
+    double[] doubles = new double[128];
+    BigDecimal[] decimals = new BigDecimal[128];
+    boolean[] booleans = new boolean[128];
+    String[] strings = new String[128];
+
+    int total = 0;
+    int n;
+
+    while ((n = decoder.next(ticks, locations, elevations, longs, doubles, decimals, booleans, strings, 3, 125)) > 0) {
+      for (int i = 3; i < 3 + n; i++) {
+        Assert.assertTrue(reference.next());
+        Assert.assertEquals(reference.getTimestamp(), ticks[i]);
+        Assert.assertEquals(reference.getLocation(), locations[i]);
+        Assert.assertEquals(reference.getElevation(), elevations[i]);
+
+        Object value = reference.getValue();
+
+        switch (decoder.getType()) {
+          case LONG:
+            Assert.assertEquals(value, longs[i]);
+            break;
+          case DOUBLE:
+            if (value instanceof BigDecimal) {
+              Assert.assertEquals(value, decimals[i]);
+            } else {
+              Assert.assertNull(decimals[i]);
+            }
+            Assert.assertEquals(((Number) value).doubleValue(), doubles[i], 0.0D);
+            break;
+          case BOOLEAN:
+            Assert.assertEquals(value, booleans[i]);
+            break;
+          case STRING:
+            Assert.assertEquals(value, strings[i]);
+            break;
+          default:
+            Assert.fail();
+        }
+      }
+      total += n;
+    }
+
+    Assert.assertFalse(reference.next());
+    Assert.assertEquals(5000, total);
+
+    //
+    // Decoding into a GTS is identical to adding the values one at a time
+    //
+
+    GeoTimeSerie expected = new GeoTimeSerie();
+    reference = encoder.getDecoder(true);
+    while (reference.next()) {
+      GTSHelper.setValue(expected, reference.getTimestamp(), reference.getLocation(), reference.getElevation(), reference.getValue(), false);
+    }
+
+    GeoTimeSerie gts = encoder.getDecoder(true).decode();
+
+    Assert.assertEquals(expected.size(), gts.size());
+    Assert.assertEquals(expected.getType(), gts.getType());
+    Assert.assertEquals(expected.sorted, gts.sorted);
+    Assert.assertEquals(expected.reversed, gts.reversed);
+    for (int i = 0; i < expected.size(); i++) {
+      Assert.assertEquals(GTSHelper.tickAtIndex(expected, i), GTSHelper.tickAtIndex(gts, i));
+      Assert.assertEquals(GTSHelper.locationAtIndex(expected, i), GTSHelper.locationAtIndex(gts, i));
+      Assert.assertEquals(GTSHelper.elevationAtIndex(expected, i), GTSHelper.elevationAtIndex(gts, i));
+      Assert.assertEquals(GTSHelper.valueAtIndex(expected, i), GTSHelper.valueAtIndex(gts, i));
+    }
+
+    // Strict decoding rejects mixed types
+    try {
+      encoder.getDecoder(true).decode(null, true);
+      Assert.fail();
+    } catch (RuntimeException re) {
+    }
+  }
 }
@@ -0,0 +1,138 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.gts;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class GTSIdMapTest {
+
+  @Test
+  public void testMap() {
+    GTSIdMap<Long> map = new GTSIdMap<Long>();
+    Map<String, Long> reference = new HashMap<String, Long>();
+
+    Random random = new Random(42L);
+
+    // Small ids collide a lot, which exercises probing and removal
+    for (int i = 0; i < 200000; i++) {
+      long classId = random.nextInt(64);
+      long labelsId = random.nextInt(256);
+      String key = classId + ":" + labelsId;
+
+      if (random.nextBoolean()) {
+        Long value = random.nextLong();
+        Assert.assertEquals(reference.put(key, value), map.put(classId, labelsId, value));
+      } else {
+        Assert.assertEquals(reference.remove(key), map.remove(classId, labelsId));
+      }
+
+      Assert.assertEquals(reference.size(), map.size());
+    }
+
+    for (long classId = 0; classId < 64; classId++) {
+      for (long labelsId = 0; labelsId < 256; labelsId++) {
+        String key = classId + ":" + labelsId;
+        Assert.assertEquals(reference.containsKey(key), map.containsKey(classId, labelsId));
+        Assert.assertEquals(reference.get(key), map.get(classId, labelsId));
+      }
+    }
+
+    long[] ids = map.ids();
+    Assert.assertEquals(reference.size() * 2, ids.length);
+
+    for (int i = 0; i < ids.length; i += 2) {
+      Assert.assertTrue(reference.containsKey(ids[i] + ":" + ids[i + 1]));
+    }
+
+    // Null values are distinguished from missing ids
+    map.put(-1L, -1L, null);
+    Assert.assertTrue(map.containsKey(-1L, -1L));
+    Assert.assertEquals(Long.valueOf(0L), map.getOrDefault(-2L, -1L, 0L));
+    Assert.assertNull(map.getOrDefault(-1L, -1L, 0L));
+  }
+
+  @Test
+  public void testLRU() {
+    GTSIdMap<Integer> map = new GTSIdMap<Integer>(1000);
+
+    for (int i = 0; i < 1000; i++) {
+      map.put(i, i, i);
+    }
+
+    // Access the oldest entries so they are retained
+    for (int i = 0; i < 100; i++) {
+      Assert.assertEquals(Integer.valueOf(i), map.get(i, i));
+    }
+
+    for (int i = 1000; i < 1500; i++) {
+      map.put(i, i, i);
+    }
+
+    Assert.assertEquals(1000, map.size());
+
+    for (int i = 0; i < 100; i++) {
+      Assert.assertTrue(map.containsKey(i, i));
+    }
+    for (int i = 100; i < 600; i++) {
+      Assert.assertFalse(map.containsKey(i, i));
+    }
+    for (int i = 600; i < 1500; i++) {
+      Assert.assertTrue(map.containsKey(i, i));
+    }
+
+    // Removing entries keeps the access order consistent
+    for (int i = 600; i < 1000; i += 2) {
+      Assert.assertEquals(Integer.valueOf(i), map.remove(i, i));
+    }
+
+    for (int i = 1500; i < 1800; i++) {
+      map.put(i, i, i);
+    }
+
+    Assert.assertEquals(1000, map.size());
+    Assert.assertFalse(map.containsKey(601, 601));
+    Assert.assertFalse(map.containsKey(799, 799));
+    Assert.assertTrue(map.containsKey(801, 801));
+    Assert.assertTrue(map.containsKey(0, 0));
+    Assert.assertTrue(map.containsKey(1799, 1799));
+  }
+
+  @Test
+  public void testConcurrent() {
+    ConcurrentGTSIdMap<Integer> map = new ConcurrentGTSIdMap<Integer>(8);
+
+    for (int i = 0; i < 10000; i++) {
+      map.put(i, -i, i);
+    }
+
+    Assert.assertEquals(10000, map.size());
+    Assert.assertEquals(20000, map.ids().length);
+
+    for (int i = 0; i < 10000; i += 2) {
+      Assert.assertEquals(Integer.valueOf(i), map.remove(i, -i));
+    }
+
+    Assert.assertEquals(5000, map.size());
+    Assert.assertNull(map.get(0, 0));
+    Assert.assertEquals(Integer.valueOf(1), map.get(1, -1));
+  }
+}
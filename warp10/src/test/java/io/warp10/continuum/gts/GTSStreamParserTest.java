@@ -0,0 +1,184 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.gts;
+
+import io.warp10.WarpConfig;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class GTSStreamParserTest {
+
+  private static final long[] CLASS_KEY = new long[] { 1L, 2L };
+  private static final long[] LABELS_KEY = new long[] { 3L, 4L };
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    WarpConfig.safeSetProperties(new StringReader("warp.timeunits=us"));
+  }
+
+  @Test
+  public void testSameAsParse() throws Exception {
+    StringBuilder sb = new StringBuilder();
+
+    sb.append("# comment\n");
+    sb.append("1// foo{a=b,c=d} 42\n");
+    sb.append("  =2// -42  \r\n");
+    sb.append("=3/48.0:-4.5/ 3.14\n");
+    sb.append("\n");
+    sb.append("4//1000 foo{c=d,a=b} T\n");
+    sb.append("5/1234/-12 bar%20baz{x=%C3%A9t%C3%A9} 'caf%C3%A9'\n");
+    sb.append("6// bar%20baz{x=%C3%A9t%C3%A9}{attr=1} false\r");
+    sb.append("// foo{a=b,c=d} b64:AAEC\n");
+    sb.append("T-10// foo{a=b,c=d} hex:0102\n");
+    sb.append("7// foo{a=b,c=d,producer=x} 123456789012345678\n");
+    sb.append("8// foo{} +17\n");
+    sb.append("9// labels{a=b,,c=,d=x+y} 1\n");
+    sb.append("10// labels{a=b=c} 2\n");
+    sb.append("11// labels{ a = b , c=%2B} 3\n");
+    sb.append("12// labels{a=1,a=2} 4\n");
+
+    for (int i = 0; i < 5000; i++) {
+      sb.append(i);
+      sb.append("// series");
+      sb.append(i % 7);
+      sb.append("{i=");
+      sb.append(i % 3);
+      sb.append("} ");
+      sb.append(i);
+      sb.append(".5\n");
+    }
+
+    // A line larger than the parser buffer
+    sb.append("9// long{} '");
+    for (int i = 0; i < 100000; i++) {
+      sb.append('x');
+    }
+    sb.append("'");
+
+    String input = sb.toString();
+
+    Map<String,String> extraLabels = new HashMap<String,String>();
+    extraLabels.put("producer", "p");
+    extraLabels.put("owner", "o");
+    extraLabels.put("application", null);
+
+    List<GTSEncoder> expected = new ArrayList<GTSEncoder>();
+    BufferedReader br = new BufferedReader(new StringReader(input));
+    GTSEncoder encoder = null;
+    String line;
+    while (null != (line = br.readLine())) {
+      line = line.trim();
+      if (0 == line.length() || '#' == line.charAt(0)) {
+        continue;
+      }
+      GTSEncoder enc = GTSHelper.parse(encoder, line, extraLabels, 1000000L, Long.MAX_VALUE, null, null, null, null, false, 0L);
+      if (enc != encoder) {
+        expected.add(enc);
+        encoder = enc;
+      }
+    }
+
+    List<GTSEncoder> actual = new ArrayList<GTSEncoder>();
+    GTSStreamParser parser = new GTSStreamParser(new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8, extraLabels, Long.MAX_VALUE, CLASS_KEY, LABELS_KEY, 4);
+    encoder = null;
+    while (parser.next()) {
+      GTSEncoder enc = parser.parse(encoder, 1000000L, null, null, null, null, false, 0L);
+      if (enc != encoder) {
+        actual.add(enc);
+        encoder = enc;
+      }
+    }
+
+    Assert.assertEquals(expected.size(), actual.size());
+
+    for (int i = 0; i < expected.size(); i++) {
+      GTSEncoder exp = expected.get(i);
+      GTSEncoder act = actual.get(i);
+      Assert.assertEquals(exp.getName(), act.getName());
+      Assert.assertEquals(exp.getMetadata().getLabels(), act.getMetadata().getLabels());
+      Assert.assertEquals(GTSHelper.classId(CLASS_KEY, exp.getName()), act.getClassId());
+      Assert.assertEquals(GTSHelper.labelsId(LABELS_KEY, exp.getMetadata().getLabels()), act.getLabelsId());
+
+      GTSDecoder expdec = exp.getDecoder(true);
+      GTSDecoder actdec = act.getDecoder(true);
+      while (expdec.next()) {
+        Assert.assertTrue(actdec.next());
+        Assert.assertEquals(expdec.getTimestamp(), actdec.getTimestamp());
+        Assert.assertEquals(expdec.getLocation(), actdec.getLocation());
+        Assert.assertEquals(expdec.getElevation(), actdec.getElevation());
+        Assert.assertEquals(expdec.getBinaryValue() instanceof byte[] ? new String((byte[]) expdec.getBinaryValue(), StandardCharsets.ISO_8859_1) : expdec.getBinaryValue(),
+            actdec.getBinaryValue() instanceof byte[] ? new String((byte[]) actdec.getBinaryValue(), StandardCharsets.ISO_8859_1) : actdec.getBinaryValue());
+      }
+      Assert.assertFalse(actdec.next());
+    }
+  }
+
+  @Test
+  public void testErrors() throws Exception {
+    String[] lines = new String[] {
+      "=1// 42",
+      "1 foo{} 42",
+      "1/ foo{} 42",
+      "1// foo{a=b 42",
+      "x// foo{} 42",
+      "1/x/ foo{} 42",
+      "1//x foo{} 42",
+      "1// foo{a} 42",
+      "1// foo{}",
+      "1// foo{} 'unterminated",
+      "1//",
+    };
+
+    for (String line: lines) {
+      ParseException expected = null;
+      ParseException actual = null;
+
+      try {
+        GTSHelper.parse(null, line, null, null, Long.MAX_VALUE, null, null, null, null, false, 0L);
+      } catch (ParseException pe) {
+        expected = pe;
+      }
+
+      GTSStreamParser parser = new GTSStreamParser(new ByteArrayInputStream(line.getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8, null, Long.MAX_VALUE, null, null, GTSStreamParser.DEFAULT_CACHE_SIZE);
+      Assert.assertTrue(parser.next());
+      Assert.assertEquals(line, parser.line());
+
+      try {
+        parser.parse(null, null, null, null, null, null, false, 0L);
+      } catch (ParseException pe) {
+        actual = pe;
+      }
+
+      Assert.assertNotNull(line, expected);
+      Assert.assertNotNull(line, actual);
+      Assert.assertEquals(line, expected.getMessage(), actual.getMessage());
+      Assert.assertEquals(line, expected.getErrorOffset(), actual.getErrorOffset());
+    }
+  }
+}
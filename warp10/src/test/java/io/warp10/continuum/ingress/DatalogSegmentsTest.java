@@ -0,0 +1,197 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.ingress;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+public class DatalogSegmentsTest {
+
+  @Test
+  public void testSegments() throws Exception {
+    File dir = Files.createTempDirectory("datalog").toFile();
+
+    final DatalogSegments segments = new DatalogSegments(dir, 1024L, true);
+
+    // Without any consumer sealed segments would be deleted
+    segments.register("a", segments.getFirstPosition());
+
+    // Concurrent appends share syncs
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      final int id = t;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int i = 0; i < 100; i++) {
+              segments.append(("#request\n" + id + "." + i + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread: threads) {
+      thread.join();
+    }
+
+    // All records are read back, across segments
+    Set<String> contents = new HashSet<String>();
+    long position = segments.getFirstPosition();
+    long last = position;
+
+    while (true) {
+      List<DatalogSegments.Record> records = segments.read(position, 7);
+      if (records.isEmpty()) {
+        break;
+      }
+      for (DatalogSegments.Record record: records) {
+        Assert.assertTrue(record.getPosition() >= last);
+        last = record.getPosition();
+        Assert.assertTrue(contents.add(new String(record.getContent(), StandardCharsets.UTF_8)));
+      }
+      position = records.get(records.size() - 1).getNext();
+    }
+
+    Assert.assertEquals(400, contents.size());
+    Assert.assertTrue(DatalogSegments.segment(position) > 1);
+
+    // Segments before the acknowledged position are purged on the next roll
+    segments.register("b", DatalogSegments.position(1L, 0L));
+    // Registering a consumer never purges segments
+    Assert.assertTrue(new File(dir, "0000000000000000" + DatalogSegments.SEGMENT_SUFFIX).exists());
+    segments.acknowledge("a", position);
+    Assert.assertFalse(new File(dir, "0000000000000000" + DatalogSegments.SEGMENT_SUFFIX).exists());
+    Assert.assertTrue(new File(dir, "0000000000000001" + DatalogSegments.SEGMENT_SUFFIX).exists());
+    segments.acknowledge("b", position);
+    Assert.assertFalse(new File(dir, "0000000000000001" + DatalogSegments.SEGMENT_SUFFIX).exists());
+
+    // Only registered consumers can acknowledge positions
+    try {
+      segments.acknowledge("c", position);
+      Assert.fail();
+    } catch (IllegalStateException ise) {
+    }
+    Assert.assertEquals(DatalogSegments.segment(position), DatalogSegments.segment(segments.getFirstPosition()));
+
+    segments.append("#request\nlast\n".getBytes(StandardCharsets.UTF_8));
+    segments.close();
+
+    // A truncated record at the end of the last segment is skipped after a restart
+    File current = new File(dir, String.format("%016x", DatalogSegments.segment(position)) + DatalogSegments.SEGMENT_SUFFIX);
+    RandomAccessFile raf = new RandomAccessFile(current, "rw");
+    raf.seek(raf.length());
+    raf.writeInt(100);
+    raf.close();
+
+    DatalogSegments reopened = new DatalogSegments(dir, 1024L, false);
+    List<DatalogSegments.Record> records = reopened.read(position, 10);
+    Assert.assertEquals(1, records.size());
+    Assert.assertEquals("#request\nlast\n", new String(records.get(0).getContent(), StandardCharsets.UTF_8));
+    Assert.assertEquals(DatalogSegments.segment(position) + 1, DatalogSegments.segment(reopened.getCommittedPosition()));
+    Assert.assertTrue(reopened.read(records.get(0).getNext(), 10).isEmpty());
+
+    reopened.append("#request\nnew\n".getBytes(StandardCharsets.UTF_8));
+    records = reopened.read(records.get(0).getNext(), 10);
+    Assert.assertEquals(1, records.size());
+    Assert.assertEquals("#request\nnew\n", new String(records.get(0).getContent(), StandardCharsets.UTF_8));
+    reopened.close();
+  }
+
+  @Test
+  public void testLargeRecords() throws Exception {
+    File dir = Files.createTempDirectory("datalog").toFile();
+
+    DatalogSegments segments = new DatalogSegments(dir, 1024L, false);
+    long position = segments.getFirstPosition();
+    segments.register("a", position);
+
+    // Content beyond the spill size is written to a temporary file
+    DatalogSegments.RecordOutputStream record = segments.newRecord();
+    PrintWriter pw = new PrintWriter(new OutputStreamWriter(record, StandardCharsets.UTF_8));
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; sb.length() <= 2 * DatalogSegments.SPILL_SIZE; i++) {
+      String line = "#request " + i + "\n";
+      pw.print(line);
+      sb.append(line);
+    }
+    pw.flush();
+    Assert.assertEquals(1, spills(dir));
+
+    segments.append(record);
+    Assert.assertEquals(0, spills(dir));
+
+    // Records smaller than the spill size stay in memory
+    record = segments.newRecord();
+    record.write("#request\nsmall\n".getBytes(StandardCharsets.UTF_8));
+    Assert.assertEquals(0, spills(dir));
+    segments.append(record);
+
+    List<DatalogSegments.Record> records = segments.read(position, 10);
+    Assert.assertEquals(2, records.size());
+    Assert.assertEquals(sb.toString(), new String(records.get(0).getContent(), StandardCharsets.UTF_8));
+    Assert.assertEquals("#request\nsmall\n", new String(records.get(1).getContent(), StandardCharsets.UTF_8));
+
+    // Discarded records leave no spill file behind
+    record = segments.newRecord();
+    byte[] chunk = new byte[DatalogSegments.SPILL_SIZE];
+    Arrays.fill(chunk, (byte) 'x');
+    record.write(chunk);
+    record.write(chunk);
+    Assert.assertEquals(1, spills(dir));
+    record.discard();
+    Assert.assertEquals(0, spills(dir));
+    Assert.assertTrue(segments.read(records.get(1).getNext(), 10).isEmpty());
+
+    // Leftover spill files are removed when reopening
+    record = segments.newRecord();
+    record.write(chunk);
+    record.write(chunk);
+    segments.close();
+    Assert.assertEquals(1, spills(dir));
+
+    DatalogSegments reopened = new DatalogSegments(dir, 1024L, false);
+    reopened.register("a", position);
+    Assert.assertEquals(0, spills(dir));
+    Assert.assertEquals(2, reopened.read(position, 10).size());
+    reopened.close();
+  }
+
+  private static int spills(File dir) {
+    return dir.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(".spill");
+      }
+    }).length;
+  }
+}
@@ -0,0 +1,173 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.continuum.store;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.gts.GeoTimeSerie.TYPE;
+import io.warp10.continuum.store.thrift.data.FetchBucketization;
+import io.warp10.continuum.store.thrift.data.FetchBucketizer;
+import io.warp10.continuum.store.thrift.data.Metadata;
+import io.warp10.script.WarpScriptBucketizerFunction;
+import io.warp10.script.WarpScriptLib;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+public class BucketizingGTSDecoderIteratorTest {
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    WarpConfig.safeSetProperties(new StringReader("warp.timeunits=us"));
+  }
+
+  private static GTSDecoderIterator iterator(final List<GTSDecoder> decoders) {
+    final Iterator<GTSDecoder> iter = decoders.iterator();
+
+    return new GTSDecoderIterator() {
+      @Override
+      public void close() throws Exception {
+      }
+
+      @Override
+      public boolean hasNext() {
+        return iter.hasNext();
+      }
+
+      @Override
+      public GTSDecoder next() {
+        return iter.next();
+      }
+    };
+  }
+
+  /**
+   * Build the chunks of two series, in reverse chronological order as returned by the stores
+   */
+  private static List<GTSEncoder> chunks(TYPE type) throws Exception {
+    List<GTSEncoder> chunks = new ArrayList<GTSEncoder>();
+    Random prng = new Random(42L);
+
+    for (int gts = 0; gts < 2; gts++) {
+      Metadata metadata = new Metadata();
+      metadata.setName("series" + gts);
+      metadata.setLabels(new java.util.HashMap<String,String>());
+      metadata.setClassId(gts);
+      metadata.setLabelsId(gts);
+
+      GTSEncoder encoder = null;
+
+      for (int i = 999; i >= 0; i--) {
+        if (null == encoder || 0 == i % 300) {
+          encoder = new GTSEncoder(0L);
+          encoder.setMetadata(metadata);
+          chunks.add(encoder);
+        }
+
+        long location = 0 == i % 3 ? GeoTimeSerie.NO_LOCATION : prng.nextLong() >>> 1;
+        long elevation = 0 == i % 5 ? GeoTimeSerie.NO_ELEVATION : prng.nextInt(1000);
+        Object value;
+        if (TYPE.DOUBLE == type) {
+          value = prng.nextInt(1000) / 8.0D;
+        } else if (TYPE.STRING == type) {
+          // Few distinct values so buckets hold equal ones
+          value = "v" + prng.nextInt(8);
+        } else if (TYPE.BOOLEAN == type) {
+          // Buckets range from all false to all true
+          value = prng.nextInt(10) < (i / 100) % 11;
+        } else {
+          value = (long) prng.nextInt(1000);
+        }
+        encoder.addValue(i * 10L, location, elevation, value);
+      }
+    }
+
+    return chunks;
+  }
+
+  @Test
+  public void testBucketizers() throws Exception {
+    String[] numeric = new String[] { "sum", "min", "max", "mean", "count", "first", "last" };
+    String[] other = new String[] { "min", "max", "count", "first", "last" };
+
+    for (TYPE type: new TYPE[] { TYPE.LONG, TYPE.DOUBLE, TYPE.STRING, TYPE.BOOLEAN }) {
+      for (String name: TYPE.LONG == type || TYPE.DOUBLE == type ? numeric : other) {
+        FetchBucketization bucketization = new FetchBucketization();
+        bucketization.setBucketizer(FetchBucketizer.valueOf(name.toUpperCase()));
+        bucketization.setBucketspan(100L);
+        bucketization.setLastbucket(8000L);
+        bucketization.setBucketcount(50);
+
+        List<GTSEncoder> chunks = chunks(type);
+        List<GTSDecoder> decoders = new ArrayList<GTSDecoder>();
+
+        for (GTSEncoder chunk: chunks) {
+          decoders.add(chunk.getDecoder());
+        }
+
+        GTSDecoderIterator iter = new BucketizingGTSDecoderIterator(iterator(decoders), bucketization);
+
+        for (int gts = 0; gts < 2; gts++) {
+          Assert.assertTrue(iter.hasNext());
+          GeoTimeSerie pushed = iter.next().decode();
+          Assert.assertEquals("series" + gts, pushed.getName());
+
+          // Reference is BUCKETIZE applied to the complete series
+          GeoTimeSerie raw = null;
+          for (GTSEncoder chunk: chunks) {
+            if (chunk.getMetadata().getName().equals(pushed.getName())) {
+              raw = null == raw ? chunk.getDecoder().decode() : GTSHelper.merge(raw, chunk.getDecoder().decode());
+            }
+          }
+
+          WarpScriptBucketizerFunction bucketizer = (WarpScriptBucketizerFunction) WarpScriptLib.getFunction("bucketizer." + name);
+          GeoTimeSerie expected = GTSHelper.bucketize(raw, 100L, 50, 8000L, bucketizer, Long.MAX_VALUE);
+
+          GTSHelper.sort(pushed);
+          GTSHelper.sort(expected);
+
+          Assert.assertEquals(name, GTSHelper.nvalues(expected), GTSHelper.nvalues(pushed));
+          Assert.assertTrue(name, GTSHelper.nvalues(expected) > 0);
+
+          for (int i = 0; i < GTSHelper.nvalues(expected); i++) {
+            Assert.assertEquals(name, GTSHelper.tickAtIndex(expected, i), GTSHelper.tickAtIndex(pushed, i));
+            Assert.assertEquals(name, GTSHelper.locationAtIndex(expected, i), GTSHelper.locationAtIndex(pushed, i));
+            Assert.assertEquals(name, GTSHelper.elevationAtIndex(expected, i), GTSHelper.elevationAtIndex(pushed, i));
+            Object value = GTSHelper.valueAtIndex(expected, i);
+            if (value instanceof Double) {
+              Assert.assertEquals(name, (Double) value, ((Number) GTSHelper.valueAtIndex(pushed, i)).doubleValue(), 1.0E-9);
+            } else {
+              Assert.assertEquals(name, value, GTSHelper.valueAtIndex(pushed, i));
+            }
+          }
+        }
+
+        Assert.assertFalse(iter.hasNext());
+      }
+    }
+  }
+}
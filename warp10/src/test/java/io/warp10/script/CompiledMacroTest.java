@@ -0,0 +1,211 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.Configuration;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.Properties;
+
+public class CompiledMacroTest {
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    WarpConfig.safeSetProperties(new StringReader("warp.timeunits=us"));
+  }
+
+  private static MemoryWarpScriptStack stack(boolean compile) {
+    return stack(compile, 0L);
+  }
+
+  private static MemoryWarpScriptStack stack(boolean compile, long jitThreshold) {
+    Properties props = new Properties();
+    props.putAll(WarpConfig.getProperties());
+    props.setProperty(Configuration.WARPSCRIPT_MACRO_COMPILE, Boolean.toString(compile));
+    props.setProperty(Configuration.WARPSCRIPT_MACRO_JIT_THRESHOLD, Long.toString(jitThreshold));
+    MemoryWarpScriptStack stack = new MemoryWarpScriptStack(null, null, props);
+    stack.maxLimits();
+    return stack;
+  }
+
+  @Test
+  public void testSameResults() throws Exception {
+    String script = "[] 'l' STORE 1 100 <% 'i' STORE $l $i 2 * 3.0 + 'a' 'b' + 2 ->LIST +! DROP %> FOR $l SIZE 42 'x' <% 1 2 3 %> EVAL";
+
+    MemoryWarpScriptStack plain = stack(false);
+    plain.execMulti(script);
+
+    for (MemoryWarpScriptStack compiled: new MemoryWarpScriptStack[] { stack(true), stack(true, 2L) }) {
+      compiled.execMulti(script);
+
+      Assert.assertEquals(plain.depth(), compiled.depth());
+      for (int i = 0; i < plain.depth(); i++) {
+        Assert.assertEquals(plain.get(i), compiled.get(i));
+      }
+      Assert.assertEquals(plain.getAttribute(WarpScriptStack.ATTRIBUTE_OPS), compiled.getAttribute(WarpScriptStack.ATTRIBUTE_OPS));
+    }
+  }
+
+  @Test
+  public void testErrors() throws Exception {
+    for (long mode = 0; mode < 3; mode++) {
+      boolean compile = mode > 0;
+      long jit = 2 == mode ? 1L : 0L;
+      MemoryWarpScriptStack stack = stack(compile, jit);
+      stack.setAttribute(WarpScriptStack.ATTRIBUTE_MAX_OPS, 100L);
+      try {
+        stack.execMulti("<% 1 1 + DROP %> 'm' STORE 1 100 <% DROP @m %> FOR");
+        Assert.fail();
+      } catch (WarpScriptException wse) {
+        Assert.assertTrue(messages(wse).contains("Operation count"));
+      }
+
+      stack = stack(compile, jit);
+      try {
+        stack.execMulti("<% 1 2 'a' + 3 %> EVAL");
+        Assert.fail();
+      } catch (WarpScriptException wse) {
+        Assert.assertTrue(messages(wse).contains("at '+'"));
+      }
+
+      // Errors pushing constants are reported at the constant, also once the macro is generated
+      stack = stack(compile, jit);
+      stack.setAttribute(WarpScriptStack.ATTRIBUTE_MAX_DEPTH, 4);
+      stack.execMulti("<% 11 12 13 14 15 16 DEPTH %> 'm' STORE");
+      for (int i = 0; i < 3; i++) {
+        try {
+          stack.execMulti("@m");
+          Assert.fail();
+        } catch (WarpScriptException wse) {
+          String messages = messages(wse);
+          Assert.assertTrue(messages, messages.contains("at '15'"));
+        }
+        stack.clear();
+      }
+    }
+  }
+
+  @Test
+  public void testJitMaxOps() throws Exception {
+    // The call to the small macro is past the number of statements it can hold
+    StringBuilder outer = new StringBuilder("<% ");
+    for (int i = 0; i < 10; i++) {
+      outer.append("1 DROP ");
+    }
+    outer.append("@inner %> 'outer' STORE");
+
+    // Hit the operation limit at each block of both generated macros
+    for (long extra = 1; extra < 40; extra++) {
+      Properties props = new Properties();
+      props.putAll(WarpConfig.getProperties());
+      props.setProperty(Configuration.WARPSCRIPT_MACRO_COMPILE, "true");
+      props.setProperty(Configuration.WARPSCRIPT_MACRO_JIT_THRESHOLD, "1");
+
+      // Stack checking the operation count as soon as it is incremented
+      MemoryWarpScriptStack stack = new MemoryWarpScriptStack(null, null, props) {
+        @Override
+        protected void incOps(long count) throws WarpScriptException {
+          super.incOps(count);
+          checkOps();
+        }
+      };
+      stack.maxLimits();
+
+      stack.execMulti("<% 1 1 + DROP %> 'inner' STORE " + outer);
+      stack.execMulti("@outer @outer");
+
+      long ops = ((Number) stack.getAttribute(WarpScriptStack.ATTRIBUTE_OPS)).longValue();
+      stack.setAttribute(WarpScriptStack.ATTRIBUTE_MAX_OPS, ops + extra);
+
+      try {
+        stack.execMulti("@outer @outer");
+        Assert.fail();
+      } catch (WarpScriptException wse) {
+        String messages = messages(wse);
+        Assert.assertTrue(messages, messages.contains("Operation count"));
+      }
+    }
+  }
+
+  @Test
+  public void testModifiedMacro() throws Exception {
+    MemoryWarpScriptStack stack = stack(true);
+    stack.execMulti("<% 1 2 + %>");
+    WarpScriptStack.Macro macro = (WarpScriptStack.Macro) stack.pop();
+
+    stack.exec(macro);
+    Assert.assertEquals(3L, stack.pop());
+
+    macro.statements().set(1, 5L);
+    stack.exec(macro);
+    Assert.assertEquals(6L, stack.pop());
+
+    macro.add(macro.get(2));
+    stack.execMulti("10");
+    stack.exec(macro);
+    Assert.assertEquals(16L, stack.pop());
+  }
+
+  @Test
+  public void testJit() throws Exception {
+    MemoryWarpScriptStack stack = stack(true, 3L);
+    stack.execMulti("<% 'x' STORE $x 2 * 1 + %>");
+    WarpScriptStack.Macro macro = (WarpScriptStack.Macro) stack.pop();
+
+    for (long i = 0; i < 5; i++) {
+      stack.push(i);
+      stack.exec(macro);
+      Assert.assertEquals(2L * i + 1L, stack.pop());
+    }
+
+    Assert.assertNotNull(macro.compiled().jit(3L));
+
+    // Errors in nested macros report the statement of each macro
+    stack.execMulti("<% 'a' + %> 'inner' STORE <% 1 @inner 2 %> 'outer' STORE");
+    for (int i = 0; i < 5; i++) {
+      try {
+        stack.execMulti("@outer");
+        Assert.fail();
+      } catch (WarpScriptException wse) {
+        String messages = messages(wse);
+        Assert.assertTrue(messages, messages.contains("at '+'"));
+        Assert.assertTrue(messages, messages.contains("at 'RUN'"));
+      }
+      stack.clear();
+    }
+
+    // Statements are kept in sync when the macro is modified
+    macro.statements().set(macro.statements().indexOf(2L), 3L);
+    stack.push(1L);
+    stack.exec(macro);
+    Assert.assertEquals(4L, stack.pop());
+  }
+
+  private static String messages(Throwable t) {
+    StringBuilder sb = new StringBuilder();
+    while (null != t) {
+      sb.append(t.getMessage());
+      sb.append("\n");
+      t = t.getCause();
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,120 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.List;
+
+public class GTSStreamTest {
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    WarpConfig.safeSetProperties(new StringReader("warp.timeunits=us"));
+  }
+
+  /**
+   * Stream generating series on demand and keeping track of how many are alive
+   */
+  private static class TestStream extends GTSStream {
+    private final int count;
+    private int produced = 0;
+    private boolean closed = false;
+
+    private TestStream(int count) {
+      this.count = count;
+    }
+
+    @Override
+    public GeoTimeSerie next() throws WarpScriptException {
+      if (this.produced == this.count) {
+        return null;
+      }
+
+      GeoTimeSerie gts = new GeoTimeSerie();
+      gts.setName("series" + this.produced);
+      gts.getMetadata().putToLabels("mod", Integer.toString(this.produced % 2));
+      for (int i = 0; i < 100; i++) {
+        GTSHelper.setValue(gts, i, (long) (i + this.produced));
+      }
+      this.produced++;
+      return gts;
+    }
+
+    @Override
+    public void close() {
+      this.closed = true;
+    }
+  }
+
+  private static MemoryWarpScriptStack stack() {
+    MemoryWarpScriptStack stack = new MemoryWarpScriptStack(null, null);
+    stack.maxLimits();
+    return stack;
+  }
+
+  @Test
+  public void testBucketize() throws Exception {
+    MemoryWarpScriptStack stack = stack();
+
+    TestStream stream = new TestStream(10);
+    stack.store("s", stream);
+    stack.execMulti("[ $s bucketizer.sum 99 10 0 ] BUCKETIZE");
+
+    List<GeoTimeSerie> bucketized = (List<GeoTimeSerie>) stack.pop();
+    Assert.assertEquals(10, bucketized.size());
+    Assert.assertTrue(stream.closed);
+
+    for (int i = 0; i < bucketized.size(); i++) {
+      Assert.assertEquals("series" + i, bucketized.get(i).getName());
+      Assert.assertEquals(10, GTSHelper.nvalues(bucketized.get(i)));
+    }
+
+    // A stream can only be consumed once
+    try {
+      stack.execMulti("[ $s bucketizer.sum 99 10 0 ] BUCKETIZE");
+      Assert.fail();
+    } catch (WarpScriptException wse) {
+    }
+  }
+
+  @Test
+  public void testMapReduce() throws Exception {
+    MemoryWarpScriptStack stack = stack();
+
+    stack.store("s", new TestStream(4));
+    stack.execMulti("[ $s 2 mapper.add 0 0 0 ] MAP");
+    List<GeoTimeSerie> mapped = (List<GeoTimeSerie>) stack.pop();
+    Assert.assertEquals(4, mapped.size());
+    Assert.assertEquals(5L, GTSHelper.valueAtIndex(mapped.get(3), 0));
+
+    stack.store("s", new TestStream(4));
+    stack.execMulti("$s { 'mapper' 2 mapper.add } MAP");
+    Assert.assertEquals(4, ((List) stack.pop()).size());
+
+    stack.store("s", new TestStream(4));
+    stack.execMulti("[ $s [ 'mod' ] reducer.count ] REDUCE");
+    Assert.assertEquals(2, ((List) stack.pop()).size());
+  }
+}
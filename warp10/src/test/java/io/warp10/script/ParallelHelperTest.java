@@ -0,0 +1,161 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.script.WarpScriptStack.Macro;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ParallelHelperTest {
+
+  private static final String SERIES = "[] 'series' STORE "
+      + "0 19 <% 'i' STORE NEWGTS 'test' RENAME { 'id' $i TOSTRING 'mod' $i 3 % TOSTRING } RELABEL 'g' STORE "
+      + "1 100 <% 'j' STORE $g $j 1000 * NaN NaN NaN $i $j * 7 % ADDVALUE DROP %> FOR $series $g +! DROP %> FOR ";
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    WarpConfig.safeSetProperties(new StringReader("warp.timeunits=us"));
+  }
+
+  @AfterClass
+  public static void afterClass() {
+    ParallelHelper.configure(0, 1, 8);
+  }
+
+  private static MemoryWarpScriptStack stack() {
+    MemoryWarpScriptStack stack = new MemoryWarpScriptStack(null, null, WarpConfig.getProperties());
+    stack.maxLimits();
+    return stack;
+  }
+
+  @Test
+  public void testUseParallelism() throws Exception {
+    MemoryWarpScriptStack stack = stack();
+    stack.execMulti(SERIES);
+
+    Object max = function(stack, "mapper.max");
+    Object strictmax = function(stack, "mapper.max 1 10 STRICTMAPPER");
+    Object median = function(stack, "reducer.median");
+    Object macromapper = function(stack, "<% DROP %> MACROMAPPER");
+    Object strictmacro = function(stack, "<% DROP %> MACROMAPPER 1 10 STRICTMAPPER");
+
+    List<Object> series = new ArrayList<Object>((List<Object>) stack.load("series"));
+
+    ParallelHelper.configure(0, 1, 8);
+    Assert.assertFalse(ParallelHelper.useParallelism(max, series));
+
+    ParallelHelper.configure(4, 4, 8);
+    Assert.assertTrue(ParallelHelper.useParallelism(max, series));
+    Assert.assertTrue(ParallelHelper.useParallelism(strictmax, series));
+
+    // Functions need to opt in
+    Assert.assertFalse(ParallelHelper.useParallelism(median, series));
+    Assert.assertFalse(ParallelHelper.useParallelism(macromapper, series));
+    Assert.assertFalse(ParallelHelper.useParallelism(strictmacro, series));
+    Assert.assertFalse(ParallelHelper.useParallelism(new Macro(), series));
+
+    // Too few elements
+    Assert.assertFalse(ParallelHelper.useParallelism(max, series.subList(0, 7)));
+
+    // The same element twice
+    series.add(series.get(0));
+    Assert.assertFalse(ParallelHelper.useParallelism(max, series));
+  }
+
+  @Test
+  public void testSameResults() throws Exception {
+    String script = SERIES
+        + "[ $series mapper.max 2 2 0 ] MAP "
+        + "[ $series mapper.mean 5 0 0 ] MAP "
+        + "[ $series bucketizer.sum 0 5000 0 ] BUCKETIZE "
+        + "[ $series [ 'mod' ] reducer.sum ] REDUCE "
+        + "[ $series mapper.max 2 2 0 ] MAP [ SWAP [] reducer.count ] REDUCE";
+
+    ParallelHelper.configure(0, 1, 8);
+    List<String> sequential = results(script);
+
+    ParallelHelper.configure(4, 4, 2);
+    List<String> parallel = results(script);
+
+    Assert.assertEquals(5, sequential.size());
+    Assert.assertEquals(sequential, parallel);
+  }
+
+  @Test
+  public void testErrors() throws Exception {
+    ParallelHelper.configure(4, 4, 2);
+
+    try {
+      ParallelHelper.apply(100, new ParallelHelper.Task<Integer>() {
+        @Override
+        public Integer apply(int idx) throws WarpScriptException {
+          if (idx >= 10 && 0 == idx % 10) {
+            throw new WarpScriptException("failed " + idx);
+          }
+          return idx;
+        }
+      });
+      Assert.fail();
+    } catch (WarpScriptException wse) {
+      // The error of the lowest index is reported
+      Assert.assertEquals("failed 10", wse.getMessage());
+    }
+
+    List<Integer> results = ParallelHelper.apply(100, new ParallelHelper.Task<Integer>() {
+      @Override
+      public Integer apply(int idx) throws WarpScriptException {
+        return idx * 2;
+      }
+    });
+
+    for (int i = 0; i < 100; i++) {
+      Assert.assertEquals(i * 2, results.get(i).intValue());
+    }
+  }
+
+  private static Object function(MemoryWarpScriptStack stack, String script) throws Exception {
+    stack.execMulti(script);
+    Assert.assertEquals(1, stack.depth());
+    return stack.pop();
+  }
+
+  private static List<String> results(String script) throws Exception {
+    MemoryWarpScriptStack stack = stack();
+    stack.execMulti(script);
+
+    List<String> results = new ArrayList<String>();
+
+    while (stack.depth() > 0) {
+      StringBuilder sb = new StringBuilder();
+      for (Object gts: (List<Object>) stack.pop()) {
+        Assert.assertTrue(gts instanceof GeoTimeSerie);
+        sb.append(gts.toString());
+      }
+      results.add(sb.toString());
+    }
+
+    return results;
+  }
+}
@@ -0,0 +1,117 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.Configuration;
+import io.warp10.script.WarpScriptStack.Macro;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.util.Map;
+import java.util.Properties;
+
+public class WarpScriptProfilerTest {
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    WarpConfig.safeSetProperties(new StringReader("warp.timeunits=us"));
+  }
+
+  private static MemoryWarpScriptStack stack(boolean compile) throws Exception {
+    Properties props = new Properties();
+    props.putAll(WarpConfig.getProperties());
+    props.setProperty(Configuration.WARPSCRIPT_MACRO_COMPILE, Boolean.toString(compile));
+    MemoryWarpScriptStack stack = new MemoryWarpScriptStack(null, null, props);
+    stack.maxLimits();
+
+    // Only named macros are profiled, name the macro as if it came from a repository
+    stack.execMulti("<% 1 1 + DROP %>");
+    Macro macro = (Macro) stack.pop();
+    macro.setName("test/m");
+    stack.store("m", macro);
+
+    return stack;
+  }
+
+  @Test
+  public void testProfile() throws Exception {
+    for (boolean compile: new boolean[] { false, true }) {
+      MemoryWarpScriptStack stack = stack(compile);
+
+      stack.execMulti("PROFILE 1 3 <% DROP @m %> FOR PROFILESTATS");
+
+      Map<String,Object> stats = (Map<String,Object>) stack.pop();
+      Assert.assertNotNull(stack.getAttribute(WarpScriptStack.ATTRIBUTE_PROFILER));
+
+      Map<String,Object> functions = (Map<String,Object>) stats.get(WarpScriptProfiler.KEY_FUNCTIONS);
+      Map<String,Object> macros = (Map<String,Object>) stats.get(WarpScriptProfiler.KEY_MACROS);
+
+      // Functions called from macros are counted
+      Assert.assertEquals(3L, calls(functions, "+"));
+      Assert.assertEquals(6L, calls(functions, "DROP"));
+      Assert.assertEquals(1L, calls(functions, "FOR"));
+      Assert.assertEquals(3L, calls(macros, "test/m"));
+      Assert.assertEquals(1, macros.size());
+
+      // FOR includes the time spent in the macros it calls
+      Assert.assertTrue(time(functions, "FOR") >= time(macros, "test/m"));
+
+      // NOPROFILE pushes the final statistics and detaches the profiler
+      stack.execMulti("@m NOPROFILE");
+      stats = (Map<String,Object>) stack.pop();
+      Assert.assertEquals(4L, calls((Map<String,Object>) stats.get(WarpScriptProfiler.KEY_MACROS), "test/m"));
+      Assert.assertNull(stack.getAttribute(WarpScriptStack.ATTRIBUTE_PROFILER));
+
+      stack.execMulti("@m PROFILESTATS");
+      Assert.assertNull(stack.pop());
+      // The detached profiler is no longer updated
+      Assert.assertEquals(4L, calls((Map<String,Object>) stats.get(WarpScriptProfiler.KEY_MACROS), "test/m"));
+    }
+  }
+
+  @Test
+  public void testDisabled() throws Exception {
+    MemoryWarpScriptStack stack = stack(true);
+
+    stack.execMulti("@m PROFILESTATS NOPROFILE");
+    Assert.assertNull(stack.pop());
+    Assert.assertNull(stack.pop());
+    Assert.assertEquals(0, stack.depth());
+
+    // Profiling can be restarted, statistics start from scratch
+    stack.execMulti("PROFILE @m NOPROFILE PROFILE @m @m NOPROFILE");
+    Map<String,Object> stats = (Map<String,Object>) stack.pop();
+    Assert.assertEquals(2L, calls((Map<String,Object>) stats.get(WarpScriptProfiler.KEY_MACROS), "test/m"));
+    stats = (Map<String,Object>) stack.pop();
+    Assert.assertEquals(1L, calls((Map<String,Object>) stats.get(WarpScriptProfiler.KEY_MACROS), "test/m"));
+  }
+
+  private static long calls(Map<String,Object> stats, String name) {
+    Map<String,Object> values = (Map<String,Object>) stats.get(name);
+    Assert.assertNotNull(name, values);
+    return ((Number) values.get(WarpScriptProfiler.KEY_CALLS)).longValue();
+  }
+
+  private static long time(Map<String,Object> stats, String name) {
+    Map<String,Object> values = (Map<String,Object>) stats.get(name);
+    Assert.assertNotNull(name, values);
+    return ((Number) values.get(WarpScriptProfiler.KEY_TIME)).longValue();
+  }
+}
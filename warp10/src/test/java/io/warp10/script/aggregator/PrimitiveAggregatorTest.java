@@ -0,0 +1,174 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.aggregator;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.script.WarpScriptAggregatorFunction;
+import io.warp10.script.WarpScriptBucketizerFunction;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptLib;
+import io.warp10.script.WarpScriptPrimitiveAggregatorFunction;
+import io.warp10.script.WarpScriptReducerFunction;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Check that the primitive variant of the aggregators produces the same results as their boxed variant
+ */
+public class PrimitiveAggregatorTest {
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    StringBuilder props = new StringBuilder();
+    props.append("warp.timeunits=us");
+    WarpConfig.safeSetProperties(new StringReader(props.toString()));
+  }
+
+  /**
+   * Aggregator which only exposes the boxed variant of another one
+   */
+  private static class Boxed implements WarpScriptBucketizerFunction, WarpScriptReducerFunction {
+    private final WarpScriptAggregatorFunction aggregator;
+
+    private Boxed(WarpScriptAggregatorFunction aggregator) {
+      this.aggregator = aggregator;
+    }
+
+    @Override
+    public Object apply(Object[] args) throws WarpScriptException {
+      return this.aggregator.apply(args);
+    }
+  }
+
+  @Test
+  public void testBucketize() throws Exception {
+    Random prng = new Random(42L);
+
+    for (WarpScriptAggregatorFunction aggregator: aggregators("bucketizer.")) {
+      for (int i = 0; i < 8; i++) {
+        GeoTimeSerie gts = gts(prng, 0 == i % 2, i >= 4, 1000);
+
+        GeoTimeSerie expected = GTSHelper.bucketize(gts.clone(), 10L, 0, 0L, new Boxed(aggregator), Long.MAX_VALUE);
+        GeoTimeSerie actual = GTSHelper.bucketize(gts.clone(), 10L, 0, 0L, (WarpScriptBucketizerFunction) aggregator, Long.MAX_VALUE);
+
+        assertSame(aggregator.toString(), expected, actual);
+      }
+    }
+  }
+
+  @Test
+  public void testReduce() throws Exception {
+    Random prng = new Random(42L);
+
+    for (WarpScriptAggregatorFunction aggregator: aggregators("reducer.")) {
+      for (int i = 0; i < 8; i++) {
+        List<GeoTimeSerie> series = new ArrayList<GeoTimeSerie>();
+        for (int j = 0; j < 4; j++) {
+          // Series have distinct ticks so some values are null for most ticks
+          series.add(gts(prng, 0 == i % 2, i >= 4, 0 == j ? 0 : 200));
+        }
+
+        List<GeoTimeSerie> expected;
+
+        try {
+          expected = GTSHelper.reduce(new Boxed(aggregator), clone(series), null, 0 == i % 3);
+        } catch (WarpScriptException wse) {
+          // Aggregators forbidding nulls must fail the same way
+          try {
+            GTSHelper.reduce((WarpScriptReducerFunction) aggregator, clone(series), null, 0 == i % 3);
+            Assert.fail(aggregator.toString());
+          } catch (WarpScriptException e) {
+            Assert.assertEquals(wse.getMessage(), e.getMessage());
+          }
+          continue;
+        }
+
+        List<GeoTimeSerie> actual = GTSHelper.reduce((WarpScriptReducerFunction) aggregator, clone(series), null, 0 == i % 3);
+
+        Assert.assertEquals(expected.size(), actual.size());
+        for (int j = 0; j < expected.size(); j++) {
+          assertSame(aggregator.toString(), expected.get(j), actual.get(j));
+        }
+      }
+    }
+  }
+
+  private static List<WarpScriptAggregatorFunction> aggregators(String prefix) {
+    List<WarpScriptAggregatorFunction> aggregators = new ArrayList<WarpScriptAggregatorFunction>();
+
+    for (Object name: WarpScriptLib.getFunctionNames()) {
+      Object function = WarpScriptLib.getFunction(name.toString());
+      if (name.toString().startsWith(prefix) && function instanceof WarpScriptPrimitiveAggregatorFunction) {
+        aggregators.add((WarpScriptAggregatorFunction) function);
+      }
+    }
+
+    aggregators.add(new Percentile(prefix + "percentile", 42.0D, 1, false));
+    aggregators.add(new Percentile(prefix + "percentile", 42.0D, 7, true));
+    aggregators.add(new Variance(prefix + "var", true, false));
+    aggregators.add(new StandardDeviation(prefix + "sd", false, false));
+
+    Assert.assertTrue(aggregators.size() > 10);
+
+    return aggregators;
+  }
+
+  private static GeoTimeSerie gts(Random prng, boolean doubles, boolean geo, int n) {
+    GeoTimeSerie gts = new GeoTimeSerie();
+    gts.setName("gts");
+
+    for (int i = 0; i < n; i++) {
+      // Duplicate ticks and unsorted input
+      long tick = prng.nextInt(n * 3);
+      long location = geo && prng.nextBoolean() ? prng.nextLong() : GeoTimeSerie.NO_LOCATION;
+      long elevation = geo && prng.nextBoolean() ? prng.nextInt(1000) : GeoTimeSerie.NO_ELEVATION;
+      Object value = doubles ? (Object) (prng.nextGaussian() * 100.0D) : (Object) (long) (prng.nextInt(2000) - 1000);
+      GTSHelper.setValue(gts, tick, location, elevation, value, false);
+    }
+
+    return gts;
+  }
+
+  private static List<GeoTimeSerie> clone(List<GeoTimeSerie> series) {
+    List<GeoTimeSerie> clones = new ArrayList<GeoTimeSerie>();
+    for (GeoTimeSerie gts: series) {
+      clones.add(gts.clone());
+    }
+    return clones;
+  }
+
+  private static void assertSame(String message, GeoTimeSerie expected, GeoTimeSerie actual) {
+    Assert.assertEquals(message, expected.size(), actual.size());
+    Assert.assertEquals(message, expected.getType(), actual.getType());
+
+    for (int i = 0; i < expected.size(); i++) {
+      Assert.assertEquals(message, GTSHelper.tickAtIndex(expected, i), GTSHelper.tickAtIndex(actual, i));
+      Assert.assertEquals(message, GTSHelper.locationAtIndex(expected, i), GTSHelper.locationAtIndex(actual, i));
+      Assert.assertEquals(message, GTSHelper.elevationAtIndex(expected, i), GTSHelper.elevationAtIndex(actual, i));
+      Assert.assertEquals(message, GTSHelper.valueAtIndex(expected, i), GTSHelper.valueAtIndex(actual, i));
+    }
+  }
+}
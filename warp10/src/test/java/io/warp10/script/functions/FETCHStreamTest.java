@@ -0,0 +1,374 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.script.functions;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.AuthenticationPlugin;
+import io.warp10.continuum.Tokens;
+import io.warp10.continuum.egress.EgressFetchHandler;
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.store.BucketizingGTSDecoderIterator;
+import io.warp10.continuum.store.DirectoryClient;
+import io.warp10.continuum.store.GTSDecoderIterator;
+import io.warp10.continuum.store.MetadataIterator;
+import io.warp10.continuum.store.StoreClient;
+import io.warp10.continuum.store.thrift.data.DirectoryRequest;
+import io.warp10.continuum.store.thrift.data.FetchRequest;
+import io.warp10.continuum.store.thrift.data.Metadata;
+import io.warp10.quasar.token.thrift.data.ReadToken;
+import io.warp10.quasar.token.thrift.data.WriteToken;
+import io.warp10.script.GTSStream;
+import io.warp10.script.MemoryWarpScriptStack;
+import io.warp10.script.WarpScriptException;
+import io.warp10.script.WarpScriptStack;
+import io.warp10.standalone.StandalonePlasmaHandlerInterface;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+public class FETCHStreamTest {
+
+  private static final String TOKEN = "fetch-stream-test-token";
+
+  /**
+   * Number of datapoints of each series, returned by the store in two chunks
+   */
+  private static final int DATAPOINTS = 100;
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    WarpConfig.safeSetProperties(new StringReader("warp.timeunits=us"));
+
+    Tokens.register(new AuthenticationPlugin() {
+      @Override
+      public ReadToken extractReadToken(String token) throws WarpScriptException {
+        if (!TOKEN.equals(token)) {
+          return null;
+        }
+        ReadToken rtoken = new ReadToken();
+        rtoken.setAppName("test");
+        rtoken.setBilledId(ByteBuffer.wrap(new byte[16]));
+        rtoken.setIssuanceTimestamp(0L);
+        rtoken.setExpiryTimestamp(Long.MAX_VALUE);
+        return rtoken;
+      }
+
+      @Override
+      public WriteToken extractWriteToken(String token) throws WarpScriptException {
+        return null;
+      }
+    });
+  }
+
+  private long batchsize;
+
+  @Before
+  public void before() {
+    this.batchsize = EgressFetchHandler.FETCH_BATCHSIZE;
+    // Several batches of Metadata per FETCH
+    EgressFetchHandler.FETCH_BATCHSIZE = 2;
+  }
+
+  @After
+  public void after() {
+    EgressFetchHandler.FETCH_BATCHSIZE = this.batchsize;
+  }
+
+  /**
+   * Directory returning a fixed list of Metadata
+   */
+  private static class TestDirectoryClient implements DirectoryClient {
+    private final List<Metadata> metadatas;
+
+    private TestDirectoryClient(List<Metadata> metadatas) {
+      this.metadatas = metadatas;
+    }
+
+    @Override
+    public List<Metadata> find(DirectoryRequest request) throws IOException {
+      return new ArrayList<Metadata>(this.metadatas);
+    }
+
+    @Override
+    public Map<String,Object> stats(DirectoryRequest request) throws IOException {
+      throw new IOException("Not supported.");
+    }
+
+    @Override
+    public MetadataIterator iterator(DirectoryRequest request) throws IOException {
+      final Iterator<Metadata> iter = find(request).iterator();
+
+      return new MetadataIterator() {
+        @Override
+        public boolean hasNext() {
+          return iter.hasNext();
+        }
+
+        @Override
+        public Metadata next() {
+          return iter.next();
+        }
+
+        @Override
+        public void close() throws Exception {
+        }
+      };
+    }
+  }
+
+  /**
+   * Store returning each series as two chunks and recording the fetch requests, the requested
+   * bucketization is only honored if 'bucketize' is true
+   */
+  private static class TestStoreClient implements StoreClient {
+    private final List<FetchRequest> requests = new ArrayList<FetchRequest>();
+    private final boolean bucketize;
+
+    private TestStoreClient() {
+      this(false);
+    }
+
+    private TestStoreClient(boolean bucketize) {
+      this.bucketize = bucketize;
+    }
+
+    @Override
+    public void store(GTSEncoder encoder) throws IOException {
+      throw new IOException("Not supported.");
+    }
+
+    @Override
+    public long delete(WriteToken token, Metadata metadata, long start, long end) throws IOException {
+      throw new IOException("Not supported.");
+    }
+
+    @Override
+    public GTSDecoderIterator fetch(FetchRequest req) throws IOException {
+      this.requests.add(req);
+
+      final List<GTSDecoder> decoders = new ArrayList<GTSDecoder>();
+
+      try {
+        for (Metadata metadata: req.getMetadatas()) {
+          long id = Long.parseLong(metadata.getLabels().get("id"));
+
+          for (int chunk = 0; chunk < 2; chunk++) {
+            GTSEncoder encoder = new GTSEncoder(0L);
+            encoder.setMetadata(new Metadata(metadata));
+            for (int i = chunk; i < DATAPOINTS; i += 2) {
+              encoder.addValue(i, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, id * 1000L + i);
+            }
+            decoders.add(encoder.getDecoder());
+          }
+        }
+      } catch (IOException ioe) {
+        throw ioe;
+      } catch (Exception e) {
+        throw new IOException(e);
+      }
+
+      final Iterator<GTSDecoder> iter = decoders.iterator();
+
+      GTSDecoderIterator iterator = new GTSDecoderIterator() {
+        @Override
+        public boolean hasNext() {
+          return iter.hasNext();
+        }
+
+        @Override
+        public GTSDecoder next() {
+          return iter.next();
+        }
+
+        @Override
+        public void close() throws Exception {
+        }
+      };
+
+      return this.bucketize ? BucketizingGTSDecoderIterator.wrap(req, iterator) : iterator;
+    }
+
+    @Override
+    public void addPlasmaHandler(StandalonePlasmaHandlerInterface handler) {
+    }
+  }
+
+  private static List<Metadata> metadatas(int... ids) {
+    List<Metadata> metadatas = new ArrayList<Metadata>();
+
+    for (int id: ids) {
+      Metadata metadata = new Metadata();
+      metadata.setName("test");
+      metadata.putToLabels("id", Integer.toString(id));
+      metadata.setClassId(1L);
+      metadata.setLabelsId(id);
+      metadatas.add(metadata);
+    }
+
+    return metadatas;
+  }
+
+  private static MemoryWarpScriptStack stack(StoreClient store, DirectoryClient directory) {
+    MemoryWarpScriptStack stack = new MemoryWarpScriptStack(store, directory, WarpConfig.getProperties());
+    stack.maxLimits();
+    return stack;
+  }
+
+  private static String fetch(boolean stream) {
+    return "{ 'token' '" + TOKEN + "' 'class' 'test' 'labels' {} 'end' 1000 'timespan' 1000 'stream' " + stream + " } FETCH";
+  }
+
+  @Test
+  public void testSameAsFetch() throws Exception {
+    // Series 1 is returned twice, in two different batches
+    DirectoryClient directory = new TestDirectoryClient(metadatas(0, 1, 1, 2, 3));
+
+    TestStoreClient eagerStore = new TestStoreClient();
+    MemoryWarpScriptStack stack = stack(eagerStore, directory);
+    stack.execMulti(fetch(false));
+    List<GeoTimeSerie> expected = (List<GeoTimeSerie>) stack.pop();
+    Assert.assertEquals(3, eagerStore.requests.size());
+
+    TestStoreClient streamStore = new TestStoreClient();
+    stack = stack(streamStore, directory);
+    stack.execMulti(fetch(true));
+    GTSStream stream = (GTSStream) stack.pop();
+
+    // Datapoints are only fetched when the stream is consumed, one batch at a time
+    Assert.assertEquals(0, streamStore.requests.size());
+    stream.consume();
+
+    List<GeoTimeSerie> actual = new ArrayList<GeoTimeSerie>();
+    actual.add(stream.next());
+    Assert.assertEquals(1, streamStore.requests.size());
+
+    GeoTimeSerie gts;
+    while (null != (gts = stream.next())) {
+      actual.add(gts);
+    }
+    stream.close();
+    Assert.assertEquals(3, streamStore.requests.size());
+
+    // Chunks are merged within a batch but not across batches
+    Assert.assertEquals(5, expected.size());
+    Assert.assertEquals(expected.size(), actual.size());
+
+    for (int i = 0; i < expected.size(); i++) {
+      Assert.assertEquals(DATAPOINTS, actual.get(i).size());
+      Assert.assertEquals(expected.get(i).toString(), actual.get(i).toString());
+    }
+    Assert.assertEquals("1", actual.get(1).getLabel("id"));
+    Assert.assertEquals("1", actual.get(2).getLabel("id"));
+  }
+
+  @Test
+  public void testFetchLimit() throws Exception {
+    DirectoryClient directory = new TestDirectoryClient(metadatas(0, 1, 2));
+
+    MemoryWarpScriptStack stack = stack(new TestStoreClient(), directory);
+    stack.setAttribute(WarpScriptStack.ATTRIBUTE_FETCH_LIMIT, (long) (DATAPOINTS + DATAPOINTS / 2));
+
+    try {
+      stack.execMulti(fetch(false));
+      Assert.fail();
+    } catch (WarpScriptException wse) {
+      Assert.assertTrue(messages(wse).contains("exceeded limit"));
+    }
+
+    stack = stack(new TestStoreClient(), directory);
+    stack.setAttribute(WarpScriptStack.ATTRIBUTE_FETCH_LIMIT, (long) (DATAPOINTS + DATAPOINTS / 2));
+
+    // The limit is checked as the stream is consumed
+    stack.execMulti(fetch(true));
+    GTSStream stream = (GTSStream) stack.pop();
+    stream.consume();
+    Assert.assertEquals(DATAPOINTS, stream.next().size());
+
+    try {
+      stream.next();
+      Assert.fail();
+    } catch (WarpScriptException wse) {
+      Assert.assertTrue(messages(wse).contains("exceeded limit"));
+    } finally {
+      stream.close();
+    }
+  }
+
+  @Test
+  public void testBucketization() throws Exception {
+    DirectoryClient directory = new TestDirectoryClient(metadatas(0, 1, 2));
+
+    MemoryWarpScriptStack stack = stack(new TestStoreClient(), directory);
+    stack.execMulti(fetch(false) + " [ SWAP bucketizer.count 99 10 5 ] BUCKETIZE");
+    List<GeoTimeSerie> expected = (List<GeoTimeSerie>) stack.pop();
+
+    String bucketized = "{ 'token' '" + TOKEN + "' 'class' 'test' 'labels' {} 'end' 1000 'timespan' 1000 "
+        + "'bucketizer' bucketizer.count 'bucketspan' 10 'bucketcount' 5 'lastbucket' 99 'rollups' false ";
+
+    // Stores which ignore the bucketization and stores which honor it produce the same series
+    for (boolean bucketize: new boolean[] { false, true }) {
+      stack = stack(new TestStoreClient(bucketize), directory);
+      stack.execMulti(bucketized + "'stream' false } FETCH");
+      List<GeoTimeSerie> actual = (List<GeoTimeSerie>) stack.pop();
+
+      stack.execMulti(bucketized + "'stream' true } FETCH");
+      GTSStream stream = (GTSStream) stack.pop();
+      stream.consume();
+      GeoTimeSerie gts;
+      while (null != (gts = stream.next())) {
+        actual.add(gts);
+      }
+      stream.close();
+
+      Assert.assertEquals(2 * expected.size(), actual.size());
+
+      for (int i = 0; i < actual.size(); i++) {
+        gts = actual.get(i);
+        Assert.assertTrue(GTSHelper.isBucketized(gts));
+        Assert.assertEquals(5, gts.size());
+        // Datapoints are only counted once
+        for (int j = 0; j < gts.size(); j++) {
+          Assert.assertEquals(10L, GTSHelper.valueAtIndex(gts, j));
+        }
+        Assert.assertEquals(expected.get(i % expected.size()).toString(), gts.toString());
+      }
+    }
+  }
+
+  private static String messages(Throwable t) {
+    StringBuilder sb = new StringBuilder();
+    while (null != t) {
+      sb.append(t.getMessage()).append("\n");
+      t = t.getCause();
+    }
+    return sb.toString();
+  }
+}
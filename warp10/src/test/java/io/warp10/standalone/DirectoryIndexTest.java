@@ -0,0 +1,302 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.standalone;
+
+import io.warp10.continuum.store.thrift.data.Metadata;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DirectoryIndexTest {
+
+  @Test
+  public void testPutGetRemove() throws Exception {
+    DirectoryIndex index = new DirectoryIndex();
+
+    for (int i = 0; i < 10000; i++) {
+      Assert.assertNull(index.put(metadata("class" + (i % 3), i % 3, i)));
+    }
+
+    Assert.assertEquals(3, index.getClassCount());
+
+    // Replacing an existing entry
+    Metadata replacement = metadata("class0", 0L, 0L);
+    Assert.assertNotNull(index.put(replacement));
+    Assert.assertSame(replacement, index.get("class0", 0L));
+
+    // Keeping an existing entry
+    Assert.assertSame(replacement, index.putIfAbsent(metadata("class0", 0L, 0L)));
+    Assert.assertSame(replacement, index.get("class0", 0L));
+    Metadata added = metadata("class3", 3L, 3L);
+    Assert.assertNull(index.putIfAbsent(added));
+    Assert.assertSame(added, index.get("class3", 3L));
+    Assert.assertSame(added, index.remove("class3", 3L));
+
+    for (int i = 0; i < 10000; i++) {
+      Metadata metadata = index.get("class" + (i % 3), i);
+      Assert.assertNotNull(metadata);
+      Assert.assertEquals(i, metadata.getLabelsId());
+      Assert.assertEquals(Integer.toString(i), metadata.getLabels().get("id"));
+      Assert.assertEquals("b", metadata.getLabels().get("a"));
+      Assert.assertNull(metadata.getLabels().get("c"));
+    }
+
+    // Remove half of the entries of class1
+    for (int i = 1; i < 10000; i += 6) {
+      Assert.assertNotNull(index.remove("class1", i));
+      Assert.assertNull(index.remove("class1", i));
+    }
+
+    Set<Long> ids = new HashSet<Long>();
+    Iterator<Metadata> iter = index.getClassIndex("class1").iterator();
+    while (iter.hasNext()) {
+      ids.add(iter.next().getLabelsId());
+    }
+
+    Assert.assertEquals(index.getClassIndex("class1").size(), ids.size());
+
+    for (int i = 1; i < 10000; i += 3) {
+      Assert.assertEquals(0 != (i - 1) % 6, ids.contains((long) i));
+    }
+
+    // Removing all entries of a class removes the class
+    for (int i = 2; i < 10000; i += 3) {
+      index.remove("class2", i);
+    }
+
+    Assert.assertFalse(index.containsClass("class2"));
+    Assert.assertEquals(2, index.getClassIndices().size());
+    Assert.assertEquals(2, index.asMap().size());
+
+    // The class can be registered again
+    Assert.assertNull(index.put(metadata("class2", 2L, 2L)));
+    Assert.assertEquals(1, index.asMap().get("class2").size());
+  }
+
+  @Test
+  public void testLabels() throws Exception {
+    DirectoryIndex index = new DirectoryIndex();
+
+    Metadata metadata = metadata("class", 0L, 0L);
+    Map<String,String> labels = new HashMap<String,String>(metadata.getLabels());
+
+    index.put(metadata);
+
+    Assert.assertTrue(metadata.getLabels() instanceof DirectoryIndex.Labels);
+    Assert.assertEquals(labels, metadata.getLabels());
+    Assert.assertEquals(metadata.getLabels(), labels);
+    Assert.assertEquals(labels.hashCode(), metadata.getLabels().hashCode());
+
+    // Strings are shared between Metadata
+    Metadata other = metadata("class", 0L, 1L);
+    index.put(other);
+    Assert.assertSame(metadata.getName(), other.getName());
+    Assert.assertSame(metadata.getLabels().get("a"), other.getLabels().get("a"));
+
+    try {
+      metadata.getLabels().put("x", "y");
+      Assert.fail();
+    } catch (UnsupportedOperationException uoe) {
+    }
+  }
+
+  @Test
+  public void testConcurrentRegistrations() throws Exception {
+    final DirectoryIndex index = new DirectoryIndex();
+    final AtomicInteger added = new AtomicInteger();
+
+    Thread[] threads = new Thread[4];
+
+    for (int t = 0; t < threads.length; t++) {
+      final int offset = t;
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 20000; i++) {
+            // Threads register overlapping ids in the same classes
+            if (null == index.put(metadata("class" + (i % 8), i % 8, i + offset * 10000))) {
+              added.incrementAndGet();
+            }
+            // Concurrent lookups
+            index.get("class" + (i % 8), i);
+          }
+        }
+      };
+    }
+
+    for (Thread thread: threads) {
+      thread.start();
+    }
+
+    for (Thread thread: threads) {
+      thread.join();
+    }
+
+    Assert.assertEquals(50000, added.get());
+
+    int count = 0;
+    for (DirectoryIndex.ClassIndex classIndex: index.getClassIndices()) {
+      count += classIndex.size();
+    }
+
+    Assert.assertEquals(50000, count);
+  }
+
+  @Test
+  public void testOrdinalBitmap() throws Exception {
+    Random prng = new Random(42L);
+
+    OrdinalBitmap a = new OrdinalBitmap();
+    OrdinalBitmap b = new OrdinalBitmap();
+    TreeSet<Integer> sa = new TreeSet<Integer>();
+    TreeSet<Integer> sb = new TreeSet<Integer>();
+
+    // Mix sparse and dense containers
+    for (int i = 0; i < 200000; i++) {
+      int ordinal = 0 == i % 2 ? prng.nextInt(1 << 16) : prng.nextInt(1 << 20);
+      Assert.assertEquals(sa.add(ordinal), a.add(ordinal));
+      ordinal = prng.nextInt(1 << 17);
+      Assert.assertEquals(sb.add(ordinal), b.add(ordinal));
+    }
+
+    for (int i = 0; i < 100000; i++) {
+      int ordinal = prng.nextInt(1 << 20);
+      Assert.assertEquals(sa.remove(ordinal), a.remove(ordinal));
+      Assert.assertEquals(sa.contains(ordinal + 1), a.contains(ordinal + 1));
+    }
+
+    Assert.assertEquals(sa.size(), a.cardinality());
+    assertOrdinals(sa, a.toArray());
+
+    OrdinalBitmap c = a.copy();
+    c.retain(b);
+    sa.retainAll(sb);
+
+    Assert.assertEquals(sa.size(), c.cardinality());
+    assertOrdinals(sa, c.toArray());
+    Assert.assertTrue(c.bytes() > 0);
+
+    c.retain(new OrdinalBitmap());
+    Assert.assertTrue(c.isEmpty());
+  }
+
+  @Test
+  public void testLabelIndex() throws Exception {
+    DirectoryIndex index = new DirectoryIndex(true);
+    LabelIndex labelIndex = index.getLabelIndex();
+
+    for (int i = 0; i < 10000; i++) {
+      Metadata metadata = metadata("class" + (i % 3), i % 3, i);
+      metadata.setAttributes(new HashMap<String,String>());
+      metadata.getAttributes().put("mod", Integer.toString(i % 7));
+      index.put(metadata);
+    }
+
+    Map<String,String> exact = new HashMap<String,String>();
+    exact.put("a", "b");
+    Assert.assertEquals(10000, labelIndex.candidates(exact).length);
+
+    // Attributes are indexed too
+    exact.put("mod", "3");
+    int[] ordinals = labelIndex.candidates(exact);
+    Assert.assertEquals(1429, ordinals.length);
+    for (int ordinal: ordinals) {
+      Assert.assertEquals("3", labelIndex.get(ordinal).getAttributes().get("mod"));
+    }
+
+    // Exact class selectors restrict the candidates
+    ordinals = labelIndex.candidates("class1", exact);
+    Assert.assertEquals(476, ordinals.length);
+    for (int ordinal: ordinals) {
+      Assert.assertEquals("class1", labelIndex.get(ordinal).getName());
+      Assert.assertEquals("3", labelIndex.get(ordinal).getAttributes().get("mod"));
+    }
+    Assert.assertEquals(0, labelIndex.candidates("unknown", exact).length);
+
+    exact.put("id", "10");
+    Assert.assertEquals(1, labelIndex.candidates(exact).length);
+    Assert.assertEquals(1, labelIndex.candidates("class1", exact).length);
+    Assert.assertEquals(0, labelIndex.candidates("class0", exact).length);
+    Assert.assertEquals(10L, labelIndex.get(labelIndex.candidates(exact)[0]).getLabelsId());
+
+    exact.put("id", "11");
+    Assert.assertEquals(0, labelIndex.candidates(exact).length);
+
+    // Replacing a Metadata updates the postings of its attributes
+    Metadata metadata = metadata("class2", 2L, 11L);
+    metadata.setAttributes(new HashMap<String,String>());
+    metadata.getAttributes().put("mod", "3");
+    index.put(metadata);
+    Assert.assertEquals(1, labelIndex.candidates(exact).length);
+    exact.put("mod", "4");
+    Assert.assertEquals(0, labelIndex.candidates(exact).length);
+
+    // Removed Metadata are no longer candidates and their ordinals are reused
+    long postings = labelIndex.getPostings();
+    long bytes = labelIndex.getBytes();
+
+    for (int i = 0; i < 10000; i += 2) {
+      index.remove("class" + (i % 3), i);
+    }
+
+    exact.clear();
+    exact.put("a", "b");
+    Assert.assertEquals(5000, labelIndex.candidates(exact).length);
+    Assert.assertEquals(1667, labelIndex.candidates("class1", exact).length);
+    Assert.assertEquals(postings - 5000, labelIndex.getPostings());
+    Assert.assertTrue(labelIndex.getBytes() < bytes);
+
+    for (int i = 0; i < 10000; i += 2) {
+      index.put(metadata("class" + (i % 3), i % 3, i));
+    }
+
+    for (int ordinal: labelIndex.candidates(exact)) {
+      Assert.assertTrue(ordinal < 10000);
+    }
+    Assert.assertEquals(10000, labelIndex.candidates(exact).length);
+  }
+
+  private static void assertOrdinals(TreeSet<Integer> expected, int[] ordinals) {
+    Assert.assertEquals(expected.size(), ordinals.length);
+    int idx = 0;
+    for (int ordinal: expected) {
+      Assert.assertEquals(ordinal, ordinals[idx++]);
+    }
+  }
+
+  private static Metadata metadata(String name, long classId, long labelsId) {
+    Metadata metadata = new Metadata();
+    metadata.setName(name);
+    metadata.setClassId(classId);
+    metadata.setLabelsId(labelsId);
+    Map<String,String> labels = new HashMap<String,String>();
+    labels.put("a", "b");
+    labels.put("id", Long.toString(labelsId));
+    labels.put(".app", "test");
+    metadata.setLabels(labels);
+    return metadata;
+  }
+}
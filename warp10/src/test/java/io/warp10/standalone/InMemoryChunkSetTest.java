@@ -0,0 +1,247 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.standalone;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.store.thrift.data.Metadata;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class InMemoryChunkSetTest {
+
+  private static final int CHUNK_COUNT = 4;
+  private static final long CHUNK_LENGTH = 10000000L;
+
+  /**
+   * Fixed time base, so the valid chunks do not move while a test runs
+   */
+  private static final long NOW = 1600000000000000L;
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    WarpConfig.safeSetProperties(new StringReader("warp.timeunits=us"));
+  }
+
+  private static InMemoryChunkSet chunkSet(OffHeapSlabAllocator allocator) {
+    return new InMemoryChunkSet(CHUNK_COUNT, CHUNK_LENGTH, false, allocator, null == allocator ? 0 : 64) {
+      @Override
+      long now() {
+        return NOW;
+      }
+    };
+  }
+
+  @Test
+  public void testOffHeap() throws Exception {
+    OffHeapSlabAllocator allocator = new OffHeapSlabAllocator(4096, null);
+
+    InMemoryChunkSet onheap = chunkSet(null);
+    InMemoryChunkSet offheap = chunkSet(allocator);
+
+    long now = NOW;
+    Random prng = new Random(42L);
+
+    for (int i = 0; i < 100; i++) {
+      GTSEncoder encoder = new GTSEncoder(0L);
+      for (int j = 0; j < 50; j++) {
+        long ts = now - (long) (prng.nextDouble() * (CHUNK_COUNT - 1) * CHUNK_LENGTH);
+        if (0 == j % 3) {
+          encoder.addValue(ts, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, prng.nextLong());
+        } else if (1 == j % 3) {
+          encoder.addValue(ts, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, prng.nextDouble());
+        } else {
+          encoder.addValue(ts, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, "v" + i + "." + j);
+        }
+      }
+      onheap.store(encoder);
+      offheap.store(encoder);
+    }
+
+    Assert.assertEquals(onheap.getCount(), offheap.getCount());
+    Assert.assertTrue(allocator.getAllocated() > 0);
+
+    assertSameDatapoints(onheap.fetch(now, now - CHUNK_COUNT * CHUNK_LENGTH, Long.MAX_VALUE, 0L, 1.0D), offheap.fetch(now, now - CHUNK_COUNT * CHUNK_LENGTH, Long.MAX_VALUE, 0L, 1.0D));
+    assertSameDatapoints(onheap.fetch(now, now - CHUNK_COUNT * CHUNK_LENGTH, 17L, 3L, 1.0D), offheap.fetch(now, now - CHUNK_COUNT * CHUNK_LENGTH, 17L, 3L, 1.0D));
+
+    Assert.assertEquals(onheap.delete(now - CHUNK_LENGTH, now - CHUNK_LENGTH / 2), offheap.delete(now - CHUNK_LENGTH, now - CHUNK_LENGTH / 2));
+    assertSameDatapoints(onheap.fetch(now, now - CHUNK_COUNT * CHUNK_LENGTH, Long.MAX_VALUE, 0L, 1.0D), offheap.fetch(now, now - CHUNK_COUNT * CHUNK_LENGTH, Long.MAX_VALUE, 0L, 1.0D));
+
+    //
+    // Reload the off-heap chunks as a dump would
+    //
+
+    InMemoryChunkSet reloaded = chunkSet(allocator);
+
+    List<GTSDecoder> decoders = offheap.getDecoders();
+
+    for (GTSDecoder decoder: decoders) {
+      ByteBuffer bb = decoder.getBuffer();
+      byte[] data = new byte[bb.remaining()];
+      bb.get(data);
+      GTSEncoder encoder = new GTSEncoder(decoder.getBaseTimestamp(), null, data);
+      encoder.setCount(decoder.getCount());
+      reloaded.storeEncoded(encoder);
+    }
+
+    Assert.assertEquals(offheap.getCount(), reloaded.getCount());
+    assertSameDatapoints(offheap.fetch(now, now - CHUNK_COUNT * CHUNK_LENGTH, Long.MAX_VALUE, 0L, 1.0D), reloaded.fetch(now, now - CHUNK_COUNT * CHUNK_LENGTH, Long.MAX_VALUE, 0L, 1.0D));
+
+    //
+    // Dropping all chunks releases the regions
+    //
+
+    long allocated = allocator.getAllocated();
+    offheap.clean(now + 2 * CHUNK_COUNT * CHUNK_LENGTH);
+    Assert.assertTrue(allocator.getAllocated() < allocated);
+    Assert.assertEquals(0L, offheap.getCount());
+  }
+
+  @Test
+  public void testSnapshot() throws Exception {
+    OffHeapSlabAllocator allocator = new OffHeapSlabAllocator(4096, null);
+
+    final InMemoryChunkSet offheap = chunkSet(allocator);
+
+    long now = NOW;
+    Random prng = new Random(42L);
+
+    for (int i = 0; i < 100; i++) {
+      GTSEncoder encoder = new GTSEncoder(0L);
+      for (int j = 0; j < 50; j++) {
+        long ts = now - (long) (prng.nextDouble() * (CHUNK_COUNT - 1) * CHUNK_LENGTH);
+        encoder.addValue(ts, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, 0 == j % 2 ? (Object) prng.nextLong() : (Object) ("v" + i + "." + j));
+      }
+      offheap.store(encoder);
+    }
+
+    final File file = File.createTempFile("snapshot.", ".w10");
+    file.deleteOnExit();
+
+    Metadata metadata = new Metadata();
+    metadata.setName("snapshot");
+    metadata.setLabels(new HashMap<String,String>());
+    metadata.getLabels().put("label", "value");
+
+    MemoryStoreSnapshot.Writer writer = new MemoryStoreSnapshot.Writer(file, CHUNK_LENGTH, CHUNK_COUNT);
+    writer.add(metadata, offheap.getChunks());
+    writer.close();
+
+    Assert.assertTrue(MemoryStoreSnapshot.isSnapshot(file));
+
+    MemoryStoreSnapshot snapshot = MemoryStoreSnapshot.open(file);
+    Assert.assertEquals(CHUNK_LENGTH, snapshot.getChunkSpan());
+    Assert.assertEquals(1, snapshot.getBlockCount());
+    Assert.assertEquals(offheap.getCount(), snapshot.getDatapoints());
+
+    final InMemoryChunkSet restored = chunkSet(allocator);
+    final InMemoryChunkSet onheap = chunkSet(null);
+    final Metadata[] read = new Metadata[1];
+
+    snapshot.read(0, new MemoryStoreSnapshot.Visitor() {
+      @Override
+      public void series(Metadata metadata, List<InMemoryChunkSet.Chunk> chunks) {
+        read[0] = metadata;
+        for (InMemoryChunkSet.Chunk chunk: chunks) {
+          Assert.assertTrue(restored.restore(chunk));
+          Assert.assertTrue(onheap.restore(chunk));
+          // A chunk which is already populated cannot be restored
+          Assert.assertFalse(restored.restore(chunk));
+        }
+      }
+    });
+    snapshot.close();
+
+    Assert.assertEquals(metadata, read[0]);
+    Assert.assertEquals(offheap.getCount(), restored.getCount());
+    Assert.assertEquals(offheap.getCount(), onheap.getCount());
+    assertSameDatapoints(offheap.fetch(now, now - CHUNK_COUNT * CHUNK_LENGTH, Long.MAX_VALUE, 0L, 1.0D), restored.fetch(now, now - CHUNK_COUNT * CHUNK_LENGTH, Long.MAX_VALUE, 0L, 1.0D));
+    assertSameDatapoints(offheap.fetch(now, now - CHUNK_COUNT * CHUNK_LENGTH, Long.MAX_VALUE, 0L, 1.0D), onheap.fetch(now, now - CHUNK_COUNT * CHUNK_LENGTH, Long.MAX_VALUE, 0L, 1.0D));
+
+    //
+    // Restored chunks which are read only views of the snapshot can still be updated
+    //
+
+    for (int i = 0; i < 10; i++) {
+      GTSEncoder encoder = new GTSEncoder(0L);
+      encoder.addValue(now - i, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, (long) i);
+      encoder.addValue(now - CHUNK_LENGTH - i, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, (long) i);
+      offheap.store(encoder);
+      restored.store(encoder);
+    }
+
+    Assert.assertEquals(offheap.delete(now - 2 * CHUNK_LENGTH, now - CHUNK_LENGTH / 2), restored.delete(now - 2 * CHUNK_LENGTH, now - CHUNK_LENGTH / 2));
+    assertSameDatapoints(offheap.fetch(now, now - CHUNK_COUNT * CHUNK_LENGTH, Long.MAX_VALUE, 0L, 1.0D), restored.fetch(now, now - CHUNK_COUNT * CHUNK_LENGTH, Long.MAX_VALUE, 0L, 1.0D));
+
+    //
+    // Chunks restored from a snapshot can be dumped to the file they are mapped from
+    //
+
+    writer = new MemoryStoreSnapshot.Writer(file, CHUNK_LENGTH, CHUNK_COUNT);
+    writer.add(metadata, restored.getChunks());
+    writer.close();
+
+    assertSameDatapoints(offheap.fetch(now, now - CHUNK_COUNT * CHUNK_LENGTH, Long.MAX_VALUE, 0L, 1.0D), restored.fetch(now, now - CHUNK_COUNT * CHUNK_LENGTH, Long.MAX_VALUE, 0L, 1.0D));
+
+    final InMemoryChunkSet reloaded = chunkSet(null);
+
+    snapshot = MemoryStoreSnapshot.open(file);
+    snapshot.read(0, new MemoryStoreSnapshot.Visitor() {
+      @Override
+      public void series(Metadata metadata, List<InMemoryChunkSet.Chunk> chunks) {
+        for (InMemoryChunkSet.Chunk chunk: chunks) {
+          Assert.assertTrue(reloaded.restore(chunk));
+        }
+      }
+    });
+    snapshot.close();
+
+    assertSameDatapoints(offheap.fetch(now, now - CHUNK_COUNT * CHUNK_LENGTH, Long.MAX_VALUE, 0L, 1.0D), reloaded.fetch(now, now - CHUNK_COUNT * CHUNK_LENGTH, Long.MAX_VALUE, 0L, 1.0D));
+
+    // An aborted snapshot leaves the file untouched
+    writer = new MemoryStoreSnapshot.Writer(file, CHUNK_LENGTH, CHUNK_COUNT);
+    writer.abort();
+    Assert.assertTrue(MemoryStoreSnapshot.isSnapshot(file));
+    Assert.assertEquals(1, file.getParentFile().list(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.startsWith(file.getName());
+      }
+    }).length);
+  }
+
+  private static void assertSameDatapoints(GTSDecoder expected, GTSDecoder actual) throws Exception {
+    while (expected.next()) {
+      Assert.assertTrue(actual.next());
+      Assert.assertEquals(expected.getTimestamp(), actual.getTimestamp());
+      Assert.assertEquals(expected.getValue(), actual.getValue());
+    }
+    Assert.assertFalse(actual.next());
+  }
+}
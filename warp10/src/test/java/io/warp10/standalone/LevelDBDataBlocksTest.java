@@ -0,0 +1,262 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.standalone;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.Configuration;
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.store.GTSDecoderIterator;
+import io.warp10.continuum.store.thrift.data.FetchRequest;
+import io.warp10.continuum.store.thrift.data.Metadata;
+import io.warp10.crypto.KeyStore;
+import io.warp10.crypto.UnsecureKeyStore;
+
+import org.iq80.leveldb.DBIterator;
+import org.iq80.leveldb.Options;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+
+public class LevelDBDataBlocksTest {
+
+  private static final long BLOCKSPAN = 100L;
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    WarpConfig.safeSetProperties(new StringReader("warp.timeunits=us"));
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    Random prng = new Random(42L);
+
+    LevelDBDataBlocks.Row row = new LevelDBDataBlocks.Row(16, 0L);
+
+    for (int i = 0; i < 2000; i++) {
+      long tick = prng.nextInt(1000) - 500;
+      row.add(tick, GeoTimeSerie.NO_LOCATION, 0 == i % 3 ? (long) i : GeoTimeSerie.NO_ELEVATION, (long) i);
+    }
+
+    row.sort();
+
+    // Datapoints are unique and decreasing, the last added one wins
+    for (int i = 1; i < row.size; i++) {
+      Assert.assertTrue(row.ticks[i] < row.ticks[i - 1]);
+    }
+
+    byte[] gtskey = LevelDBDataBlocks.gtsKey(1L, 2L);
+
+    List<byte[][]> kvs = LevelDBDataBlocks.encode(gtskey, row, BLOCKSPAN, 64L, 123L, null);
+
+    int idx = 0;
+
+    for (byte[][] kv: kvs) {
+      byte[] key = kv[0];
+
+      Assert.assertTrue(LevelDBDataBlocks.isBlock(key));
+      Assert.assertTrue(LevelDBDataBlocks.sameGTS(gtskey, key));
+      Assert.assertEquals(123L, LevelDBDataBlocks.seqno(key));
+      // A block never spans several buckets
+      Assert.assertEquals(LevelDBDataBlocks.bucket(LevelDBDataBlocks.upperBound(key), BLOCKSPAN), LevelDBDataBlocks.bucket(LevelDBDataBlocks.lowerBound(key), BLOCKSPAN));
+
+      LevelDBDataBlocks.Row decoded = LevelDBDataBlocks.decode(key, kv[1], null);
+
+      Assert.assertEquals(LevelDBDataBlocks.upperBound(key), decoded.ticks[0]);
+      Assert.assertEquals(LevelDBDataBlocks.lowerBound(key), decoded.ticks[decoded.size - 1]);
+
+      for (int i = 0; i < decoded.size; i++) {
+        Assert.assertEquals(row.ticks[idx], decoded.ticks[i]);
+        Assert.assertEquals(row.elevations[idx], decoded.elevations[i]);
+        Assert.assertEquals(row.values[idx], decoded.values[i]);
+        idx++;
+      }
+    }
+
+    Assert.assertEquals(row.size, idx);
+    // The size limit splits buckets in several blocks
+    Assert.assertTrue(kvs.size() > 10);
+  }
+
+  @Test
+  public void testBlocks() throws Exception {
+    UnsecureKeyStore keystore = new UnsecureKeyStore();
+    keystore.setKey(KeyStore.SIPHASH_CLASS, new byte[16]);
+    keystore.setKey(KeyStore.SIPHASH_LABELS, new byte[16]);
+
+    WarpDB blockdb = db();
+    WarpDB refdb = db();
+
+    try {
+      // Datapoints layout on both databases, blocks only on 'blockdb'
+      StandaloneStoreClient legacy = new StandaloneStoreClient(blockdb, keystore, new Properties());
+      StandaloneStoreClient reference = new StandaloneStoreClient(refdb, keystore, new Properties());
+
+      Properties properties = new Properties();
+      properties.setProperty(Configuration.LEVELDB_DATA_BLOCKSPAN, Long.toString(BLOCKSPAN));
+      properties.setProperty(Configuration.STANDALONE_MAX_ENCODER_SIZE, "128");
+      // Compaction is triggered by the test
+      properties.setProperty(Configuration.LEVELDB_DATA_BLOCK_COMPACTION_PERIOD, "3600000");
+      StandaloneStoreClient blocks = new StandaloneStoreClient(blockdb, keystore, properties);
+
+      Metadata metadata = new Metadata();
+      metadata.setName("series");
+      metadata.setLabels(new HashMap<String,String>());
+      metadata.getLabels().put("label", "value");
+      metadata.setClassId(GTSHelper.classId(keystore.getKey(KeyStore.SIPHASH_CLASS), metadata.getName()));
+      metadata.setLabelsId(GTSHelper.labelsId(keystore.getKey(KeyStore.SIPHASH_LABELS), metadata.getLabels()));
+
+      //
+      // Legacy rows, then blocks overwriting some of them, written in several shuffled batches
+      // so buckets receive several blocks
+      //
+
+      GTSEncoder encoder = new GTSEncoder(0L);
+      encoder.setMetadata(metadata);
+      for (long ts = 0; ts < 3000; ts += 3) {
+        encoder.addValue(ts, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, ts);
+      }
+      legacy.store(encoder);
+      reference.store(encoder);
+      legacy.store(null);
+      reference.store(null);
+
+      List<Long> ticks = new ArrayList<Long>();
+      for (long ts = 1500; ts < 4500; ts += 5) {
+        ticks.add(ts);
+      }
+      Collections.shuffle(ticks, new Random(42L));
+
+      for (int batch = 0; batch < 3; batch++) {
+        encoder = new GTSEncoder(0L);
+        encoder.setMetadata(metadata);
+        for (int i = batch; i < ticks.size(); i += 3) {
+          encoder.addValue(ticks.get(i), GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, -ticks.get(i));
+        }
+        blocks.store(encoder);
+        blocks.store(null);
+        reference.store(encoder);
+        reference.store(null);
+      }
+
+      assertSameFetches(metadata, reference, blocks);
+
+      //
+      // Compaction merges the rows of each bucket
+      //
+
+      long keys = keys(blockdb);
+      blocks.compactPendingBlocks();
+      Assert.assertTrue(keys(blockdb) < keys);
+
+      assertSameFetches(metadata, reference, blocks);
+
+      //
+      // Deletions covering blocks partially and entirely
+      //
+
+      Assert.assertEquals(reference.delete(null, metadata, 1234L, 3456L), blocks.delete(null, metadata, 1234L, 3456L));
+      Assert.assertEquals(reference.delete(null, metadata, 3999L, 4001L), blocks.delete(null, metadata, 3999L, 4001L));
+
+      assertSameFetches(metadata, reference, blocks);
+    } finally {
+      blockdb.close();
+      refdb.close();
+    }
+  }
+
+  private static WarpDB db() throws Exception {
+    File home = Files.createTempDirectory("leveldb").toFile();
+    Options options = new Options();
+    options.createIfMissing(true);
+    return new WarpDB(false, true, home.getAbsolutePath(), options);
+  }
+
+  private static long keys(WarpDB db) throws Exception {
+    long keys = 0L;
+    DBIterator iterator = db.iterator();
+    iterator.seekToFirst();
+    while (iterator.hasNext()) {
+      iterator.next();
+      keys++;
+    }
+    iterator.close();
+    return keys;
+  }
+
+  private static void assertSameFetches(Metadata metadata, StandaloneStoreClient expected, StandaloneStoreClient actual) throws Exception {
+    // now, then, count, skip, step, timestep, preBoundary, postBoundary
+    long[][] requests = new long[][] {
+      { Long.MAX_VALUE - 1, Long.MIN_VALUE + 1, -1L, 0L, 1L, 1L, 0L, 0L },
+      { 4000L, 1000L, -1L, 0L, 1L, 1L, 0L, 0L },
+      { 3333L, Long.MIN_VALUE + 1, 10L, 0L, 1L, 1L, 0L, 0L },
+      { 3333L, Long.MIN_VALUE + 1, 10L, 7L, 1L, 1L, 0L, 0L },
+      // Range within a single bucket, boundaries spanning several blocks
+      { 2050L, 2010L, -1L, 0L, 1L, 1L, 25L, 25L },
+      { 1600L, 1599L, -1L, 0L, 1L, 1L, 3L, 3L },
+      { 4450L, 3000L, -1L, 0L, 1L, 1L, 10L, 5L },
+      { 4000L, 1000L, 50L, 3L, 2L, 1L, 0L, 0L },
+      { 4000L, 1000L, -1L, 0L, 1L, 20L, 0L, 0L },
+    };
+
+    for (long[] r: requests) {
+      FetchRequest req = new FetchRequest();
+      req.setNow(r[0]);
+      req.setThents(r[1]);
+      req.setCount(r[2]);
+      req.setSkip(r[3]);
+      req.setStep(r[4]);
+      req.setTimestep(r[5]);
+      req.setPreBoundary(r[6]);
+      req.setPostBoundary(r[7]);
+
+      List<String> e = fetch(expected, req.deepCopy(), metadata);
+      List<String> a = fetch(actual, req.deepCopy(), metadata);
+      Assert.assertFalse(e.isEmpty());
+      Assert.assertEquals(e, a);
+    }
+  }
+
+  private static List<String> fetch(StandaloneStoreClient client, FetchRequest req, Metadata metadata) throws Exception {
+    List<Metadata> metadatas = new ArrayList<Metadata>();
+    metadatas.add(new Metadata(metadata));
+    req.setMetadatas(metadatas);
+
+    List<String> datapoints = new ArrayList<String>();
+    GTSDecoderIterator iter = client.fetch(req);
+    while (iter.hasNext()) {
+      GTSDecoder decoder = iter.next();
+      while (decoder.next()) {
+        datapoints.add(decoder.getTimestamp() + "=" + decoder.getValue());
+      }
+    }
+    iter.close();
+    return datapoints;
+  }
+}
@@ -0,0 +1,135 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.standalone;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.Configuration;
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.store.GTSDecoderIterator;
+import io.warp10.continuum.store.thrift.data.FetchRequest;
+import io.warp10.continuum.store.thrift.data.Metadata;
+import io.warp10.crypto.UnsecureKeyStore;
+
+import org.iq80.leveldb.Options;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+
+public class StandaloneParallelGTSDecoderIteratorTest {
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    WarpConfig.safeSetProperties(new StringReader("warp.timeunits=us"));
+  }
+
+  private static FetchRequest request(List<Metadata> metadatas, long count) {
+    FetchRequest req = new FetchRequest();
+    req.setMetadatas(new ArrayList<Metadata>(metadatas));
+    req.setNow(Long.MAX_VALUE - 1);
+    req.setThents(Long.MIN_VALUE + 1);
+    req.setCount(count);
+    return req;
+  }
+
+  private static List<GTSDecoder> fetch(StandaloneStoreClient client, FetchRequest req) throws Exception {
+    List<GTSDecoder> decoders = new ArrayList<GTSDecoder>();
+    GTSDecoderIterator iter = client.fetch(req);
+    while (iter.hasNext()) {
+      decoders.add(iter.next());
+    }
+    iter.close();
+    return decoders;
+  }
+
+  @Test
+  public void testParallelFetch() throws Exception {
+    File home = Files.createTempDirectory("leveldb").toFile();
+
+    Options options = new Options();
+    options.createIfMissing(true);
+    WarpDB db = new WarpDB(true, false, home.getAbsolutePath(), options);
+
+    try {
+      StandaloneStoreClient sequential = new StandaloneStoreClient(db, new UnsecureKeyStore(), new Properties());
+
+      Properties properties = new Properties();
+      properties.setProperty(Configuration.LEVELDB_FETCH_PARALLEL_POOLSIZE, "2");
+      properties.setProperty(Configuration.LEVELDB_FETCH_PARALLEL_MAXINFLIGHTPERREQUEST, "3");
+      properties.setProperty(Configuration.LEVELDB_FETCH_PARALLEL_MIN_GTS, "3");
+      properties.setProperty(Configuration.LEVELDB_FETCH_PARALLEL_QUEUESIZE, "1");
+      StandaloneStoreClient parallel = new StandaloneStoreClient(db, new UnsecureKeyStore(), properties);
+
+      List<Metadata> metadatas = new ArrayList<Metadata>();
+
+      for (int gts = 0; gts < 50; gts++) {
+        Metadata metadata = new Metadata();
+        metadata.setName("series");
+        metadata.setLabels(new HashMap<String,String>());
+        metadata.getLabels().put("id", Integer.toString(gts));
+        metadata.setClassId(42L);
+        // Ids in reverse order of creation so the request needs sorting
+        metadata.setLabelsId(1000L - gts);
+        metadatas.add(metadata);
+
+        GTSEncoder encoder = new GTSEncoder(0L);
+        encoder.setMetadata(metadata);
+        for (int i = 0; i < gts; i++) {
+          encoder.addValue(i * 10L, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, (long) (gts * i));
+        }
+        sequential.store(encoder);
+      }
+      sequential.store(null);
+
+      for (long count: new long[] { -1L, 5L }) {
+        List<GTSDecoder> expected = fetch(sequential, request(metadatas, count));
+        List<GTSDecoder> actual = fetch(parallel, request(metadatas, count));
+
+        Assert.assertEquals(expected.size(), actual.size());
+
+        for (int i = 0; i < expected.size(); i++) {
+          GTSDecoder e = expected.get(i);
+          GTSDecoder a = actual.get(i);
+          Assert.assertEquals(e.getMetadata().getLabelsId(), a.getMetadata().getLabelsId());
+          while (e.next()) {
+            Assert.assertTrue(a.next());
+            Assert.assertEquals(e.getTimestamp(), a.getTimestamp());
+            Assert.assertEquals(e.getValue(), a.getValue());
+          }
+          Assert.assertFalse(a.next());
+        }
+      }
+
+      // Closing a partially consumed iterator releases the scanners
+      GTSDecoderIterator iter = parallel.fetch(request(metadatas, -1L));
+      Assert.assertTrue(iter.hasNext());
+      iter.next();
+      iter.close();
+    } finally {
+      db.close();
+    }
+  }
+}
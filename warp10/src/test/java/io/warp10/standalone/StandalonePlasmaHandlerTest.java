@@ -0,0 +1,248 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.standalone;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.store.thrift.data.Metadata;
+import io.warp10.crypto.UnsecureKeyStore;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.websocket.api.RemoteEndpoint;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+
+public class StandalonePlasmaHandlerTest {
+
+  private static StandalonePlasmaHandler handler;
+  private static StandalonePlasmaHandler.StandalonePlasmaWebSocket socket;
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    WarpConfig.safeSetProperties(new StringReader("warp.timeunits=us"));
+
+    handler = new StandalonePlasmaHandler(new UnsecureKeyStore(), new Properties(), null, false);
+    // The WebSocket factory is only available once the handler is started
+    handler.setServer(new Server());
+    handler.start();
+
+    socket = new StandalonePlasmaHandler.StandalonePlasmaWebSocket();
+    socket.setHandler(handler);
+  }
+
+  @AfterClass
+  public static void afterClass() throws Exception {
+    handler.stop();
+  }
+
+  /**
+   * Session recording the messages sent to it. Sends complete inline unless 'pending' is not null,
+   * in which case their callbacks are kept there.
+   */
+  private static final class TestSession implements InvocationHandler {
+    private final List<String> messages = new ArrayList<String>();
+    private List<WriteCallback> pending = null;
+    private boolean open = true;
+
+    private final Session session = (Session) Proxy.newProxyInstance(Session.class.getClassLoader(), new Class[] { Session.class }, this);
+
+    private final RemoteEndpoint remote = (RemoteEndpoint) Proxy.newProxyInstance(RemoteEndpoint.class.getClassLoader(), new Class[] { RemoteEndpoint.class }, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        if ("sendString".equals(method.getName())) {
+          messages.add((String) args[0]);
+          if (args.length > 1) {
+            WriteCallback callback = (WriteCallback) args[1];
+            if (null != pending) {
+              pending.add(callback);
+            } else {
+              callback.writeSuccess();
+            }
+          }
+          return null;
+        }
+        throw new UnsupportedOperationException(method.getName());
+      }
+    });
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      if ("getRemote".equals(method.getName())) {
+        return this.remote;
+      } else if ("isOpen".equals(method.getName())) {
+        return this.open;
+      } else if ("hashCode".equals(method.getName())) {
+        return System.identityHashCode(proxy);
+      } else if ("equals".equals(method.getName())) {
+        return proxy == args[0];
+      } else if ("toString".equals(method.getName())) {
+        return "TestSession@" + System.identityHashCode(proxy);
+      }
+      throw new UnsupportedOperationException(method.getName());
+    }
+  }
+
+  private static Metadata metadata(String name, long id) {
+    Metadata metadata = new Metadata();
+    metadata.setName(name);
+    metadata.setLabels(new HashMap<String,String>());
+    metadata.getLabels().put("label", "value");
+    metadata.setClassId(id);
+    metadata.setLabelsId(id);
+    return metadata;
+  }
+
+  private static GTSEncoder encoder(Metadata metadata, long... ticks) throws Exception {
+    GTSEncoder encoder = new GTSEncoder(0L);
+    encoder.setMetadata(new Metadata(metadata));
+    encoder.setClassId(metadata.getClassId());
+    encoder.setLabelsId(metadata.getLabelsId());
+    for (long tick: ticks) {
+      encoder.addValue(tick, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, tick * 10);
+    }
+    return encoder;
+  }
+
+  @Test
+  public void testDispatch() throws Exception {
+    Metadata m1 = metadata("m1", 1L);
+    Metadata m2 = metadata("m2", 2L);
+    Metadata m3 = metadata("m3", 3L);
+
+    TestSession text = new TestSession();
+    TestSession json = new TestSession();
+    TestSession sampled = new TestSession();
+
+    List<Metadata> both = new ArrayList<Metadata>();
+    both.add(m1);
+    both.add(m2);
+
+    handler.subscribe(text.session, both);
+    handler.subscribe(json.session, Collections.singletonList(m1));
+    handler.subscribe(sampled.session, Collections.singletonList(m1));
+    // Subscribing twice has no effect
+    handler.subscribe(text.session, Collections.singletonList(m1));
+    Assert.assertTrue(handler.hasSubscriptions());
+    Assert.assertEquals(2, handler.getSubscriptions().size());
+
+    socket.onWebSocketMessage(json.session, "JSON");
+    // Nearly all the datapoints are skipped by the sampling
+    socket.onWebSocketMessage(sampled.session, "SAMPLE " + Double.MIN_VALUE);
+
+    handler.dispatch(encoder(m1, 1L, 2L));
+    handler.dispatch(encoder(m2, 3L));
+    // No subscriber
+    handler.dispatch(encoder(m3, 4L));
+
+    Assert.assertEquals(2, text.messages.size());
+    Assert.assertEquals("1// m1{label=value} 10\n=2// 20\n", text.messages.get(0));
+    Assert.assertEquals("3// m2{label=value} 30\n", text.messages.get(1));
+    Assert.assertEquals(1, json.messages.size());
+    Assert.assertTrue(json.messages.get(0).startsWith("[{"));
+    Assert.assertTrue(sampled.messages.isEmpty());
+
+    // Resetting the sample rate renders the unsampled datapoints again
+    socket.onWebSocketMessage(sampled.session, "SAMPLE 0");
+    handler.dispatch(encoder(m1, 5L));
+    Assert.assertEquals(text.messages.get(2), sampled.messages.get(0));
+
+    // Unsubscribing only affects the session
+    handler.unsubscribe(text.session, Collections.singletonList(m1));
+    handler.dispatch(encoder(m1, 6L));
+    Assert.assertEquals(3, text.messages.size());
+    Assert.assertEquals(3, json.messages.size());
+    Assert.assertEquals(2, sampled.messages.size());
+
+    // Sessions found closed when dispatching are deregistered
+    sampled.open = false;
+    handler.dispatch(encoder(m1, 7L));
+    Assert.assertEquals(2, sampled.messages.size());
+    Assert.assertEquals(4, json.messages.size());
+
+    socket.onWebSocketClose(json.session, 1000, null);
+    Assert.assertEquals(1, handler.getSubscriptions().size());
+    handler.dispatch(encoder(m1, 8L));
+    Assert.assertEquals(4, json.messages.size());
+
+    socket.onWebSocketClose(text.session, 1000, null);
+    Assert.assertFalse(handler.hasSubscriptions());
+    Assert.assertTrue(handler.getSubscriptions().isEmpty());
+  }
+
+  @Test
+  public void testSessionQueue() throws Exception {
+    TestSession session = new TestSession();
+    session.pending = new ArrayList<WriteCallback>();
+
+    StandalonePlasmaHandler.SessionQueue queue = new StandalonePlasmaHandler.SessionQueue(session.session, 3, 100L);
+
+    // The first message is sent right away, the next ones wait for its completion
+    queue.offer("a\n", true);
+    Assert.assertEquals(1, session.messages.size());
+
+    // Text messages are coalesced up to 90% of the max message size
+    queue.offer("b\n", true);
+    queue.offer("c\n", true);
+    queue.offer("raw", false);
+    queue.offer(String.format("%080d", 0), true);
+    // The queue is full, the message is dropped
+    queue.offer("dropped", false);
+    queue.offer(String.format("%080d", 1), true);
+    Assert.assertEquals(1, session.messages.size());
+
+    // Completions send the next pending message
+    session.pending.remove(0).writeSuccess();
+    Assert.assertEquals("b\nc\n", session.messages.get(1));
+    session.pending.remove(0).writeSuccess();
+    Assert.assertEquals("raw", session.messages.get(2));
+    session.pending.remove(0).writeSuccess();
+    Assert.assertEquals(String.format("%080d", 0), session.messages.get(3));
+    session.pending.remove(0).writeSuccess();
+    Assert.assertEquals(4, session.messages.size());
+    Assert.assertTrue(session.pending.isEmpty());
+
+    // Once idle the next message is sent right away
+    queue.offer("d\n", true);
+    Assert.assertEquals("d\n", session.messages.get(4));
+
+    // A failed write discards the pending messages
+    queue.offer("e\n", false);
+    queue.offer("f\n", false);
+    session.pending.remove(0).writeFailed(new Exception());
+    Assert.assertEquals(5, session.messages.size());
+
+    // Sends completing inline drain the queue
+    session.pending = null;
+    queue.offer("g\n", false);
+    Assert.assertEquals("g\n", session.messages.get(5));
+  }
+}
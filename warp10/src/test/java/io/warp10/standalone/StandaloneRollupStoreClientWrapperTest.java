@@ -0,0 +1,374 @@
+//
+//   Copyright 2021  SenX S.A.S.
+//
+//   Licensed under the Apache License, Version 2.0 (the "License");
+//   you may not use this file except in compliance with the License.
+//   You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//   Unless required by applicable law or agreed to in writing, software
+//   distributed under the License is distributed on an "AS IS" BASIS,
+//   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//   See the License for the specific language governing permissions and
+//   limitations under the License.
+//
+
+package io.warp10.standalone;
+
+import io.warp10.WarpConfig;
+import io.warp10.continuum.gts.GTSDecoder;
+import io.warp10.continuum.gts.GTSEncoder;
+import io.warp10.continuum.gts.GTSHelper;
+import io.warp10.continuum.gts.GeoTimeSerie;
+import io.warp10.continuum.store.BucketizingGTSDecoderIterator;
+import io.warp10.continuum.store.GTSDecoderIterator;
+import io.warp10.continuum.store.StoreClient;
+import io.warp10.continuum.store.thrift.data.FetchBucketization;
+import io.warp10.continuum.store.thrift.data.FetchBucketizer;
+import io.warp10.continuum.store.thrift.data.FetchRequest;
+import io.warp10.continuum.store.thrift.data.Metadata;
+import io.warp10.crypto.KeyStore;
+import io.warp10.crypto.UnsecureKeyStore;
+import io.warp10.quasar.token.thrift.data.WriteToken;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+public class StandaloneRollupStoreClientWrapperTest {
+
+  private static final KeyStore keystore = new UnsecureKeyStore();
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    WarpConfig.safeSetProperties(new StringReader("warp.timeunits=us"));
+    keystore.setKey(KeyStore.SIPHASH_CLASS, new byte[16]);
+    keystore.setKey(KeyStore.SIPHASH_LABELS, new byte[16]);
+  }
+
+  /**
+   * Minimal StoreClient keeping the datapoints in memory, a value stored at an existing timestamp replaces it
+   */
+  private static class MemoryStoreClient implements StoreClient {
+    private final Map<String,TreeMap<Long,Object>> series = new HashMap<String,TreeMap<Long,Object>>();
+
+    private static String id(Metadata metadata) {
+      return metadata.getClassId() + ":" + metadata.getLabelsId();
+    }
+
+    @Override
+    public void store(GTSEncoder encoder) throws IOException {
+      if (null == encoder) {
+        return;
+      }
+
+      TreeMap<Long,Object> values = this.series.get(id(encoder.getMetadata()));
+
+      if (null == values) {
+        values = new TreeMap<Long,Object>();
+        this.series.put(id(encoder.getMetadata()), values);
+      }
+
+      GTSDecoder decoder = encoder.getDecoder();
+
+      while (decoder.next()) {
+        values.put(decoder.getTimestamp(), decoder.getBinaryValue());
+      }
+    }
+
+    @Override
+    public long delete(WriteToken token, Metadata metadata, long start, long end) throws IOException {
+      metadata.setClassId(GTSHelper.classId(keystore.getKey(KeyStore.SIPHASH_CLASS), metadata.getName()));
+      metadata.setLabelsId(GTSHelper.labelsId(keystore.getKey(KeyStore.SIPHASH_LABELS), metadata.getLabels()));
+
+      TreeMap<Long,Object> values = this.series.get(id(metadata));
+
+      if (null == values) {
+        return 0L;
+      }
+
+      Map<Long,Object> range = values.subMap(start, true, end, true);
+      long count = range.size();
+      range.clear();
+      return count;
+    }
+
+    @Override
+    public GTSDecoderIterator fetch(FetchRequest req) throws IOException {
+      final List<GTSDecoder> decoders = new ArrayList<GTSDecoder>();
+
+      for (Metadata metadata: req.getMetadatas()) {
+        TreeMap<Long,Object> values = this.series.get(id(metadata));
+
+        if (null == values) {
+          continue;
+        }
+
+        GTSEncoder encoder = new GTSEncoder(0L);
+        encoder.setMetadata(metadata);
+
+        for (Map.Entry<Long,Object> entry: values.subMap(req.getThents(), true, req.getNow(), true).descendingMap().entrySet()) {
+          encoder.addValue(entry.getKey(), GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, entry.getValue());
+        }
+
+        decoders.add(encoder.getDecoder());
+      }
+
+      final Iterator<GTSDecoder> iter = decoders.iterator();
+
+      return BucketizingGTSDecoderIterator.wrap(req, new GTSDecoderIterator() {
+        @Override
+        public void close() throws Exception {
+        }
+
+        @Override
+        public boolean hasNext() {
+          return iter.hasNext();
+        }
+
+        @Override
+        public GTSDecoder next() {
+          return iter.next();
+        }
+      });
+    }
+
+    @Override
+    public void addPlasmaHandler(StandalonePlasmaHandlerInterface handler) {
+    }
+  }
+
+  /**
+   * StoreClient batching the writes of each thread until it is called with a null encoder, as StandaloneStoreClient does
+   */
+  private static class BatchingStoreClient extends MemoryStoreClient {
+    private final ThreadLocal<List<GTSEncoder>> batch = new ThreadLocal<List<GTSEncoder>>() {
+      @Override
+      protected List<GTSEncoder> initialValue() {
+        return new ArrayList<GTSEncoder>();
+      }
+    };
+
+    @Override
+    public void store(GTSEncoder encoder) throws IOException {
+      if (null != encoder) {
+        this.batch.get().add(encoder);
+        return;
+      }
+
+      synchronized (this) {
+        for (GTSEncoder enc: this.batch.get()) {
+          super.store(enc);
+        }
+      }
+
+      this.batch.get().clear();
+    }
+
+    @Override
+    public synchronized long delete(WriteToken token, Metadata metadata, long start, long end) throws IOException {
+      return super.delete(token, metadata, start, end);
+    }
+
+    @Override
+    public synchronized GTSDecoderIterator fetch(FetchRequest req) throws IOException {
+      return super.fetch(req);
+    }
+  }
+
+  private static Metadata metadata(String name) {
+    Metadata metadata = new Metadata();
+    metadata.setName(name);
+    metadata.setLabels(new HashMap<String,String>());
+    metadata.getLabels().put("label", "value");
+    metadata.setClassId(GTSHelper.classId(keystore.getKey(KeyStore.SIPHASH_CLASS), metadata.getName()));
+    metadata.setLabelsId(GTSHelper.labelsId(keystore.getKey(KeyStore.SIPHASH_LABELS), metadata.getLabels()));
+    return metadata;
+  }
+
+  private static FetchRequest request(Metadata metadata, FetchBucketizer bucketizer, boolean rollups) {
+    FetchBucketization bucketization = new FetchBucketization();
+    bucketization.setBucketizer(bucketizer);
+    bucketization.setBucketspan(200L);
+    bucketization.setLastbucket(1000L);
+    bucketization.setBucketcount(5);
+    bucketization.setRollups(rollups);
+
+    FetchRequest req = new FetchRequest();
+    List<Metadata> metadatas = new ArrayList<Metadata>();
+    metadatas.add(metadata);
+    req.setMetadatas(metadatas);
+    req.setNow(1000L);
+    req.setThents(1L);
+    req.setBucketization(bucketization);
+    return req;
+  }
+
+  private static GeoTimeSerie fetch(StoreClient client, FetchRequest req) throws Exception {
+    GTSDecoderIterator iter = client.fetch(req);
+    Assert.assertTrue(iter.hasNext());
+    GeoTimeSerie gts = iter.next().decode();
+    Assert.assertFalse(iter.hasNext());
+    iter.close();
+    GTSHelper.sort(gts);
+    return gts;
+  }
+
+  private static void check(StoreClient client, Metadata metadata) throws Exception {
+    for (FetchBucketizer bucketizer: FetchBucketizer.values()) {
+      GeoTimeSerie expected = fetch(client, request(metadata, bucketizer, false));
+      GeoTimeSerie rolledup = fetch(client, request(metadata, bucketizer, true));
+
+      Assert.assertEquals(bucketizer.name(), metadata.getName(), rolledup.getName());
+      Assert.assertEquals(bucketizer.name(), GTSHelper.nvalues(expected), GTSHelper.nvalues(rolledup));
+
+      for (int i = 0; i < GTSHelper.nvalues(expected); i++) {
+        Assert.assertEquals(bucketizer.name(), GTSHelper.tickAtIndex(expected, i), GTSHelper.tickAtIndex(rolledup, i));
+        Object value = GTSHelper.valueAtIndex(expected, i);
+        if (value instanceof Double) {
+          Assert.assertEquals(bucketizer.name(), (Double) value, ((Number) GTSHelper.valueAtIndex(rolledup, i)).doubleValue(), 1.0E-9);
+        } else {
+          Assert.assertEquals(bucketizer.name(), value, GTSHelper.valueAtIndex(rolledup, i));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testRollups() throws Exception {
+    MemoryStoreClient memory = new MemoryStoreClient();
+    // A single cached bucket forces the rollups to be read back from the store
+    StandaloneRollupStoreClientWrapper client = new StandaloneRollupStoreClientWrapper(keystore, memory, "10,100", 1);
+
+    Metadata metadata = metadata("rolled");
+    Random prng = new Random(42L);
+
+    // Datapoints are ingested out of order in several updates
+    for (int update = 0; update < 10; update++) {
+      GTSEncoder encoder = new GTSEncoder(0L);
+      encoder.setMetadata(metadata);
+
+      for (int i = update; i < 1000; i += 10) {
+        encoder.addValue(i + 1, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, (long) prng.nextInt(1000) - 500L);
+      }
+
+      client.store(encoder);
+    }
+
+    // The rollups were used
+    Assert.assertEquals(100L, client.rollupSpan(request(metadata, FetchBucketizer.SUM, true)));
+    Assert.assertEquals(0L, client.rollupSpan(request(metadata, FetchBucketizer.SUM, false)));
+
+    check(client, metadata);
+
+    // Partial deletion, the rollup buckets are rebuilt
+    client.delete(null, new Metadata(metadata), 155L, 421L);
+    check(client, metadata);
+
+    // Mixed types are accounted for as DOUBLEs
+    StandaloneRollupStoreClientWrapper.Rollup rollup = new StandaloneRollupStoreClientWrapper.Rollup();
+    rollup.add(2L, 3L);
+    rollup.add(1L, 0.5D);
+    rollup = StandaloneRollupStoreClientWrapper.Rollup.fromBytes(rollup.toBytes());
+    Assert.assertEquals(3.5D, (Double) rollup.value(FetchBucketizer.SUM), 0.0D);
+    Assert.assertEquals(0.5D, (Double) rollup.value(FetchBucketizer.FIRST), 0.0D);
+    Assert.assertEquals(3.0D, (Double) rollup.value(FetchBucketizer.LAST), 0.0D);
+    Assert.assertEquals(2L, rollup.value(FetchBucketizer.COUNT));
+  }
+
+  @Test
+  public void testConcurrentUpdates() throws Exception {
+    // A tiny cache forces the eviction of the buckets updated by the other threads
+    final StandaloneRollupStoreClientWrapper client = new StandaloneRollupStoreClientWrapper(keystore, new BatchingStoreClient(), "10,100", 2);
+    final Metadata metadata = metadata("concurrent");
+
+    final int threads = 4;
+    Thread[] writers = new Thread[threads];
+    final List<Throwable> errors = new ArrayList<Throwable>();
+
+    for (int t = 0; t < threads; t++) {
+      final int offset = t;
+
+      writers[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            Random prng = new Random(offset);
+
+            // Each update spans all the buckets, writes are only flushed every few updates
+            for (int update = 0; update < 25; update++) {
+              GTSEncoder encoder = new GTSEncoder(0L);
+              encoder.setMetadata(metadata);
+
+              for (int i = update * threads + offset; i < 1000; i += 25 * threads) {
+                encoder.addValue(i + 1, GeoTimeSerie.NO_LOCATION, GeoTimeSerie.NO_ELEVATION, (long) prng.nextInt(1000) - 500L);
+              }
+
+              client.store(encoder);
+
+              if (0 == update % 5) {
+                client.store(null);
+              }
+              Thread.yield();
+            }
+
+            client.store(null);
+          } catch (Throwable t) {
+            synchronized (errors) {
+              errors.add(t);
+            }
+          }
+        }
+      };
+    }
+
+    for (Thread writer: writers) {
+      writer.start();
+    }
+
+    for (Thread writer: writers) {
+      writer.join();
+    }
+
+    Assert.assertTrue(errors.toString(), errors.isEmpty());
+
+    // No update was lost
+    check(client, metadata);
+    Assert.assertEquals(5L, GTSHelper.nvalues(fetch(client, request(metadata, FetchBucketizer.COUNT, true))));
+    Assert.assertEquals(200L, GTSHelper.valueAtIndex(fetch(client, request(metadata, FetchBucketizer.COUNT, true)), 0));
+  }
+
+  @Test
+  public void testAlignment() throws Exception {
+    StandaloneRollupStoreClientWrapper client = new StandaloneRollupStoreClientWrapper(keystore, new MemoryStoreClient(), "100, 10", 1000);
+    Metadata metadata = metadata("aligned");
+
+    FetchRequest req = request(metadata, FetchBucketizer.MAX, true);
+    req.getBucketization().setBucketspan(50L);
+    Assert.assertEquals(10L, client.rollupSpan(req));
+
+    req = request(metadata, FetchBucketizer.MAX, true);
+    req.setThents(5L);
+    Assert.assertEquals(0L, client.rollupSpan(req));
+
+    req = request(metadata, FetchBucketizer.MAX, true);
+    req.setCount(10L);
+    Assert.assertEquals(0L, client.rollupSpan(req));
+
+    Assert.assertEquals(100L, StandaloneRollupStoreClientWrapper.bucketEnd(100L, 100L));
+    Assert.assertEquals(100L, StandaloneRollupStoreClientWrapper.bucketEnd(1L, 100L));
+    Assert.assertEquals(0L, StandaloneRollupStoreClientWrapper.bucketEnd(-99L, 100L));
+    Assert.assertEquals(Long.MAX_VALUE, StandaloneRollupStoreClientWrapper.bucketEnd(Long.MAX_VALUE - 1L, 100L));
+  }
+}